@@ -0,0 +1,4109 @@
+// ============================================================================
+// BANCO DE PRUEBAS DE RENDIMIENTO
+// ============================================================================
+
+/**
+ * Mediciones de rendimiento del nucleo de SIGEFVE.
+ * Se ejecutan con: java Sigefve benchmark <nombre> [parametros]
+ */
+class BancoPruebas {
+    
+    public static void ejecutar(String[] args) {
+        // Los mensajes de cada operacion no deben medirse junto con ella
+        RegistroAsincrono.setNivel(NivelRegistro.AVISO);
+        String nombre = args.length > 1 ? args[1] : "";
+        switch (nombre) {
+            case "memoria":
+                compararMemoria(entero(args, 2, 10_000_000));
+                break;
+            case "carga":
+                generarCarga(entero(args, 2, 100_000), decimal(args, 3, 1.0),
+                             entero(args, 4, 30), entero(args, 5, Runtime.getRuntime().availableProcessors()));
+                break;
+            case "lote":
+                compararIngestaLote(entero(args, 2, 10_000), entero(args, 3, 5_000_000),
+                                    entero(args, 4, 500), entero(args, 5, 10));
+                break;
+            case "bitacora":
+                if (!medirBitacora(entero(args, 2, 10_000_000), entero(args, 3, 10_000))) {
+                    System.exit(1);
+                }
+                break;
+            case "diario":
+                if (!medirDiario(entero(args, 2, 50_000), entero(args, 3, 2_000_000))) {
+                    System.exit(1);
+                }
+                break;
+            case "api":
+                probarCargaApi(entero(args, 2, 10_000), args.length > 3 ? args[3] : "1000,2500,5000",
+                               entero(args, 4, 10), entero(args, 5, 64));
+                break;
+            case "difusion":
+                if (!medirDifusion(entero(args, 2, 10_000), entero(args, 3, 100), entero(args, 4, 5))) {
+                    System.exit(1);
+                }
+                break;
+            case "espacial":
+                if (!medirIndiceEspacial(entero(args, 2, 100_000), entero(args, 3, 500))) {
+                    System.exit(1);
+                }
+                break;
+            case "alertas":
+                if (!medirAlertas(entero(args, 2, 10_000), entero(args, 3, 2_000_000), entero(args, 4, 50))) {
+                    System.exit(1);
+                }
+                break;
+            case "estadisticas":
+                if (!medirEstadisticas(args.length > 2 ? args[2] : "1000,10000,100000", entero(args, 3, 10_000))) {
+                    System.exit(1);
+                }
+                break;
+            case "retencion":
+                if (!medirRetencion(entero(args, 2, 50), entero(args, 3, 35))) {
+                    System.exit(1);
+                }
+                break;
+            case "despacho":
+                if (!medirDespacho(entero(args, 2, 5_000), entero(args, 3, 5_000))) {
+                    System.exit(1);
+                }
+                break;
+            case "secuencia":
+                if (!medirSecuencia(entero(args, 2, 200), args.length > 3 ? args[3] : "50,100,200")) {
+                    System.exit(1);
+                }
+                break;
+            case "estaciones":
+                if (!medirEstaciones(entero(args, 2, 10_000), entero(args, 3, 300))) {
+                    System.exit(1);
+                }
+                break;
+            case "metricas":
+                if (!medirMetricas(entero(args, 2, 10_000), entero(args, 3, 1_000_000))) {
+                    System.exit(1);
+                }
+                break;
+            case "simulacion":
+                if (!medirSimulacion(entero(args, 2, 10_000), entero(args, 3, 24), entero(args, 4, 2026))) {
+                    System.exit(1);
+                }
+                break;
+            case "particiones":
+                if (!medirParticiones(entero(args, 2, 10_000), entero(args, 3, 2_000_000), args.length > 4 ? args[4] : "1,2,4,8",
+                                      args.length > 5 ? args[5] : "1,2,4")) {
+                    System.exit(1);
+                }
+                break;
+            case "dispositivos":
+                if (!medirIngestaDispositivos(entero(args, 2, 10_000), args.length > 3 ? args[3] : "100000,200000",
+                                              entero(args, 4, 5), entero(args, 5, 8))) {
+                    System.exit(1);
+                }
+                break;
+            case "fotos":
+                if (!medirFotos(entero(args, 2, 10_000), entero(args, 3, 4), entero(args, 4, 5))) {
+                    System.exit(1);
+                }
+                break;
+            case "reorden":
+                if (!medirReorden(entero(args, 2, 10_000), entero(args, 3, 200), entero(args, 4, 2_000))) {
+                    System.exit(1);
+                }
+                break;
+            case "informes":
+                if (!medirInformes(entero(args, 2, 10_000_000), entero(args, 3, 10_000), entero(args, 4, 4))) {
+                    System.exit(1);
+                }
+                break;
+            case "concurrencia":
+                if (!probarConcurrencia(entero(args, 2, 8), entero(args, 3, 500))) {
+                    System.exit(1);
+                }
+                break;
+            default:
+                mostrarUso();
+        }
+    }
+    
+    private static void mostrarUso() {
+        System.out.println("Uso: java Sigefve benchmark <nombre> [parametros]");
+        System.out.println("  memoria [muestras]   Heap por lectura: objetos Telemetria vs SegmentoTelemetria");
+        System.out.println("  lote [vehiculos] [lecturas] [tamano lote] [lecturas por vehiculo en cada lote]");
+        System.out.println("                       Ingesta lectura a lectura vs por lotes");
+        System.out.println("  bitacora [registros] [vehiculos]   Ingesta con persistencia y tiempo de reproduccion");
+        System.out.println("  diario [vehiculos] [mutaciones]    Reinicio desde el diario vs instantanea + cola");
+        System.out.println("  api [vehiculos] [peticiones/s,...] [segundos] [conexiones]");
+        System.out.println("                       Latencia p50/p99 de la API HTTP a tasa fija");
+        System.out.println("  difusion [vehiculos] [suscriptores] [segundos]");
+        System.out.println("                       Ingesta con suscriptores en vivo rapidos, lentos y detenidos");
+        System.out.println("  espacial [vehiculos] [consultas]   Zona y k cercanos: indice vs recorrido completo");
+        System.out.println("  alertas [vehiculos] [lecturas] [reglas]   Ingesta con y sin reglas de alerta");
+        System.out.println("  estadisticas [vehiculos,...] [consultas]   Estadisticas incrementales vs recorrer la flota");
+        System.out.println("  retencion [vehiculos] [dias]       Memoria y consultas del historial por niveles");
+        System.out.println("  despacho [rutas] [vehiculos]         Asignacion masiva de rutas vs asignacion voraz");
+        System.out.println("  secuencia [rutas] [paradas,...]      Orden y horas de entrega por tamano de ruta");
+        System.out.println("  estaciones [vehiculos] [estaciones]  Decisiones de carga por segundo y orden de la cola");
+        System.out.println("  metricas [vehiculos] [lecturas]    Costo de los histogramas y formato de Prometheus");
+        System.out.println("  simulacion [vehiculos] [horas] [semilla]   Dia de reparto con reloj virtual: rapidez y repeticion");
+        System.out.println("  particiones [vehiculos] [lecturas] [particiones,...] [en otros procesos,...]");
+        System.out.println("                       Ingesta por cantidad de particiones, locales y por loopback, y rebalanceo");
+        System.out.println("  dispositivos [vehiculos] [tramas/s,...] [segundos] [conexiones]");
+        System.out.println("                       Ingesta binaria por NIO: tasa, latencia, asignaciones y contrapresion");
+        System.out.println("  fotos [vehiculos] [lectores] [segundos]");
+        System.out.println("                       Lectores de tablero durante la ingesta: vista viva vs fotos inmutables");
+        System.out.println("  reorden [vehiculos] [lecturas por vehiculo] [retraso ms]");
+        System.out.println("                       Lecturas tardias, desordenadas y repetidas con y sin ventana de reorden");
+        System.out.println("  informes [lecturas] [vehiculos] [hilos]");
+        System.out.println("                       Exportacion de un mes desde la bitacora: filas/s, MB/s y memoria");
+        System.out.println("  concurrencia [hilos] [vehiculos]   Prueba de estres multihilo de GestorFlota");
+        System.out.println("  carga [vehiculos] [lecturas/s por vehiculo] [segundos] [trabajadores]");
+        System.out.println("                       Generador de carga con SimuladorTelemetria");
+    }
+    
+    // ====== Memoria por lectura ======
+    
+    /**
+     * Compara el heap ocupado por N lecturas guardadas como objetos Telemetria
+     * (modelo anterior) contra las mismas lecturas en un SegmentoTelemetria.
+     * Requiere un heap grande, por ejemplo: java -Xmx4g Sigefve benchmark memoria
+     */
+    private static void compararMemoria(int muestras) {
+        System.out.println("=== Memoria para " + muestras + " lecturas ===");
+        java.util.Random random = new java.util.Random(42);
+        
+        long base = heapUsado();
+        java.util.List<Telemetria> objetos = new java.util.ArrayList<>(muestras);
+        for (int i = 0; i < muestras; i++) {
+            String gps = String.format("%.6f,%.6f",
+                                       20.5 + random.nextFloat() * 0.1,
+                                       -100.3 + random.nextFloat() * 0.1);
+            objetos.add(new Telemetria(i, random.nextFloat() * 60, 30 + random.nextFloat() * 50,
+                                       gps, random.nextFloat() * 100, i % 5000));
+        }
+        long bytesObjetos = heapUsado() - base;
+        System.out.println("Objetos tocados: " + objetos.size());
+        objetos = null;
+        
+        base = heapUsado();
+        SegmentoTelemetria segmento = new SegmentoTelemetria(muestras);
+        long ahora = System.currentTimeMillis();
+        for (int i = 0; i < muestras; i++) {
+            segmento.agregar(i, ahora + i, i % 5000, random.nextFloat() * 60, 30 + random.nextFloat() * 50,
+                             random.nextFloat() * 100, 20.5 + random.nextFloat() * 0.1,
+                             -100.3 + random.nextFloat() * 0.1);
+        }
+        long bytesColumnas = heapUsado() - base;
+        System.out.println("Lecturas en columnas: " + segmento.getTamano());
+        
+        System.out.printf("Objetos Telemetria:  %,d bytes (%.1f bytes/lectura)%n",
+                          bytesObjetos, (double) bytesObjetos / muestras);
+        System.out.printf("SegmentoTelemetria:  %,d bytes (%.1f bytes/lectura, teorico %d)%n",
+                          bytesColumnas, (double) bytesColumnas / muestras, SegmentoTelemetria.BYTES_POR_LECTURA);
+        System.out.printf("Reduccion: %.1fx%n", (double) bytesObjetos / bytesColumnas);
+    }
+    
+    // ====== Generador de carga ======
+    
+    /**
+     * Crea una flota sintetica y la hace reportar a la tasa pedida durante el
+     * tiempo indicado; al final compara la tasa objetivo con la lograda.
+     */
+    private static void generarCarga(int vehiculos, double lecturasPorSegundo, int segundos, int trabajadores) {
+        long periodoMillis = Math.max(1, Math.round(1000.0 / lecturasPorSegundo));
+        System.out.printf("=== Carga: %,d vehiculos, una lectura cada %d ms, %d s, %d trabajadores ===%n",
+                          vehiculos, periodoMillis, segundos, trabajadores);
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 16);
+        
+        SimuladorTelemetria simulador = new SimuladorTelemetria(gestor, periodoMillis, trabajadores, 42L);
+        simulador.iniciar();
+        dormir(segundos * 1000L);
+        simulador.detener();
+        
+        double objetivo = vehiculos * 1000.0 / periodoMillis;
+        System.out.printf("Lecturas generadas:   %,d%n", simulador.getLecturasGeneradas());
+        System.out.printf("Tasa objetivo:        %,.0f lecturas/s%n", objetivo);
+        System.out.printf("Tasa lograda:         %,.0f lecturas/s (%.1f%%)%n",
+                          simulador.getLecturasPorSegundo(), 100.0 * simulador.getLecturasPorSegundo() / objetivo);
+        System.out.printf("Retraso maximo:       %.1f ms%n", simulador.getRetrasoMaximoMillis());
+        System.out.printf("Rondas atrasadas:     %,d%n", simulador.getTicksAtrasados());
+    }
+    
+    /**
+     * Crea una flota mixta sin imprimir una linea por vehiculo
+     */
+    static GestorFlota crearFlotaSilenciosa(int vehiculos, int capacidadHistorial) {
+        GestorFlota gestor = new GestorFlota(capacidadHistorial);
+        String[] tipos = {"van", "bicicleta", "moto"};
+        java.io.PrintStream salida = System.out;
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < vehiculos; i++) {
+                VehiculoElectrico v = gestor.crearVehiculo(tipos[i % 3], "Sintetico", 50.0f);
+                if (i % 2 == 0) {
+                    v.setEstado(EstadoVehiculo.EN_RUTA);
+                }
+            }
+        } finally {
+            System.setOut(salida);
+        }
+        return gestor;
+    }
+    
+    // ====== Ingesta por lotes ======
+    
+    /**
+     * Mide lecturas/segundo registrando las mismas lecturas de tres formas:
+     * registrarTelemetria con GPS en texto, registrarLectura una a una y
+     * registrarTelemetriaLote. Cada rafaga imita a una pasarela que estuvo
+     * acumulando: trae varias lecturas de cada uno de sus vehiculos, intercaladas.
+     */
+    private static void compararIngestaLote(int vehiculos, int lecturas, int tamanoLote, int lecturasPorVehiculo) {
+        System.out.printf("=== Ingesta: %,d lecturas, %,d vehiculos, lotes de %d (%d lecturas por vehiculo) ===%n",
+                          lecturas, vehiculos, tamanoLote, lecturasPorVehiculo);
+        int[] destino = new int[lecturas];
+        java.util.SplittableRandom random = new java.util.SplittableRandom(7);
+        int vehiculosPorRafaga = Math.max(1, tamanoLote / lecturasPorVehiculo);
+        int[] rafaga = new int[vehiculosPorRafaga];
+        for (int i = 0; i < lecturas; i++) {
+            int posicion = i % tamanoLote;
+            if (posicion == 0) {
+                for (int v = 0; v < vehiculosPorRafaga; v++) {
+                    rafaga[v] = 1 + random.nextInt(vehiculos);
+                }
+            }
+            destino[i] = rafaga[posicion % vehiculosPorRafaga];
+        }
+        
+        GestorFlota gestorTexto = crearFlotaSilenciosa(vehiculos, 64);
+        GestorFlota gestorIndividual = crearFlotaSilenciosa(vehiculos, 64);
+        GestorFlota gestorLote = crearFlotaSilenciosa(vehiculos, 64);
+        LoteTelemetria lote = new LoteTelemetria(tamanoLote);
+        long ahora = System.currentTimeMillis();
+        double mejorTexto = 0;
+        double mejorIndividual = 0;
+        double mejorLote = 0;
+        
+        // La primera ronda es de calentamiento; de las demas se reporta la mejor
+        for (int ronda = 0; ronda < 4; ronda++) {
+            long inicio = System.nanoTime();
+            for (int i = 0; i < lecturas; i++) {
+                gestorTexto.registrarTelemetria(destino[i], 30.0f, 45.0f, "20.523456,-100.345678");
+            }
+            double texto = lecturas * 1e9 / (System.nanoTime() - inicio);
+            
+            inicio = System.nanoTime();
+            for (int i = 0; i < lecturas; i++) {
+                gestorIndividual.registrarLectura(destino[i], ahora, 30.0f, 45.0f, 20.523456, -100.345678);
+            }
+            double individual = lecturas * 1e9 / (System.nanoTime() - inicio);
+            
+            inicio = System.nanoTime();
+            for (int i = 0; i < lecturas; i++) {
+                lote.agregar(destino[i], ahora, 30.0f, 45.0f, 20.523456, -100.345678);
+                if (lote.estaLleno()) {
+                    gestorLote.registrarTelemetriaLote(lote);
+                    lote.limpiar();
+                }
+            }
+            gestorLote.registrarTelemetriaLote(lote);
+            lote.limpiar();
+            double porLote = lecturas * 1e9 / (System.nanoTime() - inicio);
+            
+            if (ronda > 0) {
+                mejorTexto = Math.max(mejorTexto, texto);
+                mejorIndividual = Math.max(mejorIndividual, individual);
+                mejorLote = Math.max(mejorLote, porLote);
+            }
+        }
+        System.out.printf("registrarTelemetria (GPS texto): %,12.0f lecturas/s%n", mejorTexto);
+        System.out.printf("registrarLectura (individual):   %,12.0f lecturas/s%n", mejorIndividual);
+        System.out.printf("registrarTelemetriaLote:         %,12.0f lecturas/s (%.2fx vs individual)%n",
+                          mejorLote, mejorLote / mejorIndividual);
+    }
+    
+    // ====== Bitacora de telemetria ======
+    
+    /**
+     * Mide la ingesta sin persistencia y con la bitacora en cada politica de
+     * fsync, y despues el tiempo de reconstruir el historial desde disco.
+     * Comprueba ademas que una escritura rota no deja registros viejos.
+     */
+    private static boolean medirBitacora(int registros, int vehiculos) {
+        System.out.printf("=== Bitacora: %,d registros, %,d vehiculos ===%n", registros, vehiculos);
+        java.nio.file.Path base;
+        try {
+            base = java.nio.file.Files.createTempDirectory("sigefve-bitacora");
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        try {
+            double sinPersistencia = ingerir(crearFlotaSilenciosa(vehiculos, 64), registros, vehiculos);
+            System.out.printf("Sin persistencia:                   %,12.0f lecturas/s%n", sinPersistencia);
+            
+            Object[][] politicas = {
+                {PoliticaSincronizacion.NUNCA, 0L},
+                {PoliticaSincronizacion.AL_ROTAR, 0L},
+                {PoliticaSincronizacion.PERIODICA, 100L},
+                {PoliticaSincronizacion.CADA_N_REGISTROS, 10_000L},
+            };
+            java.nio.file.Path ultimoDirectorio = null;
+            for (Object[] p : politicas) {
+                PoliticaSincronizacion politica = (PoliticaSincronizacion) p[0];
+                long parametro = (Long) p[1];
+                ultimoDirectorio = base.resolve(politica.name());
+                GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 64);
+                try (BitacoraTelemetria bitacora = new BitacoraTelemetria(ultimoDirectorio,
+                        BitacoraTelemetria.REGISTROS_POR_SEGMENTO_POR_DEFECTO, politica, parametro)) {
+                    gestor.activarPersistencia(bitacora);
+                    double tasa = ingerir(gestor, registros, vehiculos);
+                    System.out.printf("Bitacora %-25s %,12.0f lecturas/s (%.0f%%)%n",
+                                      politica + (parametro > 0 ? "(" + parametro + ")" : "") + ":",
+                                      tasa, 100 * tasa / sinPersistencia);
+                }
+            }
+            
+            // Reproduccion desde la ultima bitacora escrita
+            for (int ronda = 0; ronda < 2; ronda++) {
+                GestorFlota restaurado = new GestorFlota(64);
+                try (BitacoraTelemetria bitacora = new BitacoraTelemetria(ultimoDirectorio)) {
+                    ResumenReproduccion resumen = restaurado.restaurarTelemetria(bitacora);
+                    long bytes = resumen.getRegistros() * BitacoraTelemetria.TAMANO_REGISTRO;
+                    System.out.printf("Reproduccion %s: %,d registros en %.0f ms (%,.0f registros/s, %.0f MB/s)%n",
+                                      ronda == 0 ? "(1a)" : "(2a)", resumen.getRegistros(), resumen.getMillis(),
+                                      resumen.getRegistros() / (resumen.getMillis() / 1000),
+                                      bytes / 1e6 / (resumen.getMillis() / 1000));
+                }
+            }
+            // Sin reconstruir el historial: solo leer y validar los registros
+            try (BitacoraTelemetria bitacora = new BitacoraTelemetria(ultimoDirectorio)) {
+                long[] suma = new long[1];
+                ResumenReproduccion resumen = bitacora.reproducir(
+                    (id, tiempo, vehiculoId, velocidad, temperatura, bateria, lat, lon) -> suma[0] += vehiculoId);
+                System.out.printf("Solo lectura y CRC: %,d registros en %.0f ms (%.0f MB/s)%n",
+                                  resumen.getRegistros(), resumen.getMillis(),
+                                  resumen.getRegistros() * BitacoraTelemetria.TAMANO_REGISTRO / 1e6
+                                      / (resumen.getMillis() / 1000));
+            }
+            return probarEscrituraRota(base.resolve("rota"));
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } finally {
+            borrarDirectorio(base);
+        }
+    }
+    
+    /**
+     * Simula que las paginas del mapa llegaron a disco desordenadas: un
+     * registro en ceros en medio del segmento activo y registros validos
+     * despues. Al reabrir valen solo los anteriores al hueco, y lo que se
+     * anexe luego no debe revivir los de despues.
+     */
+    private static boolean probarEscrituraRota(java.nio.file.Path directorio) throws java.io.IOException {
+        try (BitacoraTelemetria bitacora = new BitacoraTelemetria(directorio, 1000, PoliticaSincronizacion.NUNCA, 0)) {
+            for (int i = 1; i <= 100; i++) {
+                bitacora.agregar(i, 1_000L * i, 1, 30, 40, 90, 20.6, -100.4);
+            }
+        }
+        java.nio.file.Path segmento;
+        try (java.util.stream.Stream<java.nio.file.Path> archivos = java.nio.file.Files.list(directorio)) {
+            segmento = archivos.filter(a -> a.getFileName().toString().endsWith(".seg")).findFirst().orElseThrow();
+        }
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(
+                segmento, java.nio.file.StandardOpenOption.WRITE)) {
+            canal.write(java.nio.ByteBuffer.allocate(BitacoraTelemetria.TAMANO_REGISTRO),
+                        BitacoraTelemetria.TAMANO_CABECERA + 40L * BitacoraTelemetria.TAMANO_REGISTRO);
+        }
+        try (BitacoraTelemetria bitacora = new BitacoraTelemetria(directorio, 1000, PoliticaSincronizacion.NUNCA, 0)) {
+            for (int i = 1001; i <= 1005; i++) {
+                bitacora.agregar(i, 1_000L * i, 1, 30, 40, 90, 20.6, -100.4);
+            }
+        }
+        java.util.List<Integer> ids = new java.util.ArrayList<>();
+        try (BitacoraTelemetria bitacora = new BitacoraTelemetria(directorio, 1000, PoliticaSincronizacion.NUNCA, 0)) {
+            bitacora.reproducir((id, tiempo, vehiculoId, velocidad, temperatura, bateria, lat, lon) -> ids.add(id));
+        }
+        System.out.printf("Escritura rota en el registro 41 de 100, 5 anexados despues: %d registros al reproducir%n",
+                          ids.size());
+        return verificar(System.out, "tras una escritura rota no vuelven registros viejos de despues del hueco",
+                         ids.size() == 45 && ids.get(39) == 40 && ids.get(40) == 1001 && ids.get(44) == 1005);
+    }
+    
+    private static double ingerir(GestorFlota gestor, int registros, int vehiculos) {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(3);
+        long inicio = System.nanoTime();
+        for (int i = 0; i < registros; i++) {
+            gestor.registrarLectura(1 + i % vehiculos, System.currentTimeMillis(), (float) random.nextDouble() * 60,
+                                    45.0f, 20.5 + random.nextDouble() * 0.1, -100.3 + random.nextDouble() * 0.1);
+        }
+        return registros * 1e9 / (System.nanoTime() - inicio);
+    }
+    
+    private static void borrarDirectorio(java.nio.file.Path directorio) {
+        try (java.util.stream.Stream<java.nio.file.Path> archivos = java.nio.file.Files.walk(directorio)) {
+            archivos.sorted(java.util.Comparator.reverseOrder()).forEach(archivo -> archivo.toFile().delete());
+        } catch (java.io.IOException e) {
+            System.out.println("No se pudo borrar " + directorio + ": " + e.getMessage());
+        }
+    }
+    
+    // ====== Diario de la flota ======
+    
+    /**
+     * Construye una flota con rutas y entregas bajo un DiarioFlota, le aplica
+     * mutaciones (desgaste, cambios de estado, entregas, cargas) y mide el
+     * reinicio reproduciendo solo el diario contra instantanea + cola del diario.
+     */
+    private static boolean medirDiario(int vehiculos, int mutaciones) {
+        System.out.printf("=== Diario de flota: %,d vehiculos, %,d mutaciones ===%n", vehiculos, mutaciones);
+        java.nio.file.Path directorio;
+        try {
+            directorio = java.nio.file.Files.createTempDirectory("sigefve-diario");
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        java.io.PrintStream salida = System.out;
+        boolean correcto = true;
+        try {
+            // 1. Flota nueva con todo el historial en el diario
+            GestorFlota gestor = new GestorFlota(64);
+            long firma;
+            try (DiarioFlota diario = new DiarioFlota(directorio, PoliticaSincronizacion.PERIODICA,
+                    DiarioFlota.INTERVALO_COMMIT_MS, Long.MAX_VALUE)) {
+                gestor.activarDiario(diario);
+                System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+                long inicio = System.nanoTime();
+                try {
+                    poblarFlota(gestor, vehiculos);
+                    mutarFlota(gestor, vehiculos, mutaciones, 1);
+                } finally {
+                    System.setOut(salida);
+                }
+                double segundos = (System.nanoTime() - inicio) / 1e9;
+                diario.sincronizar();
+                firma = firmaFlota(gestor);
+                System.out.printf("Escritura: %,d registros de diario en %.2f s (%,.0f mutaciones/s)%n",
+                                  diario.getSiguienteLsn() - 1, segundos, mutaciones / segundos);
+            }
+            System.out.printf("Diario en disco: %.1f MB%n", tamanoDirectorio(directorio) / 1e6);
+            
+            // 2. Reinicio reproduciendo el diario completo
+            GestorFlota restaurado = new GestorFlota(64);
+            try (DiarioFlota diario = new DiarioFlota(directorio)) {
+                ResumenRestauracion resumen = restaurado.restaurarEstado(diario);
+                System.out.println("Reinicio solo con diario:        " + resumen);
+                correcto &= verificar(salida, "El estado restaurado desde el diario coincide",
+                                      firmaFlota(restaurado) == firma);
+                
+                // 3. Instantanea del estado restaurado y una cola de cambios posteriores
+                restaurado.activarDiario(diario);
+                long inicio = System.nanoTime();
+                diario.tomarInstantanea();
+                System.out.printf("Instantanea tomada en %.0f ms (%.1f MB)%n",
+                                  (System.nanoTime() - inicio) / 1e6, tamanoDirectorio(directorio) / 1e6);
+                System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+                try {
+                    mutarFlota(restaurado, vehiculos, mutaciones / 10, 2);
+                } finally {
+                    System.setOut(salida);
+                }
+                diario.sincronizar();
+                firma = firmaFlota(restaurado);
+            }
+            
+            // 4. Reinicio desde la instantanea + la cola del diario
+            GestorFlota desdeInstantanea = new GestorFlota(64);
+            try (DiarioFlota diario = new DiarioFlota(directorio)) {
+                ResumenRestauracion resumen = desdeInstantanea.restaurarEstado(diario);
+                System.out.println("Reinicio con instantanea + cola: " + resumen);
+                correcto &= verificar(salida, "El estado restaurado desde la instantanea coincide",
+                                      firmaFlota(desdeInstantanea) == firma);
+                desdeInstantanea.activarDiario(diario);
+                System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+                try {
+                    mutarFlota(desdeInstantanea, vehiculos, 100, 3);
+                } finally {
+                    System.setOut(salida);
+                }
+                diario.sincronizar();
+            }
+            correcto &= probarDiarioCorrupto(salida, directorio);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } finally {
+            System.setOut(salida);
+            borrarDirectorio(directorio);
+        }
+        return correcto;
+    }
+    
+    /**
+     * Una cola cortada en el ultimo archivo se recorta y la restauracion
+     * sigue; un registro danado en un archivo anterior hace fallar la
+     * restauracion en lugar de saltarse en silencio lo que le sigue.
+     */
+    private static boolean probarDiarioCorrupto(java.io.PrintStream salida, java.nio.file.Path directorio)
+            throws java.io.IOException {
+        java.util.List<java.nio.file.Path> archivos = new java.util.ArrayList<>();
+        try (java.nio.file.DirectoryStream<java.nio.file.Path> contenido =
+                 java.nio.file.Files.newDirectoryStream(directorio, "diario-*.log")) {
+            for (java.nio.file.Path archivo : contenido) {
+                if (java.nio.file.Files.size(archivo) > 0) {
+                    archivos.add(archivo);
+                }
+            }
+        }
+        archivos.sort(null);
+        if (archivos.size() < 2) {
+            return verificar(salida, "hay al menos dos archivos de diario con registros", false);
+        }
+        java.nio.file.Path ultimo = archivos.get(archivos.size() - 1);
+        java.nio.file.Path anterior = archivos.get(archivos.size() - 2);
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(
+                ultimo, java.nio.file.StandardOpenOption.WRITE)) {
+            canal.truncate(canal.size() - 3);
+        }
+        boolean colaRecortada;
+        try (DiarioFlota diario = new DiarioFlota(directorio)) {
+            new GestorFlota(64).restaurarEstado(diario);
+            colaRecortada = true;
+        } catch (java.io.IOException e) {
+            colaRecortada = false;
+        }
+        boolean correcto = verificar(salida, "una cola cortada en el ultimo archivo se recorta al restaurar",
+                                     colaRecortada);
+        
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(
+                anterior, java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE)) {
+            java.nio.ByteBuffer byteMedio = java.nio.ByteBuffer.allocate(1);
+            long posicion = canal.size() / 2;
+            canal.read(byteMedio, posicion);
+            byteMedio.put(0, (byte) ~byteMedio.get(0)).clear();
+            canal.write(byteMedio, posicion);
+        }
+        String error = null;
+        try (DiarioFlota diario = new DiarioFlota(directorio)) {
+            new GestorFlota(64).restaurarEstado(diario);
+        } catch (java.io.IOException e) {
+            error = e.getMessage();
+        }
+        System.out.println("Registro danado en " + anterior.getFileName() + ": " + error);
+        return correcto & verificar(salida, "un registro danado antes de la cola hace fallar la restauracion",
+                                    error != null && error.contains("corrupto"));
+    }
+    
+    /**
+     * Un vehiculo por cada tipo en turno, una ruta con tres entregas cada diez
+     * vehiculos; las rutas pares tienen entregas ubicadas y quedan secuenciadas.
+     */
+    private static void poblarFlota(GestorFlota gestor, int vehiculos) {
+        String[] tipos = {"van", "bicicleta", "moto"};
+        for (int i = 0; i < vehiculos; i++) {
+            gestor.crearVehiculo(tipos[i % 3], "Sintetico " + i, 50.0f);
+        }
+        java.time.LocalDateTime ahora = java.time.LocalDateTime.now();
+        for (int i = 0; i < vehiculos / 10; i++) {
+            Ruta ruta = gestor.crearRuta("Centro", "Zona " + i, 5 + i % 20);
+            for (int e = 1; e <= 3; e++) {
+                gestor.agregarEntrega(ruta.getId(), i % 2 == 0
+                    ? new Entrega(e, "Calle " + i + " #" + e, ahora.plusHours(e),
+                                  20.55 + (i * 7 + e * 13) % 100 / 1000.0, -100.45 + (i * 11 + e * 3) % 100 / 1000.0)
+                    : new Entrega(e, "Calle " + i + " #" + e, ahora.plusHours(e)));
+            }
+            gestor.asignarRutaAVehiculo(1 + i * 10, ruta.getId());
+        }
+        gestor.secuenciarRutas();
+    }
+    
+    private static void mutarFlota(GestorFlota gestor, int vehiculos, int mutaciones, long semilla) {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(semilla);
+        int rutas = vehiculos / 10;
+        for (int i = 0; i < mutaciones; i++) {
+            int id = 1 + random.nextInt(vehiculos);
+            int tipo = random.nextInt(100);
+            if (tipo < 80) {
+                gestor.registrarLectura(id, System.currentTimeMillis(), (float) random.nextDouble() * 60, 45.0f,
+                                        20.5 + random.nextDouble() * 0.1, -100.3 + random.nextDouble() * 0.1);
+            } else if (tipo < 90) {
+                gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.DISPONIBLE, EstadoVehiculo.MANTENIMIENTO);
+                gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.MANTENIMIENTO, EstadoVehiculo.DISPONIBLE);
+            } else if (tipo < 95 && rutas > 0) {
+                gestor.cambiarEstadoEntrega(1 + random.nextInt(rutas), 1 + random.nextInt(3),
+                                            random.nextBoolean() ? "entregado" : "pendiente");
+            } else {
+                gestor.cargarVehiculo(id);
+            }
+        }
+    }
+    
+    /** Resumen del estado persistente para comparar una flota con su restauracion. */
+    private static long firmaFlota(GestorFlota gestor) {
+        long firma = 0;
+        for (VehiculoElectrico v : gestor.listarVehiculos()) {
+            firma += 31L * v.getId() * (v.getEstado().ordinal() + 1)
+                   + Float.floatToIntBits(v.getNivelBateria()) * (long) v.getId()
+                   + v.getModelo().hashCode();
+        }
+        for (Ruta r : gestor.listarRutas()) {
+            firma += 13L * r.getId() * r.getVehiculoId();
+            for (Entrega e : r.getEntregas()) {
+                firma += 17L * r.getId() * e.getId() + e.getEstado().hashCode()
+                       + 19L * e.getId() * e.getSecuencia() + Double.hashCode(e.getLatitud());
+            }
+        }
+        return firma;
+    }
+    
+    private static long tamanoDirectorio(java.nio.file.Path directorio) {
+        try (java.util.stream.Stream<java.nio.file.Path> archivos = java.nio.file.Files.walk(directorio)) {
+            return archivos.filter(java.nio.file.Files::isRegularFile).mapToLong(archivo -> archivo.toFile().length()).sum();
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+    
+    // ====== Carga sobre la API HTTP ======
+    
+    /**
+     * Levanta ServidorApi sobre una flota sintetica (con el simulador
+     * reportando) y le envia peticiones a tasa fija por conexiones keep-alive,
+     * al estilo de wrk2: cada peticion tiene su instante programado y la
+     * latencia se mide desde ahi, asi un servidor atascado no se disimula
+     * retrasando los envios. El cliente usa sockets directos para gastar poco
+     * CPU y no competir con el servidor en la misma maquina.
+     * Mezcla: 60% detalle de vehiculo, 20% pagina de 50 vehiculos, 10% historial
+     * de 20 lecturas, 5% estadisticas, 5% revalidacion con If-None-Match.
+     */
+    private static void probarCargaApi(int vehiculos, String tasas, int segundos, int conexiones) {
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 64);
+        ingerir(gestor, vehiculos * 20, vehiculos);
+        SimuladorTelemetria simulador = new SimuladorTelemetria(gestor, 10_000, 1, 7L);
+        java.io.PrintStream salida = System.out;
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        simulador.iniciar();
+        System.setOut(salida);
+        // Como en el servicio: las paginas de vehiculos salen de la ultima foto publicada
+        gestor.publicarFotos(1000);
+        
+        try (ServidorApi servidor = new ServidorApi(gestor, new RegistroUsuarios(),
+                new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0))) {
+            servidor.iniciar();
+            java.net.InetSocketAddress direccion =
+                new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), servidor.getPuerto());
+            java.net.http.HttpClient cliente = java.net.http.HttpClient.newHttpClient();
+            String base = "http://127.0.0.1:" + servidor.getPuerto();
+            String token = obtenerToken(cliente, base);
+            String etiquetaRutas = cliente.send(
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/api/rutas?limite=20"))
+                    .header("Authorization", "Bearer " + token).build(),
+                java.net.http.HttpResponse.BodyHandlers.discarding()).headers().firstValue("ETag").orElse(null);
+            
+            System.out.printf("=== API HTTP: %,d vehiculos, %d s por tasa, %d conexiones, %s ===%n",
+                              vehiculos, segundos, conexiones,
+                              servidor.usaHilosVirtuales() ? "hilos virtuales" : "pool de hilos");
+            System.out.println("  objetivo    lograda   errores      p50      p90      p99    p99.9      max");
+            for (String texto : tasas.split(",")) {
+                int tasa = Integer.parseInt(texto.trim());
+                // Calentamiento a la misma tasa, sin medir
+                dispararPeticiones(direccion, token, etiquetaRutas, vehiculos, tasa, Math.max(2, segundos / 3), conexiones);
+                long[] resultado = dispararPeticiones(direccion, token, etiquetaRutas, vehiculos, tasa, segundos, conexiones);
+                long errores = resultado[resultado.length - 2];
+                long duracion = resultado[resultado.length - 1];
+                long[] latencias = java.util.Arrays.copyOf(resultado, resultado.length - 2);
+                java.util.Arrays.sort(latencias);
+                System.out.printf("%,10d %,10.0f %9d %6.2f ms %6.2f ms %6.2f ms %6.2f ms %6.1f ms%n",
+                                  tasa, latencias.length * 1e9 / duracion, errores,
+                                  percentil(latencias, 0.50), percentil(latencias, 0.90),
+                                  percentil(latencias, 0.99), percentil(latencias, 0.999),
+                                  percentil(latencias, 1.0));
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+            simulador.detener();
+            System.setOut(salida);
+            gestor.detenerFotos();
+        }
+    }
+    
+    /**
+     * Reparte tasa*segundos peticiones entre las conexiones (la peticion i sale
+     * por la conexion i % conexiones en el instante inicio + i * periodo).
+     * @return latencias en nanosegundos, seguidas de la cantidad de errores y la duracion total
+     */
+    private static long[] dispararPeticiones(java.net.InetSocketAddress direccion, String token, String etiquetaRutas,
+                                             int vehiculos, int tasa, int segundos, int conexiones)
+            throws InterruptedException {
+        int total = tasa * segundos;
+        long periodo = 1_000_000_000L / tasa;
+        long[] latencias = new long[total + 2];
+        java.util.concurrent.atomic.AtomicLong errores = new java.util.concurrent.atomic.AtomicLong();
+        long inicio = System.nanoTime() + 50_000_000L;
+        Thread[] hilos = new Thread[conexiones];
+        for (int c = 0; c < conexiones; c++) {
+            int conexion = c;
+            hilos[c] = new Thread(() -> {
+                java.util.SplittableRandom random = new java.util.SplittableRandom(tasa * 31L + conexion);
+                java.net.Socket socket = null;
+                java.io.InputStream entrada = null;
+                java.io.OutputStream salida = null;
+                for (int i = conexion; i < total; i += conexiones) {
+                    long programada = inicio + i * periodo;
+                    long espera = programada - System.nanoTime();
+                    if (espera > 0) {
+                        java.util.concurrent.locks.LockSupport.parkNanos(espera);
+                    }
+                    try {
+                        if (socket == null) {
+                            socket = new java.net.Socket();
+                            socket.setTcpNoDelay(true);
+                            socket.connect(direccion);
+                            entrada = new java.io.BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                            salida = socket.getOutputStream();
+                        }
+                        salida.write(peticionCarga(random, vehiculos, token, etiquetaRutas));
+                        int estado = leerRespuesta(entrada);
+                        if (estado != 200 && estado != 304) {
+                            errores.incrementAndGet();
+                        }
+                    } catch (java.io.IOException e) {
+                        errores.incrementAndGet();
+                        try {
+                            if (socket != null) {
+                                socket.close();
+                            }
+                        } catch (java.io.IOException ignorada) {
+                            // Ya estaba cerrado
+                        }
+                        socket = null;
+                    }
+                    latencias[i] = System.nanoTime() - programada;
+                }
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (java.io.IOException e) {
+                    // Ya estaba cerrado
+                }
+            }, "carga-api-" + c);
+            hilos[c].start();
+        }
+        for (Thread hilo : hilos) {
+            hilo.join();
+        }
+        latencias[total] = errores.get();
+        latencias[total + 1] = System.nanoTime() - inicio;
+        return latencias;
+    }
+    
+    private static byte[] peticionCarga(java.util.SplittableRandom random, int vehiculos, String token,
+                                        String etiquetaRutas) {
+        int tipo = random.nextInt(100);
+        int id = 1 + random.nextInt(vehiculos);
+        String ruta;
+        String extra = "";
+        if (tipo < 60) {
+            ruta = "/api/vehiculos/" + id;
+        } else if (tipo < 80) {
+            ruta = "/api/vehiculos?desde=" + id + "&limite=50";
+        } else if (tipo < 90) {
+            ruta = "/api/vehiculos/" + id + "/telemetria?limite=20";
+        } else if (tipo < 95) {
+            ruta = "/api/estadisticas";
+        } else {
+            ruta = "/api/rutas?limite=20";
+            extra = "If-None-Match: " + etiquetaRutas + "\r\n";
+        }
+        return ("GET " + ruta + " HTTP/1.1\r\nHost: localhost\r\nAuthorization: Bearer " + token + "\r\n"
+                + extra + "\r\n").getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * Lee una respuesta HTTP/1.1 completa (cabeceras y cuerpo de longitud fija).
+     * @return el codigo de estado
+     */
+    private static int leerRespuesta(java.io.InputStream entrada) throws java.io.IOException {
+        String linea = leerLinea(entrada);
+        int estado = Integer.parseInt(linea.substring(9, 12));
+        long longitud = 0;
+        while (!(linea = leerLinea(entrada)).isEmpty()) {
+            if (linea.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                longitud = Long.parseLong(linea.substring(15).trim());
+            }
+        }
+        if (estado != 204 && estado != 304) {
+            while (longitud > 0) {
+                long saltados = entrada.skip(longitud);
+                if (saltados <= 0) {
+                    if (entrada.read() < 0) {
+                        throw new java.io.EOFException("Respuesta incompleta");
+                    }
+                    saltados = 1;
+                }
+                longitud -= saltados;
+            }
+        }
+        return estado;
+    }
+    
+    private static String leerLinea(java.io.InputStream entrada) throws java.io.IOException {
+        StringBuilder linea = new StringBuilder(64);
+        int c;
+        while ((c = entrada.read()) != '\n') {
+            if (c < 0) {
+                throw new java.io.EOFException("Conexion cerrada por el servidor");
+            }
+            if (c != '\r') {
+                linea.append((char) c);
+            }
+        }
+        return linea.toString();
+    }
+    
+    private static String obtenerToken(java.net.http.HttpClient cliente, String base)
+            throws java.io.IOException, InterruptedException {
+        String usuario = "{\"nombre\":\"Carga\",\"correo\":\"carga@sigefve.mx\",\"password\":\"carga123\"}";
+        cliente.send(java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/api/register"))
+                         .POST(java.net.http.HttpRequest.BodyPublishers.ofString(usuario)).build(),
+                     java.net.http.HttpResponse.BodyHandlers.discarding());
+        String credenciales = "{\"usuario\":\"carga@sigefve.mx\",\"contrasena\":\"carga123\"}";
+        String respuesta = cliente.send(java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/api/login"))
+                                            .POST(java.net.http.HttpRequest.BodyPublishers.ofString(credenciales)).build(),
+                                        java.net.http.HttpResponse.BodyHandlers.ofString()).body();
+        return ServidorApi.leerObjetoPlano(respuesta).get("token");
+    }
+    
+    private static double percentil(long[] ordenadas, double fraccion) {
+        if (ordenadas.length == 0) {
+            return Double.NaN;
+        }
+        int posicion = (int) Math.min(ordenadas.length - 1, Math.ceil(fraccion * ordenadas.length) - 1);
+        return ordenadas[Math.max(0, posicion)] / 1e6;
+    }
+    
+    // ====== Difusion en vivo ======
+    
+    /**
+     * Ingesta durante 'segundos' sin difusor y despues con el difusor y
+     * 'suscriptores' clientes: la mayoria leen sin pausa, uno lee lotes
+     * chicos con pausas, uno nunca lee y uno filtra los vehiculos 1 a 3.
+     * Verifica que el detenido no acumule mas de un pendiente por vehiculo y
+     * que el filtrado solo reciba sus vehiculos.
+     */
+    private static boolean medirDifusion(int vehiculos, int suscriptores, int segundos) {
+        System.out.printf("=== Difusion: %,d vehiculos, %d suscriptores, %d s por fase ===%n",
+                          vehiculos, suscriptores, segundos);
+        java.io.PrintStream salida = System.out;
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 64);
+        ingerirDurante(gestor, vehiculos, 1); // calentamiento
+        double[] sinDifusor = ingerirDurante(gestor, vehiculos, segundos);
+        
+        DifusorTelemetria difusor = new DifusorTelemetria(gestor);
+        gestor.activarDifusion(difusor);
+        double[] sinSuscriptores = ingerirDurante(gestor, vehiculos, segundos);
+        
+        SuscripcionTelemetria detenida = difusor.suscribir(null, null, null);
+        SuscripcionTelemetria lenta = difusor.suscribir(null, null, null);
+        SuscripcionTelemetria filtrada = difusor.suscribir(new int[] {1, 2, 3}, null, null);
+        java.util.List<SuscripcionTelemetria> rapidas = new java.util.ArrayList<>();
+        for (int i = 0; i < Math.max(0, suscriptores - 3); i++) {
+            rapidas.add(difusor.suscribir(null, null, null));
+        }
+        java.util.concurrent.atomic.LongAdder eventos = new java.util.concurrent.atomic.LongAdder();
+        java.util.concurrent.atomic.AtomicBoolean ajenos = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.List<Thread> lectores = new java.util.ArrayList<>();
+        for (SuscripcionTelemetria rapida : rapidas) {
+            lectores.add(lector(rapida, 256, 0, eventos, null));
+        }
+        lectores.add(lector(lenta, 16, 100, null, null));
+        lectores.add(lector(filtrada, 256, 0, null, ajenos));
+        for (Thread hilo : lectores) {
+            hilo.start();
+        }
+        double[] conSuscriptores = ingerirDurante(gestor, vehiculos, segundos);
+        dormir(3 * DifusorTelemetria.INTERVALO_MS);
+        
+        long fusionadas = detenida.getFusionadas() + lenta.getFusionadas() + filtrada.getFusionadas();
+        for (SuscripcionTelemetria rapida : rapidas) {
+            fusionadas += rapida.getFusionadas();
+        }
+        int maximoDetenida = detenida.getMaximoPendientes();
+        int maximoLenta = lenta.getMaximoPendientes();
+        difusor.close();
+        for (Thread hilo : lectores) {
+            try {
+                hilo.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        // Con pocos nucleos los lectores le quitan CPU a la ingesta; lo que cuesta
+        // publicar en el hilo que registra se ve en lecturas por segundo de CPU de ese hilo
+        salida.printf("%-34s %14s %18s%n", "", "lecturas/s", "por s de CPU");
+        salida.printf("%-34s %,14.0f %,18.0f%n", "Sin difusor", sinDifusor[0], sinDifusor[1]);
+        salida.printf("%-34s %,14.0f %,18.0f%n", "Con difusor, sin suscriptores", sinSuscriptores[0], sinSuscriptores[1]);
+        salida.printf("%-34s %,14.0f %,18.0f (%.0f%% de la base)%n", "Con " + suscriptores + " suscriptores",
+                      conSuscriptores[0], conSuscriptores[1], 100 * conSuscriptores[1] / sinDifusor[1]);
+        salida.printf("Lecturas repartidas:              %,12d%n", difusor.getRepartidas());
+        salida.printf("Eventos a suscriptores rapidos:   %,12d%n", eventos.sum());
+        salida.printf("Lecturas fusionadas (no enviadas por haber una mas nueva): %,d%n", fusionadas);
+        salida.printf("Maximo pendiente: detenido %,d, lento %,d (tope %,d)%n",
+                      maximoDetenida, maximoLenta, vehiculos);
+        boolean correcto = verificar(salida, "El suscriptor detenido no pasa de un pendiente por vehiculo",
+                                     maximoDetenida <= vehiculos);
+        correcto &= verificar(salida, "El suscriptor lento no pasa de un pendiente por vehiculo",
+                              maximoLenta <= vehiculos);
+        correcto &= verificar(salida, "El suscriptor filtrado solo recibe los vehiculos 1 a 3", !ajenos.get());
+        return correcto;
+    }
+    
+    /**
+     * @return {lecturas por segundo de reloj, lecturas por segundo de CPU del hilo que ingiere}
+     */
+    private static double[] ingerirDurante(GestorFlota gestor, int vehiculos, int segundos) {
+        java.lang.management.ThreadMXBean hilos = java.lang.management.ManagementFactory.getThreadMXBean();
+        java.util.SplittableRandom random = new java.util.SplittableRandom(5);
+        long cpuInicio = hilos.getCurrentThreadCpuTime();
+        long inicio = System.nanoTime();
+        long fin = inicio + segundos * 1_000_000_000L;
+        long registradas = 0;
+        while (System.nanoTime() < fin) {
+            // Se consulta el reloj cada 1024 lecturas para no medir System.nanoTime
+            for (int i = 0; i < 1024; i++) {
+                gestor.registrarLectura(1 + random.nextInt(vehiculos), System.currentTimeMillis(),
+                                        (float) random.nextDouble() * 60, 45.0f,
+                                        20.5 + random.nextDouble() * 0.1, -100.3 + random.nextDouble() * 0.1);
+            }
+            registradas += 1024;
+        }
+        long transcurrido = System.nanoTime() - inicio;
+        long cpu = hilos.getCurrentThreadCpuTime() - cpuInicio;
+        return new double[] {registradas * 1e9 / transcurrido, registradas * 1e9 / Math.max(1, cpu)};
+    }
+    
+    private static Thread lector(SuscripcionTelemetria suscripcion, int lote, long pausaMillis,
+                                 java.util.concurrent.atomic.LongAdder eventos,
+                                 java.util.concurrent.atomic.AtomicBoolean ajenos) {
+        Thread hilo = new Thread(() -> {
+            int[] ids = new int[lote];
+            try {
+                int tomados;
+                while ((tomados = suscripcion.tomar(ids, 1000)) >= 0) {
+                    if (eventos != null) {
+                        eventos.add(tomados);
+                    }
+                    for (int i = 0; ajenos != null && i < tomados; i++) {
+                        if (ids[i] > 3) {
+                            ajenos.set(true);
+                        }
+                    }
+                    if (pausaMillis > 0) {
+                        Thread.sleep(pausaMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        hilo.setDaemon(true);
+        return hilo;
+    }
+    
+    // ====== Indice espacial ======
+    
+    /**
+     * Reparte la flota en una zona metropolitana de ~33 x 31 km y compara las
+     * consultas del indice con un recorrido de todos los vehiculos leyendo su
+     * ultima lectura: cajas del tamano de una vista de mapa y los 10
+     * DISPONIBLE mas cercanos a un punto. Verifica que den lo mismo.
+     */
+    private static boolean medirIndiceEspacial(int vehiculos, int consultas) {
+        System.out.printf("=== Indice espacial: %,d vehiculos, %,d consultas de cada tipo ===%n", vehiculos, consultas);
+        java.io.PrintStream salida = System.out;
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 4);
+        java.util.SplittableRandom random = new java.util.SplittableRandom(11);
+        long ahora = System.currentTimeMillis();
+        for (int id = 1; id <= vehiculos; id++) {
+            gestor.registrarLectura(id, ahora, 30.0f, 45.0f, 20.45 + random.nextDouble() * 0.3,
+                                    -100.55 + random.nextDouble() * 0.3);
+        }
+        
+        // Costo de mantener el indice: lecturas que mueven un poco a cada vehiculo
+        IndiceEspacial indice = new IndiceEspacial();
+        VehiculoElectrico[] flota = new VehiculoElectrico[vehiculos];
+        double[][] posiciones = new double[vehiculos][];
+        for (int i = 0; i < vehiculos; i++) {
+            flota[i] = gestor.consultarVehiculo(i + 1);
+            posiciones[i] = gestor.obtenerUltimaPosicion(i + 1);
+            indice.actualizar(flota[i], posiciones[i][0], posiciones[i][1]);
+        }
+        int actualizaciones = 5_000_000;
+        long mudanzas = 0;
+        long inicio = System.nanoTime();
+        for (int n = 0; n < actualizaciones; n++) {
+            int i = random.nextInt(vehiculos);
+            // ~50 m por lectura: de vez en cuando cruza a otra celda
+            double latitud = posiciones[i][0] + (random.nextDouble() - 0.5) * 0.001;
+            double longitud = posiciones[i][1] + (random.nextDouble() - 0.5) * 0.001;
+            if (Math.floor(latitud / 0.01) != Math.floor(posiciones[i][0] / 0.01)
+                    || Math.floor(longitud / 0.01) != Math.floor(posiciones[i][1] / 0.01)) {
+                mudanzas++;
+            }
+            posiciones[i][0] = latitud;
+            posiciones[i][1] = longitud;
+            indice.actualizar(flota[i], latitud, longitud);
+        }
+        double nanosPorActualizacion = (System.nanoTime() - inicio) / (double) actualizaciones;
+        
+        double[][] puntos = new double[consultas][];
+        for (int q = 0; q < consultas; q++) {
+            puntos[q] = new double[] {20.45 + random.nextDouble() * 0.3, -100.55 + random.nextDouble() * 0.3};
+        }
+        // Vista de mapa de ~5.5 x 8.3 km
+        double alto = 0.05;
+        double ancho = 0.08;
+        
+        boolean correcto = true;
+        long[] tiempos = new long[4];
+        long encontradosCaja = 0;
+        SegmentoTelemetria ultima = new SegmentoTelemetria(1);
+        // Dos rondas; se reporta la segunda
+        for (int ronda = 0; ronda < 2; ronda++) {
+            java.util.Arrays.fill(tiempos, 0);
+            encontradosCaja = 0;
+            for (int q = 0; q < consultas; q++) {
+                double latitud = puntos[q][0];
+                double longitud = puntos[q][1];
+                
+                long t0 = System.nanoTime();
+                java.util.List<VehiculoElectrico> enCaja = gestor.buscarVehiculosEnZona(
+                    latitud, longitud, latitud + alto, longitud + ancho, null, null, Integer.MAX_VALUE);
+                long t1 = System.nanoTime();
+                java.util.Set<Integer> enCajaRecorrido = new java.util.HashSet<>();
+                for (VehiculoElectrico vehiculo : gestor.listarVehiculos()) {
+                    if (gestor.copiarHistorialTelemetria(vehiculo.getId(), 1, ultima) > 0) {
+                        double lat = ultima.getLatitud(0);
+                        double lon = ultima.getLongitud(0);
+                        if (lat >= latitud && lat <= latitud + alto && lon >= longitud && lon <= longitud + ancho) {
+                            enCajaRecorrido.add(vehiculo.getId());
+                        }
+                    }
+                }
+                long t2 = System.nanoTime();
+                ResultadoCercanos cercanos = gestor.buscarVehiculosCercanos(latitud, longitud, 10,
+                                                                            EstadoVehiculo.DISPONIBLE, null);
+                long t3 = System.nanoTime();
+                ResultadoCercanos cercanosRecorrido = new ResultadoCercanos(10);
+                for (VehiculoElectrico vehiculo : gestor.listarVehiculos()) {
+                    if (vehiculo.getEstado() == EstadoVehiculo.DISPONIBLE
+                            && gestor.copiarHistorialTelemetria(vehiculo.getId(), 1, ultima) > 0) {
+                        double distancia = IndiceEspacial.distanciaKm(latitud, longitud,
+                                                                      ultima.getLatitud(0), ultima.getLongitud(0));
+                        if (cercanosRecorrido.admite(distancia)) {
+                            cercanosRecorrido.agregar(vehiculo, distancia, ultima.getLatitud(0), ultima.getLongitud(0));
+                        }
+                    }
+                }
+                long t4 = System.nanoTime();
+                tiempos[0] += t1 - t0;
+                tiempos[1] += t2 - t1;
+                tiempos[2] += t3 - t2;
+                tiempos[3] += t4 - t3;
+                encontradosCaja += enCaja.size();
+                
+                if (ronda == 1 && correcto) {
+                    java.util.Set<Integer> enCajaIndice = new java.util.HashSet<>();
+                    for (VehiculoElectrico vehiculo : enCaja) {
+                        enCajaIndice.add(vehiculo.getId());
+                    }
+                    boolean iguales = enCajaIndice.equals(enCajaRecorrido)
+                                      && cercanos.getTamano() == cercanosRecorrido.getTamano();
+                    for (int i = 0; iguales && i < cercanos.getTamano(); i++) {
+                        iguales = cercanos.getDistanciaKm(i) == cercanosRecorrido.getDistanciaKm(i);
+                    }
+                    if (!iguales) {
+                        correcto = verificar(salida, "Consulta " + q + " coincide con el recorrido completo", false);
+                    }
+                }
+            }
+        }
+        
+        salida.printf("Mantener el indice: %.0f ns por lectura (%.2f%% cambian de celda)%n",
+                      nanosPorActualizacion, 100.0 * mudanzas / actualizaciones);
+        salida.printf("%-28s %14s %14s %10s%n", "", "indice (us)", "recorrido (us)", "mejora");
+        salida.printf("%-28s %,14.1f %,14.1f %9.0fx%n", "Vista de mapa (" + encontradosCaja / consultas + " por caja)",
+                      tiempos[0] / 1e3 / consultas, tiempos[1] / 1e3 / consultas, (double) tiempos[1] / tiempos[0]);
+        salida.printf("%-28s %,14.1f %,14.1f %9.0fx%n", "10 DISPONIBLE mas cercanos",
+                      tiempos[2] / 1e3 / consultas, tiempos[3] / 1e3 / consultas, (double) tiempos[3] / tiempos[2]);
+        correcto &= verificar(salida, "Las " + consultas + " consultas de cada tipo coinciden con el recorrido completo",
+                              correcto);
+        return correcto;
+    }
+    
+    // ====== Alertas ======
+    
+    /**
+     * Ingesta de las mismas lecturas en una flota sin reglas y en otra con
+     * 'reglas' reglas repartidas entre metricas y tipos de vehiculo. La
+     * temperatura y la velocidad de cada vehiculo cambian poco entre una
+     * lectura y la siguiente (caminata aleatoria que vuelve a 50 grados y 40
+     * km/h), asi que de vez en cuando alguno cruza un umbral y se queda ahi
+     * un rato. La flota queda DISPONIBLE para que la bateria no se agote y
+     * deje a medio mundo con alerta. Despues verifica la deduplicacion y la
+     * histeresis con un vehiculo sobrecalentado.
+     */
+    private static boolean medirAlertas(int vehiculos, int lecturas, int reglas) {
+        System.out.printf("=== Alertas: %,d vehiculos, %,d lecturas, %d reglas ===%n", vehiculos, lecturas, reglas);
+        java.io.PrintStream salida = System.out;
+        java.util.SplittableRandom random = new java.util.SplittableRandom(13);
+        int[] destino = new int[lecturas];
+        float[] velocidades = new float[lecturas];
+        float[] temperaturas = new float[lecturas];
+        float[] velocidadActual = new float[vehiculos + 1];
+        float[] temperaturaActual = new float[vehiculos + 1];
+        java.util.Arrays.fill(velocidadActual, 40f);
+        java.util.Arrays.fill(temperaturaActual, 50f);
+        for (int i = 0; i < lecturas; i++) {
+            int id = 1 + random.nextInt(vehiculos);
+            velocidadActual[id] = (float) Math.max(0, Math.min(120, velocidadActual[id]
+                + random.nextGaussian() * 4 - (velocidadActual[id] - 40) * 0.02));
+            temperaturaActual[id] = (float) (temperaturaActual[id]
+                + random.nextGaussian() * 1.5 - (temperaturaActual[id] - 50) * 0.02);
+            destino[i] = id;
+            velocidades[i] = velocidadActual[id];
+            temperaturas[i] = temperaturaActual[id];
+        }
+        
+        GestorFlota sinReglas = crearFlotaSilenciosa(vehiculos, 64);
+        GestorFlota conReglas = crearFlotaSilenciosa(vehiculos, 64);
+        for (int id = 1; id <= vehiculos; id++) {
+            sinReglas.consultarVehiculo(id).setEstado(EstadoVehiculo.DISPONIBLE);
+            conReglas.consultarVehiculo(id).setEstado(EstadoVehiculo.DISPONIBLE);
+        }
+        String[] tipos = {null, "van", "bicicleta", "moto"};
+        for (int r = 0; r < reglas; r++) {
+            String tipo = tipos[r % tipos.length];
+            float paso = r % 10;
+            ReglaAlerta regla;
+            switch (r % 3) {
+                case 0:
+                    regla = new ReglaAlerta("Bateria " + r, MetricaAlerta.NIVEL_BATERIA, false,
+                                            5 + paso, 10 + paso, SeveridadAlerta.URGENTE, tipo);
+                    break;
+                case 1:
+                    regla = new ReglaAlerta("Temperatura " + r, MetricaAlerta.TEMPERATURA_MOTOR, true,
+                                            70 + paso, 65 + paso, SeveridadAlerta.MEDIA, tipo);
+                    break;
+                default:
+                    regla = new ReglaAlerta("Velocidad " + r, MetricaAlerta.VELOCIDAD, true,
+                                            90 + paso, 80 + paso, SeveridadAlerta.MEDIA, tipo);
+            }
+            conReglas.getMotorAlertas().agregarRegla(regla);
+        }
+        
+        long ahora = System.currentTimeMillis();
+        double mejorSin = 0;
+        double mejorCon = 0;
+        // La primera ronda es de calentamiento; de las demas se reporta la mejor
+        for (int ronda = 0; ronda < 4; ronda++) {
+            for (int variante = 0; variante < 2; variante++) {
+                GestorFlota gestor = variante == 0 ? sinReglas : conReglas;
+                long inicio = System.nanoTime();
+                for (int i = 0; i < lecturas; i++) {
+                    gestor.registrarLectura(destino[i], ahora, velocidades[i], temperaturas[i], 20.5, -100.3);
+                }
+                double tasa = lecturas * 1e9 / (System.nanoTime() - inicio);
+                if (ronda > 0 && variante == 0) {
+                    mejorSin = Math.max(mejorSin, tasa);
+                } else if (ronda > 0) {
+                    mejorCon = Math.max(mejorCon, tasa);
+                }
+            }
+        }
+        MotorAlertas motor = conReglas.getMotorAlertas();
+        long abiertas = motor.getTotalAbiertas();
+        
+        // La evaluacion sola, sin el resto de registrarLectura que mete ruido entre rondas
+        VehiculoElectrico[] flota = new VehiculoElectrico[vehiculos + 1];
+        for (int id = 1; id <= vehiculos; id++) {
+            flota[id] = conReglas.consultarVehiculo(id);
+        }
+        long mejorEvaluacion = Long.MAX_VALUE;
+        for (int ronda = 0; ronda < 4; ronda++) {
+            long inicio = System.nanoTime();
+            for (int i = 0; i < lecturas; i++) {
+                motor.evaluar(flota[destino[i]], ahora, velocidades[i], temperaturas[i], 100f);
+            }
+            if (ronda > 0) {
+                mejorEvaluacion = Math.min(mejorEvaluacion, System.nanoTime() - inicio);
+            }
+        }
+        
+        salida.printf("Sin reglas:       %,12.0f lecturas/s%n", mejorSin);
+        salida.printf("Con %3d reglas:   %,12.0f lecturas/s (%.0f%%)%n", reglas, mejorCon, 100 * mejorCon / mejorSin);
+        salida.printf("MotorAlertas.evaluar sola: %.1f ns por lectura%n", (double) mejorEvaluacion / lecturas);
+        salida.printf("Alertas abiertas en total: %,d (%.2f por cada 1000 lecturas); activas al final: %,d%n",
+                      abiertas, 1000.0 * abiertas / (4L * lecturas), motor.getCantidadActivas());
+        
+        // Deduplicacion e histeresis con una sola regla
+        GestorFlota gestor = crearFlotaSilenciosa(1, 64);
+        MotorAlertas unaRegla = gestor.getMotorAlertas();
+        unaRegla.agregarRegla(new ReglaAlerta("Temperatura alta", MetricaAlerta.TEMPERATURA_MOTOR, true,
+                                              70f, 65f, SeveridadAlerta.MEDIA, null));
+        for (int i = 0; i < 1000; i++) {
+            gestor.registrarLectura(1, ahora + i, 30f, 75f, 20.5, -100.3);
+        }
+        boolean correcto = verificar(salida, "1000 lecturas a 75 grados abren una sola alerta",
+                                     unaRegla.getTotalAbiertas() == 1 && unaRegla.getCantidadActivas() == 1);
+        for (int i = 0; i < 1000; i++) {
+            gestor.registrarLectura(1, ahora + 1000 + i, 30f, 66f + (i % 9), 20.5, -100.3);
+        }
+        correcto &= verificar(salida, "Oscilar entre 66 y 74 grados no la cierra ni abre otra",
+                              unaRegla.getTotalAbiertas() == 1 && unaRegla.getCantidadActivas() == 1
+                              && unaRegla.listarActivas().get(0).getValorExtremo() == 75f);
+        gestor.registrarLectura(1, ahora + 2000, 30f, 60f, 20.5, -100.3);
+        correcto &= verificar(salida, "Bajar de 65 grados la cierra",
+                              unaRegla.getCantidadActivas() == 0 && unaRegla.getTotalCerradas() == 1);
+        gestor.registrarLectura(1, ahora + 2001, 30f, 71f, 20.5, -100.3);
+        correcto &= verificar(salida, "Volver a pasar de 70 abre una alerta nueva", unaRegla.getTotalAbiertas() == 2);
+        correcto &= verificar(salida, "quitar una regla mientras se evalua no deja alertas suyas abiertas",
+                              quitarReglasDuranteEvaluacion(ahora));
+        return correcto;
+    }
+    
+    /**
+     * Dos hilos evaluan lecturas que cruzan el umbral una y otra vez mientras
+     * otro agrega y quita la regla; al final ninguna alerta activa puede ser
+     * de una regla que ya no esta.
+     */
+    private static boolean quitarReglasDuranteEvaluacion(long ahora) {
+        GestorFlota gestor = crearFlotaSilenciosa(64, 64);
+        MotorAlertas motor = gestor.getMotorAlertas();
+        java.util.concurrent.atomic.AtomicBoolean activo = new java.util.concurrent.atomic.AtomicBoolean(true);
+        Thread[] evaluadores = new Thread[2];
+        for (int h = 0; h < evaluadores.length; h++) {
+            int primero = 1 + h;
+            evaluadores[h] = new Thread(() -> {
+                for (int i = 0; activo.get(); i++) {
+                    for (int id = primero; id <= 64; id += 2) {
+                        motor.evaluar(gestor.consultarVehiculo(id), ahora + i, 30f, i % 2 == 0 ? 75f : 60f, 100f);
+                    }
+                }
+            });
+            evaluadores[h].start();
+        }
+        for (int vuelta = 0; vuelta < 2000; vuelta++) {
+            int reglaId = motor.agregarRegla(new ReglaAlerta("Temperatura " + vuelta, MetricaAlerta.TEMPERATURA_MOTOR,
+                                                             true, 70f, 65f, SeveridadAlerta.MEDIA, null));
+            Thread.yield();
+            motor.eliminarRegla(reglaId);
+        }
+        activo.set(false);
+        for (Thread evaluador : evaluadores) {
+            try {
+                evaluador.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return motor.getCantidadActivas() == 0;
+    }
+    
+    // ====== Estadisticas incrementales ======
+    
+    /**
+     * Costo de consultar las estadisticas con distintos tamanos de flota:
+     * recorrer los vehiculos (como antes) contra la foto incremental. Luego
+     * comprueba los km y las entregas del dia con datos de resultado conocido.
+     */
+    private static boolean medirEstadisticas(String tamanos, int consultas) {
+        System.out.printf("=== Estadisticas: %,d consultas por tamano de flota ===%n", consultas);
+        java.io.PrintStream salida = System.out;
+        EstadoVehiculo[] estados = EstadoVehiculo.values();
+        boolean correcto = true;
+        salida.printf("%12s %18s %18s%n", "vehiculos", "recorrido (us)", "incremental (us)");
+        for (String tamano : tamanos.split(",")) {
+            int vehiculos = Integer.parseInt(tamano.trim());
+            GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 16);
+            java.util.SplittableRandom random = new java.util.SplittableRandom(5);
+            for (int id = 1; id <= vehiculos; id++) {
+                gestor.consultarVehiculo(id).setEstado(estados[random.nextInt(estados.length)]);
+            }
+            long mejorRecorrido = Long.MAX_VALUE;
+            long mejorIncremental = Long.MAX_VALUE;
+            // La primera ronda es de calentamiento; de las demas se reporta la mejor
+            for (int ronda = 0; ronda < 4; ronda++) {
+                long inicio = System.nanoTime();
+                for (int i = 0; i < consultas; i++) {
+                    recorrerFlota(gestor);
+                }
+                long recorrido = System.nanoTime() - inicio;
+                inicio = System.nanoTime();
+                for (int i = 0; i < consultas; i++) {
+                    gestor.obtenerEstadisticas();
+                }
+                long incremental = System.nanoTime() - inicio;
+                if (ronda > 0) {
+                    mejorRecorrido = Math.min(mejorRecorrido, recorrido);
+                    mejorIncremental = Math.min(mejorIncremental, incremental);
+                }
+            }
+            salida.printf("%,12d %18.2f %18.3f%n", vehiculos, mejorRecorrido / 1e3 / consultas,
+                          mejorIncremental / 1e3 / consultas);
+            correcto &= verificar(salida, "conteo por estado igual al recorrido con " + vehiculos + " vehiculos",
+                                  coincideConteo(gestor));
+        }
+        
+        // Km: 1000 vehiculos a 36 km/h, una lectura por segundo durante 100 s
+        int vehiculos = 1000;
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 16);
+        long ahora = System.currentTimeMillis() - 200_000;
+        double gradosPorSegundo = Math.toDegrees(0.01 / IndiceEspacial.RADIO_TIERRA_KM);
+        for (int s = 0; s < 100; s++) {
+            for (int id = 1; id <= vehiculos; id++) {
+                gestor.registrarLectura(id, ahora + s * 1000L, 36f, 40f,
+                                        20.5 + id * 1e-3 + s * gradosPorSegundo, -100.3);
+            }
+        }
+        // Un salto de GPS de 5 km en un segundo no suma mas de 10 m a esa velocidad
+        gestor.registrarLectura(1, ahora + 100_000, 36f, 40f, 20.55, -100.3);
+        // Al detenerse suma a lo sumo el ultimo tramo; despues el ruido del GPS no suma
+        gestor.registrarLectura(2, ahora + 100_000, 0f, 40f, 20.51, -100.3);
+        gestor.registrarLectura(2, ahora + 101_000, 0f, 40f, 20.52, -100.3);
+        double km = gestor.obtenerEstadisticas().getKilometrosHoy();
+        double esperado = vehiculos * 99 * 0.01 + 0.02;
+        salida.printf("Km del dia: %.3f (esperado %.3f)%n", km, esperado);
+        correcto &= verificar(salida, "km del dia dentro de 0.1%", Math.abs(km - esperado) < esperado * 1e-3);
+        
+        java.io.PrintStream silencio = new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+        System.setOut(silencio);
+        Ruta ruta;
+        try {
+            ruta = gestor.crearRuta("Centro", "Periferia", 12f);
+            for (int i = 1; i <= 50; i++) {
+                gestor.agregarEntrega(ruta.getId(), new Entrega(i, "Calle " + i, java.time.LocalDateTime.now()));
+            }
+            for (int i = 1; i <= 50; i++) {
+                gestor.cambiarEstadoEntrega(ruta.getId(), i, i <= 30 ? Entrega.COMPLETADA : "fallida");
+            }
+            for (int i = 1; i <= 10; i++) {
+                gestor.cambiarEstadoEntrega(ruta.getId(), i, Entrega.COMPLETADA);
+            }
+        } finally {
+            System.setOut(salida);
+        }
+        correcto &= verificar(salida, "30 entregas completadas hoy (repetir el estado no cuenta dos veces)",
+                              gestor.obtenerEstadisticas().getEntregasCompletadasHoy() == 30);
+        
+        System.setOut(silencio);
+        try {
+            gestor.cargarVehiculo(1);
+            gestor.asignarRutaAVehiculo(2, ruta.getId());
+            gestor.cambiarEstadoVehiculo(3, EstadoVehiculo.MANTENIMIENTO);
+            gestor.eliminarVehiculo(4);
+            gestor.eliminarVehiculo(4);
+        } finally {
+            System.setOut(salida);
+        }
+        correcto &= verificar(salida, "cargar, asignar, cambiar y eliminar mantienen el conteo", coincideConteo(gestor));
+        
+        // La cola de carga prioriza con los km de las rutas asignadas que falta recorrer
+        float terminadas;
+        float pendientes;
+        System.setOut(silencio);
+        try {
+            terminadas = gestor.distanciaRutasPendientes(2);
+            Ruta siguiente = gestor.crearRuta("Periferia", "Centro", 30f);
+            gestor.agregarEntrega(siguiente.getId(), new Entrega(1, "Calle 1", java.time.LocalDateTime.now()));
+            siguiente.reservarPara(2);
+            pendientes = gestor.distanciaRutasPendientes(2);
+        } finally {
+            System.setOut(salida);
+        }
+        correcto &= verificar(salida, "cargarVehiculo usa los km de las rutas asignadas sin terminar",
+                              terminadas == 0 && pendientes == 30f);
+        correcto &= probarDiasEstadisticas(salida);
+        System.out.println(correcto ? "RESULTADO: OK" : "RESULTADO: FALLO");
+        return correcto;
+    }
+    
+    /**
+     * Una lectura con la hora de manana no abre el dia, y un dia sin eventos
+     * que el reloj ya dejo atras sigue contando lo que llega tarde para el
+     */
+    private static boolean probarDiasEstadisticas(java.io.PrintStream salida) {
+        long mediodia = java.time.LocalDate.of(2026, 3, 10).atTime(12, 0)
+            .toInstant(java.time.ZoneOffset.UTC).toEpochMilli();
+        RelojVirtual reloj = new RelojVirtual(mediodia, java.time.ZoneOffset.UTC);
+        EstadisticasFlota estadisticas = new EstadisticasFlota(reloj);
+        estadisticas.sumarRecorrido(mediodia + 86_400_000L, 5);
+        ResumenEstadisticas resumen = estadisticas.resumir();
+        boolean correcto = verificar(salida, "una lectura adelantada un dia no abre manana ni suma km",
+                                     resumen.getDias() == 1 && resumen.getKilometrosHoy() == 0);
+        reloj.avanzarA(mediodia + 2 * 86_400_000L);
+        estadisticas.sumarRecorrido(mediodia + 2 * 86_400_000L, 3);
+        estadisticas.sumarRecorrido(mediodia + 86_400_000L, 2);
+        resumen = estadisticas.resumir();
+        correcto &= verificar(salida, "el dia sin eventos se abre en cero y cuenta lo que llega tarde",
+                              resumen.getDias() == 3 && resumen.getFecha(1).equals(java.time.LocalDate.of(2026, 3, 11))
+                              && resumen.getKilometros(1) == 2 && resumen.getKilometrosHoy() == 3);
+        return correcto;
+    }
+    
+    /**
+     * Conteo por estado recorriendo la flota, como se calculaba antes
+     */
+    private static int[] recorrerFlota(GestorFlota gestor) {
+        int[] conteo = new int[EstadoVehiculo.values().length];
+        for (VehiculoElectrico v : gestor.listarVehiculos()) {
+            conteo[v.getEstado().ordinal()]++;
+        }
+        return conteo;
+    }
+    
+    private static boolean coincideConteo(GestorFlota gestor) {
+        ResumenEstadisticas resumen = gestor.obtenerEstadisticas();
+        int[] recorrido = recorrerFlota(gestor);
+        boolean coincide = resumen.getTotalVehiculos() == gestor.listarVehiculos().size();
+        for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+            coincide &= resumen.getVehiculos(estado) == recorrido[estado.ordinal()];
+        }
+        return coincide;
+    }
+    
+    // ====== Retencion por niveles ======
+    
+    /**
+     * Simula varios dias de lecturas cada 5 s con reloj virtual. Compara el
+     * heap por vehiculo y hasta donde llega el historial contra guardar solo
+     * lecturas crudas (10,000 por vehiculo, como antes), y verifica que las
+     * consultas de 1 h, 12 h y 30 dias usen el nivel esperado sin perder muestras.
+     */
+    private static boolean medirRetencion(int vehiculos, int dias) {
+        System.out.printf("=== Retencion: %d vehiculos, %d dias de lecturas cada 5 s ===%n", vehiculos, dias);
+        java.io.PrintStream salida = System.out;
+        final long periodo = 5_000;
+        long fin = Math.floorDiv(System.currentTimeMillis(), 3_600_000L) * 3_600_000L;
+        long inicio = fin - dias * 86_400_000L;
+        // Solo crudo: ventana mayor que el recorrido, el tope lo pone la capacidad
+        RetencionTelemetria soloCrudo = new RetencionTelemetria(Long.MAX_VALUE / 2, 1, 1);
+        boolean correcto = true;
+        GestorFlota porNiveles = null;
+        for (int variante = 0; variante < 2; variante++) {
+            // La flota de la variante anterior ya es basura
+            long antes = heapUsado();
+            GestorFlota gestor = variante == 0
+                ? new GestorFlota(GestorFlota.CAPACIDAD_HISTORIAL_POR_DEFECTO, soloCrudo)
+                : new GestorFlota(GestorFlota.CAPACIDAD_HISTORIAL_POR_DEFECTO, RetencionTelemetria.porDefecto());
+            System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+            try {
+                for (int id = 1; id <= vehiculos; id++) {
+                    gestor.crearVehiculo("van", "Modelo", 60f);
+                }
+            } finally {
+                System.setOut(salida);
+            }
+            salida.println(variante == 0 ? "-- Solo crudo (10,000 lecturas por vehiculo) --" : "-- Crudo 2 h + minutos 24 h + horas 31 dias --");
+            long lecturas = 0;
+            long inicioNanos = System.nanoTime();
+            for (int dia = 1; dia <= dias; dia++) {
+                for (long t = inicio + (dia - 1) * 86_400_000L; t < inicio + dia * 86_400_000L; t += periodo) {
+                    int k = (int) ((t - inicio) / periodo);
+                    for (int id = 1; id <= vehiculos; id++) {
+                        gestor.registrarLectura(id, t, (k + id) % 61, 40 + (k % 21), 20.5, -100.3);
+                    }
+                    lecturas += vehiculos;
+                }
+                if (dia == 1 || dia == 7 || dia == dias) {
+                    salida.printf("  dia %2d: %,8d bytes de heap por vehiculo%n", dia, (heapUsado() - antes) / vehiculos);
+                }
+            }
+            salida.printf("  ingesta: %,.0f lecturas/s%n", lecturas * 1e9 / (System.nanoTime() - inicioNanos));
+            long primero;
+            if (variante == 0) {
+                primero = gestor.consultarHistorialTelemetria(1).get(0).getFechaHora()
+                    .atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } else {
+                HistorialTelemetria todo = gestor.consultarHistorialTelemetria(1, inicio, fin, Integer.MAX_VALUE);
+                primero = todo.getIntervalos().getInicio(0);
+                porNiveles = gestor;
+            }
+            salida.printf("  el historial llega %.1f horas atras%n", (fin - primero) / 3.6e6);
+        }
+        
+        salida.printf("%-10s %-7s %10s %10s %14s%n", "rango", "nivel", "elementos", "muestras", "consulta (us)");
+        long[] rangos = {3_600_000L, 12 * 3_600_000L, 30 * 86_400_000L};
+        String[] nombres = {"1 hora", "12 horas", "30 dias"};
+        NivelHistorial[] esperados = {NivelHistorial.CRUDO, NivelHistorial.MINUTO,
+                                      dias > 1 ? NivelHistorial.HORA : NivelHistorial.MINUTO};
+        HistorialTelemetria ultima = null;
+        for (int r = 0; r < rangos.length; r++) {
+            long desde = fin - rangos[r];
+            HistorialTelemetria historial = null;
+            long mejor = Long.MAX_VALUE;
+            for (int ronda = 0; ronda < 50; ronda++) {
+                long inicioConsulta = System.nanoTime();
+                historial = porNiveles.consultarHistorialTelemetria(1, desde, fin, 100_000);
+                mejor = Math.min(mejor, System.nanoTime() - inicioConsulta);
+            }
+            long muestras = 0;
+            if (historial.getNivel() == NivelHistorial.CRUDO) {
+                muestras = historial.getTamano();
+            } else {
+                for (int i = 0; i < historial.getTamano(); i++) {
+                    muestras += historial.getIntervalos().getMuestras(i);
+                }
+            }
+            // Las lecturas caen en [desde, fin) cada 5 s; fin ya no tiene lectura
+            long esperadas = Math.min(rangos[r], dias * 86_400_000L) / periodo;
+            salida.printf("%-10s %-7s %,10d %,10d %14.1f%n", nombres[r], historial.getNivel(),
+                          historial.getTamano(), muestras, mejor / 1e3);
+            correcto &= verificar(salida, nombres[r] + " usa " + esperados[r] + " y cubre las " + esperadas + " lecturas",
+                                  historial.getNivel() == esperados[r] && muestras == esperadas);
+            ultima = historial;
+        }
+        boolean rangosCorrectos = ultima.getNivel() == NivelHistorial.HORA;
+        SerieAgregada serie = ultima.getIntervalos();
+        for (int i = 0; rangosCorrectos && i < serie.getTamano(); i++) {
+            rangosCorrectos = serie.getMuestras(i) == 720 && serie.getVelocidadMinima(i) == 0
+                && serie.getVelocidadMaxima(i) == 60 && Math.abs(serie.getVelocidadPromedio(i) - 30) < 0.5
+                && serie.getTemperaturaMinima(i) == 40 && serie.getTemperaturaMaxima(i) == 60;
+        }
+        correcto &= verificar(salida, "min/max/promedio por hora coinciden con las lecturas", rangosCorrectos);
+        
+        // Una lectura con la hora de manana no manda las crudas de hoy a los intervalos
+        RelojVirtual reloj = new RelojVirtual(fin);
+        BufferTelemetriaVehiculo buffer = new BufferTelemetriaVehiculo(1000, RetencionTelemetria.porDefecto(), reloj);
+        for (int i = 0; i < 100; i++) {
+            buffer.agregar(i, fin - (100 - i) * periodo, 1, 30f, 40f, 80f, 20.5, -100.3);
+        }
+        buffer.agregar(100, fin + 86_400_000L, 1, 30f, 40f, 80f, 20.5, -100.3);
+        buffer.agregar(101, fin, 1, 30f, 40f, 80f, 20.5, -100.3);
+        correcto &= verificar(salida, "una lectura adelantada un dia no envejece las crudas",
+                              buffer.getTamano() == 102);
+        System.out.println(correcto ? "RESULTADO: OK" : "RESULTADO: FALLO");
+        return correcto;
+    }
+    
+    // ====== Despacho masivo ======
+    
+    /**
+     * Reparte rutas de 1 a 120 km entre una flota mixta con bateria variada.
+     * Compara el costo total contra el voraz (cada ruta, de la mas larga a la
+     * mas corta, toma el vehiculo factible mas barato que quede) y verifica
+     * que todo par aplicado respete autonomia y tipo de vehiculo.
+     */
+    private static boolean medirDespacho(int cantidadRutas, int cantidadVehiculos) {
+        System.out.printf("=== Despacho: %d rutas, %d vehiculos, %d nucleo(s) ===%n",
+                          cantidadRutas, cantidadVehiculos, Runtime.getRuntime().availableProcessors());
+        java.io.PrintStream salida = System.out;
+        java.util.SplittableRandom random = new java.util.SplittableRandom(42);
+        String[] tipos = {"van", "moto", "bicicleta"};
+        float[] capacidades = {60f, 18f, 0.5f};
+        GestorFlota gestor = new GestorFlota(16);
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < cantidadVehiculos; i++) {
+                int tipo = i % 10 < 5 ? 0 : i % 10 < 8 ? 1 : 2;
+                VehiculoElectrico vehiculo = gestor.crearVehiculo(tipos[tipo], "Sintetico " + i, capacidades[tipo]);
+                vehiculo.setNivelBateria(5 + random.nextInt(96));
+            }
+            java.time.LocalDateTime ahora = java.time.LocalDateTime.now();
+            for (int i = 0; i < cantidadRutas; i++) {
+                // Mayoria de rutas cortas y una cola de rutas largas que solo puede hacer una van cargada
+                float distancia = random.nextInt(10) < 7 ? 1 + random.nextInt(20) : 20 + random.nextInt(100);
+                Ruta ruta = gestor.crearRuta("Centro", "Zona " + i, distancia);
+                for (int e = 1, entregas = 1 + random.nextInt(12); e <= entregas; e++) {
+                    ruta.agregarEntrega(new Entrega(e, "Calle " + i + " #" + e, ahora));
+                }
+            }
+        } finally {
+            System.setOut(salida);
+        }
+        
+        Ruta[] rutas = gestor.listarRutas().toArray(new Ruta[0]);
+        VehiculoElectrico[] flota = gestor.listarVehiculos().toArray(new VehiculoElectrico[0]);
+        long inicio = System.nanoTime();
+        int[] voraz = asignarVoraz(rutas, flota);
+        long nanosVoraz = System.nanoTime() - inicio;
+        int asignadasVoraz = 0;
+        double costoVoraz = 0;
+        for (int i = 0; i < rutas.length; i++) {
+            if (voraz[i] >= 0) {
+                asignadasVoraz++;
+                costoVoraz += DespachoRutas.costo(rutas[i], flota[voraz[i]]);
+            }
+        }
+        
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        ResultadoDespacho resultado;
+        long nanosDespacho;
+        try {
+            inicio = System.nanoTime();
+            resultado = gestor.despacharRutas();
+            nanosDespacho = System.nanoTime() - inicio;
+        } finally {
+            System.setOut(salida);
+        }
+        salida.printf("%-10s %10s %14s %14s %12s%n", "metodo", "asignadas", "costo total", "costo/ruta", "tiempo (ms)");
+        salida.printf("%-10s %,10d %,14.1f %14.3f %,12.1f%n", "voraz", asignadasVoraz, costoVoraz,
+                      costoVoraz / Math.max(1, asignadasVoraz), nanosVoraz / 1e6);
+        salida.printf("%-10s %,10d %,14.1f %14.3f %,12.1f%n", "subasta", resultado.getAsignadas(),
+                      resultado.getCostoTotal(), resultado.getCostoTotal() / Math.max(1, resultado.getAsignadas()),
+                      nanosDespacho / 1e6);
+        salida.printf("  resolver: %,d ms, %,d pujas, %d intento(s); aplicar y anotar: %,.1f ms%n",
+                      resultado.getMilisegundosSolucion(), resultado.getPujas(), resultado.getIntentos(),
+                      nanosDespacho / 1e6 - resultado.getMilisegundosSolucion());
+        
+        boolean factibles = true;
+        java.util.Set<Integer> usados = new java.util.HashSet<>();
+        for (int k = 0; k < resultado.getAsignadas(); k++) {
+            Ruta ruta = gestor.consultarRuta(resultado.getRuta(k));
+            VehiculoElectrico vehiculo = gestor.consultarVehiculo(resultado.getVehiculo(k));
+            factibles &= ruta.getVehiculoId() == vehiculo.getId() && vehiculo.getEstado() == EstadoVehiculo.EN_RUTA
+                && ruta.getDistancia() * (1 + DespachoRutas.MARGEN_AUTONOMIA) <= DespachoRutas.autonomiaKm(vehiculo)
+                && !Double.isInfinite(DespachoRutas.costo(ruta, vehiculo)) && usados.add(vehiculo.getId());
+        }
+        int sinVehiculo = 0;
+        for (Ruta ruta : rutas) {
+            if (ruta.getVehiculoId() == 0) {
+                sinVehiculo++;
+            }
+        }
+        boolean correcto = verificar(salida, "cada par respeta autonomia y tipo, un vehiculo por ruta", factibles);
+        correcto &= verificar(salida, "rutas sin vehiculo = " + sinVehiculo + " coinciden con el resultado",
+                              sinVehiculo == resultado.getRutasSinAsignar().length
+                              && sinVehiculo + resultado.getAsignadas() == rutas.length);
+        correcto &= verificar(salida, "asigna al menos tantas rutas como el voraz",
+                              resultado.getAsignadas() >= asignadasVoraz);
+        correcto &= verificar(salida, "a igual cantidad, no cuesta mas que el voraz",
+                              resultado.getAsignadas() > asignadasVoraz
+                              || resultado.getCostoTotal() <= costoVoraz + 1e-6);
+        
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        ResultadoDespacho segundo;
+        try {
+            segundo = gestor.despacharRutas();
+        } finally {
+            System.setOut(salida);
+        }
+        correcto &= verificar(salida, "un segundo despacho no reasigna nada", segundo.getAsignadas() == 0);
+        correcto &= verificar(salida, "dos despachos a la vez no comparten vehiculos ni rutas",
+                              despachosConcurrentes(Math.min(cantidadRutas, 500)));
+        System.out.println(correcto ? "RESULTADO: OK" : "RESULTADO: FALLO");
+        return correcto;
+    }
+    
+    /**
+     * Dos hilos despachan las mismas rutas libres a la vez; cada uno aplica
+     * todo o nada, asi que la union de sus pares no puede repetir vehiculo
+     * ni ruta y cada ruta queda con el vehiculo que le anoto su ganador.
+     */
+    private static boolean despachosConcurrentes(int cantidad) {
+        GestorFlota gestor = new GestorFlota(16);
+        java.io.PrintStream salida = System.out;
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2);
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < cantidad; i++) {
+                gestor.crearVehiculo(i % 2 == 0 ? "van" : "moto", "Sintetico " + i, 40f);
+                gestor.crearRuta("Centro", "Zona " + i, 5 + i % 30);
+            }
+            java.util.List<ResultadoDespacho> resultados = enParalelo(pool, 2, hilo -> gestor.despacharRutas());
+            java.util.Set<Integer> vehiculos = new java.util.HashSet<>();
+            java.util.Set<Integer> rutas = new java.util.HashSet<>();
+            boolean correcto = true;
+            for (ResultadoDespacho resultado : resultados) {
+                for (int k = 0; k < resultado.getAsignadas(); k++) {
+                    correcto &= vehiculos.add(resultado.getVehiculo(k)) && rutas.add(resultado.getRuta(k))
+                        && gestor.consultarRuta(resultado.getRuta(k)).getVehiculoId() == resultado.getVehiculo(k);
+                }
+            }
+            return correcto && rutas.size() == cantidad;
+        } finally {
+            System.setOut(salida);
+            pool.shutdown();
+        }
+    }
+    
+    private static int[] asignarVoraz(Ruta[] rutas, VehiculoElectrico[] flota) {
+        Integer[] orden = new Integer[rutas.length];
+        for (int i = 0; i < orden.length; i++) {
+            orden[i] = i;
+        }
+        java.util.Arrays.sort(orden, (a, b) -> Float.compare(rutas[b].getDistancia(), rutas[a].getDistancia()));
+        boolean[] ocupados = new boolean[flota.length];
+        int[] asignacion = new int[rutas.length];
+        java.util.Arrays.fill(asignacion, -1);
+        for (int i : orden) {
+            double mejor = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < flota.length; j++) {
+                double costo = ocupados[j] ? Double.POSITIVE_INFINITY : DespachoRutas.costo(rutas[i], flota[j]);
+                if (costo < mejor) {
+                    mejor = costo;
+                    asignacion[i] = j;
+                }
+            }
+            if (asignacion[i] >= 0) {
+                ocupados[asignacion[i]] = true;
+            }
+        }
+        return asignacion;
+    }
+    
+    // ====== Secuencia de entregas ======
+    
+    /**
+     * Secuencia 'rutas' rutas de cada tamano: tiempo por ruta (una a una y con
+     * fork/join), longitud frente al vecino mas cercano y tiempo de volver a
+     * secuenciar la mitad que falta. Comprueba ademas la brecha contra el
+     * optimo exacto en rutas de 8 paradas y que una lectura atrasada dispare
+     * la replanificacion sin tocar las entregas hechas.
+     */
+    private static boolean medirSecuencia(int cantidadRutas, String tamanos) {
+        System.out.printf("=== Secuencia de entregas: %d rutas por tamano, %d nucleo(s) ===%n",
+                          cantidadRutas, Runtime.getRuntime().availableProcessors());
+        java.util.SplittableRandom random = new java.util.SplittableRandom(42);
+        long inicioPlan = System.currentTimeMillis();
+        boolean correcto = true;
+        System.out.printf("%7s %10s %10s %12s %12s %10s %12s %12s%n", "paradas", "p50 (ms)", "p99 (ms)",
+                          "serie (ms)", "fork (ms)", "mejora", "resto p50", "resto p99");
+        for (String texto : tamanos.split(",")) {
+            int paradas = Integer.parseInt(texto.trim());
+            // Calentamiento: que el JIT compile 2-opt y Or-opt antes de medir
+            SecuenciadorEntregas secuenciador = new SecuenciadorEntregas(ruta -> { });
+            for (Ruta ruta : rutasSinteticas(Math.max(5, 2000 / paradas), paradas, random)) {
+                secuenciador.secuenciar(ruta, null, partidaSintetica(random), inicioPlan);
+            }
+            
+            long semilla = random.nextLong();
+            Ruta[] rutas = rutasSinteticas(cantidadRutas, paradas, new java.util.SplittableRandom(semilla));
+            double[][] partidas = new double[rutas.length][];
+            for (int i = 0; i < rutas.length; i++) {
+                partidas[i] = partidaSintetica(random);
+            }
+            long[] tiempos = new long[rutas.length];
+            PlanEntregas[] planes = new PlanEntregas[rutas.length];
+            double inicial = 0;
+            double final_ = 0;
+            long serie = 0;
+            for (int i = 0; i < rutas.length; i++) {
+                long inicio = System.nanoTime();
+                planes[i] = secuenciador.secuenciar(rutas[i], null, partidas[i], inicioPlan);
+                tiempos[i] = System.nanoTime() - inicio;
+                serie += tiempos[i];
+                inicial += planes[i].getLongitudInicialKm();
+                final_ += planes[i].getLongitudKm();
+            }
+            java.util.Arrays.sort(tiempos);
+            
+            boolean permutacion = true;
+            boolean horasCrecientes = true;
+            boolean noPeor = true;
+            for (PlanEntregas plan : planes) {
+                java.util.List<Entrega> entregas = plan.getRuta().getEntregas();
+                for (int k = 0; k < entregas.size(); k++) {
+                    permutacion &= entregas.get(k).getSecuencia() == k + 1;
+                }
+                for (int k = 1; k < plan.getPosiciones(); k++) {
+                    horasCrecientes &= plan.getEtaMillis(k) > plan.getEtaMillis(k - 1);
+                }
+                noPeor &= plan.getLongitudKm() <= plan.getLongitudInicialKm() + 1e-6;
+            }
+            
+            // Las mismas rutas otra vez, repartidas con fork/join y sin matrices previas
+            Ruta[] copias = rutasSinteticas(cantidadRutas, paradas, new java.util.SplittableRandom(semilla));
+            SecuenciadorEntregas paralelo = new SecuenciadorEntregas(ruta -> { });
+            long inicio = System.nanoTime();
+            paralelo.secuenciarTodas(copias, new VehiculoElectrico[copias.length], partidas, inicioPlan);
+            long nanosFork = System.nanoTime() - inicio;
+            
+            // La primera mitad ya se entrego; se vuelve a secuenciar el resto desde la ultima hecha
+            long[] tiemposResto = new long[rutas.length];
+            boolean hechasIntactas = true;
+            for (int i = 0; i < planes.length; i++) {
+                PlanEntregas plan = planes[i];
+                int hechas = paradas / 2;
+                Entrega ultima = plan.getParada(hechas - 1);
+                java.util.Map<Entrega, String> antes = new java.util.IdentityHashMap<>();
+                for (int k = 0; k < hechas; k++) {
+                    Entrega entrega = plan.getParada(k);
+                    entrega.setEstado(Entrega.COMPLETADA);
+                    antes.put(entrega, entrega.getSecuencia() + "@" + entrega.getHoraEstimada());
+                }
+                long ahora = plan.getEtaMillis(hechas - 1) + 20 * 60_000L;
+                inicio = System.nanoTime();
+                secuenciador.replanificar(plan, new double[] {ultima.getLatitud(), ultima.getLongitud()}, ahora);
+                tiemposResto[i] = System.nanoTime() - inicio;
+                for (java.util.Map.Entry<Entrega, String> entrada : antes.entrySet()) {
+                    Entrega entrega = entrada.getKey();
+                    hechasIntactas &= entrada.getValue().equals(entrega.getSecuencia() + "@" + entrega.getHoraEstimada());
+                }
+                java.util.List<Entrega> entregas = plan.getRuta().getEntregas();
+                for (int k = 0; k < entregas.size(); k++) {
+                    hechasIntactas &= entregas.get(k).getSecuencia() == k + 1 && (k < hechas) != entregas.get(k).estaPendiente();
+                }
+                hechasIntactas &= plan.getPosiciones() == paradas - hechas && plan.getEtaMillis(0) >= ahora;
+            }
+            java.util.Arrays.sort(tiemposResto);
+            
+            System.out.printf("%7d %10.2f %10.2f %,12.1f %,12.1f %9.1f%% %12.2f %12.2f%n", paradas,
+                              percentil(tiempos, 0.50), percentil(tiempos, 0.99), serie / 1e6, nanosFork / 1e6,
+                              100 * (1 - final_ / inicial), percentil(tiemposResto, 0.50),
+                              percentil(tiemposResto, 0.99));
+            correcto &= verificar(System.out, paradas + " paradas: cada ruta queda numerada 1..n sin repetir", permutacion);
+            correcto &= verificar(System.out, paradas + " paradas: horas estimadas crecientes", horasCrecientes);
+            correcto &= verificar(System.out, paradas + " paradas: nunca mas largo que el vecino mas cercano", noPeor);
+            correcto &= verificar(System.out, paradas + " paradas: replanificar el resto no toca las hechas",
+                                  hechasIntactas);
+        }
+        correcto &= compararConOptimo(500, 8, random);
+        correcto &= probarReplanificacionPorAtraso();
+        System.out.println(correcto ? "RESULTADO: OK" : "RESULTADO: FALLO");
+        return correcto;
+    }
+    
+    private static Ruta[] rutasSinteticas(int cantidad, int paradas, java.util.SplittableRandom random) {
+        Ruta[] rutas = new Ruta[cantidad];
+        for (int i = 0; i < cantidad; i++) {
+            rutas[i] = new Ruta(i + 1, "Centro", "Zona " + i, 0);
+            // Paradas agrupadas en colonias, como las entregas reales de una zona
+            double[][] colonias = new double[1 + paradas / 25][];
+            for (int c = 0; c < colonias.length; c++) {
+                colonias[c] = new double[] {20.55 + random.nextDouble() * 0.1, -100.45 + random.nextDouble() * 0.1};
+            }
+            for (int e = 1; e <= paradas; e++) {
+                double[] colonia = colonias[random.nextInt(colonias.length)];
+                rutas[i].agregarEntrega(new Entrega(e, "Calle " + i + " #" + e, null,
+                                                    colonia[0] + random.nextDouble() * 0.02 - 0.01,
+                                                    colonia[1] + random.nextDouble() * 0.02 - 0.01));
+            }
+        }
+        return rutas;
+    }
+    
+    private static double[] partidaSintetica(java.util.SplittableRandom random) {
+        return new double[] {20.55 + random.nextDouble() * 0.1, -100.45 + random.nextDouble() * 0.1};
+    }
+    
+    /**
+     * Brecha del secuenciador contra el recorrido abierto optimo (programacion
+     * dinamica sobre subconjuntos) en rutas pequenas
+     */
+    private static boolean compararConOptimo(int instancias, int paradas, java.util.SplittableRandom random) {
+        double peor = 0;
+        double suma = 0;
+        int optimas = 0;
+        for (int i = 0; i < instancias; i++) {
+            Entrega[] entregas = rutasSinteticas(1, paradas, random)[0].getEntregas().toArray(new Entrega[0]);
+            double[] partida = partidaSintetica(random);
+            float[] distancias = SecuenciadorEntregas.matrizDistancias(entregas);
+            double[] desdeInicio = new double[paradas];
+            int[] nodos = new int[paradas];
+            for (int k = 0; k < paradas; k++) {
+                nodos[k] = k;
+                desdeInicio[k] = SecuenciadorEntregas.distanciaCalleKm(partida[0], partida[1],
+                                                                       entregas[k].getLatitud(), entregas[k].getLongitud());
+            }
+            int[] recorrido = SecuenciadorEntregas.vecinoMasCercano(nodos, distancias, paradas, desdeInicio);
+            SecuenciadorEntregas.mejorar(recorrido, distancias, paradas, desdeInicio);
+            double heuristica = SecuenciadorEntregas.longitud(recorrido, distancias, paradas, desdeInicio);
+            
+            // mejor[conjunto][ultima]: recorrido mas corto que visita el conjunto y termina en ultima
+            double[][] mejor = new double[1 << paradas][paradas];
+            for (double[] fila : mejor) {
+                java.util.Arrays.fill(fila, Double.MAX_VALUE);
+            }
+            for (int k = 0; k < paradas; k++) {
+                mejor[1 << k][k] = desdeInicio[k];
+            }
+            for (int conjunto = 1; conjunto < mejor.length; conjunto++) {
+                for (int ultima = 0; ultima < paradas; ultima++) {
+                    double base = mejor[conjunto][ultima];
+                    if (base == Double.MAX_VALUE) {
+                        continue;
+                    }
+                    for (int k = 0; k < paradas; k++) {
+                        if ((conjunto & (1 << k)) == 0) {
+                            int siguiente = conjunto | (1 << k);
+                            mejor[siguiente][k] = Math.min(mejor[siguiente][k], base + distancias[ultima * paradas + k]);
+                        }
+                    }
+                }
+            }
+            double optimo = Double.MAX_VALUE;
+            for (double valor : mejor[mejor.length - 1]) {
+                optimo = Math.min(optimo, valor);
+            }
+            double brecha = heuristica / optimo - 1;
+            peor = Math.max(peor, brecha);
+            suma += brecha;
+            if (brecha < 1e-6) {
+                optimas++;
+            }
+        }
+        System.out.printf("Contra el optimo con %d paradas: %d/%d optimas, brecha media %.2f%%, maxima %.2f%%%n",
+                          paradas, optimas, instancias, 100 * suma / instancias, 100 * peor);
+        return verificar(System.out, "brecha media contra el optimo menor a 1%", suma / instancias < 0.01);
+    }
+    
+    /**
+     * De punta a punta con GestorFlota: una lectura que pasa la hora de la
+     * siguiente parada por mas de la tolerancia replanifica lo que falta
+     */
+    private static boolean probarReplanificacionPorAtraso() {
+        java.io.PrintStream salida = System.out;
+        GestorFlota gestor = new GestorFlota(64);
+        Ruta ruta;
+        VehiculoElectrico van;
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        try {
+            van = gestor.crearVehiculo("van", "Sintetico", 60f);
+            ruta = rutasSinteticas(1, 20, new java.util.SplittableRandom(7))[0];
+            Ruta registrada = gestor.crearRuta("Centro", "Zona", 0);
+            for (Entrega entrega : ruta.getEntregas()) {
+                gestor.agregarEntrega(registrada.getId(), entrega);
+            }
+            ruta = registrada;
+            gestor.asignarRutaAVehiculo(van.getId(), ruta.getId());
+        } finally {
+            System.setOut(salida);
+        }
+        long ahora = System.currentTimeMillis();
+        gestor.registrarLectura(van.getId(), ahora, 30f, 60f, 20.60, -100.40);
+        PlanEntregas plan = gestor.secuenciarRuta(ruta.getId());
+        
+        java.util.Map<Entrega, String> antes = new java.util.IdentityHashMap<>();
+        for (int k = 0; k < 5; k++) {
+            Entrega entrega = plan.getParada(k);
+            gestor.cambiarEstadoEntrega(ruta.getId(), entrega.getId(), Entrega.COMPLETADA);
+            antes.put(entrega, entrega.getSecuencia() + "@" + entrega.getHoraEstimada());
+        }
+        Entrega siguiente = plan.getParada(5);
+        long eta = plan.getEtaMillis(5);
+        SecuenciadorEntregas secuenciador = gestor.getSecuenciador();
+        
+        // Dentro de la tolerancia no pasa nada
+        gestor.registrarLectura(van.getId(), eta + SecuenciadorEntregas.TOLERANCIA_MS, 30f, 60f,
+                                siguiente.getLatitud(), siguiente.getLongitud());
+        dormir(200);
+        boolean correcto = verificar(salida, "una lectura dentro de la tolerancia no replanifica",
+                                     secuenciador.getReplanificaciones() == 0);
+        
+        long atrasada = eta + SecuenciadorEntregas.TOLERANCIA_MS + 60_000;
+        gestor.registrarLectura(van.getId(), atrasada, 30f, 60f, siguiente.getLatitud(), siguiente.getLongitud());
+        for (int espera = 0; espera < 100 && plan.getReplanificaciones() == 0; espera++) {
+            dormir(50);
+        }
+        boolean intactas = plan.getReplanificaciones() == 1 && plan.getPosiciones() == 15
+            && plan.getEtaMillis(0) >= atrasada;
+        for (java.util.Map.Entry<Entrega, String> entrada : antes.entrySet()) {
+            Entrega entrega = entrada.getKey();
+            intactas &= entrada.getValue().equals(entrega.getSecuencia() + "@" + entrega.getHoraEstimada());
+        }
+        correcto &= verificar(salida, "una lectura atrasada replanifica solo las 15 que faltan", intactas);
+        
+        // Costo de vigilar en la ingesta cuando el vehiculo va en tiempo
+        int llamadas = 5_000_000;
+        long inicio = System.nanoTime();
+        for (int i = 0; i < llamadas; i++) {
+            secuenciador.vigilar(van.getId(), ahora, 20.60, -100.40);
+        }
+        long nanos = System.nanoTime() - inicio;
+        salida.printf("vigilar en la ingesta: %.1f ns por lectura%n", (double) nanos / llamadas);
+        return correcto;
+    }
+    
+    // ====== Estres multihilo ======
+    
+    /**
+     * Lanza varios hilos a la vez contra un mismo GestorFlota y comprueba que
+     * no se pierdan actualizaciones: ids unicos, contadores exactos, desgaste
+     * de bateria completo y una sola asignacion ganadora por vehiculo.
+     */
+    private static boolean probarConcurrencia(int hilos, int vehiculosPorHilo) {
+        System.out.println("=== Estres de GestorFlota: " + hilos + " hilos ===");
+        final int lecturasPorHilo = 40;
+        final float velocidad = 25.0f; // desgaste de 0.25 exacto en float
+        GestorFlota gestor = new GestorFlota(hilos * lecturasPorHilo);
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(hilos);
+        boolean correcto = true;
+        
+        java.io.PrintStream salida = System.out;
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        try {
+            // 1. Altas concurrentes
+            java.util.List<java.util.List<Integer>> idsPorHilo = enParalelo(pool, hilos, hilo -> {
+                java.util.List<Integer> ids = new java.util.ArrayList<>();
+                String[] tipos = {"van", "bicicleta", "moto"};
+                for (int i = 0; i < vehiculosPorHilo; i++) {
+                    ids.add(gestor.crearVehiculo(tipos[i % 3], "Modelo " + hilo, 50.0f).getId());
+                }
+                return ids;
+            });
+            java.util.Set<Integer> ids = new java.util.HashSet<>();
+            idsPorHilo.forEach(ids::addAll);
+            int totalVehiculos = hilos * vehiculosPorHilo;
+            correcto &= verificar(salida, "ids de vehiculo unicos", ids.size() == totalVehiculos
+                                  && gestor.listarVehiculos().size() == totalVehiculos);
+            
+            // 2. Telemetria concurrente sobre los mismos vehiculos
+            for (int id : ids) {
+                gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.EN_RUTA);
+            }
+            enParalelo(pool, hilos, hilo -> {
+                for (int r = 0; r < lecturasPorHilo; r++) {
+                    for (int id : ids) {
+                        gestor.registrarLectura(id, System.currentTimeMillis(), velocidad, 40.0f, 20.5, -100.3);
+                    }
+                }
+                return null;
+            });
+            float bateriaEsperada = 100.0f - hilos * lecturasPorHilo * velocidad * 0.01f;
+            boolean bateriasExactas = true;
+            boolean historialesCompletos = true;
+            for (int id : ids) {
+                bateriasExactas &= gestor.consultarVehiculo(id).getNivelBateria() == Math.max(0, bateriaEsperada);
+                historialesCompletos &= gestor.consultarHistorialTelemetria(id).size() == hilos * lecturasPorHilo;
+            }
+            correcto &= verificar(salida, "desgaste de bateria sin perdidas", bateriasExactas);
+            correcto &= verificar(salida, "historial completo por vehiculo", historialesCompletos);
+            java.util.Set<Integer> idsLecturas = new java.util.HashSet<>();
+            for (int id : ids) {
+                for (Telemetria t : gestor.consultarHistorialTelemetria(id)) {
+                    idsLecturas.add(t.getId());
+                }
+            }
+            correcto &= verificar(salida, "ids de telemetria unicos",
+                                  idsLecturas.size() == totalVehiculos * hilos * lecturasPorHilo);
+            
+            // 3. Despachadores compitiendo por los mismos vehiculos y rutas
+            for (int id : ids) {
+                gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.DISPONIBLE);
+            }
+            Ruta compartida = gestor.crearRuta("Centro", "Periferia", 10.0f);
+            java.util.List<Integer> ganadas = enParalelo(pool, hilos, hilo -> {
+                int asignadas = 0;
+                for (int id : ids) {
+                    if (gestor.asignarRutaAVehiculo(id, compartida.getId())) {
+                        asignadas++;
+                    }
+                }
+                return asignadas;
+            });
+            int enRuta = 0;
+            for (int id : ids) {
+                if (gestor.consultarVehiculo(id).getEstado() == EstadoVehiculo.EN_RUTA) {
+                    enRuta++;
+                }
+            }
+            correcto &= verificar(salida, "una ruta disputada queda con un solo vehiculo y los demas disponibles",
+                                  ganadas.stream().mapToInt(Integer::intValue).sum() == 1 && enRuta == 1);
+            gestor.cambiarEstadoVehiculo(compartida.getVehiculoId(), EstadoVehiculo.DISPONIBLE);
+            java.util.Map<Integer, Integer> rutaDe = new java.util.HashMap<>();
+            for (int id : ids) {
+                rutaDe.put(id, gestor.crearRuta("Centro", "Periferia", 10.0f).getId());
+            }
+            ganadas = enParalelo(pool, hilos, hilo -> {
+                int asignadas = 0;
+                for (int id : ids) {
+                    if (gestor.asignarRutaAVehiculo(id, rutaDe.get(id))) {
+                        asignadas++;
+                    }
+                }
+                return asignadas;
+            });
+            int totalGanadas = ganadas.stream().mapToInt(Integer::intValue).sum();
+            correcto &= verificar(salida, "una sola asignacion por vehiculo", totalGanadas == totalVehiculos);
+            
+            // 4. Bajas mientras llega telemetria
+            java.util.List<Integer> listaIds = new java.util.ArrayList<>(ids);
+            enParalelo(pool, hilos, hilo -> {
+                for (int i = hilo; i < listaIds.size(); i += hilos) {
+                    if (i % 2 == 0) {
+                        gestor.eliminarVehiculo(listaIds.get(i));
+                    } else {
+                        gestor.registrarLectura(listaIds.get(i), System.currentTimeMillis(), 0, 40.0f, 20.5, -100.3);
+                        gestor.cargarVehiculo(listaIds.get(i));
+                    }
+                }
+                return null;
+            });
+            correcto &= verificar(salida, "bajas concurrentes", gestor.listarVehiculos().size() == totalVehiculos / 2);
+            correcto &= verificar(salida, "estadisticas por estado sin desfase", coincideConteo(gestor));
+        } finally {
+            System.setOut(salida);
+            pool.shutdown();
+        }
+        System.out.println(correcto ? "RESULTADO: OK" : "RESULTADO: FALLO");
+        return correcto;
+    }
+    
+    private static <T> java.util.List<T> enParalelo(java.util.concurrent.ExecutorService pool, int hilos,
+                                                    java.util.function.IntFunction<T> tarea) {
+        java.util.concurrent.CountDownLatch salida = new java.util.concurrent.CountDownLatch(1);
+        java.util.List<java.util.concurrent.Future<T>> futuros = new java.util.ArrayList<>();
+        for (int h = 0; h < hilos; h++) {
+            final int hilo = h;
+            futuros.add(pool.submit(() -> {
+                salida.await();
+                return tarea.apply(hilo);
+            }));
+        }
+        salida.countDown();
+        java.util.List<T> resultados = new java.util.ArrayList<>();
+        try {
+            for (java.util.concurrent.Future<T> futuro : futuros) {
+                resultados.add(futuro.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Prueba interrumpida", e);
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw new IllegalStateException("Fallo un hilo de la prueba", e.getCause());
+        }
+        return resultados;
+    }
+    
+    // ====== Estaciones de carga ======
+    
+    /**
+     * Un dia de cargas en el deposito en tiempo simulado: los vehiculos
+     * llegan durante 8 horas con 5-70% de bateria y la mitad con una ruta
+     * pendiente. Mide decisiones (solicitudes, inicios y fines) por segundo
+     * del PlanificadorCarga y compara la espera total con un planificador de
+     * referencia que recorre listas en cada decision; tambien reporta cuanto
+     * esperan los que no cubririan su ruta frente a una cola por orden de llegada.
+     */
+    private static boolean medirEstaciones(int cantidadVehiculos, int cantidadEstaciones) {
+        System.out.printf("=== Estaciones de carga: %,d vehiculos, %,d estaciones ===%n",
+                          cantidadVehiculos, cantidadEstaciones);
+        java.io.PrintStream salida = System.out;
+        boolean correcto = true;
+        java.util.SplittableRandom random = new java.util.SplittableRandom(23);
+        
+        // 55% vans, 30% motos, 15% bicicletas
+        String[] tipos = new String[cantidadVehiculos];
+        float[] capacidades = new float[cantidadVehiculos];
+        float[] niveles = new float[cantidadVehiculos];
+        float[] distancias = new float[cantidadVehiculos];
+        long[] llegadas = new long[cantidadVehiculos];
+        long inicioDia = 1_700_000_000_000L;
+        for (int i = 0; i < cantidadVehiculos; i++) {
+            int sorteo = random.nextInt(100);
+            tipos[i] = sorteo < 55 ? "van" : sorteo < 85 ? "moto" : "bicicleta";
+            capacidades[i] = sorteo < 55 ? 50 + random.nextInt(30) : sorteo < 85 ? 10 + random.nextInt(12)
+                                                                               : 0.4f + random.nextInt(3) / 10f;
+            niveles[i] = 5 + random.nextInt(66);
+            distancias[i] = random.nextBoolean() ? 0 : (sorteo < 55 ? 20 + random.nextInt(150)
+                                                        : sorteo < 85 ? 10 + random.nextInt(60) : 5 + random.nextInt(15));
+            llegadas[i] = inicioDia + random.nextLong(8 * 3_600_000L);
+        }
+        java.util.Arrays.sort(llegadas);
+        
+        // 70% cargadores de CA para vans y motos, 20% rapidos solo para vans, 10% racks de bicicletas
+        int[] conectores = new int[cantidadEstaciones];
+        java.util.List<java.util.Map<String, Float>> potencias = new java.util.ArrayList<>();
+        for (int e = 0; e < cantidadEstaciones; e++) {
+            int sorteo = random.nextInt(10);
+            if (sorteo < 7) {
+                conectores[e] = 2 + random.nextInt(7);
+                potencias.add(java.util.Map.of("van", random.nextBoolean() ? 11f : 22f,
+                                               "moto", random.nextBoolean() ? 3.3f : 6.6f));
+            } else if (sorteo < 9) {
+                conectores[e] = 1 + random.nextInt(2);
+                potencias.add(java.util.Map.of("van", 50f));
+            } else {
+                conectores[e] = 4 + random.nextInt(9);
+                potencias.add(java.util.Map.of("bicicleta", random.nextBoolean() ? 0.25f : 0.5f));
+            }
+        }
+        
+        // Tiempo: la primera ronda es de calentamiento; de las demas se reporta la mejor
+        long mejorNanos = Long.MAX_VALUE;
+        long decisiones = 0;
+        for (int ronda = 0; ronda < 4; ronda++) {
+            VehiculoElectrico[] flota = flotaDeCarga(tipos, capacidades, niveles);
+            PlanificadorCarga planificador = new PlanificadorCarga(vehiculo -> { });
+            for (int e = 0; e < cantidadEstaciones; e++) {
+                planificador.agregarEstacion(new EstacionCarga(e + 1, "E" + (e + 1), conectores[e], potencias.get(e)),
+                                             inicioDia);
+            }
+            long inicio = System.nanoTime();
+            for (int i = 0; i < cantidadVehiculos; i++) {
+                planificador.avanzar(llegadas[i]);
+                planificador.solicitar(flota[i], distancias[i], llegadas[i]);
+            }
+            planificador.avanzar(Long.MAX_VALUE);
+            long nanos = System.nanoTime() - inicio;
+            if (ronda > 0) {
+                mejorNanos = Math.min(mejorNanos, nanos);
+            }
+            decisiones = planificador.getDecisiones();
+        }
+        salida.printf("Decisiones: %,d en %.1f ms -> %,.0f decisiones/s (%.2f us cada una)%n", decisiones,
+                      mejorNanos / 1e6, decisiones * 1e9 / mejorNanos, mejorNanos / 1e3 / decisiones);
+        
+        // Verificacion contra la referencia, con invariantes en cada paso
+        VehiculoElectrico[] flota = flotaDeCarga(tipos, capacidades, niveles);
+        PlanificadorCarga planificador = new PlanificadorCarga(vehiculo -> { });
+        EstacionCarga[] estaciones = new EstacionCarga[cantidadEstaciones];
+        for (int e = 0; e < cantidadEstaciones; e++) {
+            estaciones[e] = new EstacionCarga(e + 1, "E" + (e + 1), conectores[e], potencias.get(e));
+            planificador.agregarEstacion(estaciones[e], inicioDia);
+        }
+        boolean conectoresRespetados = true;
+        boolean nivelesEnCurso = true;
+        int aceptadas = 0;
+        for (int i = 0; i < cantidadVehiculos; i++) {
+            planificador.avanzar(llegadas[i]);
+            if (planificador.solicitar(flota[i], distancias[i], llegadas[i])) {
+                aceptadas++;
+            }
+            for (EstacionCarga estacion : estaciones) {
+                conectoresRespetados &= estacion.getOcupados() >= 0 && estacion.getOcupados() <= estacion.getConectores();
+            }
+            if (i % 500 == 0) {
+                for (int k = 0; k <= i; k++) {
+                    float nivel = flota[k].getNivelBateria();
+                    nivelesEnCurso &= nivel >= niveles[k] && nivel <= PlanificadorCarga.NIVEL_OBJETIVO;
+                }
+            }
+        }
+        int maximaEspera = planificador.getEnEspera();
+        planificador.avanzar(Long.MAX_VALUE);
+        boolean todosCargados = true;
+        for (VehiculoElectrico vehiculo : flota) {
+            todosCargados &= vehiculo.getEstado() == EstadoVehiculo.DISPONIBLE
+                             && vehiculo.getNivelBateria() == PlanificadorCarga.NIVEL_OBJETIVO;
+        }
+        
+        long[] esperaPrioridad = new long[cantidadVehiculos];
+        long[] esperaLlegada = new long[cantidadVehiculos];
+        double[] prioridades = new double[cantidadVehiculos];
+        VehiculoElectrico[] referencia = flotaDeCarga(tipos, capacidades, niveles);
+        for (int i = 0; i < cantidadVehiculos; i++) {
+            prioridades[i] = PlanificadorCarga.prioridad(referencia[i], distancias[i]);
+        }
+        long totalReferencia = cargarConListas(referencia, prioridades, llegadas, conectores, potencias, false,
+                                               esperaPrioridad);
+        cargarConListas(referencia, prioridades, llegadas, conectores, potencias, true, esperaLlegada);
+        
+        salida.printf("Espera total: %,.1f h (referencia %,.1f h); en cola al final de las llegadas: %,d%n",
+                      planificador.getEsperaTotalMillis() / 3.6e6, totalReferencia / 3.6e6, maximaEspera);
+        long urgentes = 0;
+        double esperaUrgentesPrioridad = 0;
+        double esperaUrgentesLlegada = 0;
+        double esperaPrioridadTotal = 0;
+        double esperaLlegadaTotal = 0;
+        for (int i = 0; i < cantidadVehiculos; i++) {
+            esperaPrioridadTotal += esperaPrioridad[i];
+            esperaLlegadaTotal += esperaLlegada[i];
+            if (prioridades[i] < 0) {
+                urgentes++;
+                esperaUrgentesPrioridad += esperaPrioridad[i];
+                esperaUrgentesLlegada += esperaLlegada[i];
+            }
+        }
+        salida.printf("Espera media de los %,d que no cubren su ruta: %.0f min con prioridad, %.0f min por llegada%n",
+                      urgentes, esperaUrgentesPrioridad / Math.max(1, urgentes) / 60_000,
+                      esperaUrgentesLlegada / Math.max(1, urgentes) / 60_000);
+        salida.printf("Espera media de todos: %.0f min con prioridad, %.0f min por llegada%n",
+                      esperaPrioridadTotal / cantidadVehiculos / 60_000, esperaLlegadaTotal / cantidadVehiculos / 60_000);
+        
+        correcto &= verificar(salida, "todas las solicitudes aceptadas", aceptadas == cantidadVehiculos);
+        correcto &= verificar(salida, "ninguna estacion usa mas conectores de los que tiene", conectoresRespetados);
+        correcto &= verificar(salida, "la bateria en curso sube sin pasar del objetivo", nivelesEnCurso);
+        correcto &= verificar(salida, "al final todos DISPONIBLES con la bateria llena",
+                              todosCargados && planificador.getCompletadas() == cantidadVehiculos
+                              && planificador.getCargando() == 0 && planificador.getEnEspera() == 0);
+        correcto &= verificar(salida, "misma espera total que la referencia",
+                              planificador.getEsperaTotalMillis() == totalReferencia);
+        correcto &= verificar(salida, "la prioridad acorta la espera de quien no cubre su ruta",
+                              urgentes == 0 || esperaUrgentesPrioridad < esperaUrgentesLlegada);
+        return correcto;
+    }
+    
+    private static VehiculoElectrico[] flotaDeCarga(String[] tipos, float[] capacidades, float[] niveles) {
+        VehiculoElectrico[] flota = new VehiculoElectrico[tipos.length];
+        for (int i = 0; i < flota.length; i++) {
+            int id = i + 1;
+            flota[i] = tipos[i].equals("van") ? new Van(id, "Sintetico", capacidades[i])
+                     : tipos[i].equals("moto") ? new MotoElectrica(id, "Sintetico", capacidades[i])
+                     : new BicicletaElectrica(id, "Sintetico", capacidades[i]);
+            flota[i].setNivelBateria(niveles[i]);
+        }
+        return flota;
+    }
+    
+    /**
+     * Planificador de referencia: listas que se recorren completas en cada
+     * decision, con las mismas reglas (estacion libre de mayor potencia al
+     * llegar; al liberarse un conector, la menor prioridad o la llegada mas
+     * antigua). No toca los vehiculos.
+     * @param porLlegada  ignora la prioridad y atiende por orden de llegada
+     * @param esperas     recibe la espera de cada vehiculo
+     * @return la espera total en milisegundos
+     */
+    private static long cargarConListas(VehiculoElectrico[] flota, double[] prioridades, long[] llegadas,
+                                        int[] conectores, java.util.List<java.util.Map<String, Float>> potencias,
+                                        boolean porLlegada, long[] esperas) {
+        int[] ocupados = new int[conectores.length];
+        java.util.List<Integer> enCola = new java.util.ArrayList<>();
+        // Por carga en curso: {fin, vehiculo, estacion}; el vehiculo tambien es el orden de llegada
+        java.util.List<long[]> enCurso = new java.util.ArrayList<>();
+        long total = 0;
+        int siguiente = 0;
+        while (siguiente < flota.length || !enCurso.isEmpty()) {
+            int primera = -1;
+            for (int k = 0; k < enCurso.size(); k++) {
+                long[] carga = enCurso.get(k);
+                if (primera < 0 || carga[0] < enCurso.get(primera)[0]
+                        || (carga[0] == enCurso.get(primera)[0] && carga[1] < enCurso.get(primera)[1])) {
+                    primera = k;
+                }
+            }
+            if (primera >= 0 && (siguiente == flota.length || enCurso.get(primera)[0] <= llegadas[siguiente])) {
+                long[] carga = enCurso.remove(primera);
+                int estacion = (int) carga[2];
+                ocupados[estacion]--;
+                int elegido = -1;
+                for (int k = 0; k < enCola.size(); k++) {
+                    int candidato = enCola.get(k);
+                    if (!potencias.get(estacion).containsKey(flota[candidato].getTipo())) {
+                        continue;
+                    }
+                    if (elegido < 0 || (!porLlegada && prioridades[candidato] < prioridades[enCola.get(elegido)])
+                            || ((porLlegada || prioridades[candidato] == prioridades[enCola.get(elegido)])
+                                && candidato < enCola.get(elegido))) {
+                        elegido = k;
+                    }
+                }
+                if (elegido >= 0) {
+                    int vehiculo = enCola.remove(elegido);
+                    ocupados[estacion]++;
+                    esperas[vehiculo] = carga[0] - llegadas[vehiculo];
+                    total += esperas[vehiculo];
+                    enCurso.add(finDeCarga(flota[vehiculo], potencias.get(estacion), carga[0], vehiculo, estacion));
+                }
+                continue;
+            }
+            int vehiculo = siguiente++;
+            String tipo = flota[vehiculo].getTipo();
+            int mejor = -1;
+            for (int e = 0; e < conectores.length; e++) {
+                Float potencia = potencias.get(e).get(tipo);
+                if (potencia != null && ocupados[e] < conectores[e]
+                        && (mejor < 0 || potencia > potencias.get(mejor).get(tipo))) {
+                    mejor = e;
+                }
+            }
+            if (mejor < 0) {
+                enCola.add(vehiculo);
+            } else {
+                ocupados[mejor]++;
+                esperas[vehiculo] = 0;
+                enCurso.add(finDeCarga(flota[vehiculo], potencias.get(mejor), llegadas[vehiculo], vehiculo, mejor));
+            }
+        }
+        return total;
+    }
+    
+    private static long[] finDeCarga(VehiculoElectrico vehiculo, java.util.Map<String, Float> potencias,
+                                     long inicio, int indice, int estacion) {
+        long fin = inicio + PlanificadorCarga.duracionMillis(vehiculo.getCapacidadBateria(),
+                                                             potencias.get(vehiculo.getTipo()), vehiculo.getNivelBateria());
+        return new long[] {fin, indice, estacion};
+    }
+    
+    // ====== Metricas ======
+    
+    /**
+     * Costo de medir cada registrarTelemetria (dos nanoTime y una
+     * observacion) frente al de la operacion, conteos exactos con varios
+     * hilos observando a la vez y la salida de /metrics
+     */
+    private static boolean medirMetricas(int vehiculos, int lecturas) {
+        System.out.printf("=== Metricas: %,d vehiculos, %,d lecturas ===%n", vehiculos, lecturas);
+        java.io.PrintStream salida = System.out;
+        boolean correcto = true;
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 64);
+        String[] ubicaciones = new String[256];
+        java.util.SplittableRandom random = new java.util.SplittableRandom(17);
+        for (int i = 0; i < ubicaciones.length; i++) {
+            ubicaciones[i] = String.format("%.6f,%.6f", 20.5 + random.nextDouble() * 0.1,
+                                           -100.3 + random.nextDouble() * 0.1);
+        }
+        HistogramaLatencia suelto = new HistogramaLatencia("suelto");
+        long mejorOperacion = Long.MAX_VALUE;
+        long mejorReloj = Long.MAX_VALUE;
+        long mejorObservacion = Long.MAX_VALUE;
+        long acumulado = 0;
+        int rondas = 4;
+        int porRonda = lecturas / rondas;
+        // La primera ronda es de calentamiento; de las demas se reporta la mejor
+        for (int ronda = 0; ronda < rondas; ronda++) {
+            long inicio = System.nanoTime();
+            for (int i = 0; i < porRonda; i++) {
+                gestor.registrarTelemetria(1 + i % vehiculos, 30f, 50f, ubicaciones[i & 255]);
+            }
+            long operacion = System.nanoTime() - inicio;
+            inicio = System.nanoTime();
+            for (int i = 0; i < porRonda; i++) {
+                acumulado += System.nanoTime();
+            }
+            long reloj = System.nanoTime() - inicio;
+            inicio = System.nanoTime();
+            for (int i = 0; i < porRonda; i++) {
+                suelto.observar(200 + (i & 4095));
+            }
+            long observacion = System.nanoTime() - inicio;
+            if (ronda > 0) {
+                mejorOperacion = Math.min(mejorOperacion, operacion);
+                mejorReloj = Math.min(mejorReloj, reloj);
+                mejorObservacion = Math.min(mejorObservacion, observacion);
+            }
+        }
+        double nsOperacion = (double) mejorOperacion / porRonda;
+        double nsReloj = (double) mejorReloj / porRonda;
+        double nsObservacion = (double) mejorObservacion / porRonda;
+        // La lectura del reloj depende de la maquina (unos 20 ns con TSC directo, mas en una VM)
+        salida.printf("registrarTelemetria: %.0f ns/op; nanoTime: %.1f ns x 2; observar: %.1f ns (%.2f%% con el reloj)%n",
+                      nsOperacion, nsReloj, nsObservacion, 100 * (2 * nsReloj + nsObservacion) / nsOperacion);
+        correcto &= verificar(salida, "observar cuesta menos del 2% de registrarTelemetria",
+                              nsObservacion < nsOperacion * 0.02 && acumulado != 0);
+        
+        // Conteos exactos con varios hilos sobre el mismo histograma
+        HistogramaLatencia compartido = new HistogramaLatencia("compartido");
+        int hilos = 4;
+        int porHilo = 250_000;
+        Thread[] trabajadores = new Thread[hilos];
+        for (int h = 0; h < hilos; h++) {
+            trabajadores[h] = new Thread(() -> {
+                for (int i = 0; i < porHilo; i++) {
+                    compartido.observar(i % 1000 < 990 ? 3_000 : 3_000_000);
+                }
+            });
+            trabajadores[h].start();
+        }
+        for (Thread trabajador : trabajadores) {
+            try {
+                trabajador.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        long total = (long) hilos * porHilo;
+        long lentas = total / 100;
+        correcto &= verificar(salida, "conteo exacto con " + hilos + " hilos", compartido.getCantidad() == total);
+        correcto &= verificar(salida, "suma exacta con " + hilos + " hilos",
+                              compartido.getSumaNanos() == (total - lentas) * 3_000 + lentas * 3_000_000);
+        salida.printf("p50 <= %d ns, p99 <= %d ns, p999 <= %d ns%n", compartido.percentilNanos(0.5),
+                      compartido.percentilNanos(0.99), compartido.percentilNanos(0.999));
+        correcto &= verificar(salida, "percentiles en la cubeta de cada valor",
+                              compartido.percentilNanos(0.5) == 5_000 && compartido.percentilNanos(0.99) == 5_000
+                              && compartido.percentilNanos(0.999) == 5_000_000);
+        
+        StringBuilder texto = new StringBuilder();
+        gestor.getMetricas().escribirPrometheus(texto);
+        String metricas = texto.toString();
+        long registradas = (long) porRonda * rondas;
+        correcto &= verificar(salida, "/metrics cuenta cada registrarTelemetria",
+                              metricas.contains("\nsigefve_registrar_telemetria_segundos_count " + registradas + "\n"));
+        correcto &= verificar(salida, "/metrics cuenta las lecturas ingeridas",
+                              metricas.contains("\nsigefve_lecturas_ingeridas_total " + registradas + "\n"));
+        correcto &= verificar(salida, "/metrics cuenta los vehiculos por estado",
+                              metricas.contains("\nsigefve_vehiculos{estado=\"en_ruta\"} " + (vehiculos + 1) / 2 + "\n"));
+        salida.printf("/metrics: %,d bytes, %d lineas%n", metricas.length(), metricas.split("\n").length);
+        return correcto;
+    }
+    
+    private static boolean verificar(java.io.PrintStream salida, String descripcion, boolean cumple) {
+        salida.println((cumple ? "[OK]    " : "[FALLO] ") + descripcion);
+        return cumple;
+    }
+    
+    // ====== Simulacion con reloj virtual ======
+    
+    /**
+     * Corre dos veces el mismo dia con la misma semilla y una con otra: las
+     * dos primeras deben terminar en el mismo estado y la tercera no
+     */
+    private static boolean medirSimulacion(int vehiculos, int horas, long semilla) {
+        System.out.printf("=== Simulacion: %,d vehiculos, %d h, semilla %d ===%n", vehiculos, horas, semilla);
+        java.io.PrintStream salida = System.out;
+        boolean correcto = true;
+        long duracion = horas * 3_600_000L;
+        
+        SimulacionFlota primera = new SimulacionFlota(vehiculos, semilla);
+        ResultadoSimulacion resultado = primera.ejecutar(duracion);
+        salida.println(resultado);
+        salida.printf("%,.0f eventos/s, %.2f us por evento; %.0f veces mas rapido que el tiempo real%n",
+                      resultado.getEventos() * 1e9 / resultado.getNanosReales(),
+                      resultado.getNanosReales() / 1e3 / resultado.getEventos(), resultado.getAceleracion());
+        correcto &= verificar(salida, "cada vehiculo envio una lectura por minuto",
+                              resultado.getLecturas() == (long) vehiculos * horas * 60);
+        correcto &= verificar(salida, "hubo rutas despachadas, entregas y cargas",
+                              resultado.getRutasDespachadas() > 0 && resultado.getEntregasCompletadas() > 0
+                              && resultado.getCargasCompletadas() > 0);
+        Telemetria ultima = primera.getGestor().obtenerUltimaTelemetria(primera.getGestor().listarVehiculos()
+                                                                           .iterator().next().getId());
+        correcto &= verificar(salida, "las lecturas llevan la hora virtual",
+                              ultima != null && ultima.getFechaHora().toLocalDate().equals(
+                                  java.time.LocalDate.of(2026, 3, 2).plusDays((horas - 1) / 24)));
+        primera = null;
+        
+        ResultadoSimulacion repetido = new SimulacionFlota(vehiculos, semilla).ejecutar(duracion);
+        salida.println(repetido);
+        correcto &= verificar(salida, "la misma semilla da la misma firma", repetido.getFirma() == resultado.getFirma());
+        ResultadoSimulacion otro = new SimulacionFlota(vehiculos, semilla + 1).ejecutar(duracion);
+        salida.println(otro);
+        correcto &= verificar(salida, "otra semilla da otra firma", otro.getFirma() != resultado.getFirma());
+        return correcto;
+    }
+    
+    // ====== Particiones ======
+    
+    /**
+     * Ingesta con la flota repartida en 1, 2, 4... particiones del mismo
+     * proceso y despues en procesos hijos por loopback, con un productor por
+     * particion. Al final agrega una particion a una flota de cuatro (local y
+     * remota) y revisa que se mueva cerca de una quinta parte de los vehiculos
+     * sin perder ninguno ni su historial.
+     */
+    private static boolean medirParticiones(int vehiculos, int lecturas, String locales, String remotas) {
+        System.out.printf("=== Particiones: %,d vehiculos, %,d lecturas, %d nucleos ===%n",
+                          vehiculos, lecturas, Runtime.getRuntime().availableProcessors());
+        java.io.PrintStream salida = System.out;
+        boolean correcto = true;
+        
+        GestorFlota directo = crearFlotaSilenciosa(vehiculos, 64);
+        double base = ingerirEnParalelo(directo::registrarTelemetriaLote, vehiculos, lecturas, 1);
+        salida.printf("GestorFlota sin particiones:  %,12.0f lecturas/s%n", base);
+        directo = null;
+        
+        for (String texto : locales.split(",")) {
+            int cantidad = Integer.parseInt(texto.trim());
+            java.util.List<ParticionLocal> particiones = new java.util.ArrayList<>();
+            for (int p = 0; p < cantidad; p++) {
+                particiones.add(new ParticionLocal("local-" + p, new GestorFlota(64)));
+            }
+            try (FlotaParticionada flota = new FlotaParticionada(particiones)) {
+                crearVehiculosSinteticos(flota, vehiculos);
+                double tasa = ingerirEnParalelo(flota::registrarTelemetriaLote, vehiculos, lecturas, cantidad);
+                salida.printf("%d particiones locales:        %,12.0f lecturas/s (%.2fx)  vehiculos por particion: %s%n",
+                              cantidad, tasa, tasa / base, vehiculosPorParticion(flota));
+                correcto &= verificar(salida, cantidad + " particiones locales registraron todas las lecturas",
+                                      flota.getTotalLecturasTelemetria() == lecturas);
+                if (cantidad > 1) {
+                    int[] conteos = conteosPorParticion(flota);
+                    int minimo = java.util.Arrays.stream(conteos).min().getAsInt();
+                    int maximo = java.util.Arrays.stream(conteos).max().getAsInt();
+                    correcto &= verificar(salida, "el anillo reparte parejo (max/min " + String.format("%.2f", (double) maximo / minimo) + ")",
+                                          minimo > 0 && maximo <= 1.5 * minimo);
+                }
+                correcto &= verificar(salida, "la lista juntada tiene toda la flota",
+                                      flota.listarVehiculos().size() == vehiculos
+                                      && flota.obtenerEstadisticas().getTotalVehiculos() == vehiculos);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }
+        
+        java.util.List<ParticionLocal> cuatro = new java.util.ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            cuatro.add(new ParticionLocal("local-" + p, new GestorFlota(64)));
+        }
+        try (FlotaParticionada flota = new FlotaParticionada(cuatro)) {
+            crearVehiculosSinteticos(flota, vehiculos);
+            ingerirEnParalelo(flota::registrarTelemetriaLote, vehiculos, Math.min(lecturas, vehiculos * 20), 4);
+            correcto &= probarRebalanceoFallido(salida, flota, vehiculos);
+            correcto &= verificarRebalanceo(salida, "local", flota, vehiculos,
+                                            new ParticionLocal("local-4", new GestorFlota(64)));
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        
+        if (remotas.isEmpty()) {
+            return correcto;
+        }
+        for (String texto : remotas.split(",")) {
+            int cantidad = Integer.parseInt(texto.trim());
+            java.util.List<Process> procesos = new java.util.ArrayList<>();
+            try {
+                java.util.List<ParticionRemota> particiones = arrancarParticiones(cantidad, procesos);
+                try (FlotaParticionada flota = new FlotaParticionada(particiones)) {
+                    crearVehiculosSinteticos(flota, vehiculos);
+                    double tasa = ingerirEnParalelo(flota::registrarTelemetriaLote, vehiculos, lecturas, cantidad);
+                    salida.printf("%d particiones en procesos:    %,12.0f lecturas/s (%.2fx)%n", cantidad, tasa, tasa / base);
+                    correcto &= verificar(salida, cantidad + " particiones en procesos registraron todas las lecturas",
+                                          flota.getTotalLecturasTelemetria() == lecturas);
+                    if (cantidad == 4) {
+                        ParticionRemota quinta = arrancarParticiones(1, procesos).get(0);
+                        correcto &= verificarRebalanceo(salida, "en procesos", flota, vehiculos, quinta);
+                    }
+                }
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            } finally {
+                for (Process proceso : procesos) {
+                    proceso.destroy();
+                }
+            }
+        }
+        return correcto;
+    }
+    
+    private static void crearVehiculosSinteticos(FlotaParticionada flota, int vehiculos) {
+        String[] tipos = {"van", "bicicleta", "moto"};
+        for (int i = 0; i < vehiculos; i++) {
+            VehiculoElectrico v = flota.crearVehiculo(tipos[i % 3], "Sintetico", 50.0f);
+            if (i % 2 == 0) {
+                flota.cambiarEstadoVehiculo(v.getId(), EstadoVehiculo.EN_RUTA);
+            }
+        }
+    }
+    
+    /**
+     * Reparte las lecturas entre productores que arman lotes de 1000 con
+     * vehiculos al azar y los registran a la vez
+     * @return lecturas por segundo entre todos
+     */
+    private static double ingerirEnParalelo(java.util.function.ToIntFunction<LoteTelemetria> registrar,
+                                            int vehiculos, int lecturas, int productores) {
+        Thread[] hilos = new Thread[productores];
+        java.util.concurrent.CountDownLatch salida = new java.util.concurrent.CountDownLatch(1);
+        long ahora = System.currentTimeMillis();
+        for (int p = 0; p < productores; p++) {
+            int propias = lecturas / productores + (p < lecturas % productores ? 1 : 0);
+            java.util.SplittableRandom random = new java.util.SplittableRandom(31L * p + 7);
+            hilos[p] = new Thread(() -> {
+                LoteTelemetria lote = new LoteTelemetria(1000);
+                try {
+                    salida.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < propias; i++) {
+                    lote.agregar(1 + random.nextInt(vehiculos), ahora, 30.0f, 45.0f,
+                                 20.5 + random.nextDouble() * 0.1, -100.4 + random.nextDouble() * 0.1);
+                    if (lote.estaLleno()) {
+                        registrar.applyAsInt(lote);
+                        lote.limpiar();
+                    }
+                }
+                registrar.applyAsInt(lote);
+            }, "productor-" + p);
+            hilos[p].start();
+        }
+        long inicio = System.nanoTime();
+        salida.countDown();
+        for (Thread hilo : hilos) {
+            try {
+                hilo.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrumpido esperando a los productores", e);
+            }
+        }
+        return lecturas * 1e9 / (System.nanoTime() - inicio);
+    }
+    
+    private static int[] conteosPorParticion(FlotaParticionada flota) {
+        int[] conteos = new int[flota.getCantidadParticiones()];
+        for (int p = 0; p < conteos.length; p++) {
+            conteos[p] = flota.getParticion(p).listarVehiculos().size();
+        }
+        return conteos;
+    }
+    
+    private static String vehiculosPorParticion(FlotaParticionada flota) {
+        return java.util.Arrays.toString(conteosPorParticion(flota));
+    }
+    
+    /**
+     * Una particion que se cae a mitad del traspaso: los vehiculos ya movidos
+     * vuelven a su origen y la flota queda como estaba
+     */
+    private static boolean probarRebalanceoFallido(java.io.PrintStream salida, FlotaParticionada flota, int vehiculos) {
+        long lecturasAntes = flota.getTotalLecturasTelemetria();
+        ParticionLocal caida = new ParticionLocal("caida", new GestorFlota(64)) {
+            private int aceptados;
+            
+            @Override
+            public void incorporarVehiculo(TraspasoVehiculo traspaso) {
+                if (++aceptados > 10) {
+                    throw new java.io.UncheckedIOException(new java.io.IOException("Conexion perdida"));
+                }
+                super.incorporarVehiculo(traspaso);
+            }
+        };
+        boolean fallo = false;
+        try {
+            flota.agregarParticion(caida);
+        } catch (java.io.UncheckedIOException e) {
+            fallo = true;
+        }
+        boolean todos = true;
+        for (int id = 1; id <= vehiculos && todos; id++) {
+            todos = flota.consultarVehiculo(id) != null;
+        }
+        return verificar(salida, "si la particion nueva falla a mitad del traspaso no se pierde ningun vehiculo",
+                         fallo && todos && flota.getCantidadParticiones() == 4
+                         && caida.listarVehiculos().isEmpty()
+                         && java.util.Arrays.stream(conteosPorParticion(flota)).sum() == vehiculos
+                         && flota.getTotalLecturasTelemetria() == lecturasAntes);
+    }
+    
+    /**
+     * Agrega una quinta particion y revisa lo que se movio
+     */
+    private static boolean verificarRebalanceo(java.io.PrintStream salida, String donde, FlotaParticionada flota,
+                                               int vehiculos, ParticionFlota nueva) {
+        boolean correcto = true;
+        long lecturasAntes = flota.getTotalLecturasTelemetria();
+        java.util.Map<Integer, Telemetria> ultimasAntes = new java.util.HashMap<>();
+        for (int id = 1; id <= vehiculos; id += 97) {
+            ultimasAntes.put(id, flota.obtenerUltimaTelemetria(id));
+        }
+        long inicio = System.nanoTime();
+        int movidos = flota.agregarParticion(nueva);
+        double millis = (System.nanoTime() - inicio) / 1e6;
+        salida.printf("Rebalanceo %s de 4 a 5 particiones: %,d vehiculos movidos (%.1f%%) en %.0f ms; por particion: %s%n",
+                      donde, movidos, 100.0 * movidos / vehiculos, millis, vehiculosPorParticion(flota));
+        correcto &= verificar(salida, "se movio cerca de una quinta parte de la flota",
+                              movidos > vehiculos / 10 && movidos < vehiculos * 3 / 10);
+        correcto &= verificar(salida, "la particion nueva tiene justo los vehiculos movidos",
+                              flota.getParticion(4).listarVehiculos().size() == movidos);
+        boolean todos = true;
+        for (int id = 1; id <= vehiculos && todos; id++) {
+            VehiculoElectrico vehiculo = flota.consultarVehiculo(id);
+            todos = vehiculo != null
+                    && vehiculo.getEstado() == (id % 2 == 1 ? EstadoVehiculo.EN_RUTA : EstadoVehiculo.DISPONIBLE);
+        }
+        correcto &= verificar(salida, "cada vehiculo se encuentra con su estado", todos);
+        boolean historial = true;
+        for (java.util.Map.Entry<Integer, Telemetria> antes : ultimasAntes.entrySet()) {
+            Telemetria despues = flota.obtenerUltimaTelemetria(antes.getKey());
+            historial &= antes.getValue() == null ? despues == null
+                         : despues != null && despues.getFechaHora().equals(antes.getValue().getFechaHora())
+                           && despues.getLatitud() == antes.getValue().getLatitud();
+        }
+        correcto &= verificar(salida, "los vehiculos movidos conservan su ultima lectura", historial);
+        correcto &= verificar(salida, "las estadisticas juntadas no cambian",
+                              flota.obtenerEstadisticas().getTotalVehiculos() == vehiculos
+                              && flota.getTotalLecturasTelemetria() == lecturasAntes);
+        return correcto;
+    }
+    
+    /**
+     * Arranca cada particion en su propia JVM (java Sigefve particion) en un
+     * puerto libre de loopback y se conecta en cuanto escucha
+     */
+    private static java.util.List<ParticionRemota> arrancarParticiones(int cantidad, java.util.List<Process> procesos)
+            throws java.io.IOException {
+        String ejecutable = java.nio.file.Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        java.util.List<ParticionRemota> particiones = new java.util.ArrayList<>();
+        for (int p = 0; p < cantidad; p++) {
+            int puerto;
+            try (java.net.ServerSocket libre = new java.net.ServerSocket(0)) {
+                puerto = libre.getLocalPort();
+            }
+            ProcessBuilder constructor = new ProcessBuilder(ejecutable, "-Xmx512m", "-cp", System.getProperty("java.class.path"),
+                                                            "Sigefve", "particion", String.valueOf(puerto), "64");
+            constructor.environment().put("SIGEFVE_NIVEL_REGISTRO", "AVISO");
+            constructor.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            constructor.redirectError(ProcessBuilder.Redirect.INHERIT);
+            procesos.add(constructor.start());
+            java.net.InetSocketAddress direccion = new java.net.InetSocketAddress(
+                java.net.InetAddress.getLoopbackAddress(), puerto);
+            String nombre = "proceso-" + procesos.size();
+            for (int intento = 0; ; intento++) {
+                try {
+                    particiones.add(new ParticionRemota(nombre, direccion));
+                    break;
+                } catch (java.net.ConnectException e) {
+                    if (intento == 100) {
+                        throw e;
+                    }
+                    dormir(100);
+                }
+            }
+        }
+        return particiones;
+    }
+    
+    // ====== Ingesta binaria de dispositivos ======
+    
+    /**
+     * Levanta un ServidorIngesta en loopback y lo carga con CargaDispositivos
+     * a cada tasa pedida, con una flota nueva en cada corrida. Mide la tasa
+     * lograda, la latencia por lote, los bytes que asignan los hilos de red y
+     * de registro por trama, y que ninguna trama TCP se pierda. Despues manda
+     * sin pausa para ver la contrapresion, revisa una trama de ida y vuelta,
+     * una trama rota y una corrida por UDP.
+     */
+    private static boolean medirIngestaDispositivos(int vehiculos, String tasas, int segundos, int conexiones) {
+        System.out.printf("=== Ingesta de dispositivos: %,d vehiculos, %d conexiones, %d s por tasa ===%n",
+                          vehiculos, conexiones, segundos);
+        java.io.PrintStream salida = System.out;
+        boolean correcto = true;
+        
+        // Calentamiento del JIT con una flota que se descarta
+        corridaDispositivos(vehiculos, 100_000, 3, conexiones, false);
+        
+        // B/trama registro incluye hacer crecer el historial de una flota recien creada
+        salida.println("objetivo/s   enviadas/s  registradas    p50 ms   p99 ms  esperas  B/trama red  B/trama registro");
+        for (String texto : tasas.split(",")) {
+            double tasa = Double.parseDouble(texto.trim());
+            CorridaDispositivos corrida = corridaDispositivos(vehiculos, tasa, segundos, conexiones, false);
+            salida.println(corrida);
+            correcto &= verificar(salida, String.format("a %,.0f tramas/s se registraron todas las enviadas", tasa),
+                                  corrida.registradas == corrida.enviadas);
+            correcto &= verificar(salida, "se sostuvo al menos el 95% de la tasa pedida",
+                                  corrida.tramasPorSegundo >= 0.95 * tasa);
+            // Lo que queda es por despertar del selector (iterador, esperas en la cola), no por trama
+            correcto &= verificar(salida, "el hilo de red no crea objetos por trama (< 16 B/trama)", corrida.bytesRed < 16);
+        }
+        
+        CorridaDispositivos sinPausa = corridaDispositivos(vehiculos, 0, segundos, conexiones, false);
+        salida.println(sinPausa + "  (sin pausa)");
+        correcto &= verificar(salida, "sin pausa la red espera al registro (contrapresion)", sinPausa.esperas > 0);
+        correcto &= verificar(salida, "y aun asi no se pierde ninguna trama TCP", sinPausa.registradas == sinPausa.enviadas);
+        
+        CorridaDispositivos porUdp = corridaDispositivos(vehiculos, 50_000, segundos, conexiones, true);
+        salida.println(porUdp + "  (UDP)");
+        correcto &= verificar(salida, "por UDP llega al menos el 95% de las tramas",
+                              porUdp.registradas >= 0.95 * porUdp.enviadas);
+        
+        correcto &= verificarTramas(salida);
+        return correcto;
+    }
+    
+    private static CorridaDispositivos corridaDispositivos(int vehiculos, double tasa, int segundos, int conexiones,
+                                                           boolean udp) {
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 64);
+        java.net.InetSocketAddress direccion = new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0);
+        com.sun.management.ThreadMXBean hilos =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        try (ServidorIngesta servidor = new ServidorIngesta(gestor, direccion, true)) {
+            servidor.iniciar();
+            CargaDispositivos carga = new CargaDispositivos(
+                new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), servidor.getPuerto()),
+                conexiones, tasa, vehiculos, udp);
+            long asignadosRed = hilos.getThreadAllocatedBytes(servidor.getIdHiloRed());
+            long asignadosRegistro = hilos.getThreadAllocatedBytes(servidor.getIdHiloRegistro());
+            carga.ejecutar(segundos * 1000L);
+            // Lo enviado puede estar aun en los sockets o en los lotes
+            long limite = System.currentTimeMillis() + 10_000;
+            long registradas = gestor.getTotalLecturasTelemetria();
+            while (registradas < carga.getEnviadas() && System.currentTimeMillis() < limite) {
+                dormir(udp ? 200 : 20);
+                long ahora = gestor.getTotalLecturasTelemetria();
+                if (udp && ahora == registradas) {
+                    break; // lo que falta lo descarto el kernel
+                }
+                registradas = ahora;
+            }
+            CorridaDispositivos corrida = new CorridaDispositivos();
+            corrida.tasa = tasa;
+            corrida.enviadas = carga.getEnviadas();
+            corrida.tramasPorSegundo = carga.getTramasPorSegundo();
+            corrida.registradas = registradas;
+            corrida.p50 = servidor.getLatencia().percentilNanos(0.50);
+            corrida.p99 = servidor.getLatencia().percentilNanos(0.99);
+            corrida.esperas = servidor.getEsperas();
+            corrida.bytesRed = (double) (hilos.getThreadAllocatedBytes(servidor.getIdHiloRed()) - asignadosRed)
+                               / Math.max(1, servidor.getTramas());
+            corrida.bytesRegistro = (double) (hilos.getThreadAllocatedBytes(servidor.getIdHiloRegistro()) - asignadosRegistro)
+                                    / Math.max(1, servidor.getTramas());
+            return corrida;
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+    
+    private static final class CorridaDispositivos {
+        double tasa;
+        long enviadas;
+        double tramasPorSegundo;
+        long registradas;
+        long p50;
+        long p99;
+        long esperas;
+        double bytesRed;
+        double bytesRegistro;
+        
+        @Override
+        public String toString() {
+            return String.format("%,10.0f %,12.0f %,12d %9.3f %8.3f %8d %12.2f %17.2f",
+                                 tasa, tramasPorSegundo, registradas, p50 / 1e6, p99 / 1e6, esperas, bytesRed, bytesRegistro);
+        }
+    }
+    
+    /**
+     * Una trama de ida y vuelta conserva sus campos; una trama rota cierra la
+     * conexion sin perder las buenas que llegaron antes, y una adelantada al
+     * reloj se descarta sola
+     */
+    private static boolean verificarTramas(java.io.PrintStream salida) {
+        boolean correcto = true;
+        GestorFlota gestor = crearFlotaSilenciosa(10, 64);
+        java.net.InetSocketAddress direccion = new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0);
+        try (ServidorIngesta servidor = new ServidorIngesta(gestor, direccion, false)) {
+            servidor.iniciar();
+            java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(3 * TramaTelemetria.TAMANO);
+            long tiempo = System.currentTimeMillis();
+            TramaTelemetria.escribir(buffer, crc, 3, 0, tiempo, 47.25f, 61.5f, 42.5f, 20.5881234, -100.3899876);
+            TramaTelemetria.escribir(buffer, crc, 4, 0, tiempo, 10f, 40f, Float.NaN, 20.6, -100.4);
+            buffer.put(TramaTelemetria.TAMANO + 10, (byte) 0x7F); // cambia el tiempo de la segunda sin arreglar la suma
+            TramaTelemetria.escribir(buffer, crc, 5, 0, tiempo, 10f, 40f, Float.NaN, 20.6, -100.4);
+            buffer.flip();
+            int leidos;
+            try (java.nio.channels.SocketChannel canal = java.nio.channels.SocketChannel.open(
+                     new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), servidor.getPuerto()))) {
+                while (buffer.hasRemaining()) {
+                    canal.write(buffer);
+                }
+                canal.socket().setSoTimeout(5_000);
+                leidos = canal.socket().getInputStream().read();
+            }
+            long limite = System.currentTimeMillis() + 5_000;
+            while (gestor.getTotalLecturasTelemetria() < 1 && System.currentTimeMillis() < limite) {
+                dormir(10);
+            }
+            Telemetria ultima = gestor.obtenerUltimaTelemetria(3);
+            correcto &= verificar(salida, "la trama conserva vehiculo, hora, velocidad, temperatura y posicion",
+                                  ultima != null
+                                  && ultima.getFechaHora().equals(java.time.LocalDateTime.ofInstant(
+                                         java.time.Instant.ofEpochMilli(tiempo), java.time.ZoneId.systemDefault()))
+                                  && ultima.getVelocidad() == 47.25f && ultima.getTemperaturaMotor() == 61.5f
+                                  && Math.abs(ultima.getLatitud() - 20.5881234) < 1e-7
+                                  && Math.abs(ultima.getLongitud() + 100.3899876) < 1e-7);
+            correcto &= verificar(salida, "la bateria reportada reemplaza a la estimada",
+                                  ultima != null && ultima.getNivelBateria() == 42.5f
+                                  && gestor.consultarVehiculo(3).getNivelBateria() == 42.5f);
+            correcto &= verificar(salida, "una trama rota cierra la conexion y no se registra nada despues",
+                                  leidos == -1 && servidor.getTramasInvalidas() == 1
+                                  && gestor.obtenerUltimaTelemetria(4) == null && gestor.obtenerUltimaTelemetria(5) == null);
+            
+            // Una trama con la hora de manana se descarta y cuenta como invalida; la conexion sigue
+            buffer.clear();
+            TramaTelemetria.escribir(buffer, crc, 6, 0, tiempo + 86_400_000L, 10f, 40f, Float.NaN, 20.6, -100.4);
+            TramaTelemetria.escribir(buffer, crc, 7, 0, tiempo, 10f, 40f, Float.NaN, 20.6, -100.4);
+            buffer.flip();
+            try (java.nio.channels.SocketChannel canal = java.nio.channels.SocketChannel.open(
+                     new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), servidor.getPuerto()))) {
+                while (buffer.hasRemaining()) {
+                    canal.write(buffer);
+                }
+                limite = System.currentTimeMillis() + 5_000;
+                while (gestor.obtenerUltimaTelemetria(7) == null && System.currentTimeMillis() < limite) {
+                    dormir(10);
+                }
+            }
+            correcto &= verificar(salida, "una trama adelantada un dia se descarta como invalida sin cerrar la conexion",
+                                  gestor.obtenerUltimaTelemetria(6) == null && gestor.obtenerUltimaTelemetria(7) != null
+                                  && servidor.getTramasInvalidas() == 2);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        return correcto;
+    }
+    
+    // ====== Fotos de la flota ======
+    
+    /**
+     * Ingesta a toda velocidad en un hilo y cambios de estado en otro mientras
+     * varios lectores arman la misma vista de tablero: un encabezado con los
+     * disponibles y la lista de vehiculos con estado y bateria. Primero leen la
+     * flota viva (encabezado de obtenerEstadisticas, lista de listarVehiculos)
+     * y despues fotos de obtenerFoto publicadas cada 100 ms. Cuenta vistas por
+     * segundo y cuantas salen con encabezado y lista que no cuadran.
+     */
+    private static boolean medirFotos(int vehiculos, int lectores, int segundos) {
+        System.out.printf("=== Fotos de la flota: %,d vehiculos, %d lectores, %d s por fase ===%n",
+                          vehiculos, lectores, segundos);
+        java.io.PrintStream salida = System.out;
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 16);
+        ingerirDurante(gestor, vehiculos, 1); // calentamiento, y posicion para todos
+        double[] sola = ingerirDurante(gestor, vehiculos, segundos);
+        
+        CorridaLectores viva = corridaLectores(gestor, vehiculos, lectores, segundos, false);
+        gestor.publicarFotos(100);
+        CorridaLectores fotos = corridaLectores(gestor, vehiculos, lectores, segundos, true);
+        gestor.detenerFotos();
+        
+        salida.printf("%-30s %14s %14s %12s %14s%n", "", "lecturas/s", "por s de CPU", "vistas/s", "no cuadran");
+        salida.printf("%-30s %,14.0f %,14.0f%n", "Ingesta sola", sola[0], sola[1]);
+        salida.printf("%-30s %,14.0f %,14.0f %,12.0f %,14d%n", "Lectores sobre la flota viva",
+                      viva.ingesta[0], viva.ingesta[1], viva.vistas / (double) segundos, viva.incoherentes);
+        salida.printf("%-30s %,14.0f %,14.0f %,12.0f %,14d%n", "Lectores sobre fotos",
+                      fotos.ingesta[0], fotos.ingesta[1], fotos.vistas / (double) segundos, fotos.incoherentes);
+        salida.printf("Cambios de estado por fase: %,d y %,d; esperas de la ingesta por un candado: %,d y %,d%n",
+                      viva.cambios, fotos.cambios, viva.bloqueos, fotos.bloqueos);
+        salida.printf("Fotos publicadas: %,d; la mas vieja que vio un lector: %d ms%n",
+                      gestor.obtenerFoto().getVersion(), fotos.edadMaxima);
+        
+        boolean correcto = verificar(salida, "los lectores de fotos armaron vistas", fotos.vistas > 0);
+        correcto &= verificar(salida, "la foto mas vieja que vio un lector no pasa de 1 s", fotos.edadMaxima < 1000);
+        // Con pocos nucleos los lectores le quitan tiempo de reloj a la ingesta; que no la
+        // frenan se ve en que el hilo que ingiere casi nunca espera un candado
+        correcto &= verificar(salida, "la ingesta espero un candado a lo sumo una vez por foto publicada",
+                              fotos.bloqueos <= gestor.obtenerFoto().getVersion());
+        
+        FotoFlota foto = gestor.obtenerFoto();
+        long firma = firmaFoto(foto);
+        ingerirDurante(gestor, vehiculos, 1);
+        for (int id = 1; id <= vehiculos; id += 2) {
+            gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.MANTENIMIENTO);
+        }
+        correcto &= verificar(salida, "una foto guardada no cambia con la flota", firmaFoto(foto) == firma);
+        
+        long inicio = System.nanoTime();
+        FotoFlota actual = gestor.obtenerFoto();
+        salida.printf("Copiar %,d vehiculos a una foto: %.2f ms%n", vehiculos, (System.nanoTime() - inicio) / 1e6);
+        ResumenEstadisticas resumen = gestor.obtenerEstadisticas();
+        boolean cuadra = actual.getTamano() == vehiculos;
+        int suma = 0;
+        for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+            cuadra &= actual.getVehiculos(estado) == resumen.getVehiculos(estado);
+            suma += actual.getVehiculos(estado);
+        }
+        correcto &= verificar(salida, "en reposo la foto cuadra con las estadisticas", cuadra && suma == vehiculos);
+        boolean coincide = actual.getVersion() > foto.getVersion() && actual.indiceDe(vehiculos + 1) == -1;
+        for (int id = 1; id <= vehiculos; id += 97) {
+            int i = actual.indiceDe(id);
+            VehiculoElectrico vehiculo = gestor.consultarVehiculo(id);
+            Telemetria ultima = gestor.obtenerUltimaTelemetria(id);
+            coincide &= i >= 0 && actual.getEstado(i) == vehiculo.getEstado()
+                        && actual.getNivelBateria(i) == vehiculo.getNivelBateria()
+                        && actual.getModelo(i).equals(vehiculo.getModelo())
+                        && actual.tienePosicion(i) && actual.getLatitud(i) == ultima.getLatitud()
+                        && actual.getLongitud(i) == ultima.getLongitud();
+        }
+        correcto &= verificar(salida, "sin publicador la foto se rehace al cambiar la flota y coincide con cada vehiculo",
+                              coincide);
+        correcto &= verificar(salida, "sin cambios se devuelve la misma foto", gestor.obtenerFoto() == actual);
+        gestor.actualizarVehiculo(1, "Renombrado");
+        FotoFlota renombrada = gestor.obtenerFoto();
+        correcto &= verificar(salida, "cambiar el modelo, sin lecturas ni cambios de estado, da una foto nueva",
+                              renombrada.getVersion() == actual.getVersion() + 1
+                              && renombrada.getModelo(renombrada.indiceDe(1)).equals("Renombrado"));
+        correcto &= probarCoherenciaFoto(salida, segundos);
+        correcto &= probarListadoApi(salida, segundos);
+        return correcto;
+    }
+    
+    /**
+     * Un hilo pasa vehiculos de DISPONIBLE con 50% a CARGANDO con 100% y de
+     * vuelta, cambiando estado y bateria en el candado del vehiculo, mientras
+     * un lector revisa que de cada vehiculo vea estado y bateria del mismo
+     * momento: primero en la flota viva, despues en una foto nueva por vista
+     */
+    private static boolean probarCoherenciaFoto(java.io.PrintStream salida, int segundos) {
+        int vehiculos = 1000;
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 16);
+        VehiculoElectrico[] flota = new VehiculoElectrico[vehiculos];
+        for (int id = 1; id <= vehiculos; id++) {
+            flota[id - 1] = gestor.consultarVehiculo(id);
+            synchronized (flota[id - 1]) {
+                flota[id - 1].setEstado(EstadoVehiculo.DISPONIBLE);
+                flota[id - 1].setNivelBateria(50f);
+            }
+        }
+        long[] vistas = new long[2];
+        long[] incoherentes = new long[2];
+        for (int fase = 0; fase < 2; fase++) {
+            java.util.concurrent.atomic.AtomicBoolean parar = new java.util.concurrent.atomic.AtomicBoolean();
+            Thread cargas = new Thread(() -> {
+                while (!parar.get()) {
+                    for (VehiculoElectrico vehiculo : flota) {
+                        synchronized (vehiculo) {
+                            boolean cargando = vehiculo.getEstado() == EstadoVehiculo.CARGANDO;
+                            vehiculo.setEstado(cargando ? EstadoVehiculo.DISPONIBLE : EstadoVehiculo.CARGANDO);
+                            vehiculo.setNivelBateria(cargando ? 50f : 100f);
+                        }
+                    }
+                }
+            }, "cargas");
+            cargas.start();
+            long fin = System.nanoTime() + segundos * 1_000_000_000L;
+            while (System.nanoTime() < fin) {
+                if (fase == 0) {
+                    for (VehiculoElectrico vehiculo : gestor.listarVehiculos()) {
+                        boolean cargando = vehiculo.getEstado() == EstadoVehiculo.CARGANDO;
+                        if (cargando != (vehiculo.getNivelBateria() == 100f)) {
+                            incoherentes[fase]++;
+                        }
+                    }
+                } else {
+                    FotoFlota foto = gestor.obtenerFoto();
+                    for (int i = 0; i < foto.getTamano(); i++) {
+                        boolean cargando = foto.getEstado(i) == EstadoVehiculo.CARGANDO;
+                        if (cargando != (foto.getNivelBateria(i) == 100f)) {
+                            incoherentes[fase]++;
+                        }
+                    }
+                }
+                vistas[fase]++;
+            }
+            parar.set(true);
+            try {
+                cargas.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        salida.printf("Estado y bateria de momentos distintos: %,d en %,d vistas de la flota viva, %,d en %,d fotos%n",
+                      incoherentes[0], vistas[0], incoherentes[1], vistas[1]);
+        return verificar(salida, "en cada foto estado y bateria de cada vehiculo son del mismo momento",
+                         vistas[1] > 0 && incoherentes[1] == 0);
+    }
+    
+    /**
+     * GET /api/vehiculos de toda la flota mientras otro hilo cambia estados:
+     * las filas de cada estado deben sumar lo que dice porEstado, y todas, el total
+     */
+    private static boolean probarListadoApi(java.io.PrintStream salida, int segundos) {
+        int vehiculos = 1000;
+        GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 16);
+        for (int id = 1; id <= vehiculos; id++) {
+            gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.DISPONIBLE);
+        }
+        RegistroUsuarios usuarios = new RegistroUsuarios();
+        usuarios.registrar("Tablero", "tablero@sigefve.mx", "tablero123", RegistroUsuarios.ROL_AUTORREGISTRO);
+        String token = usuarios.iniciarSesion("tablero@sigefve.mx", "tablero123").getToken();
+        java.util.concurrent.atomic.AtomicBoolean parar = new java.util.concurrent.atomic.AtomicBoolean();
+        Thread cambios = new Thread(() -> {
+            java.util.SplittableRandom random = new java.util.SplittableRandom(5);
+            while (!parar.get()) {
+                int id = 1 + random.nextInt(vehiculos);
+                if (!gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.DISPONIBLE, EstadoVehiculo.EN_RUTA)) {
+                    gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.EN_RUTA, EstadoVehiculo.DISPONIBLE);
+                }
+            }
+        }, "cambios-estado");
+        int respuestas = 0;
+        int incoherentes = 0;
+        int encontrados = 0;
+        int paginas = 0;
+        try (ServidorApi servidor = new ServidorApi(gestor, usuarios,
+                new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0))) {
+            servidor.iniciar();
+            java.net.http.HttpClient cliente = java.net.http.HttpClient.newHttpClient();
+            java.net.http.HttpRequest peticion = java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create("http://127.0.0.1:" + servidor.getPuerto() + "/api/vehiculos?limite=1000"))
+                .header("Authorization", "Bearer " + token).build();
+            cambios.start();
+            long fin = System.nanoTime() + segundos * 1_000_000_000L;
+            while (System.nanoTime() < fin) {
+                String cuerpo = cliente.send(peticion, java.net.http.HttpResponse.BodyHandlers.ofString()).body();
+                int filas = contarApariciones(cuerpo, "\"id\":");
+                boolean cuadra = cuerpo.contains("\"total\":" + filas + ",");
+                for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+                    int conteo = contarApariciones(cuerpo, "\"estado\":\"" + estado.name() + "\"");
+                    cuadra &= cuerpo.contains("\"" + estado.name() + "\":" + conteo + ",")
+                              || cuerpo.contains("\"" + estado.name() + "\":" + conteo + "}");
+                }
+                respuestas++;
+                if (!cuadra) {
+                    incoherentes++;
+                }
+            }
+            parar.set(true);
+            cambios.join();
+            // Un solo vehiculo en mantenimiento, al final: cada pagina revisa a lo mas
+            // limite * FILAS_REVISADAS_POR_LIMITE filas y el resto sigue por "siguiente"
+            gestor.cambiarEstadoVehiculo(vehiculos, EstadoVehiculo.MANTENIMIENTO);
+            int limite = 10;
+            String desde = "1";
+            while (!desde.equals("null")) {
+                String cuerpo = cliente.send(java.net.http.HttpRequest.newBuilder(
+                        java.net.URI.create("http://127.0.0.1:" + servidor.getPuerto()
+                                            + "/api/vehiculos?estado=MANTENIMIENTO&limite=" + limite
+                                            + "&desde=" + desde))
+                    .header("Authorization", "Bearer " + token).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofString()).body();
+                encontrados += contarApariciones(cuerpo, "\"id\":");
+                paginas++;
+                int inicio = cuerpo.indexOf("\"siguiente\":") + "\"siguiente\":".length();
+                desde = cuerpo.substring(inicio, cuerpo.indexOf(',', inicio));
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            parar.set(true);
+            try {
+                cambios.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        salida.printf("GET /api/vehiculos con cambios de estado: %,d de %,d respuestas no cuadran%n",
+                      incoherentes, respuestas);
+        boolean correcto = verificar(salida, "en /api/vehiculos las filas, porEstado y total salen de la misma foto",
+                                     respuestas > 0 && incoherentes == 0);
+        int paginasEsperadas = (vehiculos + 10 * ServidorApi.FILAS_REVISADAS_POR_LIMITE - 1)
+                               / (10 * ServidorApi.FILAS_REVISADAS_POR_LIMITE);
+        salida.printf("?estado=MANTENIMIENTO&limite=10: %,d vehiculo(s) en %,d paginas%n", encontrados, paginas);
+        correcto &= verificar(salida, "con ?estado= cada pagina revisa filas acotadas y \"siguiente\" llega a todos",
+                              encontrados == 1 && paginas == paginasEsperadas);
+        return correcto;
+    }
+    
+    private static int contarApariciones(String texto, String buscado) {
+        int cantidad = 0;
+        for (int i = texto.indexOf(buscado); i >= 0; i = texto.indexOf(buscado, i + buscado.length())) {
+            cantidad++;
+        }
+        return cantidad;
+    }
+    
+    private static final class CorridaLectores {
+        double[] ingesta;
+        long vistas;
+        long incoherentes;
+        long cambios;
+        long edadMaxima;
+        long bloqueos;
+    }
+    
+    private static CorridaLectores corridaLectores(GestorFlota gestor, int vehiculos, int lectores, int segundos,
+                                                   boolean conFoto) {
+        java.util.concurrent.atomic.AtomicBoolean parar = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.concurrent.atomic.LongAdder vistas = new java.util.concurrent.atomic.LongAdder();
+        java.util.concurrent.atomic.LongAdder incoherentes = new java.util.concurrent.atomic.LongAdder();
+        java.util.concurrent.atomic.LongAccumulator edadMaxima = new java.util.concurrent.atomic.LongAccumulator(Math::max, 0);
+        java.util.concurrent.atomic.DoubleAdder sumidero = new java.util.concurrent.atomic.DoubleAdder();
+        long[] cambios = new long[1];
+        java.util.List<Thread> hilos = new java.util.ArrayList<>();
+        // Cambia de estado unos 10,000 vehiculos por segundo, como despachos y llegadas
+        hilos.add(new Thread(() -> {
+            java.util.SplittableRandom random = new java.util.SplittableRandom(9);
+            while (!parar.get()) {
+                for (int i = 0; i < 10; i++) {
+                    int id = 1 + random.nextInt(vehiculos);
+                    if (gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.DISPONIBLE, EstadoVehiculo.EN_RUTA)
+                        || gestor.cambiarEstadoVehiculo(id, EstadoVehiculo.EN_RUTA, EstadoVehiculo.DISPONIBLE)) {
+                        cambios[0]++;
+                    }
+                }
+                dormir(1);
+            }
+        }, "cambios-estado"));
+        for (int l = 0; l < lectores; l++) {
+            hilos.add(new Thread(() -> {
+                double suma = 0;
+                while (!parar.get()) {
+                    int encabezado;
+                    int disponibles = 0;
+                    if (conFoto) {
+                        FotoFlota foto = gestor.obtenerFoto();
+                        encabezado = foto.getVehiculos(EstadoVehiculo.DISPONIBLE);
+                        for (int i = 0; i < foto.getTamano(); i++) {
+                            if (foto.getEstado(i) == EstadoVehiculo.DISPONIBLE) {
+                                disponibles++;
+                            }
+                            suma += foto.getNivelBateria(i) + foto.getLatitud(i);
+                        }
+                        edadMaxima.accumulate(System.currentTimeMillis() - foto.getMillis());
+                    } else {
+                        encabezado = gestor.obtenerEstadisticas().getVehiculos(EstadoVehiculo.DISPONIBLE);
+                        for (VehiculoElectrico vehiculo : gestor.listarVehiculos()) {
+                            if (vehiculo.getEstado() == EstadoVehiculo.DISPONIBLE) {
+                                disponibles++;
+                            }
+                            suma += vehiculo.getNivelBateria();
+                        }
+                    }
+                    if (disponibles != encabezado) {
+                        incoherentes.increment();
+                    }
+                    vistas.increment();
+                }
+                sumidero.add(suma);
+            }, "lector-" + l));
+        }
+        for (Thread hilo : hilos) {
+            hilo.start();
+        }
+        CorridaLectores corrida = new CorridaLectores();
+        java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+        long bloqueos = mx.getThreadInfo(Thread.currentThread().getId()).getBlockedCount();
+        corrida.ingesta = ingerirDurante(gestor, vehiculos, segundos);
+        corrida.bloqueos = mx.getThreadInfo(Thread.currentThread().getId()).getBlockedCount() - bloqueos;
+        parar.set(true);
+        for (Thread hilo : hilos) {
+            try {
+                hilo.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        corrida.vistas = vistas.sum();
+        corrida.incoherentes = incoherentes.sum();
+        corrida.cambios = cambios[0];
+        corrida.edadMaxima = edadMaxima.get();
+        return corrida;
+    }
+    
+    private static long firmaFoto(FotoFlota foto) {
+        long firma = foto.getTamano();
+        for (int i = 0; i < foto.getTamano(); i++) {
+            firma = firma * 31 + foto.getId(i);
+            firma = firma * 31 + foto.getEstado(i).ordinal();
+            firma = firma * 31 + Float.floatToIntBits(foto.getNivelBateria(i));
+            firma = firma * 31 + Double.doubleToLongBits(foto.getLatitud(i));
+        }
+        return firma;
+    }
+    
+    // ====== Reorden de lecturas de dispositivos ======
+    
+    /**
+     * Cada vehiculo manda una lectura por segundo con su secuencia y, cada
+     * diez, la bateria que mide. Una pasarela las entrega en rondas: en orden,
+     * o con un 10% atrasadas una o dos rondas, un 0.5% atrasadas diez (mas
+     * que el retraso permitido) y un 2% repetidas. Se compara contra la flota
+     * que recibio todo en orden, sin las atrasadas de mas: con la ventana el
+     * historial y la bateria de cada vehiculo deben quedar iguales. Tambien
+     * mide lecturas por segundo y bytes asignados por lectura, sin contar el
+     * primer cuarto (ahi se arman las ventanas).
+     */
+    private static boolean medirReorden(int vehiculos, int lecturas, int retraso) {
+        System.out.printf("=== Reorden: %,d vehiculos, %d lecturas por vehiculo, retraso permitido %d ms ===%n",
+                          vehiculos, lecturas, retraso);
+        java.io.PrintStream salida = System.out;
+        if ((long) vehiculos * lecturas >= 1 << 24 || lecturas < 40) {
+            throw new IllegalArgumentException("Entre 40 y " + ((1 << 24) / vehiculos) + " lecturas por vehiculo");
+        }
+        // Las atrasadas una o dos rondas deben caber en la ventana y las atrasadas diez quedar fuera
+        if (retraso < 2_000 || retraso > 5_000) {
+            throw new IllegalArgumentException("El retraso permitido debe estar entre 2000 y 5000 ms");
+        }
+        long inicio = System.currentTimeMillis() - 3_600_000L;
+        FlujoReorden desordenado = flujoReorden(vehiculos, lecturas, true);
+        FlujoReorden enOrden = flujoReorden(vehiculos, lecturas, false);
+        
+        GestorFlota referencia = flotaReorden(vehiculos, lecturas, inicio, null);
+        CorridaReorden base = ingerirFlujo(referencia, enOrden, desordenado.tardias, lecturas, inicio);
+        ReordenTelemetria reordenEnOrden = new ReordenTelemetria(retraso, ReordenTelemetria.CAPACIDAD_POR_DEFECTO);
+        GestorFlota conVentanaEnOrden = flotaReorden(vehiculos, lecturas, inicio, reordenEnOrden);
+        CorridaReorden ventanaEnOrden = ingerirFlujo(conVentanaEnOrden, enOrden, null, lecturas, inicio);
+        GestorFlota sinVentana = flotaReorden(vehiculos, lecturas, inicio, null);
+        CorridaReorden desorden = ingerirFlujo(sinVentana, desordenado, null, lecturas, inicio);
+        ReordenTelemetria reorden = new ReordenTelemetria(retraso, ReordenTelemetria.CAPACIDAD_POR_DEFECTO);
+        GestorFlota conVentana = flotaReorden(vehiculos, lecturas, inicio, reorden);
+        CorridaReorden ventana = ingerirFlujo(conVentana, desordenado, null, lecturas, inicio);
+        // El final de cada vehiculo sale cuando deja de mandar
+        RelojVirtual reloj = (RelojVirtual) conVentana.getReloj();
+        reloj.avanzarA(reloj.millis() + retraso);
+        int vencidas = conVentana.liberarReordenVencidas();
+        
+        salida.printf("%-30s %14s %12s %12s %14s%n", "", "lecturas/s", "B/lectura", "retenidas", "difieren");
+        salida.printf("%-30s %,14.0f %12.1f %12s %,14d%n", "En orden, sin ventana", base.porSegundo(),
+                      base.bytesPorLectura(), "-", 0);
+        salida.printf("%-30s %,14.0f %12.1f %,12d %14s%n", "En orden, con ventana", ventanaEnOrden.porSegundo(),
+                      ventanaEnOrden.bytesPorLectura(), reordenEnOrden.getRetenidas(), "-");
+        int distintosSinVentana = vehiculosDistintos(referencia, sinVentana, vehiculos, lecturas);
+        salida.printf("%-30s %,14.0f %12.1f %12s %,14d%n", "Desordenado, sin ventana", desorden.porSegundo(),
+                      desorden.bytesPorLectura(), "-", distintosSinVentana);
+        int distintosConVentana = vehiculosDistintos(referencia, conVentana, vehiculos, lecturas);
+        salida.printf("%-30s %,14.0f %12.1f %,12d %,14d%n", "Desordenado, con ventana", ventana.porSegundo(),
+                      ventana.bytesPorLectura(), reorden.getRetenidas(), distintosConVentana);
+        salida.printf("(difieren: vehiculos cuyas lecturas crudas o bateria no son las de la flota que recibio todo en orden)%n");
+        salida.printf("Sin ventana: %,d lecturas crudas quedaron antes que una anterior%n",
+                      inversiones(sinVentana, vehiculos, lecturas));
+        salida.printf("Con ventana: %,d duplicadas (%,d mandadas), %,d tardias (%,d mandadas), %,d forzadas, "
+                      + "%,d liberadas al dejar de mandar%n", reorden.getDuplicadas(), desordenado.duplicadas,
+                      reorden.getTardias(), desordenado.tardiasMandadas, reorden.getForzadas(), vencidas);
+        
+        boolean correcto = verificar(salida, "en orden ninguna lectura espera en la ventana ni se pierde",
+                                     reordenEnOrden.getRetenidas() == 0
+                                     && conVentanaEnOrden.getTotalLecturasTelemetria() == (long) vehiculos * lecturas
+                                     && inversiones(conVentanaEnOrden, vehiculos, lecturas) == 0);
+        correcto &= verificar(salida, "sin ventana el desorden cambia el historial o la bateria",
+                              distintosSinVentana > 0);
+        correcto &= verificar(salida, "con ventana cada vehiculo queda igual que recibiendo en orden",
+                              distintosConVentana == 0);
+        correcto &= verificar(salida, "se descartan todas las duplicadas y solo ellas",
+                              reorden.getDuplicadas() == desordenado.duplicadas);
+        correcto &= verificar(salida, "se informan todas las tardias y solo ellas",
+                              reorden.getTardias() == desordenado.tardiasMandadas && reorden.getForzadas() == 0);
+        correcto &= verificar(salida, "la ventana no asigna memoria por lectura (menos de 1 B mas que sin ella)",
+                              ventanaEnOrden.bytesPorLectura() < base.bytesPorLectura() + 1
+                              && ventana.bytesPorLectura() < desorden.bytesPorLectura() + 1);
+        correcto &= probarCasosReorden(salida);
+        return correcto;
+    }
+    
+    /** Lecturas en orden de llegada; cada una es (vehiculo - 1) * lecturas + secuencia */
+    private static final class FlujoReorden {
+        int[] llegadas;
+        // Ronda en que llega cada una: la pasarela entrega una por segundo
+        int[] rondas;
+        boolean[] tardias;
+        int tardiasMandadas;
+        int duplicadas;
+    }
+    
+    private static final class CorridaReorden {
+        long lecturas;
+        long nanos;
+        long bytes;
+        
+        double porSegundo() { return lecturas * 1e9 / Math.max(1, nanos); }
+        double bytesPorLectura() { return (double) bytes / Math.max(1, lecturas); }
+    }
+    
+    private static FlujoReorden flujoReorden(int vehiculos, int lecturas, boolean desordenar) {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(desordenar ? 11 : 7);
+        FlujoReorden flujo = new FlujoReorden();
+        flujo.tardias = new boolean[vehiculos * lecturas];
+        long[] claves = new long[vehiculos * lecturas + vehiculos * lecturas / 16];
+        int cantidad = 0;
+        for (int indice = 0; indice < vehiculos * lecturas; indice++) {
+            int secuencia = indice % lecturas;
+            int atraso = 0;
+            double sorteo = random.nextDouble();
+            if (desordenar && sorteo < 0.005 && secuencia >= 5 && secuencia < lecturas - 15) {
+                atraso = 10;
+                flujo.tardias[indice] = true;
+                flujo.tardiasMandadas++;
+            } else if (desordenar && sorteo < 0.105) {
+                atraso = 1 + random.nextInt(2);
+            }
+            // Ronda de llegada, orden al azar dentro de la ronda, y la lectura
+            claves[cantidad++] = (long) (secuencia + atraso) << 40 | (long) random.nextInt(1 << 16) << 24 | indice;
+            if (desordenar && random.nextDouble() < 0.02) {
+                if (cantidad == claves.length) {
+                    claves = java.util.Arrays.copyOf(claves, cantidad * 2);
+                }
+                claves[cantidad++] = (long) (secuencia + atraso + random.nextInt(6)) << 40
+                                     | (long) random.nextInt(1 << 16) << 24 | indice;
+                flujo.duplicadas++;
+            }
+        }
+        java.util.Arrays.sort(claves, 0, cantidad);
+        flujo.llegadas = new int[cantidad];
+        flujo.rondas = new int[cantidad];
+        for (int i = 0; i < cantidad; i++) {
+            flujo.llegadas[i] = (int) (claves[i] & 0xFF_FFFF);
+            flujo.rondas[i] = (int) (claves[i] >>> 40);
+        }
+        return flujo;
+    }
+    
+    private static GestorFlota flotaReorden(int vehiculos, int lecturas, long inicio, ReordenTelemetria reorden) {
+        // Con 16 crudas por vehiculo el historial no crece durante la medicion; lo mas viejo pasa a los minutos
+        GestorFlota gestor = new GestorFlota(16, RetencionTelemetria.porDefecto(), new RelojVirtual(inicio));
+        for (int i = 0; i < vehiculos; i++) {
+            gestor.crearVehiculo("van", "Sintetico", 50.0f).setEstado(EstadoVehiculo.EN_RUTA);
+        }
+        if (reorden != null) {
+            gestor.activarReorden(reorden, false);
+        }
+        return gestor;
+    }
+    
+    /**
+     * Manda el flujo en lotes de hasta 1024 lecturas; cada ronda sale con el
+     * reloj del servidor en su segundo, sin importar cuantos vehiculos haya.
+     * Mide desde el primer cuarto
+     * @param omitir  lecturas que no se mandan, o null
+     */
+    private static CorridaReorden ingerirFlujo(GestorFlota gestor, FlujoReorden flujo, boolean[] omitir,
+                                               int lecturas, long inicio) {
+        com.sun.management.ThreadMXBean hilos =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        RelojVirtual reloj = (RelojVirtual) gestor.getReloj();
+        LoteTelemetria lote = new LoteTelemetria(1024);
+        int[] llegadas = flujo.llegadas;
+        int cuarto = llegadas.length / 4;
+        CorridaReorden corrida = new CorridaReorden();
+        long desde = 0;
+        long bytesDesde = 0;
+        for (int k = 0; k < llegadas.length; k++) {
+            if (k == cuarto) {
+                gestor.registrarTelemetriaLote(lote);
+                lote.limpiar();
+                desde = System.nanoTime();
+                bytesDesde = hilos.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+            int indice = llegadas[k];
+            if (omitir != null && omitir[indice]) {
+                continue;
+            }
+            // Lo de la ronda anterior se entrega antes de que el reloj pase a la nueva
+            long llegada = inicio + flujo.rondas[k] * 1000L;
+            if (llegada > reloj.millis()) {
+                gestor.registrarTelemetriaLote(lote);
+                lote.limpiar();
+                reloj.avanzarA(llegada);
+            }
+            int vehiculo = indice / lecturas + 1;
+            int secuencia = indice % lecturas;
+            lote.agregar(vehiculo, secuencia, inicio + secuencia * 1000L, 20 + indice * 37 % 50, 50f,
+                         secuencia % 10 == 0 ? 100 - secuencia * 0.02f : Float.NaN,
+                         20.5 + vehiculo % 100 * 1e-3 + secuencia * 1e-5, -100.4 + vehiculo / 100 % 100 * 1e-3);
+            if (k >= cuarto) {
+                corrida.lecturas++;
+            }
+            if (lote.estaLleno()) {
+                gestor.registrarTelemetriaLote(lote);
+                lote.limpiar();
+            }
+        }
+        gestor.registrarTelemetriaLote(lote);
+        corrida.nanos = System.nanoTime() - desde;
+        corrida.bytes = hilos.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesDesde;
+        return corrida;
+    }
+    
+    private static int vehiculosDistintos(GestorFlota esperada, GestorFlota obtenida, int vehiculos, int lecturas) {
+        SegmentoTelemetria a = new SegmentoTelemetria(lecturas);
+        SegmentoTelemetria b = new SegmentoTelemetria(lecturas);
+        int distintos = 0;
+        for (int id = 1; id <= vehiculos; id++) {
+            int cantidad = esperada.copiarHistorialTelemetria(id, lecturas, a);
+            boolean igual = cantidad == obtenida.copiarHistorialTelemetria(id, lecturas, b)
+                            && Math.abs(esperada.consultarVehiculo(id).getNivelBateria()
+                                        - obtenida.consultarVehiculo(id).getNivelBateria()) < 1e-3;
+            for (int i = 0; igual && i < cantidad; i++) {
+                igual = a.getTiempo(i) == b.getTiempo(i) && Math.abs(a.getNivelBateria(i) - b.getNivelBateria(i)) < 1e-3;
+            }
+            if (!igual) {
+                distintos++;
+            }
+        }
+        return distintos;
+    }
+    
+    private static long inversiones(GestorFlota gestor, int vehiculos, int lecturas) {
+        SegmentoTelemetria historial = new SegmentoTelemetria(2 * lecturas);
+        long inversiones = 0;
+        for (int id = 1; id <= vehiculos; id++) {
+            int cantidad = gestor.copiarHistorialTelemetria(id, 2 * lecturas, historial);
+            for (int i = 1; i < cantidad; i++) {
+                if (historial.getTiempo(i) < historial.getTiempo(i - 1)) {
+                    inversiones++;
+                }
+            }
+        }
+        return inversiones;
+    }
+    
+    /** Hueco que no llega, dispositivo reiniciado, lecturas sin secuencia, ventana llena y reloj adelantado */
+    private static boolean probarCasosReorden(java.io.PrintStream salida) {
+        long inicio = System.currentTimeMillis();
+        RelojVirtual reloj = new RelojVirtual(inicio);
+        GestorFlota gestor = new GestorFlota(64, RetencionTelemetria.porDefecto(), reloj);
+        for (int i = 0; i < 5; i++) {
+            gestor.crearVehiculo("moto", "Sintetico", 10.0f);
+        }
+        ReordenTelemetria reorden = new ReordenTelemetria(2_000, 4);
+        gestor.activarReorden(reorden, false);
+        LoteTelemetria lote = new LoteTelemetria(128);
+        
+        lote.agregar(1, 0, inicio, 10f, 40f, Float.NaN, 20.5, -100.4);
+        lote.agregar(1, 2, inicio + 2_000, 10f, 40f, Float.NaN, 20.5, -100.4);
+        int registradas = gestor.registrarTelemetriaLote(lote);
+        reloj.avanzarA(inicio + 1_999);
+        int antes = gestor.liberarReordenVencidas();
+        reloj.avanzarA(inicio + 2_000);
+        int despues = gestor.liberarReordenVencidas();
+        boolean correcto = verificar(salida, "tras un hueco la lectura espera y sale cuando el vehiculo deja de mandar",
+                                     registradas == 1 && antes == 0 && despues == 1);
+        
+        lote.limpiar();
+        for (int s = 0; s < 70; s++) {
+            lote.agregar(2, s, inicio + s * 1000L, 10f, 40f, Float.NaN, 20.5, -100.4);
+        }
+        lote.agregar(2, 0, inicio + 200_000, 10f, 40f, Float.NaN, 20.5, -100.4);
+        registradas = gestor.registrarTelemetriaLote(lote);
+        correcto &= verificar(salida, "un dispositivo reiniciado vuelve a empezar su secuencia sin perder lecturas",
+                              registradas == 71 && reorden.getReinicios() == 1 && reorden.getDuplicadas() == 0);
+        
+        // La marca no pasa de la hora del servidor: el reloj llega hasta la lectura mas nueva
+        reloj.avanzarA(inicio + 2_500);
+        lote.limpiar();
+        lote.agregar(3, inicio, 10f, 40f, 20.5, -100.4);
+        lote.agregar(3, inicio + 1_000, 10f, 40f, 20.5, -100.4);
+        lote.agregar(3, inicio + 500, 10f, 40f, 20.5, -100.4);
+        lote.agregar(3, inicio + 2_500, 10f, 40f, 20.5, -100.4);
+        registradas = gestor.registrarTelemetriaLote(lote);
+        SegmentoTelemetria historial = new SegmentoTelemetria(8);
+        int cantidad = gestor.copiarHistorialTelemetria(3, 8, historial);
+        correcto &= verificar(salida, "sin secuencia cada lectura espera a la marca y sale en orden",
+                              registradas == 2 && cantidad == 2 && historial.getTiempo(0) == inicio
+                              && historial.getTiempo(1) == inicio + 500);
+        
+        // Secuencias salteadas: ninguna es la siguiente de la anterior
+        lote.limpiar();
+        lote.agregar(4, 0, inicio, 10f, 40f, Float.NaN, 20.5, -100.4);
+        for (int s = 0; s < 6; s++) {
+            lote.agregar(4, 2 + 2 * s, inicio + (s + 1) * 100L, 10f, 40f, Float.NaN, 20.5, -100.4);
+        }
+        lote.agregar(4, 1, inicio + 50, 10f, 40f, Float.NaN, 20.5, -100.4);
+        registradas = gestor.registrarTelemetriaLote(lote);
+        correcto &= verificar(salida, "con la ventana llena sale la mas antigua y lo anterior a ella es tardio",
+                              registradas == 3 && reorden.getForzadas() == 2 && reorden.getTardias() == 1);
+        
+        // Una trama con el reloj del dispositivo un dia adelantado y la misma secuencia reenviada bien;
+        // despues una adelantada un minuto, dentro del margen, seguida de una anterior a ella
+        lote.limpiar();
+        lote.agregar(5, 0, inicio + 1_000, 10f, 40f, Float.NaN, 20.5, -100.4);
+        lote.agregar(5, 1, inicio + 86_400_000L, 10f, 40f, Float.NaN, 20.5, -100.4);
+        lote.agregar(5, 1, inicio + 1_500, 10f, 40f, Float.NaN, 20.5, -100.4);
+        lote.agregar(5, 2, inicio + 2_000, 10f, 40f, Float.NaN, 20.5, -100.4);
+        lote.agregar(5, 3, reloj.millis() + 60_000, 10f, 40f, Float.NaN, 20.5, -100.4);
+        lote.agregar(5, 4, inicio + 2_500, 10f, 40f, Float.NaN, 20.5, -100.4);
+        registradas = gestor.registrarTelemetriaLote(lote);
+        cantidad = gestor.copiarHistorialTelemetria(5, 8, historial);
+        correcto &= verificar(salida, "una trama adelantada un dia se descarta y no deja tardias a las siguientes",
+                              registradas == 5 && cantidad == 5 && reorden.getAdelantadas() == 1
+                              && reorden.getTardias() == 1 && reorden.getDuplicadas() == 0
+                              && historial.getTiempo(1) == inicio + 1_500);
+        return correcto;
+    }
+    
+    // ====== Informes ======
+    
+    /**
+     * Escribe en una bitacora temporal un mes de lecturas de la flota (cada
+     * vehiculo cada tantos minutos, moviendose al azar) y exporta informes de
+     * ese mes: la telemetria completa en CSV y en JSON, una semana de diez
+     * vehiculos, los recorridos con uno y con varios hilos y el avance de las
+     * rutas. Mide filas y MB por segundo y lo que asignan todos los hilos: con
+     * memoria plana, el mes completo asigna casi lo mismo que sus primeros 16 MB
+     * (o su primer cuarto, si es mas chico).
+     * Los km se comparan con los calculados lectura a lectura al escribir la
+     * bitacora.
+     */
+    private static boolean medirInformes(int lecturas, int vehiculos, int hilos) {
+        System.out.printf("=== Informes: %,d lecturas de %,d vehiculos en 30 dias, %d hilos ===%n",
+                          lecturas, vehiculos, hilos);
+        java.io.PrintStream salida = System.out;
+        if (lecturas < vehiculos * 10) {
+            throw new IllegalArgumentException("Al menos 10 lecturas por vehiculo");
+        }
+        // La cancelada se corta en su primer cuarto: con menos de unos 6 bloques
+        // no queda ninguno por escribir cuando se cancela
+        if (lecturas < 100_000) {
+            throw new IllegalArgumentException("Al menos 100,000 lecturas");
+        }
+        java.nio.file.Path directorio;
+        try {
+            directorio = java.nio.file.Files.createTempDirectory("sigefve-informes");
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        try (BitacoraTelemetria bitacora = new BitacoraTelemetria(
+                 directorio, BitacoraTelemetria.REGISTROS_POR_SEGMENTO_POR_DEFECTO, PoliticaSincronizacion.NUNCA, 0)) {
+            long inicio = java.time.LocalDate.of(2026, 9, 1).atStartOfDay(java.time.ZoneId.systemDefault())
+                                             .toInstant().toEpochMilli();
+            long mes = 30L * 24 * 3_600_000L;
+            long escrituraInicio = System.nanoTime();
+            MesInformes esperado = escribirMes(bitacora, lecturas, vehiculos, inicio, mes);
+            double segundosEscritura = (System.nanoTime() - escrituraInicio) / 1e9;
+            salida.printf("Bitacora: %,.0f MB escritos en %.1f s%n",
+                          (double) lecturas * BitacoraTelemetria.TAMANO_REGISTRO / 1e6, segundosEscritura);
+            
+            GestorFlota gestor = crearFlotaSilenciosa(vehiculos, 16);
+            gestor.activarPersistencia(bitacora);
+            int[] entregasEsperadas = crearRutasInforme(gestor, vehiculos, inicio, mes);
+            
+            int[] diez = new int[10];
+            for (int i = 0; i < diez.length; i++) {
+                diez[i] = 1 + i;
+            }
+            long semanaDesde = inicio + 7L * 24 * 3_600_000L;
+            long semanaHasta = semanaDesde + 7L * 24 * 3_600_000L - 1;
+            FiltroInforme todo = new FiltroInforme(inicio, inicio + mes, null);
+            
+            salida.printf("%-34s %14s %10s %8s %14s %10s %14s%n", "", "filas", "MB", "s", "filas/s", "MB/s",
+                          "MB asignados");
+            MotorInformes motor = new MotorInformes(gestor, hilos);
+            MotorInformes unHilo = new MotorInformes(gestor, 1);
+            CorridaInforme csv = exportarInforme(salida, motor, "Telemetria CSV, mes", TipoInforme.TELEMETRIA,
+                                                 todo, FormatoInforme.CSV, false, 0);
+            CorridaInforme json = exportarInforme(salida, motor, "Telemetria JSON, mes", TipoInforme.TELEMETRIA,
+                                                  todo, FormatoInforme.JSON, false, 0);
+            CorridaInforme semana = exportarInforme(salida, motor, "Telemetria CSV, semana, 10 veh.",
+                                                    TipoInforme.TELEMETRIA,
+                                                    new FiltroInforme(semanaDesde, semanaHasta, diez),
+                                                    FormatoInforme.CSV, false, 0);
+            CorridaInforme recorridosUno = exportarInforme(salida, unHilo, "Recorridos CSV, mes, 1 hilo",
+                                                           TipoInforme.RECORRIDOS, todo, FormatoInforme.CSV, true, 0);
+            CorridaInforme recorridos = exportarInforme(salida, motor, "Recorridos CSV, mes, " + hilos + " hilos",
+                                                        TipoInforme.RECORRIDOS, todo, FormatoInforme.CSV, true, 0);
+            CorridaInforme rutas = exportarInforme(salida, motor, "Rutas CSV, mes", TipoInforme.RUTAS, todo,
+                                                   FormatoInforme.CSV, true, 0);
+            // Con pocas lecturas el CSV completo puede pesar menos de 16 MB
+            long corte = Math.min(16L << 20, csv.bytes / 4);
+            CorridaInforme cancelada = exportarInforme(salida, motor, "Telemetria CSV, cancelada", TipoInforme.TELEMETRIA,
+                                                       todo, FormatoInforme.CSV, false, corte);
+            salida.printf("Cancelada tras %.1f MB: exportar volvio %.1f ms despues de cancelar%n",
+                          corte / (double) (1 << 20), cancelada.msTrasCancelar);
+            unHilo.close();
+            motor.close();
+            
+            boolean correcto = verificar(salida, "la telemetria del mes sale completa en CSV y en JSON",
+                                         csv.exportacion.isTerminada() && csv.exportacion.getFilas() == lecturas
+                                         && csv.lineas == lecturas + 1 && json.exportacion.getFilas() == lecturas
+                                         && json.texto.startsWith("{\"desde\":" + inicio + ",")
+                                         && json.fin.endsWith("],\"total\":" + lecturas + "}"));
+            correcto &= verificar(salida, "el filtro por rango y vehiculos deja solo sus lecturas",
+                                  semana.exportacion.getFilas() == esperado.contarSemana(semanaDesde, semanaHasta)
+                                  && semana.lineas == semana.exportacion.getFilas() + 1);
+            correcto &= verificar(salida, "los km por vehiculo dan lo mismo con 1 y con " + hilos
+                                  + " hilos, y que lectura a lectura",
+                                  recorridosUno.texto.equals(recorridos.texto)
+                                  && coincidenKilometros(recorridos.texto, esperado, vehiculos));
+            correcto &= verificar(salida, "las rutas cuentan sus entregas del rango sin leer la bitacora",
+                                  coincidenRutas(rutas.texto, entregasEsperadas)
+                                  && rutas.exportacion.getLecturas() == 0);
+            // Cada bloque deja algunos objetos pequenos; por lectura no se asigna nada. Los espacios
+            // de bloque crecen hasta el texto de un bloque cuando les toca uno mas grande, y eso
+            // puede pasar despues de cancelar: al doblar, cada uno asigna a lo mas 4 veces ese texto
+            long bloques = lecturas / MotorInformes.LECTURAS_POR_BLOQUE + 1;
+            long espacios = Math.min(bloques, (long) hilos * MotorInformes.BLOQUES_EN_VUELO_POR_HILO);
+            long crecimiento = espacios * 4 * (csv.bytes / bloques);
+            correcto &= verificar(salida, "la memoria no crece con el informe (el mes completo asigna lo mismo "
+                                  + "que el informe cancelado mas 1 KB por bloque y lo que aun crecen sus "
+                                  + "espacios de bloque, menos de 64 MB)",
+                                  csv.asignados < cancelada.asignados + (1 << 20) + bloques * 1024 + crecimiento
+                                  && csv.asignados < 64L << 20);
+            correcto &= verificar(salida, "cancelar corta la exportacion en menos de 500 ms",
+                                  cancelada.exportacion.isCancelada() && !cancelada.exportacion.isTerminada()
+                                  && cancelada.bytes < csv.bytes / 2 && cancelada.msTrasCancelar < 500);
+            correcto &= probarInformeEnMemoria(salida);
+            correcto &= probarDescargaInforme(salida);
+            return correcto;
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } finally {
+            borrarDirectorio(directorio);
+        }
+    }
+    
+    /** Lo que se escribio en la bitacora, para comparar con los informes */
+    private static final class MesInformes {
+        double[] kilometros;
+        int[] porVehiculo;
+        // Lecturas de los vehiculos 1 a 10 por hora desde el inicio del mes
+        int[][] diezPorHora;
+        long inicio;
+        
+        long contarSemana(long desde, long hasta) {
+            long total = 0;
+            for (int[] horas : diezPorHora) {
+                for (int h = (int) ((desde - inicio) / 3_600_000L); h <= (hasta - inicio) / 3_600_000L; h++) {
+                    total += horas[h];
+                }
+            }
+            return total;
+        }
+    }
+    
+    private static final class CorridaInforme {
+        ExportacionInforme exportacion;
+        long bytes;
+        long lineas;
+        long asignados;
+        double msTrasCancelar;
+        // Todo el texto si se pidio guardarlo, si no los primeros bytes
+        String texto;
+        String fin;
+    }
+    
+    private static MesInformes escribirMes(BitacoraTelemetria bitacora, int lecturas, int vehiculos,
+                                           long inicio, long mes) {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(24);
+        MesInformes mesEscrito = new MesInformes();
+        mesEscrito.inicio = inicio;
+        mesEscrito.kilometros = new double[vehiculos + 1];
+        mesEscrito.porVehiculo = new int[vehiculos + 1];
+        mesEscrito.diezPorHora = new int[Math.min(10, vehiculos)][(int) (mes / 3_600_000L) + 1];
+        double[] latitudes = new double[vehiculos + 1];
+        double[] longitudes = new double[vehiculos + 1];
+        float[] velocidades = new float[vehiculos + 1];
+        long[] tiempos = new long[vehiculos + 1];
+        for (int v = 1; v <= vehiculos; v++) {
+            latitudes[v] = 20.60 + random.nextDouble() * 0.1;
+            longitudes[v] = -100.40 + random.nextDouble() * 0.1;
+        }
+        int rondas = lecturas / vehiculos;
+        long paso = mes / rondas;
+        for (int i = 0; i < lecturas; i++) {
+            int v = 1 + i % vehiculos;
+            long tiempo = inicio + (i / vehiculos) * paso + (long) (v - 1) * paso / vehiculos;
+            float velocidad = (float) (random.nextDouble() * 60);
+            double latitud = latitudes[v] + (random.nextDouble() - 0.5) * 0.01;
+            double longitud = longitudes[v] + (random.nextDouble() - 0.5) * 0.01;
+            if (mesEscrito.porVehiculo[v] > 0) {
+                mesEscrito.kilometros[v] += BufferTelemetriaVehiculo.recorridoKm(
+                    tiempo - tiempos[v], velocidades[v], latitudes[v], longitudes[v], velocidad, latitud, longitud);
+            }
+            bitacora.agregar(i + 1, tiempo, v, velocidad, 40 + (float) random.nextDouble() * 30,
+                             100 - 90f * i / lecturas, latitud, longitud);
+            mesEscrito.porVehiculo[v]++;
+            if (v <= mesEscrito.diezPorHora.length) {
+                mesEscrito.diezPorHora[v - 1][(int) ((tiempo - inicio) / 3_600_000L)]++;
+            }
+            latitudes[v] = latitud;
+            longitudes[v] = longitud;
+            velocidades[v] = velocidad;
+            tiempos[v] = tiempo;
+        }
+        return mesEscrito;
+    }
+    
+    /**
+     * Una ruta por cada 50 vehiculos con 20 entregas repartidas en el mes y
+     * la mitad del mes siguiente (esas quedan fuera del rango)
+     * @return entregas completadas, fallidas y pendientes dentro del rango
+     */
+    private static int[] crearRutasInforme(GestorFlota gestor, int vehiculos, long inicio, long mes) {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(5);
+        int[] esperadas = new int[3];
+        for (int v = 1; v <= vehiculos; v += 50) {
+            Ruta ruta = gestor.crearRuta("Centro, bodega " + v, "Norte \"" + v + "\"", 12.5f);
+            ruta.setVehiculoId(v);
+            for (int e = 0; e < 20; e++) {
+                long hora = inicio + (long) (random.nextDouble() * mes * 1.5);
+                Entrega entrega = new Entrega(e + 1, "Calle " + e, java.time.LocalDateTime.ofInstant(
+                    java.time.Instant.ofEpochMilli(hora), gestor.getReloj().getZone()));
+                int estado = random.nextInt(3);
+                entrega.setEstado(estado == 0 ? Entrega.COMPLETADA : estado == 1 ? "fallida" : "pendiente");
+                gestor.agregarEntrega(ruta.getId(), entrega);
+                if (hora <= inicio + mes) {
+                    esperadas[estado]++;
+                }
+            }
+        }
+        return esperadas;
+    }
+    
+    private static CorridaInforme exportarInforme(java.io.PrintStream salida, MotorInformes motor, String nombre,
+                                                  TipoInforme tipo, FiltroInforme filtro, FormatoInforme formato,
+                                                  boolean guardarTexto, long cancelarTras) {
+        CorridaInforme corrida = new CorridaInforme();
+        corrida.exportacion = new ExportacionInforme(tipo, filtro, formato);
+        long[] cancelada = {0};
+        java.io.ByteArrayOutputStream inicio = new java.io.ByteArrayOutputStream();
+        byte[] fin = new byte[64];
+        long[] lineas = {0};
+        java.io.OutputStream destino = new java.io.OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] bytes, int desde, int cantidad) {
+                for (int i = desde; i < desde + cantidad; i++) {
+                    if (bytes[i] == '\n') {
+                        lineas[0]++;
+                    }
+                }
+                if (guardarTexto || inicio.size() < 256) {
+                    inicio.write(bytes, desde, guardarTexto ? cantidad : Math.min(cantidad, 256));
+                }
+                int guardar = Math.min(cantidad, fin.length);
+                System.arraycopy(fin, guardar, fin, 0, fin.length - guardar);
+                System.arraycopy(bytes, desde + cantidad - guardar, fin, fin.length - guardar, guardar);
+                corrida.bytes += cantidad;
+                if (cancelarTras > 0 && corrida.bytes >= cancelarTras && cancelada[0] == 0) {
+                    corrida.exportacion.cancelar();
+                    cancelada[0] = System.nanoTime();
+                }
+            }
+        };
+        com.sun.management.ThreadMXBean hilos =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        java.util.Map<Long, Long> antes = asignadosPorHilo(hilos);
+        long comienzo = System.nanoTime();
+        try {
+            motor.exportar(corrida.exportacion, destino);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        long termino = System.nanoTime();
+        for (java.util.Map.Entry<Long, Long> hilo : asignadosPorHilo(hilos).entrySet()) {
+            corrida.asignados += hilo.getValue() - antes.getOrDefault(hilo.getKey(), 0L);
+        }
+        corrida.lineas = lineas[0];
+        corrida.texto = inicio.toString(java.nio.charset.StandardCharsets.UTF_8);
+        corrida.fin = new String(fin, java.nio.charset.StandardCharsets.UTF_8);
+        corrida.msTrasCancelar = cancelada[0] > 0 ? (termino - cancelada[0]) / 1e6 : 0;
+        double segundos = (termino - comienzo) / 1e9;
+        salida.printf("%-34s %,14d %,10.1f %8.2f %,14.0f %,10.1f %,14.1f%n", nombre, corrida.exportacion.getFilas(),
+                      corrida.bytes / 1e6, segundos, corrida.exportacion.getLecturas() / segundos,
+                      corrida.bytes / 1e6 / segundos, corrida.asignados / 1e6);
+        return corrida;
+    }
+    
+    private static java.util.Map<Long, Long> asignadosPorHilo(com.sun.management.ThreadMXBean hilos) {
+        long[] ids = hilos.getAllThreadIds();
+        long[] bytes = hilos.getThreadAllocatedBytes(ids);
+        java.util.Map<Long, Long> asignados = new java.util.HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                asignados.put(ids[i], bytes[i]);
+            }
+        }
+        return asignados;
+    }
+    
+    private static boolean coincidenKilometros(String csv, MesInformes esperado, int vehiculos) {
+        String[] lineas = csv.split("\r\n");
+        if (lineas.length != vehiculos + 1) {
+            return false;
+        }
+        for (int i = 1; i < lineas.length; i++) {
+            String[] campos = lineas[i].split(",");
+            int v = Integer.parseInt(campos[0]);
+            double km = Double.parseDouble(campos[2]);
+            if (Integer.parseInt(campos[1]) != esperado.porVehiculo[v]
+                    || Math.abs(km - esperado.kilometros[v]) > 0.001 + 1e-9 * esperado.kilometros[v]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean coincidenRutas(String csv, int[] entregasEsperadas) {
+        int[] contadas = new int[3];
+        String[] lineas = csv.split("\r\n");
+        boolean columnas = lineas[0].equals("rutaId,vehiculoId,origen,destino,distancia,entregas,completadas,fallidas,"
+                                            + "pendientes");
+        for (int i = 1; i < lineas.length; i++) {
+            // El destino va entre comillas porque las lleva: Norte "n" -> "Norte ""n"""
+            String linea = lineas[i];
+            String[] campos = linea.substring(linea.lastIndexOf('"') + 2).split(",");
+            contadas[0] += Integer.parseInt(campos[2]);
+            contadas[1] += Integer.parseInt(campos[3]);
+            contadas[2] += Integer.parseInt(campos[4]);
+        }
+        return columnas && java.util.Arrays.equals(contadas, entregasEsperadas) && lineas.length > 1;
+    }
+    
+    /**
+     * Sin bitacora el informe sale de las lecturas crudas en memoria
+     */
+    private static boolean probarInformeEnMemoria(java.io.PrintStream salida) {
+        GestorFlota gestor = crearFlotaSilenciosa(2, 64);
+        long ahora = gestor.getReloj().millis();
+        for (int i = 0; i < 30; i++) {
+            gestor.registrarLectura(1 + i % 2, ahora - 29_000 + i * 1_000, 30, 45, 20.6 + i * 1e-4, -100.4);
+        }
+        ExportacionInforme exportacion = new ExportacionInforme(
+            TipoInforme.TELEMETRIA, new FiltroInforme(ahora - 20_000, ahora, new int[] {1}),
+            FormatoInforme.CSV);
+        java.io.ByteArrayOutputStream texto = new java.io.ByteArrayOutputStream();
+        try (MotorInformes motor = new MotorInformes(gestor, 2)) {
+            motor.exportar(exportacion, texto);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        String[] lineas = texto.toString(java.nio.charset.StandardCharsets.UTF_8).split("\r\n");
+        return verificar(salida, "sin bitacora exporta las lecturas crudas que quedan en memoria",
+                         exportacion.isTerminada() && exportacion.getFilas() == 10 && lineas.length == 11
+                         && lineas[1].split(",")[1].equals("1"));
+    }
+    
+    /**
+     * Por la API: el enlace de descarga lleva un token de descarga de un solo
+     * uso, el de sesion en la URL no sirve y un mecanico no exporta
+     */
+    private static boolean probarDescargaInforme(java.io.PrintStream salida) {
+        GestorFlota gestor = crearFlotaSilenciosa(2, 64);
+        RegistroUsuarios usuarios = new RegistroUsuarios();
+        usuarios.registrar("Admin", "admin@sigefve.mx", "admin123", RegistroUsuarios.ROL_ADMINISTRADOR);
+        usuarios.registrar("Taller", "taller@sigefve.mx", "taller123", RegistroUsuarios.ROL_AUTORREGISTRO);
+        String administrador = usuarios.iniciarSesion("admin@sigefve.mx", "admin123").getToken();
+        String mecanico = usuarios.iniciarSesion("taller@sigefve.mx", "taller123").getToken();
+        try (ServidorApi servidor = new ServidorApi(gestor, usuarios,
+                new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0))) {
+            servidor.iniciar();
+            java.net.http.HttpClient cliente = java.net.http.HttpClient.newHttpClient();
+            String base = "http://127.0.0.1:" + servidor.getPuerto();
+            String informe = base + "/api/informes/telemetria?formato=csv";
+            java.net.http.HttpRequest.BodyPublisher vacio = java.net.http.HttpRequest.BodyPublishers.noBody();
+            
+            int conSesionEnUrl = cliente.send(
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(informe + "&token=" + administrador)).build(),
+                java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode();
+            int descargaMecanico = cliente.send(
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/api/informes/descarga"))
+                    .header("Authorization", "Bearer " + mecanico).POST(vacio).build(),
+                java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode();
+            int informeMecanico = cliente.send(
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(informe))
+                    .header("Authorization", "Bearer " + mecanico).build(),
+                java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode();
+            String respuesta = cliente.send(
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/api/informes/descarga"))
+                    .header("Authorization", "Bearer " + administrador).POST(vacio).build(),
+                java.net.http.HttpResponse.BodyHandlers.ofString()).body();
+            String descarga = ServidorApi.leerObjetoPlano(respuesta).get("descarga");
+            java.net.URI enlace = java.net.URI.create(informe + "&descarga=" + descarga);
+            int primera = cliente.send(java.net.http.HttpRequest.newBuilder(enlace).build(),
+                                       java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode();
+            int segunda = cliente.send(java.net.http.HttpRequest.newBuilder(enlace).build(),
+                                       java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode();
+            salida.printf("Descarga por la API: sesion en la URL %d, mecanico %d/%d, enlace %d y reusado %d%n",
+                          conSesionEnUrl, descargaMecanico, informeMecanico, primera, segunda);
+            return verificar(salida, "el enlace de descarga sirve una vez, sin el token de sesion y solo a quien exporta",
+                             conSesionEnUrl == 401 && descargaMecanico == 403 && informeMecanico == 403
+                             && primera == 200 && segunda == 401 && !descarga.equals(administrador));
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    // ====== Utilidades ======
+    
+    private static long heapUsado() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static void dormir(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static double decimal(String[] args, int posicion, double porDefecto) {
+        return args.length > posicion ? Double.parseDouble(args[posicion]) : porDefecto;
+    }
+    
+    private static int entero(String[] args, int posicion, int porDefecto) {
+        return args.length > posicion ? Integer.parseInt(args[posicion].replace("_", "")) : porDefecto;
+    }
+}
@@ -0,0 +1,510 @@
+// ============================================================================
+// PERSISTENCIA DE TELEMETRIA
+// ============================================================================
+
+/**
+ * Cuando fuerza la bitacora sus escrituras a disco (fsync)
+ */
+enum PoliticaSincronizacion {
+    NUNCA,             // el sistema operativo decide cuando escribir las paginas
+    AL_ROTAR,          // al cerrar cada segmento
+    CADA_N_REGISTROS,  // cada N registros (commit en grupo)
+    PERIODICA          // cada N milisegundos desde un hilo aparte
+}
+
+/**
+ * Recibe los registros de la bitacora durante la reproduccion, sin crear objetos
+ */
+interface LectorRegistrosTelemetria {
+    void leer(int id, long tiempoMillis, int vehiculoId, float velocidad, float temperaturaMotor,
+              float nivelBateria, double latitud, double longitud);
+}
+
+/**
+ * Resultado de reproducir la bitacora al arrancar
+ */
+class ResumenReproduccion {
+    private long registros;
+    private int segmentos;
+    private long registrosDescartados;
+    private int ultimoId;
+    private long nanos;
+    
+    public ResumenReproduccion(long registros, int segmentos, long registrosDescartados, int ultimoId, long nanos) {
+        this.registros = registros;
+        this.segmentos = segmentos;
+        this.registrosDescartados = registrosDescartados;
+        this.ultimoId = ultimoId;
+        this.nanos = nanos;
+    }
+    
+    public long getRegistros() { return registros; }
+    public int getSegmentos() { return segmentos; }
+    public long getRegistrosDescartados() { return registrosDescartados; }
+    public int getUltimoId() { return ultimoId; }
+    public double getMillis() { return nanos / 1e6; }
+    
+    @Override
+    public String toString() {
+        return String.format("Reproduccion[registros=%d, segmentos=%d, descartados=%d, %.1f ms]",
+                             registros, segmentos, registrosDescartados, getMillis());
+    }
+}
+
+/**
+ * Bitacora binaria de solo anexado para la telemetria.
+ *
+ * Cada lectura ocupa un registro de ancho fijo con su suma CRC32C, dentro de
+ * segmentos de tamano fijo mapeados en memoria (MappedByteBuffer). Al llenarse
+ * un segmento se abre el siguiente. Un registro con la suma incorrecta marca
+ * una escritura rota: la reproduccion se detiene ahi y el escritor continua
+ * desde ese punto.
+ *
+ * Formato del segmento: cabecera de 16 bytes (magico, version, tamano de
+ * registro, registros por segmento) seguida de registros de 48 bytes:
+ * id, tiempo, vehiculo, velocidad, temperatura, bateria, lat, lon, crc.
+ */
+class BitacoraTelemetria implements java.io.Closeable {
+    static final int MAGICO = 0x5347544C; // "SGTL"
+    static final int VERSION = 1;
+    static final int TAMANO_CABECERA = 16;
+    static final int TAMANO_REGISTRO = 48;
+    static final int BYTES_CON_SUMA = 44;
+    
+    /** 1M registros = 48 MB por segmento */
+    public static final int REGISTROS_POR_SEGMENTO_POR_DEFECTO = 1 << 20;
+    
+    private java.nio.file.Path directorio;
+    private int registrosPorSegmento;
+    private PoliticaSincronizacion politica;
+    private long parametroPolitica;
+    
+    private long numeroSegmento;
+    private java.nio.channels.FileChannel canal;
+    private java.nio.MappedByteBuffer mapa;
+    private java.nio.ByteBuffer vistaSuma;
+    private int capacidadSegmento;
+    private int registrosEnSegmento;
+    private int primerRegistroSucio;
+    private java.util.zip.CRC32C crc;
+    private java.util.concurrent.ScheduledExecutorService sincronizador;
+    private long registrosEscritos;
+    private boolean cerrada;
+    
+    public BitacoraTelemetria(java.nio.file.Path directorio) throws java.io.IOException {
+        this(directorio, REGISTROS_POR_SEGMENTO_POR_DEFECTO, PoliticaSincronizacion.AL_ROTAR, 0);
+    }
+    
+    /**
+     * @param parametroPolitica registros entre fsync para CADA_N_REGISTROS,
+     *                          milisegundos entre fsync para PERIODICA
+     */
+    public BitacoraTelemetria(java.nio.file.Path directorio, int registrosPorSegmento,
+                              PoliticaSincronizacion politica, long parametroPolitica) throws java.io.IOException {
+        if (registrosPorSegmento <= 0) {
+            throw new IllegalArgumentException("Registros por segmento no validos: " + registrosPorSegmento);
+        }
+        if ((politica == PoliticaSincronizacion.CADA_N_REGISTROS || politica == PoliticaSincronizacion.PERIODICA)
+                && parametroPolitica <= 0) {
+            throw new IllegalArgumentException("La politica " + politica + " requiere un parametro positivo");
+        }
+        this.directorio = directorio;
+        this.registrosPorSegmento = registrosPorSegmento;
+        this.politica = politica;
+        this.parametroPolitica = parametroPolitica;
+        this.crc = new java.util.zip.CRC32C();
+        java.nio.file.Files.createDirectories(directorio);
+        
+        java.util.List<java.nio.file.Path> segmentos = listarSegmentos();
+        if (segmentos.isEmpty()) {
+            abrirSegmentoNuevo(1);
+        } else {
+            java.nio.file.Path ultimo = segmentos.get(segmentos.size() - 1);
+            abrirSegmentoExistente(numeroDeSegmento(ultimo), ultimo);
+        }
+        
+        if (politica == PoliticaSincronizacion.PERIODICA) {
+            sincronizador = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(tarea -> {
+                Thread hilo = new Thread(tarea, "bitacora-fsync");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            sincronizador.scheduleAtFixedRate(this::sincronizar, parametroPolitica, parametroPolitica,
+                                              java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // ====== Escritura ======
+    
+    public synchronized void agregar(int id, long tiempoMillis, int vehiculoId, float velocidad,
+                                     float temperaturaMotor, float nivelBateria, double latitud, double longitud) {
+        escribirRegistro(id, tiempoMillis, vehiculoId, velocidad, temperaturaMotor, nivelBateria, latitud, longitud);
+    }
+    
+    /**
+     * Anexa las lecturas del lote indicadas en orden[desde, hasta) tomando el candado una vez
+     */
+    public synchronized void agregarLote(LoteTelemetria lote, int[] orden, int desde, int hasta,
+                                         int primerId, float[] baterias) {
+        for (int k = desde; k < hasta; k++) {
+            int i = orden[k];
+            escribirRegistro(primerId + (k - desde), lote.getTiempo(i), lote.getVehiculoId(i), lote.getVelocidad(i),
+                             lote.getTemperaturaMotor(i), baterias[i], lote.getLatitud(i), lote.getLongitud(i));
+        }
+    }
+    
+    private void escribirRegistro(int id, long tiempoMillis, int vehiculoId, float velocidad,
+                                  float temperaturaMotor, float nivelBateria, double latitud, double longitud) {
+        if (cerrada) {
+            throw new IllegalStateException("La bitacora esta cerrada");
+        }
+        if (registrosEnSegmento == capacidadSegmento) {
+            rotar();
+        }
+        int p = TAMANO_CABECERA + registrosEnSegmento * TAMANO_REGISTRO;
+        mapa.putInt(p, id);
+        mapa.putLong(p + 4, tiempoMillis);
+        mapa.putInt(p + 12, vehiculoId);
+        mapa.putFloat(p + 16, velocidad);
+        mapa.putFloat(p + 20, temperaturaMotor);
+        mapa.putFloat(p + 24, nivelBateria);
+        mapa.putDouble(p + 28, latitud);
+        mapa.putDouble(p + 36, longitud);
+        mapa.putInt(p + BYTES_CON_SUMA, suma(vistaSuma, p));
+        registrosEnSegmento++;
+        registrosEscritos++;
+        
+        if (politica == PoliticaSincronizacion.CADA_N_REGISTROS
+                && registrosEnSegmento - primerRegistroSucio >= parametroPolitica) {
+            forzar();
+        }
+    }
+    
+    /**
+     * Fuerza a disco los registros escritos desde el ultimo fsync
+     */
+    public synchronized void sincronizar() {
+        if (!cerrada) {
+            forzar();
+        }
+    }
+    
+    private void forzar() {
+        if (registrosEnSegmento > primerRegistroSucio) {
+            int desde = TAMANO_CABECERA + primerRegistroSucio * TAMANO_REGISTRO;
+            mapa.force(desde, (registrosEnSegmento - primerRegistroSucio) * TAMANO_REGISTRO);
+            primerRegistroSucio = registrosEnSegmento;
+        }
+    }
+    
+    private void rotar() {
+        if (politica != PoliticaSincronizacion.NUNCA) {
+            forzar();
+        }
+        try {
+            canal.close();
+            abrirSegmentoNuevo(numeroSegmento + 1);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("No se pudo rotar la bitacora en " + directorio, e);
+        }
+    }
+    
+    // ====== Reproduccion ======
+    
+    /**
+     * Recorre todos los segmentos en orden y entrega cada registro valido al lector.
+     * Se llama al arrancar, antes de empezar a anexar.
+     */
+    public synchronized ResumenReproduccion reproducir(LectorRegistrosTelemetria lector) throws java.io.IOException {
+        long inicio = System.nanoTime();
+        long registros = 0;
+        long descartados = 0;
+        int ultimoId = 0;
+        java.util.zip.CRC32C sumaLectura = new java.util.zip.CRC32C();
+        java.util.List<java.nio.file.Path> segmentos = listarSegmentos();
+        
+        for (java.nio.file.Path archivo : segmentos) {
+            try (java.nio.channels.FileChannel lectura = java.nio.channels.FileChannel.open(
+                    archivo, java.nio.file.StandardOpenOption.READ)) {
+                java.nio.MappedByteBuffer datos = lectura.map(
+                    java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, lectura.size());
+                datos.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                int capacidad = leerCabecera(datos, datos.limit(), archivo);
+                int validos = contarValidos(datos, capacidad, sumaLectura);
+                if (validos < capacidad && numeroDeSegmento(archivo) != numeroSegmento) {
+                    // En un segmento ya rotado todo deberia ser valido
+                    descartados += capacidad - validos;
+                }
+                for (int r = 0; r < validos; r++) {
+                    int p = TAMANO_CABECERA + r * TAMANO_REGISTRO;
+                    int id = datos.getInt(p);
+                    lector.leer(id, datos.getLong(p + 4), datos.getInt(p + 12), datos.getFloat(p + 16),
+                                datos.getFloat(p + 20), datos.getFloat(p + 24), datos.getDouble(p + 28),
+                                datos.getDouble(p + 36));
+                    ultimoId = Math.max(ultimoId, id);
+                }
+                registros += validos;
+            }
+        }
+        return new ResumenReproduccion(registros, segmentos.size(), descartados, ultimoId, System.nanoTime() - inicio);
+    }
+    
+    // ====== Lectura por bloques ======
+    
+    /**
+     * Fija que registros ve un informe: todos los de los segmentos ya rotados
+     * y los escritos hasta ahora en el actual. Lo que se anexe despues no
+     * entra, asi el informe no persigue a la ingesta.
+     */
+    public synchronized CorteBitacora cortar() throws java.io.IOException {
+        java.util.List<java.nio.file.Path> segmentos = listarSegmentos();
+        java.nio.file.Path[] archivos = segmentos.toArray(new java.nio.file.Path[0]);
+        int[] registros = new int[archivos.length];
+        java.nio.ByteBuffer cabecera = java.nio.ByteBuffer.allocate(TAMANO_CABECERA).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        for (int s = 0; s < archivos.length; s++) {
+            if (numeroDeSegmento(archivos[s]) == numeroSegmento) {
+                registros[s] = registrosEnSegmento;
+                continue;
+            }
+            try (java.nio.channels.FileChannel lectura = java.nio.channels.FileChannel.open(
+                    archivos[s], java.nio.file.StandardOpenOption.READ)) {
+                cabecera.clear();
+                int leidos = 0;
+                while (leidos >= 0 && cabecera.hasRemaining()) {
+                    leidos = lectura.read(cabecera);
+                }
+                cabecera.flip();
+                registros[s] = leerCabecera(cabecera, lectura.size(), archivos[s]);
+            }
+        }
+        return new CorteBitacora(archivos, registros);
+    }
+    
+    // ====== Segmentos ======
+    
+    private void abrirSegmentoNuevo(long numero) throws java.io.IOException {
+        java.nio.file.Path archivo = directorio.resolve(nombreSegmento(numero));
+        canal = java.nio.channels.FileChannel.open(archivo,
+            java.nio.file.StandardOpenOption.CREATE_NEW,
+            java.nio.file.StandardOpenOption.READ,
+            java.nio.file.StandardOpenOption.WRITE);
+        long tamano = TAMANO_CABECERA + (long) registrosPorSegmento * TAMANO_REGISTRO;
+        mapear(tamano);
+        mapa.putInt(0, MAGICO);
+        mapa.putInt(4, VERSION);
+        mapa.putInt(8, TAMANO_REGISTRO);
+        mapa.putInt(12, registrosPorSegmento);
+        mapa.force(0, TAMANO_CABECERA);
+        numeroSegmento = numero;
+        capacidadSegmento = registrosPorSegmento;
+        registrosEnSegmento = 0;
+        primerRegistroSucio = 0;
+    }
+    
+    private void abrirSegmentoExistente(long numero, java.nio.file.Path archivo) throws java.io.IOException {
+        canal = java.nio.channels.FileChannel.open(archivo,
+            java.nio.file.StandardOpenOption.READ,
+            java.nio.file.StandardOpenOption.WRITE);
+        mapear(canal.size());
+        numeroSegmento = numero;
+        capacidadSegmento = leerCabecera(mapa, mapa.limit(), archivo);
+        registrosEnSegmento = contarValidos(mapa, capacidadSegmento, crc);
+        primerRegistroSucio = registrosEnSegmento;
+        
+        // Se limpia todo lo que quede tras el ultimo registro valido (escritura rota). Las
+        // paginas del mapa pueden llegar a disco en cualquier orden: tras un hueco de ceros
+        // puede haber registros viejos con suma correcta que no deben volver al anexar
+        int desde = TAMANO_CABECERA + registrosEnSegmento * TAMANO_REGISTRO;
+        int hasta = TAMANO_CABECERA + capacidadSegmento * TAMANO_REGISTRO;
+        int primeroSucio = -1;
+        int finSucio = -1;
+        for (int p = desde; p < hasta; p += TAMANO_REGISTRO) {
+            if (!registroEnCeros(mapa, p)) {
+                for (int b = 0; b < TAMANO_REGISTRO; b += 8) {
+                    mapa.putLong(p + b, 0L);
+                }
+                if (primeroSucio < 0) {
+                    primeroSucio = p;
+                }
+                finSucio = p + TAMANO_REGISTRO;
+            }
+        }
+        if (primeroSucio >= 0) {
+            mapa.force(primeroSucio, finSucio - primeroSucio);
+        }
+    }
+    
+    private static boolean registroEnCeros(java.nio.ByteBuffer datos, int p) {
+        for (int b = 0; b < TAMANO_REGISTRO; b += 8) {
+            if (datos.getLong(p + b) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void mapear(long tamano) throws java.io.IOException {
+        mapa = canal.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, tamano);
+        mapa.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        vistaSuma = mapa.duplicate();
+    }
+    
+    private static int leerCabecera(java.nio.ByteBuffer datos, long tamano, java.nio.file.Path archivo)
+            throws java.io.IOException {
+        if (datos.limit() < TAMANO_CABECERA || datos.getInt(0) != MAGICO || datos.getInt(4) != VERSION
+                || datos.getInt(8) != TAMANO_REGISTRO) {
+            throw new java.io.IOException("Segmento de bitacora no valido: " + archivo);
+        }
+        int capacidad = datos.getInt(12);
+        if ((long) TAMANO_CABECERA + (long) capacidad * TAMANO_REGISTRO > tamano) {
+            throw new java.io.IOException("Segmento de bitacora truncado: " + archivo);
+        }
+        return capacidad;
+    }
+    
+    /**
+     * Registros validos desde el inicio del segmento hasta la primera suma incorrecta
+     */
+    private static int contarValidos(java.nio.ByteBuffer datos, int capacidad, java.util.zip.CRC32C crc) {
+        java.nio.ByteBuffer vista = datos.duplicate();
+        for (int r = 0; r < capacidad; r++) {
+            int p = TAMANO_CABECERA + r * TAMANO_REGISTRO;
+            crc.reset();
+            vista.limit(p + BYTES_CON_SUMA).position(p);
+            crc.update(vista);
+            if ((int) crc.getValue() != datos.getInt(p + BYTES_CON_SUMA)) {
+                return r;
+            }
+        }
+        return capacidad;
+    }
+    
+    private int suma(java.nio.ByteBuffer vista, int posicion) {
+        crc.reset();
+        vista.limit(posicion + BYTES_CON_SUMA).position(posicion);
+        crc.update(vista);
+        return (int) crc.getValue();
+    }
+    
+    private java.util.List<java.nio.file.Path> listarSegmentos() throws java.io.IOException {
+        java.util.List<java.nio.file.Path> segmentos = new java.util.ArrayList<>();
+        try (java.nio.file.DirectoryStream<java.nio.file.Path> archivos =
+                 java.nio.file.Files.newDirectoryStream(directorio, "telemetria-*.seg")) {
+            for (java.nio.file.Path archivo : archivos) {
+                segmentos.add(archivo);
+            }
+        }
+        // Los numeros llevan ceros a la izquierda, asi el orden alfabetico es el cronologico
+        segmentos.sort(null);
+        return segmentos;
+    }
+    
+    private static String nombreSegmento(long numero) {
+        return String.format("telemetria-%012d.seg", numero);
+    }
+    
+    private static long numeroDeSegmento(java.nio.file.Path archivo) {
+        String nombre = archivo.getFileName().toString();
+        return Long.parseLong(nombre.substring("telemetria-".length(), nombre.length() - ".seg".length()));
+    }
+    
+    public synchronized long getRegistrosEscritos() {
+        return registrosEscritos;
+    }
+    
+    public java.nio.file.Path getDirectorio() {
+        return directorio;
+    }
+    
+    @Override
+    public synchronized void close() throws java.io.IOException {
+        if (cerrada) {
+            return;
+        }
+        if (sincronizador != null) {
+            sincronizador.shutdownNow();
+        }
+        if (politica != PoliticaSincronizacion.NUNCA) {
+            forzar();
+        }
+        cerrada = true;
+        canal.close();
+    }
+}
+
+/**
+ * Segmentos y cantidad de registros de una bitacora en el momento de
+ * cortarla (ver BitacoraTelemetria.cortar). Cada llamada a recorrer abre el
+ * segmento por su cuenta, asi varios hilos leen bloques distintos a la vez
+ * mientras la bitacora sigue anexando.
+ */
+class CorteBitacora {
+    private final java.nio.file.Path[] archivos;
+    private final int[] registros;
+    private final long total;
+    
+    CorteBitacora(java.nio.file.Path[] archivos, int[] registros) {
+        this.archivos = archivos;
+        this.registros = registros;
+        long suma = 0;
+        for (int cantidad : registros) {
+            suma += cantidad;
+        }
+        this.total = suma;
+    }
+    
+    public int getSegmentos() { return archivos.length; }
+    public int getRegistros(int segmento) { return registros[segmento]; }
+    public long getTotal() { return total; }
+    
+    /**
+     * Espacio de lectura para recorrer hasta la cantidad indicada de registros por llamada
+     */
+    public static java.nio.ByteBuffer crearEspacio(int registros) {
+        return java.nio.ByteBuffer.allocateDirect(registros * BitacoraTelemetria.TAMANO_REGISTRO)
+                                  .order(java.nio.ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Entrega al lector los registros [desde, desde + cantidad) del segmento
+     * en el orden en que se anexaron. A diferencia de la reproduccion, un
+     * registro con la suma incorrecta se salta y se sigue con el proximo.
+     * @param espacio  de crearEspacio, con lugar para la cantidad pedida
+     * @return registros saltados por la suma incorrecta
+     */
+    public int recorrer(int segmento, int desde, int cantidad, java.nio.ByteBuffer espacio,
+                        java.util.zip.CRC32C crc, LectorRegistrosTelemetria lector) throws java.io.IOException {
+        if (desde < 0 || cantidad < 0 || desde + cantidad > registros[segmento]) {
+            throw new IllegalArgumentException("Registros fuera del segmento: " + desde + " + " + cantidad);
+        }
+        espacio.clear().limit(cantidad * BitacoraTelemetria.TAMANO_REGISTRO);
+        long posicion = BitacoraTelemetria.TAMANO_CABECERA + (long) desde * BitacoraTelemetria.TAMANO_REGISTRO;
+        try (java.nio.channels.FileChannel lectura = java.nio.channels.FileChannel.open(
+                archivos[segmento], java.nio.file.StandardOpenOption.READ)) {
+            while (espacio.hasRemaining()) {
+                int leidos = lectura.read(espacio, posicion + espacio.position());
+                if (leidos < 0) {
+                    break;
+                }
+            }
+        }
+        int completos = espacio.position() / BitacoraTelemetria.TAMANO_REGISTRO;
+        int fin = completos * BitacoraTelemetria.TAMANO_REGISTRO;
+        int saltados = cantidad - completos;
+        for (int r = 0; r < completos; r++) {
+            int p = r * BitacoraTelemetria.TAMANO_REGISTRO;
+            crc.reset();
+            espacio.limit(p + BitacoraTelemetria.BYTES_CON_SUMA).position(p);
+            crc.update(espacio);
+            espacio.limit(fin);
+            if ((int) crc.getValue() != espacio.getInt(p + BitacoraTelemetria.BYTES_CON_SUMA)) {
+                saltados++;
+                continue;
+            }
+            lector.leer(espacio.getInt(p), espacio.getLong(p + 4), espacio.getInt(p + 12), espacio.getFloat(p + 16),
+                        espacio.getFloat(p + 20), espacio.getFloat(p + 24), espacio.getDouble(p + 28),
+                        espacio.getDouble(p + 36));
+        }
+        return saltados;
+    }
+}
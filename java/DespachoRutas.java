@@ -0,0 +1,497 @@
+// ============================================================================
+// DESPACHO MASIVO DE RUTAS
+// ============================================================================
+
+/**
+ * Costo de asignar la fila i a la columna j. Se evalua bajo demanda para
+ * no guardar una matriz de filas x columnas en memoria.
+ */
+interface MatrizCostos {
+    /**
+     * @return el costo (>= 0), o Double.POSITIVE_INFINITY si el par no es factible
+     */
+    double costo(int fila, int columna);
+}
+
+/**
+ * Problema de asignacion rectangular resuelto con el algoritmo de subasta
+ * de Bertsekas. Cada fila (ruta) puja por la columna (clase de vehiculos
+ * equivalentes) que mas le conviene a los precios actuales y sube el precio
+ * en la diferencia con la segunda mejor opcion mas epsilon; quedar sin
+ * asignar vale 0.
+ *
+ * Internamente el problema se vuelve cuadrado: una columna extra "sin
+ * asignar" con un puesto por fila y una fila fantasma por cada puesto real,
+ * que valen 0 en cualquier lado. Asi toda fase termina con todos los puestos
+ * ocupados, que es lo que permite conservar los precios entre fases; en el
+ * problema rectangular un puesto que quedo caro y libre de una fase anterior
+ * ya no lo toma nadie aunque convenga.
+ *
+ * Una columna con capacidad c son c puestos identicos, cada uno con su
+ * precio; la fila ve el puesto mas barato y, como segunda opcion dentro de
+ * la misma columna, el siguiente. Los puestos de cada columna se guardan en
+ * un monticulo por precio. Agrupar vehiculos equivalentes reduce el recorrido
+ * de cada puja de miles de vehiculos a unos cientos de clases.
+ *
+ * Las pujas de una ronda se calculan en paralelo sobre los mismos precios y
+ * despues se aplican en un solo hilo, rehaciendo las que apuntan a una
+ * columna que ya subio en la ronda (asi muchas filas que quieren la misma
+ * columna no se la disputan de a una por ronda). Epsilon se reduce por fases
+ * conservando los precios, lo que evita las guerras de precios largas entre
+ * columnas casi iguales. El resultado queda a lo sumo filas * epsilonFinal
+ * del optimo.
+ *
+ * Cada fila guarda ademas sus CANDIDATOS mejores columnas del ultimo
+ * recorrido y el valor de la siguiente; como los precios solo suben, ninguna
+ * otra columna puede valer mas que eso, y mientras la mejor candidata lo
+ * supere la puja se resuelve sin recorrer la fila entera.
+ */
+class SubastaAsignacion {
+    /** Por debajo de esta cantidad de pujas una ronda no se reparte entre hilos */
+    private static final int MINIMO_PARALELO = 256;
+    private static final double FACTOR_EPSILON = 5;
+    private static final int CANDIDATOS = 8;
+    
+    private final int filas;
+    private final int columnas;
+    // Las filas fantasma van despues de las reales y la columna libre despues de las reales
+    private final int filasTotales;
+    private final int columnaLibre;
+    private final MatrizCostos costos;
+    private final double beneficioBase;
+    private final double epsilonFinal;
+    // Los puestos de la columna k son [inicios[k], inicios[k + 1]); monticulo guarda esos puestos por precio
+    private final int[] inicios;
+    private final int[] monticulo;
+    private final double[] precios;
+    private long rondas;
+    private long pujas;
+    private final java.util.concurrent.atomic.LongAdder recorridos = new java.util.concurrent.atomic.LongAdder();
+    // Por fila: columnas candidatas con su costo, cuantas hay y la cota para el resto
+    private int[] candidatas;
+    private double[] costosCandidatas;
+    private int[] cantidadCandidatas;
+    private double[] cotas;
+    
+    /**
+     * @param capacidades    puestos de cada columna
+     * @param beneficioBase  lo que vale asignar una fila antes de restar el costo;
+     *                       debe superar al mayor costo factible
+     * @param epsilonFinal   tolerancia de la ultima fase, en unidades de costo
+     */
+    public SubastaAsignacion(int filas, int[] capacidades, MatrizCostos costos, double beneficioBase, double epsilonFinal) {
+        if (filas < 0 || beneficioBase <= 0 || epsilonFinal <= 0) {
+            throw new IllegalArgumentException("Subasta no valida: " + filas + " filas, base " + beneficioBase
+                                               + ", epsilon " + epsilonFinal);
+        }
+        this.filas = filas;
+        this.columnas = capacidades.length;
+        this.costos = costos;
+        this.beneficioBase = beneficioBase;
+        this.epsilonFinal = epsilonFinal;
+        this.columnaLibre = columnas;
+        this.inicios = new int[columnas + 2];
+        for (int k = 0; k < columnas; k++) {
+            if (capacidades[k] <= 0) {
+                throw new IllegalArgumentException("Capacidad de columna no valida: " + capacidades[k]);
+            }
+            inicios[k + 1] = inicios[k] + capacidades[k];
+        }
+        this.filasTotales = filas + inicios[columnas];
+        inicios[columnaLibre + 1] = inicios[columnaLibre] + filas;
+        this.monticulo = new int[inicios[columnaLibre + 1]];
+        for (int s = 0; s < monticulo.length; s++) {
+            monticulo[s] = s;
+        }
+        this.precios = new double[monticulo.length];
+    }
+    
+    /**
+     * @return la columna asignada a cada fila, o -1 si la fila queda sin asignar;
+     *         ninguna columna recibe mas filas que su capacidad
+     */
+    public int[] resolver() {
+        int[] duenos = new int[monticulo.length];
+        int[] asignadas = new int[filasTotales];
+        int[] columnasPuja = new int[filasTotales];
+        double[] montosPuja = new double[filasTotales];
+        int[] pendientes = new int[filasTotales];
+        int[] siguientes = new int[filasTotales];
+        // Ronda en la que subio por ultima vez un precio de cada columna
+        long[] subidas = new long[columnas + 1];
+        candidatas = new int[filasTotales * CANDIDATOS];
+        costosCandidatas = new double[filasTotales * CANDIDATOS];
+        cantidadCandidatas = new int[filasTotales];
+        cotas = new double[filasTotales];
+        java.util.Arrays.fill(cotas, Double.POSITIVE_INFINITY);
+        
+        double epsilon = Math.max(epsilonFinal, beneficioBase / FACTOR_EPSILON);
+        while (true) {
+            java.util.Arrays.fill(duenos, -1);
+            java.util.Arrays.fill(asignadas, -1);
+            int cantidad = filasTotales;
+            for (int i = 0; i < filasTotales; i++) {
+                pendientes[i] = i;
+            }
+            while (cantidad > 0) {
+                rondas++;
+                pujas += cantidad;
+                final int[] ronda = pendientes;
+                final double epsilonRonda = epsilon;
+                java.util.stream.IntStream indices = java.util.stream.IntStream.range(0, cantidad);
+                if (cantidad >= MINIMO_PARALELO) {
+                    indices = indices.parallel();
+                }
+                indices.forEach(k -> pujar(ronda[k], epsilonRonda, columnasPuja, montosPuja));
+                
+                // Las pujas se aplican en orden; si otra fila ya subio un precio de la
+                // columna en esta ronda, la puja calculada quedo vieja y se rehace
+                int cantidadSiguientes = 0;
+                for (int k = 0; k < cantidad; k++) {
+                    int i = pendientes[k];
+                    int columna = columnasPuja[i];
+                    if (subidas[columna] == rondas) {
+                        pujas++;
+                        pujar(i, epsilon, columnasPuja, montosPuja);
+                        columna = columnasPuja[i];
+                    }
+                    int puesto = monticulo[inicios[columna]];
+                    if (duenos[puesto] >= 0) {
+                        asignadas[duenos[puesto]] = -1;
+                        siguientes[cantidadSiguientes++] = duenos[puesto];
+                    }
+                    duenos[puesto] = i;
+                    asignadas[i] = columna;
+                    precios[puesto] = montosPuja[i];
+                    hundir(columna);
+                    subidas[columna] = rondas;
+                }
+                int[] intercambio = pendientes;
+                pendientes = siguientes;
+                siguientes = intercambio;
+                cantidad = cantidadSiguientes;
+            }
+            if (epsilon <= epsilonFinal) {
+                int[] resultado = new int[filas];
+                for (int i = 0; i < filas; i++) {
+                    resultado[i] = asignadas[i] == columnaLibre ? -1 : asignadas[i];
+                }
+                return resultado;
+            }
+            epsilon = Math.max(epsilonFinal, epsilon / FACTOR_EPSILON);
+        }
+    }
+    
+    /**
+     * Busca la mejor y la segunda mejor opcion de la fila a los precios
+     * actuales. Solo escribe en la posicion de su fila, asi varias filas
+     * pueden pujar a la vez.
+     */
+    private void pujar(int fila, double epsilon, int[] columnasPuja, double[] montosPuja) {
+        double mejor = Double.NEGATIVE_INFINITY;
+        double segunda = Double.NEGATIVE_INFINITY;
+        int elegida = -1;
+        double costoElegida = 0;
+        int base = fila * CANDIDATOS;
+        for (int c = 0; c < cantidadCandidatas[fila]; c++) {
+            int k = candidatas[base + c];
+            double valor = beneficioBase - costosCandidatas[base + c] - precioMinimo(k);
+            if (valor > mejor) {
+                segunda = mejor;
+                mejor = valor;
+                elegida = k;
+                costoElegida = costosCandidatas[base + c];
+            } else if (valor > segunda) {
+                segunda = valor;
+            }
+        }
+        double cota = cotas[fila];
+        if (elegida < 0 || mejor < cota) {
+            recorrer(fila);
+            pujar(fila, epsilon, columnasPuja, montosPuja);
+            return;
+        }
+        // El segundo puesto de la misma columna tambien es una opcion; la cota
+        // puede ser de una columna fuera de las candidatas y usarla achica el
+        // incremento, lo que sigue siendo una puja valida
+        segunda = Math.max(segunda, Math.max(cota, beneficioBase - costoElegida - precioSegundo(elegida)));
+        if (segunda == Double.NEGATIVE_INFINITY) {
+            // Un solo puesto posible: basta con subirlo epsilon
+            segunda = mejor;
+        }
+        columnasPuja[fila] = elegida;
+        montosPuja[fila] = precioMinimo(elegida) + (mejor - segunda) + epsilon;
+    }
+    
+    /**
+     * Recorre todas las columnas de la fila y guarda las CANDIDATOS de mayor
+     * valor a los precios actuales; la cota es el valor de la siguiente.
+     */
+    private void recorrer(int fila) {
+        recorridos.increment();
+        int base = fila * CANDIDATOS;
+        double[] valores = new double[CANDIDATOS + 1];
+        int[] columnasMejores = new int[CANDIDATOS + 1];
+        double[] costosMejores = new double[CANDIDATOS + 1];
+        int cantidad = 0;
+        for (int k = 0; k <= columnaLibre; k++) {
+            double costo = fila >= filas || k == columnaLibre ? beneficioBase : costos.costo(fila, k);
+            if (costo == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            double valor = beneficioBase - costo - precioMinimo(k);
+            if (cantidad == CANDIDATOS + 1 && valor <= valores[CANDIDATOS]) {
+                continue;
+            }
+            // Insercion ordenada de mayor a menor en un arreglo de CANDIDATOS + 1
+            int posicion = cantidad < CANDIDATOS + 1 ? cantidad++ : CANDIDATOS;
+            while (posicion > 0 && valores[posicion - 1] < valor) {
+                valores[posicion] = valores[posicion - 1];
+                columnasMejores[posicion] = columnasMejores[posicion - 1];
+                costosMejores[posicion] = costosMejores[posicion - 1];
+                posicion--;
+            }
+            valores[posicion] = valor;
+            columnasMejores[posicion] = k;
+            costosMejores[posicion] = costo;
+        }
+        int guardadas = Math.min(cantidad, CANDIDATOS);
+        System.arraycopy(columnasMejores, 0, candidatas, base, guardadas);
+        System.arraycopy(costosMejores, 0, costosCandidatas, base, guardadas);
+        cantidadCandidatas[fila] = guardadas;
+        cotas[fila] = cantidad > CANDIDATOS ? valores[CANDIDATOS] : Double.NEGATIVE_INFINITY;
+    }
+    
+    // ====== Monticulo de puestos por columna ======
+    
+    private double precioMinimo(int columna) {
+        return precios[monticulo[inicios[columna]]];
+    }
+    
+    /** Precio del segundo puesto mas barato; infinito si la columna tiene uno solo */
+    private double precioSegundo(int columna) {
+        int raiz = inicios[columna];
+        int tamano = inicios[columna + 1] - raiz;
+        if (tamano < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double izquierdo = precios[monticulo[raiz + 1]];
+        return tamano > 2 ? Math.min(izquierdo, precios[monticulo[raiz + 2]]) : izquierdo;
+    }
+    
+    /** Reubica la raiz de la columna despues de subir su precio */
+    private void hundir(int columna) {
+        int raiz = inicios[columna];
+        int tamano = inicios[columna + 1] - raiz;
+        int i = 0;
+        int puesto = monticulo[raiz];
+        double precio = precios[puesto];
+        while (true) {
+            int hijo = 2 * i + 1;
+            if (hijo >= tamano) {
+                break;
+            }
+            if (hijo + 1 < tamano && precios[monticulo[raiz + hijo + 1]] < precios[monticulo[raiz + hijo]]) {
+                hijo++;
+            }
+            if (precios[monticulo[raiz + hijo]] >= precio) {
+                break;
+            }
+            monticulo[raiz + i] = monticulo[raiz + hijo];
+            i = hijo;
+        }
+        monticulo[raiz + i] = puesto;
+    }
+    
+    /** Rondas de pujas en todas las fases de la ultima resolucion */
+    public long getRondas() { return rondas; }
+    /** Pujas calculadas en todas las fases de la ultima resolucion */
+    public long getPujas() { return pujas; }
+    /** Pujas que tuvieron que recorrer todas las columnas de su fila */
+    public long getRecorridos() { return recorridos.sum(); }
+}
+
+/**
+ * Resultado de un despacho masivo: pares ruta-vehiculo aplicados y rutas
+ * que quedaron sin vehiculo.
+ */
+class ResultadoDespacho {
+    private final int[] rutas;
+    private final int[] vehiculos;
+    private final double costoTotal;
+    private final int[] rutasSinAsignar;
+    private final int vehiculosCandidatos;
+    private final long milisegundosSolucion;
+    private final long pujas;
+    private final int intentos;
+    
+    ResultadoDespacho(int[] rutas, int[] vehiculos, double costoTotal, int[] rutasSinAsignar,
+                      int vehiculosCandidatos, long milisegundosSolucion, long pujas, int intentos) {
+        this.rutas = rutas;
+        this.vehiculos = vehiculos;
+        this.costoTotal = costoTotal;
+        this.rutasSinAsignar = rutasSinAsignar;
+        this.vehiculosCandidatos = vehiculosCandidatos;
+        this.milisegundosSolucion = milisegundosSolucion;
+        this.pujas = pujas;
+        this.intentos = intentos;
+    }
+    
+    public int getAsignadas() { return rutas.length; }
+    public int getRuta(int i) { return rutas[i]; }
+    public int getVehiculo(int i) { return vehiculos[i]; }
+    public double getCostoTotal() { return costoTotal; }
+    public int[] getRutasSinAsignar() { return rutasSinAsignar.clone(); }
+    public int getVehiculosCandidatos() { return vehiculosCandidatos; }
+    public long getMilisegundosSolucion() { return milisegundosSolucion; }
+    public long getPujas() { return pujas; }
+    /** Veces que se resolvio: mas de una si otro hilo tomo un vehiculo o ruta mientras tanto */
+    public int getIntentos() { return intentos; }
+    
+    @Override
+    public String toString() {
+        return String.format("Despacho[asignadas=%d, sinAsignar=%d, vehiculos=%d, costo=%.1f, %d ms, %d pujas, %d intento(s)]",
+                             rutas.length, rutasSinAsignar.length, vehiculosCandidatos, costoTotal,
+                             milisegundosSolucion, pujas, intentos);
+    }
+}
+
+/**
+ * Reparte las rutas sin vehiculo entre los vehiculos disponibles de una sola
+ * vez. Un par es factible si el tipo de vehiculo admite la distancia y las
+ * entregas de la ruta, y si su autonomia (bateria actual / consumo del tipo)
+ * cubre la distancia con MARGEN_AUTONOMIA de reserva. Entre los factibles
+ * se minimiza el costo de operacion por km del tipo mas una penalizacion
+ * por la fraccion de autonomia que la ruta consume, para no vaciar
+ * vehiculos con poca bateria cuando hay otros con mas.
+ *
+ * Para el solucionador, los vehiculos del mismo tipo con la misma autonomia
+ * redondeada hacia abajo al km son una sola columna con capacidad; redondear
+ * hacia abajo nunca vuelve factible un par que no lo es.
+ */
+class DespachoRutas {
+    public static final double MARGEN_AUTONOMIA = 0.2;
+    public static final double PESO_AUTONOMIA = 5.0;
+    public static final double EPSILON_FINAL = 0.01;
+    /**
+     * Cuanto mas que el mayor costo vale asignar una ruta: con un margen
+     * amplio la subasta prefiere asignar una ruta mas antes que ahorrar costo
+     */
+    private static final double FACTOR_BENEFICIO = 10;
+    
+    // Por tipo, en el orden de TIPOS: consumo kWh/km, costo por km, distancia maxima, entregas maximas
+    private static final String[] TIPOS = {"van", "moto", "bicicleta"};
+    private static final float[] CONSUMO_KWH_POR_KM = {0.25f, 0.09f, 0.01f};
+    private static final float[] COSTO_POR_KM = {0.30f, 0.10f, 0.04f};
+    private static final float[] DISTANCIA_MAXIMA_KM = {Float.MAX_VALUE, 80f, 20f};
+    private static final int[] ENTREGAS_MAXIMAS = {Integer.MAX_VALUE, 15, 6};
+    
+    private DespachoRutas() {
+    }
+    
+    /**
+     * Autonomia estimada en km con la bateria actual del vehiculo
+     */
+    public static float autonomiaKm(VehiculoElectrico vehiculo) {
+        int tipo = indiceTipo(vehiculo.getTipo());
+        return vehiculo.getCapacidadBateria() * vehiculo.getNivelBateria() / 100f / CONSUMO_KWH_POR_KM[tipo];
+    }
+    
+    /**
+     * Autonomia en km con la bateria llena
+     */
+    public static float autonomiaPlenaKm(VehiculoElectrico vehiculo) {
+        return vehiculo.getCapacidadBateria() / CONSUMO_KWH_POR_KM[indiceTipo(vehiculo.getTipo())];
+    }
+    
+    /**
+     * Resuelve la asignacion para las rutas y vehiculos dados (sin aplicarla).
+     * @param pujas  acumulador de pujas de la subasta, en pujas[0]
+     * @return el vehiculo elegido para cada ruta (indice en vehiculos), o -1
+     */
+    static int[] resolver(Ruta[] rutas, VehiculoElectrico[] vehiculos, long[] pujas) {
+        int[] asignacion = new int[rutas.length];
+        java.util.Arrays.fill(asignacion, -1);
+        if (rutas.length == 0 || vehiculos.length == 0) {
+            return asignacion;
+        }
+        // Copia compacta de lo que usa el costo, leida una sola vez
+        float[] distancias = new float[rutas.length];
+        int[] entregas = new int[rutas.length];
+        double mayorCosto = 0;
+        for (int i = 0; i < rutas.length; i++) {
+            distancias[i] = rutas[i].getDistancia();
+            entregas[i] = rutas[i].getEntregas().size();
+            mayorCosto = Math.max(mayorCosto, distancias[i] * COSTO_POR_KM[0] + PESO_AUTONOMIA);
+        }
+        
+        // Clases de vehiculos equivalentes: tipo y km enteros de autonomia
+        java.util.Map<Long, Integer> indiceClases = new java.util.HashMap<>();
+        int[] claseVehiculo = new int[vehiculos.length];
+        int[] capacidades = new int[vehiculos.length];
+        int[] tipos = new int[vehiculos.length];
+        float[] autonomias = new float[vehiculos.length];
+        int clases = 0;
+        for (int j = 0; j < vehiculos.length; j++) {
+            int tipo = indiceTipo(vehiculos[j].getTipo());
+            int km = (int) autonomiaKm(vehiculos[j]);
+            Integer clase = indiceClases.putIfAbsent(((long) tipo << 32) | km, clases);
+            if (clase == null) {
+                clase = clases++;
+                tipos[clase] = tipo;
+                autonomias[clase] = km;
+            }
+            claseVehiculo[j] = clase;
+            capacidades[clase]++;
+        }
+        capacidades = java.util.Arrays.copyOf(capacidades, clases);
+        
+        MatrizCostos costos = (i, k) -> costo(distancias[i], entregas[i], tipos[k], autonomias[k]);
+        SubastaAsignacion subasta = new SubastaAsignacion(rutas.length, capacidades, costos,
+                                                          (mayorCosto + 1) * FACTOR_BENEFICIO, EPSILON_FINAL);
+        int[] clasesAsignadas = subasta.resolver();
+        pujas[0] += subasta.getPujas();
+        
+        // Cada clase entrega sus vehiculos en orden a las rutas que la ganaron
+        int[] siguientes = new int[clases + 1];
+        for (int k = 0; k < clases; k++) {
+            siguientes[k + 1] = siguientes[k] + capacidades[k];
+        }
+        int[] porClase = new int[vehiculos.length];
+        int[] llenado = java.util.Arrays.copyOf(siguientes, clases);
+        for (int j = 0; j < vehiculos.length; j++) {
+            porClase[llenado[claseVehiculo[j]]++] = j;
+        }
+        for (int i = 0; i < rutas.length; i++) {
+            if (clasesAsignadas[i] >= 0) {
+                asignacion[i] = porClase[siguientes[clasesAsignadas[i]]++];
+            }
+        }
+        return asignacion;
+    }
+    
+    /**
+     * @return el costo de que el vehiculo haga la ruta, o Double.POSITIVE_INFINITY si no puede
+     */
+    public static double costo(Ruta ruta, VehiculoElectrico vehiculo) {
+        return costo(ruta.getDistancia(), ruta.getEntregas().size(), indiceTipo(vehiculo.getTipo()),
+                     autonomiaKm(vehiculo));
+    }
+    
+    private static double costo(float distancia, int entregas, int tipo, float autonomia) {
+        if (distancia * (1 + MARGEN_AUTONOMIA) > autonomia || distancia > DISTANCIA_MAXIMA_KM[tipo]
+                || entregas > ENTREGAS_MAXIMAS[tipo]) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return distancia * COSTO_POR_KM[tipo] + PESO_AUTONOMIA * distancia / autonomia;
+    }
+    
+    private static int indiceTipo(String tipo) {
+        for (int t = 0; t < TIPOS.length; t++) {
+            if (TIPOS[t].equals(tipo)) {
+                return t;
+            }
+        }
+        throw new IllegalArgumentException("Tipo de vehiculo no valido: " + tipo);
+    }
+}
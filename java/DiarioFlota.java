@@ -0,0 +1,767 @@
+// ============================================================================
+// PERSISTENCIA DEL ESTADO DE LA FLOTA
+// ============================================================================
+
+/**
+ * Resultado de restaurar la flota al arrancar
+ */
+class ResumenRestauracion {
+    private long lsnInstantanea;
+    private int vehiculos;
+    private int rutas;
+    private long registrosDiario;
+    private long nanosInstantanea;
+    private long nanosDiario;
+    
+    public ResumenRestauracion(long lsnInstantanea, int vehiculos, int rutas, long registrosDiario,
+                               long nanosInstantanea, long nanosDiario) {
+        this.lsnInstantanea = lsnInstantanea;
+        this.vehiculos = vehiculos;
+        this.rutas = rutas;
+        this.registrosDiario = registrosDiario;
+        this.nanosInstantanea = nanosInstantanea;
+        this.nanosDiario = nanosDiario;
+    }
+    
+    /** LSN desde el que se reprodujo el diario; 0 si no habia instantanea */
+    public long getLsnInstantanea() { return lsnInstantanea; }
+    public int getVehiculos() { return vehiculos; }
+    public int getRutas() { return rutas; }
+    public long getRegistrosDiario() { return registrosDiario; }
+    public double getMillisInstantanea() { return nanosInstantanea / 1e6; }
+    public double getMillisDiario() { return nanosDiario / 1e6; }
+    public double getMillis() { return (nanosInstantanea + nanosDiario) / 1e6; }
+    
+    @Override
+    public String toString() {
+        return String.format("Restauracion[vehiculos=%d, rutas=%d, instantanea=%s (%.1f ms), diario=%d registros (%.1f ms)]",
+                             vehiculos, rutas, lsnInstantanea > 0 ? "lsn " + lsnInstantanea : "no",
+                             getMillisInstantanea(), registrosDiario, getMillisDiario());
+    }
+}
+
+/**
+ * Diario (write-ahead log) e instantaneas del estado de la flota.
+ *
+ * Cada operacion que modifica GestorFlota anota la imagen actual de la
+ * entidad (vehiculo, estado y bateria, ruta, entrega) leida dentro del
+ * candado del diario. Como cada anotacion ocurre despues de su cambio, la
+ * ultima imagen de una entidad en el diario siempre es su valor final, aunque
+ * varios hilos la modifiquen a la vez; reproducir el diario es idempotente.
+ *
+ * Periodicamente se toma una instantanea binaria: el diario rota a un archivo
+ * nuevo que empieza en el LSN L, se escribe el estado en instantanea-L.snap y
+ * se borran los archivos anteriores. Restaurar cuesta leer la instantanea mas
+ * la cola del diario desde L, no toda la historia.
+ *
+ * Registro del diario: longitud (int), lsn (long), tipo (byte), datos, crc32c.
+ */
+class DiarioFlota implements java.io.Closeable {
+    static final int MAGICO_INSTANTANEA = 0x53474653; // "SGFS"
+    static final int VERSION = 3;
+    /** Las instantaneas de la version 1 no guardan el vehiculo asignado a cada ruta */
+    private static final int VERSION_SIN_ASIGNACION = 1;
+    /** Las de la version 2 no guardan ubicacion ni secuencia de las entregas */
+    private static final int VERSION_SIN_SECUENCIA = 2;
+    
+    private static final byte TIPO_VEHICULO = 1;
+    private static final byte TIPO_VEHICULO_ELIMINADO = 2;
+    private static final byte TIPO_ESTADO = 3;
+    private static final byte TIPO_RUTA = 4;
+    /** Entrega sin ubicacion ni secuencia; ya no se escribe pero los diarios viejos la traen */
+    private static final byte TIPO_ENTREGA = 5;
+    private static final byte TIPO_ASIGNACION = 6;
+    private static final byte TIPO_ENTREGA_SECUENCIADA = 7;
+    
+    private static final int TAMANO_BUFFER = 256 * 1024;
+    private static final int TAMANO_MAXIMO_REGISTRO = 64 * 1024;
+    private static final long TAMANO_MAXIMO_ARCHIVO = 256L * 1024 * 1024;
+    private static final long SIN_HORA = Long.MIN_VALUE;
+    
+    /** Registros anotados tras los que se toma una instantanea nueva */
+    public static final long UMBRAL_INSTANTANEA_POR_DEFECTO = 1_000_000;
+    /** Cada cuanto se escriben los desgastes pendientes y el buffer al sistema operativo */
+    public static final long INTERVALO_COMMIT_MS = 50;
+    
+    private java.nio.file.Path directorio;
+    private PoliticaSincronizacion politica;
+    private long parametroPolitica;
+    private long umbralInstantanea;
+    
+    private java.nio.channels.FileChannel canal;
+    private long tamanoArchivo;
+    private java.nio.ByteBuffer salida;
+    private int posicionInicioRegistro;
+    private java.util.zip.CRC32C crc;
+    private long siguienteLsn;
+    private long registrosSinForzar;
+    private long registrosDesdeInstantanea;
+    private long lsnUltimaInstantanea;
+    private boolean cerrado;
+    
+    private volatile GestorFlota gestor;
+    private java.util.concurrent.ConcurrentLinkedQueue<VehiculoElectrico> desgastesPendientes;
+    private java.util.concurrent.ScheduledExecutorService tareas;
+    private java.util.concurrent.atomic.AtomicBoolean tomandoInstantanea;
+    
+    public DiarioFlota(java.nio.file.Path directorio) throws java.io.IOException {
+        this(directorio, PoliticaSincronizacion.PERIODICA, INTERVALO_COMMIT_MS, UMBRAL_INSTANTANEA_POR_DEFECTO);
+    }
+    
+    /**
+     * @param parametroPolitica  registros entre fsync para CADA_N_REGISTROS,
+     *                           milisegundos entre fsync para PERIODICA
+     * @param umbralInstantanea  registros del diario tras los que se compacta en una instantanea
+     */
+    public DiarioFlota(java.nio.file.Path directorio, PoliticaSincronizacion politica, long parametroPolitica,
+                       long umbralInstantanea) throws java.io.IOException {
+        if ((politica == PoliticaSincronizacion.CADA_N_REGISTROS || politica == PoliticaSincronizacion.PERIODICA)
+                && parametroPolitica <= 0) {
+            throw new IllegalArgumentException("La politica " + politica + " requiere un parametro positivo");
+        }
+        this.directorio = directorio;
+        this.politica = politica;
+        this.parametroPolitica = parametroPolitica;
+        this.umbralInstantanea = umbralInstantanea;
+        this.salida = java.nio.ByteBuffer.allocate(TAMANO_BUFFER);
+        this.crc = new java.util.zip.CRC32C();
+        this.desgastesPendientes = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        this.tomandoInstantanea = new java.util.concurrent.atomic.AtomicBoolean();
+        this.siguienteLsn = 1;
+        java.nio.file.Files.createDirectories(directorio);
+    }
+    
+    // ====== Restauracion ======
+    
+    /**
+     * Carga la ultima instantanea valida y reproduce el diario desde su LSN.
+     * Al terminar abre un archivo de diario nuevo para las anotaciones siguientes.
+     */
+    synchronized ResumenRestauracion restaurar(GestorFlota destino) throws java.io.IOException {
+        if (canal != null) {
+            throw new IllegalStateException("El diario ya esta abierto; restaurar solo al arrancar");
+        }
+        long inicio = System.nanoTime();
+        long lsnInstantanea = 0;
+        java.util.List<java.nio.file.Path> instantaneas = listar("instantanea-", ".snap");
+        for (int i = instantaneas.size() - 1; i >= 0 && lsnInstantanea == 0; i--) {
+            java.nio.file.Path archivo = instantaneas.get(i);
+            try {
+                leerInstantanea(archivo, destino);
+                lsnInstantanea = numeroDe(archivo, "instantanea-", ".snap");
+            } catch (java.io.IOException e) {
+                // Instantanea incompleta o corrupta: se intenta con la anterior
+                RegistroAsincrono.aviso("Instantanea descartada {}: {}", archivo.getFileName(), e.getMessage());
+            }
+        }
+        long finInstantanea = System.nanoTime();
+        
+        long registros = 0;
+        long ultimoLsn = Math.max(0, lsnInstantanea - 1);
+        java.util.List<java.nio.file.Path> archivos = listar("diario-", ".log");
+        // La cola puede quedar rota por una caida; los archivos vacios que la siguen no cuentan
+        int cola = archivos.size() - 1;
+        while (cola > 0 && java.nio.file.Files.size(archivos.get(cola)) == 0) {
+            cola--;
+        }
+        for (int i = 0; i < archivos.size(); i++) {
+            // Si el siguiente archivo empieza antes de la instantanea, todo este ya esta en ella
+            boolean cubierto = i < archivos.size() - 1
+                               && numeroDe(archivos.get(i + 1), "diario-", ".log") <= lsnInstantanea;
+            long[] resultado = reproducirArchivo(archivos.get(i), lsnInstantanea, destino, i >= cola, cubierto);
+            registros += resultado[0];
+            ultimoLsn = Math.max(ultimoLsn, resultado[1]);
+        }
+        
+        siguienteLsn = ultimoLsn + 1;
+        lsnUltimaInstantanea = lsnInstantanea;
+        registrosDesdeInstantanea = registros;
+        abrirArchivoNuevo();
+        return new ResumenRestauracion(lsnInstantanea, destino.listarVehiculos().size(), destino.listarRutas().size(),
+                                       registros, finInstantanea - inicio, System.nanoTime() - finInstantanea);
+    }
+    
+    /**
+     * Un registro roto solo puede ser la cola del ultimo archivo (caida a
+     * media escritura), que se recorta. En otro archivo los registros que le
+     * siguen se perderian, asi que es un error, salvo que la instantanea ya
+     * cubra todo el archivo.
+     * @param cola      es el ultimo archivo con datos
+     * @param cubierto  todos sus registros son anteriores a la instantanea
+     * @return {registros aplicados, ultimo lsn valido}
+     */
+    private long[] reproducirArchivo(java.nio.file.Path archivo, long desdeLsn, GestorFlota destino,
+                                     boolean cola, boolean cubierto) throws java.io.IOException {
+        long aplicados = 0;
+        long ultimoLsn = 0;
+        try (java.nio.channels.FileChannel lectura = java.nio.channels.FileChannel.open(
+                archivo, java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE)) {
+            long tamano = lectura.size();
+            java.nio.ByteBuffer datos = lectura.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, tamano);
+            java.util.zip.CRC32C suma = new java.util.zip.CRC32C();
+            int posicion = 0;
+            while (posicion + 4 <= tamano) {
+                int longitud = datos.getInt(posicion);
+                int fin = posicion + 4 + longitud;
+                if (longitud < 9 || longitud > TAMANO_MAXIMO_REGISTRO || fin + 4 > tamano) {
+                    break;
+                }
+                suma.reset();
+                datos.limit(fin).position(posicion + 4);
+                suma.update(datos);
+                datos.limit((int) tamano);
+                if ((int) suma.getValue() != datos.getInt(fin)) {
+                    break;
+                }
+                long lsn = datos.getLong(posicion + 4);
+                if (lsn >= desdeLsn) {
+                    datos.position(posicion + 12);
+                    aplicar(datos.get(), datos, destino);
+                    aplicados++;
+                }
+                ultimoLsn = lsn;
+                posicion = fin + 4;
+            }
+            if (posicion < tamano && cola) {
+                // Cola rota por una caida a media escritura: se recorta
+                lectura.truncate(posicion);
+            } else if (posicion < tamano && cubierto) {
+                RegistroAsincrono.aviso("Diario {} corrupto en el byte {} de {}; ya lo cubre la instantanea",
+                                        archivo.getFileName(), posicion, tamano);
+            } else if (posicion < tamano) {
+                throw new java.io.IOException("Diario " + archivo.getFileName() + " corrupto en el byte " + posicion
+                                              + " de " + tamano + ": los registros siguientes no se pueden aplicar");
+            }
+        }
+        return new long[] {aplicados, ultimoLsn};
+    }
+    
+    private static void aplicar(byte tipo, java.nio.ByteBuffer datos, GestorFlota destino) throws java.io.IOException {
+        switch (tipo) {
+            case TIPO_VEHICULO: {
+                int id = datos.getInt();
+                String tipoVehiculo = leerTexto(datos);
+                String modelo = leerTexto(datos);
+                float capacidad = datos.getFloat();
+                EstadoVehiculo estado = EstadoVehiculo.values()[datos.get()];
+                destino.aplicarVehiculo(id, tipoVehiculo, modelo, capacidad, estado, datos.getFloat());
+                break;
+            }
+            case TIPO_VEHICULO_ELIMINADO:
+                destino.aplicarEliminacion(datos.getInt());
+                break;
+            case TIPO_ESTADO: {
+                int id = datos.getInt();
+                EstadoVehiculo estado = EstadoVehiculo.values()[datos.get()];
+                destino.aplicarEstado(id, estado, datos.getFloat());
+                break;
+            }
+            case TIPO_RUTA: {
+                int id = datos.getInt();
+                String origen = leerTexto(datos);
+                String destinoRuta = leerTexto(datos);
+                destino.aplicarRuta(id, origen, destinoRuta, datos.getFloat());
+                break;
+            }
+            case TIPO_ENTREGA: {
+                int rutaId = datos.getInt();
+                int id = datos.getInt();
+                String direccion = leerTexto(datos);
+                java.time.LocalDateTime hora = aFecha(datos.getLong());
+                destino.aplicarEntrega(rutaId, id, direccion, hora, leerTexto(datos));
+                break;
+            }
+            case TIPO_ENTREGA_SECUENCIADA: {
+                int rutaId = datos.getInt();
+                int id = datos.getInt();
+                String direccion = leerTexto(datos);
+                java.time.LocalDateTime hora = aFecha(datos.getLong());
+                String estado = leerTexto(datos);
+                double latitud = datos.getDouble();
+                double longitud = datos.getDouble();
+                destino.aplicarEntrega(rutaId, id, direccion, hora, estado, latitud, longitud, datos.getInt());
+                break;
+            }
+            case TIPO_ASIGNACION: {
+                int rutaId = datos.getInt();
+                destino.aplicarAsignacion(rutaId, datos.getInt());
+                break;
+            }
+            default:
+                throw new java.io.IOException("Tipo de registro desconocido en el diario: " + tipo);
+        }
+    }
+    
+    // ====== Anotaciones ======
+    
+    /**
+     * Empieza a anotar operaciones de este gestor y arranca el commit periodico
+     */
+    synchronized void vincular(GestorFlota gestor) {
+        if (canal == null) {
+            try {
+                if (!listar("diario-", ".log").isEmpty() || !listar("instantanea-", ".snap").isEmpty()) {
+                    throw new IllegalStateException("El directorio " + directorio
+                                                    + " ya tiene un diario; hay que restaurarlo antes de anotar");
+                }
+                abrirArchivoNuevo();
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException("No se pudo abrir el diario en " + directorio, e);
+            }
+        }
+        this.gestor = gestor;
+        if (tareas == null) {
+            tareas = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(tarea -> {
+                Thread hilo = new Thread(tarea, "diario-flota");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+            long intervalo = politica == PoliticaSincronizacion.PERIODICA ? parametroPolitica : INTERVALO_COMMIT_MS;
+            tareas.scheduleWithFixedDelay(this::commitPeriodico, intervalo, intervalo,
+                                          java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    synchronized void anotarVehiculo(VehiculoElectrico vehiculo) {
+        if (!vigente(vehiculo)) {
+            return;
+        }
+        iniciarRegistro(TIPO_VEHICULO);
+        salida.putInt(vehiculo.getId());
+        escribirTexto(vehiculo.getTipo());
+        escribirTexto(vehiculo.getModelo());
+        salida.putFloat(vehiculo.getCapacidadBateria());
+        salida.put((byte) vehiculo.getEstado().ordinal());
+        salida.putFloat(vehiculo.getNivelBateria());
+        terminarRegistro();
+    }
+    
+    synchronized void anotarEliminacion(int vehiculoId) {
+        iniciarRegistro(TIPO_VEHICULO_ELIMINADO);
+        salida.putInt(vehiculoId);
+        terminarRegistro();
+    }
+    
+    /**
+     * Anota estado y nivel de bateria actuales del vehiculo
+     */
+    synchronized void anotarEstado(VehiculoElectrico vehiculo) {
+        if (!vigente(vehiculo)) {
+            return;
+        }
+        iniciarRegistro(TIPO_ESTADO);
+        salida.putInt(vehiculo.getId());
+        salida.put((byte) vehiculo.getEstado().ordinal());
+        salida.putFloat(vehiculo.getNivelBateria());
+        terminarRegistro();
+    }
+    
+    synchronized void anotarRuta(Ruta ruta) {
+        iniciarRegistro(TIPO_RUTA);
+        salida.putInt(ruta.getId());
+        escribirTexto(ruta.getOrigen());
+        escribirTexto(ruta.getDestino());
+        salida.putFloat(ruta.getDistancia());
+        terminarRegistro();
+    }
+    
+    synchronized void anotarEntrega(Ruta ruta, Entrega entrega) {
+        iniciarRegistro(TIPO_ENTREGA_SECUENCIADA);
+        salida.putInt(ruta.getId());
+        salida.putInt(entrega.getId());
+        escribirTexto(entrega.getDireccion());
+        salida.putLong(aMillis(entrega.getHoraEstimada()));
+        escribirTexto(entrega.getEstado());
+        salida.putDouble(entrega.getLatitud());
+        salida.putDouble(entrega.getLongitud());
+        salida.putInt(entrega.getSecuencia());
+        terminarRegistro();
+    }
+    
+    /**
+     * Anota el vehiculo asignado a la ruta (0 si quedo libre)
+     */
+    synchronized void anotarAsignacion(Ruta ruta) {
+        iniciarRegistro(TIPO_ASIGNACION);
+        salida.putInt(ruta.getId());
+        salida.putInt(ruta.getVehiculoId());
+        terminarRegistro();
+    }
+    
+    /**
+     * El vehiculo ya fue marcado con marcarCambioPendiente; su nivel se anota en el siguiente commit
+     */
+    void encolarDesgaste(VehiculoElectrico vehiculo) {
+        desgastesPendientes.add(vehiculo);
+    }
+    
+    /**
+     * Un vehiculo dado de baja (o reemplazado) no debe reaparecer por una anotacion tardia
+     */
+    private boolean vigente(VehiculoElectrico vehiculo) {
+        GestorFlota actual = gestor;
+        return actual == null || actual.consultarVehiculo(vehiculo.getId()) == vehiculo;
+    }
+    
+    private void iniciarRegistro(byte tipo) {
+        if (cerrado) {
+            throw new IllegalStateException("El diario esta cerrado");
+        }
+        if (salida.remaining() < TAMANO_MAXIMO_REGISTRO) {
+            vaciarBuffer();
+        }
+        posicionInicioRegistro = salida.position();
+        salida.putInt(0); // longitud, se completa al terminar
+        salida.putLong(siguienteLsn++);
+        salida.put(tipo);
+    }
+    
+    private void terminarRegistro() {
+        int inicio = posicionInicioRegistro;
+        int longitud = salida.position() - inicio - 4;
+        salida.putInt(inicio, longitud);
+        crc.reset();
+        crc.update(salida.array(), inicio + 4, longitud);
+        salida.putInt((int) crc.getValue());
+        registrosSinForzar++;
+        registrosDesdeInstantanea++;
+        if (politica == PoliticaSincronizacion.CADA_N_REGISTROS && registrosSinForzar >= parametroPolitica) {
+            vaciarBuffer();
+            forzar();
+        }
+    }
+    
+    private void escribirTexto(String texto) {
+        byte[] bytes = (texto != null ? texto : "").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Texto demasiado largo para el diario: " + bytes.length + " bytes");
+        }
+        salida.putShort((short) bytes.length);
+        salida.put(bytes);
+    }
+    
+    private static String leerTexto(java.nio.ByteBuffer datos) {
+        byte[] bytes = new byte[datos.getShort()];
+        datos.get(bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+    
+    // ====== Commit, fsync e instantaneas ======
+    
+    private void commitPeriodico() {
+        try {
+            sincronizar();
+            if (registrosDesdeInstantaneaActual() >= umbralInstantanea) {
+                tomarInstantanea();
+            }
+        } catch (RuntimeException | java.io.IOException e) {
+            RegistroAsincrono.error("Error en el commit del diario de la flota: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Anota los desgastes pendientes y lleva el buffer al sistema operativo;
+     * hace fsync si la politica lo pide
+     */
+    public synchronized void sincronizar() {
+        if (cerrado) {
+            return;
+        }
+        VehiculoElectrico vehiculo;
+        while ((vehiculo = desgastesPendientes.poll()) != null) {
+            // Se limpia antes de leer el nivel: un desgaste posterior lo vuelve a encolar
+            vehiculo.limpiarCambioPendiente();
+            anotarEstado(vehiculo);
+        }
+        vaciarBuffer();
+        if (politica == PoliticaSincronizacion.PERIODICA
+                || (politica == PoliticaSincronizacion.CADA_N_REGISTROS && registrosSinForzar > 0)) {
+            forzar();
+        }
+    }
+    
+    private synchronized long registrosDesdeInstantaneaActual() {
+        return registrosDesdeInstantanea;
+    }
+    
+    /**
+     * Compacta el estado actual en una instantanea y borra el diario anterior a ella.
+     * La flota puede seguir cambiando mientras se escribe: lo que cambie despues
+     * del LSN de la instantanea queda tambien en el diario nuevo.
+     */
+    public void tomarInstantanea() throws java.io.IOException {
+        GestorFlota origen = gestor;
+        if (origen == null || !tomandoInstantanea.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long lsn;
+            int siguienteVehiculo;
+            int siguienteRuta;
+            synchronized (this) {
+                if (cerrado) {
+                    return;
+                }
+                sincronizar();
+                if (politica != PoliticaSincronizacion.NUNCA) {
+                    forzar();
+                }
+                canal.close();
+                abrirArchivoNuevo();
+                lsn = siguienteLsn;
+                siguienteVehiculo = origen.getSiguienteIdVehiculo();
+                siguienteRuta = origen.getSiguienteIdRuta();
+                registrosDesdeInstantanea = 0;
+            }
+            
+            java.nio.file.Path temporal = directorio.resolve(nombre("instantanea-", lsn, ".tmp"));
+            escribirInstantanea(temporal, lsn, siguienteVehiculo, siguienteRuta, origen);
+            java.nio.file.Files.move(temporal, directorio.resolve(nombre("instantanea-", lsn, ".snap")),
+                                     java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            
+            synchronized (this) {
+                lsnUltimaInstantanea = lsn;
+            }
+            // Lo anterior al LSN ya esta en la instantanea
+            for (java.nio.file.Path archivo : listar("diario-", ".log")) {
+                if (numeroDe(archivo, "diario-", ".log") < lsn) {
+                    java.nio.file.Files.deleteIfExists(archivo);
+                }
+            }
+            for (java.nio.file.Path archivo : listar("instantanea-", ".snap")) {
+                if (numeroDe(archivo, "instantanea-", ".snap") < lsn) {
+                    java.nio.file.Files.deleteIfExists(archivo);
+                }
+            }
+        } finally {
+            tomandoInstantanea.set(false);
+        }
+    }
+    
+    private static void escribirInstantanea(java.nio.file.Path archivo, long lsn, int siguienteVehiculo,
+                                            int siguienteRuta, GestorFlota origen) throws java.io.IOException {
+        try (java.io.FileOutputStream archivoSalida = new java.io.FileOutputStream(archivo.toFile())) {
+            java.util.zip.CheckedOutputStream conSuma = new java.util.zip.CheckedOutputStream(
+                new java.io.BufferedOutputStream(archivoSalida, 1 << 16), new java.util.zip.CRC32C());
+            java.io.DataOutputStream out = new java.io.DataOutputStream(conSuma);
+            out.writeInt(MAGICO_INSTANTANEA);
+            out.writeInt(VERSION);
+            out.writeLong(lsn);
+            out.writeInt(siguienteVehiculo);
+            out.writeInt(siguienteRuta);
+            
+            // Se copian las vistas para escribir un conteo exacto aunque la flota cambie
+            java.util.List<VehiculoElectrico> vehiculos = new java.util.ArrayList<>(origen.listarVehiculos());
+            out.writeInt(vehiculos.size());
+            for (VehiculoElectrico v : vehiculos) {
+                out.writeInt(v.getId());
+                out.writeUTF(v.getTipo());
+                out.writeUTF(v.getModelo());
+                out.writeFloat(v.getCapacidadBateria());
+                out.writeByte(v.getEstado().ordinal());
+                out.writeFloat(v.getNivelBateria());
+            }
+            
+            java.util.List<Ruta> rutas = new java.util.ArrayList<>(origen.listarRutas());
+            out.writeInt(rutas.size());
+            for (Ruta ruta : rutas) {
+                out.writeInt(ruta.getId());
+                out.writeUTF(ruta.getOrigen());
+                out.writeUTF(ruta.getDestino());
+                out.writeFloat(ruta.getDistancia());
+                out.writeInt(ruta.getVehiculoId());
+                java.util.List<Entrega> entregas = new java.util.ArrayList<>(ruta.getEntregas());
+                out.writeInt(entregas.size());
+                for (Entrega entrega : entregas) {
+                    out.writeInt(entrega.getId());
+                    out.writeUTF(entrega.getDireccion());
+                    out.writeLong(aMillis(entrega.getHoraEstimada()));
+                    out.writeUTF(entrega.getEstado());
+                    out.writeDouble(entrega.getLatitud());
+                    out.writeDouble(entrega.getLongitud());
+                    out.writeInt(entrega.getSecuencia());
+                }
+            }
+            out.flush();
+            // La suma va al final y no se incluye a si misma
+            int suma = (int) conSuma.getChecksum().getValue();
+            new java.io.DataOutputStream(archivoSalida).writeInt(suma);
+            archivoSalida.getFD().sync();
+        }
+    }
+    
+    private static void leerInstantanea(java.nio.file.Path archivo, GestorFlota destino) throws java.io.IOException {
+        long tamano = java.nio.file.Files.size(archivo);
+        if (tamano < 4) {
+            throw new java.io.IOException("instantanea vacia");
+        }
+        // Primero se valida la suma para no aplicar una instantanea a medias
+        java.util.zip.CRC32C suma = new java.util.zip.CRC32C();
+        int sumaGuardada;
+        try (java.io.InputStream in = new java.io.BufferedInputStream(
+                java.nio.file.Files.newInputStream(archivo), 1 << 16)) {
+            byte[] bloque = new byte[1 << 16];
+            long pendientes = tamano - 4;
+            while (pendientes > 0) {
+                int leidos = in.read(bloque, 0, (int) Math.min(bloque.length, pendientes));
+                if (leidos < 0) {
+                    throw new java.io.EOFException();
+                }
+                suma.update(bloque, 0, leidos);
+                pendientes -= leidos;
+            }
+            sumaGuardada = new java.io.DataInputStream(in).readInt();
+        }
+        if ((int) suma.getValue() != sumaGuardada) {
+            throw new java.io.IOException("suma de verificacion incorrecta");
+        }
+        
+        try (java.io.DataInputStream in = new java.io.DataInputStream(new java.io.BufferedInputStream(
+                java.nio.file.Files.newInputStream(archivo), 1 << 16))) {
+            int version = in.readInt() == MAGICO_INSTANTANEA ? in.readInt() : -1;
+            if (version != VERSION && version != VERSION_SIN_SECUENCIA && version != VERSION_SIN_ASIGNACION) {
+                throw new java.io.IOException("formato de instantanea no reconocido");
+            }
+            in.readLong(); // lsn, ya viene en el nombre del archivo
+            destino.ajustarContadores(in.readInt(), in.readInt());
+            int vehiculos = in.readInt();
+            for (int i = 0; i < vehiculos; i++) {
+                int id = in.readInt();
+                String tipo = in.readUTF();
+                String modelo = in.readUTF();
+                float capacidad = in.readFloat();
+                EstadoVehiculo estado = EstadoVehiculo.values()[in.readByte()];
+                destino.aplicarVehiculo(id, tipo, modelo, capacidad, estado, in.readFloat());
+            }
+            int rutas = in.readInt();
+            for (int i = 0; i < rutas; i++) {
+                int rutaId = in.readInt();
+                destino.aplicarRuta(rutaId, in.readUTF(), in.readUTF(), in.readFloat());
+                if (version != VERSION_SIN_ASIGNACION) {
+                    destino.aplicarAsignacion(rutaId, in.readInt());
+                }
+                int entregas = in.readInt();
+                for (int j = 0; j < entregas; j++) {
+                    int id = in.readInt();
+                    String direccion = in.readUTF();
+                    java.time.LocalDateTime hora = aFecha(in.readLong());
+                    String estado = in.readUTF();
+                    if (version == VERSION) {
+                        double latitud = in.readDouble();
+                        double longitud = in.readDouble();
+                        destino.aplicarEntrega(rutaId, id, direccion, hora, estado, latitud, longitud, in.readInt());
+                    } else {
+                        destino.aplicarEntrega(rutaId, id, direccion, hora, estado);
+                    }
+                }
+            }
+        }
+    }
+    
+    // ====== Archivos ======
+    
+    private void abrirArchivoNuevo() throws java.io.IOException {
+        java.nio.file.Path archivo = directorio.resolve(nombre("diario-", siguienteLsn, ".log"));
+        canal = java.nio.channels.FileChannel.open(archivo,
+            java.nio.file.StandardOpenOption.CREATE,
+            java.nio.file.StandardOpenOption.WRITE,
+            java.nio.file.StandardOpenOption.APPEND);
+        tamanoArchivo = canal.size();
+        registrosSinForzar = 0;
+    }
+    
+    private void vaciarBuffer() {
+        if (salida.position() == 0) {
+            return;
+        }
+        salida.flip();
+        try {
+            while (salida.hasRemaining()) {
+                tamanoArchivo += canal.write(salida);
+            }
+            salida.clear();
+            if (tamanoArchivo >= TAMANO_MAXIMO_ARCHIVO) {
+                if (politica != PoliticaSincronizacion.NUNCA) {
+                    forzar();
+                }
+                canal.close();
+                abrirArchivoNuevo();
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("No se pudo escribir el diario en " + directorio, e);
+        }
+    }
+    
+    private void forzar() {
+        try {
+            canal.force(false);
+            registrosSinForzar = 0;
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("No se pudo sincronizar el diario en " + directorio, e);
+        }
+    }
+    
+    private java.util.List<java.nio.file.Path> listar(String prefijo, String sufijo) throws java.io.IOException {
+        java.util.List<java.nio.file.Path> archivos = new java.util.ArrayList<>();
+        try (java.nio.file.DirectoryStream<java.nio.file.Path> contenido =
+                 java.nio.file.Files.newDirectoryStream(directorio, prefijo + "*" + sufijo)) {
+            for (java.nio.file.Path archivo : contenido) {
+                archivos.add(archivo);
+            }
+        }
+        // Los numeros llevan ceros a la izquierda, asi el orden alfabetico es el del LSN
+        archivos.sort(null);
+        return archivos;
+    }
+    
+    private static String nombre(String prefijo, long numero, String sufijo) {
+        return String.format("%s%016d%s", prefijo, numero, sufijo);
+    }
+    
+    private static long numeroDe(java.nio.file.Path archivo, String prefijo, String sufijo) {
+        String nombre = archivo.getFileName().toString();
+        return Long.parseLong(nombre.substring(prefijo.length(), nombre.length() - sufijo.length()));
+    }
+    
+    private static long aMillis(java.time.LocalDateTime fecha) {
+        return fecha == null ? SIN_HORA
+            : fecha.atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    
+    private static java.time.LocalDateTime aFecha(long millis) {
+        return millis == SIN_HORA ? null : java.time.LocalDateTime.ofInstant(
+            java.time.Instant.ofEpochMilli(millis), java.time.ZoneId.systemDefault());
+    }
+    
+    public synchronized long getSiguienteLsn() {
+        return siguienteLsn;
+    }
+    
+    public synchronized long getLsnUltimaInstantanea() {
+        return lsnUltimaInstantanea;
+    }
+    
+    @Override
+    public void close() throws java.io.IOException {
+        if (tareas != null) {
+            tareas.shutdown();
+            try {
+                tareas.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (cerrado || canal == null) {
+                cerrado = true;
+                return;
+            }
+            sincronizar();
+            if (politica != PoliticaSincronizacion.NUNCA) {
+                forzar();
+            }
+            cerrado = true;
+            canal.close();
+        }
+    }
+}
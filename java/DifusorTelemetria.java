@@ -0,0 +1,260 @@
+// ============================================================================
+// DIFUSION DE TELEMETRIA EN VIVO
+// ============================================================================
+
+/**
+ * Suscriptor al flujo de lecturas en vivo, con su filtro y su lista de
+ * vehiculos pendientes de enviar. No guarda copias de lecturas: solo el id
+ * de cada vehiculo con novedades, una vez aunque lleguen muchas lecturas
+ * antes de que el cliente las lea. Al enviar se toma la ultima lectura del
+ * historial, asi un cliente lento recibe solo lo mas reciente de cada
+ * vehiculo y su memoria nunca pasa de un id (y un bit) por vehiculo.
+ */
+class SuscripcionTelemetria {
+    private final java.util.BitSet filtroVehiculos;
+    private final java.util.EnumSet<EstadoVehiculo> filtroEstados;
+    private final double latitudMinima;
+    private final double longitudMinima;
+    private final double latitudMaxima;
+    private final double longitudMaxima;
+    
+    private java.util.BitSet pendientes;
+    private int[] cola;
+    private int cabeza;
+    private int cantidad;
+    private long fusionadas;
+    private int maximoPendientes;
+    private boolean cerrada;
+    
+    /**
+     * @param vehiculos  ids a seguir, o null para todos
+     * @param estados    estados a seguir, o null para todos
+     * @param caja       {latMin, lonMin, latMax, lonMax}, o null para no filtrar por zona
+     */
+    public SuscripcionTelemetria(int[] vehiculos, java.util.EnumSet<EstadoVehiculo> estados, double[] caja) {
+        if (caja != null && (caja.length != 4 || caja[0] > caja[2] || caja[1] > caja[3])) {
+            throw new IllegalArgumentException("La caja debe ser latMin,lonMin,latMax,lonMax");
+        }
+        if (vehiculos != null) {
+            this.filtroVehiculos = new java.util.BitSet();
+            for (int id : vehiculos) {
+                if (id <= 0) {
+                    throw new IllegalArgumentException("Id de vehiculo no valido: " + id);
+                }
+                this.filtroVehiculos.set(id);
+            }
+        } else {
+            this.filtroVehiculos = null;
+        }
+        this.filtroEstados = estados != null ? java.util.EnumSet.copyOf(estados) : null;
+        this.latitudMinima = caja != null ? caja[0] : Double.NaN;
+        this.longitudMinima = caja != null ? caja[1] : Double.NaN;
+        this.latitudMaxima = caja != null ? caja[2] : Double.NaN;
+        this.longitudMaxima = caja != null ? caja[3] : Double.NaN;
+        this.pendientes = new java.util.BitSet();
+        this.cola = new int[64];
+    }
+    
+    public boolean acepta(int vehiculoId, EstadoVehiculo estado, double latitud, double longitud) {
+        if (filtroVehiculos != null && !filtroVehiculos.get(vehiculoId)) {
+            return false;
+        }
+        if (filtroEstados != null && !filtroEstados.contains(estado)) {
+            return false;
+        }
+        if (!Double.isNaN(latitudMinima)) {
+            return latitud >= latitudMinima && latitud <= latitudMaxima
+                && longitud >= longitudMinima && longitud <= longitudMaxima;
+        }
+        return true;
+    }
+    
+    /**
+     * Deja el vehiculo pendiente de enviar; si ya lo estaba, la lectura nueva
+     * simplemente reemplazara a la anterior cuando se envie.
+     */
+    synchronized void marcar(int vehiculoId) {
+        if (cerrada) {
+            return;
+        }
+        if (pendientes.get(vehiculoId)) {
+            fusionadas++;
+            return;
+        }
+        pendientes.set(vehiculoId);
+        if (cantidad == cola.length) {
+            int[] nueva = new int[cola.length * 2];
+            for (int i = 0; i < cantidad; i++) {
+                nueva[i] = cola[(cabeza + i) % cola.length];
+            }
+            cola = nueva;
+            cabeza = 0;
+        }
+        cola[(cabeza + cantidad) % cola.length] = vehiculoId;
+        cantidad++;
+        maximoPendientes = Math.max(maximoPendientes, cantidad);
+        if (cantidad == 1) {
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Saca hasta destino.length vehiculos pendientes, en el orden en que
+     * tuvieron novedades. Espera a que haya alguno como maximo esperaMillis.
+     * @return cantidad de ids copiados; 0 si vencio la espera, -1 si se cerro
+     */
+    public synchronized int tomar(int[] destino, long esperaMillis) throws InterruptedException {
+        long limite = System.currentTimeMillis() + esperaMillis;
+        while (cantidad == 0 && !cerrada) {
+            long restante = limite - System.currentTimeMillis();
+            if (restante <= 0) {
+                return 0;
+            }
+            wait(restante);
+        }
+        if (cerrada) {
+            return -1;
+        }
+        int tomados = Math.min(destino.length, cantidad);
+        for (int i = 0; i < tomados; i++) {
+            int id = cola[cabeza];
+            destino[i] = id;
+            pendientes.clear(id);
+            cabeza = (cabeza + 1) % cola.length;
+        }
+        cantidad -= tomados;
+        return tomados;
+    }
+    
+    public synchronized void cerrar() {
+        cerrada = true;
+        pendientes = new java.util.BitSet();
+        cantidad = 0;
+        notifyAll();
+    }
+    
+    public synchronized boolean isCerrada() { return cerrada; }
+    public synchronized int getPendientes() { return cantidad; }
+    public synchronized int getMaximoPendientes() { return maximoPendientes; }
+    /** Lecturas que no se enviaron porque llego otra mas nueva del mismo vehiculo */
+    public synchronized long getFusionadas() { return fusionadas; }
+}
+
+/**
+ * Reparte las lecturas nuevas a los suscriptores en vivo.
+ *
+ * El hilo que registra la lectura solo hace publicar(vehiculo): si ya hay una
+ * lectura del vehiculo esperando reparto no hace nada mas que leer una
+ * marca; si no, la pone con CAS y encola el vehiculo. Cada INTERVALO_MS el
+ * hilo del difusor vacia esa cola, lee la ultima lectura de cada vehiculo y
+ * lo marca en los suscriptores cuyo filtro la acepta. Asi el costo de
+ * registrar no depende de cuantos suscriptores haya ni de si son lentos.
+ */
+class DifusorTelemetria implements java.io.Closeable {
+    public static final long INTERVALO_MS = 50;
+    public static final int MAXIMO_SUSCRIPTORES = 1000;
+    
+    private GestorFlota gestor;
+    private java.util.concurrent.ConcurrentLinkedQueue<VehiculoElectrico> conLecturaNueva;
+    private java.util.concurrent.CopyOnWriteArrayList<SuscripcionTelemetria> suscripciones;
+    private java.util.concurrent.ScheduledExecutorService repartidor;
+    // Solo lo usa el hilo del repartidor
+    private SegmentoTelemetria ultima;
+    private java.util.concurrent.atomic.LongAdder repartidas;
+    
+    public DifusorTelemetria(GestorFlota gestor) {
+        this.gestor = gestor;
+        this.conLecturaNueva = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        this.suscripciones = new java.util.concurrent.CopyOnWriteArrayList<>();
+        this.ultima = new SegmentoTelemetria(1);
+        this.repartidas = new java.util.concurrent.atomic.LongAdder();
+        this.repartidor = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(tarea -> {
+            Thread hilo = new Thread(tarea, "sigefve-difusor");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        this.repartidor.scheduleWithFixedDelay(this::repartir, INTERVALO_MS, INTERVALO_MS,
+                                               java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Llamado por GestorFlota al registrar una lectura. Sin suscriptores no hace nada.
+     */
+    void publicar(VehiculoElectrico vehiculo) {
+        if (!suscripciones.isEmpty() && vehiculo.marcarLecturaSinDifundir()) {
+            conLecturaNueva.offer(vehiculo);
+        }
+    }
+    
+    /**
+     * Registra un suscriptor nuevo y le deja pendientes los vehiculos que ya
+     * cumplen su filtro, para que empiece con el estado actual de la flota.
+     * @return la suscripcion, o null si ya se alcanzo MAXIMO_SUSCRIPTORES
+     */
+    public SuscripcionTelemetria suscribir(int[] vehiculos, java.util.EnumSet<EstadoVehiculo> estados, double[] caja) {
+        SuscripcionTelemetria suscripcion = new SuscripcionTelemetria(vehiculos, estados, caja);
+        synchronized (suscripciones) {
+            if (suscripciones.size() >= MAXIMO_SUSCRIPTORES) {
+                return null;
+            }
+            suscripciones.add(suscripcion);
+        }
+        SegmentoTelemetria lectura = new SegmentoTelemetria(1);
+        for (VehiculoElectrico vehiculo : gestor.listarVehiculos()) {
+            if (gestor.copiarHistorialTelemetria(vehiculo.getId(), 1, lectura) > 0
+                    && suscripcion.acepta(vehiculo.getId(), vehiculo.getEstado(),
+                                          lectura.getLatitud(0), lectura.getLongitud(0))) {
+                suscripcion.marcar(vehiculo.getId());
+            }
+        }
+        return suscripcion;
+    }
+    
+    public void cancelar(SuscripcionTelemetria suscripcion) {
+        suscripciones.remove(suscripcion);
+        suscripcion.cerrar();
+    }
+    
+    public int getSuscriptores() {
+        return suscripciones.size();
+    }
+    
+    /** Lecturas que el difusor tomo de la cola y evaluo contra los filtros */
+    public long getRepartidas() {
+        return repartidas.sum();
+    }
+    
+    private void repartir() {
+        try {
+            VehiculoElectrico vehiculo;
+            while ((vehiculo = conLecturaNueva.poll()) != null) {
+                // Se limpia antes de leer: una lectura que llegue ahora vuelve a encolarlo
+                vehiculo.limpiarLecturaSinDifundir();
+                int id = vehiculo.getId();
+                if (gestor.copiarHistorialTelemetria(id, 1, ultima) == 0) {
+                    continue;
+                }
+                EstadoVehiculo estado = vehiculo.getEstado();
+                double latitud = ultima.getLatitud(0);
+                double longitud = ultima.getLongitud(0);
+                for (SuscripcionTelemetria suscripcion : suscripciones) {
+                    if (suscripcion.acepta(id, estado, latitud, longitud)) {
+                        suscripcion.marcar(id);
+                    }
+                }
+                repartidas.increment();
+            }
+        } catch (RuntimeException e) {
+            // Un error no debe detener el reparto programado
+            RegistroAsincrono.error("Error al difundir telemetria: {}", e);
+        }
+    }
+    
+    @Override
+    public void close() {
+        repartidor.shutdownNow();
+        for (SuscripcionTelemetria suscripcion : suscripciones) {
+            cancelar(suscripcion);
+        }
+    }
+}
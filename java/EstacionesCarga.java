@@ -0,0 +1,512 @@
+// ============================================================================
+// ESTACIONES DE CARGA Y PLANIFICADOR
+// ============================================================================
+
+/**
+ * Estacion de carga del deposito: un numero fijo de conectores y la potencia
+ * que entrega a cada tipo de vehiculo. Un tipo sin potencia no se carga aqui
+ * (por ejemplo un rack que solo tiene tomas para bicicletas).
+ */
+class EstacionCarga {
+    private final int id;
+    private final String nombre;
+    private final int conectores;
+    private final java.util.Map<String, Float> potenciaKwPorTipo;
+    // Lo cambia solo el planificador, bajo su candado
+    private volatile int ocupados;
+    
+    /**
+     * @param potenciaKwPorTipo  kW por conector para cada tipo ("van", "moto", "bicicleta")
+     */
+    public EstacionCarga(int id, String nombre, int conectores, java.util.Map<String, Float> potenciaKwPorTipo) {
+        if (conectores <= 0) {
+            throw new IllegalArgumentException("La estacion necesita al menos un conector");
+        }
+        for (java.util.Map.Entry<String, Float> potencia : potenciaKwPorTipo.entrySet()) {
+            if (!(potencia.getValue() > 0)) {
+                throw new IllegalArgumentException("Potencia no valida para " + potencia.getKey() + ": "
+                                                   + potencia.getValue());
+            }
+        }
+        this.id = id;
+        this.nombre = nombre;
+        this.conectores = conectores;
+        this.potenciaKwPorTipo = java.util.Map.copyOf(potenciaKwPorTipo);
+    }
+    
+    public int getId() { return id; }
+    public String getNombre() { return nombre; }
+    public int getConectores() { return conectores; }
+    public int getOcupados() { return ocupados; }
+    public int getLibres() { return conectores - ocupados; }
+    
+    /**
+     * @return kW por conector para el tipo, o 0 si la estacion no lo carga
+     */
+    public float getPotenciaKw(String tipo) {
+        Float potencia = potenciaKwPorTipo.get(tipo);
+        return potencia != null ? potencia : 0f;
+    }
+    
+    public boolean admite(String tipo) {
+        return potenciaKwPorTipo.containsKey(tipo);
+    }
+    
+    void setOcupados(int ocupados) {
+        this.ocupados = ocupados;
+    }
+    
+    @Override
+    public String toString() {
+        return "Estacion #" + id + " " + nombre + " (" + ocupados + "/" + conectores + " ocupados)";
+    }
+}
+
+/**
+ * Reparte los conectores de las estaciones entre los vehiculos que piden
+ * carga. Quien pide pasa a CARGANDO; si hay un conector libre que admita su
+ * tipo empieza en la estacion de mayor potencia, y si no espera en la cola de
+ * su tipo. Cuando un conector se libera se lo lleva el vehiculo con menor
+ * prioridad entre las colas de los tipos que admite la estacion.
+ *
+ * La prioridad es el porcentaje de bateria que le quedaria al vehiculo tras
+ * su proxima ruta (con el MARGEN_AUTONOMIA del despacho): primero los que no
+ * la cubren, despues los de menos bateria; a igual prioridad, el que llego antes.
+ *
+ * El tiempo no corre solo: avanzar(ahora) termina las cargas cuya hora de fin
+ * ya paso, en orden, dando cada conector al siguiente en la misma hora en que
+ * se libero. Las cargas en curso estan en una cola de prioridad por hora de
+ * fin, asi que avanzar cuesta O(terminadas log n), mas una pasada por las que
+ * siguen cargando cuando toca actualizar su bateria; no hay un hilo por
+ * vehiculo. iniciar(periodo) lo llama desde un unico hilo con la hora del
+ * reloj del planificador; una simulacion lo llama ella misma con la suya.
+ *
+ * La potencia es constante hasta NIVEL_CURVA y despues baja a FACTOR_CURVA,
+ * como en la fase de voltaje constante de una bateria de litio.
+ */
+class PlanificadorCarga {
+    public static final float NIVEL_CURVA = 80f;
+    public static final float FACTOR_CURVA = 0.5f;
+    public static final float NIVEL_OBJETIVO = 100f;
+    /** Cada cuanto avanzar actualiza la bateria de las cargas en curso */
+    public static final long ACTUALIZACION_NIVEL_MS = 60_000;
+    
+    private static final String[] TIPOS = {"van", "moto", "bicicleta"};
+    private static final double MILLIS_POR_HORA = 3_600_000.0;
+    
+    private final java.util.function.Consumer<VehiculoElectrico> alCambiar;
+    private final java.util.List<EstacionCarga> estaciones = new java.util.ArrayList<>();
+    // Por tipo: estaciones que lo admiten, de mayor a menor potencia, y cuantos de sus conectores estan libres
+    private EstacionCarga[][] estacionesPorTipo = new EstacionCarga[TIPOS.length][0];
+    private final int[] libresPorTipo = new int[TIPOS.length];
+    private final java.util.List<java.util.PriorityQueue<Espera>> colas = new java.util.ArrayList<>();
+    private final java.util.PriorityQueue<Sesion> sesiones =
+        new java.util.PriorityQueue<>(java.util.Comparator.comparingLong((Sesion sesion) -> sesion.finMillis)
+                                      .thenComparingLong(sesion -> sesion.orden));
+    // Vehiculo -> su Espera o su Sesion; un vehiculo esta a lo sumo en una
+    private final java.util.Map<Integer, Object> enCurso = new java.util.HashMap<>();
+    private long orden;
+    private long decisiones;
+    private long completadas;
+    private long esperaTotalMillis;
+    private long ultimaActualizacion = Long.MIN_VALUE;
+    private final java.time.Clock reloj;
+    private java.util.concurrent.ScheduledExecutorService temporizador;
+    
+    public PlanificadorCarga(java.util.function.Consumer<VehiculoElectrico> alCambiar) {
+        this(alCambiar, java.time.Clock.systemDefaultZone());
+    }
+    
+    /**
+     * @param reloj  hora con que iniciar(periodo) llama a avanzar
+     */
+    public PlanificadorCarga(java.util.function.Consumer<VehiculoElectrico> alCambiar, java.time.Clock reloj) {
+        this.alCambiar = alCambiar;
+        this.reloj = reloj;
+        for (int t = 0; t < TIPOS.length; t++) {
+            colas.add(new java.util.PriorityQueue<>(java.util.Comparator.comparingDouble((Espera espera) -> espera.prioridad)
+                                                    .thenComparingLong(espera -> espera.orden)));
+        }
+    }
+    
+    // ====== Estaciones ======
+    
+    /**
+     * Agrega la estacion y le da enseguida los vehiculos que esperan por un tipo que admite
+     */
+    public synchronized void agregarEstacion(EstacionCarga estacion, long ahoraMillis) {
+        for (EstacionCarga existente : estaciones) {
+            if (existente.getId() == estacion.getId()) {
+                throw new IllegalArgumentException("Ya existe la estacion " + estacion.getId());
+            }
+        }
+        estaciones.add(estacion);
+        for (int t = 0; t < TIPOS.length; t++) {
+            if (!estacion.admite(TIPOS[t])) {
+                continue;
+            }
+            EstacionCarga[] actuales = estacionesPorTipo[t];
+            EstacionCarga[] ampliadas = java.util.Arrays.copyOf(actuales, actuales.length + 1);
+            ampliadas[actuales.length] = estacion;
+            String tipo = TIPOS[t];
+            java.util.Arrays.sort(ampliadas, java.util.Comparator.comparingDouble((EstacionCarga e) -> -e.getPotenciaKw(tipo))
+                                                                .thenComparingInt(EstacionCarga::getId));
+            estacionesPorTipo[t] = ampliadas;
+            libresPorTipo[t] += estacion.getLibres();
+        }
+        while (estacion.getLibres() > 0 && ocuparConector(estacion, ahoraMillis)) {
+            // cada vuelta inicia una carga de las colas
+        }
+    }
+    
+    public synchronized java.util.List<EstacionCarga> getEstaciones() {
+        return new java.util.ArrayList<>(estaciones);
+    }
+    
+    public synchronized boolean tieneEstaciones() {
+        return !estaciones.isEmpty();
+    }
+    
+    // ====== Solicitudes ======
+    
+    /**
+     * Pasa el vehiculo a CARGANDO y le da un conector o lo pone en cola.
+     * Acepta vehiculos DISPONIBLES o ya en CARGANDO que el planificador no tenga.
+     * @param distanciaProximaRutaKm  km de la ruta que hara despues, o 0 si no tiene
+     * @return false si el vehiculo esta en otro estado, ya tiene la bateria
+     *         llena o ninguna estacion admite su tipo
+     */
+    public synchronized boolean solicitar(VehiculoElectrico vehiculo, float distanciaProximaRutaKm, long ahoraMillis) {
+        int tipo = indiceTipo(vehiculo.getTipo());
+        if (tipo < 0 || estacionesPorTipo[tipo].length == 0 || vehiculo.getNivelBateria() >= NIVEL_OBJETIVO) {
+            return false;
+        }
+        Object previo = enCurso.get(vehiculo.getId());
+        if (previo != null) {
+            if (vehiculo.getEstado() == EstadoVehiculo.CARGANDO && vehiculoDe(previo) == vehiculo) {
+                return true;
+            }
+            // Salio de CARGANDO sin pasar por cancelar, o es otro vehiculo con el mismo id
+            cancelar(vehiculo.getId(), ahoraMillis);
+        }
+        if (!vehiculo.compararYCambiarEstado(EstadoVehiculo.DISPONIBLE, EstadoVehiculo.CARGANDO)
+                && vehiculo.getEstado() != EstadoVehiculo.CARGANDO) {
+            return false;
+        }
+        alCambiar.accept(vehiculo);
+        decisiones++;
+        Espera espera = new Espera(vehiculo, prioridad(vehiculo, distanciaProximaRutaKm), ahoraMillis, orden++);
+        if (libresPorTipo[tipo] > 0) {
+            for (EstacionCarga estacion : estacionesPorTipo[tipo]) {
+                if (estacion.getLibres() > 0) {
+                    iniciarCarga(espera, estacion, ahoraMillis);
+                    return true;
+                }
+            }
+        }
+        colas.get(tipo).add(espera);
+        enCurso.put(vehiculo.getId(), espera);
+        return true;
+    }
+    
+    /**
+     * Saca al vehiculo de la cola o de su conector, que pasa al siguiente.
+     * El estado del vehiculo no se toca: lo decide quien cancela.
+     * @return false si el planificador no lo tenia
+     */
+    public synchronized boolean cancelar(int vehiculoId, long ahoraMillis) {
+        Object actual = enCurso.remove(vehiculoId);
+        if (actual instanceof Espera) {
+            Espera espera = (Espera) actual;
+            colas.get(indiceTipo(espera.vehiculo.getTipo())).remove(espera);
+            return true;
+        }
+        if (actual instanceof Sesion) {
+            Sesion sesion = (Sesion) actual;
+            sesiones.remove(sesion);
+            sesion.vehiculo.setNivelBateria(sesion.nivelEn(ahoraMillis));
+            liberarConector(sesion.estacion, ahoraMillis);
+            return true;
+        }
+        return false;
+    }
+    
+    // ====== Avance del tiempo ======
+    
+    /**
+     * Termina en orden las cargas con hora de fin hasta ahora (el vehiculo
+     * queda DISPONIBLE con NIVEL_OBJETIVO) y, a lo sumo cada
+     * ACTUALIZACION_NIVEL_MS, actualiza la bateria de las que siguen. En esa
+     * misma pasada las que salieron de CARGANDO por fuera del planificador
+     * liberan su conector.
+     * @return cargas terminadas
+     */
+    public synchronized int avanzar(long ahoraMillis) {
+        int terminadas = 0;
+        while (!sesiones.isEmpty() && sesiones.peek().finMillis <= ahoraMillis) {
+            Sesion sesion = sesiones.poll();
+            enCurso.remove(sesion.vehiculo.getId());
+            decisiones++;
+            if (sesion.vehiculo.getEstado() == EstadoVehiculo.CARGANDO) {
+                sesion.vehiculo.setNivelBateria(NIVEL_OBJETIVO);
+                if (sesion.vehiculo.compararYCambiarEstado(EstadoVehiculo.CARGANDO, EstadoVehiculo.DISPONIBLE)) {
+                    completadas++;
+                    terminadas++;
+                    alCambiar.accept(sesion.vehiculo);
+                }
+            }
+            liberarConector(sesion.estacion, sesion.finMillis);
+        }
+        if (ahoraMillis - ultimaActualizacion < ACTUALIZACION_NIVEL_MS && ahoraMillis >= ultimaActualizacion) {
+            return terminadas;
+        }
+        ultimaActualizacion = ahoraMillis;
+        java.util.List<Sesion> abandonadas = null;
+        for (Sesion sesion : sesiones) {
+            if (sesion.vehiculo.getEstado() != EstadoVehiculo.CARGANDO) {
+                if (abandonadas == null) {
+                    abandonadas = new java.util.ArrayList<>();
+                }
+                abandonadas.add(sesion);
+            } else {
+                sesion.vehiculo.setNivelBateria(sesion.nivelEn(ahoraMillis));
+            }
+        }
+        if (abandonadas != null) {
+            for (Sesion sesion : abandonadas) {
+                cancelar(sesion.vehiculo.getId(), ahoraMillis);
+            }
+        }
+        return terminadas;
+    }
+    
+    /**
+     * Llama a avanzar con la hora del reloj cada periodoMillis (reales) desde un hilo propio
+     */
+    public synchronized void iniciar(long periodoMillis) {
+        if (temporizador != null) {
+            return;
+        }
+        temporizador = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(tarea -> {
+            Thread hilo = new Thread(tarea, "carga");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        temporizador.scheduleAtFixedRate(() -> avanzar(reloj.millis()), periodoMillis, periodoMillis,
+                                         java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    public void detener() {
+        java.util.concurrent.ScheduledExecutorService actual;
+        synchronized (this) {
+            actual = temporizador;
+            temporizador = null;
+        }
+        if (actual != null) {
+            actual.shutdown();
+            try {
+                actual.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    // ====== Consultas ======
+    
+    public synchronized int getEnEspera() {
+        int total = 0;
+        for (java.util.PriorityQueue<Espera> cola : colas) {
+            total += cola.size();
+        }
+        return total;
+    }
+    
+    public synchronized int getCargando() {
+        return sesiones.size();
+    }
+    
+    /** Solicitudes, inicios de carga y cargas terminadas */
+    public synchronized long getDecisiones() {
+        return decisiones;
+    }
+    
+    public synchronized long getCompletadas() {
+        return completadas;
+    }
+    
+    /** Suma de lo que esperaron en cola los vehiculos que ya empezaron a cargar */
+    public synchronized long getEsperaTotalMillis() {
+        return esperaTotalMillis;
+    }
+    
+    /**
+     * @return hora estimada en que termina la carga del vehiculo, o -1 si
+     *         no esta cargando (en cola todavia no hay hora)
+     */
+    public synchronized long getFinEstimadoMillis(int vehiculoId) {
+        Object actual = enCurso.get(vehiculoId);
+        return actual instanceof Sesion ? ((Sesion) actual).finMillis : -1;
+    }
+    
+    /**
+     * Milisegundos que tarda en llevar la bateria de nivelInicial a NIVEL_OBJETIVO
+     */
+    public static long duracionMillis(float capacidadKwh, float potenciaKw, float nivelInicial) {
+        double porcentajePorHora = potenciaKw / capacidadKwh * 100.0;
+        double horas = 0;
+        if (nivelInicial < NIVEL_CURVA) {
+            horas += (NIVEL_CURVA - nivelInicial) / porcentajePorHora;
+        }
+        horas += (NIVEL_OBJETIVO - Math.max(nivelInicial, NIVEL_CURVA)) / (porcentajePorHora * FACTOR_CURVA);
+        return (long) Math.ceil(horas * MILLIS_POR_HORA);
+    }
+    
+    /**
+     * Porcentaje de bateria que le queda al vehiculo despues de una ruta de
+     * distanciaKm; menor es mas urgente
+     */
+    static double prioridad(VehiculoElectrico vehiculo, float distanciaKm) {
+        double necesario = 0;
+        if (distanciaKm > 0) {
+            necesario = 100.0 * distanciaKm * (1 + DespachoRutas.MARGEN_AUTONOMIA)
+                        / DespachoRutas.autonomiaPlenaKm(vehiculo);
+        }
+        return vehiculo.getNivelBateria() - necesario;
+    }
+    
+    // ====== Conectores ======
+    
+    private void iniciarCarga(Espera espera, EstacionCarga estacion, long ahoraMillis) {
+        cambiarOcupados(estacion, 1);
+        VehiculoElectrico vehiculo = espera.vehiculo;
+        float potencia = estacion.getPotenciaKw(vehiculo.getTipo());
+        float nivel = vehiculo.getNivelBateria();
+        long fin = ahoraMillis + duracionMillis(vehiculo.getCapacidadBateria(), potencia, nivel);
+        Sesion sesion = new Sesion(vehiculo, estacion, potencia, nivel, ahoraMillis, fin, espera.orden);
+        sesiones.add(sesion);
+        enCurso.put(vehiculo.getId(), sesion);
+        esperaTotalMillis += ahoraMillis - espera.llegadaMillis;
+    }
+    
+    private void liberarConector(EstacionCarga estacion, long ahoraMillis) {
+        cambiarOcupados(estacion, -1);
+        ocuparConector(estacion, ahoraMillis);
+    }
+    
+    /**
+     * Da un conector libre de la estacion al vehiculo mas urgente entre las
+     * colas de los tipos que admite
+     * @return false si no habia nadie esperando
+     */
+    private boolean ocuparConector(EstacionCarga estacion, long ahoraMillis) {
+        int elegida = -1;
+        Espera mejor = null;
+        for (int t = 0; t < TIPOS.length; t++) {
+            if (!estacion.admite(TIPOS[t])) {
+                continue;
+            }
+            Espera primera = primeraVigente(colas.get(t));
+            if (primera != null && (mejor == null || primera.prioridad < mejor.prioridad
+                                    || (primera.prioridad == mejor.prioridad && primera.orden < mejor.orden))) {
+                mejor = primera;
+                elegida = t;
+            }
+        }
+        if (mejor == null) {
+            return false;
+        }
+        colas.get(elegida).poll();
+        decisiones++;
+        iniciarCarga(mejor, estacion, ahoraMillis);
+        return true;
+    }
+    
+    /**
+     * Descarta del frente de la cola a los que ya no estan en CARGANDO
+     */
+    private Espera primeraVigente(java.util.PriorityQueue<Espera> cola) {
+        Espera primera;
+        while ((primera = cola.peek()) != null && primera.vehiculo.getEstado() != EstadoVehiculo.CARGANDO) {
+            cola.poll();
+            enCurso.remove(primera.vehiculo.getId());
+        }
+        return primera;
+    }
+    
+    private void cambiarOcupados(EstacionCarga estacion, int delta) {
+        estacion.setOcupados(estacion.getOcupados() + delta);
+        for (int t = 0; t < TIPOS.length; t++) {
+            if (estacion.admite(TIPOS[t])) {
+                libresPorTipo[t] -= delta;
+            }
+        }
+    }
+    
+    private static VehiculoElectrico vehiculoDe(Object enCurso) {
+        return enCurso instanceof Espera ? ((Espera) enCurso).vehiculo : ((Sesion) enCurso).vehiculo;
+    }
+    
+    private static int indiceTipo(String tipo) {
+        for (int t = 0; t < TIPOS.length; t++) {
+            if (TIPOS[t].equals(tipo)) {
+                return t;
+            }
+        }
+        return -1;
+    }
+    
+    private static final class Espera {
+        final VehiculoElectrico vehiculo;
+        final double prioridad;
+        final long llegadaMillis;
+        final long orden;
+        
+        Espera(VehiculoElectrico vehiculo, double prioridad, long llegadaMillis, long orden) {
+            this.vehiculo = vehiculo;
+            this.prioridad = prioridad;
+            this.llegadaMillis = llegadaMillis;
+            this.orden = orden;
+        }
+    }
+    
+    private static final class Sesion {
+        final VehiculoElectrico vehiculo;
+        final EstacionCarga estacion;
+        final float potenciaKw;
+        final float nivelInicial;
+        final long inicioMillis;
+        final long finMillis;
+        final long orden;
+        
+        Sesion(VehiculoElectrico vehiculo, EstacionCarga estacion, float potenciaKw, float nivelInicial,
+               long inicioMillis, long finMillis, long orden) {
+            this.vehiculo = vehiculo;
+            this.estacion = estacion;
+            this.potenciaKw = potenciaKw;
+            this.nivelInicial = nivelInicial;
+            this.inicioMillis = inicioMillis;
+            this.finMillis = finMillis;
+            this.orden = orden;
+        }
+        
+        /** Nivel de bateria a la hora dada segun la curva de carga */
+        float nivelEn(long ahoraMillis) {
+            if (ahoraMillis >= finMillis) {
+                return NIVEL_OBJETIVO;
+            }
+            double porcentajePorHora = potenciaKw / vehiculo.getCapacidadBateria() * 100.0;
+            double horas = Math.max(0, ahoraMillis - inicioMillis) / MILLIS_POR_HORA;
+            double nivel = nivelInicial;
+            if (nivel < NIVEL_CURVA) {
+                double hastaCurva = (NIVEL_CURVA - nivel) / porcentajePorHora;
+                if (horas <= hastaCurva) {
+                    return (float) (nivel + horas * porcentajePorHora);
+                }
+                horas -= hastaCurva;
+                nivel = NIVEL_CURVA;
+            }
+            return (float) Math.min(NIVEL_OBJETIVO, nivel + horas * porcentajePorHora * FACTOR_CURVA);
+        }
+    }
+}
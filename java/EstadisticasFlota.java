@@ -0,0 +1,219 @@
+// ============================================================================
+// ESTADISTICAS DE LA FLOTA
+// ============================================================================
+
+/**
+ * Foto inmutable de las estadisticas en un instante. Los dias van del mas
+ * reciente (0, hoy) al mas antiguo conservado.
+ */
+class ResumenEstadisticas {
+    private final int[] porEstado;
+    private final int totalVehiculos;
+    private final java.time.LocalDate[] fechas;
+    private final double[] kilometros;
+    private final long[] entregasCompletadas;
+    
+    ResumenEstadisticas(int[] porEstado, int totalVehiculos, java.time.LocalDate[] fechas,
+                        double[] kilometros, long[] entregasCompletadas) {
+        this.porEstado = porEstado;
+        this.totalVehiculos = totalVehiculos;
+        this.fechas = fechas;
+        this.kilometros = kilometros;
+        this.entregasCompletadas = entregasCompletadas;
+    }
+    
+    public int getVehiculos(EstadoVehiculo estado) { return porEstado[estado.ordinal()]; }
+    public int getTotalVehiculos() { return totalVehiculos; }
+    
+    public int getDias() { return fechas.length; }
+    public java.time.LocalDate getFecha(int dia) { return fechas[dia]; }
+    public double getKilometros(int dia) { return kilometros[dia]; }
+    public long getEntregasCompletadas(int dia) { return entregasCompletadas[dia]; }
+    
+    public double getKilometrosHoy() { return kilometros[0]; }
+    public long getEntregasCompletadasHoy() { return entregasCompletadas[0]; }
+}
+
+/**
+ * Agregados de la flota mantenidos a medida que ocurren los eventos, para
+ * que consultarlos no dependa del tamano de la flota ni del historial.
+ *
+ * Los conteos por estado se actualizan como observador de cada vehiculo
+ * (ver Vehiculo.observar): todo cambio de estado, por cualquier camino, pasa
+ * por aqui. Como los cambios de estado son poco frecuentes se guardan bajo
+ * un candado, asi una foto nunca ve un vehiculo a medio mover entre estados.
+ *
+ * Los totales diarios (km recorridos segun la telemetria y entregas
+ * completadas) son sumadores sin candado que se suman en la hora de cada
+ * evento, segun el dia en la zona horaria de la flota. Al cambiar el dia se
+ * abre uno nuevo (y uno vacio por cada dia sin eventos) y se conservan los
+ * ultimos DIAS_CONSERVADOS; los eventos mas viejos que eso, o adelantados al
+ * reloj mas de GestorFlota.ADELANTO_MAXIMO_MS, se descartan.
+ */
+class EstadisticasFlota implements ObservadorEstado {
+    public static final int DIAS_CONSERVADOS = 7;
+    
+    private final java.time.ZoneId zona;
+    private final java.time.Clock reloj;
+    private final int[] porEstado;
+    private int totalVehiculos;
+    // Altas, bajas y cambios de estado desde el arranque; se escribe bajo el candado
+    private volatile long cambiosEstado;
+    // [0] es el dia mas reciente; el arreglo se reemplaza entero al abrir un dia
+    private volatile TotalesDia[] dias;
+    
+    public EstadisticasFlota() {
+        this(java.time.ZoneId.systemDefault());
+    }
+    
+    public EstadisticasFlota(java.time.ZoneId zona) {
+        this(java.time.Clock.system(zona));
+    }
+    
+    /**
+     * @param reloj  define el dia de hoy y su zona horaria
+     */
+    public EstadisticasFlota(java.time.Clock reloj) {
+        this.reloj = reloj;
+        this.zona = reloj.getZone();
+        this.porEstado = new int[EstadoVehiculo.values().length];
+        this.dias = new TotalesDia[] { new TotalesDia(java.time.LocalDate.now(reloj), zona) };
+    }
+    
+    // ====== Eventos ======
+    
+    @Override
+    public synchronized void estadoCambiado(EstadoVehiculo anterior, EstadoVehiculo nuevo) {
+        if (anterior != null) {
+            porEstado[anterior.ordinal()]--;
+            totalVehiculos--;
+        }
+        if (nuevo != null) {
+            porEstado[nuevo.ordinal()]++;
+            totalVehiculos++;
+        }
+        cambiosEstado++;
+    }
+    
+    public void sumarRecorrido(long tiempoMillis, double kilometros) {
+        if (kilometros <= 0) {
+            return;
+        }
+        TotalesDia dia = dia(tiempoMillis);
+        if (dia != null) {
+            dia.kilometros.add(kilometros);
+        }
+    }
+    
+    public void contarEntregaCompletada(long tiempoMillis) {
+        TotalesDia dia = dia(tiempoMillis);
+        if (dia != null) {
+            dia.entregas.increment();
+        }
+    }
+    
+    // ====== Consulta ======
+    
+    /**
+     * Crece con cada alta, baja o cambio de estado; se lee sin candado
+     */
+    public long getCambiosEstado() {
+        return cambiosEstado;
+    }
+    
+    /**
+     * Copia los conteos y totales actuales; cuesta lo mismo con cualquier
+     * tamano de flota. Si el dia cambio sin eventos, hoy aparece en cero.
+     */
+    public ResumenEstadisticas resumir() {
+        dia(reloj.millis());
+        TotalesDia[] actuales = dias;
+        int cantidad = actuales.length;
+        java.time.LocalDate[] fechas = new java.time.LocalDate[cantidad];
+        double[] kilometros = new double[cantidad];
+        long[] entregas = new long[cantidad];
+        for (int i = 0; i < cantidad; i++) {
+            fechas[i] = actuales[i].fecha;
+            kilometros[i] = actuales[i].kilometros.sum();
+            entregas[i] = actuales[i].entregas.sum();
+        }
+        int[] conteo;
+        int total;
+        synchronized (this) {
+            conteo = porEstado.clone();
+            total = totalVehiculos;
+        }
+        return new ResumenEstadisticas(conteo, total, fechas, kilometros, entregas);
+    }
+    
+    // ====== Dias ======
+    
+    /**
+     * @return los totales del dia al que pertenece el instante, o null si es
+     *         anterior a los dias conservados o se adelanta al reloj mas de
+     *         GestorFlota.ADELANTO_MAXIMO_MS
+     */
+    private TotalesDia dia(long tiempoMillis) {
+        TotalesDia[] actuales = dias;
+        TotalesDia hoy = actuales[0];
+        if (tiempoMillis >= hoy.inicioMillis && tiempoMillis < hoy.finMillis) {
+            return hoy;
+        }
+        if (tiempoMillis >= hoy.finMillis) {
+            if (tiempoMillis > reloj.millis() + GestorFlota.ADELANTO_MAXIMO_MS) {
+                // Un dispositivo con la hora mal puesta no abre dias que aun no llegan
+                return null;
+            }
+            return abrirDias(tiempoMillis);
+        }
+        for (int i = 1; i < actuales.length; i++) {
+            if (tiempoMillis >= actuales[i].inicioMillis) {
+                return actuales[i];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Abre los dias hasta el de hoy segun el reloj, o hasta el del instante
+     * si cae en el adelanto tolerado. Los dias sin eventos se abren en cero,
+     * asi lo que llegue tarde para ellos todavia se cuenta.
+     */
+    private synchronized TotalesDia abrirDias(long tiempoMillis) {
+        TotalesDia[] actuales = dias;
+        if (tiempoMillis < actuales[0].finMillis) {
+            // Otro hilo ya lo abrio
+            return dia(tiempoMillis);
+        }
+        java.time.LocalDate hasta = java.time.Instant.ofEpochMilli(Math.max(tiempoMillis, reloj.millis()))
+            .atZone(zona).toLocalDate();
+        java.time.LocalDate desde = actuales[0].fecha.plusDays(1);
+        if (desde.isBefore(hasta.minusDays(DIAS_CONSERVADOS - 1))) {
+            desde = hasta.minusDays(DIAS_CONSERVADOS - 1);
+        }
+        int abiertos = (int) java.time.temporal.ChronoUnit.DAYS.between(desde, hasta) + 1;
+        TotalesDia[] nuevos = new TotalesDia[Math.min(actuales.length + abiertos, DIAS_CONSERVADOS)];
+        for (int i = 0; i < abiertos; i++) {
+            nuevos[i] = new TotalesDia(hasta.minusDays(i), zona);
+        }
+        System.arraycopy(actuales, 0, nuevos, abiertos, nuevos.length - abiertos);
+        dias = nuevos;
+        return dia(tiempoMillis);
+    }
+    
+    private static class TotalesDia {
+        final java.time.LocalDate fecha;
+        final long inicioMillis;
+        final long finMillis;
+        final java.util.concurrent.atomic.DoubleAdder kilometros;
+        final java.util.concurrent.atomic.LongAdder entregas;
+        
+        TotalesDia(java.time.LocalDate fecha, java.time.ZoneId zona) {
+            this.fecha = fecha;
+            this.inicioMillis = fecha.atStartOfDay(zona).toInstant().toEpochMilli();
+            this.finMillis = fecha.plusDays(1).atStartOfDay(zona).toInstant().toEpochMilli();
+            this.kilometros = new java.util.concurrent.atomic.DoubleAdder();
+            this.entregas = new java.util.concurrent.atomic.LongAdder();
+        }
+    }
+}
@@ -0,0 +1,652 @@
+// ============================================================================
+// FLOTA REPARTIDA EN PARTICIONES
+// ============================================================================
+
+/**
+ * Vehiculo en camino de una particion a otra. Entre particiones del mismo
+ * proceso viaja el objeto con su historial completo (crudas, minutos y
+ * horas); desde o hacia otro proceso viajan sus datos y las lecturas crudas,
+ * y la particion que lo recibe rehace con ellas sus intervalos.
+ */
+final class TraspasoVehiculo {
+    private final VehiculoElectrico vehiculo;
+    private final BufferTelemetriaVehiculo historial;
+    private final SegmentoTelemetria lecturas;
+    
+    TraspasoVehiculo(VehiculoElectrico vehiculo, BufferTelemetriaVehiculo historial) {
+        this.vehiculo = vehiculo;
+        this.historial = historial;
+        this.lecturas = null;
+    }
+    
+    TraspasoVehiculo(VehiculoElectrico vehiculo, SegmentoTelemetria lecturas) {
+        this.vehiculo = vehiculo;
+        this.historial = null;
+        this.lecturas = lecturas;
+    }
+    
+    VehiculoElectrico getVehiculo() { return vehiculo; }
+    
+    /** null si solo viajan las lecturas crudas */
+    BufferTelemetriaVehiculo getHistorial() { return historial; }
+    
+    /** Lecturas crudas en orden cronologico */
+    SegmentoTelemetria getLecturas() {
+        if (lecturas != null) {
+            return lecturas;
+        }
+        SegmentoTelemetria copia = new SegmentoTelemetria(Math.max(1, historial.getTamano()));
+        historial.copiarUltimas(Integer.MAX_VALUE, copia);
+        return copia;
+    }
+}
+
+/**
+ * Una parte de la flota: un GestorFlota en este proceso (ParticionLocal) o
+ * en otro (ParticionRemota). Las operaciones son las que FlotaParticionada
+ * dirige a la particion duena de un vehiculo o reparte entre todas.
+ */
+interface ParticionFlota extends java.io.Closeable {
+    /** Identifica a la particion en el anillo; debe ser unico en la flota */
+    String getNombre();
+    
+    VehiculoElectrico crearVehiculo(int id, String tipo, String modelo, float capacidadBateria);
+    
+    VehiculoElectrico consultarVehiculo(int id);
+    
+    boolean eliminarVehiculo(int id);
+    
+    boolean cambiarEstadoVehiculo(int id, EstadoVehiculo nuevoEstado);
+    
+    boolean cargarVehiculo(int id);
+    
+    int registrarLectura(int vehiculoId, long tiempoMillis, float velocidad, float temperaturaMotor,
+                         double latitud, double longitud);
+    
+    int registrarTelemetriaLote(LoteTelemetria lote);
+    
+    Telemetria obtenerUltimaTelemetria(int vehiculoId);
+    
+    java.util.List<VehiculoElectrico> listarVehiculos();
+    
+    java.util.List<VehiculoElectrico> obtenerVehiculosDisponibles();
+    
+    ResumenEstadisticas obtenerEstadisticas();
+    
+    long getTotalLecturasTelemetria();
+    
+    /** @return null si el vehiculo no esta en esta particion */
+    TraspasoVehiculo extraerVehiculo(int id);
+    
+    void incorporarVehiculo(TraspasoVehiculo traspaso);
+}
+
+/**
+ * Particion en el mismo proceso: delega en su GestorFlota
+ */
+class ParticionLocal implements ParticionFlota {
+    private final String nombre;
+    private final GestorFlota gestor;
+    
+    public ParticionLocal(String nombre, GestorFlota gestor) {
+        this.nombre = nombre;
+        this.gestor = gestor;
+    }
+    
+    public GestorFlota getGestor() {
+        return gestor;
+    }
+    
+    @Override
+    public String getNombre() {
+        return nombre;
+    }
+    
+    @Override
+    public VehiculoElectrico crearVehiculo(int id, String tipo, String modelo, float capacidadBateria) {
+        return gestor.crearVehiculo(id, tipo, modelo, capacidadBateria);
+    }
+    
+    @Override
+    public VehiculoElectrico consultarVehiculo(int id) {
+        return gestor.consultarVehiculo(id);
+    }
+    
+    @Override
+    public boolean eliminarVehiculo(int id) {
+        return gestor.eliminarVehiculo(id);
+    }
+    
+    @Override
+    public boolean cambiarEstadoVehiculo(int id, EstadoVehiculo nuevoEstado) {
+        return gestor.cambiarEstadoVehiculo(id, nuevoEstado);
+    }
+    
+    @Override
+    public boolean cargarVehiculo(int id) {
+        return gestor.cargarVehiculo(id);
+    }
+    
+    @Override
+    public int registrarLectura(int vehiculoId, long tiempoMillis, float velocidad, float temperaturaMotor,
+                                double latitud, double longitud) {
+        return gestor.registrarLectura(vehiculoId, tiempoMillis, velocidad, temperaturaMotor, latitud, longitud);
+    }
+    
+    @Override
+    public int registrarTelemetriaLote(LoteTelemetria lote) {
+        return gestor.registrarTelemetriaLote(lote);
+    }
+    
+    @Override
+    public Telemetria obtenerUltimaTelemetria(int vehiculoId) {
+        return gestor.obtenerUltimaTelemetria(vehiculoId);
+    }
+    
+    @Override
+    public java.util.List<VehiculoElectrico> listarVehiculos() {
+        return new java.util.ArrayList<>(gestor.listarVehiculos());
+    }
+    
+    @Override
+    public java.util.List<VehiculoElectrico> obtenerVehiculosDisponibles() {
+        return gestor.obtenerVehiculosDisponibles();
+    }
+    
+    @Override
+    public ResumenEstadisticas obtenerEstadisticas() {
+        return gestor.obtenerEstadisticas();
+    }
+    
+    @Override
+    public long getTotalLecturasTelemetria() {
+        return gestor.getTotalLecturasTelemetria();
+    }
+    
+    @Override
+    public TraspasoVehiculo extraerVehiculo(int id) {
+        return gestor.extraerVehiculo(id);
+    }
+    
+    @Override
+    public void incorporarVehiculo(TraspasoVehiculo traspaso) {
+        gestor.incorporarVehiculo(traspaso);
+    }
+    
+    @Override
+    public void close() {
+    }
+}
+
+/**
+ * Anillo de hash consistente: cada particion ocupa NODOS_VIRTUALES puntos
+ * derivados de su nombre y un vehiculo pertenece a la del primer punto a
+ * partir del hash de su id. Al agregar una particion solo cambian de dueno
+ * los vehiculos que caen en sus nuevos puntos (en promedio 1/N de la flota),
+ * y todos van a la nueva.
+ *
+ * Es inmutable; buscar al dueno es una busqueda binaria sin crear objetos.
+ */
+final class AnilloParticiones {
+    static final int NODOS_VIRTUALES = 160;
+    
+    private final long[] puntos;
+    private final int[] duenos;
+    
+    AnilloParticiones(String[] nombres) {
+        int total = nombres.length * NODOS_VIRTUALES;
+        long[] claves = new long[total];
+        for (int p = 0; p < nombres.length; p++) {
+            long base = (long) nombres[p].hashCode() << 32;
+            for (int v = 0; v < NODOS_VIRTUALES; v++) {
+                // Punto (31 bits, asi la clave no es negativa) en la mitad alta y particion en la baja
+                claves[p * NODOS_VIRTUALES + v] = (mezclar(base | v) >>> 33 << 32) | p;
+            }
+        }
+        java.util.Arrays.sort(claves);
+        puntos = new long[total];
+        duenos = new int[total];
+        for (int i = 0; i < total; i++) {
+            puntos[i] = claves[i] >>> 32;
+            duenos[i] = (int) (claves[i] & 0xFFFF_FFFFL);
+        }
+    }
+    
+    /**
+     * @return indice (en el orden de los nombres) de la particion duena del vehiculo
+     */
+    int dueno(int vehiculoId) {
+        long punto = mezclar(vehiculoId) >>> 33;
+        int i = java.util.Arrays.binarySearch(puntos, punto);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return duenos[i == puntos.length ? 0 : i];
+    }
+    
+    // Finalizador de SplitMix64: reparte bien ids consecutivos
+    private static long mezclar(long valor) {
+        long z = valor + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+/**
+ * Flota repartida entre varios GestorFlota. Los vehiculos se asignan a una
+ * particion por hash consistente de su id: las operaciones de un vehiculo
+ * van directo a su particion y las de toda la flota (listados, disponibles,
+ * estadisticas) se piden a todas en paralelo y se juntan.
+ *
+ * Los ids de vehiculo los reparte esta clase, asi son unicos en toda la
+ * flota; los de las lecturas son unicos solo dentro de cada particion. Las
+ * rutas, el despacho y las estaciones de carga siguen siendo de cada
+ * GestorFlota.
+ *
+ * agregarParticion mueve a la nueva los vehiculos que le tocan con su
+ * historial. Mientras mueve, las demas operaciones esperan: cada operacion
+ * toma el candado de lectura, asi nunca llega a una particion que ya no es
+ * la duena.
+ */
+class FlotaParticionada implements java.io.Closeable {
+    private final java.util.concurrent.locks.ReentrantReadWriteLock candado =
+        new java.util.concurrent.locks.ReentrantReadWriteLock();
+    private final java.util.concurrent.atomic.AtomicInteger contadorVehiculos;
+    private final java.util.concurrent.ExecutorService ejecutor;
+    // Un lote de trabajo por particion en cada hilo que registra lotes
+    private final ThreadLocal<LoteTelemetria[]> partesPorHilo = new ThreadLocal<>();
+    private volatile Distribucion distribucion;
+    
+    /**
+     * @param particiones  al menos una; los ids nuevos siguen al mayor que ya tengan
+     */
+    public FlotaParticionada(java.util.List<? extends ParticionFlota> particiones) {
+        if (particiones.isEmpty()) {
+            throw new IllegalArgumentException("La flota necesita al menos una particion");
+        }
+        java.util.concurrent.atomic.AtomicInteger numero = new java.util.concurrent.atomic.AtomicInteger();
+        this.ejecutor = java.util.concurrent.Executors.newCachedThreadPool(tarea -> {
+            Thread hilo = new Thread(tarea, "sigefve-particion-" + numero.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        this.distribucion = new Distribucion(particiones.toArray(new ParticionFlota[0]));
+        int mayor = 0;
+        for (java.util.List<VehiculoElectrico> parte : consultarTodas(distribucion, ParticionFlota::listarVehiculos)) {
+            for (VehiculoElectrico vehiculo : parte) {
+                mayor = Math.max(mayor, vehiculo.getId());
+            }
+        }
+        this.contadorVehiculos = new java.util.concurrent.atomic.AtomicInteger(mayor + 1);
+    }
+    
+    public int getCantidadParticiones() {
+        return distribucion.particiones.length;
+    }
+    
+    public ParticionFlota getParticion(int indice) {
+        return distribucion.particiones[indice];
+    }
+    
+    /** Particion que hoy es duena del vehiculo (exista o no) */
+    public ParticionFlota particionDe(int vehiculoId) {
+        Distribucion actual = distribucion;
+        return actual.particiones[actual.anillo.dueno(vehiculoId)];
+    }
+    
+    // ====== Operaciones de un vehiculo ======
+    
+    public VehiculoElectrico crearVehiculo(String tipo, String modelo, float capacidadBateria) {
+        int id = contadorVehiculos.getAndIncrement();
+        candado.readLock().lock();
+        try {
+            return particionDe(id).crearVehiculo(id, tipo, modelo, capacidadBateria);
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    public VehiculoElectrico consultarVehiculo(int id) {
+        candado.readLock().lock();
+        try {
+            return particionDe(id).consultarVehiculo(id);
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    public boolean eliminarVehiculo(int id) {
+        candado.readLock().lock();
+        try {
+            return particionDe(id).eliminarVehiculo(id);
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    public boolean cambiarEstadoVehiculo(int id, EstadoVehiculo nuevoEstado) {
+        candado.readLock().lock();
+        try {
+            return particionDe(id).cambiarEstadoVehiculo(id, nuevoEstado);
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    public boolean cargarVehiculo(int id) {
+        candado.readLock().lock();
+        try {
+            return particionDe(id).cargarVehiculo(id);
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    public int registrarLectura(int vehiculoId, long tiempoMillis, float velocidad, float temperaturaMotor,
+                                double latitud, double longitud) {
+        candado.readLock().lock();
+        try {
+            return particionDe(vehiculoId).registrarLectura(vehiculoId, tiempoMillis, velocidad, temperaturaMotor,
+                                                            latitud, longitud);
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    public Telemetria obtenerUltimaTelemetria(int vehiculoId) {
+        candado.readLock().lock();
+        try {
+            return particionDe(vehiculoId).obtenerUltimaTelemetria(vehiculoId);
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Separa el lote por particion duena (conservando el orden de llegada de
+     * cada vehiculo) y registra cada parte en su particion
+     * @return lecturas registradas entre todas
+     */
+    public int registrarTelemetriaLote(LoteTelemetria lote) {
+        candado.readLock().lock();
+        Distribucion actual = distribucion;
+        LoteTelemetria[] partes = null;
+        try {
+            partes = partes(actual.particiones.length, lote.getCapacidad());
+            for (int i = 0; i < lote.getTamano(); i++) {
+                int vehiculoId = lote.getVehiculoId(i);
+                partes[actual.anillo.dueno(vehiculoId)].agregar(vehiculoId, lote.getSecuencia(i), lote.getTiempo(i),
+                                                                lote.getVelocidad(i), lote.getTemperaturaMotor(i),
+                                                                lote.getNivelBateria(i), lote.getLatitud(i),
+                                                                lote.getLongitud(i));
+            }
+            int registradas = 0;
+            for (int p = 0; p < partes.length; p++) {
+                if (partes[p].getTamano() > 0) {
+                    registradas += actual.particiones[p].registrarTelemetriaLote(partes[p]);
+                }
+            }
+            return registradas;
+        } finally {
+            if (partes != null) {
+                for (LoteTelemetria parte : partes) {
+                    parte.limpiar();
+                }
+            }
+            candado.readLock().unlock();
+        }
+    }
+    
+    private LoteTelemetria[] partes(int cantidad, int capacidad) {
+        LoteTelemetria[] partes = partesPorHilo.get();
+        if (partes == null || partes.length != cantidad || partes[0].getCapacidad() < capacidad) {
+            partes = new LoteTelemetria[cantidad];
+            for (int p = 0; p < cantidad; p++) {
+                partes[p] = new LoteTelemetria(capacidad);
+            }
+            partesPorHilo.set(partes);
+        }
+        return partes;
+    }
+    
+    // ====== Consultas de toda la flota ======
+    
+    public java.util.List<VehiculoElectrico> listarVehiculos() {
+        return juntar(ParticionFlota::listarVehiculos);
+    }
+    
+    public java.util.List<VehiculoElectrico> obtenerVehiculosDisponibles() {
+        return juntar(ParticionFlota::obtenerVehiculosDisponibles);
+    }
+    
+    public long getTotalLecturasTelemetria() {
+        candado.readLock().lock();
+        try {
+            long total = 0;
+            for (long parte : consultarTodas(distribucion, ParticionFlota::getTotalLecturasTelemetria)) {
+                total += parte;
+            }
+            return total;
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    public int[] contarVehiculosPorEstado() {
+        ResumenEstadisticas resumen = obtenerEstadisticas();
+        EstadoVehiculo[] estados = EstadoVehiculo.values();
+        int[] conteos = new int[estados.length];
+        for (EstadoVehiculo estado : estados) {
+            conteos[estado.ordinal()] = resumen.getVehiculos(estado);
+        }
+        return conteos;
+    }
+    
+    /**
+     * Suma los conteos por estado y los totales de cada dia. Los dias se
+     * alinean por fecha: una particion que aun no vio un dia suma cero en el.
+     */
+    public ResumenEstadisticas obtenerEstadisticas() {
+        java.util.List<ResumenEstadisticas> partes;
+        candado.readLock().lock();
+        try {
+            partes = consultarTodas(distribucion, ParticionFlota::obtenerEstadisticas);
+        } finally {
+            candado.readLock().unlock();
+        }
+        EstadoVehiculo[] estados = EstadoVehiculo.values();
+        int[] porEstado = new int[estados.length];
+        int total = 0;
+        java.util.TreeMap<java.time.LocalDate, double[]> dias = new java.util.TreeMap<>(java.util.Comparator.reverseOrder());
+        for (ResumenEstadisticas parte : partes) {
+            for (EstadoVehiculo estado : estados) {
+                porEstado[estado.ordinal()] += parte.getVehiculos(estado);
+            }
+            total += parte.getTotalVehiculos();
+            for (int dia = 0; dia < parte.getDias(); dia++) {
+                double[] totales = dias.computeIfAbsent(parte.getFecha(dia), fecha -> new double[2]);
+                totales[0] += parte.getKilometros(dia);
+                totales[1] += parte.getEntregasCompletadas(dia);
+            }
+        }
+        int cantidadDias = Math.min(dias.size(), EstadisticasFlota.DIAS_CONSERVADOS);
+        java.time.LocalDate[] fechas = new java.time.LocalDate[cantidadDias];
+        double[] kilometros = new double[cantidadDias];
+        long[] entregas = new long[cantidadDias];
+        int dia = 0;
+        for (java.util.Map.Entry<java.time.LocalDate, double[]> entrada : dias.entrySet()) {
+            if (dia == cantidadDias) {
+                break;
+            }
+            fechas[dia] = entrada.getKey();
+            kilometros[dia] = entrada.getValue()[0];
+            entregas[dia] = (long) entrada.getValue()[1];
+            dia++;
+        }
+        return new ResumenEstadisticas(porEstado, total, fechas, kilometros, entregas);
+    }
+    
+    private java.util.List<VehiculoElectrico> juntar(
+            java.util.function.Function<ParticionFlota, java.util.List<VehiculoElectrico>> consulta) {
+        candado.readLock().lock();
+        try {
+            java.util.List<VehiculoElectrico> todos = new java.util.ArrayList<>();
+            for (java.util.List<VehiculoElectrico> parte : consultarTodas(distribucion, consulta)) {
+                todos.addAll(parte);
+            }
+            return todos;
+        } finally {
+            candado.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Hace la consulta en todas las particiones a la vez
+     * @return la respuesta de cada particion, en orden
+     */
+    private <T> java.util.List<T> consultarTodas(Distribucion actual,
+                                                 java.util.function.Function<ParticionFlota, T> consulta) {
+        ParticionFlota[] particiones = actual.particiones;
+        if (particiones.length == 1) {
+            return java.util.List.of(consulta.apply(particiones[0]));
+        }
+        java.util.List<java.util.concurrent.Future<T>> pendientes = new java.util.ArrayList<>(particiones.length);
+        for (ParticionFlota particion : particiones) {
+            pendientes.add(ejecutor.submit(() -> consulta.apply(particion)));
+        }
+        java.util.List<T> respuestas = new java.util.ArrayList<>(particiones.length);
+        try {
+            for (java.util.concurrent.Future<T> pendiente : pendientes) {
+                respuestas.add(pendiente.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Consulta a las particiones interrumpida", e);
+        } catch (java.util.concurrent.ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Fallo la consulta a una particion", e.getCause());
+        }
+        return respuestas;
+    }
+    
+    // ====== Rebalanceo ======
+    
+    /**
+     * Agrega la particion y le mueve los vehiculos que ahora le tocan, con
+     * su estado, bateria e historial. Si la particion nueva no acepta alguno,
+     * todos los movidos vuelven a su particion de origen, la nueva no se
+     * agrega y se relanza el error.
+     * @return cuantos vehiculos se movieron
+     */
+    public int agregarParticion(ParticionFlota nueva) {
+        candado.writeLock().lock();
+        try {
+            Distribucion actual = distribucion;
+            ParticionFlota[] particiones = java.util.Arrays.copyOf(actual.particiones, actual.particiones.length + 1);
+            int indiceNueva = particiones.length - 1;
+            particiones[indiceNueva] = nueva;
+            Distribucion siguiente = new Distribucion(particiones);
+            
+            java.util.List<java.util.List<VehiculoElectrico>> listados =
+                consultarTodas(actual, ParticionFlota::listarVehiculos);
+            // Lo movido y de donde salio, por si hay que devolverlo
+            java.util.List<TraspasoVehiculo> traspasos = new java.util.ArrayList<>();
+            java.util.List<ParticionFlota> origenes = new java.util.ArrayList<>();
+            for (int p = 0; p < actual.particiones.length; p++) {
+                for (VehiculoElectrico vehiculo : listados.get(p)) {
+                    int dueno = siguiente.anillo.dueno(vehiculo.getId());
+                    if (dueno == p) {
+                        continue;
+                    }
+                    TraspasoVehiculo traspaso = actual.particiones[p].extraerVehiculo(vehiculo.getId());
+                    if (traspaso == null) {
+                        continue;
+                    }
+                    traspasos.add(traspaso);
+                    origenes.add(actual.particiones[p]);
+                    try {
+                        particiones[dueno].incorporarVehiculo(traspaso);
+                    } catch (RuntimeException e) {
+                        devolverTraspasos(particiones[dueno], traspasos, origenes, e);
+                        RegistroAsincrono.error("Particion {} no agregada: no acepto el vehiculo {} ({})",
+                                                nueva.getNombre(), vehiculo.getId(), e.getMessage());
+                        throw e;
+                    }
+                }
+            }
+            int movidos = traspasos.size();
+            distribucion = siguiente;
+            RegistroAsincrono.info("Particion {} agregada: {} vehiculos movidos, {} particiones",
+                                   nueva.getNombre(), movidos, particiones.length);
+            return movidos;
+        } finally {
+            candado.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Devuelve cada vehiculo a su particion de origen, del ultimo al primero.
+     * Antes lo quita del destino si llego a entrar, asi un reintento con la
+     * misma particion no lo encuentra repetido. Lo que no se pueda devolver
+     * queda como suprimido en el error original.
+     */
+    private static void devolverTraspasos(ParticionFlota destino, java.util.List<TraspasoVehiculo> traspasos,
+                                          java.util.List<ParticionFlota> origenes, RuntimeException causa) {
+        for (int i = traspasos.size() - 1; i >= 0; i--) {
+            TraspasoVehiculo traspaso = traspasos.get(i);
+            int id = traspaso.getVehiculo().getId();
+            try {
+                destino.extraerVehiculo(id);
+            } catch (RuntimeException e) {
+                // El destino es el que fallo; lo que haya quedado ahi no se enruta
+            }
+            try {
+                origenes.get(i).incorporarVehiculo(traspaso);
+            } catch (RuntimeException e) {
+                RegistroAsincrono.error("No se pudo devolver el vehiculo {} a {}: {}",
+                                        id, origenes.get(i).getNombre(), e.getMessage());
+                causa.addSuppressed(e);
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws java.io.IOException {
+        ejecutor.shutdownNow();
+        java.io.IOException primera = null;
+        for (ParticionFlota particion : distribucion.particiones) {
+            try {
+                particion.close();
+            } catch (java.io.IOException e) {
+                if (primera == null) {
+                    primera = e;
+                }
+            }
+        }
+        if (primera != null) {
+            throw primera;
+        }
+    }
+    
+    /** Particiones y anillo se publican juntos para que nunca se lean de versiones distintas */
+    private static final class Distribucion {
+        final ParticionFlota[] particiones;
+        final AnilloParticiones anillo;
+        
+        Distribucion(ParticionFlota[] particiones) {
+            this.particiones = particiones;
+            String[] nombres = new String[particiones.length];
+            java.util.Set<String> vistos = new java.util.HashSet<>();
+            for (int p = 0; p < particiones.length; p++) {
+                nombres[p] = particiones[p].getNombre();
+                if (!vistos.add(nombres[p])) {
+                    throw new IllegalArgumentException("Ya hay una particion llamada " + nombres[p]);
+                }
+            }
+            this.anillo = new AnilloParticiones(nombres);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// ============================================================================
+// FOTOS INMUTABLES DE LA FLOTA
+// ============================================================================
+
+/**
+ * Vista inmutable de la flota: id, tipo, modelo, estado, bateria, capacidad
+ * y ultima posicion de cada vehiculo, en columnas ordenadas por id. La toma
+ * GestorFlota copiando cada vehiculo una vez; despues nada la modifica, asi
+ * que cualquier cantidad de lectores la recorre sin candados y todos ven lo
+ * mismo. Los conteos por estado salen de la misma copia y siempre cuadran
+ * con los registros.
+ *
+ * La copia recorre la flota mientras la ingesta sigue, asi que no es un
+ * instante unico: dos vehiculos pueden estar copiados con unos milisegundos
+ * de diferencia. De cada vehiculo, estado y bateria se leen juntos en su
+ * candado (un cambio hecho en ese candado, como cargar, no sale a medias),
+ * pero el desgaste de la ingesta no toma el candado y las posiciones se
+ * leen al final desde el indice espacial: la posicion puede ser de una
+ * lectura posterior a la bateria copiada.
+ */
+final class FotoFlota {
+    private static final EstadoVehiculo[] ESTADOS = EstadoVehiculo.values();
+    static final FotoFlota VACIA = new FotoFlota(0, -1, 0, 0, new int[0], new String[0], new String[0],
+                                                 new byte[0], new float[0], new float[0], new double[0],
+                                                 new double[0]);
+    
+    private final long version;
+    private final long marca;
+    private final long millis;
+    private final int tamano;
+    private final int[] ids;
+    private final String[] tipos;
+    private final String[] modelos;
+    private final byte[] estados;
+    private final float[] baterias;
+    private final float[] capacidades;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final int[] porEstado;
+    
+    /**
+     * Los arreglos pasan a ser de la foto; quien la arma no debe tocarlos despues
+     * @param marca  marca de cambios de la flota cuando se empezo a copiar
+     */
+    FotoFlota(long version, long marca, long millis, int tamano, int[] ids, String[] tipos, String[] modelos,
+              byte[] estados, float[] baterias, float[] capacidades, double[] latitudes, double[] longitudes) {
+        this.version = version;
+        this.marca = marca;
+        this.millis = millis;
+        this.tamano = tamano;
+        this.ids = ids;
+        this.tipos = tipos;
+        this.modelos = modelos;
+        this.estados = estados;
+        this.baterias = baterias;
+        this.capacidades = capacidades;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.porEstado = new int[ESTADOS.length];
+        for (int i = 0; i < tamano; i++) {
+            porEstado[estados[i]]++;
+        }
+    }
+    
+    /** Crece en uno con cada foto publicada por el mismo GestorFlota */
+    public long getVersion() { return version; }
+    long getMarca() { return marca; }
+    /** Hora del reloj de la flota al terminar la copia */
+    public long getMillis() { return millis; }
+    
+    public int getTamano() { return tamano; }
+    public int getVehiculos(EstadoVehiculo estado) { return porEstado[estado.ordinal()]; }
+    
+    public int getId(int i) { return ids[i]; }
+    public String getTipo(int i) { return tipos[i]; }
+    public String getModelo(int i) { return modelos[i]; }
+    public EstadoVehiculo getEstado(int i) { return ESTADOS[estados[i]]; }
+    public float getNivelBateria(int i) { return baterias[i]; }
+    public float getCapacidadBateria(int i) { return capacidades[i]; }
+    /** NaN si el vehiculo aun no reporta posicion */
+    public double getLatitud(int i) { return latitudes[i]; }
+    public double getLongitud(int i) { return longitudes[i]; }
+    public boolean tienePosicion(int i) { return !Double.isNaN(latitudes[i]); }
+    
+    /**
+     * @return posicion del vehiculo en la foto, o -1 si no estaba
+     */
+    public int indiceDe(int vehiculoId) {
+        int indice = java.util.Arrays.binarySearch(ids, 0, tamano, vehiculoId);
+        return indice >= 0 ? indice : -1;
+    }
+    
+    /**
+     * @return la primera fila con id mayor o igual, o getTamano() si no hay
+     */
+    public int filaDesde(int vehiculoId) {
+        int indice = java.util.Arrays.binarySearch(ids, 0, tamano, vehiculoId);
+        return indice >= 0 ? indice : -indice - 1;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("FotoFlota[version=%d, %d vehiculos, %d disponibles, %d en ruta]",
+                             version, tamano, getVehiculos(EstadoVehiculo.DISPONIBLE),
+                             getVehiculos(EstadoVehiculo.EN_RUTA));
+    }
+}
@@ -0,0 +1,556 @@
+// ============================================================================
+// INDICE ESPACIAL DE LA FLOTA
+// ============================================================================
+
+/**
+ * Rejilla uniforme sobre la ultima posicion conocida de cada vehiculo.
+ *
+ * Cada celda cubre tamanoCelda x tamanoCelda grados y guarda sus vehiculos
+ * en arreglos paralelos (id, latitud, longitud), asi una consulta recorre
+ * memoria contigua sin tocar el historial ni parsear texto. Solo existen las
+ * celdas que alguna vez tuvieron vehiculos.
+ *
+ * Una lectura que no cambia de celda solo sobrescribe la posicion bajo el
+ * candado de la celda; si cambia, el vehiculo se quita de una celda y se
+ * agrega a otra bajo el candado del vehiculo (para que dos lecturas del
+ * mismo no se crucen al mudarlo) y luego el de cada celda, siempre en ese
+ * orden. Las entradas estan en un arreglo por id, como los ids de la flota
+ * son consecutivos, asi la lectura no paga una busqueda en un mapa.
+ *
+ * No considera el salto de longitud en +-180: la flota opera en una region.
+ */
+class IndiceEspacial {
+    /** ~1.1 km de lado en latitud */
+    public static final double TAMANO_CELDA_POR_DEFECTO = 0.01;
+    public static final double RADIO_TIERRA_KM = 6371.0088;
+    
+    private final double tamanoCelda;
+    // Indexado por id de vehiculo; solo crece, bajo el candado del indice
+    private volatile java.util.concurrent.atomic.AtomicReferenceArray<Entrada> entradas;
+    private final java.util.concurrent.atomic.AtomicInteger indexados;
+    private final java.util.concurrent.ConcurrentHashMap<Long, Celda> celdas;
+    // Extremos de las filas y columnas con celdas; acotan la busqueda de cercanos
+    private final java.util.concurrent.atomic.AtomicInteger filaMinima;
+    private final java.util.concurrent.atomic.AtomicInteger filaMaxima;
+    private final java.util.concurrent.atomic.AtomicInteger columnaMinima;
+    private final java.util.concurrent.atomic.AtomicInteger columnaMaxima;
+    
+    public IndiceEspacial() {
+        this(TAMANO_CELDA_POR_DEFECTO);
+    }
+    
+    public IndiceEspacial(double tamanoCelda) {
+        if (!(tamanoCelda > 0) || tamanoCelda > 10) {
+            throw new IllegalArgumentException("Tamano de celda no valido: " + tamanoCelda);
+        }
+        this.tamanoCelda = tamanoCelda;
+        this.entradas = new java.util.concurrent.atomic.AtomicReferenceArray<>(1024);
+        this.indexados = new java.util.concurrent.atomic.AtomicInteger();
+        this.celdas = new java.util.concurrent.ConcurrentHashMap<>();
+        this.filaMinima = new java.util.concurrent.atomic.AtomicInteger(Integer.MAX_VALUE);
+        this.filaMaxima = new java.util.concurrent.atomic.AtomicInteger(Integer.MIN_VALUE);
+        this.columnaMinima = new java.util.concurrent.atomic.AtomicInteger(Integer.MAX_VALUE);
+        this.columnaMaxima = new java.util.concurrent.atomic.AtomicInteger(Integer.MIN_VALUE);
+    }
+    
+    // ====== Actualizacion ======
+    
+    /**
+     * Registra la posicion mas reciente del vehiculo.
+     */
+    public void actualizar(VehiculoElectrico vehiculo, double latitud, double longitud) {
+        if (Double.isNaN(latitud) || Double.isNaN(longitud)) {
+            return;
+        }
+        Entrada entrada = entrada(vehiculo.getId());
+        if (entrada == null) {
+            entrada = crearEntrada(vehiculo);
+        }
+        if (entrada.vehiculo != vehiculo) {
+            // El diario puede reemplazar el objeto del vehiculo al restaurar
+            entrada.vehiculo = vehiculo;
+        }
+        int fila = fila(latitud);
+        int columna = columna(longitud);
+        Celda actual = entrada.celda;
+        if (actual != null && actual.fila == fila && actual.columna == columna
+                && actual.moverSiContiene(entrada, latitud, longitud)) {
+            return;
+        }
+        synchronized (entrada) {
+            if (entrada.eliminada) {
+                return;
+            }
+            actual = entrada.celda;
+            if (actual != null && actual.fila == fila && actual.columna == columna) {
+                actual.moverSiContiene(entrada, latitud, longitud);
+                return;
+            }
+            if (actual != null) {
+                actual.quitar(entrada);
+            }
+            Celda destino = celda(fila, columna);
+            destino.agregar(entrada, latitud, longitud);
+            entrada.celda = destino;
+        }
+    }
+    
+    public void eliminar(int vehiculoId) {
+        Entrada entrada;
+        synchronized (this) {
+            entrada = entrada(vehiculoId);
+            if (entrada == null) {
+                return;
+            }
+            entradas.set(vehiculoId, null);
+            indexados.decrementAndGet();
+        }
+        synchronized (entrada) {
+            entrada.eliminada = true;
+            if (entrada.celda != null) {
+                entrada.celda.quitar(entrada);
+                entrada.celda = null;
+            }
+        }
+    }
+    
+    /** Vehiculos con posicion conocida */
+    public int getTamano() {
+        return indexados.get();
+    }
+    
+    public double getTamanoCelda() {
+        return tamanoCelda;
+    }
+    
+    /**
+     * @return {latitud, longitud} de la ultima posicion indexada, o null si no hay
+     */
+    public double[] getPosicion(int vehiculoId) {
+        Entrada entrada = entrada(vehiculoId);
+        if (entrada == null) {
+            return null;
+        }
+        synchronized (entrada) {
+            Celda celda = entrada.celda;
+            return celda != null ? celda.posicion(entrada) : null;
+        }
+    }
+    
+    /**
+     * Copia la ultima posicion de los vehiculos de ids[0, tamano), ordenados
+     * de menor a mayor, a la misma fila de los arreglos. Toma el candado de
+     * una celda a la vez y solo para copiar sus arreglos; los ids se buscan ya
+     * sin el, asi la ingesta casi no espera. Las filas de vehiculos sin
+     * posicion no se tocan.
+     */
+    public void copiarPosiciones(int[] ids, int tamano, double[] latitudes, double[] longitudes) {
+        CopiaCelda copia = new CopiaCelda();
+        for (Celda celda : celdas.values()) {
+            celda.copiarA(copia);
+            for (int i = 0; i < copia.cantidad; i++) {
+                int fila = java.util.Arrays.binarySearch(ids, 0, tamano, copia.miembros[i].vehiculo.getId());
+                if (fila >= 0) {
+                    latitudes[fila] = copia.latitudes[i];
+                    longitudes[fila] = copia.longitudes[i];
+                }
+            }
+        }
+    }
+    
+    // ====== Consultas ======
+    
+    /**
+     * Vehiculos dentro de la caja (bordes incluidos), sin orden particular.
+     * @param estado  estado buscado, o null para cualquiera
+     * @param tipo    "van", "bicicleta" o "moto", o null para cualquiera
+     * @param limite  maximo de resultados
+     */
+    public java.util.List<VehiculoElectrico> buscarEnCaja(double latitudMinima, double longitudMinima,
+                                                         double latitudMaxima, double longitudMaxima,
+                                                         EstadoVehiculo estado, String tipo, int limite) {
+        if (latitudMinima > latitudMaxima || longitudMinima > longitudMaxima) {
+            throw new IllegalArgumentException("La caja debe ser latMin,lonMin,latMax,lonMax");
+        }
+        java.util.List<VehiculoElectrico> encontrados = new java.util.ArrayList<>();
+        int filaDesde = Math.max(fila(latitudMinima), filaMinima.get());
+        int filaHasta = Math.min(fila(latitudMaxima), filaMaxima.get());
+        int columnaDesde = Math.max(columna(longitudMinima), columnaMinima.get());
+        int columnaHasta = Math.min(columna(longitudMaxima), columnaMaxima.get());
+        if (filaDesde > filaHasta || columnaDesde > columnaHasta || limite <= 0) {
+            return encontrados;
+        }
+        Filtro filtro = new Filtro(estado, tipo);
+        long celdasCaja = (long) (filaHasta - filaDesde + 1) * (columnaHasta - columnaDesde + 1);
+        if (celdasCaja > celdas.size()) {
+            // Caja mas grande que la zona ocupada: conviene recorrer las celdas existentes
+            for (Celda celda : celdas.values()) {
+                if (celda.fila >= filaDesde && celda.fila <= filaHasta
+                        && celda.columna >= columnaDesde && celda.columna <= columnaHasta
+                        && !celda.buscarEnCaja(latitudMinima, longitudMinima, latitudMaxima, longitudMaxima,
+                                               filtro, encontrados, limite)) {
+                    break;
+                }
+            }
+            return encontrados;
+        }
+        for (int fila = filaDesde; fila <= filaHasta; fila++) {
+            for (int columna = columnaDesde; columna <= columnaHasta; columna++) {
+                Celda celda = celdas.get(clave(fila, columna));
+                if (celda != null && !celda.buscarEnCaja(latitudMinima, longitudMinima, latitudMaxima,
+                                                         longitudMaxima, filtro, encontrados, limite)) {
+                    return encontrados;
+                }
+            }
+        }
+        return encontrados;
+    }
+    
+    /**
+     * Los k vehiculos mas cercanos (distancia de gran circulo), del mas cercano
+     * al mas lejano. Recorre anillos de celdas alrededor del punto y se detiene
+     * cuando el anillo siguiente ya no puede tener nada mas cerca que el
+     * k-esimo encontrado.
+     */
+    public ResultadoCercanos buscarCercanos(double latitud, double longitud, int k,
+                                            EstadoVehiculo estado, String tipo) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k debe ser positivo");
+        }
+        if (Double.isNaN(latitud) || Double.isNaN(longitud)) {
+            throw new IllegalArgumentException("Coordenadas no validas");
+        }
+        ResultadoCercanos resultado = new ResultadoCercanos(k);
+        Filtro filtro = new Filtro(estado, tipo);
+        int filaCentro = fila(latitud);
+        int columnaCentro = columna(longitud);
+        int radioMaximo = Math.max(Math.max(filaCentro - filaMinima.get(), filaMaxima.get() - filaCentro),
+                                   Math.max(columnaCentro - columnaMinima.get(), columnaMaxima.get() - columnaCentro));
+        for (int radio = 0; radio <= radioMaximo; radio++) {
+            if (resultado.estaCompleto() && cotaInferiorKm(latitud, longitud, radio) > resultado.getDistanciaDeCorte()) {
+                break;
+            }
+            long lado = 2L * radio + 1;
+            if (radio > 1 && lado * lado > 2L * celdas.size()) {
+                // Los anillos ya cubren mas celdas de las que existen: se recorren todas de una vez
+                resultado.limpiar();
+                for (Celda celda : celdas.values()) {
+                    celda.buscarCercanos(latitud, longitud, filtro, resultado);
+                }
+                break;
+            }
+            for (int fila = filaCentro - radio; fila <= filaCentro + radio; fila++) {
+                boolean borde = fila == filaCentro - radio || fila == filaCentro + radio;
+                // En filas intermedias del anillo solo cuentan las dos columnas de los extremos
+                int paso = borde || radio == 0 ? 1 : 2 * radio;
+                for (int columna = columnaCentro - radio; columna <= columnaCentro + radio; columna += paso) {
+                    Celda celda = celdas.get(clave(fila, columna));
+                    if (celda != null) {
+                        celda.buscarCercanos(latitud, longitud, filtro, resultado);
+                    }
+                }
+            }
+        }
+        return resultado;
+    }
+    
+    /**
+     * Distancia minima a cualquier punto de un anillo de celdas: esta al menos
+     * (radio - 1) celdas mas lo que falta hasta el borde de la celda central,
+     * en latitud o en longitud.
+     */
+    private double cotaInferiorKm(double latitud, double longitud, int radio) {
+        if (radio == 0) {
+            return 0;
+        }
+        double enFila = (latitud + 90) / tamanoCelda;
+        double enColumna = (longitud + 180) / tamanoCelda;
+        enFila -= Math.floor(enFila);
+        enColumna -= Math.floor(enColumna);
+        double margen = Math.min(Math.min(enFila, 1 - enFila), Math.min(enColumna, 1 - enColumna));
+        double separacion = Math.toRadians(Math.min(180, (radio - 1 + margen) * tamanoCelda));
+        double latitudExtrema = Math.toRadians(Math.min(90, Math.abs(latitud) + (radio + 1) * tamanoCelda));
+        // La separacion en longitud se acorta hacia los polos; la de latitud nunca es menor que esta
+        double seno = Math.cos(latitudExtrema) * Math.sin(separacion / 2);
+        return 2 * RADIO_TIERRA_KM * Math.asin(Math.min(1, seno));
+    }
+    
+    public static double distanciaKm(double latitud1, double longitud1, double latitud2, double longitud2) {
+        double dLatitud = Math.toRadians(latitud2 - latitud1);
+        double dLongitud = Math.toRadians(longitud2 - longitud1);
+        double a = Math.sin(dLatitud / 2) * Math.sin(dLatitud / 2)
+                 + Math.cos(Math.toRadians(latitud1)) * Math.cos(Math.toRadians(latitud2))
+                   * Math.sin(dLongitud / 2) * Math.sin(dLongitud / 2);
+        return 2 * RADIO_TIERRA_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+    
+    private Entrada entrada(int vehiculoId) {
+        java.util.concurrent.atomic.AtomicReferenceArray<Entrada> tabla = entradas;
+        return vehiculoId >= 0 && vehiculoId < tabla.length() ? tabla.get(vehiculoId) : null;
+    }
+    
+    private synchronized Entrada crearEntrada(VehiculoElectrico vehiculo) {
+        int id = vehiculo.getId();
+        if (id < 0) {
+            throw new IllegalArgumentException("Id de vehiculo no valido: " + id);
+        }
+        java.util.concurrent.atomic.AtomicReferenceArray<Entrada> tabla = entradas;
+        if (id >= tabla.length()) {
+            int capacidad = tabla.length();
+            while (capacidad <= id) {
+                capacidad *= 2;
+            }
+            java.util.concurrent.atomic.AtomicReferenceArray<Entrada> nueva =
+                new java.util.concurrent.atomic.AtomicReferenceArray<>(capacidad);
+            for (int i = 0; i < tabla.length(); i++) {
+                nueva.set(i, tabla.get(i));
+            }
+            entradas = tabla = nueva;
+        }
+        Entrada entrada = tabla.get(id);
+        if (entrada == null) {
+            entrada = new Entrada(vehiculo);
+            tabla.set(id, entrada);
+            indexados.incrementAndGet();
+        }
+        return entrada;
+    }
+    
+    // ====== Celdas ======
+    
+    private int fila(double latitud) {
+        return (int) Math.floor((latitud + 90) / tamanoCelda);
+    }
+    
+    private int columna(double longitud) {
+        return (int) Math.floor((longitud + 180) / tamanoCelda);
+    }
+    
+    /**
+     * Fila y columna juntas, mezcladas: Long.hashCode de la union sin mezclar
+     * es fila ^ columna y las celdas vecinas chocan en el mapa, que entonces
+     * convierte sus cubetas en arboles. La mezcla (el final de SplitMix64) es
+     * biyectiva, asi que cada celda sigue teniendo su propia clave.
+     */
+    private static long clave(int fila, int columna) {
+        long clave = ((long) fila << 32) | (columna & 0xFFFFFFFFL);
+        clave = (clave ^ (clave >>> 30)) * 0xBF58476D1CE4E5B9L;
+        clave = (clave ^ (clave >>> 27)) * 0x94D049BB133111EBL;
+        return clave ^ (clave >>> 31);
+    }
+    
+    private Celda celda(int fila, int columna) {
+        long clave = clave(fila, columna);
+        Celda celda = celdas.get(clave);
+        if (celda == null) {
+            celda = celdas.computeIfAbsent(clave, k -> new Celda(fila, columna));
+            filaMinima.accumulateAndGet(fila, Math::min);
+            filaMaxima.accumulateAndGet(fila, Math::max);
+            columnaMinima.accumulateAndGet(columna, Math::min);
+            columnaMaxima.accumulateAndGet(columna, Math::max);
+        }
+        return celda;
+    }
+    
+    private static class Entrada {
+        volatile VehiculoElectrico vehiculo;
+        // Se escriben bajo el candado de la entrada; celda se lee sin el en el camino rapido
+        volatile Celda celda;
+        boolean eliminada;
+        // Protegido por el candado de la celda
+        int posicionEnCelda;
+        
+        Entrada(VehiculoElectrico vehiculo) {
+            this.vehiculo = vehiculo;
+        }
+    }
+    
+    private static class Filtro {
+        final EstadoVehiculo estado;
+        final String tipo;
+        
+        Filtro(EstadoVehiculo estado, String tipo) {
+            this.estado = estado;
+            this.tipo = tipo;
+        }
+        
+        boolean acepta(VehiculoElectrico vehiculo) {
+            return (estado == null || vehiculo.getEstado() == estado)
+                && (tipo == null || vehiculo.getTipo().equals(tipo));
+        }
+    }
+    
+    /** Arreglos de una celda copiados bajo su candado; se reusa de celda en celda */
+    private static class CopiaCelda {
+        Entrada[] miembros = new Entrada[0];
+        double[] latitudes = new double[0];
+        double[] longitudes = new double[0];
+        int cantidad;
+    }
+    
+    private static class Celda {
+        final int fila;
+        final int columna;
+        private Entrada[] miembros = new Entrada[4];
+        private double[] latitudes = new double[4];
+        private double[] longitudes = new double[4];
+        private int cantidad;
+        
+        Celda(int fila, int columna) {
+            this.fila = fila;
+            this.columna = columna;
+        }
+        
+        synchronized void agregar(Entrada entrada, double latitud, double longitud) {
+            if (cantidad == miembros.length) {
+                int capacidad = cantidad * 2;
+                miembros = java.util.Arrays.copyOf(miembros, capacidad);
+                latitudes = java.util.Arrays.copyOf(latitudes, capacidad);
+                longitudes = java.util.Arrays.copyOf(longitudes, capacidad);
+            }
+            miembros[cantidad] = entrada;
+            latitudes[cantidad] = latitud;
+            longitudes[cantidad] = longitud;
+            entrada.posicionEnCelda = cantidad;
+            cantidad++;
+        }
+        
+        /**
+         * @return false si la entrada ya no esta en esta celda (otra lectura la mudo)
+         */
+        synchronized boolean moverSiContiene(Entrada entrada, double latitud, double longitud) {
+            int posicion = entrada.posicionEnCelda;
+            if (posicion >= cantidad || miembros[posicion] != entrada) {
+                return false;
+            }
+            latitudes[posicion] = latitud;
+            longitudes[posicion] = longitud;
+            return true;
+        }
+        
+        /** Quita la entrada poniendo la ultima en su lugar */
+        synchronized void quitar(Entrada entrada) {
+            int posicion = entrada.posicionEnCelda;
+            int ultima = --cantidad;
+            if (posicion != ultima) {
+                miembros[posicion] = miembros[ultima];
+                latitudes[posicion] = latitudes[ultima];
+                longitudes[posicion] = longitudes[ultima];
+                miembros[posicion].posicionEnCelda = posicion;
+            }
+            miembros[ultima] = null;
+        }
+        
+        synchronized void copiarA(CopiaCelda copia) {
+            if (copia.miembros.length < cantidad) {
+                copia.miembros = new Entrada[miembros.length];
+                copia.latitudes = new double[miembros.length];
+                copia.longitudes = new double[miembros.length];
+            }
+            System.arraycopy(miembros, 0, copia.miembros, 0, cantidad);
+            System.arraycopy(latitudes, 0, copia.latitudes, 0, cantidad);
+            System.arraycopy(longitudes, 0, copia.longitudes, 0, cantidad);
+            copia.cantidad = cantidad;
+        }
+        
+        synchronized double[] posicion(Entrada entrada) {
+            return new double[] {latitudes[entrada.posicionEnCelda], longitudes[entrada.posicionEnCelda]};
+        }
+        
+        /**
+         * @return false si ya se alcanzo el limite
+         */
+        synchronized boolean buscarEnCaja(double latitudMinima, double longitudMinima,
+                                          double latitudMaxima, double longitudMaxima, Filtro filtro,
+                                          java.util.List<VehiculoElectrico> encontrados, int limite) {
+            for (int i = 0; i < cantidad; i++) {
+                double latitud = latitudes[i];
+                double longitud = longitudes[i];
+                if (latitud >= latitudMinima && latitud <= latitudMaxima
+                        && longitud >= longitudMinima && longitud <= longitudMaxima
+                        && filtro.acepta(miembros[i].vehiculo)) {
+                    encontrados.add(miembros[i].vehiculo);
+                    if (encontrados.size() >= limite) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        
+        synchronized void buscarCercanos(double latitud, double longitud, Filtro filtro,
+                                         ResultadoCercanos resultado) {
+            // La diferencia de latitud sola ya es una cota inferior de la distancia
+            double maximaLatitud = Math.toDegrees(resultado.getDistanciaDeCorte() / RADIO_TIERRA_KM);
+            for (int i = 0; i < cantidad; i++) {
+                if (Math.abs(latitudes[i] - latitud) > maximaLatitud || !filtro.acepta(miembros[i].vehiculo)) {
+                    continue;
+                }
+                double distancia = distanciaKm(latitud, longitud, latitudes[i], longitudes[i]);
+                if (resultado.admite(distancia)) {
+                    resultado.agregar(miembros[i].vehiculo, distancia, latitudes[i], longitudes[i]);
+                    maximaLatitud = Math.toDegrees(resultado.getDistanciaDeCorte() / RADIO_TIERRA_KM);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Resultado de IndiceEspacial.buscarCercanos: vehiculos ordenados por
+ * distancia, con la posicion indexada y la distancia en km de cada uno.
+ */
+class ResultadoCercanos {
+    private final VehiculoElectrico[] vehiculos;
+    private final double[] distancias;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private int tamano;
+    
+    ResultadoCercanos(int k) {
+        this.vehiculos = new VehiculoElectrico[k];
+        this.distancias = new double[k];
+        this.latitudes = new double[k];
+        this.longitudes = new double[k];
+    }
+    
+    public int getTamano() { return tamano; }
+    public VehiculoElectrico getVehiculo(int i) { return vehiculos[i]; }
+    public double getDistanciaKm(int i) { return distancias[i]; }
+    public double getLatitud(int i) { return latitudes[i]; }
+    public double getLongitud(int i) { return longitudes[i]; }
+    
+    boolean estaCompleto() {
+        return tamano == vehiculos.length;
+    }
+    
+    /** Distancia que hay que mejorar para entrar; infinita mientras falten vehiculos */
+    double getDistanciaDeCorte() {
+        return estaCompleto() ? distancias[tamano - 1] : Double.POSITIVE_INFINITY;
+    }
+    
+    boolean admite(double distancia) {
+        return !estaCompleto() || distancia < distancias[tamano - 1];
+    }
+    
+    /** Insercion ordenada; k es chico, no hace falta un monticulo */
+    void agregar(VehiculoElectrico vehiculo, double distancia, double latitud, double longitud) {
+        int i = estaCompleto() ? tamano - 1 : tamano++;
+        while (i > 0 && distancias[i - 1] > distancia) {
+            vehiculos[i] = vehiculos[i - 1];
+            distancias[i] = distancias[i - 1];
+            latitudes[i] = latitudes[i - 1];
+            longitudes[i] = longitudes[i - 1];
+            i--;
+        }
+        vehiculos[i] = vehiculo;
+        distancias[i] = distancia;
+        latitudes[i] = latitud;
+        longitudes[i] = longitud;
+    }
+    
+    void limpiar() {
+        java.util.Arrays.fill(vehiculos, 0, tamano, null);
+        tamano = 0;
+    }
+}
@@ -0,0 +1,1127 @@
+// ============================================================================
+// INFORMES DE LA FLOTA
+// ============================================================================
+
+/**
+ * Que arma un informe
+ */
+enum TipoInforme {
+    TELEMETRIA,  // cada lectura del rango
+    RECORRIDOS,  // por vehiculo: lecturas, km, maximos y bateria al principio y al final del rango
+    RUTAS        // por ruta: avance de sus entregas en el rango
+}
+
+/**
+ * Formato de salida de un informe
+ */
+enum FormatoInforme {
+    CSV("text/csv; charset=utf-8", "csv"),
+    JSON("application/json; charset=utf-8", "json");
+    
+    private final String tipoContenido;
+    private final String extension;
+    
+    FormatoInforme(String tipoContenido, String extension) {
+        this.tipoContenido = tipoContenido;
+        this.extension = extension;
+    }
+    
+    public String getTipoContenido() { return tipoContenido; }
+    public String getExtension() { return extension; }
+    
+    /**
+     * @param nombre  "csv" o "json" sin distinguir mayusculas; null es CSV
+     */
+    public static FormatoInforme de(String nombre) {
+        if (nombre == null || nombre.equalsIgnoreCase("csv")) {
+            return CSV;
+        }
+        if (nombre.equalsIgnoreCase("json")) {
+            return JSON;
+        }
+        throw new IllegalArgumentException("Formato de informe no valido: " + nombre);
+    }
+}
+
+/**
+ * Rango de tiempo (con ambos extremos incluidos) y, si se indican, los
+ * vehiculos que entran en un informe
+ */
+class FiltroInforme {
+    private final long desdeMillis;
+    private final long hastaMillis;
+    // null: toda la flota
+    private final java.util.BitSet vehiculos;
+    
+    /**
+     * @param vehiculos  ids que entran, o null para toda la flota
+     */
+    public FiltroInforme(long desdeMillis, long hastaMillis, int[] vehiculos) {
+        if (desdeMillis > hastaMillis) {
+            throw new IllegalArgumentException("Rango de informe no valido: " + desdeMillis + " a " + hastaMillis);
+        }
+        this.desdeMillis = desdeMillis;
+        this.hastaMillis = hastaMillis;
+        if (vehiculos == null) {
+            this.vehiculos = null;
+        } else {
+            this.vehiculos = new java.util.BitSet();
+            for (int id : vehiculos) {
+                if (id < 0) {
+                    throw new IllegalArgumentException("Vehiculo no valido: " + id);
+                }
+                this.vehiculos.set(id);
+            }
+        }
+    }
+    
+    public long getDesdeMillis() { return desdeMillis; }
+    public long getHastaMillis() { return hastaMillis; }
+    
+    public boolean incluyeVehiculo(int vehiculoId) {
+        return vehiculos == null || (vehiculoId >= 0 && vehiculos.get(vehiculoId));
+    }
+    
+    public boolean incluye(int vehiculoId, long tiempoMillis) {
+        return tiempoMillis >= desdeMillis && tiempoMillis <= hastaMillis && incluyeVehiculo(vehiculoId);
+    }
+}
+
+/**
+ * Un informe pedido y como va. Lo escribe MotorInformes.exportar en el hilo
+ * que lo llama; cancelar se puede llamar desde cualquier otro, y la
+ * exportacion termina en cuanto los hilos sueltan el bloque que leian.
+ */
+class ExportacionInforme {
+    private final TipoInforme tipo;
+    private final FiltroInforme filtro;
+    private final FormatoInforme formato;
+    private volatile boolean cancelada;
+    private volatile boolean terminada;
+    // Solo los escribe el hilo que exporta
+    private volatile long lecturas;
+    private volatile long filas;
+    private volatile long bytes;
+    private volatile long descartadas;
+    
+    public ExportacionInforme(TipoInforme tipo, FiltroInforme filtro, FormatoInforme formato) {
+        if (tipo == null || filtro == null || formato == null) {
+            throw new IllegalArgumentException("Informe incompleto: " + tipo + ", " + filtro + ", " + formato);
+        }
+        this.tipo = tipo;
+        this.filtro = filtro;
+        this.formato = formato;
+    }
+    
+    public TipoInforme getTipo() { return tipo; }
+    public FiltroInforme getFiltro() { return filtro; }
+    public FormatoInforme getFormato() { return formato; }
+    
+    public void cancelar() {
+        cancelada = true;
+    }
+    
+    public boolean isCancelada() { return cancelada; }
+    /** true si se escribio completo */
+    public boolean isTerminada() { return terminada; }
+    /** Lecturas que entraron en el filtro */
+    public long getLecturas() { return lecturas; }
+    /** Filas escritas, sin contar la cabecera */
+    public long getFilas() { return filas; }
+    public long getBytes() { return bytes; }
+    /** Registros de la bitacora saltados por tener la suma incorrecta */
+    public long getDescartadas() { return descartadas; }
+    
+    void terminar() { terminada = true; }
+    void sumarLecturas(long cantidad, long saltadas) {
+        lecturas += cantidad;
+        descartadas += saltadas;
+    }
+    void sumarFilas(long cantidad) { filas += cantidad; }
+    void sumarBytes(long cantidad) { bytes += cantidad; }
+}
+
+/**
+ * Escritor de CSV (RFC 4180) sobre un arreglo de bytes reutilizable, con los
+ * numeros codificados directo a ASCII como en EscritorJson. Un texto con
+ * coma, comillas o salto de linea va entre comillas; un numero NaN y un
+ * texto null quedan como campo vacio.
+ */
+class EscritorCsv {
+    private static final long[] POTENCIAS_DIEZ = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L,
+                                                  10_000_000L, 100_000_000L, 1_000_000_000L};
+    
+    private byte[] bytes;
+    private int tamano;
+    private boolean inicioDeFila;
+    
+    public EscritorCsv(int capacidadInicial) {
+        this.bytes = new byte[capacidadInicial];
+        this.inicioDeFila = true;
+    }
+    
+    public void reiniciar() {
+        tamano = 0;
+        inicioDeFila = true;
+    }
+    
+    public byte[] getBytes() { return bytes; }
+    public int getTamano() { return tamano; }
+    
+    public EscritorCsv valor(long numero) {
+        separador();
+        escribirEntero(numero);
+        return this;
+    }
+    
+    /**
+     * Escribe un decimal redondeado a la cantidad de decimales indicada (0-9)
+     */
+    public EscritorCsv valor(double numero, int decimales) {
+        separador();
+        if (Double.isNaN(numero) || Double.isInfinite(numero)) {
+            return this;
+        }
+        if (Math.abs(numero) >= 1e15) {
+            escribirAscii(Double.toString(numero));
+            return this;
+        }
+        long escala = POTENCIAS_DIEZ[decimales];
+        long redondeado = Math.round(Math.abs(numero) * escala);
+        if (numero < 0 && redondeado != 0) {
+            poner((byte) '-');
+        }
+        escribirEntero(redondeado / escala);
+        if (decimales > 0) {
+            asegurar(decimales + 1);
+            bytes[tamano++] = '.';
+            long fraccion = redondeado % escala;
+            for (int i = decimales - 1; i >= 0; i--) {
+                bytes[tamano + i] = (byte) ('0' + fraccion % 10);
+                fraccion /= 10;
+            }
+            tamano += decimales;
+        }
+        return this;
+    }
+    
+    public EscritorCsv valor(CharSequence texto) {
+        separador();
+        if (texto == null) {
+            return this;
+        }
+        int longitud = texto.length();
+        boolean comillas = false;
+        for (int i = 0; i < longitud && !comillas; i++) {
+            char c = texto.charAt(i);
+            comillas = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        // Peor caso: cada caracter en 3 bytes de UTF-8 o duplicado por las comillas
+        asegurar(longitud * 3 + 2);
+        if (comillas) {
+            bytes[tamano++] = '"';
+        }
+        for (int i = 0; i < longitud; i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                if (c == '"') {
+                    bytes[tamano++] = '"';
+                }
+                bytes[tamano++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[tamano++] = (byte) (0xC0 | (c >> 6));
+                bytes[tamano++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < longitud
+                       && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                int codigo = Character.toCodePoint(c, texto.charAt(++i));
+                bytes[tamano++] = (byte) (0xF0 | (codigo >> 18));
+                bytes[tamano++] = (byte) (0x80 | ((codigo >> 12) & 0x3F));
+                bytes[tamano++] = (byte) (0x80 | ((codigo >> 6) & 0x3F));
+                bytes[tamano++] = (byte) (0x80 | (codigo & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[tamano++] = '?';
+            } else {
+                bytes[tamano++] = (byte) (0xE0 | (c >> 12));
+                bytes[tamano++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[tamano++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        if (comillas) {
+            bytes[tamano++] = '"';
+        }
+        return this;
+    }
+    
+    public EscritorCsv finFila() {
+        asegurar(2);
+        bytes[tamano++] = '\r';
+        bytes[tamano++] = '\n';
+        inicioDeFila = true;
+        return this;
+    }
+    
+    private void separador() {
+        if (!inicioDeFila) {
+            poner((byte) ',');
+        }
+        inicioDeFila = false;
+    }
+    
+    private void escribirAscii(String texto) {
+        int longitud = texto.length();
+        asegurar(longitud);
+        for (int i = 0; i < longitud; i++) {
+            bytes[tamano++] = (byte) texto.charAt(i);
+        }
+    }
+    
+    private void escribirEntero(long numero) {
+        if (numero == Long.MIN_VALUE) {
+            escribirAscii("-9223372036854775808");
+            return;
+        }
+        asegurar(20);
+        if (numero < 0) {
+            bytes[tamano++] = '-';
+            numero = -numero;
+        }
+        int digitos = 1;
+        for (long resto = numero / 10; resto != 0; resto /= 10) {
+            digitos++;
+        }
+        for (int i = tamano + digitos - 1; i >= tamano; i--) {
+            bytes[i] = (byte) ('0' + numero % 10);
+            numero /= 10;
+        }
+        tamano += digitos;
+    }
+    
+    private void poner(byte b) {
+        asegurar(1);
+        bytes[tamano++] = b;
+    }
+    
+    private void asegurar(int adicionales) {
+        if (tamano + adicionales > bytes.length) {
+            bytes = java.util.Arrays.copyOf(bytes, Math.max(bytes.length * 2, tamano + adicionales));
+        }
+    }
+}
+
+/**
+ * Resumen por vehiculo de las lecturas de un rango: cantidad, km (con la
+ * misma cuenta que BufferTelemetriaVehiculo), velocidad maxima y promedio,
+ * temperatura maxima y la primera y la ultima lectura. Cada bloque de un
+ * informe arma el suyo y el hilo que escribe los une en orden con unir, que
+ * suma tambien el tramo entre la ultima lectura de uno y la primera del
+ * siguiente; asi el total da lo mismo con uno o con varios hilos. Se indexa
+ * por id de vehiculo y crece hasta el mayor id visto.
+ */
+class RecorridosFlota {
+    private static final int CAPACIDAD_INICIAL = 1024;
+    
+    private int[] lecturas;
+    private double[] kilometros;
+    private double[] sumasVelocidad;
+    private float[] velocidadesMaximas;
+    private float[] temperaturasMaximas;
+    private long[] primerosTiempos;
+    private float[] primerasVelocidades;
+    private float[] primerasBaterias;
+    private double[] primerasLatitudes;
+    private double[] primerasLongitudes;
+    private long[] ultimosTiempos;
+    private float[] ultimasVelocidades;
+    private float[] ultimasBaterias;
+    private double[] ultimasLatitudes;
+    private double[] ultimasLongitudes;
+    // Vehiculos con al menos una lectura, para limpiar y unir sin recorrer todos los ids
+    private int[] tocados;
+    private int cantidadTocados;
+    
+    public RecorridosFlota() {
+        reservar(CAPACIDAD_INICIAL);
+        this.tocados = new int[CAPACIDAD_INICIAL];
+    }
+    
+    public void sumar(long tiempoMillis, int vehiculoId, float velocidad, float temperaturaMotor,
+                      float nivelBateria, double latitud, double longitud) {
+        if (vehiculoId < 0) {
+            return;
+        }
+        int v = vehiculoId;
+        asegurar(v);
+        if (lecturas[v] == 0) {
+            anotar(v);
+            primerosTiempos[v] = tiempoMillis;
+            primerasVelocidades[v] = velocidad;
+            primerasBaterias[v] = nivelBateria;
+            primerasLatitudes[v] = latitud;
+            primerasLongitudes[v] = longitud;
+            velocidadesMaximas[v] = velocidad;
+            temperaturasMaximas[v] = temperaturaMotor;
+        } else {
+            kilometros[v] += BufferTelemetriaVehiculo.recorridoKm(
+                tiempoMillis - ultimosTiempos[v], ultimasVelocidades[v], ultimasLatitudes[v], ultimasLongitudes[v],
+                velocidad, latitud, longitud);
+            velocidadesMaximas[v] = Math.max(velocidadesMaximas[v], velocidad);
+            temperaturasMaximas[v] = Math.max(temperaturasMaximas[v], temperaturaMotor);
+        }
+        ultimosTiempos[v] = tiempoMillis;
+        ultimasVelocidades[v] = velocidad;
+        ultimasBaterias[v] = nivelBateria;
+        ultimasLatitudes[v] = latitud;
+        ultimasLongitudes[v] = longitud;
+        sumasVelocidad[v] += velocidad;
+        lecturas[v]++;
+    }
+    
+    /**
+     * Agrega a este resumen el de las lecturas que vienen justo despues
+     */
+    public void unir(RecorridosFlota siguiente) {
+        for (int k = 0; k < siguiente.cantidadTocados; k++) {
+            int v = siguiente.tocados[k];
+            asegurar(v);
+            if (lecturas[v] == 0) {
+                anotar(v);
+                primerosTiempos[v] = siguiente.primerosTiempos[v];
+                primerasVelocidades[v] = siguiente.primerasVelocidades[v];
+                primerasBaterias[v] = siguiente.primerasBaterias[v];
+                primerasLatitudes[v] = siguiente.primerasLatitudes[v];
+                primerasLongitudes[v] = siguiente.primerasLongitudes[v];
+                velocidadesMaximas[v] = siguiente.velocidadesMaximas[v];
+                temperaturasMaximas[v] = siguiente.temperaturasMaximas[v];
+            } else {
+                kilometros[v] += BufferTelemetriaVehiculo.recorridoKm(
+                    siguiente.primerosTiempos[v] - ultimosTiempos[v], ultimasVelocidades[v],
+                    ultimasLatitudes[v], ultimasLongitudes[v], siguiente.primerasVelocidades[v],
+                    siguiente.primerasLatitudes[v], siguiente.primerasLongitudes[v]);
+                velocidadesMaximas[v] = Math.max(velocidadesMaximas[v], siguiente.velocidadesMaximas[v]);
+                temperaturasMaximas[v] = Math.max(temperaturasMaximas[v], siguiente.temperaturasMaximas[v]);
+            }
+            kilometros[v] += siguiente.kilometros[v];
+            ultimosTiempos[v] = siguiente.ultimosTiempos[v];
+            ultimasVelocidades[v] = siguiente.ultimasVelocidades[v];
+            ultimasBaterias[v] = siguiente.ultimasBaterias[v];
+            ultimasLatitudes[v] = siguiente.ultimasLatitudes[v];
+            ultimasLongitudes[v] = siguiente.ultimasLongitudes[v];
+            sumasVelocidad[v] += siguiente.sumasVelocidad[v];
+            lecturas[v] += siguiente.lecturas[v];
+        }
+    }
+    
+    public void limpiar() {
+        for (int k = 0; k < cantidadTocados; k++) {
+            int v = tocados[k];
+            lecturas[v] = 0;
+            kilometros[v] = 0;
+            sumasVelocidad[v] = 0;
+        }
+        cantidadTocados = 0;
+    }
+    
+    private void anotar(int vehiculoId) {
+        if (cantidadTocados == tocados.length) {
+            tocados = java.util.Arrays.copyOf(tocados, tocados.length * 2);
+        }
+        tocados[cantidadTocados++] = vehiculoId;
+    }
+    
+    private void asegurar(int vehiculoId) {
+        if (vehiculoId >= lecturas.length) {
+            reservar(Math.max(vehiculoId + 1, lecturas.length * 2));
+        }
+    }
+    
+    private void reservar(int longitud) {
+        lecturas = lecturas == null ? new int[longitud] : java.util.Arrays.copyOf(lecturas, longitud);
+        kilometros = kilometros == null ? new double[longitud] : java.util.Arrays.copyOf(kilometros, longitud);
+        sumasVelocidad = sumasVelocidad == null ? new double[longitud] : java.util.Arrays.copyOf(sumasVelocidad, longitud);
+        velocidadesMaximas = copiar(velocidadesMaximas, longitud);
+        temperaturasMaximas = copiar(temperaturasMaximas, longitud);
+        primerasVelocidades = copiar(primerasVelocidades, longitud);
+        primerasBaterias = copiar(primerasBaterias, longitud);
+        ultimasVelocidades = copiar(ultimasVelocidades, longitud);
+        ultimasBaterias = copiar(ultimasBaterias, longitud);
+        primerosTiempos = primerosTiempos == null ? new long[longitud] : java.util.Arrays.copyOf(primerosTiempos, longitud);
+        ultimosTiempos = ultimosTiempos == null ? new long[longitud] : java.util.Arrays.copyOf(ultimosTiempos, longitud);
+        primerasLatitudes = copiar(primerasLatitudes, longitud);
+        primerasLongitudes = copiar(primerasLongitudes, longitud);
+        ultimasLatitudes = copiar(ultimasLatitudes, longitud);
+        ultimasLongitudes = copiar(ultimasLongitudes, longitud);
+    }
+    
+    private static float[] copiar(float[] columna, int longitud) {
+        return columna == null ? new float[longitud] : java.util.Arrays.copyOf(columna, longitud);
+    }
+    
+    private static double[] copiar(double[] columna, int longitud) {
+        return columna == null ? new double[longitud] : java.util.Arrays.copyOf(columna, longitud);
+    }
+    
+    /** Los ids van de 0 a getCapacidad() - 1; los que no tienen lecturas dan 0 */
+    public int getCapacidad() { return lecturas.length; }
+    public int getVehiculos() { return cantidadTocados; }
+    
+    public int getLecturas(int vehiculoId) {
+        return vehiculoId >= 0 && vehiculoId < lecturas.length ? lecturas[vehiculoId] : 0;
+    }
+    
+    public double getKilometros(int vehiculoId) {
+        return getLecturas(vehiculoId) > 0 ? kilometros[vehiculoId] : 0;
+    }
+    
+    public double getVelocidadPromedio(int v) { return sumasVelocidad[v] / lecturas[v]; }
+    public float getVelocidadMaxima(int v) { return velocidadesMaximas[v]; }
+    public float getTemperaturaMaxima(int v) { return temperaturasMaximas[v]; }
+    public long getPrimerTiempo(int v) { return primerosTiempos[v]; }
+    public long getUltimoTiempo(int v) { return ultimosTiempos[v]; }
+    public float getBateriaInicial(int v) { return primerasBaterias[v]; }
+    public float getBateriaFinal(int v) { return ultimasBaterias[v]; }
+}
+
+/**
+ * Espacio de trabajo de un bloque en curso: recibe las lecturas del origen,
+ * las filtra y deja el texto o el resumen listos para el hilo que escribe.
+ * Se recicla de un bloque al siguiente.
+ */
+final class BloqueInforme implements LectorRegistrosTelemetria {
+    private final FiltroInforme filtro;
+    private final boolean telemetria;
+    private final boolean csv;
+    final EscritorCsv textoCsv;
+    final EscritorJson textoJson;
+    final RecorridosFlota recorridos;
+    long lecturas;
+    int descartadas;
+    // Los crea el origen la primera vez que lee en este bloque
+    java.nio.ByteBuffer espacioBitacora;
+    java.util.zip.CRC32C crc;
+    SegmentoTelemetria espacioMemoria;
+    
+    BloqueInforme(ExportacionInforme exportacion) {
+        this.filtro = exportacion.getFiltro();
+        this.telemetria = exportacion.getTipo() == TipoInforme.TELEMETRIA;
+        this.csv = exportacion.getFormato() == FormatoInforme.CSV;
+        this.textoCsv = telemetria && csv ? new EscritorCsv(64 * 1024) : null;
+        this.textoJson = telemetria && !csv ? new EscritorJson(64 * 1024) : null;
+        this.recorridos = telemetria ? null : new RecorridosFlota();
+    }
+    
+    void reiniciar() {
+        lecturas = 0;
+        descartadas = 0;
+        if (textoCsv != null) {
+            textoCsv.reiniciar();
+        }
+        if (textoJson != null) {
+            textoJson.reiniciar();
+        }
+        if (recorridos != null) {
+            recorridos.limpiar();
+        }
+    }
+    
+    @Override
+    public void leer(int id, long tiempoMillis, int vehiculoId, float velocidad, float temperaturaMotor,
+                     float nivelBateria, double latitud, double longitud) {
+        if (!filtro.incluye(vehiculoId, tiempoMillis)) {
+            return;
+        }
+        lecturas++;
+        if (!telemetria) {
+            recorridos.sumar(tiempoMillis, vehiculoId, velocidad, temperaturaMotor, nivelBateria, latitud, longitud);
+        } else if (csv) {
+            textoCsv.valor(id).valor(vehiculoId).valor(tiempoMillis).valor(velocidad, 1).valor(temperaturaMotor, 1)
+                    .valor(nivelBateria, 2).valor(latitud, 6).valor(longitud, 6).finFila();
+        } else {
+            // Mismos campos que /api/vehiculos/{id}/telemetria
+            textoJson.abrirObjeto()
+                     .campo("id", id)
+                     .campo("vehiculoId", vehiculoId)
+                     .campo("tiempo", tiempoMillis)
+                     .campo("velocidad", velocidad, 1)
+                     .campo("temperaturaMotor", temperaturaMotor, 1)
+                     .campo("nivelBateria", nivelBateria, 2)
+                     .campo("latitud", latitud, 6)
+                     .campo("longitud", longitud, 6)
+                     .cerrarObjeto();
+        }
+    }
+}
+
+/**
+ * De donde lee MotorInformes, repartido en bloques que se pueden leer a la
+ * vez. Las lecturas de un vehiculo llegan en el orden en que se
+ * registraron, dentro de un bloque y de un bloque al siguiente.
+ */
+interface OrigenInforme {
+    int getBloques();
+    
+    /**
+     * Entrega al bloque las lecturas del numero indicado
+     * @return registros saltados por estar danados
+     */
+    int recorrer(int numero, BloqueInforme bloque) throws java.io.IOException;
+}
+
+/**
+ * Registros consecutivos de la bitacora: reparte el informe por tiempo de
+ * llegada, de a LECTURAS_POR_BLOQUE registros.
+ */
+class OrigenBitacora implements OrigenInforme {
+    private final CorteBitacora corte;
+    private final int registrosPorBloque;
+    private final int[] segmentos;
+    private final int[] desdes;
+    
+    OrigenBitacora(CorteBitacora corte, int registrosPorBloque) {
+        this.corte = corte;
+        this.registrosPorBloque = registrosPorBloque;
+        int bloques = 0;
+        for (int s = 0; s < corte.getSegmentos(); s++) {
+            bloques += (corte.getRegistros(s) + registrosPorBloque - 1) / registrosPorBloque;
+        }
+        this.segmentos = new int[bloques];
+        this.desdes = new int[bloques];
+        int b = 0;
+        for (int s = 0; s < corte.getSegmentos(); s++) {
+            for (int desde = 0; desde < corte.getRegistros(s); desde += registrosPorBloque) {
+                segmentos[b] = s;
+                desdes[b] = desde;
+                b++;
+            }
+        }
+    }
+    
+    @Override
+    public int getBloques() {
+        return segmentos.length;
+    }
+    
+    @Override
+    public int recorrer(int numero, BloqueInforme bloque) throws java.io.IOException {
+        if (bloque.espacioBitacora == null) {
+            bloque.espacioBitacora = CorteBitacora.crearEspacio(registrosPorBloque);
+            bloque.crc = new java.util.zip.CRC32C();
+        }
+        int segmento = segmentos[numero];
+        int cantidad = Math.min(registrosPorBloque, corte.getRegistros(segmento) - desdes[numero]);
+        return corte.recorrer(segmento, desdes[numero], cantidad, bloque.espacioBitacora, bloque.crc, bloque);
+    }
+}
+
+/**
+ * Sin bitacora: las lecturas crudas que GestorFlota aun guarda de cada
+ * vehiculo, un bloque por id. Solo cubre la ventana cruda de la retencion.
+ */
+class OrigenMemoria implements OrigenInforme {
+    private final GestorFlota gestor;
+    private final FiltroInforme filtro;
+    private final int bloques;
+    
+    OrigenMemoria(GestorFlota gestor, FiltroInforme filtro) {
+        this.gestor = gestor;
+        this.filtro = filtro;
+        this.bloques = Math.max(0, gestor.getSiguienteIdVehiculo() - 1);
+    }
+    
+    @Override
+    public int getBloques() {
+        return bloques;
+    }
+    
+    @Override
+    public int recorrer(int numero, BloqueInforme bloque) {
+        int vehiculoId = numero + 1;
+        if (!filtro.incluyeVehiculo(vehiculoId)) {
+            return 0;
+        }
+        if (bloque.espacioMemoria == null) {
+            bloque.espacioMemoria = new SegmentoTelemetria(gestor.getCapacidadHistorialPorVehiculo());
+        }
+        SegmentoTelemetria lecturas = bloque.espacioMemoria;
+        int cantidad = gestor.copiarHistorialTelemetria(vehiculoId, lecturas.getCapacidad(), lecturas);
+        for (int i = 0; i < cantidad; i++) {
+            bloque.leer(lecturas.getId(i), lecturas.getTiempo(i), lecturas.getVehiculoId(i), lecturas.getVelocidad(i),
+                        lecturas.getTemperaturaMotor(i), lecturas.getNivelBateria(i), lecturas.getLatitud(i),
+                        lecturas.getLongitud(i));
+        }
+        return 0;
+    }
+}
+
+/**
+ * Arma los informes de un GestorFlota sin juntar los resultados en memoria.
+ * Lee la telemetria de la bitacora (o, sin persistencia, de las lecturas
+ * crudas en memoria) por bloques: varios hilos leen, filtran y dan formato o
+ * resumen a un bloque cada uno, y el hilo que llama a exportar los escribe
+ * en orden a medida que estan listos. Entre leidos y escritos hay como mucho
+ * BLOQUES_EN_VUELO_POR_HILO bloques por hilo, asi la memoria no depende del
+ * tamano del informe: un mes de la flota usa los mismos buffers que una hora.
+ */
+class MotorInformes implements java.io.Closeable {
+    public static final int LECTURAS_POR_BLOQUE = 16 * 1024;
+    public static final int BLOQUES_EN_VUELO_POR_HILO = 2;
+    // Los resumenes se mandan a la salida cada vez que juntan esto
+    private static final int BYTES_POR_ENVIO = 64 * 1024;
+    // Cada cuanto revisan la cancelacion los hilos que esperan turno
+    private static final long ESPERA_MS = 50;
+    private static final String[] COLUMNAS_TELEMETRIA = {"id", "vehiculoId", "tiempo", "velocidad", "temperaturaMotor",
+                                                         "nivelBateria", "latitud", "longitud"};
+    private static final String[] COLUMNAS_RECORRIDOS = {"vehiculoId", "lecturas", "km", "velocidadMaxima",
+                                                         "velocidadPromedio", "temperaturaMaxima", "bateriaInicial",
+                                                         "bateriaFinal", "primeraLectura", "ultimaLectura"};
+    private static final String[] COLUMNAS_RUTAS = {"rutaId", "vehiculoId", "origen", "destino", "distancia",
+                                                    "entregas", "completadas", "fallidas", "pendientes"};
+    
+    private final GestorFlota gestor;
+    private final int hilos;
+    private final java.util.concurrent.ExecutorService ejecutor;
+    private final java.util.concurrent.atomic.LongAdder filasExportadas;
+    private final java.util.concurrent.atomic.LongAdder completos;
+    private final java.util.concurrent.atomic.LongAdder cancelados;
+    
+    public MotorInformes(GestorFlota gestor) {
+        this(gestor, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param hilos  hilos que leen bloques de cada informe
+     */
+    public MotorInformes(GestorFlota gestor, int hilos) {
+        if (hilos <= 0) {
+            throw new IllegalArgumentException("Hilos no validos: " + hilos);
+        }
+        this.gestor = gestor;
+        this.hilos = hilos;
+        java.util.concurrent.atomic.AtomicInteger numero = new java.util.concurrent.atomic.AtomicInteger();
+        this.ejecutor = java.util.concurrent.Executors.newCachedThreadPool(tarea -> {
+            Thread hilo = new Thread(tarea, "sigefve-informe-" + numero.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        MetricasFlota metricas = gestor.getMetricas();
+        this.filasExportadas = metricas.contador("sigefve_informe_filas_total", "Filas escritas por los informes", "");
+        this.completos = metricas.contador("sigefve_informes_total", "Informes exportados, por resultado",
+                                           "resultado=\"completo\"");
+        this.cancelados = metricas.contador("sigefve_informes_total", "Informes exportados, por resultado",
+                                            "resultado=\"cancelado\"");
+    }
+    
+    public int getHilos() {
+        return hilos;
+    }
+    
+    @Override
+    public void close() {
+        ejecutor.shutdownNow();
+    }
+    
+    /**
+     * Escribe el informe en la salida hasta el final o hasta que se cancele;
+     * no cierra la salida. Si la salida falla (el cliente corto la descarga)
+     * el informe queda cancelado y la excepcion sigue hacia quien llama.
+     */
+    public void exportar(ExportacionInforme exportacion, java.io.OutputStream salida) throws java.io.IOException {
+        boolean completo = false;
+        try {
+            if (exportacion.getTipo() == TipoInforme.TELEMETRIA) {
+                exportarLecturas(exportacion, crearOrigen(exportacion.getFiltro()), salida);
+            } else if (exportacion.getTipo() == TipoInforme.RECORRIDOS) {
+                RecorridosFlota totales = new RecorridosFlota();
+                recorrer(exportacion, crearOrigen(exportacion.getFiltro()), bloque -> totales.unir(bloque.recorridos));
+                escribirRecorridos(exportacion, totales, salida);
+            } else {
+                escribirRutas(exportacion, salida);
+            }
+            salida.flush();
+            completo = !exportacion.isCancelada();
+        } finally {
+            if (completo) {
+                exportacion.terminar();
+                completos.increment();
+            } else {
+                exportacion.cancelar();
+                cancelados.increment();
+            }
+        }
+    }
+    
+    private OrigenInforme crearOrigen(FiltroInforme filtro) throws java.io.IOException {
+        BitacoraTelemetria bitacora = gestor.getBitacora();
+        return bitacora != null ? new OrigenBitacora(bitacora.cortar(), LECTURAS_POR_BLOQUE)
+                                : new OrigenMemoria(gestor, filtro);
+    }
+    
+    // ====== Escritura ======
+    
+    private void exportarLecturas(ExportacionInforme exportacion, OrigenInforme origen, java.io.OutputStream salida)
+            throws java.io.IOException {
+        boolean csv = exportacion.getFormato() == FormatoInforme.CSV;
+        EscritorCsv textoCsv = new EscritorCsv(1024);
+        EscritorJson textoJson = new EscritorJson(1024);
+        if (csv) {
+            escribirCabecera(textoCsv, COLUMNAS_TELEMETRIA);
+            enviar(exportacion, salida, textoCsv);
+        } else {
+            abrirDocumento(textoJson, exportacion.getFiltro(), "lecturas");
+            enviar(exportacion, salida, textoJson);
+        }
+        boolean[] hayFilas = {false};
+        recorrer(exportacion, origen, bloque -> {
+            if (bloque.lecturas == 0) {
+                return;
+            }
+            if (csv) {
+                enviar(exportacion, salida, bloque.textoCsv.getBytes(), bloque.textoCsv.getTamano());
+            } else {
+                // Cada bloque separa sus filas con comas; entre un bloque y otro la pone este hilo
+                if (hayFilas[0]) {
+                    salida.write(',');
+                    exportacion.sumarBytes(1);
+                }
+                enviar(exportacion, salida, bloque.textoJson.getBytes(), bloque.textoJson.getTamano());
+            }
+            hayFilas[0] = true;
+            exportacion.sumarFilas(bloque.lecturas);
+            filasExportadas.add(bloque.lecturas);
+        });
+        if (!csv && !exportacion.isCancelada()) {
+            cerrarDocumento(textoJson, exportacion);
+            enviar(exportacion, salida, textoJson);
+        }
+    }
+    
+    private void escribirRecorridos(ExportacionInforme exportacion, RecorridosFlota totales, java.io.OutputStream salida)
+            throws java.io.IOException {
+        boolean csv = exportacion.getFormato() == FormatoInforme.CSV;
+        EscritorCsv textoCsv = new EscritorCsv(BYTES_POR_ENVIO + 1024);
+        EscritorJson textoJson = new EscritorJson(BYTES_POR_ENVIO + 1024);
+        if (csv) {
+            escribirCabecera(textoCsv, COLUMNAS_RECORRIDOS);
+        } else {
+            abrirDocumento(textoJson, exportacion.getFiltro(), "vehiculos");
+        }
+        for (int v = 0; v < totales.getCapacidad() && !exportacion.isCancelada(); v++) {
+            if (totales.getLecturas(v) == 0) {
+                continue;
+            }
+            if (csv) {
+                textoCsv.valor(v).valor(totales.getLecturas(v)).valor(totales.getKilometros(v), 3)
+                        .valor(totales.getVelocidadMaxima(v), 1).valor(totales.getVelocidadPromedio(v), 1)
+                        .valor(totales.getTemperaturaMaxima(v), 1).valor(totales.getBateriaInicial(v), 2)
+                        .valor(totales.getBateriaFinal(v), 2).valor(totales.getPrimerTiempo(v))
+                        .valor(totales.getUltimoTiempo(v)).finFila();
+            } else {
+                textoJson.abrirObjeto()
+                         .campo("vehiculoId", v)
+                         .campo("lecturas", totales.getLecturas(v))
+                         .campo("km", totales.getKilometros(v), 3)
+                         .campo("velocidadMaxima", totales.getVelocidadMaxima(v), 1)
+                         .campo("velocidadPromedio", totales.getVelocidadPromedio(v), 1)
+                         .campo("temperaturaMaxima", totales.getTemperaturaMaxima(v), 1)
+                         .campo("bateriaInicial", totales.getBateriaInicial(v), 2)
+                         .campo("bateriaFinal", totales.getBateriaFinal(v), 2)
+                         .campo("primeraLectura", totales.getPrimerTiempo(v))
+                         .campo("ultimaLectura", totales.getUltimoTiempo(v))
+                         .cerrarObjeto();
+            }
+            contarFila(exportacion, salida, textoCsv, textoJson, csv);
+        }
+        terminarResumen(exportacion, salida, textoCsv, textoJson, csv);
+    }
+    
+    /**
+     * Una fila por ruta con sus entregas con hora estimada dentro del rango,
+     * o sin hora. No lleva km: la ruta no guarda cuando se asigno ni cuando
+     * termino, y los km del vehiculo en el rango mezclan todas sus rutas; por
+     * vehiculo estan en el informe de recorridos.
+     */
+    private void escribirRutas(ExportacionInforme exportacion, java.io.OutputStream salida)
+            throws java.io.IOException {
+        boolean csv = exportacion.getFormato() == FormatoInforme.CSV;
+        FiltroInforme filtro = exportacion.getFiltro();
+        EscritorCsv textoCsv = new EscritorCsv(BYTES_POR_ENVIO + 1024);
+        EscritorJson textoJson = new EscritorJson(BYTES_POR_ENVIO + 1024);
+        if (csv) {
+            escribirCabecera(textoCsv, COLUMNAS_RUTAS);
+        } else {
+            abrirDocumento(textoJson, filtro, "rutas");
+        }
+        java.time.ZoneId zona = gestor.getReloj().getZone();
+        int fin = gestor.getSiguienteIdRuta();
+        for (int id = 1; id < fin && !exportacion.isCancelada(); id++) {
+            Ruta ruta = gestor.consultarRuta(id);
+            if (ruta == null || !filtro.incluyeVehiculo(ruta.getVehiculoId())) {
+                continue;
+            }
+            int entregas = 0;
+            int completadas = 0;
+            int fallidas = 0;
+            for (Entrega entrega : ruta.getEntregas()) {
+                java.time.LocalDateTime hora = entrega.getHoraEstimada();
+                if (hora != null) {
+                    long millis = hora.atZone(zona).toInstant().toEpochMilli();
+                    if (millis < filtro.getDesdeMillis() || millis > filtro.getHastaMillis()) {
+                        continue;
+                    }
+                }
+                entregas++;
+                String estado = entrega.getEstado();
+                if (Entrega.COMPLETADA.equals(estado)) {
+                    completadas++;
+                } else if (!entrega.estaPendiente()) {
+                    fallidas++;
+                }
+            }
+            if (csv) {
+                textoCsv.valor(id).valor(ruta.getVehiculoId()).valor(ruta.getOrigen()).valor(ruta.getDestino())
+                        .valor(ruta.getDistancia(), 2).valor(entregas).valor(completadas)
+                        .valor(fallidas).valor(entregas - completadas - fallidas).finFila();
+            } else {
+                textoJson.abrirObjeto()
+                         .campo("rutaId", id)
+                         .campo("vehiculoId", ruta.getVehiculoId())
+                         .campo("origen", ruta.getOrigen())
+                         .campo("destino", ruta.getDestino())
+                         .campo("distancia", ruta.getDistancia(), 2)
+                         .campo("entregas", entregas)
+                         .campo("completadas", completadas)
+                         .campo("fallidas", fallidas)
+                         .campo("pendientes", entregas - completadas - fallidas)
+                         .cerrarObjeto();
+            }
+            contarFila(exportacion, salida, textoCsv, textoJson, csv);
+        }
+        terminarResumen(exportacion, salida, textoCsv, textoJson, csv);
+    }
+    
+    private void contarFila(ExportacionInforme exportacion, java.io.OutputStream salida, EscritorCsv textoCsv,
+                            EscritorJson textoJson, boolean csv) throws java.io.IOException {
+        exportacion.sumarFilas(1);
+        filasExportadas.increment();
+        if (csv && textoCsv.getTamano() >= BYTES_POR_ENVIO) {
+            enviar(exportacion, salida, textoCsv);
+        } else if (!csv && textoJson.getTamano() >= BYTES_POR_ENVIO) {
+            enviar(exportacion, salida, textoJson);
+        }
+    }
+    
+    private static void terminarResumen(ExportacionInforme exportacion, java.io.OutputStream salida,
+                                        EscritorCsv textoCsv, EscritorJson textoJson, boolean csv)
+            throws java.io.IOException {
+        if (exportacion.isCancelada()) {
+            return;
+        }
+        if (csv) {
+            enviar(exportacion, salida, textoCsv);
+        } else {
+            cerrarDocumento(textoJson, exportacion);
+            enviar(exportacion, salida, textoJson);
+        }
+    }
+    
+    private static void escribirCabecera(EscritorCsv texto, String[] columnas) {
+        for (String columna : columnas) {
+            texto.valor(columna);
+        }
+        texto.finFila();
+    }
+    
+    private static void abrirDocumento(EscritorJson texto, FiltroInforme filtro, String filas) {
+        texto.abrirObjeto()
+             .campo("desde", filtro.getDesdeMillis())
+             .campo("hasta", filtro.getHastaMillis())
+             .nombre(filas).abrirArreglo();
+    }
+    
+    private static void cerrarDocumento(EscritorJson texto, ExportacionInforme exportacion) {
+        texto.cerrarArreglo()
+             .campo("total", exportacion.getFilas())
+             .cerrarObjeto();
+    }
+    
+    private static void enviar(ExportacionInforme exportacion, java.io.OutputStream salida, EscritorCsv texto)
+            throws java.io.IOException {
+        enviar(exportacion, salida, texto.getBytes(), texto.getTamano());
+        texto.reiniciar();
+    }
+    
+    private static void enviar(ExportacionInforme exportacion, java.io.OutputStream salida, EscritorJson texto)
+            throws java.io.IOException {
+        enviar(exportacion, salida, texto.getBytes(), texto.getTamano());
+        texto.vaciar();
+    }
+    
+    private static void enviar(ExportacionInforme exportacion, java.io.OutputStream salida, byte[] bytes, int cantidad)
+            throws java.io.IOException {
+        salida.write(bytes, 0, cantidad);
+        exportacion.sumarBytes(cantidad);
+    }
+    
+    // ====== Lectura en paralelo ======
+    
+    /**
+     * Lo que hace el hilo que exporta con cada bloque, en orden
+     */
+    private interface EscrituraBloque {
+        void escribir(BloqueInforme bloque) throws java.io.IOException;
+    }
+    
+    /**
+     * Lee todos los bloques del origen con hasta 'hilos' hilos y se los pasa
+     * a la escritura en orden. Vuelve cuando no queda ningun hilo leyendo.
+     */
+    private void recorrer(ExportacionInforme exportacion, OrigenInforme origen, EscrituraBloque escritura)
+            throws java.io.IOException {
+        int bloques = origen.getBloques();
+        if (bloques == 0) {
+            return;
+        }
+        BloqueInforme[] espacios = new BloqueInforme[Math.min(bloques, hilos * BLOQUES_EN_VUELO_POR_HILO)];
+        for (int i = 0; i < espacios.length; i++) {
+            espacios[i] = new BloqueInforme(exportacion);
+        }
+        Turnos turnos = new Turnos(espacios.length);
+        int lectores = Math.min(hilos, bloques);
+        java.util.concurrent.CountDownLatch terminados = new java.util.concurrent.CountDownLatch(lectores);
+        for (int h = 0; h < lectores; h++) {
+            ejecutor.execute(() -> {
+                try {
+                    leerBloques(exportacion, origen, espacios, turnos, bloques);
+                } finally {
+                    terminados.countDown();
+                }
+            });
+        }
+        try {
+            for (int numero = 0; numero < bloques; numero++) {
+                if (!turnos.esperarListo(numero, exportacion)) {
+                    break;
+                }
+                BloqueInforme bloque = espacios[numero % espacios.length];
+                exportacion.sumarLecturas(bloque.lecturas, bloque.descartadas);
+                escritura.escribir(bloque);
+                turnos.liberar(numero);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exportacion.cancelar();
+            throw new java.io.InterruptedIOException("Informe interrumpido");
+        } catch (java.io.IOException | RuntimeException e) {
+            exportacion.cancelar();
+            throw e;
+        } finally {
+            turnos.detener();
+            esperar(terminados);
+        }
+        turnos.lanzarError();
+    }
+    
+    private static void leerBloques(ExportacionInforme exportacion, OrigenInforme origen, BloqueInforme[] espacios,
+                                    Turnos turnos, int bloques) {
+        try {
+            for (int numero = turnos.tomar(); numero < bloques; numero = turnos.tomar()) {
+                if (!turnos.esperarTurno(numero, exportacion)) {
+                    return;
+                }
+                BloqueInforme bloque = espacios[numero % espacios.length];
+                bloque.reiniciar();
+                bloque.descartadas = origen.recorrer(numero, bloque);
+                turnos.marcarListo(numero);
+            }
+        } catch (InterruptedException e) {
+            turnos.fallar(new java.io.InterruptedIOException("Lectura de informe interrumpida"));
+        } catch (java.io.IOException | RuntimeException e) {
+            turnos.fallar(e);
+        }
+    }
+    
+    private static void esperar(java.util.concurrent.CountDownLatch terminados) {
+        // Los lectores sueltan su bloque en cuanto ven detenidos los turnos
+        boolean interrumpido = false;
+        while (true) {
+            try {
+                terminados.await();
+                break;
+            } catch (InterruptedException e) {
+                interrumpido = true;
+            }
+        }
+        if (interrumpido) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Turnos entre los hilos que leen y el que escribe: el bloque n usa el
+     * espacio n % espacios y solo se empieza a leer cuando el que ocupaba ese
+     * espacio ya se escribio. Las esperas vencen cada ESPERA_MS para ver si
+     * el informe se cancelo.
+     */
+    private static final class Turnos {
+        private final java.util.concurrent.atomic.AtomicInteger siguiente = new java.util.concurrent.atomic.AtomicInteger();
+        private final boolean[] listos;
+        private int escritos;
+        private boolean detenidos;
+        private Exception error;
+        
+        Turnos(int espacios) {
+            this.listos = new boolean[espacios];
+        }
+        
+        int tomar() {
+            return siguiente.getAndIncrement();
+        }
+        
+        synchronized boolean esperarTurno(int numero, ExportacionInforme exportacion) throws InterruptedException {
+            while (numero >= escritos + listos.length && !detenidos && !exportacion.isCancelada()) {
+                wait(ESPERA_MS);
+            }
+            return !detenidos && !exportacion.isCancelada();
+        }
+        
+        synchronized void marcarListo(int numero) {
+            listos[numero % listos.length] = true;
+            notifyAll();
+        }
+        
+        synchronized boolean esperarListo(int numero, ExportacionInforme exportacion) throws InterruptedException {
+            int espacio = numero % listos.length;
+            while (!listos[espacio] && error == null && !exportacion.isCancelada()) {
+                wait(ESPERA_MS);
+            }
+            return listos[espacio] && error == null && !exportacion.isCancelada();
+        }
+        
+        synchronized void liberar(int numero) {
+            listos[numero % listos.length] = false;
+            escritos++;
+            notifyAll();
+        }
+        
+        synchronized void fallar(Exception e) {
+            if (error == null) {
+                error = e;
+            }
+            detenidos = true;
+            notifyAll();
+        }
+        
+        synchronized void detener() {
+            detenidos = true;
+            notifyAll();
+        }
+        
+        synchronized void lanzarError() throws java.io.IOException {
+            if (error instanceof java.io.IOException) {
+                throw (java.io.IOException) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+        }
+    }
+}
@@ -0,0 +1,610 @@
+// ============================================================================
+// INGESTA BINARIA DESDE LOS DISPOSITIVOS
+// ============================================================================
+
+/**
+ * Trama de ancho fijo que mandan los dispositivos de los vehiculos, en orden
+ * de red (big-endian). Ocupa 36 bytes:
+ *
+ *   0  short  MAGICO ("ST")
+ *   2  int    id del vehiculo
+ *   6  int    secuencia de la lectura en el dispositivo, sin signo
+ *  10  long   instante de la lectura segun el dispositivo, ms desde la epoca
+ *  18  char   velocidad en centesimas de km/h
+ *  20  short  temperatura del motor en decimas de grado
+ *  22  char   bateria en centesimas de %, o SIN_BATERIA
+ *  24  int    latitud en diezmillonesimas de grado
+ *  28  int    longitud en diezmillonesimas de grado
+ *  32  int    CRC32C de los bytes 0..31
+ *
+ * Las coordenadas en enteros pierden menos de 1 cm y caben en 32 bits aun
+ * en longitud 180. La secuencia sube de uno en uno por lectura; a una por
+ * segundo tarda mas de un siglo en dar la vuelta.
+ */
+final class TramaTelemetria {
+    static final int TAMANO = 36;
+    static final short MAGICO = 0x5354;
+    static final char SIN_BATERIA = 0xFFFF;
+    static final double ESCALA_GRADOS = 1e7;
+    
+    private static final int VEHICULO = 2;
+    private static final int SECUENCIA = 6;
+    private static final int TIEMPO = 10;
+    private static final int VELOCIDAD = 18;
+    private static final int TEMPERATURA = 20;
+    private static final int BATERIA = 22;
+    private static final int LATITUD = 24;
+    private static final int LONGITUD = 28;
+    private static final int SUMA = 32;
+    
+    private TramaTelemetria() {
+    }
+    
+    /**
+     * Escribe una trama en la posicion actual del buffer y la avanza
+     * @param nivelBateria  NaN si el dispositivo no la reporta
+     */
+    static void escribir(java.nio.ByteBuffer destino, java.util.zip.CRC32C crc, int vehiculoId, long secuencia,
+                         long tiempoMillis, float velocidad, float temperaturaMotor, float nivelBateria,
+                         double latitud, double longitud) {
+        int inicio = destino.position();
+        destino.putShort(MAGICO);
+        destino.putInt(vehiculoId);
+        destino.putInt((int) secuencia);
+        destino.putLong(tiempoMillis);
+        destino.putChar((char) Math.max(0, Math.min(0xFFFE, Math.round(velocidad * 100))));
+        destino.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(temperaturaMotor * 10))));
+        destino.putChar(Float.isNaN(nivelBateria) ? SIN_BATERIA
+                        : (char) Math.max(0, Math.min(10_000, Math.round(nivelBateria * 100))));
+        destino.putInt((int) Math.round(latitud * ESCALA_GRADOS));
+        destino.putInt((int) Math.round(longitud * ESCALA_GRADOS));
+        destino.putInt(suma(destino, inicio, crc));
+    }
+    
+    /**
+     * @return true si la trama que empieza en inicio tiene el magico y la suma correctos
+     */
+    static boolean esValida(java.nio.ByteBuffer origen, int inicio, java.util.zip.CRC32C crc) {
+        return origen.getShort(inicio) == MAGICO && origen.getInt(inicio + SUMA) == suma(origen, inicio, crc);
+    }
+    
+    /**
+     * @return el instante de la lectura segun el dispositivo
+     */
+    static long tiempo(java.nio.ByteBuffer origen, int inicio) {
+        return origen.getLong(inicio + TIEMPO);
+    }
+    
+    /**
+     * Agrega la trama al lote leyendo el buffer en su lugar, sin crear objetos
+     * @return false si el lote ya esta lleno
+     */
+    static boolean agregarA(LoteTelemetria lote, java.nio.ByteBuffer origen, int inicio) {
+        char bateria = origen.getChar(inicio + BATERIA);
+        return lote.agregar(origen.getInt(inicio + VEHICULO),
+                            Integer.toUnsignedLong(origen.getInt(inicio + SECUENCIA)),
+                            origen.getLong(inicio + TIEMPO),
+                            origen.getChar(inicio + VELOCIDAD) / 100f,
+                            origen.getShort(inicio + TEMPERATURA) / 10f,
+                            bateria == SIN_BATERIA ? Float.NaN : bateria / 100f,
+                            origen.getInt(inicio + LATITUD) / ESCALA_GRADOS,
+                            origen.getInt(inicio + LONGITUD) / ESCALA_GRADOS);
+    }
+    
+    private static int suma(java.nio.ByteBuffer buffer, int inicio, java.util.zip.CRC32C crc) {
+        int posicion = buffer.position();
+        int limite = buffer.limit();
+        buffer.limit(inicio + SUMA).position(inicio);
+        crc.reset();
+        crc.update(buffer);
+        buffer.limit(limite).position(posicion);
+        return (int) crc.getValue();
+    }
+}
+
+/**
+ * Servidor de ingesta para los dispositivos: recibe TramaTelemetria por TCP
+ * (un flujo de tramas por conexion) y, si se pide, por UDP (cada datagrama
+ * con una o mas tramas completas) en el mismo puerto.
+ *
+ * Un hilo de red atiende todos los canales con un Selector y decodifica las
+ * tramas directo de buffers directos reutilizados a un LoteTelemetria, sin
+ * crear objetos por trama. Los lotes llenos (o los que quedan a medias al
+ * vaciarse los sockets) pasan a un hilo de registro que los entrega a
+ * GestorFlota.registrarTelemetriaLote.
+ *
+ * Contrapresion: hay LOTES lotes. Si el registro se atrasa y no queda
+ * ninguno libre, el hilo de red espera en vez de seguir leyendo; los datos
+ * se acumulan en los buffers del kernel y TCP frena a los dispositivos.
+ * Por UDP, lo que no cabe en el buffer del socket lo descarta el kernel.
+ *
+ * Una trama TCP con el magico o la suma incorrectos deja el flujo sin
+ * alinear, asi que se cierra la conexion; por UDP solo se descarta la trama.
+ * Una trama bien formada cuya hora se adelanta al reloj del gestor mas de
+ * GestorFlota.ADELANTO_MAXIMO_MS se descarta sin cerrar nada; ambas cuentan
+ * como tramas invalidas.
+ */
+class ServidorIngesta implements java.io.Closeable {
+    static final int TAMANO_LOTE = 1024;
+    static final int LOTES = 8;
+    // 512 tramas por conexion; con miles de dispositivos conectados importa
+    static final int TAMANO_BUFFER = 16 * 1024;
+    static final int TAMANO_DATAGRAMA = 64 * 1024;
+    private static final int BUFFERS_LIBRES_MAXIMOS = 1024;
+    
+    private final GestorFlota gestor;
+    private final java.nio.channels.Selector selector;
+    private final java.nio.channels.ServerSocketChannel canalTcp;
+    private final java.nio.channels.DatagramChannel canalUdp;
+    private final java.nio.ByteBuffer bufferDatagrama;
+    private final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+    
+    // Lotes entre el hilo de red y el de registro; nunca hay mas de LOTES
+    private final java.util.concurrent.ArrayBlockingQueue<LotePendiente> libres =
+        new java.util.concurrent.ArrayBlockingQueue<>(LOTES);
+    private final java.util.concurrent.ArrayBlockingQueue<LotePendiente> llenos =
+        new java.util.concurrent.ArrayBlockingQueue<>(LOTES);
+    private LotePendiente actual;
+    // Solo los toca el hilo de red
+    private final java.util.ArrayDeque<java.nio.ByteBuffer> buffersLibres = new java.util.ArrayDeque<>();
+    // Solo la escribe el hilo de red; la lee el medidor de las metricas
+    private volatile int conexiones;
+    
+    private final java.util.concurrent.atomic.LongAdder tramas;
+    private final java.util.concurrent.atomic.LongAdder tramasInvalidas;
+    private final java.util.concurrent.atomic.LongAdder esperas;
+    private final java.util.concurrent.atomic.LongAdder nanosEsperando = new java.util.concurrent.atomic.LongAdder();
+    private final HistogramaLatencia latencia;
+    
+    private final Thread hiloRed;
+    private final Thread hiloRegistro;
+    private volatile boolean cerrado;
+    private volatile boolean redTerminada;
+    
+    /**
+     * @param conUdp  escuchar tambien datagramas en el mismo puerto
+     */
+    public ServidorIngesta(GestorFlota gestor, java.net.InetSocketAddress direccion, boolean conUdp)
+            throws java.io.IOException {
+        this.gestor = gestor;
+        this.selector = java.nio.channels.Selector.open();
+        this.canalTcp = java.nio.channels.ServerSocketChannel.open();
+        this.canalTcp.setOption(java.net.StandardSocketOptions.SO_REUSEADDR, true);
+        this.canalTcp.bind(direccion, 1024);
+        this.canalTcp.configureBlocking(false);
+        this.canalTcp.register(selector, java.nio.channels.SelectionKey.OP_ACCEPT);
+        if (conUdp) {
+            this.canalUdp = java.nio.channels.DatagramChannel.open();
+            this.canalUdp.setOption(java.net.StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            this.canalUdp.bind(new java.net.InetSocketAddress(direccion.getAddress(), getPuerto()));
+            this.canalUdp.configureBlocking(false);
+            this.canalUdp.register(selector, java.nio.channels.SelectionKey.OP_READ);
+            this.bufferDatagrama = java.nio.ByteBuffer.allocateDirect(TAMANO_DATAGRAMA);
+        } else {
+            this.canalUdp = null;
+            this.bufferDatagrama = null;
+        }
+        for (int i = 0; i < LOTES; i++) {
+            libres.add(new LotePendiente());
+        }
+        
+        MetricasFlota metricas = gestor.getMetricas();
+        this.tramas = metricas.contador("sigefve_dispositivos_tramas_total", "Tramas de dispositivos recibidas",
+                                        "resultado=\"aceptada\"");
+        this.tramasInvalidas = metricas.contador("sigefve_dispositivos_tramas_total", "Tramas de dispositivos recibidas",
+                                                 "resultado=\"invalida\"");
+        this.esperas = metricas.contador("sigefve_dispositivos_esperas_total",
+                                         "Veces que la red espero a que el registro liberara un lote", "");
+        metricas.medidor("sigefve_dispositivos_conexiones", "Conexiones TCP de dispositivos abiertas", "",
+                         () -> conexiones);
+        this.latencia = metricas.histograma("sigefve_dispositivos_lote_segundos",
+            "Desde que llega la primera trama de un lote hasta que queda registrado", "");
+        
+        this.hiloRed = new Thread(this::atenderRed, "sigefve-ingesta-red");
+        this.hiloRegistro = new Thread(this::registrarLotes, "sigefve-ingesta-registro");
+        this.hiloRed.setDaemon(true);
+        this.hiloRegistro.setDaemon(true);
+    }
+    
+    public void iniciar() {
+        hiloRegistro.start();
+        hiloRed.start();
+        RegistroAsincrono.info("Ingesta de dispositivos escuchando en el puerto {}{}", getPuerto(),
+                               canalUdp != null ? " (TCP y UDP)" : " (TCP)");
+    }
+    
+    public int getPuerto() {
+        return canalTcp.socket().getLocalPort();
+    }
+    
+    public long getTramas() { return tramas.sum(); }
+    public long getTramasInvalidas() { return tramasInvalidas.sum(); }
+    public long getEsperas() { return esperas.sum(); }
+    public double getMillisEsperando() { return nanosEsperando.sum() / 1e6; }
+    public HistogramaLatencia getLatencia() { return latencia; }
+    
+    /** Para medir cuanto asigna el hilo de red por trama */
+    long getIdHiloRed() { return hiloRed.getId(); }
+    long getIdHiloRegistro() { return hiloRegistro.getId(); }
+    
+    /**
+     * Deja de aceptar tramas, registra las que ya se leyeron y cierra los canales
+     */
+    @Override
+    public void close() throws java.io.IOException {
+        cerrado = true;
+        selector.wakeup();
+        try {
+            hiloRed.join(5_000);
+            hiloRegistro.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (java.nio.channels.SelectionKey llave : selector.keys()) {
+            llave.channel().close();
+        }
+        selector.close();
+    }
+    
+    // ====== Hilo de red ======
+    
+    private void atenderRed() {
+        try {
+            while (!cerrado) {
+                selector.select();
+                java.util.Iterator<java.nio.channels.SelectionKey> listas = selector.selectedKeys().iterator();
+                while (listas.hasNext()) {
+                    java.nio.channels.SelectionKey llave = listas.next();
+                    listas.remove();
+                    if (!llave.isValid()) {
+                        continue;
+                    }
+                    if (llave.isAcceptable()) {
+                        aceptar();
+                    } else if (llave.channel() == canalUdp) {
+                        leerDatagramas();
+                    } else {
+                        leerConexion(llave);
+                    }
+                }
+                // Los sockets quedaron vacios: lo leido se registra ya, aunque el lote no este lleno
+                entregarActual();
+            }
+        } catch (java.io.IOException e) {
+            if (!cerrado) {
+                RegistroAsincrono.error("La ingesta de dispositivos se detuvo: {}", e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                entregarActual();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            redTerminada = true;
+        }
+    }
+    
+    private void aceptar() throws java.io.IOException {
+        java.nio.channels.SocketChannel canal;
+        while ((canal = canalTcp.accept()) != null) {
+            canal.configureBlocking(false);
+            canal.register(selector, java.nio.channels.SelectionKey.OP_READ, tomarBuffer());
+            conexiones++;
+        }
+    }
+    
+    private void leerConexion(java.nio.channels.SelectionKey llave) throws InterruptedException {
+        java.nio.channels.SocketChannel canal = (java.nio.channels.SocketChannel) llave.channel();
+        java.nio.ByteBuffer buffer = (java.nio.ByteBuffer) llave.attachment();
+        int leidos;
+        try {
+            leidos = canal.read(buffer);
+        } catch (java.io.IOException e) {
+            leidos = -1;
+        }
+        if (leidos < 0) {
+            cerrarConexion(llave);
+            return;
+        }
+        buffer.flip();
+        boolean valido = true;
+        long tiempoMaximo = tiempoMaximo();
+        while (buffer.remaining() >= TramaTelemetria.TAMANO) {
+            int inicio = buffer.position();
+            if (!TramaTelemetria.esValida(buffer, inicio, crc)) {
+                valido = false;
+                break;
+            }
+            agregar(buffer, inicio, tiempoMaximo);
+            buffer.position(inicio + TramaTelemetria.TAMANO);
+        }
+        if (!valido) {
+            tramasInvalidas.increment();
+            RegistroAsincrono.aviso("Trama invalida de {}; se cierra la conexion", direccionRemota(canal));
+            cerrarConexion(llave);
+            return;
+        }
+        buffer.compact();
+    }
+    
+    private void leerDatagramas() throws java.io.IOException, InterruptedException {
+        java.nio.ByteBuffer buffer = bufferDatagrama;
+        long tiempoMaximo = tiempoMaximo();
+        while (true) {
+            buffer.clear();
+            if (canalUdp.receive(buffer) == null) {
+                return;
+            }
+            buffer.flip();
+            int fin = buffer.limit();
+            for (int inicio = 0; inicio < fin; inicio += TramaTelemetria.TAMANO) {
+                if (fin - inicio < TramaTelemetria.TAMANO || !TramaTelemetria.esValida(buffer, inicio, crc)) {
+                    tramasInvalidas.increment();
+                    continue;
+                }
+                agregar(buffer, inicio, tiempoMaximo);
+            }
+        }
+    }
+    
+    /**
+     * Hora mas alta que se acepta en una trama; se toma una vez por lectura
+     * del socket, no por trama
+     */
+    private long tiempoMaximo() {
+        return gestor.getReloj().millis() + GestorFlota.ADELANTO_MAXIMO_MS;
+    }
+    
+    private void agregar(java.nio.ByteBuffer buffer, int inicio, long tiempoMaximo) throws InterruptedException {
+        if (TramaTelemetria.tiempo(buffer, inicio) > tiempoMaximo) {
+            // Reloj del dispositivo adelantado: la trama esta bien formada, la conexion sigue
+            tramasInvalidas.increment();
+            return;
+        }
+        if (actual == null) {
+            actual = tomarLote();
+            actual.inicioNanos = System.nanoTime();
+        }
+        TramaTelemetria.agregarA(actual.lote, buffer, inicio);
+        tramas.increment();
+        if (actual.lote.estaLleno()) {
+            entregarActual();
+        }
+    }
+    
+    /**
+     * Espera un lote libre; mientras tanto no se lee nada y TCP frena a los
+     * dispositivos
+     */
+    private LotePendiente tomarLote() throws InterruptedException {
+        LotePendiente libre = libres.poll();
+        if (libre != null) {
+            return libre;
+        }
+        esperas.increment();
+        long inicio = System.nanoTime();
+        try {
+            return libres.take();
+        } finally {
+            nanosEsperando.add(System.nanoTime() - inicio);
+        }
+    }
+    
+    private void entregarActual() throws InterruptedException {
+        if (actual != null && actual.lote.getTamano() > 0) {
+            llenos.put(actual);
+            actual = null;
+        }
+    }
+    
+    private void cerrarConexion(java.nio.channels.SelectionKey llave) {
+        llave.cancel();
+        try {
+            llave.channel().close();
+        } catch (java.io.IOException e) {
+            // Ya estaba cerrada
+        }
+        devolverBuffer((java.nio.ByteBuffer) llave.attachment());
+        conexiones--;
+    }
+    
+    private java.nio.ByteBuffer tomarBuffer() {
+        java.nio.ByteBuffer buffer = buffersLibres.poll();
+        return buffer != null ? buffer : java.nio.ByteBuffer.allocateDirect(TAMANO_BUFFER);
+    }
+    
+    private void devolverBuffer(java.nio.ByteBuffer buffer) {
+        if (buffersLibres.size() < BUFFERS_LIBRES_MAXIMOS) {
+            buffer.clear();
+            buffersLibres.push(buffer);
+        }
+    }
+    
+    private static String direccionRemota(java.nio.channels.SocketChannel canal) {
+        try {
+            return String.valueOf(canal.getRemoteAddress());
+        } catch (java.io.IOException e) {
+            return "?";
+        }
+    }
+    
+    // ====== Hilo de registro ======
+    
+    private void registrarLotes() {
+        while (!(redTerminada && llenos.isEmpty())) {
+            LotePendiente pendiente;
+            try {
+                pendiente = llenos.poll(50, java.util.concurrent.TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (pendiente == null) {
+                continue;
+            }
+            try {
+                gestor.registrarTelemetriaLote(pendiente.lote);
+            } catch (RuntimeException e) {
+                RegistroAsincrono.error("No se pudo registrar un lote de dispositivos: {}", e.getMessage());
+            }
+            latencia.observarDesde(pendiente.inicioNanos);
+            pendiente.lote.limpiar();
+            libres.add(pendiente);
+        }
+    }
+    
+    private static final class LotePendiente {
+        final LoteTelemetria lote = new LoteTelemetria(TAMANO_LOTE);
+        long inicioNanos;
+    }
+}
+
+/**
+ * Generador de carga para ServidorIngesta: simula dispositivos que mandan
+ * tramas a una tasa fija repartidos en varias conexiones, cada una en su
+ * hilo. Cada tick de PERIODO_MILLIS cada conexion escribe de una vez las
+ * tramas que le tocan, cada una de un vehiculo distinto de su tramo.
+ * Se usa con: java Sigefve dispositivos [host] [puerto] [conexiones] [tramas/s] [segundos] [vehiculos] [tcp|udp]
+ */
+class CargaDispositivos {
+    static final long PERIODO_MILLIS = 5;
+    // Tramas por datagrama UDP: 1 KB, cabe en cualquier MTU razonable sin fragmentar mucho
+    static final int TRAMAS_POR_DATAGRAMA = 32;
+    
+    private final java.net.InetSocketAddress destino;
+    private final int conexiones;
+    private final double tramasPorSegundo;
+    private final int vehiculos;
+    private final boolean udp;
+    private final java.util.concurrent.atomic.LongAdder enviadas = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder ticksAtrasados = new java.util.concurrent.atomic.LongAdder();
+    private long nanosTranscurridos;
+    
+    /**
+     * @param tramasPorSegundo  entre todas las conexiones; 0 para mandar tan rapido como se pueda
+     */
+    public CargaDispositivos(java.net.InetSocketAddress destino, int conexiones, double tramasPorSegundo,
+                             int vehiculos, boolean udp) {
+        if (conexiones <= 0 || vehiculos < conexiones || tramasPorSegundo < 0) {
+            throw new IllegalArgumentException("Carga no valida: " + conexiones + " conexiones, "
+                                               + vehiculos + " vehiculos, " + tramasPorSegundo + " tramas/s");
+        }
+        this.destino = destino;
+        this.conexiones = conexiones;
+        this.tramasPorSegundo = tramasPorSegundo;
+        this.vehiculos = vehiculos;
+        this.udp = udp;
+    }
+    
+    /**
+     * Manda tramas durante el tiempo indicado y espera a que terminen todas
+     * las conexiones
+     */
+    public void ejecutar(long millis) throws java.io.IOException {
+        java.util.List<java.nio.channels.ByteChannel> canales = new java.util.ArrayList<>();
+        Thread[] hilos = new Thread[conexiones];
+        try {
+            for (int c = 0; c < conexiones; c++) {
+                canales.add(abrir());
+            }
+            long inicio = System.nanoTime();
+            long fin = inicio + millis * 1_000_000L;
+            for (int c = 0; c < conexiones; c++) {
+                java.nio.channels.ByteChannel canal = canales.get(c);
+                int primero = 1 + (int) ((long) vehiculos * c / conexiones);
+                int ultimo = (int) ((long) vehiculos * (c + 1) / conexiones);
+                hilos[c] = new Thread(() -> enviar(canal, primero, ultimo, fin), "dispositivos-" + c);
+                hilos[c].start();
+            }
+            for (Thread hilo : hilos) {
+                hilo.join();
+            }
+            nanosTranscurridos = System.nanoTime() - inicio;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrumpido mientras se generaba carga", e);
+        } finally {
+            for (java.nio.channels.ByteChannel canal : canales) {
+                canal.close();
+            }
+        }
+    }
+    
+    public long getEnviadas() { return enviadas.sum(); }
+    public long getTicksAtrasados() { return ticksAtrasados.sum(); }
+    
+    public double getTramasPorSegundo() {
+        return nanosTranscurridos == 0 ? 0 : enviadas.sum() * 1e9 / nanosTranscurridos;
+    }
+    
+    private java.nio.channels.ByteChannel abrir() throws java.io.IOException {
+        if (udp) {
+            java.nio.channels.DatagramChannel canal = java.nio.channels.DatagramChannel.open();
+            canal.connect(destino);
+            return canal;
+        }
+        java.nio.channels.SocketChannel canal = java.nio.channels.SocketChannel.open(destino);
+        canal.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+        return canal;
+    }
+    
+    private void enviar(java.nio.channels.ByteChannel canal, int primero, int ultimo, long finNanos) {
+        double porTick = tramasPorSegundo * PERIODO_MILLIS / 1000.0 / conexiones;
+        // Tramas por escritura: un datagrama, o todo el tick por TCP
+        int porEscritura = udp ? TRAMAS_POR_DATAGRAMA
+                           : porTick == 0 ? ServidorIngesta.TAMANO_BUFFER / TramaTelemetria.TAMANO
+                           : Math.max(1, (int) Math.ceil(porTick));
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(porEscritura * TramaTelemetria.TAMANO);
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        java.util.SplittableRandom random = new java.util.SplittableRandom(primero);
+        long[] secuencias = new long[ultimo - primero + 1];
+        int vehiculo = primero;
+        double pendientes = 0;
+        long siguiente = System.nanoTime();
+        try {
+            while (System.nanoTime() < finNanos) {
+                int cantidad;
+                if (porTick == 0) {
+                    cantidad = porEscritura;
+                } else {
+                    pendientes += porTick;
+                    cantidad = (int) pendientes;
+                    pendientes -= cantidad;
+                }
+                long ahora = System.currentTimeMillis();
+                for (int enviadasTick = 0; enviadasTick < cantidad; ) {
+                    int enEscritura = Math.min(porEscritura, cantidad - enviadasTick);
+                    buffer.clear();
+                    for (int i = 0; i < enEscritura; i++) {
+                        TramaTelemetria.escribir(buffer, crc, vehiculo, secuencias[vehiculo - primero]++, ahora,
+                                                 (float) random.nextDouble(0, 90),
+                                                 (float) random.nextDouble(30, 80), (float) random.nextDouble(10, 100),
+                                                 20.5 + random.nextDouble() * 0.2, -100.45 + random.nextDouble() * 0.2);
+                        vehiculo = vehiculo == ultimo ? primero : vehiculo + 1;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        canal.write(buffer);
+                    }
+                    enviadasTick += enEscritura;
+                }
+                enviadas.add(cantidad);
+                if (porTick == 0) {
+                    continue;
+                }
+                siguiente += PERIODO_MILLIS * 1_000_000L;
+                long espera = siguiente - System.nanoTime();
+                if (espera > 0) {
+                    java.util.concurrent.locks.LockSupport.parkNanos(espera);
+                } else {
+                    ticksAtrasados.increment();
+                }
+            }
+        } catch (java.io.IOException e) {
+            // UDP sin nadie escuchando o TCP cerrado por el servidor: se deja de mandar
+            RegistroAsincrono.aviso("Conexion de carga detenida: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+// ============================================================================
+// METRICAS: CONTADORES, MEDIDORES E HISTOGRAMAS DE LATENCIA
+// ============================================================================
+
+/**
+ * Histograma de latencias con limites fijos, de 1 us a 10 s. Registrar una
+ * observacion es buscar su cubeta entre pocos limites (casi todas caen en
+ * las primeras) y sumar en un LongAdder, sin candados ni asignaciones, asi
+ * se puede llamar desde varios hilos en el camino de la ingesta.
+ *
+ * Las observaciones de al menos UMBRAL_LENTA_NANOS se publican ademas como
+ * evento JFR sigefve.OperacionLenta cuando hay una grabacion activa.
+ */
+class HistogramaLatencia {
+    public static final long UMBRAL_LENTA_NANOS = 1_000_000;
+    /** Limites superiores en segundos, como los espera Prometheus */
+    static final double[] LIMITES_SEGUNDOS = {
+        1e-6, 2.5e-6, 5e-6, 1e-5, 2.5e-5, 5e-5, 1e-4, 2.5e-4, 5e-4,
+        1e-3, 2.5e-3, 5e-3, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] LIMITES_NANOS = new long[LIMITES_SEGUNDOS.length];
+    static {
+        for (int i = 0; i < LIMITES_NANOS.length; i++) {
+            LIMITES_NANOS[i] = Math.round(LIMITES_SEGUNDOS[i] * 1e9);
+        }
+    }
+    private static final jdk.jfr.EventType EVENTO_LENTA = jdk.jfr.EventType.getEventType(EventoOperacionLenta.class);
+    
+    private final String operacion;
+    // Una cubeta por limite y la ultima para lo que pasa de 10 s
+    private final java.util.concurrent.atomic.LongAdder[] cubetas;
+    private final java.util.concurrent.atomic.LongAdder sumaNanos = new java.util.concurrent.atomic.LongAdder();
+    
+    /**
+     * @param operacion  nombre con el que aparece en los eventos JFR
+     */
+    public HistogramaLatencia(String operacion) {
+        this.operacion = operacion;
+        this.cubetas = new java.util.concurrent.atomic.LongAdder[LIMITES_NANOS.length + 1];
+        for (int i = 0; i < cubetas.length; i++) {
+            cubetas[i] = new java.util.concurrent.atomic.LongAdder();
+        }
+    }
+    
+    public void observar(long nanos) {
+        int cubeta = 0;
+        while (cubeta < LIMITES_NANOS.length && nanos > LIMITES_NANOS[cubeta]) {
+            cubeta++;
+        }
+        cubetas[cubeta].increment();
+        sumaNanos.add(nanos);
+        if (nanos >= UMBRAL_LENTA_NANOS && EVENTO_LENTA.isEnabled()) {
+            EventoOperacionLenta evento = new EventoOperacionLenta();
+            evento.operacion = operacion;
+            evento.duracion = nanos;
+            evento.commit();
+        }
+    }
+    
+    /** Atajo para observar(System.nanoTime() - inicioNanos) */
+    public void observarDesde(long inicioNanos) {
+        observar(System.nanoTime() - inicioNanos);
+    }
+    
+    public String getOperacion() { return operacion; }
+    
+    public long getCantidad() {
+        long total = 0;
+        for (java.util.concurrent.atomic.LongAdder cubeta : cubetas) {
+            total += cubeta.sum();
+        }
+        return total;
+    }
+    
+    public long getSumaNanos() { return sumaNanos.sum(); }
+    
+    /**
+     * Limite superior de la cubeta donde cae el percentil, en nanosegundos;
+     * Long.MAX_VALUE si cae por encima del ultimo limite, 0 si no hay datos
+     */
+    public long percentilNanos(double fraccion) {
+        long[] conteos = new long[cubetas.length];
+        long total = 0;
+        for (int i = 0; i < conteos.length; i++) {
+            conteos[i] = cubetas[i].sum();
+            total += conteos[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long objetivo = (long) Math.ceil(fraccion * total);
+        long acumulado = 0;
+        for (int i = 0; i < LIMITES_NANOS.length; i++) {
+            acumulado += conteos[i];
+            if (acumulado >= objetivo) {
+                return LIMITES_NANOS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+    
+    /**
+     * Escribe las muestras _bucket (acumuladas), _sum y _count
+     */
+    void escribirPrometheus(StringBuilder destino, String nombre, String etiquetas) {
+        String prefijo = etiquetas.isEmpty() ? "" : etiquetas + ",";
+        long acumulado = 0;
+        for (int i = 0; i < cubetas.length; i++) {
+            acumulado += cubetas[i].sum();
+            destino.append(nombre).append("_bucket{").append(prefijo).append("le=\"")
+                   .append(i < LIMITES_SEGUNDOS.length ? Double.toString(LIMITES_SEGUNDOS[i]) : "+Inf")
+                   .append("\"} ").append(acumulado).append('\n');
+        }
+        String llaves = etiquetas.isEmpty() ? "" : "{" + etiquetas + "}";
+        destino.append(nombre).append("_sum").append(llaves).append(' ').append(sumaNanos.sum() / 1e9).append('\n');
+        destino.append(nombre).append("_count").append(llaves).append(' ').append(acumulado).append('\n');
+    }
+}
+
+/**
+ * Registro de metricas de un GestorFlota y su formato de texto para
+ * Prometheus. Los contadores y medidores se leen de quien ya lleva la
+ * cuenta (un LongAdder, las estadisticas de la flota, el heap) solo cuando
+ * se consultan; los histogramas se alimentan en cada operacion.
+ *
+ * histograma y contador devuelven el ya registrado con el mismo nombre y
+ * etiquetas, asi varios simuladores de una misma flota suman en la misma serie.
+ */
+class MetricasFlota {
+    private final java.util.Map<String, Familia> familias = new java.util.LinkedHashMap<>();
+    
+    public synchronized HistogramaLatencia histograma(String nombre, String ayuda, String etiquetas) {
+        Familia familia = familia(nombre, ayuda, "histogram");
+        Object existente = familia.series.get(etiquetas);
+        if (existente instanceof HistogramaLatencia) {
+            return (HistogramaLatencia) existente;
+        }
+        HistogramaLatencia histograma = new HistogramaLatencia(etiquetas.isEmpty() ? nombre : nombre + "{" + etiquetas + "}");
+        familia.series.put(etiquetas, histograma);
+        return histograma;
+    }
+    
+    public synchronized java.util.concurrent.atomic.LongAdder contador(String nombre, String ayuda, String etiquetas) {
+        Familia familia = familia(nombre, ayuda, "counter");
+        Object existente = familia.series.get(etiquetas);
+        if (existente instanceof java.util.concurrent.atomic.LongAdder) {
+            return (java.util.concurrent.atomic.LongAdder) existente;
+        }
+        java.util.concurrent.atomic.LongAdder contador = new java.util.concurrent.atomic.LongAdder();
+        familia.series.put(etiquetas, contador);
+        return contador;
+    }
+    
+    /** Contador cuyo valor ya lleva otro objeto */
+    public synchronized void contador(String nombre, String ayuda, String etiquetas,
+                                      java.util.function.LongSupplier valor) {
+        familia(nombre, ayuda, "counter").series.put(etiquetas, valor);
+    }
+    
+    public synchronized void medidor(String nombre, String ayuda, String etiquetas,
+                                     java.util.function.DoubleSupplier valor) {
+        familia(nombre, ayuda, "gauge").series.put(etiquetas, valor);
+    }
+    
+    /**
+     * Formato de texto de Prometheus (version 0.0.4)
+     */
+    public synchronized void escribirPrometheus(StringBuilder destino) {
+        for (java.util.Map.Entry<String, Familia> entrada : familias.entrySet()) {
+            String nombre = entrada.getKey();
+            Familia familia = entrada.getValue();
+            destino.append("# HELP ").append(nombre).append(' ').append(familia.ayuda).append('\n');
+            destino.append("# TYPE ").append(nombre).append(' ').append(familia.tipo).append('\n');
+            for (java.util.Map.Entry<String, Object> serie : familia.series.entrySet()) {
+                String etiquetas = serie.getKey();
+                Object fuente = serie.getValue();
+                if (fuente instanceof HistogramaLatencia) {
+                    ((HistogramaLatencia) fuente).escribirPrometheus(destino, nombre, etiquetas);
+                    continue;
+                }
+                destino.append(nombre);
+                if (!etiquetas.isEmpty()) {
+                    destino.append('{').append(etiquetas).append('}');
+                }
+                destino.append(' ');
+                if (fuente instanceof java.util.concurrent.atomic.LongAdder) {
+                    destino.append(((java.util.concurrent.atomic.LongAdder) fuente).sum());
+                } else if (fuente instanceof java.util.function.LongSupplier) {
+                    destino.append(((java.util.function.LongSupplier) fuente).getAsLong());
+                } else {
+                    double valor = ((java.util.function.DoubleSupplier) fuente).getAsDouble();
+                    if (valor == Math.rint(valor) && Math.abs(valor) < 1e15) {
+                        destino.append((long) valor); // conteos y bytes sin notacion cientifica
+                    } else {
+                        destino.append(Double.isNaN(valor) ? "NaN" : Double.toString(valor));
+                    }
+                }
+                destino.append('\n');
+            }
+        }
+    }
+    
+    private Familia familia(String nombre, String ayuda, String tipo) {
+        Familia familia = familias.computeIfAbsent(nombre, clave -> new Familia(ayuda, tipo));
+        if (!familia.tipo.equals(tipo)) {
+            throw new IllegalArgumentException("La metrica " + nombre + " ya esta registrada como " + familia.tipo);
+        }
+        return familia;
+    }
+    
+    private static final class Familia {
+        final String ayuda;
+        final String tipo;
+        // Etiquetas ya formateadas (estado="disponible") -> histograma, LongAdder o proveedor
+        final java.util.Map<String, Object> series = new java.util.LinkedHashMap<>();
+        
+        Familia(String ayuda, String tipo) {
+            this.ayuda = ayuda;
+            this.tipo = tipo;
+        }
+    }
+}
+
+// ====== Eventos JFR ======
+
+@jdk.jfr.Name("sigefve.OperacionLenta")
+@jdk.jfr.Label("Operacion lenta")
+@jdk.jfr.Description("Ingesta o consulta que tardo al menos 1 ms")
+@jdk.jfr.Category("SIGEFVE")
+class EventoOperacionLenta extends jdk.jfr.Event {
+    @jdk.jfr.Label("Operacion")
+    String operacion;
+    
+    @jdk.jfr.Label("Duracion")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.NANOSECONDS)
+    long duracion;
+}
+
+@jdk.jfr.Name("sigefve.TickSimulador")
+@jdk.jfr.Label("Ronda del simulador")
+@jdk.jfr.Category("SIGEFVE")
+class EventoTickSimulador extends jdk.jfr.Event {
+    @jdk.jfr.Label("Retraso del inicio")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.NANOSECONDS)
+    long retraso;
+    
+    @jdk.jfr.Label("Lecturas generadas")
+    int lecturas;
+}
+
+@jdk.jfr.Name("sigefve.EstadoFlota")
+@jdk.jfr.Label("Estado de la flota")
+@jdk.jfr.Category("SIGEFVE")
+@jdk.jfr.Period("1 s")
+class EventoEstadoFlota extends jdk.jfr.Event {
+    @jdk.jfr.Label("Disponibles")
+    int disponibles;
+    
+    @jdk.jfr.Label("En ruta")
+    int enRuta;
+    
+    @jdk.jfr.Label("En mantenimiento")
+    int mantenimiento;
+    
+    @jdk.jfr.Label("Cargando")
+    int cargando;
+    
+    @jdk.jfr.Label("Lecturas ingeridas")
+    long lecturasIngeridas;
+    
+    @jdk.jfr.Label("Lecturas en el historial")
+    long lecturasEnHistorial;
+}
@@ -0,0 +1,470 @@
+// ============================================================================
+// ALERTAS DE TELEMETRIA
+// ============================================================================
+
+/**
+ * Valor de la lectura que vigila una regla
+ */
+enum MetricaAlerta {
+    NIVEL_BATERIA,
+    TEMPERATURA_MOTOR,
+    VELOCIDAD
+}
+
+enum SeveridadAlerta {
+    MEDIA,
+    URGENTE
+}
+
+/**
+ * Umbral con histeresis: la alerta se abre al pasar 'umbral' y solo se
+ * cierra al volver del otro lado de 'umbralLiberacion'. Asi una lectura que
+ * oscila alrededor del umbral no abre y cierra alertas una y otra vez.
+ */
+class ReglaAlerta {
+    private final String nombre;
+    private final MetricaAlerta metrica;
+    private final boolean porEncima;
+    private final float umbral;
+    private final float umbralLiberacion;
+    private final SeveridadAlerta severidad;
+    private final String tipoVehiculo;
+    
+    /**
+     * @param porEncima     true si se activa con valores mayores que el umbral, false si con menores
+     * @param tipoVehiculo  "van", "bicicleta", "moto" o null para todos
+     */
+    public ReglaAlerta(String nombre, MetricaAlerta metrica, boolean porEncima, float umbral,
+                       float umbralLiberacion, SeveridadAlerta severidad, String tipoVehiculo) {
+        if (nombre == null || nombre.isBlank()) {
+            throw new IllegalArgumentException("La regla necesita un nombre");
+        }
+        if (Float.isNaN(umbral) || Float.isNaN(umbralLiberacion)
+                || (porEncima ? umbralLiberacion > umbral : umbralLiberacion < umbral)) {
+            throw new IllegalArgumentException("El umbral de liberacion debe quedar del lado normal del umbral");
+        }
+        this.nombre = nombre;
+        this.metrica = metrica;
+        this.porEncima = porEncima;
+        this.umbral = umbral;
+        this.umbralLiberacion = umbralLiberacion;
+        this.severidad = severidad;
+        this.tipoVehiculo = tipoVehiculo;
+    }
+    
+    public String getNombre() { return nombre; }
+    public MetricaAlerta getMetrica() { return metrica; }
+    public boolean isPorEncima() { return porEncima; }
+    public float getUmbral() { return umbral; }
+    public float getUmbralLiberacion() { return umbralLiberacion; }
+    public SeveridadAlerta getSeveridad() { return severidad; }
+    public String getTipoVehiculo() { return tipoVehiculo; }
+    
+    boolean activa(float valor) {
+        return porEncima ? valor > umbral : valor < umbral;
+    }
+    
+    boolean libera(float valor) {
+        return porEncima ? valor <= umbralLiberacion : valor >= umbralLiberacion;
+    }
+}
+
+/**
+ * Una alerta abierta (o ya cerrada) de un vehiculo por una regla. Mientras
+ * esta abierta guarda el peor valor visto.
+ */
+class Alerta {
+    private final long id;
+    private final int vehiculoId;
+    private final int reglaId;
+    private final ReglaAlerta regla;
+    private final long tiempoApertura;
+    private final float valorInicial;
+    private volatile float valorExtremo;
+    private volatile long tiempoCierre;
+    
+    public Alerta(long id, int vehiculoId, int reglaId, ReglaAlerta regla, long tiempoApertura, float valor) {
+        this.id = id;
+        this.vehiculoId = vehiculoId;
+        this.reglaId = reglaId;
+        this.regla = regla;
+        this.tiempoApertura = tiempoApertura;
+        this.valorInicial = valor;
+        this.valorExtremo = valor;
+    }
+    
+    public long getId() { return id; }
+    public int getVehiculoId() { return vehiculoId; }
+    public int getReglaId() { return reglaId; }
+    public ReglaAlerta getRegla() { return regla; }
+    public SeveridadAlerta getSeveridad() { return regla.getSeveridad(); }
+    public long getTiempoApertura() { return tiempoApertura; }
+    public float getValorInicial() { return valorInicial; }
+    public float getValorExtremo() { return valorExtremo; }
+    /** 0 mientras esta abierta */
+    public long getTiempoCierre() { return tiempoCierre; }
+    public boolean isAbierta() { return tiempoCierre == 0; }
+    
+    public String getMensaje() {
+        return String.format("%s: %.1f (umbral %.1f)", regla.getNombre(), valorExtremo, regla.getUmbral());
+    }
+    
+    // Solo bajo el candado del estado del vehiculo en MotorAlertas
+    void registrarValor(float valor) {
+        if (regla.isPorEncima() ? valor > valorExtremo : valor < valorExtremo) {
+            valorExtremo = valor;
+        }
+    }
+    
+    void cerrar(long tiempo) {
+        tiempoCierre = Math.max(tiempo, tiempoApertura + 1);
+    }
+}
+
+/**
+ * Evalua cada lectura contra las reglas de alerta al registrarla.
+ *
+ * Las reglas se publican como un conjunto inmutable (se reemplaza entero al
+ * agregar o quitar una). El conjunto precalcula, por metrica, el umbral mas
+ * bajo de las reglas "por encima" y el mas alto de las "por debajo": una
+ * lectura de un vehiculo sin alertas abiertas que no pasa ninguno de esos
+ * seis limites se descarta con seis comparaciones, sin candados ni objetos.
+ * Solo los vehiculos con alertas abiertas, o cuya lectura cruza algun
+ * umbral, recorren las reglas bajo el candado de su estado; los objetos
+ * Alerta se crean unicamente al abrir una.
+ */
+class MotorAlertas {
+    public static final int MAXIMO_REGLAS = 256;
+    public static final int MAXIMO_RECIENTES = 1000;
+    
+    private volatile ConjuntoReglas reglas;
+    // Estado por id de vehiculo, como en IndiceEspacial; se crea con la primera alerta
+    private volatile java.util.concurrent.atomic.AtomicReferenceArray<EstadoAlertas> estados;
+    private java.util.concurrent.ConcurrentHashMap<Long, Alerta> activas;
+    private java.util.ArrayDeque<Alerta> recientes;
+    private java.util.concurrent.atomic.AtomicLong contadorAlertas;
+    private java.util.concurrent.atomic.LongAdder cerradas;
+    // Hora con que se cierran las alertas fuera de una lectura (regla quitada, vehiculo eliminado)
+    private java.time.Clock reloj;
+    
+    public MotorAlertas() {
+        this(java.time.Clock.systemDefaultZone());
+    }
+    
+    public MotorAlertas(java.time.Clock reloj) {
+        this.reloj = reloj;
+        this.reglas = new ConjuntoReglas(new ReglaAlerta[MAXIMO_REGLAS]);
+        this.estados = new java.util.concurrent.atomic.AtomicReferenceArray<>(1024);
+        this.activas = new java.util.concurrent.ConcurrentHashMap<>();
+        this.recientes = new java.util.ArrayDeque<>();
+        this.contadorAlertas = new java.util.concurrent.atomic.AtomicLong(1);
+        this.cerradas = new java.util.concurrent.atomic.LongAdder();
+    }
+    
+    // ====== Reglas ======
+    
+    /**
+     * @return id de la regla, para quitarla despues
+     */
+    public synchronized int agregarRegla(ReglaAlerta regla) {
+        ReglaAlerta[] porId = reglas.porId.clone();
+        for (int id = 0; id < porId.length; id++) {
+            if (porId[id] == null) {
+                porId[id] = regla;
+                reglas = new ConjuntoReglas(porId);
+                return id;
+            }
+        }
+        throw new IllegalArgumentException("No se pueden tener mas de " + MAXIMO_REGLAS + " reglas");
+    }
+    
+    /**
+     * Quita la regla y cierra sus alertas abiertas. Se pasa por el candado de
+     * cada vehiculo con estado, no solo por las alertas activas: un evaluar
+     * que leyo el conjunto anterior puede estar a punto de abrir una. Antes de
+     * abrir vuelve a mirar las reglas bajo ese candado, asi que o la abrio
+     * antes (y aqui se cierra) o ya ve la regla quitada. Mientras tanto no se
+     * crean estados nuevos: crearEstado tambien sincroniza sobre el motor.
+     */
+    public synchronized boolean eliminarRegla(int reglaId) {
+        if (reglaId < 0 || reglaId >= MAXIMO_REGLAS || reglas.porId[reglaId] == null) {
+            return false;
+        }
+        ReglaAlerta[] porId = reglas.porId.clone();
+        porId[reglaId] = null;
+        reglas = new ConjuntoReglas(porId);
+        long ahora = reloj.millis();
+        java.util.concurrent.atomic.AtomicReferenceArray<EstadoAlertas> tabla = estados;
+        for (int vehiculoId = 0; vehiculoId < tabla.length(); vehiculoId++) {
+            EstadoAlertas estado = tabla.get(vehiculoId);
+            if (estado != null) {
+                synchronized (estado) {
+                    if (estado.porRegla != null) {
+                        cerrar(estado, reglaId, ahora);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return las reglas vigentes por id (las posiciones vacias son null)
+     */
+    public ReglaAlerta[] listarReglas() {
+        return reglas.porId.clone();
+    }
+    
+    public int getCantidadReglas() {
+        return reglas.ids.length;
+    }
+    
+    // ====== Evaluacion ======
+    
+    /**
+     * Evalua una lectura del vehiculo contra todas las reglas.
+     */
+    public void evaluar(VehiculoElectrico vehiculo, long tiempoMillis, float velocidad,
+                        float temperaturaMotor, float nivelBateria) {
+        ConjuntoReglas conjunto = reglas;
+        if (conjunto.ids.length == 0) {
+            return;
+        }
+        int vehiculoId = vehiculo.getId();
+        EstadoAlertas estado = estado(vehiculoId);
+        if ((estado == null || estado.abiertas == 0)
+                && !conjunto.puedeActivar(nivelBateria, temperaturaMotor, velocidad)) {
+            return;
+        }
+        if (estado == null) {
+            estado = crearEstado(vehiculoId);
+        }
+        byte tipo = codigoTipo(vehiculo.getTipo());
+        synchronized (estado) {
+            int[] ids = conjunto.ids;
+            for (int i = 0; i < ids.length; i++) {
+                if (conjunto.tipos[i] != 0 && conjunto.tipos[i] != tipo) {
+                    continue;
+                }
+                int reglaId = ids[i];
+                ReglaAlerta regla = conjunto.porId[reglaId];
+                // Ordinales de MetricaAlerta
+                float valor = conjunto.metricas[i] == 0 ? nivelBateria
+                            : conjunto.metricas[i] == 1 ? temperaturaMotor : velocidad;
+                Alerta abierta = estado.porRegla != null ? estado.porRegla[reglaId] : null;
+                if (abierta == null) {
+                    // El conjunto pudo quedar viejo: no se abre una alerta de una regla ya quitada
+                    if (regla.activa(valor) && reglas.porId[reglaId] == regla) {
+                        abrir(estado, vehiculoId, reglaId, regla, tiempoMillis, valor);
+                    }
+                } else if (abierta.getRegla() != regla) {
+                    // La regla se reemplazo en el mismo id mientras la alerta seguia abierta
+                    cerrar(estado, reglaId, tiempoMillis);
+                } else if (regla.libera(valor)) {
+                    cerrar(estado, reglaId, tiempoMillis);
+                } else {
+                    abierta.registrarValor(valor);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Cierra las alertas de un vehiculo que se elimino de la flota
+     */
+    public void olvidarVehiculo(int vehiculoId) {
+        EstadoAlertas estado = estado(vehiculoId);
+        if (estado == null) {
+            return;
+        }
+        long ahora = reloj.millis();
+        synchronized (estado) {
+            for (int reglaId = 0; estado.porRegla != null && reglaId < MAXIMO_REGLAS; reglaId++) {
+                if (estado.porRegla[reglaId] != null) {
+                    cerrar(estado, reglaId, ahora);
+                }
+            }
+        }
+    }
+    
+    private void abrir(EstadoAlertas estado, int vehiculoId, int reglaId, ReglaAlerta regla,
+                       long tiempoMillis, float valor) {
+        if (estado.porRegla == null) {
+            estado.porRegla = new Alerta[MAXIMO_REGLAS];
+        }
+        Alerta alerta = new Alerta(contadorAlertas.getAndIncrement(), vehiculoId, reglaId, regla, tiempoMillis, valor);
+        estado.porRegla[reglaId] = alerta;
+        estado.abiertas++;
+        activas.put(alerta.getId(), alerta);
+    }
+    
+    private void cerrar(EstadoAlertas estado, int reglaId, long tiempoMillis) {
+        Alerta alerta = estado.porRegla[reglaId];
+        if (alerta == null) {
+            return;
+        }
+        estado.porRegla[reglaId] = null;
+        estado.abiertas--;
+        alerta.cerrar(tiempoMillis);
+        activas.remove(alerta.getId());
+        cerradas.increment();
+        synchronized (recientes) {
+            if (recientes.size() == MAXIMO_RECIENTES) {
+                recientes.removeLast();
+            }
+            recientes.addFirst(alerta);
+        }
+    }
+    
+    // ====== Consultas ======
+    
+    /**
+     * @return alertas abiertas, las URGENTE primero y luego de la mas reciente a la mas antigua
+     */
+    public java.util.List<Alerta> listarActivas() {
+        java.util.List<Alerta> lista = new java.util.ArrayList<>(activas.values());
+        lista.sort((a, b) -> a.getSeveridad() != b.getSeveridad()
+                             ? b.getSeveridad().compareTo(a.getSeveridad())
+                             : Long.compare(b.getId(), a.getId()));
+        return lista;
+    }
+    
+    /**
+     * @return las ultimas alertas cerradas, de la mas reciente a la mas antigua
+     */
+    public java.util.List<Alerta> listarRecientes(int limite) {
+        java.util.List<Alerta> lista = new java.util.ArrayList<>();
+        synchronized (recientes) {
+            for (Alerta alerta : recientes) {
+                if (lista.size() >= limite) {
+                    break;
+                }
+                lista.add(alerta);
+            }
+        }
+        return lista;
+    }
+    
+    public int getCantidadActivas() {
+        return activas.size();
+    }
+    
+    /** Alertas abiertas desde el arranque, incluidas las que ya se cerraron */
+    public long getTotalAbiertas() {
+        return contadorAlertas.get() - 1;
+    }
+    
+    public long getTotalCerradas() {
+        return cerradas.sum();
+    }
+    
+    // ====== Estado por vehiculo ======
+    
+    /** 0 significa cualquier tipo */
+    private static byte codigoTipo(String tipo) {
+        if (tipo == null) {
+            return 0;
+        }
+        switch (tipo) {
+            case "van":
+                return 1;
+            case "bicicleta":
+                return 2;
+            case "moto":
+                return 3;
+            default:
+                return -1;
+        }
+    }
+    
+    private EstadoAlertas estado(int vehiculoId) {
+        java.util.concurrent.atomic.AtomicReferenceArray<EstadoAlertas> tabla = estados;
+        return vehiculoId >= 0 && vehiculoId < tabla.length() ? tabla.get(vehiculoId) : null;
+    }
+    
+    private synchronized EstadoAlertas crearEstado(int vehiculoId) {
+        if (vehiculoId < 0) {
+            throw new IllegalArgumentException("Id de vehiculo no valido: " + vehiculoId);
+        }
+        java.util.concurrent.atomic.AtomicReferenceArray<EstadoAlertas> tabla = estados;
+        if (vehiculoId >= tabla.length()) {
+            int capacidad = tabla.length();
+            while (capacidad <= vehiculoId) {
+                capacidad *= 2;
+            }
+            java.util.concurrent.atomic.AtomicReferenceArray<EstadoAlertas> nueva =
+                new java.util.concurrent.atomic.AtomicReferenceArray<>(capacidad);
+            for (int i = 0; i < tabla.length(); i++) {
+                nueva.set(i, tabla.get(i));
+            }
+            estados = tabla = nueva;
+        }
+        EstadoAlertas estado = tabla.get(vehiculoId);
+        if (estado == null) {
+            estado = new EstadoAlertas();
+            tabla.set(vehiculoId, estado);
+        }
+        return estado;
+    }
+    
+    private static class EstadoAlertas {
+        // Se escribe bajo el candado del estado; se lee sin el para el descarte rapido
+        volatile int abiertas;
+        // Alerta abierta por id de regla; se crea con la primera
+        Alerta[] porRegla;
+    }
+    
+    /**
+     * Reglas vigentes y los limites que permiten descartar una lectura sin recorrerlas
+     */
+    private static class ConjuntoReglas {
+        final ReglaAlerta[] porId;
+        final int[] ids;
+        final byte[] metricas;
+        final byte[] tipos;
+        // Por ordinal de MetricaAlerta
+        final float[] minimoPorEncima;
+        final float[] maximoPorDebajo;
+        
+        ConjuntoReglas(ReglaAlerta[] porId) {
+            this.porId = porId;
+            int cantidad = 0;
+            for (ReglaAlerta regla : porId) {
+                if (regla != null) {
+                    cantidad++;
+                }
+            }
+            this.ids = new int[cantidad];
+            this.metricas = new byte[cantidad];
+            this.tipos = new byte[cantidad];
+            int n = MetricaAlerta.values().length;
+            this.minimoPorEncima = new float[n];
+            this.maximoPorDebajo = new float[n];
+            java.util.Arrays.fill(minimoPorEncima, Float.POSITIVE_INFINITY);
+            java.util.Arrays.fill(maximoPorDebajo, Float.NEGATIVE_INFINITY);
+            int i = 0;
+            for (int id = 0; id < porId.length; id++) {
+                ReglaAlerta regla = porId[id];
+                if (regla == null) {
+                    continue;
+                }
+                int metrica = regla.getMetrica().ordinal();
+                ids[i] = id;
+                metricas[i] = (byte) metrica;
+                tipos[i] = codigoTipo(regla.getTipoVehiculo());
+                if (regla.isPorEncima()) {
+                    minimoPorEncima[metrica] = Math.min(minimoPorEncima[metrica], regla.getUmbral());
+                } else {
+                    maximoPorDebajo[metrica] = Math.max(maximoPorDebajo[metrica], regla.getUmbral());
+                }
+                i++;
+            }
+        }
+        
+        boolean puedeActivar(float nivelBateria, float temperaturaMotor, float velocidad) {
+            return nivelBateria > minimoPorEncima[0] || nivelBateria < maximoPorDebajo[0]
+                || temperaturaMotor > minimoPorEncima[1] || temperaturaMotor < maximoPorDebajo[1]
+                || velocidad > minimoPorEncima[2] || velocidad < maximoPorDebajo[2];
+        }
+    }
+}
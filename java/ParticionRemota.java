@@ -0,0 +1,603 @@
+// ============================================================================
+// PARTICIONES EN OTRO PROCESO
+// ============================================================================
+
+/**
+ * Protocolo binario entre ParticionRemota y ServidorParticion sobre TCP.
+ * Cada peticion es un byte de operacion seguido de sus argumentos; cada
+ * respuesta, un byte de estado (RESPUESTA_OK, o RESPUESTA_ERROR y el
+ * mensaje de la IllegalArgumentException) seguido del resultado. Los numeros
+ * van como los escribe DataOutputStream.
+ */
+final class ProtocoloParticion {
+    static final byte CREAR = 1;
+    static final byte CONSULTAR = 2;
+    static final byte ELIMINAR = 3;
+    static final byte CAMBIAR_ESTADO = 4;
+    static final byte CARGAR = 5;
+    static final byte LECTURA = 6;
+    static final byte LOTE = 7;
+    static final byte ULTIMA = 8;
+    static final byte LISTAR = 9;
+    static final byte DISPONIBLES = 10;
+    static final byte ESTADISTICAS = 11;
+    static final byte TOTAL_LECTURAS = 12;
+    static final byte EXTRAER = 13;
+    static final byte INCORPORAR = 14;
+    
+    static final byte RESPUESTA_OK = 0;
+    static final byte RESPUESTA_ERROR = 1;
+    
+    static final int TAMANO_BUFFER = 64 * 1024;
+    
+    private ProtocoloParticion() {
+    }
+    
+    static void escribirVehiculo(java.io.DataOutputStream salida, VehiculoElectrico vehiculo) throws java.io.IOException {
+        salida.writeInt(vehiculo.getId());
+        salida.writeUTF(vehiculo.getTipo());
+        salida.writeUTF(vehiculo.getModelo() != null ? vehiculo.getModelo() : "");
+        salida.writeFloat(vehiculo.getCapacidadBateria());
+        salida.writeByte(vehiculo.getEstado().ordinal());
+        salida.writeFloat(vehiculo.getNivelBateria());
+    }
+    
+    /**
+     * @return una copia suelta del vehiculo: cambiarla no cambia la particion
+     */
+    static VehiculoElectrico leerVehiculo(java.io.DataInputStream entrada) throws java.io.IOException {
+        int id = entrada.readInt();
+        String tipo = entrada.readUTF();
+        String modelo = entrada.readUTF();
+        float capacidad = entrada.readFloat();
+        EstadoVehiculo estado = EstadoVehiculo.values()[entrada.readByte()];
+        VehiculoElectrico vehiculo = GestorFlota.nuevoVehiculo(tipo, id, modelo, capacidad);
+        vehiculo.setEstado(estado);
+        vehiculo.setNivelBateria(entrada.readFloat());
+        return vehiculo;
+    }
+    
+    static void escribirVehiculos(java.io.DataOutputStream salida, java.util.List<VehiculoElectrico> vehiculos)
+            throws java.io.IOException {
+        salida.writeInt(vehiculos.size());
+        for (VehiculoElectrico vehiculo : vehiculos) {
+            escribirVehiculo(salida, vehiculo);
+        }
+    }
+    
+    static java.util.List<VehiculoElectrico> leerVehiculos(java.io.DataInputStream entrada) throws java.io.IOException {
+        int cantidad = entrada.readInt();
+        java.util.List<VehiculoElectrico> vehiculos = new java.util.ArrayList<>(cantidad);
+        for (int i = 0; i < cantidad; i++) {
+            vehiculos.add(leerVehiculo(entrada));
+        }
+        return vehiculos;
+    }
+    
+    static void escribirLecturas(java.io.DataOutputStream salida, SegmentoTelemetria lecturas) throws java.io.IOException {
+        salida.writeInt(lecturas.getTamano());
+        for (int i = 0; i < lecturas.getTamano(); i++) {
+            salida.writeInt(lecturas.getId(i));
+            salida.writeLong(lecturas.getTiempo(i));
+            salida.writeFloat(lecturas.getVelocidad(i));
+            salida.writeFloat(lecturas.getTemperaturaMotor(i));
+            salida.writeFloat(lecturas.getNivelBateria(i));
+            salida.writeDouble(lecturas.getLatitud(i));
+            salida.writeDouble(lecturas.getLongitud(i));
+        }
+    }
+    
+    static SegmentoTelemetria leerLecturas(java.io.DataInputStream entrada, int vehiculoId) throws java.io.IOException {
+        int cantidad = entrada.readInt();
+        SegmentoTelemetria lecturas = new SegmentoTelemetria(Math.max(1, cantidad));
+        for (int i = 0; i < cantidad; i++) {
+            lecturas.agregar(entrada.readInt(), entrada.readLong(), vehiculoId, entrada.readFloat(),
+                             entrada.readFloat(), entrada.readFloat(), entrada.readDouble(), entrada.readDouble());
+        }
+        return lecturas;
+    }
+    
+    static void escribirTelemetria(java.io.DataOutputStream salida, Telemetria telemetria, java.time.ZoneId zona)
+            throws java.io.IOException {
+        salida.writeBoolean(telemetria != null);
+        if (telemetria != null) {
+            salida.writeInt(telemetria.getId());
+            salida.writeLong(telemetria.getFechaHora().atZone(zona).toInstant().toEpochMilli());
+            salida.writeFloat(telemetria.getVelocidad());
+            salida.writeFloat(telemetria.getTemperaturaMotor());
+            salida.writeDouble(telemetria.getLatitud());
+            salida.writeDouble(telemetria.getLongitud());
+            salida.writeFloat(telemetria.getNivelBateria());
+            salida.writeInt(telemetria.getVehiculoId());
+        }
+    }
+    
+    static Telemetria leerTelemetria(java.io.DataInputStream entrada, java.time.ZoneId zona) throws java.io.IOException {
+        if (!entrada.readBoolean()) {
+            return null;
+        }
+        int id = entrada.readInt();
+        java.time.LocalDateTime fechaHora = java.time.LocalDateTime.ofInstant(
+            java.time.Instant.ofEpochMilli(entrada.readLong()), zona);
+        return new Telemetria(id, fechaHora, entrada.readFloat(), entrada.readFloat(), entrada.readDouble(),
+                              entrada.readDouble(), entrada.readFloat(), entrada.readInt());
+    }
+    
+    static void escribirResumen(java.io.DataOutputStream salida, ResumenEstadisticas resumen) throws java.io.IOException {
+        for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+            salida.writeInt(resumen.getVehiculos(estado));
+        }
+        salida.writeInt(resumen.getTotalVehiculos());
+        salida.writeInt(resumen.getDias());
+        for (int dia = 0; dia < resumen.getDias(); dia++) {
+            salida.writeLong(resumen.getFecha(dia).toEpochDay());
+            salida.writeDouble(resumen.getKilometros(dia));
+            salida.writeLong(resumen.getEntregasCompletadas(dia));
+        }
+    }
+    
+    static ResumenEstadisticas leerResumen(java.io.DataInputStream entrada) throws java.io.IOException {
+        int[] porEstado = new int[EstadoVehiculo.values().length];
+        for (int i = 0; i < porEstado.length; i++) {
+            porEstado[i] = entrada.readInt();
+        }
+        int total = entrada.readInt();
+        int dias = entrada.readInt();
+        java.time.LocalDate[] fechas = new java.time.LocalDate[dias];
+        double[] kilometros = new double[dias];
+        long[] entregas = new long[dias];
+        for (int dia = 0; dia < dias; dia++) {
+            fechas[dia] = java.time.LocalDate.ofEpochDay(entrada.readLong());
+            kilometros[dia] = entrada.readDouble();
+            entregas[dia] = entrada.readLong();
+        }
+        return new ResumenEstadisticas(porEstado, total, fechas, kilometros, entregas);
+    }
+}
+
+/**
+ * Particion servida por un ServidorParticion en otro proceso. Los vehiculos
+ * que devuelve son copias sueltas: sus cambios de estado se piden con
+ * cambiarEstadoVehiculo, no con el objeto.
+ *
+ * Cada peticion toma una conexion libre (o abre otra) y la devuelve al
+ * terminar, asi varios hilos piden a la vez sin esperarse. Un error de red
+ * sale como UncheckedIOException y descarta la conexion.
+ */
+class ParticionRemota implements ParticionFlota {
+    private final String nombre;
+    private final java.net.InetSocketAddress direccion;
+    private final java.time.ZoneId zona = java.time.ZoneId.systemDefault();
+    private final java.util.concurrent.ConcurrentLinkedQueue<Conexion> libres = new java.util.concurrent.ConcurrentLinkedQueue<>();
+    private final java.util.Set<Conexion> abiertas = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    private volatile boolean cerrada;
+    
+    /**
+     * Abre la primera conexion, asi una direccion equivocada falla aqui
+     */
+    public ParticionRemota(String nombre, java.net.InetSocketAddress direccion) throws java.io.IOException {
+        this.nombre = nombre;
+        this.direccion = direccion;
+        libres.add(abrir());
+    }
+    
+    @Override
+    public String getNombre() {
+        return nombre;
+    }
+    
+    public java.net.InetSocketAddress getDireccion() {
+        return direccion;
+    }
+    
+    @Override
+    public VehiculoElectrico crearVehiculo(int id, String tipo, String modelo, float capacidadBateria) {
+        return pedir(ProtocoloParticion.CREAR, salida -> {
+            salida.writeInt(id);
+            salida.writeUTF(tipo);
+            salida.writeUTF(modelo);
+            salida.writeFloat(capacidadBateria);
+        }, ProtocoloParticion::leerVehiculo);
+    }
+    
+    @Override
+    public VehiculoElectrico consultarVehiculo(int id) {
+        return pedir(ProtocoloParticion.CONSULTAR, salida -> salida.writeInt(id),
+                     entrada -> entrada.readBoolean() ? ProtocoloParticion.leerVehiculo(entrada) : null);
+    }
+    
+    @Override
+    public boolean eliminarVehiculo(int id) {
+        return pedir(ProtocoloParticion.ELIMINAR, salida -> salida.writeInt(id),
+                     java.io.DataInputStream::readBoolean);
+    }
+    
+    @Override
+    public boolean cambiarEstadoVehiculo(int id, EstadoVehiculo nuevoEstado) {
+        return pedir(ProtocoloParticion.CAMBIAR_ESTADO, salida -> {
+            salida.writeInt(id);
+            salida.writeByte(nuevoEstado.ordinal());
+        }, java.io.DataInputStream::readBoolean);
+    }
+    
+    @Override
+    public boolean cargarVehiculo(int id) {
+        return pedir(ProtocoloParticion.CARGAR, salida -> salida.writeInt(id),
+                     java.io.DataInputStream::readBoolean);
+    }
+    
+    @Override
+    public int registrarLectura(int vehiculoId, long tiempoMillis, float velocidad, float temperaturaMotor,
+                                double latitud, double longitud) {
+        return pedir(ProtocoloParticion.LECTURA, salida -> {
+            salida.writeInt(vehiculoId);
+            salida.writeLong(tiempoMillis);
+            salida.writeFloat(velocidad);
+            salida.writeFloat(temperaturaMotor);
+            salida.writeDouble(latitud);
+            salida.writeDouble(longitud);
+        }, java.io.DataInputStream::readInt);
+    }
+    
+    @Override
+    public int registrarTelemetriaLote(LoteTelemetria lote) {
+        return pedir(ProtocoloParticion.LOTE, salida -> {
+            salida.writeInt(lote.getTamano());
+            for (int i = 0; i < lote.getTamano(); i++) {
+                salida.writeInt(lote.getVehiculoId(i));
+                salida.writeLong(lote.getSecuencia(i));
+                salida.writeLong(lote.getTiempo(i));
+                salida.writeFloat(lote.getVelocidad(i));
+                salida.writeFloat(lote.getTemperaturaMotor(i));
+                salida.writeFloat(lote.getNivelBateria(i));
+                salida.writeDouble(lote.getLatitud(i));
+                salida.writeDouble(lote.getLongitud(i));
+            }
+        }, java.io.DataInputStream::readInt);
+    }
+    
+    @Override
+    public Telemetria obtenerUltimaTelemetria(int vehiculoId) {
+        return pedir(ProtocoloParticion.ULTIMA, salida -> salida.writeInt(vehiculoId),
+                     entrada -> ProtocoloParticion.leerTelemetria(entrada, zona));
+    }
+    
+    @Override
+    public java.util.List<VehiculoElectrico> listarVehiculos() {
+        return pedir(ProtocoloParticion.LISTAR, salida -> { }, ProtocoloParticion::leerVehiculos);
+    }
+    
+    @Override
+    public java.util.List<VehiculoElectrico> obtenerVehiculosDisponibles() {
+        return pedir(ProtocoloParticion.DISPONIBLES, salida -> { }, ProtocoloParticion::leerVehiculos);
+    }
+    
+    @Override
+    public ResumenEstadisticas obtenerEstadisticas() {
+        return pedir(ProtocoloParticion.ESTADISTICAS, salida -> { }, ProtocoloParticion::leerResumen);
+    }
+    
+    @Override
+    public long getTotalLecturasTelemetria() {
+        return pedir(ProtocoloParticion.TOTAL_LECTURAS, salida -> { }, java.io.DataInputStream::readLong);
+    }
+    
+    @Override
+    public TraspasoVehiculo extraerVehiculo(int id) {
+        return pedir(ProtocoloParticion.EXTRAER, salida -> salida.writeInt(id), entrada -> {
+            if (!entrada.readBoolean()) {
+                return null;
+            }
+            VehiculoElectrico vehiculo = ProtocoloParticion.leerVehiculo(entrada);
+            return new TraspasoVehiculo(vehiculo, ProtocoloParticion.leerLecturas(entrada, vehiculo.getId()));
+        });
+    }
+    
+    @Override
+    public void incorporarVehiculo(TraspasoVehiculo traspaso) {
+        pedir(ProtocoloParticion.INCORPORAR, salida -> {
+            ProtocoloParticion.escribirVehiculo(salida, traspaso.getVehiculo());
+            ProtocoloParticion.escribirLecturas(salida, traspaso.getLecturas());
+        }, java.io.DataInputStream::readBoolean);
+    }
+    
+    @Override
+    public void close() {
+        cerrada = true;
+        for (Conexion conexion : abiertas) {
+            conexion.cerrar();
+        }
+    }
+    
+    // ====== Conexiones ======
+    
+    private <T> T pedir(byte operacion, Escritura argumentos, Lectura<T> resultado) {
+        if (cerrada) {
+            throw new IllegalStateException("La particion " + nombre + " esta cerrada");
+        }
+        Conexion conexion = libres.poll();
+        boolean reutilizable = false;
+        try {
+            if (conexion == null) {
+                conexion = abrir();
+            }
+            conexion.salida.writeByte(operacion);
+            argumentos.escribir(conexion.salida);
+            conexion.salida.flush();
+            byte estado = conexion.entrada.readByte();
+            if (estado == ProtocoloParticion.RESPUESTA_ERROR) {
+                String mensaje = conexion.entrada.readUTF();
+                reutilizable = true;
+                throw new IllegalArgumentException(mensaje);
+            }
+            T respuesta = resultado.leer(conexion.entrada);
+            reutilizable = true;
+            return respuesta;
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("La particion " + nombre + " no responde", e);
+        } finally {
+            if (conexion != null) {
+                if (reutilizable && !cerrada) {
+                    libres.add(conexion);
+                } else {
+                    conexion.cerrar();
+                }
+            }
+        }
+    }
+    
+    private Conexion abrir() throws java.io.IOException {
+        Conexion conexion = new Conexion(direccion);
+        abiertas.add(conexion);
+        return conexion;
+    }
+    
+    @FunctionalInterface
+    private interface Escritura {
+        void escribir(java.io.DataOutputStream salida) throws java.io.IOException;
+    }
+    
+    @FunctionalInterface
+    private interface Lectura<T> {
+        T leer(java.io.DataInputStream entrada) throws java.io.IOException;
+    }
+    
+    private final class Conexion {
+        final java.net.Socket socket;
+        final java.io.DataInputStream entrada;
+        final java.io.DataOutputStream salida;
+        
+        Conexion(java.net.InetSocketAddress direccion) throws java.io.IOException {
+            socket = new java.net.Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(direccion, 5_000);
+            entrada = new java.io.DataInputStream(new java.io.BufferedInputStream(
+                socket.getInputStream(), ProtocoloParticion.TAMANO_BUFFER));
+            salida = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+                socket.getOutputStream(), ProtocoloParticion.TAMANO_BUFFER));
+        }
+        
+        void cerrar() {
+            abiertas.remove(this);
+            try {
+                socket.close();
+            } catch (java.io.IOException e) {
+                // Ya no se usa; nada que hacer
+            }
+        }
+    }
+}
+
+/**
+ * Sirve un GestorFlota como particion a las ParticionRemota de otros
+ * procesos. Atiende cada conexion en su propio hilo, una peticion a la vez.
+ * Se arranca con: java Sigefve particion [puerto] [capacidad historial]
+ */
+class ServidorParticion implements java.io.Closeable {
+    private final GestorFlota gestor;
+    private final java.net.ServerSocket servidor;
+    private final java.util.concurrent.ExecutorService ejecutor;
+    private final java.util.Set<java.net.Socket> conexiones = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    private final java.time.ZoneId zona;
+    
+    public ServidorParticion(GestorFlota gestor, java.net.InetSocketAddress direccion) throws java.io.IOException {
+        this.gestor = gestor;
+        this.zona = gestor.getReloj().getZone();
+        this.servidor = new java.net.ServerSocket();
+        this.servidor.setReuseAddress(true);
+        this.servidor.bind(direccion, 128);
+        java.util.concurrent.atomic.AtomicInteger numero = new java.util.concurrent.atomic.AtomicInteger();
+        this.ejecutor = java.util.concurrent.Executors.newCachedThreadPool(tarea -> {
+            Thread hilo = new Thread(tarea, "sigefve-particion-" + numero.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+    }
+    
+    public void iniciar() {
+        ejecutor.execute(this::aceptar);
+        RegistroAsincrono.info("Particion escuchando en el puerto {}", getPuerto());
+    }
+    
+    public int getPuerto() {
+        return servidor.getLocalPort();
+    }
+    
+    @Override
+    public void close() throws java.io.IOException {
+        servidor.close();
+        for (java.net.Socket conexion : conexiones) {
+            conexion.close();
+        }
+        ejecutor.shutdownNow();
+    }
+    
+    private void aceptar() {
+        while (!servidor.isClosed()) {
+            try {
+                java.net.Socket conexion = servidor.accept();
+                conexion.setTcpNoDelay(true);
+                conexiones.add(conexion);
+                ejecutor.execute(() -> atender(conexion));
+            } catch (java.io.IOException e) {
+                if (!servidor.isClosed()) {
+                    RegistroAsincrono.error("No se pudo aceptar una conexion: {}", e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private void atender(java.net.Socket conexion) {
+        LoteTelemetria lote = new LoteTelemetria(1024);
+        try (java.net.Socket socket = conexion) {
+            java.io.DataInputStream entrada = new java.io.DataInputStream(new java.io.BufferedInputStream(
+                socket.getInputStream(), ProtocoloParticion.TAMANO_BUFFER));
+            java.io.DataOutputStream salida = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+                socket.getOutputStream(), ProtocoloParticion.TAMANO_BUFFER));
+            int operacion;
+            while ((operacion = entrada.read()) >= 0) {
+                if (operacion == ProtocoloParticion.LOTE) {
+                    // Los argumentos se leen completos antes de responder, aun si el lote falla
+                    lote = leerLote(entrada, lote);
+                }
+                try {
+                    responder((byte) operacion, entrada, salida, lote);
+                } catch (IllegalArgumentException e) {
+                    salida.writeByte(ProtocoloParticion.RESPUESTA_ERROR);
+                    salida.writeUTF(String.valueOf(e.getMessage()));
+                }
+                salida.flush();
+            }
+        } catch (java.io.IOException e) {
+            RegistroAsincrono.depuracion("Conexion de particion cerrada: {}", e.getMessage());
+        } finally {
+            conexiones.remove(conexion);
+        }
+    }
+    
+    private static LoteTelemetria leerLote(java.io.DataInputStream entrada, LoteTelemetria lote) throws java.io.IOException {
+        int cantidad = entrada.readInt();
+        if (cantidad > lote.getCapacidad()) {
+            lote = new LoteTelemetria(cantidad);
+        }
+        lote.limpiar();
+        for (int i = 0; i < cantidad; i++) {
+            lote.agregar(entrada.readInt(), entrada.readLong(), entrada.readLong(), entrada.readFloat(),
+                         entrada.readFloat(), entrada.readFloat(), entrada.readDouble(), entrada.readDouble());
+        }
+        return lote;
+    }
+    
+    /**
+     * Lee los argumentos de la operacion, la aplica y escribe la respuesta.
+     * Una IllegalArgumentException sale antes de escribir nada, asi quien
+     * llama puede responder con el error.
+     */
+    private void responder(byte operacion, java.io.DataInputStream entrada, java.io.DataOutputStream salida,
+                           LoteTelemetria lote) throws java.io.IOException {
+        switch (operacion) {
+            case ProtocoloParticion.CREAR: {
+                int id = entrada.readInt();
+                String tipo = entrada.readUTF();
+                String modelo = entrada.readUTF();
+                float capacidad = entrada.readFloat();
+                VehiculoElectrico vehiculo = gestor.crearVehiculo(id, tipo, modelo, capacidad);
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                ProtocoloParticion.escribirVehiculo(salida, vehiculo);
+                break;
+            }
+            case ProtocoloParticion.CONSULTAR: {
+                VehiculoElectrico vehiculo = gestor.consultarVehiculo(entrada.readInt());
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeBoolean(vehiculo != null);
+                if (vehiculo != null) {
+                    ProtocoloParticion.escribirVehiculo(salida, vehiculo);
+                }
+                break;
+            }
+            case ProtocoloParticion.ELIMINAR: {
+                boolean eliminado = gestor.eliminarVehiculo(entrada.readInt());
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeBoolean(eliminado);
+                break;
+            }
+            case ProtocoloParticion.CAMBIAR_ESTADO: {
+                int id = entrada.readInt();
+                EstadoVehiculo estado = EstadoVehiculo.values()[entrada.readByte()];
+                boolean cambiado = gestor.cambiarEstadoVehiculo(id, estado);
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeBoolean(cambiado);
+                break;
+            }
+            case ProtocoloParticion.CARGAR: {
+                boolean aceptado = gestor.cargarVehiculo(entrada.readInt());
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeBoolean(aceptado);
+                break;
+            }
+            case ProtocoloParticion.LECTURA: {
+                int id = gestor.registrarLectura(entrada.readInt(), entrada.readLong(), entrada.readFloat(),
+                                                 entrada.readFloat(), entrada.readDouble(), entrada.readDouble());
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeInt(id);
+                break;
+            }
+            case ProtocoloParticion.LOTE: {
+                int registradas = gestor.registrarTelemetriaLote(lote);
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeInt(registradas);
+                break;
+            }
+            case ProtocoloParticion.ULTIMA: {
+                Telemetria ultima = gestor.obtenerUltimaTelemetria(entrada.readInt());
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                ProtocoloParticion.escribirTelemetria(salida, ultima, zona);
+                break;
+            }
+            case ProtocoloParticion.LISTAR: {
+                java.util.List<VehiculoElectrico> vehiculos = new java.util.ArrayList<>(gestor.listarVehiculos());
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                ProtocoloParticion.escribirVehiculos(salida, vehiculos);
+                break;
+            }
+            case ProtocoloParticion.DISPONIBLES: {
+                java.util.List<VehiculoElectrico> vehiculos = gestor.obtenerVehiculosDisponibles();
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                ProtocoloParticion.escribirVehiculos(salida, vehiculos);
+                break;
+            }
+            case ProtocoloParticion.ESTADISTICAS: {
+                ResumenEstadisticas resumen = gestor.obtenerEstadisticas();
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                ProtocoloParticion.escribirResumen(salida, resumen);
+                break;
+            }
+            case ProtocoloParticion.TOTAL_LECTURAS: {
+                long total = gestor.getTotalLecturasTelemetria();
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeLong(total);
+                break;
+            }
+            case ProtocoloParticion.EXTRAER: {
+                TraspasoVehiculo traspaso = gestor.extraerVehiculo(entrada.readInt());
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeBoolean(traspaso != null);
+                if (traspaso != null) {
+                    ProtocoloParticion.escribirVehiculo(salida, traspaso.getVehiculo());
+                    ProtocoloParticion.escribirLecturas(salida, traspaso.getLecturas());
+                }
+                break;
+            }
+            case ProtocoloParticion.INCORPORAR: {
+                VehiculoElectrico vehiculo = ProtocoloParticion.leerVehiculo(entrada);
+                SegmentoTelemetria lecturas = ProtocoloParticion.leerLecturas(entrada, vehiculo.getId());
+                gestor.incorporarVehiculo(new TraspasoVehiculo(vehiculo, lecturas));
+                salida.writeByte(ProtocoloParticion.RESPUESTA_OK);
+                salida.writeBoolean(true);
+                break;
+            }
+            default:
+                throw new java.io.IOException("Operacion desconocida: " + operacion);
+        }
+    }
+}
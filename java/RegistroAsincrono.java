@@ -0,0 +1,170 @@
+// ============================================================================
+// REGISTRO ASINCRONO DE MENSAJES
+// ============================================================================
+
+enum NivelRegistro {
+    DEPURACION,
+    INFO,
+    AVISO,
+    ERROR
+}
+
+/**
+ * Mensajes de la aplicacion por niveles. Quien registra solo compara el
+ * nivel y encola la plantilla con sus argumentos; el texto se arma y se
+ * escribe en System.out desde un hilo propio, asi una consola lenta no frena
+ * la ingesta ni las asignaciones. Si la cola se llena el mensaje se descarta
+ * y se cuenta: el registro nunca bloquea a quien llama.
+ *
+ * Las plantillas usan {} para cada argumento, en orden. El nivel inicial se
+ * toma de SIGEFVE_NIVEL_REGISTRO (DEPURACION, INFO, AVISO o ERROR; INFO si
+ * no se define).
+ */
+final class RegistroAsincrono {
+    public static final int CAPACIDAD_COLA = 16_384;
+    private static final int LOTE_ESCRITURA = 256;
+    
+    private static final java.util.concurrent.ArrayBlockingQueue<Entrada> cola =
+        new java.util.concurrent.ArrayBlockingQueue<>(CAPACIDAD_COLA);
+    private static final java.util.concurrent.atomic.LongAdder descartados = new java.util.concurrent.atomic.LongAdder();
+    private static final java.util.concurrent.atomic.AtomicLong encolados = new java.util.concurrent.atomic.AtomicLong();
+    private static volatile long escritos;
+    private static volatile NivelRegistro nivel = nivelInicial();
+    
+    static {
+        Thread escritor = new Thread(RegistroAsincrono::escribir, "registro");
+        escritor.setDaemon(true);
+        escritor.start();
+        // Lo que quede en la cola se escribe antes de que termine la JVM
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> vaciar(2_000), "registro-cierre"));
+    }
+    
+    private RegistroAsincrono() {
+    }
+    
+    public static void depuracion(String plantilla, Object... argumentos) {
+        registrar(NivelRegistro.DEPURACION, plantilla, argumentos);
+    }
+    
+    public static void info(String plantilla, Object... argumentos) {
+        registrar(NivelRegistro.INFO, plantilla, argumentos);
+    }
+    
+    public static void aviso(String plantilla, Object... argumentos) {
+        registrar(NivelRegistro.AVISO, plantilla, argumentos);
+    }
+    
+    public static void error(String plantilla, Object... argumentos) {
+        registrar(NivelRegistro.ERROR, plantilla, argumentos);
+    }
+    
+    public static boolean habilitado(NivelRegistro consultado) {
+        return consultado.compareTo(nivel) >= 0;
+    }
+    
+    public static NivelRegistro getNivel() {
+        return nivel;
+    }
+    
+    public static void setNivel(NivelRegistro nuevoNivel) {
+        nivel = nuevoNivel;
+    }
+    
+    /** Mensajes perdidos porque la cola estaba llena */
+    public static long getDescartados() {
+        return descartados.sum();
+    }
+    
+    /**
+     * Espera a que se escriba todo lo encolado hasta ahora
+     * @return false si no termino dentro del plazo
+     */
+    public static boolean vaciar(long plazoMillis) {
+        long objetivo = encolados.get();
+        long limite = System.nanoTime() + plazoMillis * 1_000_000L;
+        while (escritos < objetivo) {
+            if (System.nanoTime() > limite) {
+                return false;
+            }
+            java.util.concurrent.locks.LockSupport.parkNanos(200_000);
+        }
+        return true;
+    }
+    
+    private static void registrar(NivelRegistro nivelMensaje, String plantilla, Object[] argumentos) {
+        if (nivelMensaje.compareTo(nivel) < 0) {
+            return;
+        }
+        if (cola.offer(new Entrada(nivelMensaje, plantilla, argumentos))) {
+            encolados.incrementAndGet();
+        } else {
+            descartados.increment();
+        }
+    }
+    
+    private static void escribir() {
+        java.util.List<Entrada> lote = new java.util.ArrayList<>(LOTE_ESCRITURA);
+        StringBuilder texto = new StringBuilder(256);
+        while (true) {
+            try {
+                lote.add(cola.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            cola.drainTo(lote, LOTE_ESCRITURA - 1);
+            texto.setLength(0);
+            for (Entrada entrada : lote) {
+                entrada.formatear(texto);
+                texto.append(System.lineSeparator());
+            }
+            // Se toma System.out en cada lote: quien lo redirige (BancoPruebas) lo sigue viendo
+            java.io.PrintStream salida = System.out;
+            salida.print(texto);
+            salida.flush();
+            escritos += lote.size();
+            lote.clear();
+        }
+    }
+    
+    private static NivelRegistro nivelInicial() {
+        String configurado = System.getenv("SIGEFVE_NIVEL_REGISTRO");
+        if (configurado != null && !configurado.isEmpty()) {
+            try {
+                return NivelRegistro.valueOf(configurado.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("SIGEFVE_NIVEL_REGISTRO no valido: " + configurado + "; se usa INFO");
+            }
+        }
+        return NivelRegistro.INFO;
+    }
+    
+    private static final class Entrada {
+        private final NivelRegistro nivel;
+        private final String plantilla;
+        private final Object[] argumentos;
+        
+        Entrada(NivelRegistro nivel, String plantilla, Object[] argumentos) {
+            this.nivel = nivel;
+            this.plantilla = plantilla;
+            this.argumentos = argumentos;
+        }
+        
+        /**
+         * INFO se escribe tal cual, como la salida de consola de siempre; los
+         * demas niveles llevan su nombre delante
+         */
+        void formatear(StringBuilder destino) {
+            if (nivel != NivelRegistro.INFO) {
+                destino.append(nivel).append(": ");
+            }
+            int argumento = 0;
+            int desde = 0;
+            int marca;
+            while ((marca = plantilla.indexOf("{}", desde)) >= 0 && argumento < argumentos.length) {
+                destino.append(plantilla, desde, marca).append(argumentos[argumento++]);
+                desde = marca + 2;
+            }
+            destino.append(plantilla, desde, plantilla.length());
+        }
+    }
+}
@@ -0,0 +1,343 @@
+// ============================================================================
+// REORDEN Y DUPLICADAS DE TELEMETRIA
+// ============================================================================
+
+/**
+ * Ventana de reorden de las lecturas que llegan de los dispositivos. Las
+ * pasarelas acumulan mientras no tienen red y al volver reenvian: las
+ * lecturas llegan tarde, desordenadas y a veces dos veces. Con la ventana
+ * activa (GestorFlota.activarReorden) cada vehiculo:
+ *
+ *   - descarta las duplicadas por su secuencia, con un mapa de bits de las
+ *     ultimas 64;
+ *   - retiene hasta capacidadPorVehiculo lecturas y las entrega en orden de
+ *     instante del dispositivo. Sale de inmediato la que sigue a la ultima
+ *     entregada por secuencia; las demas esperan a la que falta hasta que
+ *     la marca (instante mas nuevo visto menos el retraso permitido) las
+ *     pasa, la ventana se llena o el vehiculo deja de mandar por el retraso
+ *     permitido;
+ *   - informa como tardia la que llega despues de que ya se entrego una
+ *     lectura mas nueva. No se registra: no hay forma de ponerla en su lugar
+ *     del historial ni del desgaste de bateria;
+ *   - descarta como adelantada la que trae un instante posterior a la hora
+ *     del servidor mas GestorFlota.ADELANTO_MAXIMO_MS.
+ *
+ * Ni la marca ni la ultima entregada pasan de la hora del servidor: una
+ * lectura con el reloj del dispositivo adelantado, aun dentro del margen,
+ * no deja tardias a las que siguen ni suelta de golpe las retenidas.
+ *
+ * Una lectura sin secuencia no se puede reconocer como duplicada ni como la
+ * siguiente, asi que siempre espera a la marca.
+ */
+class ReordenTelemetria {
+    public static final long RETRASO_POR_DEFECTO_MILLIS = 2_000;
+    public static final int CAPACIDAD_POR_DEFECTO = 32;
+    /** Secuencias hacia atras que recuerda el mapa de duplicadas */
+    static final int ANCHO_MAPA = 64;
+    
+    private final long retrasoPermitidoMillis;
+    private final int capacidadPorVehiculo;
+    private final java.util.concurrent.atomic.LongAdder duplicadas = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder tardias = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder retenidas = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder forzadas = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder reinicios = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder adelantadas = new java.util.concurrent.atomic.LongAdder();
+    // Las tardias se avisan en el registro a lo sumo una vez por segundo, con la cuenta acumulada
+    private final java.util.concurrent.atomic.AtomicLong proximoAviso = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.LongAdder tardiasSinAvisar = new java.util.concurrent.atomic.LongAdder();
+    
+    /**
+     * @param retrasoPermitidoMillis  cuanto puede llegar tarde una lectura, en tiempo del dispositivo,
+     *                                respecto de la mas nueva de su vehiculo
+     * @param capacidadPorVehiculo    lecturas retenidas por vehiculo; al llenarse sale la mas antigua
+     */
+    public ReordenTelemetria(long retrasoPermitidoMillis, int capacidadPorVehiculo) {
+        if (retrasoPermitidoMillis < 0 || capacidadPorVehiculo <= 0) {
+            throw new IllegalArgumentException("Reorden no valido: " + retrasoPermitidoMillis + " ms, "
+                                               + capacidadPorVehiculo + " lecturas");
+        }
+        this.retrasoPermitidoMillis = retrasoPermitidoMillis;
+        this.capacidadPorVehiculo = capacidadPorVehiculo;
+    }
+    
+    public static ReordenTelemetria porDefecto() {
+        return new ReordenTelemetria(RETRASO_POR_DEFECTO_MILLIS, CAPACIDAD_POR_DEFECTO);
+    }
+    
+    public long getRetrasoPermitidoMillis() { return retrasoPermitidoMillis; }
+    public int getCapacidadPorVehiculo() { return capacidadPorVehiculo; }
+    
+    public long getDuplicadas() { return duplicadas.sum(); }
+    public long getTardias() { return tardias.sum(); }
+    /** Lecturas que no salieron al llegar y esperaron en la ventana */
+    public long getRetenidas() { return retenidas.sum(); }
+    /** Lecturas que salieron antes de su marca porque la ventana se lleno */
+    public long getForzadas() { return forzadas.sum(); }
+    /** Veces que la secuencia de un dispositivo volvio a empezar */
+    public long getReinicios() { return reinicios.sum(); }
+    /** Lecturas descartadas por venir de mas alla de la hora del servidor */
+    public long getAdelantadas() { return adelantadas.sum(); }
+    
+    VentanaReorden nuevaVentana(int vehiculoId) {
+        return new VentanaReorden(this, vehiculoId);
+    }
+    
+    void anotarDuplicada() { duplicadas.increment(); }
+    void anotarRetenida() { retenidas.increment(); }
+    void anotarForzada() { forzadas.increment(); }
+    void anotarReinicio() { reinicios.increment(); }
+    void anotarAdelantada() { adelantadas.increment(); }
+    
+    void anotarTardia(int vehiculoId, long atrasoMillis) {
+        tardias.increment();
+        tardiasSinAvisar.increment();
+        long ahora = System.nanoTime();
+        long proximo = proximoAviso.get();
+        if (ahora - proximo >= 0 && proximoAviso.compareAndSet(proximo, ahora + 1_000_000_000L)) {
+            RegistroAsincrono.aviso("{} lecturas tardias descartadas; la ultima, del vehiculo #{}, llego {} ms "
+                                    + "detras de la ya entregada", tardiasSinAvisar.sumThenReset(), vehiculoId,
+                                    atrasoMillis);
+        }
+    }
+}
+
+enum ResultadoReorden {
+    ACEPTADA,
+    DUPLICADA,
+    TARDIA,
+    ADELANTADA
+}
+
+/**
+ * Ventana de un vehiculo: el mapa de duplicadas y las lecturas retenidas en
+ * columnas, ordenadas por instante, sin crear objetos despues de armarla.
+ * No es segura entre hilos: quien la usa la sincroniza sobre ella misma y
+ * registra lo que sale sin soltarla, asi dos hilos no intercalan lecturas
+ * del mismo vehiculo.
+ */
+class VentanaReorden {
+    private final ReordenTelemetria reorden;
+    private final int vehiculoId;
+    private final int capacidad;
+    
+    // Mapa de duplicadas: el bit k marca vista la secuencia mayorSecuencia - k
+    private long mayorSecuencia = LoteTelemetria.SIN_SECUENCIA;
+    private long vistas;
+    // Lo ultimo entregado: nada anterior puede salir despues
+    private long siguienteSecuencia = LoteTelemetria.SIN_SECUENCIA;
+    private long ultimoEntregado = Long.MIN_VALUE;
+    private long mayorTiempo = Long.MIN_VALUE;
+    private long ultimaLlegada;
+    // Hora del servidor mas nueva que se paso; tope de la marca y de lo ultimo entregado
+    private long horaServidor = Long.MIN_VALUE;
+    
+    private final long[] secuencias;
+    private final long[] tiempos;
+    private final float[] velocidades;
+    private final float[] temperaturas;
+    private final float[] baterias;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private int pendientes;
+    
+    VentanaReorden(ReordenTelemetria reorden, int vehiculoId) {
+        this.reorden = reorden;
+        this.vehiculoId = vehiculoId;
+        this.capacidad = reorden.getCapacidadPorVehiculo();
+        this.secuencias = new long[capacidad];
+        this.tiempos = new long[capacidad];
+        this.velocidades = new float[capacidad];
+        this.temperaturas = new float[capacidad];
+        this.baterias = new float[capacidad];
+        this.latitudes = new double[capacidad];
+        this.longitudes = new double[capacidad];
+    }
+    
+    /**
+     * Admite la lectura i del lote y agrega a la salida, en orden, las que
+     * quedan listas (a lo sumo capacidad + 1).
+     * @param ahora  hora del servidor, para saber cuando dejo de mandar el vehiculo
+     */
+    ResultadoReorden admitir(LoteTelemetria lote, int i, long ahora, LoteTelemetria salida) {
+        long secuencia = lote.getSecuencia(i);
+        long tiempo = lote.getTiempo(i);
+        horaServidor = Math.max(horaServidor, ahora);
+        if (tiempo > ahora + GestorFlota.ADELANTO_MAXIMO_MS) {
+            // No se marca vista: la misma secuencia con un instante sano todavia puede llegar
+            reorden.anotarAdelantada();
+            return ResultadoReorden.ADELANTADA;
+        }
+        if (secuencia != LoteTelemetria.SIN_SECUENCIA) {
+            if (mayorSecuencia != LoteTelemetria.SIN_SECUENCIA
+                && secuencia + ReordenTelemetria.ANCHO_MAPA <= mayorSecuencia && tiempo > mayorTiempo) {
+                // Secuencia muy vieja con un instante nuevo: el dispositivo se reinicio
+                reorden.anotarReinicio();
+                liberarTodo(salida);
+                mayorSecuencia = LoteTelemetria.SIN_SECUENCIA;
+                siguienteSecuencia = secuencia;
+            }
+            if (!marcarVista(secuencia)) {
+                reorden.anotarDuplicada();
+                return ResultadoReorden.DUPLICADA;
+            }
+        }
+        if (esTardia(secuencia, tiempo)) {
+            reorden.anotarTardia(vehiculoId, ultimoEntregado - tiempo);
+            return ResultadoReorden.TARDIA;
+        }
+        if (pendientes == capacidad) {
+            reorden.anotarForzada();
+            entregarPrimera(salida);
+            if (esTardia(secuencia, tiempo)) {
+                reorden.anotarTardia(vehiculoId, ultimoEntregado - tiempo);
+                return ResultadoReorden.TARDIA;
+            }
+        }
+        insertar(lote, i, secuencia, tiempo);
+        ultimaLlegada = ahora;
+        mayorTiempo = Math.max(mayorTiempo, Math.min(tiempo, horaServidor));
+        long marca = mayorTiempo - reorden.getRetrasoPermitidoMillis();
+        boolean entregada = false;
+        while (pendientes > 0 && (tiempos[0] <= marca || esLaSiguiente(secuencias[0]))) {
+            entregada |= secuencias[0] == secuencia && tiempos[0] == tiempo;
+            entregarPrimera(salida);
+        }
+        if (!entregada) {
+            reorden.anotarRetenida();
+        }
+        return ResultadoReorden.ACEPTADA;
+    }
+    
+    /**
+     * Camino rapido: si no hay nada retenido y las lecturas orden[desde, hasta)
+     * siguen una a una la secuencia entregada, las da por entregadas sin
+     * copiarlas y quien llama las registra del propio lote
+     * @return false si alguna necesita pasar por admitir
+     */
+    boolean pasarEnOrden(LoteTelemetria lote, int[] orden, int desde, int hasta, long ahora) {
+        if (pendientes > 0) {
+            return false;
+        }
+        long esperada = siguienteSecuencia == LoteTelemetria.SIN_SECUENCIA ? 0 : siguienteSecuencia;
+        long previo = ultimoEntregado;
+        long tope = ahora + GestorFlota.ADELANTO_MAXIMO_MS;
+        for (int k = desde; k < hasta; k++) {
+            int i = orden[k];
+            long tiempo = lote.getTiempo(i);
+            if (lote.getSecuencia(i) != esperada + (k - desde) || tiempo < previo || tiempo > tope) {
+                return false;
+            }
+            previo = tiempo;
+        }
+        horaServidor = Math.max(horaServidor, ahora);
+        for (int k = desde; k < hasta; k++) {
+            marcarVista(esperada + (k - desde));
+        }
+        siguienteSecuencia = esperada + (hasta - desde);
+        ultimoEntregado = Math.min(previo, horaServidor);
+        mayorTiempo = Math.max(mayorTiempo, ultimoEntregado);
+        ultimaLlegada = ahora;
+        return true;
+    }
+    
+    /**
+     * @return true si el vehiculo tiene lecturas retenidas y no manda nada hace al menos el retraso permitido
+     */
+    boolean estaVencida(long ahora) {
+        return pendientes > 0 && ahora - ultimaLlegada >= reorden.getRetrasoPermitidoMillis();
+    }
+    
+    /**
+     * Entrega todas las retenidas; la salida debe tener lugar para capacidad lecturas
+     * @return lecturas entregadas
+     */
+    int liberarTodo(LoteTelemetria salida) {
+        int entregadas = pendientes;
+        while (pendientes > 0) {
+            entregarPrimera(salida);
+        }
+        return entregadas;
+    }
+    
+    int getPendientes() { return pendientes; }
+    
+    /**
+     * @return false si la secuencia ya se habia visto o es anterior a lo que recuerda el mapa
+     */
+    private boolean marcarVista(long secuencia) {
+        if (mayorSecuencia == LoteTelemetria.SIN_SECUENCIA || secuencia > mayorSecuencia) {
+            long avance = mayorSecuencia == LoteTelemetria.SIN_SECUENCIA ? ReordenTelemetria.ANCHO_MAPA
+                                                                        : secuencia - mayorSecuencia;
+            vistas = avance >= ReordenTelemetria.ANCHO_MAPA ? 1 : vistas << avance | 1;
+            mayorSecuencia = secuencia;
+            return true;
+        }
+        long atras = mayorSecuencia - secuencia;
+        if (atras >= ReordenTelemetria.ANCHO_MAPA || (vistas & 1L << atras) != 0) {
+            return false;
+        }
+        vistas |= 1L << atras;
+        return true;
+    }
+    
+    /** Ya salio una lectura mas nueva, o la siguiente por secuencia es posterior a esta */
+    private boolean esTardia(long secuencia, long tiempo) {
+        return tiempo < ultimoEntregado
+               || (secuencia != LoteTelemetria.SIN_SECUENCIA && siguienteSecuencia != LoteTelemetria.SIN_SECUENCIA
+                   && secuencia < siguienteSecuencia);
+    }
+    
+    /**
+     * Antes de entregar nada del vehiculo solo la secuencia 0 es la siguiente;
+     * si se empieza a escuchar a mitad de camino la primera espera a la marca
+     */
+    private boolean esLaSiguiente(long secuencia) {
+        return secuencia != LoteTelemetria.SIN_SECUENCIA
+               && secuencia == (siguienteSecuencia == LoteTelemetria.SIN_SECUENCIA ? 0 : siguienteSecuencia);
+    }
+    
+    /** Insercion ordenada por instante y secuencia; casi siempre cae al final */
+    private void insertar(LoteTelemetria lote, int i, long secuencia, long tiempo) {
+        int posicion = pendientes;
+        while (posicion > 0 && (tiempos[posicion - 1] > tiempo
+                                || (tiempos[posicion - 1] == tiempo && secuencias[posicion - 1] > secuencia))) {
+            posicion--;
+        }
+        int mover = pendientes - posicion;
+        if (mover > 0) {
+            System.arraycopy(secuencias, posicion, secuencias, posicion + 1, mover);
+            System.arraycopy(tiempos, posicion, tiempos, posicion + 1, mover);
+            System.arraycopy(velocidades, posicion, velocidades, posicion + 1, mover);
+            System.arraycopy(temperaturas, posicion, temperaturas, posicion + 1, mover);
+            System.arraycopy(baterias, posicion, baterias, posicion + 1, mover);
+            System.arraycopy(latitudes, posicion, latitudes, posicion + 1, mover);
+            System.arraycopy(longitudes, posicion, longitudes, posicion + 1, mover);
+        }
+        secuencias[posicion] = secuencia;
+        tiempos[posicion] = tiempo;
+        velocidades[posicion] = lote.getVelocidad(i);
+        temperaturas[posicion] = lote.getTemperaturaMotor(i);
+        baterias[posicion] = lote.getNivelBateria(i);
+        latitudes[posicion] = lote.getLatitud(i);
+        longitudes[posicion] = lote.getLongitud(i);
+        pendientes++;
+    }
+    
+    private void entregarPrimera(LoteTelemetria salida) {
+        salida.agregar(vehiculoId, secuencias[0], tiempos[0], velocidades[0], temperaturas[0], baterias[0],
+                       latitudes[0], longitudes[0]);
+        ultimoEntregado = Math.min(tiempos[0], horaServidor);
+        if (secuencias[0] != LoteTelemetria.SIN_SECUENCIA) {
+            siguienteSecuencia = secuencias[0] + 1;
+        }
+        pendientes--;
+        System.arraycopy(secuencias, 1, secuencias, 0, pendientes);
+        System.arraycopy(tiempos, 1, tiempos, 0, pendientes);
+        System.arraycopy(velocidades, 1, velocidades, 0, pendientes);
+        System.arraycopy(temperaturas, 1, temperaturas, 0, pendientes);
+        System.arraycopy(baterias, 1, baterias, 0, pendientes);
+        System.arraycopy(latitudes, 1, latitudes, 0, pendientes);
+        System.arraycopy(longitudes, 1, longitudes, 0, pendientes);
+    }
+}
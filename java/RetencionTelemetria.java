@@ -0,0 +1,298 @@
+// ============================================================================
+// RETENCION DE TELEMETRIA POR NIVELES
+// ============================================================================
+
+/**
+ * Cuanto se conserva de cada nivel del historial de un vehiculo: lecturas
+ * crudas por tiempo, y luego intervalos de un minuto y de una hora por
+ * cantidad de intervalos.
+ */
+class RetencionTelemetria {
+    public static final long VENTANA_CRUDA_POR_DEFECTO_MILLIS = 2 * 3_600_000L;
+    public static final int MINUTOS_POR_DEFECTO = 24 * 60;
+    public static final int HORAS_POR_DEFECTO = 31 * 24;
+    
+    private final long ventanaCrudaMillis;
+    private final int minutosConservados;
+    private final int horasConservadas;
+    
+    /**
+     * @param ventanaCrudaMillis  antiguedad maxima de una lectura cruda respecto de la mas reciente del vehiculo
+     * @param minutosConservados  intervalos de un minuto que se conservan por vehiculo
+     * @param horasConservadas    intervalos de una hora que se conservan por vehiculo
+     */
+    public RetencionTelemetria(long ventanaCrudaMillis, int minutosConservados, int horasConservadas) {
+        if (ventanaCrudaMillis <= 0 || minutosConservados <= 0 || horasConservadas <= 0) {
+            throw new IllegalArgumentException("Retencion no valida: " + ventanaCrudaMillis + " ms, "
+                                               + minutosConservados + " minutos, " + horasConservadas + " horas");
+        }
+        this.ventanaCrudaMillis = ventanaCrudaMillis;
+        this.minutosConservados = minutosConservados;
+        this.horasConservadas = horasConservadas;
+    }
+    
+    public static RetencionTelemetria porDefecto() {
+        return new RetencionTelemetria(VENTANA_CRUDA_POR_DEFECTO_MILLIS, MINUTOS_POR_DEFECTO, HORAS_POR_DEFECTO);
+    }
+    
+    public long getVentanaCrudaMillis() { return ventanaCrudaMillis; }
+    public int getMinutosConservados() { return minutosConservados; }
+    public int getHorasConservadas() { return horasConservadas; }
+}
+
+/**
+ * Resolucion con la que se responde una consulta de historial
+ */
+enum NivelHistorial {
+    CRUDO(0),
+    MINUTO(60_000),
+    HORA(3_600_000);
+    
+    private final long anchoMillis;
+    
+    NivelHistorial(long anchoMillis) {
+        this.anchoMillis = anchoMillis;
+    }
+    
+    public long getAnchoMillis() {
+        return anchoMillis;
+    }
+}
+
+/**
+ * Intervalos de ancho fijo con el resumen de las lecturas que cayeron en
+ * cada uno: minimo, maximo y promedio de velocidad y temperatura, bateria
+ * al entrar y al salir, y cantidad de muestras. Igual que el historial
+ * crudo, guarda los campos en columnas dentro de un arreglo circular que
+ * crece bajo demanda hasta su capacidad; al llenarse descarta el intervalo
+ * mas antiguo. No es seguro entre hilos: lo protege el candado de su
+ * BufferTelemetriaVehiculo.
+ */
+class SerieAgregada {
+    private static final int CAPACIDAD_INICIAL = 16;
+    
+    private final long anchoMillis;
+    private final int capacidad;
+    private long[] inicios;
+    private int[] muestras;
+    private float[] velocidadesMinimas;
+    private float[] velocidadesMaximas;
+    private double[] sumasVelocidad;
+    private float[] temperaturasMinimas;
+    private float[] temperaturasMaximas;
+    private double[] sumasTemperatura;
+    private float[] bateriasIniciales;
+    private float[] bateriasFinales;
+    private int inicio;
+    private int tamano;
+    private int posicionUltimo;
+    private boolean recortada;
+    private long descartadas;
+    
+    public SerieAgregada(long anchoMillis, int capacidad) {
+        if (anchoMillis <= 0 || capacidad <= 0) {
+            throw new IllegalArgumentException("Serie no valida: ancho " + anchoMillis + ", capacidad " + capacidad);
+        }
+        this.anchoMillis = anchoMillis;
+        this.capacidad = capacidad;
+        reservar(Math.min(capacidad, CAPACIDAD_INICIAL));
+    }
+    
+    // ====== Escritura ======
+    
+    /**
+     * Suma una lectura al intervalo que le corresponde
+     */
+    public void sumar(long tiempoMillis, float velocidad, float temperaturaMotor, float nivelBateria) {
+        if (tamano > 0) {
+            // Camino comun: la lectura cae en el ultimo intervalo, sin divisiones ni busqueda
+            int p = posicionUltimo;
+            long desdeUltimo = tiempoMillis - inicios[p];
+            if (desdeUltimo >= 0 && desdeUltimo < anchoMillis) {
+                muestras[p]++;
+                velocidadesMinimas[p] = Math.min(velocidadesMinimas[p], velocidad);
+                velocidadesMaximas[p] = Math.max(velocidadesMaximas[p], velocidad);
+                sumasVelocidad[p] += velocidad;
+                temperaturasMinimas[p] = Math.min(temperaturasMinimas[p], temperaturaMotor);
+                temperaturasMaximas[p] = Math.max(temperaturasMaximas[p], temperaturaMotor);
+                sumasTemperatura[p] += temperaturaMotor;
+                bateriasFinales[p] = nivelBateria;
+                return;
+            }
+        }
+        sumarIntervalo(Math.floorDiv(tiempoMillis, anchoMillis) * anchoMillis, 1, velocidad, velocidad, velocidad,
+                       temperaturaMotor, temperaturaMotor, temperaturaMotor, nivelBateria, nivelBateria);
+    }
+    
+    /**
+     * Combina un resumen ya hecho con el intervalo que empieza en inicioMillis.
+     * Las lecturas llegan casi siempre en orden, asi que el intervalo es el
+     * ultimo o uno nuevo; si es anterior a los conservados se descarta.
+     */
+    public void sumarIntervalo(long inicioMillis, int cantidad, float velocidadMinima, float velocidadMaxima,
+                               double sumaVelocidad, float temperaturaMinima, float temperaturaMaxima,
+                               double sumaTemperatura, float bateriaInicial, float bateriaFinal) {
+        int longitud = inicios.length;
+        if (tamano > 0) {
+            int posicion = posicionUltimo;
+            for (int i = tamano - 1; i >= 0 && inicios[posicion] >= inicioMillis; i--) {
+                if (inicios[posicion] == inicioMillis) {
+                    muestras[posicion] += cantidad;
+                    velocidadesMinimas[posicion] = Math.min(velocidadesMinimas[posicion], velocidadMinima);
+                    velocidadesMaximas[posicion] = Math.max(velocidadesMaximas[posicion], velocidadMaxima);
+                    sumasVelocidad[posicion] += sumaVelocidad;
+                    temperaturasMinimas[posicion] = Math.min(temperaturasMinimas[posicion], temperaturaMinima);
+                    temperaturasMaximas[posicion] = Math.max(temperaturasMaximas[posicion], temperaturaMaxima);
+                    sumasTemperatura[posicion] += sumaTemperatura;
+                    bateriasFinales[posicion] = bateriaFinal;
+                    return;
+                }
+                posicion = (posicion + longitud - 1) % longitud;
+            }
+            if (inicios[posicionUltimo] > inicioMillis) {
+                // Llego tarde y su intervalo ya no esta (o nunca se abrio)
+                descartadas += cantidad;
+                return;
+            }
+        }
+        if (tamano == longitud) {
+            if (longitud < capacidad) {
+                crecer();
+                longitud = inicios.length;
+            } else {
+                inicio = (inicio + 1) % longitud;
+                tamano--;
+                recortada = true;
+            }
+        }
+        int posicion = (inicio + tamano) % longitud;
+        inicios[posicion] = inicioMillis;
+        muestras[posicion] = cantidad;
+        velocidadesMinimas[posicion] = velocidadMinima;
+        velocidadesMaximas[posicion] = velocidadMaxima;
+        sumasVelocidad[posicion] = sumaVelocidad;
+        temperaturasMinimas[posicion] = temperaturaMinima;
+        temperaturasMaximas[posicion] = temperaturaMaxima;
+        sumasTemperatura[posicion] = sumaTemperatura;
+        bateriasIniciales[posicion] = bateriaInicial;
+        bateriasFinales[posicion] = bateriaFinal;
+        posicionUltimo = posicion;
+        tamano++;
+    }
+    
+    /**
+     * Suma a destino los intervalos que se cruzan con [desdeMillis, hastaMillis]
+     */
+    public void copiarIntervalo(long desdeMillis, long hastaMillis, SerieAgregada destino) {
+        int longitud = inicios.length;
+        for (int i = 0; i < tamano; i++) {
+            int p = (inicio + i) % longitud;
+            if (inicios[p] + anchoMillis > desdeMillis && inicios[p] <= hastaMillis) {
+                destino.sumarIntervalo(Math.floorDiv(inicios[p], destino.anchoMillis) * destino.anchoMillis,
+                                       muestras[p], velocidadesMinimas[p], velocidadesMaximas[p], sumasVelocidad[p],
+                                       temperaturasMinimas[p], temperaturasMaximas[p], sumasTemperatura[p],
+                                       bateriasIniciales[p], bateriasFinales[p]);
+            }
+        }
+    }
+    
+    private void crecer() {
+        int longitud = inicios.length;
+        long[] inicios = this.inicios;
+        int[] muestras = this.muestras;
+        float[] velocidadesMinimas = this.velocidadesMinimas;
+        float[] velocidadesMaximas = this.velocidadesMaximas;
+        double[] sumasVelocidad = this.sumasVelocidad;
+        float[] temperaturasMinimas = this.temperaturasMinimas;
+        float[] temperaturasMaximas = this.temperaturasMaximas;
+        double[] sumasTemperatura = this.sumasTemperatura;
+        float[] bateriasIniciales = this.bateriasIniciales;
+        float[] bateriasFinales = this.bateriasFinales;
+        reservar((int) Math.min((long) longitud * 2, capacidad));
+        // Se copia en orden cronologico para que el inicio vuelva a ser 0
+        for (int i = 0; i < tamano; i++) {
+            int p = (inicio + i) % longitud;
+            this.inicios[i] = inicios[p];
+            this.muestras[i] = muestras[p];
+            this.velocidadesMinimas[i] = velocidadesMinimas[p];
+            this.velocidadesMaximas[i] = velocidadesMaximas[p];
+            this.sumasVelocidad[i] = sumasVelocidad[p];
+            this.temperaturasMinimas[i] = temperaturasMinimas[p];
+            this.temperaturasMaximas[i] = temperaturasMaximas[p];
+            this.sumasTemperatura[i] = sumasTemperatura[p];
+            this.bateriasIniciales[i] = bateriasIniciales[p];
+            this.bateriasFinales[i] = bateriasFinales[p];
+        }
+        inicio = 0;
+        posicionUltimo = tamano - 1;
+    }
+    
+    private void reservar(int longitud) {
+        inicios = new long[longitud];
+        muestras = new int[longitud];
+        velocidadesMinimas = new float[longitud];
+        velocidadesMaximas = new float[longitud];
+        sumasVelocidad = new double[longitud];
+        temperaturasMinimas = new float[longitud];
+        temperaturasMaximas = new float[longitud];
+        sumasTemperatura = new double[longitud];
+        bateriasIniciales = new float[longitud];
+        bateriasFinales = new float[longitud];
+    }
+    
+    // ====== Lectura (i va de 0, el mas antiguo, a getTamano() - 1) ======
+    
+    private int posicion(int i) {
+        return (inicio + i) % inicios.length;
+    }
+    
+    public long getAnchoMillis() { return anchoMillis; }
+    public int getTamano() { return tamano; }
+    /** true si ya se descarto algun intervalo por falta de capacidad */
+    public boolean isRecortada() { return recortada; }
+    /** Muestras que llegaron para un intervalo que ya no se conservaba */
+    public long getDescartadas() { return descartadas; }
+    
+    public long getInicio(int i) { return inicios[posicion(i)]; }
+    public int getMuestras(int i) { return muestras[posicion(i)]; }
+    public float getVelocidadMinima(int i) { return velocidadesMinimas[posicion(i)]; }
+    public float getVelocidadMaxima(int i) { return velocidadesMaximas[posicion(i)]; }
+    public double getVelocidadPromedio(int i) { return sumasVelocidad[posicion(i)] / muestras[posicion(i)]; }
+    public float getTemperaturaMinima(int i) { return temperaturasMinimas[posicion(i)]; }
+    public float getTemperaturaMaxima(int i) { return temperaturasMaximas[posicion(i)]; }
+    public double getTemperaturaPromedio(int i) { return sumasTemperatura[posicion(i)] / muestras[posicion(i)]; }
+    public float getBateriaInicial(int i) { return bateriasIniciales[posicion(i)]; }
+    public float getBateriaFinal(int i) { return bateriasFinales[posicion(i)]; }
+}
+
+/**
+ * Respuesta de una consulta de historial por rango de tiempo: lecturas
+ * crudas o intervalos, segun el nivel que alcanzo a cubrir el rango.
+ */
+class HistorialTelemetria {
+    private final NivelHistorial nivel;
+    private final SegmentoTelemetria lecturas;
+    private final SerieAgregada intervalos;
+    
+    HistorialTelemetria(SegmentoTelemetria lecturas) {
+        this.nivel = NivelHistorial.CRUDO;
+        this.lecturas = lecturas;
+        this.intervalos = null;
+    }
+    
+    HistorialTelemetria(NivelHistorial nivel, SerieAgregada intervalos) {
+        this.nivel = nivel;
+        this.lecturas = null;
+        this.intervalos = intervalos;
+    }
+    
+    public NivelHistorial getNivel() { return nivel; }
+    /** Lecturas en orden cronologico; null si el nivel no es CRUDO */
+    public SegmentoTelemetria getLecturas() { return lecturas; }
+    /** Intervalos en orden cronologico; null si el nivel es CRUDO */
+    public SerieAgregada getIntervalos() { return intervalos; }
+    
+    public int getTamano() {
+        return lecturas != null ? lecturas.getTamano() : intervalos.getTamano();
+    }
+}
@@ -0,0 +1,633 @@
+// ============================================================================
+// SECUENCIA DE ENTREGAS Y HORAS ESTIMADAS
+// ============================================================================
+
+/**
+ * Orden de visita optimizado de las entregas de una ruta y su hora estimada
+ * de llegada. Guarda la matriz de distancias entre las paradas ubicadas para
+ * no recalcularla cuando la ruta se vuelve a secuenciar con las que faltan.
+ */
+class PlanEntregas {
+    private final Ruta ruta;
+    private final int vehiculoId;
+    private final double velocidadKmh;
+    // Paradas ubicadas en el orden de la matriz; distancias en km por calle
+    private final Entrega[] paradas;
+    private final float[] distancias;
+    
+    // Orden vigente (indices de la matriz) y hora estimada de cada posicion; se
+    // reemplazan juntos para que un lector nunca vea el orden de un plan y las horas de otro
+    private volatile Recorrido recorrido;
+    private volatile double longitudKm;
+    private volatile double longitudInicialKm;
+    private final java.util.concurrent.atomic.AtomicBoolean replanificando = new java.util.concurrent.atomic.AtomicBoolean();
+    private volatile int replanificaciones;
+    
+    PlanEntregas(Ruta ruta, int vehiculoId, double velocidadKmh, Entrega[] paradas, float[] distancias) {
+        this.ruta = ruta;
+        this.vehiculoId = vehiculoId;
+        this.velocidadKmh = velocidadKmh;
+        this.paradas = paradas;
+        this.distancias = distancias;
+    }
+    
+    public Ruta getRuta() { return ruta; }
+    public int getVehiculoId() { return vehiculoId; }
+    public double getVelocidadKmh() { return velocidadKmh; }
+    public int getParadas() { return paradas.length; }
+    
+    /** Paradas que recorre el orden vigente; tras replanificar son solo las que faltaban */
+    public int getPosiciones() { return recorrido.orden.length; }
+    /** Entrega que ocupa la posicion indicada del orden de visita */
+    public Entrega getParada(int posicion) { return paradas[recorrido.orden[posicion]]; }
+    public long getEtaMillis(int posicion) { return recorrido.etas[posicion]; }
+    
+    /** Kilometros del recorrido vigente desde el punto de partida */
+    public double getLongitudKm() { return longitudKm; }
+    /** Kilometros del recorrido de vecino mas cercano, antes de mejorarlo */
+    public double getLongitudInicialKm() { return longitudInicialKm; }
+    public int getReplanificaciones() { return replanificaciones; }
+    
+    Entrega[] paradas() { return paradas; }
+    float[] distancias() { return distancias; }
+    int[] orden() { return recorrido.orden; }
+    
+    void publicar(int[] orden, long[] etasMillis, double longitudKm, double longitudInicialKm) {
+        this.longitudKm = longitudKm;
+        this.longitudInicialKm = longitudInicialKm;
+        this.recorrido = new Recorrido(orden, etasMillis);
+    }
+    
+    /**
+     * @return la hora estimada de la siguiente parada pendiente, o Long.MIN_VALUE si ya no queda ninguna
+     */
+    long etaSiguientePendiente() {
+        Recorrido actual = recorrido;
+        int[] orden = actual.orden;
+        int posicion = actual.siguiente;
+        while (posicion < orden.length && !paradas[orden[posicion]].estaPendiente()) {
+            posicion++;
+        }
+        // Carrera benigna: otro hilo a lo sumo vuelve a revisar paradas ya hechas
+        actual.siguiente = posicion;
+        return posicion < orden.length ? actual.etas[posicion] : Long.MIN_VALUE;
+    }
+    
+    boolean marcarReplanificando() { return replanificando.compareAndSet(false, true); }
+    
+    void terminarReplanificacion(boolean replanificada) {
+        if (replanificada) {
+            replanificaciones++;
+        }
+        replanificando.set(false);
+    }
+    
+    private static final class Recorrido {
+        final int[] orden;
+        final long[] etas;
+        // Primera posicion que puede seguir pendiente; solo avanza
+        volatile int siguiente;
+        
+        Recorrido(int[] orden, long[] etas) {
+            this.orden = orden;
+            this.etas = etas;
+        }
+    }
+}
+
+/**
+ * Secuencia las entregas de las rutas y mantiene sus horas estimadas.
+ *
+ * El orden se construye con vecino mas cercano desde la posicion del vehiculo
+ * (o con inicio libre si no se conoce) y se mejora con 2-opt y Or-opt
+ * (mover tramos de 1 a 3 paradas, tambien invertidos) hasta que ningun
+ * movimiento acorta el recorrido. El recorrido es abierto: el vehiculo no
+ * vuelve al origen. Las distancias son haversine por FACTOR_CALLE; la hora de
+ * cada parada suma el trayecto a la velocidad del tipo de vehiculo y
+ * MINUTOS_SERVICIO por parada anterior.
+ *
+ * Las entregas sin ubicacion conservan su orden relativo despues de las
+ * ubicadas y su hora estimada. Muchas rutas se secuencian en paralelo con
+ * fork/join, una tarea por ruta.
+ *
+ * vigilar se llama con cada lectura de telemetria: si la lectura ya paso la
+ * hora estimada de la siguiente parada pendiente por mas de TOLERANCIA_MS se
+ * vuelve a secuenciar, en segundo plano, solo lo que falta desde la posicion
+ * actual reutilizando la matriz del plan. Las entregas ya hechas no cambian.
+ */
+class SecuenciadorEntregas {
+    public static final double FACTOR_CALLE = 1.3;
+    public static final long MINUTOS_SERVICIO = 4;
+    public static final long TOLERANCIA_MS = 5 * 60_000L;
+    /** Rondas maximas de 2-opt + Or-opt; en la practica converge mucho antes */
+    private static final int RONDAS_MAXIMAS = 100;
+    private static final int TRAMO_MAXIMO = 3;
+    private static final double MEJORA_MINIMA = 1e-6;
+    
+    // Velocidad media en ciudad, con paradas y semaforos
+    private static final String[] TIPOS = {"van", "moto", "bicicleta"};
+    private static final double[] VELOCIDAD_KMH = {28, 32, 16};
+    private static final double VELOCIDAD_POR_DEFECTO_KMH = 25;
+    
+    private static final long SERVICIO_MS = MINUTOS_SERVICIO * 60_000L;
+    private static final int DEPOSITO = -1;
+    private static final int FIN = -2;
+    
+    private final java.util.Map<Integer, PlanEntregas> planesPorRuta = new java.util.concurrent.ConcurrentHashMap<>();
+    // Indexado por id de vehiculo, asi vigilar no crea la caja del id; solo crece, bajo el candado
+    private volatile java.util.concurrent.atomic.AtomicReferenceArray<PlanEntregas> planesPorVehiculo =
+        new java.util.concurrent.atomic.AtomicReferenceArray<>(1024);
+    // Recibe la ruta cada vez que cambian el orden o las horas de sus entregas
+    private final java.util.function.Consumer<Ruta> alCambiar;
+    private final java.util.concurrent.atomic.LongAdder replanificaciones = new java.util.concurrent.atomic.LongAdder();
+    // Donde corren las replanificaciones que dispara vigilar
+    private final java.util.concurrent.Executor replanificador;
+    
+    public SecuenciadorEntregas(java.util.function.Consumer<Ruta> alCambiar) {
+        this(alCambiar, java.util.concurrent.ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * @param replanificador  ejecuta las replanificaciones por atraso; con
+     *                        Runnable::run corren en el hilo de la lectura y
+     *                        el resultado no depende de la planificacion de hilos
+     */
+    public SecuenciadorEntregas(java.util.function.Consumer<Ruta> alCambiar,
+                                java.util.concurrent.Executor replanificador) {
+        this.alCambiar = alCambiar;
+        this.replanificador = replanificador;
+    }
+    
+    public static double velocidadKmh(String tipo) {
+        for (int i = 0; i < TIPOS.length; i++) {
+            if (TIPOS[i].equals(tipo)) {
+                return VELOCIDAD_KMH[i];
+            }
+        }
+        return VELOCIDAD_POR_DEFECTO_KMH;
+    }
+    
+    public PlanEntregas getPlan(int rutaId) {
+        return planesPorRuta.get(rutaId);
+    }
+    
+    public long getReplanificaciones() {
+        return replanificaciones.sum();
+    }
+    
+    /**
+     * Secuencia las entregas pendientes de la ruta y les asigna hora estimada.
+     * Las entregas ya hechas quedan primero y las pendientes sin ubicacion al final.
+     * @param vehiculo  define la velocidad y a quien se vigila; null usa una velocidad por defecto
+     * @param partida   {latitud, longitud} de donde sale el vehiculo, o null para empezar en cualquier parada
+     * @return el plan, o null si la ruta no tiene entregas pendientes con ubicacion
+     */
+    public PlanEntregas secuenciar(Ruta ruta, VehiculoElectrico vehiculo, double[] partida, long inicioMillis) {
+        java.util.List<Entrega> ubicadas = new java.util.ArrayList<>();
+        for (Entrega entrega : ruta.getEntregas()) {
+            if (entrega.tieneUbicacion() && entrega.estaPendiente()) {
+                ubicadas.add(entrega);
+            }
+        }
+        PlanEntregas anterior = planesPorRuta.get(ruta.getId());
+        if (ubicadas.isEmpty()) {
+            olvidar(anterior);
+            return null;
+        }
+        Entrega[] paradas = ubicadas.toArray(new Entrega[0]);
+        float[] distancias;
+        if (anterior != null && mismasParadas(anterior.paradas(), paradas)) {
+            // Mismas paradas que el plan anterior: su matriz sirve tal cual, en su orden
+            paradas = anterior.paradas();
+            distancias = anterior.distancias();
+        } else {
+            distancias = matrizDistancias(paradas);
+        }
+        int vehiculoId = vehiculo != null ? vehiculo.getId() : 0;
+        double velocidad = velocidadKmh(vehiculo != null ? vehiculo.getTipo() : null);
+        PlanEntregas plan = new PlanEntregas(ruta, vehiculoId, velocidad, paradas, distancias);
+        
+        int[] todas = new int[paradas.length];
+        for (int i = 0; i < todas.length; i++) {
+            todas[i] = i;
+        }
+        synchronized (ruta) {
+            aplicarOrden(plan, todas, partida, inicioMillis, true);
+        }
+        olvidar(anterior);
+        planesPorRuta.put(ruta.getId(), plan);
+        if (vehiculoId != 0) {
+            ponerPlanDeVehiculo(vehiculoId, plan);
+        }
+        alCambiar.accept(ruta);
+        return plan;
+    }
+    
+    /**
+     * Secuencia muchas rutas repartidas con fork/join
+     * @param partidas  posicion de partida de cada ruta (o null en la posicion)
+     * @return el plan de cada ruta, null donde no habia nada que secuenciar
+     */
+    public PlanEntregas[] secuenciarTodas(Ruta[] rutas, VehiculoElectrico[] vehiculos, double[][] partidas,
+                                          long inicioMillis) {
+        PlanEntregas[] planes = new PlanEntregas[rutas.length];
+        java.util.concurrent.ForkJoinPool.commonPool().invoke(
+            new TareaSecuenciar(rutas, vehiculos, partidas, inicioMillis, planes, 0, rutas.length));
+        return planes;
+    }
+    
+    private final class TareaSecuenciar extends java.util.concurrent.RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final Ruta[] rutas;
+        private final VehiculoElectrico[] vehiculos;
+        private final double[][] partidas;
+        private final long inicioMillis;
+        private final PlanEntregas[] planes;
+        private final int desde;
+        private final int hasta;
+        
+        TareaSecuenciar(Ruta[] rutas, VehiculoElectrico[] vehiculos, double[][] partidas, long inicioMillis,
+                        PlanEntregas[] planes, int desde, int hasta) {
+            this.rutas = rutas;
+            this.vehiculos = vehiculos;
+            this.partidas = partidas;
+            this.inicioMillis = inicioMillis;
+            this.planes = planes;
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+        
+        @Override
+        protected void compute() {
+            if (hasta - desde == 1) {
+                planes[desde] = secuenciar(rutas[desde], vehiculos[desde], partidas[desde], inicioMillis);
+                return;
+            }
+            if (hasta - desde < 1) {
+                return;
+            }
+            int medio = (desde + hasta) >>> 1;
+            invokeAll(new TareaSecuenciar(rutas, vehiculos, partidas, inicioMillis, planes, desde, medio),
+                      new TareaSecuenciar(rutas, vehiculos, partidas, inicioMillis, planes, medio, hasta));
+        }
+    }
+    
+    /**
+     * Revisa el atraso del vehiculo contra su plan. Es una busqueda en un mapa
+     * y una comparacion; la nueva secuencia se calcula en otro hilo.
+     */
+    public void vigilar(int vehiculoId, long tiempoMillis, double latitud, double longitud) {
+        java.util.concurrent.atomic.AtomicReferenceArray<PlanEntregas> tabla = planesPorVehiculo;
+        PlanEntregas plan = vehiculoId > 0 && vehiculoId < tabla.length() ? tabla.get(vehiculoId) : null;
+        if (plan == null) {
+            return;
+        }
+        long eta = plan.etaSiguientePendiente();
+        if (eta == Long.MIN_VALUE) {
+            // Ruta terminada: ya no hay nada que vigilar
+            quitarPlanDeVehiculo(vehiculoId, plan);
+            return;
+        }
+        if (tiempoMillis > eta + TOLERANCIA_MS && plan.marcarReplanificando()) {
+            replanificador.execute(() -> {
+                boolean replanificada = false;
+                try {
+                    replanificada = replanificar(plan, new double[] {latitud, longitud}, tiempoMillis);
+                } finally {
+                    plan.terminarReplanificacion(replanificada);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Vuelve a secuenciar solo las paradas pendientes del plan desde la posicion
+     * actual. Las pendientes se reparten los mismos numeros de secuencia que ya
+     * tenian, asi las hechas conservan el suyo.
+     * @return false si el plan ya fue reemplazado o no quedaba nada pendiente
+     */
+    boolean replanificar(PlanEntregas plan, double[] posicion, long ahoraMillis) {
+        Ruta ruta = plan.getRuta();
+        synchronized (ruta) {
+            if (planesPorRuta.get(ruta.getId()) != plan) {
+                return false;
+            }
+            Entrega[] paradas = plan.paradas();
+            int[] actual = plan.orden();
+            int pendientes = 0;
+            for (int indice : actual) {
+                if (paradas[indice].estaPendiente()) {
+                    pendientes++;
+                }
+            }
+            if (pendientes == 0) {
+                return false;
+            }
+            int[] faltan = new int[pendientes];
+            int k = 0;
+            for (int indice : actual) {
+                if (paradas[indice].estaPendiente()) {
+                    faltan[k++] = indice;
+                }
+            }
+            aplicarOrden(plan, faltan, posicion, ahoraMillis, false);
+        }
+        replanificaciones.increment();
+        alCambiar.accept(ruta);
+        return true;
+    }
+    
+    /**
+     * Optimiza el recorrido por las paradas indicadas y escribe secuencia y hora
+     * estimada en las entregas. Con renumerar se numera toda la ruta: primero las
+     * hechas, despues el recorrido y al final las pendientes sin ubicacion; si no,
+     * las paradas del recorrido se reparten los numeros que ya tenian.
+     */
+    private void aplicarOrden(PlanEntregas plan, int[] nodos, double[] partida, long inicioMillis, boolean renumerar) {
+        Entrega[] paradas = plan.paradas();
+        float[] distancias = plan.distancias();
+        int n = paradas.length;
+        double[] desdeInicio = new double[n];
+        if (partida != null) {
+            for (int indice : nodos) {
+                desdeInicio[indice] = distanciaCalleKm(partida[0], partida[1],
+                                                       paradas[indice].getLatitud(), paradas[indice].getLongitud());
+            }
+        }
+        
+        int[] recorrido = vecinoMasCercano(nodos, distancias, n, desdeInicio);
+        double inicial = longitud(recorrido, distancias, n, desdeInicio);
+        mejorar(recorrido, distancias, n, desdeInicio);
+        double longitud = longitud(recorrido, distancias, n, desdeInicio);
+        
+        long[] etas = new long[recorrido.length];
+        double kmPorMs = plan.getVelocidadKmh() / 3_600_000.0;
+        double acumuladoKm = 0;
+        int previo = DEPOSITO;
+        for (int i = 0; i < recorrido.length; i++) {
+            acumuladoKm += distancia(previo, recorrido[i], distancias, n, desdeInicio);
+            etas[i] = inicioMillis + Math.round(acumuladoKm / kmPorMs) + i * SERVICIO_MS;
+            previo = recorrido[i];
+        }
+        
+        int[] numeros = new int[recorrido.length];
+        if (renumerar) {
+            java.util.List<Entrega> entregas = plan.getRuta().getEntregas();
+            int hechas = 0;
+            for (Entrega entrega : entregas) {
+                if (!entrega.estaPendiente()) {
+                    entrega.setSecuencia(++hechas);
+                }
+            }
+            for (int i = 0; i < numeros.length; i++) {
+                numeros[i] = hechas + i + 1;
+            }
+            int siguienteNumero = hechas + numeros.length + 1;
+            for (Entrega entrega : entregas) {
+                if (entrega.estaPendiente() && !entrega.tieneUbicacion()) {
+                    entrega.setSecuencia(siguienteNumero++);
+                }
+            }
+        } else {
+            for (int i = 0; i < numeros.length; i++) {
+                numeros[i] = paradas[nodos[i]].getSecuencia();
+            }
+            java.util.Arrays.sort(numeros);
+        }
+        java.time.ZoneId zona = java.time.ZoneId.systemDefault();
+        for (int i = 0; i < recorrido.length; i++) {
+            Entrega entrega = paradas[recorrido[i]];
+            entrega.setSecuencia(numeros[i]);
+            entrega.setHoraEstimada(java.time.LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(etas[i]), zona));
+        }
+        plan.getRuta().ordenarEntregas();
+        plan.publicar(recorrido, etas, longitud, renumerar ? inicial : plan.getLongitudInicialKm());
+    }
+    
+    private void olvidar(PlanEntregas plan) {
+        if (plan != null) {
+            planesPorRuta.remove(plan.getRuta().getId(), plan);
+            quitarPlanDeVehiculo(plan.getVehiculoId(), plan);
+        }
+    }
+    
+    private synchronized void ponerPlanDeVehiculo(int vehiculoId, PlanEntregas plan) {
+        java.util.concurrent.atomic.AtomicReferenceArray<PlanEntregas> tabla = planesPorVehiculo;
+        if (vehiculoId >= tabla.length()) {
+            int capacidad = tabla.length();
+            while (capacidad <= vehiculoId) {
+                capacidad *= 2;
+            }
+            java.util.concurrent.atomic.AtomicReferenceArray<PlanEntregas> nueva =
+                new java.util.concurrent.atomic.AtomicReferenceArray<>(capacidad);
+            for (int i = 0; i < tabla.length(); i++) {
+                nueva.set(i, tabla.get(i));
+            }
+            planesPorVehiculo = tabla = nueva;
+        }
+        tabla.set(vehiculoId, plan);
+    }
+    
+    /**
+     * Quita el plan solo si sigue siendo el del vehiculo; bajo el mismo
+     * candado que el crecimiento, asi no se pierde en una tabla vieja
+     */
+    private synchronized void quitarPlanDeVehiculo(int vehiculoId, PlanEntregas plan) {
+        java.util.concurrent.atomic.AtomicReferenceArray<PlanEntregas> tabla = planesPorVehiculo;
+        if (vehiculoId > 0 && vehiculoId < tabla.length()) {
+            tabla.compareAndSet(vehiculoId, plan, null);
+        }
+    }
+    
+    private static boolean mismasParadas(Entrega[] anteriores, Entrega[] actuales) {
+        if (anteriores.length != actuales.length) {
+            return false;
+        }
+        java.util.Set<Entrega> conjunto = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+        java.util.Collections.addAll(conjunto, anteriores);
+        for (Entrega entrega : actuales) {
+            if (!conjunto.contains(entrega)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // ====== Recorrido ======
+    
+    static float[] matrizDistancias(Entrega[] paradas) {
+        int n = paradas.length;
+        float[] distancias = new float[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                float d = (float) distanciaCalleKm(paradas[i].getLatitud(), paradas[i].getLongitud(),
+                                                   paradas[j].getLatitud(), paradas[j].getLongitud());
+                distancias[i * n + j] = d;
+                distancias[j * n + i] = d;
+            }
+        }
+        return distancias;
+    }
+    
+    static double distanciaCalleKm(double latitud1, double longitud1, double latitud2, double longitud2) {
+        return FACTOR_CALLE * IndiceEspacial.distanciaKm(latitud1, longitud1, latitud2, longitud2);
+    }
+    
+    /**
+     * DEPOSITO es el punto de partida y FIN el final abierto, que no cuesta nada
+     */
+    private static double distancia(int desde, int hasta, float[] distancias, int n, double[] desdeInicio) {
+        if (hasta == FIN) {
+            return 0;
+        }
+        if (desde == DEPOSITO) {
+            return desdeInicio[hasta];
+        }
+        return distancias[desde * n + hasta];
+    }
+    
+    static double longitud(int[] recorrido, float[] distancias, int n, double[] desdeInicio) {
+        double total = 0;
+        int previo = DEPOSITO;
+        for (int nodo : recorrido) {
+            total += distancia(previo, nodo, distancias, n, desdeInicio);
+            previo = nodo;
+        }
+        return total;
+    }
+    
+    static int[] vecinoMasCercano(int[] nodos, float[] distancias, int n, double[] desdeInicio) {
+        int[] recorrido = nodos.clone();
+        int previo = DEPOSITO;
+        for (int i = 0; i < recorrido.length; i++) {
+            int mejor = i;
+            double mejorDistancia = Double.MAX_VALUE;
+            for (int j = i; j < recorrido.length; j++) {
+                double d = distancia(previo, recorrido[j], distancias, n, desdeInicio);
+                if (d < mejorDistancia) {
+                    mejorDistancia = d;
+                    mejor = j;
+                }
+            }
+            int elegido = recorrido[mejor];
+            recorrido[mejor] = recorrido[i];
+            recorrido[i] = elegido;
+            previo = elegido;
+        }
+        return recorrido;
+    }
+    
+    /**
+     * Aplica 2-opt y Or-opt con primera mejora hasta que ninguno acorta el recorrido
+     */
+    static void mejorar(int[] recorrido, float[] distancias, int n, double[] desdeInicio) {
+        for (int ronda = 0; ronda < RONDAS_MAXIMAS; ronda++) {
+            boolean mejoro = dosOpt(recorrido, distancias, n, desdeInicio);
+            mejoro |= orOpt(recorrido, distancias, n, desdeInicio);
+            if (!mejoro) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Invierte el tramo [i, j] si eso acorta el recorrido
+     */
+    private static boolean dosOpt(int[] r, float[] distancias, int n, double[] desdeInicio) {
+        int m = r.length;
+        boolean mejoro = false;
+        for (int i = 0; i < m - 1; i++) {
+            int antes = i == 0 ? DEPOSITO : r[i - 1];
+            double quitaAntes = distancia(antes, r[i], distancias, n, desdeInicio);
+            for (int j = i + 1; j < m; j++) {
+                int despues = j == m - 1 ? FIN : r[j + 1];
+                double delta = distancia(antes, r[j], distancias, n, desdeInicio)
+                             + distancia(r[i], despues, distancias, n, desdeInicio)
+                             - quitaAntes
+                             - distancia(r[j], despues, distancias, n, desdeInicio);
+                if (delta < -MEJORA_MINIMA) {
+                    for (int a = i, b = j; a < b; a++, b--) {
+                        int t = r[a];
+                        r[a] = r[b];
+                        r[b] = t;
+                    }
+                    quitaAntes = distancia(antes, r[i], distancias, n, desdeInicio);
+                    mejoro = true;
+                }
+            }
+        }
+        return mejoro;
+    }
+    
+    /**
+     * Mueve tramos de 1 a TRAMO_MAXIMO paradas a otra posicion, en su sentido o invertidos
+     */
+    private static boolean orOpt(int[] r, float[] distancias, int n, double[] desdeInicio) {
+        int m = r.length;
+        boolean mejoro = false;
+        int[] copia = new int[m];
+        for (int largo = 1; largo <= TRAMO_MAXIMO && largo < m; largo++) {
+            for (int i = 0; i + largo <= m; i++) {
+                int primero = r[i];
+                int ultimo = r[i + largo - 1];
+                int antes = i == 0 ? DEPOSITO : r[i - 1];
+                int despues = i + largo == m ? FIN : r[i + largo];
+                double ahorro = distancia(antes, primero, distancias, n, desdeInicio)
+                              + distancia(ultimo, despues, distancias, n, desdeInicio)
+                              - distancia(antes, despues, distancias, n, desdeInicio);
+                if (ahorro <= MEJORA_MINIMA) {
+                    continue;
+                }
+                // Insertar entre r[k] y r[k + 1]; k = -1 es justo despues del punto de partida
+                int mejorK = Integer.MIN_VALUE;
+                boolean mejorInvertido = false;
+                double mejorDelta = -MEJORA_MINIMA;
+                for (int k = -1; k < m; k++) {
+                    if (k >= i - 1 && k < i + largo) {
+                        continue;
+                    }
+                    int a = k < 0 ? DEPOSITO : r[k];
+                    int b = k + 1 >= m ? FIN : r[k + 1];
+                    double quita = distancia(a, b, distancias, n, desdeInicio);
+                    double directo = distancia(a, primero, distancias, n, desdeInicio)
+                                   + distancia(ultimo, b, distancias, n, desdeInicio) - quita - ahorro;
+                    double invertido = distancia(a, ultimo, distancias, n, desdeInicio)
+                                     + distancia(primero, b, distancias, n, desdeInicio) - quita - ahorro;
+                    if (directo < mejorDelta) {
+                        mejorDelta = directo;
+                        mejorK = k;
+                        mejorInvertido = false;
+                    }
+                    if (invertido < mejorDelta) {
+                        mejorDelta = invertido;
+                        mejorK = k;
+                        mejorInvertido = true;
+                    }
+                }
+                if (mejorK == Integer.MIN_VALUE) {
+                    continue;
+                }
+                mover(r, copia, i, largo, mejorK, mejorInvertido);
+                mejoro = true;
+            }
+        }
+        return mejoro;
+    }
+    
+    private static void mover(int[] r, int[] copia, int i, int largo, int k, boolean invertido) {
+        int m = r.length;
+        int escritos = 0;
+        for (int p = -1; p < m; p++) {
+            if (p >= 0 && (p < i || p >= i + largo)) {
+                copia[escritos++] = r[p];
+            }
+            if (p == k) {
+                for (int s = 0; s < largo; s++) {
+                    copia[escritos++] = r[invertido ? i + largo - 1 - s : i + s];
+                }
+            }
+        }
+        System.arraycopy(copia, 0, r, 0, m);
+    }
+}
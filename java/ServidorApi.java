@@ -0,0 +1,1723 @@
+// ============================================================================
+// API HTTP/JSON
+// ============================================================================
+
+/**
+ * Escritor de JSON sobre un arreglo de bytes reutilizable.
+ * Numeros y texto se codifican directo a UTF-8 sin Strings intermedios, asi
+ * una respuesta no genera basura mas alla del arreglo (que se recicla).
+ * Las comas se llevan con una pila de bits, hasta 63 niveles de anidamiento.
+ */
+class EscritorJson {
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7',
+                                       '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final long[] POTENCIAS_DIEZ = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L,
+                                                  10_000_000L, 100_000_000L, 1_000_000_000L};
+    
+    private byte[] bytes;
+    private int tamano;
+    private long nivelesConElementos; // bit n: el nivel n ya tiene al menos un elemento
+    private int nivel;
+    private boolean despuesDeNombre;
+    
+    public EscritorJson(int capacidadInicial) {
+        this.bytes = new byte[capacidadInicial];
+    }
+    
+    public void reiniciar() {
+        tamano = 0;
+        nivel = 0;
+        nivelesConElementos = 0;
+        despuesDeNombre = false;
+    }
+    
+    /**
+     * Descarta el texto ya enviado pero conserva lo que sigue abierto, para
+     * escribir un documento grande por partes
+     */
+    public void vaciar() {
+        tamano = 0;
+    }
+    
+    public byte[] getBytes() { return bytes; }
+    public int getTamano() { return tamano; }
+    public int getCapacidad() { return bytes.length; }
+    
+    // ====== Estructura ======
+    
+    public EscritorJson abrirObjeto() {
+        return abrir('{');
+    }
+    
+    public EscritorJson cerrarObjeto() {
+        return cerrar('}');
+    }
+    
+    public EscritorJson abrirArreglo() {
+        return abrir('[');
+    }
+    
+    public EscritorJson cerrarArreglo() {
+        return cerrar(']');
+    }
+    
+    public EscritorJson nombre(String nombre) {
+        separador();
+        escribirTexto(nombre);
+        poner((byte) ':');
+        despuesDeNombre = true;
+        return this;
+    }
+    
+    private EscritorJson abrir(char simbolo) {
+        separador();
+        if (nivel == 62) {
+            throw new IllegalStateException("JSON demasiado anidado");
+        }
+        poner((byte) simbolo);
+        nivel++;
+        nivelesConElementos &= ~(1L << nivel);
+        return this;
+    }
+    
+    private EscritorJson cerrar(char simbolo) {
+        if (nivel == 0) {
+            throw new IllegalStateException("No hay objeto ni arreglo abierto");
+        }
+        nivel--;
+        poner((byte) simbolo);
+        return this;
+    }
+    
+    private void separador() {
+        if (despuesDeNombre) {
+            despuesDeNombre = false;
+            return;
+        }
+        long bit = 1L << nivel;
+        if ((nivelesConElementos & bit) != 0) {
+            poner((byte) ',');
+        } else {
+            nivelesConElementos |= bit;
+        }
+    }
+    
+    // ====== Valores ======
+    
+    public EscritorJson valor(CharSequence texto) {
+        separador();
+        if (texto == null) {
+            escribirNulo();
+        } else {
+            escribirTexto(texto);
+        }
+        return this;
+    }
+    
+    public EscritorJson valor(long numero) {
+        separador();
+        escribirEntero(numero);
+        return this;
+    }
+    
+    /**
+     * Escribe un decimal redondeado a la cantidad de decimales indicada (0-9).
+     * NaN e infinitos se escriben como null, que JSON no los admite.
+     */
+    public EscritorJson valor(double numero, int decimales) {
+        separador();
+        if (Double.isNaN(numero) || Double.isInfinite(numero)) {
+            escribirNulo();
+        } else if (Math.abs(numero) >= 1e15) {
+            escribirAscii(Double.toString(numero));
+        } else {
+            long escala = POTENCIAS_DIEZ[decimales];
+            long redondeado = Math.round(Math.abs(numero) * escala);
+            if (numero < 0 && redondeado != 0) {
+                poner((byte) '-');
+            }
+            escribirEntero(redondeado / escala);
+            if (decimales > 0) {
+                asegurar(decimales + 1);
+                bytes[tamano++] = '.';
+                long fraccion = redondeado % escala;
+                for (int i = decimales - 1; i >= 0; i--) {
+                    bytes[tamano + i] = (byte) ('0' + fraccion % 10);
+                    fraccion /= 10;
+                }
+                tamano += decimales;
+            }
+        }
+        return this;
+    }
+    
+    public EscritorJson valor(boolean verdadero) {
+        separador();
+        escribirAscii(verdadero ? "true" : "false");
+        return this;
+    }
+    
+    public EscritorJson nulo() {
+        separador();
+        escribirNulo();
+        return this;
+    }
+    
+    public EscritorJson campo(String nombre, CharSequence texto) {
+        return nombre(nombre).valor(texto);
+    }
+    
+    public EscritorJson campo(String nombre, long numero) {
+        return nombre(nombre).valor(numero);
+    }
+    
+    public EscritorJson campo(String nombre, double numero, int decimales) {
+        return nombre(nombre).valor(numero, decimales);
+    }
+    
+    public EscritorJson campo(String nombre, boolean verdadero) {
+        return nombre(nombre).valor(verdadero);
+    }
+    
+    // ====== Codificacion ======
+    
+    private void escribirNulo() {
+        escribirAscii("null");
+    }
+    
+    private void escribirAscii(String texto) {
+        int longitud = texto.length();
+        asegurar(longitud);
+        for (int i = 0; i < longitud; i++) {
+            bytes[tamano++] = (byte) texto.charAt(i);
+        }
+    }
+    
+    private void escribirEntero(long numero) {
+        if (numero == Long.MIN_VALUE) {
+            escribirAscii("-9223372036854775808");
+            return;
+        }
+        asegurar(20);
+        if (numero < 0) {
+            bytes[tamano++] = '-';
+            numero = -numero;
+        }
+        int digitos = 1;
+        for (long resto = numero / 10; resto != 0; resto /= 10) {
+            digitos++;
+        }
+        for (int i = tamano + digitos - 1; i >= tamano; i--) {
+            bytes[i] = (byte) ('0' + numero % 10);
+            numero /= 10;
+        }
+        tamano += digitos;
+    }
+    
+    private void escribirTexto(CharSequence texto) {
+        int longitud = texto.length();
+        // Peor caso: cada caracter como escape \\u00XX
+        asegurar(longitud * 6 + 2);
+        bytes[tamano++] = '"';
+        for (int i = 0; i < longitud; i++) {
+            char c = texto.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                bytes[tamano++] = (byte) c;
+            } else if (c == '"' || c == '\\') {
+                bytes[tamano++] = '\\';
+                bytes[tamano++] = (byte) c;
+            } else if (c < 0x20) {
+                bytes[tamano++] = '\\';
+                bytes[tamano++] = 'u';
+                bytes[tamano++] = '0';
+                bytes[tamano++] = '0';
+                bytes[tamano++] = HEX[c >> 4];
+                bytes[tamano++] = HEX[c & 0xF];
+            } else if (c < 0x800) {
+                bytes[tamano++] = (byte) (0xC0 | (c >> 6));
+                bytes[tamano++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < longitud
+                       && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                int codigo = Character.toCodePoint(c, texto.charAt(++i));
+                bytes[tamano++] = (byte) (0xF0 | (codigo >> 18));
+                bytes[tamano++] = (byte) (0x80 | ((codigo >> 12) & 0x3F));
+                bytes[tamano++] = (byte) (0x80 | ((codigo >> 6) & 0x3F));
+                bytes[tamano++] = (byte) (0x80 | (codigo & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Sustituto suelto: no es UTF-16 valido
+                bytes[tamano++] = '?';
+            } else {
+                bytes[tamano++] = (byte) (0xE0 | (c >> 12));
+                bytes[tamano++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[tamano++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        bytes[tamano++] = '"';
+    }
+    
+    private void poner(byte b) {
+        asegurar(1);
+        bytes[tamano++] = b;
+    }
+    
+    private void asegurar(int adicionales) {
+        if (tamano + adicionales > bytes.length) {
+            bytes = java.util.Arrays.copyOf(bytes, Math.max(bytes.length * 2, tamano + adicionales));
+        }
+    }
+}
+
+/**
+ * Sesion iniciada con /api/login; el token viaja en la cabecera Authorization.
+ */
+class SesionUsuario {
+    private final String token;
+    private final String usuario;
+    private final String rol;
+    private final long expiraMillis;
+    
+    public SesionUsuario(String token, String usuario, String rol, long expiraMillis) {
+        this.token = token;
+        this.usuario = usuario;
+        this.rol = rol;
+        this.expiraMillis = expiraMillis;
+    }
+    
+    public String getToken() { return token; }
+    public String getUsuario() { return usuario; }
+    public String getRol() { return rol; }
+    public long getExpiraMillis() { return expiraMillis; }
+}
+
+/**
+ * Usuarios y sesiones de la API. Las contrasenas se guardan como
+ * PBKDF2-HMAC-SHA256 con sal aleatoria; los tokens son 256 bits aleatorios.
+ * Vive en memoria: al reiniciar el servicio hay que registrarse de nuevo.
+ */
+class RegistroUsuarios {
+    public static final long DURACION_SESION_MS = 8 * 60 * 60 * 1000L;
+    // Un enlace de descarga se abre en cuanto se pide; un minuto cubre la ida y vuelta del navegador
+    public static final long DURACION_DESCARGA_MS = 60_000L;
+    public static final java.util.Set<String> ROLES =
+        java.util.Set.of("administrador", "operador", "mecanico", "supervisor");
+    public static final String ROL_ADMINISTRADOR = "administrador";
+    // Quien se registra solo tiene el rol que no despacha ni exporta; los demas los da un administrador
+    public static final String ROL_AUTORREGISTRO = "mecanico";
+    private static final int ITERACIONES = 100_000;
+    private static final int BYTES_SAL = 16;
+    private static final int BITS_HASH = 256;
+    
+    private java.util.concurrent.ConcurrentHashMap<String, Usuario> usuarios;
+    private java.util.concurrent.ConcurrentHashMap<String, SesionUsuario> sesiones;
+    // Token de descarga -> sesion que lo pidio; vence en DURACION_DESCARGA_MS y se usa una vez
+    private java.util.concurrent.ConcurrentHashMap<String, SesionUsuario> descargas;
+    private java.security.SecureRandom aleatorio;
+    // Hash de relleno para que un usuario inexistente tarde lo mismo que una contrasena mala
+    private byte[] salRelleno;
+    
+    public RegistroUsuarios() {
+        this.usuarios = new java.util.concurrent.ConcurrentHashMap<>();
+        this.sesiones = new java.util.concurrent.ConcurrentHashMap<>();
+        this.descargas = new java.util.concurrent.ConcurrentHashMap<>();
+        this.aleatorio = new java.security.SecureRandom();
+        this.salRelleno = new byte[BYTES_SAL];
+        this.aleatorio.nextBytes(salRelleno);
+    }
+    
+    /**
+     * @return false si ya existe un usuario con ese correo
+     */
+    public boolean registrar(String nombre, String correo, String contrasena, String rol) {
+        if (nombre == null || nombre.isBlank()) {
+            throw new IllegalArgumentException("El nombre es obligatorio");
+        }
+        if (correo == null || correo.indexOf('@') <= 0) {
+            throw new IllegalArgumentException("Correo no valido");
+        }
+        if (contrasena == null || contrasena.length() < 6) {
+            throw new IllegalArgumentException("La contrasena debe tener al menos 6 caracteres");
+        }
+        if (rol == null || !ROLES.contains(rol)) {
+            throw new IllegalArgumentException("Rol no valido: " + rol);
+        }
+        byte[] sal = new byte[BYTES_SAL];
+        aleatorio.nextBytes(sal);
+        Usuario usuario = new Usuario(nombre.trim(), correo.trim(), rol, sal, derivar(contrasena, sal));
+        return usuarios.putIfAbsent(clave(correo), usuario) == null;
+    }
+    
+    /**
+     * @param usuario correo con el que se registro
+     * @return la sesion nueva, o null si las credenciales no son validas
+     */
+    public SesionUsuario iniciarSesion(String usuario, String contrasena) {
+        if (usuario == null || contrasena == null) {
+            return null;
+        }
+        Usuario registrado = usuarios.get(clave(usuario));
+        if (registrado == null) {
+            derivar(contrasena, salRelleno);
+            return null;
+        }
+        if (!java.security.MessageDigest.isEqual(registrado.hash, derivar(contrasena, registrado.sal))) {
+            return null;
+        }
+        long ahora = System.currentTimeMillis();
+        sesiones.values().removeIf(s -> s.getExpiraMillis() <= ahora);
+        String token = nuevoToken();
+        SesionUsuario sesion = new SesionUsuario(token, registrado.correo, registrado.rol, ahora + DURACION_SESION_MS);
+        sesiones.put(token, sesion);
+        return sesion;
+    }
+    
+    /**
+     * Token para abrir una descarga sin cabeceras. Va en la URL, asi que no
+     * sirve para nada mas, vence en DURACION_DESCARGA_MS y se usa una vez
+     * @return el token de descarga de esa sesion
+     */
+    public String emitirDescarga(SesionUsuario sesion) {
+        long ahora = System.currentTimeMillis();
+        descargas.values().removeIf(d -> d.getExpiraMillis() <= ahora);
+        String token = nuevoToken();
+        descargas.put(token, new SesionUsuario(sesion.getToken(), sesion.getUsuario(), sesion.getRol(),
+                                               Math.min(ahora + DURACION_DESCARGA_MS, sesion.getExpiraMillis())));
+        return token;
+    }
+    
+    /**
+     * Consume el token de descarga
+     * @return la sesion que lo pidio, o null si no existe, ya se uso, vencio o la sesion se cerro
+     */
+    public SesionUsuario canjearDescarga(String token) {
+        if (token == null) {
+            return null;
+        }
+        SesionUsuario descarga = descargas.remove(token);
+        if (descarga == null || descarga.getExpiraMillis() <= System.currentTimeMillis()) {
+            return null;
+        }
+        return validar(descarga.getToken());
+    }
+    
+    /**
+     * @return la sesion vigente del token, o null si no existe o ya expiro
+     */
+    public SesionUsuario validar(String token) {
+        if (token == null) {
+            return null;
+        }
+        SesionUsuario sesion = sesiones.get(token);
+        if (sesion != null && sesion.getExpiraMillis() <= System.currentTimeMillis()) {
+            sesiones.remove(token, sesion);
+            return null;
+        }
+        return sesion;
+    }
+    
+    public void cerrarSesion(String token) {
+        sesiones.remove(token);
+    }
+    
+    private String nuevoToken() {
+        byte[] bytesToken = new byte[32];
+        aleatorio.nextBytes(bytesToken);
+        return java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(bytesToken);
+    }
+    
+    private static String clave(String correo) {
+        return correo.trim().toLowerCase(java.util.Locale.ROOT);
+    }
+    
+    private static byte[] derivar(String contrasena, byte[] sal) {
+        javax.crypto.spec.PBEKeySpec especificacion =
+            new javax.crypto.spec.PBEKeySpec(contrasena.toCharArray(), sal, ITERACIONES, BITS_HASH);
+        try {
+            return javax.crypto.SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256")
+                .generateSecret(especificacion).getEncoded();
+        } catch (java.security.GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 no disponible", e);
+        } finally {
+            especificacion.clearPassword();
+        }
+    }
+    
+    private static class Usuario {
+        final String nombre;
+        final String correo;
+        final String rol;
+        final byte[] sal;
+        final byte[] hash;
+        
+        Usuario(String nombre, String correo, String rol, byte[] sal, byte[] hash) {
+            this.nombre = nombre;
+            this.correo = correo;
+            this.rol = rol;
+            this.sal = sal;
+            this.hash = hash;
+        }
+    }
+}
+
+/**
+ * Servidor HTTP embebido (com.sun.net.httpserver) que expone la flota en JSON
+ * para la aplicacion web.
+ *
+ *   POST /api/register                    {nombre, correo, password, rol?}  sin token solo rol mecanico;
+ *                                         otro rol requiere el token de un administrador
+ *   POST /api/login                       {usuario, contrasena} -> {token, ...}
+ *   GET  /api/vehiculos?desde=&limite=&estado=
+ *                                         pagina, porEstado y total de una misma FotoFlota
+ *   GET  /api/vehiculos/zona?caja=latMin,lonMin,latMax,lonMax&estado=&tipo=&limite=
+ *   GET  /api/vehiculos/cercanos?lat=&lon=&k=&estado=&tipo=
+ *   GET  /api/vehiculos/{id}
+ *   GET  /api/vehiculos/{id}/telemetria?limite=
+ *   GET  /api/vehiculos/{id}/telemetria?desde=&hasta=&limite=   (ms; crudo, por minuto o por hora)
+ *   GET  /api/rutas?desde=&limite=
+ *   GET  /api/rutas/{id}
+ *   POST /api/rutas/despacho              asigna las rutas libres (administrador, operador o supervisor)
+ *   POST /api/rutas/{id}/secuencia        ordena las entregas y calcula sus horas (mismos roles)
+ *   GET  /api/estadisticas
+ *   GET  /api/alertas?limite=              abiertas y las ultimas cerradas
+ *   GET  /api/telemetria/flujo?vehiculos=&estado=&caja=latMin,lonMin,latMax,lonMax
+ *   POST /api/informes/descarga           -> {descarga}: token de un solo uso, por un minuto
+ *                                         (administrador, operador o supervisor)
+ *   GET  /api/informes/{telemetria|recorridos|rutas}?desde=&hasta=&vehiculos=&formato=&descarga=
+ *                                         CSV o JSON en partes (mismos roles)
+ *   GET  /metrics                          contadores e histogramas en texto de Prometheus (sin token)
+ *
+ * Los GET piden "Authorization: Bearer <token>"; el flujo acepta tambien
+ * ?token= porque EventSource no puede mandar cabeceras. Los informes, que
+ * el navegador abre como enlace, aceptan en cambio ?descarga= con un token
+ * de descarga: el de sesion no queda en el historial ni en los registros
+ * de un proxy. Los listados se paginan por id (desde + limite, la respuesta
+ * trae el "siguiente" desde); asi una pagina cuesta lo mismo sin importar en
+ * que parte de la flota este. Con ?estado= el listado de vehiculos revisa un
+ * numero acotado de filas por pagina: puede devolver menos de limite (incluso
+ * ninguno) con "siguiente" distinto de null, y se sigue pidiendo hasta que
+ * "siguiente" sea null. Todas las respuestas GET llevan ETag y responden 304
+ * a If-None-Match si no cambiaron.
+ *
+ * Cada peticion se atiende en un hilo virtual si la JVM los tiene (JDK 21+);
+ * en JDK anteriores se usa un pool fijo de hilos. Los flujos de eventos
+ * (Server-Sent Events) quedan abiertos mucho tiempo, asi que no ocupan ese
+ * pool: se pasan a un ejecutor propio y la peticion termina enseguida.
+ */
+class ServidorApi implements java.io.Closeable {
+    public static final int LIMITE_POR_DEFECTO = 100;
+    public static final int LIMITE_MAXIMO = 1000;
+    // Con ?estado= una pagina revisa a lo mas limite * esto filas de la foto
+    static final int FILAS_REVISADAS_POR_LIMITE = 16;
+    private static final int TAMANO_MAXIMO_CUERPO = 16 * 1024;
+    private static final int CAPACIDAD_INICIAL_JSON = 16 * 1024;
+    // Espacios con un JSON mas grande que esto no se reciclan
+    private static final int CAPACIDAD_MAXIMA_RECICLADA = 1 << 20;
+    private static final long LATIDO_MS = 15_000;
+    private static final int TAMANO_LOTE_FLUJO = 256;
+    // Informes que se exportan a la vez; cada uno ocupa un hilo de la API mientras dura
+    private static final int MAXIMO_INFORMES = 2;
+    private static final long RANGO_INFORME_POR_DEFECTO_MS = 24 * 3_600_000L;
+    private static final java.util.Set<String> ROLES_DESPACHO = java.util.Set.of("administrador", "operador", "supervisor");
+    private static final java.util.Set<String> ROLES_INFORMES = ROLES_DESPACHO;
+    private static final byte[] INICIO_FLUJO = "retry: 3000\n\n".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    private static final byte[] LATIDO = ": latido\n\n".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    private static final byte[] INICIO_LECTURA = "event: lectura\ndata: ".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    private static final byte[] FIN_EVENTO = "\n\n".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    
+    static {
+        // HttpServer escribe cabeceras y cuerpo por separado; con Nagle activo el
+        // cuerpo espera al ACK retrasado del cliente (~40 ms) en cada respuesta
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+    
+    private GestorFlota gestor;
+    private RegistroUsuarios usuarios;
+    private com.sun.net.httpserver.HttpServer servidor;
+    private java.util.concurrent.ExecutorService ejecutor;
+    private java.util.concurrent.ExecutorService ejecutorFlujos;
+    private boolean hilosVirtuales;
+    private DifusorTelemetria difusor;
+    private MotorInformes informes;
+    private java.util.concurrent.Semaphore informesLibres;
+    private java.util.concurrent.ConcurrentLinkedQueue<EspacioTrabajo> espacios;
+    private HistogramaLatencia latenciaPeticiones;
+    
+    public ServidorApi(GestorFlota gestor, RegistroUsuarios usuarios, java.net.InetSocketAddress direccion)
+            throws java.io.IOException {
+        this(gestor, usuarios, null, direccion);
+    }
+    
+    /**
+     * @param difusor  origen de /api/telemetria/flujo, o null para no ofrecer el flujo
+     */
+    public ServidorApi(GestorFlota gestor, RegistroUsuarios usuarios, DifusorTelemetria difusor,
+                       java.net.InetSocketAddress direccion) throws java.io.IOException {
+        this.gestor = gestor;
+        this.usuarios = usuarios;
+        this.difusor = difusor;
+        this.informes = new MotorInformes(gestor);
+        this.informesLibres = new java.util.concurrent.Semaphore(MAXIMO_INFORMES);
+        this.espacios = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        this.servidor = com.sun.net.httpserver.HttpServer.create(direccion, 1024);
+        this.servidor.createContext("/api/", this::atender);
+        this.servidor.createContext("/metrics", this::exponerMetricas);
+        this.latenciaPeticiones = gestor.getMetricas().histograma(
+            "sigefve_api_peticion_segundos", "Tiempo en atender una peticion de la API (sin flujos de eventos ni informes)", "");
+        this.ejecutor = crearEjecutor();
+        this.ejecutorFlujos = crearEjecutorFlujos();
+        this.servidor.setExecutor(ejecutor);
+    }
+    
+    public void iniciar() {
+        servidor.start();
+        RegistroAsincrono.info("API HTTP escuchando en el puerto {}{}", getPuerto(),
+                               hilosVirtuales ? " (hilos virtuales)" : " (pool de hilos)");
+    }
+    
+    public int getPuerto() {
+        return servidor.getAddress().getPort();
+    }
+    
+    public boolean usaHilosVirtuales() {
+        return hilosVirtuales;
+    }
+    
+    @Override
+    public void close() {
+        servidor.stop(0);
+        ejecutor.shutdownNow();
+        ejecutorFlujos.shutdownNow();
+        informes.close();
+    }
+    
+    private java.util.concurrent.ExecutorService crearEjecutor() {
+        // Se busca por reflexion para que el servicio siga compilando y corriendo en JDK 17
+        try {
+            java.lang.reflect.Method metodo =
+                java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            java.util.concurrent.ExecutorService virtuales = (java.util.concurrent.ExecutorService) metodo.invoke(null);
+            hilosVirtuales = true;
+            return virtuales;
+        } catch (ReflectiveOperationException e) {
+            int hilos = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+            java.util.concurrent.atomic.AtomicInteger numero = new java.util.concurrent.atomic.AtomicInteger();
+            return java.util.concurrent.Executors.newFixedThreadPool(hilos, tarea -> {
+                Thread hilo = new Thread(tarea, "sigefve-api-" + numero.incrementAndGet());
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        }
+    }
+    
+    private java.util.concurrent.ExecutorService crearEjecutorFlujos() {
+        if (hilosVirtuales) {
+            return crearEjecutor();
+        }
+        // Un hilo por cliente conectado; el limite lo pone DifusorTelemetria.MAXIMO_SUSCRIPTORES
+        java.util.concurrent.atomic.AtomicInteger numero = new java.util.concurrent.atomic.AtomicInteger();
+        return java.util.concurrent.Executors.newCachedThreadPool(tarea -> {
+            Thread hilo = new Thread(tarea, "sigefve-flujo-" + numero.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+    }
+    
+    // ====== Despacho ======
+    
+    private void atender(com.sun.net.httpserver.HttpExchange intercambio) {
+        long inicio = System.nanoTime();
+        EspacioTrabajo espacio = tomarEspacio();
+        boolean cerrarAlTerminar = true;
+        boolean medir = true;
+        try {
+            com.sun.net.httpserver.Headers cabeceras = intercambio.getResponseHeaders();
+            // La web se sirve desde otro origen (Apache); el token va en cabecera, no en cookies
+            cabeceras.set("Access-Control-Allow-Origin", "*");
+            cabeceras.set("Access-Control-Allow-Headers", "Authorization, Content-Type, If-None-Match");
+            cabeceras.set("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+            cabeceras.set("Access-Control-Expose-Headers", "ETag");
+            
+            String metodo = intercambio.getRequestMethod();
+            String ruta = intercambio.getRequestURI().getRawPath();
+            String consulta = intercambio.getRequestURI().getRawQuery();
+            if (metodo.equals("OPTIONS")) {
+                intercambio.getRequestBody().close();
+                intercambio.sendResponseHeaders(204, -1);
+            } else if (ruta.equals("/api/login") || ruta.equals("/api/register")) {
+                if (!metodo.equals("POST")) {
+                    error(intercambio, espacio, 405, "Metodo no permitido");
+                } else if (ruta.equals("/api/login")) {
+                    iniciarSesion(intercambio, espacio);
+                } else {
+                    registrar(intercambio, espacio);
+                }
+            } else if (ruta.equals("/api/rutas/despacho") && metodo.equals("POST")) {
+                SesionUsuario sesion = usuarios.validar(token(intercambio));
+                if (sesion == null) {
+                    cabeceras.set("WWW-Authenticate", "Bearer");
+                    error(intercambio, espacio, 401, "Sesion no valida o expirada");
+                } else if (!ROLES_DESPACHO.contains(sesion.getRol())) {
+                    error(intercambio, espacio, 403, "El rol " + sesion.getRol() + " no puede despachar rutas");
+                } else {
+                    escribirDespacho(espacio.json, gestor.despacharRutas());
+                    responder(intercambio, espacio, 200);
+                }
+            } else if (ruta.startsWith("/api/rutas/") && ruta.endsWith("/secuencia") && metodo.equals("POST")) {
+                SesionUsuario sesion = usuarios.validar(token(intercambio));
+                if (sesion == null) {
+                    cabeceras.set("WWW-Authenticate", "Bearer");
+                    error(intercambio, espacio, 401, "Sesion no valida o expirada");
+                } else if (!ROLES_DESPACHO.contains(sesion.getRol())) {
+                    error(intercambio, espacio, 403, "El rol " + sesion.getRol() + " no puede secuenciar rutas");
+                } else {
+                    int desde = "/api/rutas/".length();
+                    int rutaId = idDeRuta(ruta, desde, Math.max(desde, ruta.length() - "/secuencia".length()));
+                    Ruta secuenciada = gestor.consultarRuta(rutaId);
+                    if (secuenciada == null) {
+                        error(intercambio, espacio, 404, "Ruta no encontrada");
+                    } else {
+                        gestor.secuenciarRuta(rutaId);
+                        escribirRuta(espacio.json, secuenciada);
+                        responder(intercambio, espacio, 200);
+                    }
+                }
+            } else if (ruta.equals("/api/informes/descarga") && metodo.equals("POST")) {
+                SesionUsuario sesion = usuarios.validar(token(intercambio));
+                if (sesion == null) {
+                    cabeceras.set("WWW-Authenticate", "Bearer");
+                    error(intercambio, espacio, 401, "Sesion no valida o expirada");
+                } else if (!ROLES_INFORMES.contains(sesion.getRol())) {
+                    error(intercambio, espacio, 403, "El rol " + sesion.getRol() + " no puede exportar informes");
+                } else {
+                    intercambio.getRequestBody().close();
+                    espacio.json.abrirObjeto().campo("descarga", usuarios.emitirDescarga(sesion)).cerrarObjeto();
+                    responder(intercambio, espacio, 200);
+                }
+            } else if (!metodo.equals("GET") && !metodo.equals("HEAD")) {
+                error(intercambio, espacio, 405, "Metodo no permitido");
+            } else if (ruta.startsWith("/api/informes/")) {
+                // Un HEAD no gasta el token de descarga
+                String descarga = metodo.equals("GET") ? parametro(consulta, "descarga") : null;
+                SesionUsuario sesion = descarga != null ? usuarios.canjearDescarga(descarga)
+                                                        : usuarios.validar(token(intercambio));
+                if (sesion == null) {
+                    cabeceras.set("WWW-Authenticate", "Bearer");
+                    error(intercambio, espacio, 401, "Sesion o descarga no valida o expirada");
+                } else if (!ROLES_INFORMES.contains(sesion.getRol())) {
+                    error(intercambio, espacio, 403, "El rol " + sesion.getRol() + " no puede exportar informes");
+                } else {
+                    medir = false;
+                    exportarInforme(intercambio, espacio, ruta, consulta);
+                }
+            } else if (usuarios.validar(token(intercambio)) == null) {
+                cabeceras.set("WWW-Authenticate", "Bearer");
+                error(intercambio, espacio, 401, "Sesion no valida o expirada");
+            } else if (ruta.equals("/api/telemetria/flujo")) {
+                // Si el flujo se abrio, el intercambio pasa a su hilo y no se cierra aqui
+                cerrarAlTerminar = !abrirFlujo(intercambio, espacio, consulta);
+            } else {
+                consultar(intercambio, espacio, ruta, consulta);
+            }
+        } catch (IllegalArgumentException e) {
+            responderError(intercambio, espacio, 400, e.getMessage());
+        } catch (java.io.IOException e) {
+            // El cliente cerro la conexion; no hay a quien responder
+        } catch (RuntimeException e) {
+            RegistroAsincrono.error("Error en la API: {}", e);
+            responderError(intercambio, espacio, 500, "Error interno");
+        } finally {
+            devolverEspacio(espacio);
+            if (cerrarAlTerminar) {
+                intercambio.close();
+                if (medir) {
+                    latenciaPeticiones.observarDesde(inicio);
+                }
+            }
+        }
+    }
+    
+    /**
+     * GET /metrics en el formato de texto de Prometheus. No pide token, como
+     * espera un recolector; se publica en el mismo puerto que la API.
+     */
+    private void exponerMetricas(com.sun.net.httpserver.HttpExchange intercambio) {
+        try (intercambio) {
+            intercambio.getRequestBody().close();
+            String metodo = intercambio.getRequestMethod();
+            if (!metodo.equals("GET") && !metodo.equals("HEAD")) {
+                intercambio.getResponseHeaders().set("Allow", "GET, HEAD");
+                intercambio.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder texto = new StringBuilder(8 * 1024);
+            gestor.getMetricas().escribirPrometheus(texto);
+            byte[] cuerpo = texto.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if (metodo.equals("HEAD")) {
+                intercambio.sendResponseHeaders(200, -1);
+                return;
+            }
+            intercambio.sendResponseHeaders(200, cuerpo.length);
+            intercambio.getResponseBody().write(cuerpo);
+        } catch (java.io.IOException e) {
+            // El recolector cerro la conexion
+        } catch (RuntimeException e) {
+            RegistroAsincrono.error("Error al exponer las metricas: {}", e);
+        }
+    }
+    
+    private void consultar(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio,
+                           String ruta, String consulta) throws java.io.IOException {
+        EscritorJson json = espacio.json;
+        int estado = 200;
+        if (ruta.equals("/api/vehiculos")) {
+            listarVehiculos(espacio, consulta);
+        } else if (ruta.equals("/api/rutas")) {
+            listarRutas(espacio, consulta);
+        } else if (ruta.equals("/api/estadisticas")) {
+            escribirEstadisticas(json);
+        } else if (ruta.equals("/api/alertas")) {
+            escribirAlertas(json, limite(consulta));
+        } else if (ruta.equals("/api/vehiculos/zona")) {
+            listarVehiculosEnZona(espacio, consulta);
+        } else if (ruta.equals("/api/vehiculos/cercanos")) {
+            listarVehiculosCercanos(espacio, consulta);
+        } else if (ruta.startsWith("/api/vehiculos/")) {
+            int fin = ruta.indexOf('/', "/api/vehiculos/".length());
+            int id = idDeRuta(ruta, "/api/vehiculos/".length(), fin < 0 ? ruta.length() : fin);
+            VehiculoElectrico vehiculo = id > 0 ? gestor.consultarVehiculo(id) : null;
+            if (vehiculo == null) {
+                estado = 404;
+            } else if (fin < 0) {
+                escribirVehiculo(espacio, vehiculo, vehiculo.getEstado());
+            } else if (ruta.substring(fin).equals("/telemetria") && parametro(consulta, "desde") != null) {
+                escribirHistorial(espacio, id, largo(consulta, "desde", 0),
+                                  largo(consulta, "hasta", gestor.getReloj().millis()),
+                                  entero(consulta, "limite", LIMITE_POR_DEFECTO));
+            } else if (ruta.substring(fin).equals("/telemetria")) {
+                escribirTelemetria(espacio, id, entero(consulta, "limite", LIMITE_POR_DEFECTO));
+            } else {
+                estado = 404;
+            }
+        } else if (ruta.startsWith("/api/rutas/")) {
+            Ruta encontrada = gestor.consultarRuta(idDeRuta(ruta, "/api/rutas/".length(), ruta.length()));
+            if (encontrada == null) {
+                estado = 404;
+            } else {
+                escribirRuta(json, encontrada);
+            }
+        } else {
+            estado = 404;
+        }
+        if (estado == 404) {
+            error(intercambio, espacio, 404, "No encontrado: " + ruta);
+        } else {
+            responder(intercambio, espacio, 200);
+        }
+    }
+    
+    // ====== Recursos ======
+    
+    /**
+     * Pagina, conteos por estado y total salen de la misma FotoFlota, asi
+     * siempre cuadran entre si; ultimaLectura es la del historial al responder.
+     * Con ?estado= se revisan a lo mas limite * FILAS_REVISADAS_POR_LIMITE
+     * filas, asi que una pagina puede traer menos de limite vehiculos aunque
+     * "siguiente" no sea null
+     */
+    private void listarVehiculos(EspacioTrabajo espacio, String consulta) {
+        int desde = Math.max(1, entero(consulta, "desde", 1));
+        int limite = limite(consulta);
+        EstadoVehiculo estadoBuscado = estado(consulta);
+        
+        // La foto esta ordenada por id: la pagina empieza en la primera fila con id >= desde
+        FotoFlota foto = gestor.obtenerFoto();
+        EscritorJson json = espacio.json;
+        int fila = foto.filaDesde(desde);
+        // Un estado raro no obliga a recorrer toda la flota: la pagina puede
+        // salir corta (o vacia) y el "siguiente" dice donde seguir
+        int tope = (int) Math.min(foto.getTamano(),
+                                  (long) fila + (long) limite * FILAS_REVISADAS_POR_LIMITE);
+        int escritos = 0;
+        json.abrirObjeto().nombre("vehiculos").abrirArreglo();
+        for (; fila < tope && escritos < limite; fila++) {
+            if (estadoBuscado == null || foto.getEstado(fila) == estadoBuscado) {
+                escribirFila(espacio, foto, fila);
+                escritos++;
+            }
+        }
+        json.cerrarArreglo();
+        json.nombre("siguiente");
+        if (fila < foto.getTamano()) {
+            json.valor(foto.getId(fila));
+        } else {
+            json.nulo();
+        }
+        json.nombre("porEstado").abrirObjeto();
+        for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+            json.campo(estado.name(), foto.getVehiculos(estado));
+        }
+        json.cerrarObjeto()
+            .campo("total", foto.getTamano())
+            .campo("foto", foto.getVersion())
+            .cerrarObjeto();
+    }
+    
+    private void listarVehiculosEnZona(EspacioTrabajo espacio, String consulta) {
+        double[] caja = caja(consulta, "caja");
+        if (caja == null) {
+            throw new IllegalArgumentException("Falta el parametro caja");
+        }
+        java.util.List<VehiculoElectrico> encontrados =
+            gestor.buscarVehiculosEnZona(caja[0], caja[1], caja[2], caja[3],
+                                         estado(consulta), tipo(consulta), limite(consulta));
+        EscritorJson json = espacio.json;
+        json.abrirObjeto().nombre("vehiculos").abrirArreglo();
+        for (VehiculoElectrico vehiculo : encontrados) {
+            escribirVehiculo(espacio, vehiculo, vehiculo.getEstado());
+        }
+        json.cerrarArreglo().cerrarObjeto();
+    }
+    
+    private void listarVehiculosCercanos(EspacioTrabajo espacio, String consulta) {
+        int k = entero(consulta, "k", 5);
+        if (k <= 0) {
+            throw new IllegalArgumentException("k debe ser positivo");
+        }
+        ResultadoCercanos cercanos = gestor.buscarVehiculosCercanos(
+            decimal(consulta, "lat"), decimal(consulta, "lon"), Math.min(k, LIMITE_MAXIMO),
+            estado(consulta), tipo(consulta));
+        EscritorJson json = espacio.json;
+        json.abrirObjeto().nombre("vehiculos").abrirArreglo();
+        for (int i = 0; i < cercanos.getTamano(); i++) {
+            VehiculoElectrico vehiculo = cercanos.getVehiculo(i);
+            escribirVehiculo(espacio, vehiculo, vehiculo.getEstado(), cercanos.getDistanciaKm(i));
+        }
+        json.cerrarArreglo().cerrarObjeto();
+    }
+    
+    private void escribirVehiculo(EspacioTrabajo espacio, VehiculoElectrico vehiculo, EstadoVehiculo estado) {
+        escribirVehiculo(espacio, vehiculo, estado, Double.NaN);
+    }
+    
+    /**
+     * @param distanciaKm  se incluye solo si no es NaN (consultas de cercania)
+     */
+    private void escribirVehiculo(EspacioTrabajo espacio, VehiculoElectrico vehiculo, EstadoVehiculo estado,
+                                  double distanciaKm) {
+        EscritorJson json = espacio.json;
+        json.abrirObjeto()
+            .campo("id", vehiculo.getId())
+            .campo("tipo", vehiculo.getTipo())
+            .campo("modelo", vehiculo.getModelo())
+            .campo("estado", estado.name())
+            .campo("nivelBateria", vehiculo.getNivelBateria(), 1)
+            .campo("capacidadBateria", vehiculo.getCapacidadBateria(), 1);
+        if (!Double.isNaN(distanciaKm)) {
+            json.campo("distanciaKm", distanciaKm, 3);
+        }
+        escribirUltimaLectura(espacio, vehiculo.getId());
+        json.cerrarObjeto();
+    }
+    
+    private void escribirFila(EspacioTrabajo espacio, FotoFlota foto, int fila) {
+        espacio.json.abrirObjeto()
+            .campo("id", foto.getId(fila))
+            .campo("tipo", foto.getTipo(fila))
+            .campo("modelo", foto.getModelo(fila))
+            .campo("estado", foto.getEstado(fila).name())
+            .campo("nivelBateria", foto.getNivelBateria(fila), 1)
+            .campo("capacidadBateria", foto.getCapacidadBateria(fila), 1);
+        escribirUltimaLectura(espacio, foto.getId(fila));
+        espacio.json.cerrarObjeto();
+    }
+    
+    private void escribirUltimaLectura(EspacioTrabajo espacio, int vehiculoId) {
+        EscritorJson json = espacio.json;
+        json.nombre("ultimaLectura");
+        SegmentoTelemetria lecturas = espacio.lecturas;
+        if (gestor.copiarHistorialTelemetria(vehiculoId, 1, lecturas) > 0) {
+            json.abrirObjeto()
+                .campo("tiempo", lecturas.getTiempo(0))
+                .campo("velocidad", lecturas.getVelocidad(0), 1)
+                .campo("temperaturaMotor", lecturas.getTemperaturaMotor(0), 1)
+                .campo("latitud", lecturas.getLatitud(0), 6)
+                .campo("longitud", lecturas.getLongitud(0), 6)
+                .cerrarObjeto();
+        } else {
+            json.nulo();
+        }
+    }
+    
+    private void escribirTelemetria(EspacioTrabajo espacio, int vehiculoId, int limite) {
+        limite = Math.max(1, Math.min(limite, LIMITE_MAXIMO));
+        SegmentoTelemetria lecturas = espacio.lecturas;
+        int cantidad = gestor.copiarHistorialTelemetria(vehiculoId, limite, lecturas);
+        EscritorJson json = espacio.json;
+        json.abrirObjeto().campo("vehiculoId", vehiculoId).nombre("lecturas").abrirArreglo();
+        for (int i = 0; i < cantidad; i++) {
+            json.abrirObjeto()
+                .campo("id", lecturas.getId(i))
+                .campo("tiempo", lecturas.getTiempo(i))
+                .campo("velocidad", lecturas.getVelocidad(i), 1)
+                .campo("temperaturaMotor", lecturas.getTemperaturaMotor(i), 1)
+                .campo("nivelBateria", lecturas.getNivelBateria(i), 2)
+                .campo("latitud", lecturas.getLatitud(i), 6)
+                .campo("longitud", lecturas.getLongitud(i), 6)
+                .cerrarObjeto();
+        }
+        json.cerrarArreglo().cerrarObjeto();
+    }
+    
+    private void escribirHistorial(EspacioTrabajo espacio, int vehiculoId, long desde, long hasta, int limite) {
+        limite = Math.max(1, Math.min(limite, LIMITE_MAXIMO));
+        HistorialTelemetria historial = gestor.consultarHistorialTelemetria(vehiculoId, desde, hasta, limite);
+        EscritorJson json = espacio.json;
+        json.abrirObjeto()
+            .campo("vehiculoId", vehiculoId)
+            .campo("nivel", historial.getNivel().name())
+            .campo("resolucionMillis", historial.getNivel().getAnchoMillis());
+        if (historial.getNivel() == NivelHistorial.CRUDO) {
+            SegmentoTelemetria lecturas = historial.getLecturas();
+            json.nombre("lecturas").abrirArreglo();
+            for (int i = 0; i < lecturas.getTamano(); i++) {
+                json.abrirObjeto()
+                    .campo("id", lecturas.getId(i))
+                    .campo("tiempo", lecturas.getTiempo(i))
+                    .campo("velocidad", lecturas.getVelocidad(i), 1)
+                    .campo("temperaturaMotor", lecturas.getTemperaturaMotor(i), 1)
+                    .campo("nivelBateria", lecturas.getNivelBateria(i), 2)
+                    .campo("latitud", lecturas.getLatitud(i), 6)
+                    .campo("longitud", lecturas.getLongitud(i), 6)
+                    .cerrarObjeto();
+            }
+        } else {
+            SerieAgregada intervalos = historial.getIntervalos();
+            json.nombre("intervalos").abrirArreglo();
+            for (int i = 0; i < intervalos.getTamano(); i++) {
+                json.abrirObjeto()
+                    .campo("inicio", intervalos.getInicio(i))
+                    .campo("muestras", intervalos.getMuestras(i))
+                    .nombre("velocidad").abrirObjeto()
+                        .campo("min", intervalos.getVelocidadMinima(i), 1)
+                        .campo("max", intervalos.getVelocidadMaxima(i), 1)
+                        .campo("promedio", intervalos.getVelocidadPromedio(i), 1)
+                        .cerrarObjeto()
+                    .nombre("temperaturaMotor").abrirObjeto()
+                        .campo("min", intervalos.getTemperaturaMinima(i), 1)
+                        .campo("max", intervalos.getTemperaturaMaxima(i), 1)
+                        .campo("promedio", intervalos.getTemperaturaPromedio(i), 1)
+                        .cerrarObjeto()
+                    .campo("bateriaInicial", intervalos.getBateriaInicial(i), 2)
+                    .campo("bateriaFinal", intervalos.getBateriaFinal(i), 2)
+                    .cerrarObjeto();
+            }
+        }
+        json.cerrarArreglo().cerrarObjeto();
+    }
+    
+    private void listarRutas(EspacioTrabajo espacio, String consulta) {
+        int desde = Math.max(1, entero(consulta, "desde", 1));
+        int limite = limite(consulta);
+        EscritorJson json = espacio.json;
+        int fin = gestor.getSiguienteIdRuta();
+        int id = desde;
+        int escritas = 0;
+        json.abrirObjeto().nombre("rutas").abrirArreglo();
+        for (; id < fin && escritas < limite; id++) {
+            Ruta ruta = gestor.consultarRuta(id);
+            if (ruta != null) {
+                escribirRuta(json, ruta);
+                escritas++;
+            }
+        }
+        json.cerrarArreglo();
+        json.nombre("siguiente");
+        if (id < fin) {
+            json.valor(id);
+        } else {
+            json.nulo();
+        }
+        json.campo("total", gestor.listarRutas().size());
+        json.cerrarObjeto();
+    }
+    
+    private static void escribirRuta(EscritorJson json, Ruta ruta) {
+        json.abrirObjeto()
+            .campo("id", ruta.getId())
+            .campo("origen", ruta.getOrigen())
+            .campo("destino", ruta.getDestino())
+            .campo("distancia", ruta.getDistancia(), 2)
+            .campo("vehiculoId", ruta.getVehiculoId())
+            .nombre("entregas").abrirArreglo();
+        for (Entrega entrega : ruta.getEntregas()) {
+            java.time.LocalDateTime hora = entrega.getHoraEstimada();
+            json.abrirObjeto()
+                .campo("id", entrega.getId())
+                .campo("direccion", entrega.getDireccion())
+                .campo("horaEstimada", hora != null ? hora.toString() : null)
+                .campo("estado", entrega.getEstado())
+                .campo("latitud", entrega.getLatitud(), 6)
+                .campo("longitud", entrega.getLongitud(), 6)
+                .campo("secuencia", entrega.getSecuencia())
+                .cerrarObjeto();
+        }
+        json.cerrarArreglo().cerrarObjeto();
+    }
+    
+    private static void escribirDespacho(EscritorJson json, ResultadoDespacho resultado) {
+        json.abrirObjeto()
+            .campo("asignadas", resultado.getAsignadas())
+            .campo("vehiculosCandidatos", resultado.getVehiculosCandidatos())
+            .campo("costoTotal", resultado.getCostoTotal(), 2)
+            .campo("milisegundos", resultado.getMilisegundosSolucion())
+            .campo("intentos", resultado.getIntentos())
+            .nombre("pares").abrirArreglo();
+        for (int i = 0; i < resultado.getAsignadas(); i++) {
+            json.abrirObjeto()
+                .campo("rutaId", resultado.getRuta(i))
+                .campo("vehiculoId", resultado.getVehiculo(i))
+                .cerrarObjeto();
+        }
+        json.cerrarArreglo().nombre("sinAsignar").abrirArreglo();
+        for (int rutaId : resultado.getRutasSinAsignar()) {
+            json.valor(rutaId);
+        }
+        json.cerrarArreglo().cerrarObjeto();
+    }
+    
+    private void escribirAlertas(EscritorJson json, int limite) {
+        MotorAlertas motor = gestor.getMotorAlertas();
+        json.abrirObjeto().nombre("activas").abrirArreglo();
+        java.util.List<Alerta> activas = motor.listarActivas();
+        for (int i = 0; i < activas.size() && i < limite; i++) {
+            escribirAlerta(json, activas.get(i));
+        }
+        json.cerrarArreglo().nombre("recientes").abrirArreglo();
+        for (Alerta alerta : motor.listarRecientes(limite)) {
+            escribirAlerta(json, alerta);
+        }
+        json.cerrarArreglo()
+            .campo("totalActivas", activas.size())
+            .campo("totalAbiertas", motor.getTotalAbiertas())
+            .cerrarObjeto();
+    }
+    
+    private static void escribirAlerta(EscritorJson json, Alerta alerta) {
+        ReglaAlerta regla = alerta.getRegla();
+        json.abrirObjeto()
+            .campo("id", alerta.getId())
+            .campo("vehiculoId", alerta.getVehiculoId())
+            .campo("regla", regla.getNombre())
+            .campo("metrica", regla.getMetrica().name())
+            .campo("severidad", alerta.getSeveridad().name())
+            .campo("umbral", regla.getUmbral(), 1)
+            .campo("valor", alerta.getValorExtremo(), 1)
+            .campo("mensaje", alerta.getMensaje())
+            .campo("apertura", alerta.getTiempoApertura());
+        json.nombre("cierre");
+        if (alerta.isAbierta()) {
+            json.nulo();
+        } else {
+            json.valor(alerta.getTiempoCierre());
+        }
+        json.cerrarObjeto();
+    }
+    
+    private void escribirEstadisticas(EscritorJson json) {
+        ResumenEstadisticas resumen = gestor.obtenerEstadisticas();
+        json.abrirObjeto().nombre("porEstado").abrirObjeto();
+        for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+            json.campo(estado.name(), resumen.getVehiculos(estado));
+        }
+        json.cerrarObjeto()
+            .campo("vehiculos", resumen.getTotalVehiculos())
+            .campo("rutas", gestor.listarRutas().size())
+            .campo("lecturasTelemetria", gestor.getTotalLecturasTelemetria())
+            .campo("kmHoy", resumen.getKilometrosHoy(), 1)
+            .campo("entregasHoy", resumen.getEntregasCompletadasHoy())
+            .nombre("dias").abrirArreglo();
+        for (int i = 0; i < resumen.getDias(); i++) {
+            json.abrirObjeto()
+                .campo("fecha", resumen.getFecha(i).toString())
+                .campo("km", resumen.getKilometros(i), 1)
+                .campo("entregas", resumen.getEntregasCompletadas(i))
+                .cerrarObjeto();
+        }
+        json.cerrarArreglo().cerrarObjeto();
+    }
+    
+    // ====== Flujo de telemetria ======
+    
+    /**
+     * Suscribe al cliente y pasa el intercambio a un hilo de ejecutorFlujos.
+     * @return true si el flujo quedo abierto (el intercambio ya no es de este hilo)
+     */
+    private boolean abrirFlujo(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio,
+                               String consulta) throws java.io.IOException {
+        if (difusor == null) {
+            error(intercambio, espacio, 404, "Flujo de telemetria no disponible");
+            return false;
+        }
+        if (!intercambio.getRequestMethod().equals("GET")) {
+            error(intercambio, espacio, 405, "Metodo no permitido");
+            return false;
+        }
+        SuscripcionTelemetria suscripcion = difusor.suscribir(listaEnteros(consulta, "vehiculos"),
+                                                             listaEstados(consulta, "estado"),
+                                                             caja(consulta, "caja"));
+        if (suscripcion == null) {
+            intercambio.getResponseHeaders().set("Retry-After", "5");
+            error(intercambio, espacio, 503, "Demasiados suscriptores");
+            return false;
+        }
+        com.sun.net.httpserver.Headers cabeceras = intercambio.getResponseHeaders();
+        cabeceras.set("Content-Type", "text/event-stream; charset=utf-8");
+        cabeceras.set("Cache-Control", "no-cache");
+        try {
+            intercambio.getRequestBody().close();
+            intercambio.sendResponseHeaders(200, 0);
+            ejecutorFlujos.execute(() -> emitir(intercambio, suscripcion));
+            return true;
+        } catch (java.io.IOException e) {
+            difusor.cancelar(suscripcion);
+            throw e;
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // El servidor se esta cerrando
+            difusor.cancelar(suscripcion);
+            return false;
+        }
+    }
+    
+    /**
+     * Escribe un evento "lectura" por cada vehiculo pendiente de la suscripcion
+     * con su ultima lectura, y un comentario de latido si no hubo novedades en
+     * LATIDO_MS para que proxies y navegadores no den la conexion por muerta.
+     */
+    private void emitir(com.sun.net.httpserver.HttpExchange intercambio, SuscripcionTelemetria suscripcion) {
+        EscritorJson json = new EscritorJson(512);
+        SegmentoTelemetria ultima = new SegmentoTelemetria(1);
+        int[] ids = new int[TAMANO_LOTE_FLUJO];
+        try (java.io.OutputStream salida =
+                 new java.io.BufferedOutputStream(intercambio.getResponseBody(), 16 * 1024)) {
+            salida.write(INICIO_FLUJO);
+            salida.flush();
+            while (true) {
+                int tomados = suscripcion.tomar(ids, LATIDO_MS);
+                if (tomados < 0) {
+                    break;
+                }
+                if (tomados == 0) {
+                    salida.write(LATIDO);
+                }
+                for (int i = 0; i < tomados; i++) {
+                    int id = ids[i];
+                    VehiculoElectrico vehiculo = gestor.consultarVehiculo(id);
+                    if (vehiculo == null || gestor.copiarHistorialTelemetria(id, 1, ultima) == 0) {
+                        continue;
+                    }
+                    json.reiniciar();
+                    json.abrirObjeto()
+                        .campo("vehiculoId", id)
+                        .campo("lecturaId", ultima.getId(0))
+                        .campo("estado", vehiculo.getEstado().name())
+                        .campo("nivelBateria", ultima.getNivelBateria(0), 2)
+                        .campo("tiempo", ultima.getTiempo(0))
+                        .campo("velocidad", ultima.getVelocidad(0), 1)
+                        .campo("temperaturaMotor", ultima.getTemperaturaMotor(0), 1)
+                        .campo("latitud", ultima.getLatitud(0), 6)
+                        .campo("longitud", ultima.getLongitud(0), 6)
+                        .cerrarObjeto();
+                    salida.write(INICIO_LECTURA);
+                    salida.write(json.getBytes(), 0, json.getTamano());
+                    salida.write(FIN_EVENTO);
+                }
+                salida.flush();
+            }
+        } catch (java.io.IOException e) {
+            // El cliente cerro la conexion
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            difusor.cancelar(suscripcion);
+            intercambio.close();
+        }
+    }
+    
+    // ====== Informes ======
+    
+    /**
+     * GET /api/informes/{telemetria|recorridos|rutas}?desde&hasta&vehiculos&formato=csv|json.
+     * Quien llama ya comprobo la sesion o el token de descarga y el rol. El
+     * rango por defecto son las ultimas 24 horas. El cuerpo sale por partes a
+     * medida que MotorInformes lo escribe; si el cliente corta la descarga, la
+     * escritura falla y el informe se cancela.
+     */
+    private void exportarInforme(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio,
+                                 String ruta, String consulta) throws java.io.IOException {
+        String nombre = ruta.substring("/api/informes/".length());
+        TipoInforme tipo = null;
+        for (TipoInforme candidato : TipoInforme.values()) {
+            if (candidato.name().equalsIgnoreCase(nombre)) {
+                tipo = candidato;
+            }
+        }
+        if (tipo == null) {
+            error(intercambio, espacio, 404, "No encontrado: " + ruta);
+            return;
+        }
+        if (!intercambio.getRequestMethod().equals("GET")) {
+            error(intercambio, espacio, 405, "Metodo no permitido");
+            return;
+        }
+        long hasta = largo(consulta, "hasta", gestor.getReloj().millis());
+        long desde = largo(consulta, "desde", hasta - RANGO_INFORME_POR_DEFECTO_MS);
+        FormatoInforme formato = FormatoInforme.de(parametro(consulta, "formato"));
+        ExportacionInforme exportacion = new ExportacionInforme(
+            tipo, new FiltroInforme(desde, hasta, listaEnteros(consulta, "vehiculos")), formato);
+        if (!informesLibres.tryAcquire()) {
+            intercambio.getResponseHeaders().set("Retry-After", "5");
+            error(intercambio, espacio, 503, "Demasiados informes en curso");
+            return;
+        }
+        try {
+            com.sun.net.httpserver.Headers cabeceras = intercambio.getResponseHeaders();
+            cabeceras.set("Content-Type", formato.getTipoContenido());
+            cabeceras.set("Content-Disposition", "attachment; filename=\"" + nombre.toLowerCase(java.util.Locale.ROOT)
+                                                 + "." + formato.getExtension() + "\"");
+            intercambio.getRequestBody().close();
+            intercambio.sendResponseHeaders(200, 0);
+            java.io.OutputStream cuerpo = intercambio.getResponseBody();
+            informes.exportar(exportacion, cuerpo);
+            cuerpo.close();
+        } finally {
+            informesLibres.release();
+        }
+    }
+    
+    // ====== Usuarios ======
+    
+    private void registrar(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio)
+            throws java.io.IOException {
+        java.util.Map<String, String> datos = leerFormulario(intercambio);
+        if (datos == null) {
+            error(intercambio, espacio, 413, "Cuerpo demasiado grande");
+        } else {
+            String rol = datos.get("rol") != null ? datos.get("rol") : RegistroUsuarios.ROL_AUTORREGISTRO;
+            SesionUsuario sesion = rol.equals(RegistroUsuarios.ROL_AUTORREGISTRO) ? null : usuarios.validar(token(intercambio));
+            if (!rol.equals(RegistroUsuarios.ROL_AUTORREGISTRO)
+                    && (sesion == null || !sesion.getRol().equals(RegistroUsuarios.ROL_ADMINISTRADOR))) {
+                error(intercambio, espacio, 403, "Solo un administrador puede dar el rol " + rol);
+            } else if (!usuarios.registrar(datos.get("nombre"), datos.get("correo"), datos.get("password"), rol)) {
+                error(intercambio, espacio, 409, "Ya existe un usuario con ese correo");
+            } else {
+                espacio.json.abrirObjeto().campo("usuario", datos.get("correo")).campo("rol", rol).cerrarObjeto();
+                responder(intercambio, espacio, 201);
+            }
+        }
+    }
+    
+    private void iniciarSesion(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio)
+            throws java.io.IOException {
+        java.util.Map<String, String> datos = leerFormulario(intercambio);
+        if (datos == null) {
+            error(intercambio, espacio, 413, "Cuerpo demasiado grande");
+            return;
+        }
+        SesionUsuario sesion = usuarios.iniciarSesion(datos.get("usuario"), datos.get("contrasena"));
+        if (sesion == null) {
+            error(intercambio, espacio, 401, "Usuario o contrasena incorrectos");
+            return;
+        }
+        espacio.json.abrirObjeto()
+            .campo("token", sesion.getToken())
+            .campo("usuario", sesion.getUsuario())
+            .campo("rol", sesion.getRol())
+            .campo("expira", sesion.getExpiraMillis())
+            .cerrarObjeto();
+        responder(intercambio, espacio, 200);
+    }
+    
+    private static String token(com.sun.net.httpserver.HttpExchange intercambio) {
+        String autorizacion = intercambio.getRequestHeaders().getFirst("Authorization");
+        if (autorizacion == null || !autorizacion.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            // EventSource no puede poner cabeceras; solo el flujo acepta el token en la URL.
+            // Los enlaces de descarga llevan un token de descarga, no este
+            java.net.URI uri = intercambio.getRequestURI();
+            return uri.getRawPath().equals("/api/telemetria/flujo") ? parametro(uri.getRawQuery(), "token") : null;
+        }
+        return autorizacion.substring(7).trim();
+    }
+    
+    /**
+     * Lee el cuerpo como objeto JSON plano o, si no empieza con '{', como formulario urlencoded.
+     * @return los campos, o null si el cuerpo excede TAMANO_MAXIMO_CUERPO
+     */
+    private static java.util.Map<String, String> leerFormulario(com.sun.net.httpserver.HttpExchange intercambio)
+            throws java.io.IOException {
+        byte[] cuerpo = intercambio.getRequestBody().readNBytes(TAMANO_MAXIMO_CUERPO + 1);
+        if (cuerpo.length > TAMANO_MAXIMO_CUERPO) {
+            return null;
+        }
+        String texto = new String(cuerpo, java.nio.charset.StandardCharsets.UTF_8);
+        // Se decide por el contenido: hay clientes que mandan JSON con el Content-Type de formulario
+        int primero = saltarEspacios(texto, 0);
+        if (primero == texto.length() || texto.charAt(primero) != '{') {
+            java.util.Map<String, String> campos = new java.util.HashMap<>();
+            for (String par : texto.split("&")) {
+                int igual = par.indexOf('=');
+                if (igual > 0) {
+                    campos.put(java.net.URLDecoder.decode(par.substring(0, igual), java.nio.charset.StandardCharsets.UTF_8),
+                               java.net.URLDecoder.decode(par.substring(igual + 1), java.nio.charset.StandardCharsets.UTF_8));
+                }
+            }
+            return campos;
+        }
+        return leerObjetoPlano(texto);
+    }
+    
+    /**
+     * Analiza un objeto JSON de un solo nivel. Los valores que no son texto
+     * (numeros, true, false) se devuelven tal como vienen; null se omite.
+     */
+    static java.util.Map<String, String> leerObjetoPlano(String texto) {
+        java.util.Map<String, String> campos = new java.util.HashMap<>();
+        int[] posicion = {saltarEspacios(texto, 0)};
+        esperar(texto, posicion, '{');
+        if (texto.charAt(saltarEspacios(texto, posicion[0])) == '}') {
+            return campos;
+        }
+        while (true) {
+            posicion[0] = saltarEspacios(texto, posicion[0]);
+            String nombre = leerTextoJson(texto, posicion);
+            posicion[0] = saltarEspacios(texto, posicion[0]);
+            esperar(texto, posicion, ':');
+            posicion[0] = saltarEspacios(texto, posicion[0]);
+            if (posicion[0] >= texto.length()) {
+                throw new IllegalArgumentException("JSON incompleto");
+            }
+            char inicio = texto.charAt(posicion[0]);
+            if (inicio == '"') {
+                campos.put(nombre, leerTextoJson(texto, posicion));
+            } else if (inicio == '{' || inicio == '[') {
+                throw new IllegalArgumentException("Solo se aceptan objetos JSON planos");
+            } else {
+                int fin = posicion[0];
+                while (fin < texto.length() && ",} \t\r\n".indexOf(texto.charAt(fin)) < 0) {
+                    fin++;
+                }
+                String literal = texto.substring(posicion[0], fin);
+                if (!literal.equals("null")) {
+                    campos.put(nombre, literal);
+                }
+                posicion[0] = fin;
+            }
+            posicion[0] = saltarEspacios(texto, posicion[0]);
+            if (posicion[0] < texto.length() && texto.charAt(posicion[0]) == ',') {
+                posicion[0]++;
+            } else {
+                esperar(texto, posicion, '}');
+                return campos;
+            }
+        }
+    }
+    
+    private static String leerTextoJson(String texto, int[] posicion) {
+        esperar(texto, posicion, '"');
+        StringBuilder resultado = new StringBuilder();
+        int i = posicion[0];
+        while (i < texto.length()) {
+            char c = texto.charAt(i++);
+            if (c == '"') {
+                posicion[0] = i;
+                return resultado.toString();
+            }
+            if (c != '\\') {
+                resultado.append(c);
+                continue;
+            }
+            if (i >= texto.length()) {
+                break;
+            }
+            char escape = texto.charAt(i++);
+            switch (escape) {
+                case 'n': resultado.append('\n'); break;
+                case 't': resultado.append('\t'); break;
+                case 'r': resultado.append('\r'); break;
+                case 'b': resultado.append('\b'); break;
+                case 'f': resultado.append('\f'); break;
+                case 'u':
+                    if (i + 4 > texto.length()) {
+                        throw new IllegalArgumentException("Escape \\u incompleto");
+                    }
+                    resultado.append((char) Integer.parseInt(texto.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default: resultado.append(escape);
+            }
+        }
+        throw new IllegalArgumentException("Texto JSON sin cerrar");
+    }
+    
+    private static void esperar(String texto, int[] posicion, char esperado) {
+        if (posicion[0] >= texto.length() || texto.charAt(posicion[0]) != esperado) {
+            throw new IllegalArgumentException("JSON no valido: se esperaba '" + esperado + "' en la posicion " + posicion[0]);
+        }
+        posicion[0]++;
+    }
+    
+    private static int saltarEspacios(String texto, int posicion) {
+        while (posicion < texto.length() && Character.isWhitespace(texto.charAt(posicion))) {
+            posicion++;
+        }
+        return posicion;
+    }
+    
+    // ====== Respuestas ======
+    
+    /**
+     * Envia el JSON del espacio de trabajo. Los GET exitosos llevan un ETag
+     * calculado con CRC32C sobre el cuerpo (mas su longitud); si coincide con
+     * If-None-Match se responde 304 sin cuerpo.
+     */
+    private void responder(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio, int estado)
+            throws java.io.IOException {
+        EscritorJson json = espacio.json;
+        com.sun.net.httpserver.Headers cabeceras = intercambio.getResponseHeaders();
+        cabeceras.set("Content-Type", "application/json; charset=utf-8");
+        // El cuerpo de la peticion debe quedar leido hasta el final: si no, tras
+        // un 304 (que no lleva cuerpo) HttpServer cierra la conexion keep-alive
+        if (estado == 413) {
+            cabeceras.set("Connection", "close");
+        } else {
+            intercambio.getRequestBody().close();
+        }
+        String metodo = intercambio.getRequestMethod();
+        boolean consulta = metodo.equals("GET") || metodo.equals("HEAD");
+        if (estado == 200 && consulta) {
+            espacio.crc.reset();
+            espacio.crc.update(json.getBytes(), 0, json.getTamano());
+            String etiqueta = "\"" + Long.toHexString(espacio.crc.getValue()) + "-"
+                              + Integer.toHexString(json.getTamano()) + "\"";
+            cabeceras.set("ETag", etiqueta);
+            cabeceras.set("Cache-Control", "no-cache");
+            String siNoCoincide = intercambio.getRequestHeaders().getFirst("If-None-Match");
+            if (siNoCoincide != null && (siNoCoincide.equals("*") || siNoCoincide.contains(etiqueta))) {
+                intercambio.sendResponseHeaders(304, -1);
+                return;
+            }
+        }
+        if (metodo.equals("HEAD")) {
+            intercambio.sendResponseHeaders(estado, -1);
+            return;
+        }
+        intercambio.sendResponseHeaders(estado, json.getTamano());
+        try (java.io.OutputStream salida = intercambio.getResponseBody()) {
+            salida.write(json.getBytes(), 0, json.getTamano());
+        }
+    }
+    
+    private void error(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio,
+                       int estado, String mensaje) throws java.io.IOException {
+        espacio.json.reiniciar();
+        espacio.json.abrirObjeto().campo("error", mensaje).cerrarObjeto();
+        responder(intercambio, espacio, estado);
+    }
+    
+    private void responderError(com.sun.net.httpserver.HttpExchange intercambio, EspacioTrabajo espacio,
+                                int estado, String mensaje) {
+        try {
+            error(intercambio, espacio, estado, mensaje);
+        } catch (java.io.IOException | RuntimeException e) {
+            // La respuesta ya habia empezado o el cliente se fue
+        }
+    }
+    
+    // ====== Parametros ======
+    
+    private static int idDeRuta(String ruta, int desde, int hasta) {
+        try {
+            return Integer.parseInt(ruta, desde, hasta, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static int limite(String consulta) {
+        int limite = entero(consulta, "limite", LIMITE_POR_DEFECTO);
+        if (limite <= 0) {
+            throw new IllegalArgumentException("El limite debe ser positivo");
+        }
+        return Math.min(limite, LIMITE_MAXIMO);
+    }
+    
+    private static int entero(String consulta, String nombre, int porDefecto) {
+        String valor = parametro(consulta, nombre);
+        if (valor == null) {
+            return porDefecto;
+        }
+        try {
+            return Integer.parseInt(valor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parametro " + nombre + " no valido: " + valor);
+        }
+    }
+    
+    private static long largo(String consulta, String nombre, long porDefecto) {
+        String valor = parametro(consulta, nombre);
+        if (valor == null) {
+            return porDefecto;
+        }
+        try {
+            return Long.parseLong(valor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parametro " + nombre + " no valido: " + valor);
+        }
+    }
+    
+    private static double decimal(String consulta, String nombre) {
+        String valor = parametro(consulta, nombre);
+        if (valor == null) {
+            throw new IllegalArgumentException("Falta el parametro " + nombre);
+        }
+        try {
+            return Double.parseDouble(valor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parametro " + nombre + " no valido: " + valor);
+        }
+    }
+    
+    private static EstadoVehiculo estado(String consulta) {
+        String valor = parametro(consulta, "estado");
+        if (valor == null) {
+            return null;
+        }
+        try {
+            return EstadoVehiculo.valueOf(valor);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Estado no valido: " + valor);
+        }
+    }
+    
+    private static String tipo(String consulta) {
+        String valor = parametro(consulta, "tipo");
+        if (valor != null && !valor.equals("van") && !valor.equals("bicicleta") && !valor.equals("moto")) {
+            throw new IllegalArgumentException("Tipo de vehiculo no valido: " + valor);
+        }
+        return valor;
+    }
+    
+    /** Lista separada por comas; la coma puede venir codificada como %2C */
+    private static String[] lista(String consulta, String nombre) {
+        String valor = parametro(consulta, nombre);
+        if (valor == null || valor.isEmpty()) {
+            return null;
+        }
+        return java.net.URLDecoder.decode(valor, java.nio.charset.StandardCharsets.UTF_8).split(",");
+    }
+    
+    private static int[] listaEnteros(String consulta, String nombre) {
+        String[] partes = lista(consulta, nombre);
+        if (partes == null) {
+            return null;
+        }
+        int[] valores = new int[partes.length];
+        for (int i = 0; i < partes.length; i++) {
+            try {
+                valores[i] = Integer.parseInt(partes[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parametro " + nombre + " no valido: " + partes[i]);
+            }
+        }
+        return valores;
+    }
+    
+    private static java.util.EnumSet<EstadoVehiculo> listaEstados(String consulta, String nombre) {
+        String[] partes = lista(consulta, nombre);
+        if (partes == null) {
+            return null;
+        }
+        java.util.EnumSet<EstadoVehiculo> estados = java.util.EnumSet.noneOf(EstadoVehiculo.class);
+        for (String parte : partes) {
+            try {
+                estados.add(EstadoVehiculo.valueOf(parte.trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Estado no valido: " + parte);
+            }
+        }
+        return estados;
+    }
+    
+    private static double[] caja(String consulta, String nombre) {
+        String[] partes = lista(consulta, nombre);
+        if (partes == null) {
+            return null;
+        }
+        if (partes.length != 4) {
+            throw new IllegalArgumentException("La caja debe ser latMin,lonMin,latMax,lonMax");
+        }
+        double[] caja = new double[4];
+        for (int i = 0; i < 4; i++) {
+            try {
+                caja[i] = Double.parseDouble(partes[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parametro " + nombre + " no valido: " + partes[i]);
+            }
+        }
+        return caja;
+    }
+    
+    /**
+     * Busca un parametro en la consulta cruda. Los parametros de la API son
+     * numeros o nombres de enum, asi que no hace falta decodificarlos; las
+     * listas pasan por lista(), que si decodifica.
+     */
+    private static String parametro(String consulta, String nombre) {
+        if (consulta == null) {
+            return null;
+        }
+        int inicio = 0;
+        while (inicio < consulta.length()) {
+            int fin = consulta.indexOf('&', inicio);
+            if (fin < 0) {
+                fin = consulta.length();
+            }
+            if (fin - inicio > nombre.length() && consulta.startsWith(nombre, inicio)
+                    && consulta.charAt(inicio + nombre.length()) == '=') {
+                return consulta.substring(inicio + nombre.length() + 1, fin);
+            }
+            inicio = fin + 1;
+        }
+        return null;
+    }
+    
+    // ====== Espacios de trabajo reciclados ======
+    
+    private EspacioTrabajo tomarEspacio() {
+        EspacioTrabajo espacio = espacios.poll();
+        if (espacio == null) {
+            espacio = new EspacioTrabajo();
+        }
+        espacio.json.reiniciar();
+        return espacio;
+    }
+    
+    private void devolverEspacio(EspacioTrabajo espacio) {
+        if (espacio.json.getCapacidad() <= CAPACIDAD_MAXIMA_RECICLADA) {
+            espacios.offer(espacio);
+        }
+    }
+    
+    /**
+     * Lo que una peticion necesita para armar su respuesta sin crear objetos:
+     * el escritor JSON, un segmento para copiar lecturas y el CRC del ETag.
+     * Se reciclan en una cola, no por hilo, porque con hilos virtuales cada
+     * peticion corre en un hilo nuevo.
+     */
+    private static class EspacioTrabajo {
+        final EscritorJson json = new EscritorJson(CAPACIDAD_INICIAL_JSON);
+        final SegmentoTelemetria lecturas = new SegmentoTelemetria(LIMITE_MAXIMO);
+        final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+    }
+}
@@ -17,12 +17,28 @@ enum EstadoVehiculo {
 // ============================================================================
 
 /**
- * Clase abstracta base para todos los vehiculos
+ * Recibe los cambios de estado de los vehiculos que observa
+ */
+interface ObservadorEstado {
+    /**
+     * @param anterior  estado previo, o null si el vehiculo empieza a observarse
+     * @param nuevo     estado actual, o null si el vehiculo deja de observarse
+     */
+    void estadoCambiado(EstadoVehiculo anterior, EstadoVehiculo nuevo);
+}
+
+/**
+ * Clase abstracta base para todos los vehiculos.
+ * El estado se lee sin candado y se cambia bajo el candado del vehiculo, de
+ * forma atomica para que varios hilos (simulador, despachadores, API) puedan
+ * operar sobre el mismo vehiculo. Cada cambio se avisa al observador dentro
+ * del mismo candado, asi no se pierde ni se cuenta dos veces.
  */
 abstract class Vehiculo {
     protected int id;
-    protected String modelo;
-    protected EstadoVehiculo estado;
+    protected volatile String modelo;
+    protected volatile EstadoVehiculo estado;
+    private ObservadorEstado observador;
     
     public Vehiculo(int id, String modelo) {
         this.id = id;
@@ -50,27 +66,71 @@ abstract class Vehiculo {
         return estado;
     }
     
-    public void setEstado(EstadoVehiculo estado) {
+    public synchronized void setEstado(EstadoVehiculo estado) {
+        EstadoVehiculo anterior = this.estado;
         this.estado = estado;
+        if (observador != null && anterior != estado) {
+            observador.estadoCambiado(anterior, estado);
+        }
+    }
+    
+    /**
+     * Cambia el estado solo si el actual es el esperado.
+     * @return true si este hilo hizo la transicion
+     */
+    public synchronized boolean compararYCambiarEstado(EstadoVehiculo esperado, EstadoVehiculo nuevo) {
+        if (estado != esperado) {
+            return false;
+        }
+        setEstado(nuevo);
+        return true;
+    }
+    
+    /**
+     * Reemplaza al observador. El anterior recibe la salida del estado actual
+     * y el nuevo su entrada, en el mismo candado que los cambios de estado.
+     * @param observador  el nuevo observador, o null para dejar de avisar
+     */
+    public synchronized void observar(ObservadorEstado observador) {
+        if (this.observador != null) {
+            this.observador.estadoCambiado(estado, null);
+        }
+        this.observador = observador;
+        if (observador != null) {
+            observador.estadoCambiado(null, estado);
+        }
     }
     
     /**
      * Metodo abstracto para asignar ruta al vehiculo
+     * @return true si el vehiculo estaba disponible y quedo en ruta
      */
-    public abstract void asignarRuta(Ruta ruta);
+    public abstract boolean asignarRuta(Ruta ruta);
 }
 
 /**
  * Clase abstracta para vehiculos electricos
  */
 abstract class VehiculoElectrico extends Vehiculo {
-    protected float capacidadBateria;
-    protected float nivelBateria;
+    private static final java.util.concurrent.atomic.AtomicIntegerFieldUpdater<VehiculoElectrico> NIVEL_BATERIA =
+        java.util.concurrent.atomic.AtomicIntegerFieldUpdater.newUpdater(VehiculoElectrico.class, "nivelBateriaBits");
+    private static final java.util.concurrent.atomic.AtomicIntegerFieldUpdater<VehiculoElectrico> CAMBIO_PENDIENTE =
+        java.util.concurrent.atomic.AtomicIntegerFieldUpdater.newUpdater(VehiculoElectrico.class, "cambioPendiente");
+    private static final java.util.concurrent.atomic.AtomicIntegerFieldUpdater<VehiculoElectrico> LECTURA_SIN_DIFUNDIR =
+        java.util.concurrent.atomic.AtomicIntegerFieldUpdater.newUpdater(VehiculoElectrico.class, "lecturaSinDifundir");
+    
+    protected volatile float capacidadBateria;
+    // Nivel de bateria guardado como bits de float para poder actualizarlo con CAS
+    private volatile int nivelBateriaBits;
+    // 1 mientras el desgaste de bateria aun no se anota en el diario de la flota
+    private volatile int cambioPendiente;
+    // 1 mientras la ultima lectura aun no se reparte a los suscriptores en vivo
+    private volatile int lecturaSinDifundir;
     
     public VehiculoElectrico(int id, String modelo, float capacidadBateria) {
         super(id, modelo);
         this.capacidadBateria = capacidadBateria;
-        this.nivelBateria = 100.0f; // Inicia con bateria completa
+        this.nivelBateriaBits = Float.floatToRawIntBits(100.0f); // Inicia con bateria completa
     }
     
     public float getCapacidadBateria() {
@@ -82,15 +142,60 @@ abstract class VehiculoElectrico extends Vehiculo {
     }
     
     public float getNivelBateria() {
-        return nivelBateria;
+        return Float.intBitsToFloat(nivelBateriaBits);
     }
     
     public void setNivelBateria(float nivelBateria) {
-        this.nivelBateria = Math.max(0, Math.min(100, nivelBateria));
+        this.nivelBateriaBits = Float.floatToRawIntBits(Math.max(0, Math.min(100, nivelBateria)));
+    }
+    
+    /**
+     * Resta el desgaste al nivel actual sin perder actualizaciones concurrentes
+     * @return nivel resultante
+     */
+    public float descontarBateria(float desgaste) {
+        while (true) {
+            int actual = nivelBateriaBits;
+            float nuevo = Math.max(0, Math.min(100, Float.intBitsToFloat(actual) - desgaste));
+            if (NIVEL_BATERIA.compareAndSet(this, actual, Float.floatToRawIntBits(nuevo))) {
+                return nuevo;
+            }
+        }
+    }
+    
+    /**
+     * Marca que el nivel de bateria cambio y aun no esta en el diario.
+     * @return true solo para el hilo que hizo la marca (el que debe encolarlo)
+     */
+    boolean marcarCambioPendiente() {
+        return cambioPendiente == 0 && CAMBIO_PENDIENTE.compareAndSet(this, 0, 1);
+    }
+    
+    void limpiarCambioPendiente() {
+        cambioPendiente = 0;
     }
     
     /**
-     * Metodo abstracto para cargar el vehiculo
+     * Marca que hay una lectura nueva por difundir.
+     * @return true solo para el hilo que hizo la marca (el que debe encolarlo)
+     */
+    boolean marcarLecturaSinDifundir() {
+        return lecturaSinDifundir == 0 && LECTURA_SIN_DIFUNDIR.compareAndSet(this, 0, 1);
+    }
+    
+    void limpiarLecturaSinDifundir() {
+        lecturaSinDifundir = 0;
+    }
+    
+    /**
+     * Tipo con el que se crea el vehiculo en GestorFlota ("van", "bicicleta", "moto")
+     */
+    public abstract String getTipo();
+    
+    /**
+     * Metodo abstracto para cargar el vehiculo al instante; con estaciones de
+     * carga registradas GestorFlota usa PlanificadorCarga en su lugar. Cambia
+     * estado y bateria en el candado del vehiculo, asi una foto no lo ve a medias.
      */
     public abstract void cargar();
 }
@@ -105,20 +210,26 @@ class Van extends VehiculoElectrico {
     }
     
     @Override
-    public void asignarRuta(Ruta ruta) {
-        if (this.estado == EstadoVehiculo.DISPONIBLE) {
-            this.estado = EstadoVehiculo.EN_RUTA;
-            System.out.println("Van #" + id + " asignada a ruta: " + ruta.getId());
+    public String getTipo() {
+        return "van";
+    }
+    
+    @Override
+    public boolean asignarRuta(Ruta ruta) {
+        if (compararYCambiarEstado(EstadoVehiculo.DISPONIBLE, EstadoVehiculo.EN_RUTA)) {
+            RegistroAsincrono.info("Van #{} asignada a ruta: {}", id, ruta.getId());
+            return true;
         } else {
-            System.out.println("Van #" + id + " no esta disponible. Estado actual: " + estado);
+            RegistroAsincrono.aviso("Van #{} no esta disponible. Estado actual: {}", id, estado);
+            return false;
         }
     }
     
     @Override
-    public void cargar() {
-        this.estado = EstadoVehiculo.CARGANDO;
-        this.nivelBateria = 100.0f;
-        System.out.println("Van #" + id + " cargandose...");
+    public synchronized void cargar() {
+        setEstado(EstadoVehiculo.CARGANDO);
+        setNivelBateria(100.0f);
+        RegistroAsincrono.info("Van #{} cargandose...", id);
     }
 }
 
@@ -132,20 +243,26 @@ class BicicletaElectrica extends VehiculoElectrico {
     }
     
     @Override
-    public void asignarRuta(Ruta ruta) {
-        if (this.estado == EstadoVehiculo.DISPONIBLE) {
-            this.estado = EstadoVehiculo.EN_RUTA;
-            System.out.println("Bicicleta #" + id + " asignada a ruta: " + ruta.getId());
+    public String getTipo() {
+        return "bicicleta";
+    }
+    
+    @Override
+    public boolean asignarRuta(Ruta ruta) {
+        if (compararYCambiarEstado(EstadoVehiculo.DISPONIBLE, EstadoVehiculo.EN_RUTA)) {
+            RegistroAsincrono.info("Bicicleta #{} asignada a ruta: {}", id, ruta.getId());
+            return true;
         } else {
-            System.out.println("Bicicleta #" + id + " no esta disponible. Estado actual: " + estado);
+            RegistroAsincrono.aviso("Bicicleta #{} no esta disponible. Estado actual: {}", id, estado);
+            return false;
         }
     }
     
     @Override
-    public void cargar() {
-        this.estado = EstadoVehiculo.CARGANDO;
-        this.nivelBateria = 100.0f;
-        System.out.println("Bicicleta #" + id + " cargandose...");
+    public synchronized void cargar() {
+        setEstado(EstadoVehiculo.CARGANDO);
+        setNivelBateria(100.0f);
+        RegistroAsincrono.info("Bicicleta #{} cargandose...", id);
     }
 }
 
@@ -159,25 +276,33 @@ class MotoElectrica extends VehiculoElectrico {
     }
     
     @Override
-    public void asignarRuta(Ruta ruta) {
-        if (this.estado == EstadoVehiculo.DISPONIBLE) {
-            this.estado = EstadoVehiculo.EN_RUTA;
-            System.out.println("Moto #" + id + " asignada a ruta: " + ruta.getId());
+    public String getTipo() {
+        return "moto";
+    }
+    
+    @Override
+    public boolean asignarRuta(Ruta ruta) {
+        if (compararYCambiarEstado(EstadoVehiculo.DISPONIBLE, EstadoVehiculo.EN_RUTA)) {
+            RegistroAsincrono.info("Moto #{} asignada a ruta: {}", id, ruta.getId());
+            return true;
         } else {
-            System.out.println("Moto #" + id + " no esta disponible. Estado actual: " + estado);
+            RegistroAsincrono.aviso("Moto #{} no esta disponible. Estado actual: {}", id, estado);
+            return false;
         }
     }
     
     @Override
-    public void cargar() {
-        this.estado = EstadoVehiculo.CARGANDO;
-        this.nivelBateria = 100.0f;
-        System.out.println("Moto #" + id + " cargandose...");
+    public synchronized void cargar() {
+        setEstado(EstadoVehiculo.CARGANDO);
+        setNivelBateria(100.0f);
+        RegistroAsincrono.info("Moto #{} cargandose...", id);
     }
 }
 
 /**
- * Clase para almacenar datos de telemetria
+ * Clase para almacenar datos de telemetria.
+ * El historial se guarda en columnas primitivas (ver SegmentoTelemetria);
+ * los objetos Telemetria solo se crean cuando alguien los pide.
  */
 class Telemetria {
     private int id;
@@ -185,18 +310,42 @@ class Telemetria {
     private float velocidad;
     private float temperaturaMotor;
     private String ubicacionGps;
+    private double latitud;
+    private double longitud;
     private float nivelBateria;
     private int vehiculoId;
     
     public Telemetria(int id, float velocidad, float temperaturaMotor, 
                       String ubicacionGps, float nivelBateria, int vehiculoId) {
+        this(id, velocidad, temperaturaMotor, ubicacionGps, nivelBateria, vehiculoId,
+             java.time.Clock.systemDefaultZone());
+    }
+    
+    /**
+     * @param reloj  da la fecha y hora de la lectura (el de la flota, o un RelojVirtual en simulacion)
+     */
+    public Telemetria(int id, float velocidad, float temperaturaMotor,
+                      String ubicacionGps, float nivelBateria, int vehiculoId, java.time.Clock reloj) {
         this.id = id;
-        this.fechaHora = java.time.LocalDateTime.now();
+        this.fechaHora = java.time.LocalDateTime.now(reloj);
         this.velocidad = velocidad;
         this.temperaturaMotor = temperaturaMotor;
-        this.ubicacionGps = ubicacionGps;
         this.nivelBateria = nivelBateria;
         this.vehiculoId = vehiculoId;
+        setUbicacionGps(ubicacionGps);
+    }
+    
+    public Telemetria(int id, java.time.LocalDateTime fechaHora, float velocidad, float temperaturaMotor,
+                      double latitud, double longitud, float nivelBateria, int vehiculoId) {
+        this.id = id;
+        this.fechaHora = fechaHora;
+        this.velocidad = velocidad;
+        this.temperaturaMotor = temperaturaMotor;
+        this.latitud = latitud;
+        this.longitud = longitud;
+        this.nivelBateria = nivelBateria;
+        this.vehiculoId = vehiculoId;
+        this.ubicacionGps = null; // Se formatea solo si se consulta
     }
     
     // Getters y Setters
@@ -212,8 +361,20 @@ class Telemetria {
     public float getTemperaturaMotor() { return temperaturaMotor; }
     public void setTemperaturaMotor(float temperaturaMotor) { this.temperaturaMotor = temperaturaMotor; }
     
-    public String getUbicacionGps() { return ubicacionGps; }
-    public void setUbicacionGps(String ubicacionGps) { this.ubicacionGps = ubicacionGps; }
+    public String getUbicacionGps() {
+        if (ubicacionGps == null) {
+            ubicacionGps = formatearGps(latitud, longitud);
+        }
+        return ubicacionGps;
+    }
+    public void setUbicacionGps(String ubicacionGps) {
+        this.ubicacionGps = ubicacionGps;
+        this.latitud = parsearLatitud(ubicacionGps);
+        this.longitud = parsearLongitud(ubicacionGps);
+    }
+    
+    public double getLatitud() { return latitud; }
+    public double getLongitud() { return longitud; }
     
     public float getNivelBateria() { return nivelBateria; }
     public void setNivelBateria(float nivelBateria) { this.nivelBateria = nivelBateria; }
@@ -221,10 +382,49 @@ class Telemetria {
     public int getVehiculoId() { return vehiculoId; }
     public void setVehiculoId(int vehiculoId) { this.vehiculoId = vehiculoId; }
     
+    // ====== Conversion de ubicacion "lat,lon" ======
+    
+    public static String formatearGps(double latitud, double longitud) {
+        if (Double.isNaN(latitud) || Double.isNaN(longitud)) {
+            return "";
+        }
+        return String.format(java.util.Locale.ROOT, "%.6f,%.6f", latitud, longitud);
+    }
+    
+    /**
+     * Devuelve la latitud de una cadena "lat,lon", o NaN si no tiene ese formato
+     */
+    public static double parsearLatitud(String gps) {
+        int coma = gps != null ? gps.indexOf(',') : -1;
+        if (coma < 0) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(gps.substring(0, coma).trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+    
+    /**
+     * Devuelve la longitud de una cadena "lat,lon", o NaN si no tiene ese formato
+     */
+    public static double parsearLongitud(String gps) {
+        int coma = gps != null ? gps.indexOf(',') : -1;
+        if (coma < 0) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(gps.substring(coma + 1).trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+    
     @Override
     public String toString() {
         return String.format("Telemetria[id=%d, vehiculo=%d, bateria=%.1f%%, temp=%.1f c, vel=%.1fkm/h, gps=%s]",
-                           id, vehiculoId, nivelBateria, temperaturaMotor, velocidad, ubicacionGps);
+                           id, vehiculoId, nivelBateria, temperaturaMotor, velocidad, getUbicacionGps());
     }
 }
 
@@ -235,7 +435,14 @@ class Entrega {
     private int id;
     private String direccion;
     private java.time.LocalDateTime horaEstimada;
+    public static final String COMPLETADA = "completada";
+    
     private String estado; // "pendiente", "completada", "fallida"
+    // Ubicacion para secuenciar la ruta; NaN si solo se conoce la direccion
+    private double latitud = Double.NaN;
+    private double longitud = Double.NaN;
+    // Posicion en el orden de visita (1 = primera); 0 mientras la ruta no se secuencia
+    private int secuencia;
     
     public Entrega(int id, String direccion, java.time.LocalDateTime horaEstimada) {
         this.id = id;
@@ -244,6 +451,12 @@ class Entrega {
         this.estado = "pendiente";
     }
     
+    public Entrega(int id, String direccion, java.time.LocalDateTime horaEstimada, double latitud, double longitud) {
+        this(id, direccion, horaEstimada);
+        this.latitud = latitud;
+        this.longitud = longitud;
+    }
+    
     public int getId() { return id; }
     public void setId(int id) { this.id = id; }
     
@@ -255,24 +468,46 @@ class Entrega {
     
     public String getEstado() { return estado; }
     public void setEstado(String estado) { this.estado = estado; }
+    
+    public double getLatitud() { return latitud; }
+    public double getLongitud() { return longitud; }
+    public void setUbicacion(double latitud, double longitud) {
+        this.latitud = latitud;
+        this.longitud = longitud;
+    }
+    public boolean tieneUbicacion() { return !Double.isNaN(latitud) && !Double.isNaN(longitud); }
+    
+    public int getSecuencia() { return secuencia; }
+    public void setSecuencia(int secuencia) { this.secuencia = secuencia; }
+    
+    /** Ni completada ni fallida: todavia hay que visitarla */
+    public boolean estaPendiente() {
+        String actual = estado;
+        return !COMPLETADA.equals(actual) && !"fallida".equals(actual);
+    }
 }
 
 /**
  * Clase para representar una ruta de entregas
  */
 class Ruta {
+    private static final java.util.concurrent.atomic.AtomicIntegerFieldUpdater<Ruta> VEHICULO =
+        java.util.concurrent.atomic.AtomicIntegerFieldUpdater.newUpdater(Ruta.class, "vehiculoId");
+    
     private int id;
     private String origen;
     private String destino;
     private float distancia;
     private java.util.List<Entrega> entregas;
+    // Vehiculo asignado; 0 mientras la ruta espera despacho
+    private volatile int vehiculoId;
     
     public Ruta(int id, String origen, String destino, float distancia) {
         this.id = id;
         this.origen = origen;
         this.destino = destino;
         this.distancia = distancia;
-        this.entregas = new java.util.ArrayList<>();
+        this.entregas = new java.util.concurrent.CopyOnWriteArrayList<>();
     }
     
     public int getId() { return id; }
@@ -289,252 +524,2337 @@ class Ruta {
     
     public java.util.List<Entrega> getEntregas() { return entregas; }
     
+    public int getVehiculoId() { return vehiculoId; }
+    public void setVehiculoId(int vehiculoId) { this.vehiculoId = vehiculoId; }
+    
+    /**
+     * Asigna el vehiculo solo si la ruta no tiene otro.
+     * @return true si este hilo hizo la asignacion
+     */
+    public boolean reservarPara(int vehiculoId) {
+        return VEHICULO.compareAndSet(this, 0, vehiculoId);
+    }
+    
+    /**
+     * Deshace reservarPara, salvo que otro ya haya cambiado el vehiculo
+     */
+    public boolean liberar(int vehiculoId) {
+        return VEHICULO.compareAndSet(this, vehiculoId, 0);
+    }
+    
     public void agregarEntrega(Entrega entrega) {
         this.entregas.add(entrega);
     }
+    
+    /**
+     * Deja la lista en el orden de visita: primero las secuenciadas por su
+     * secuencia y despues las demas en el orden en que se agregaron
+     */
+    public void ordenarEntregas() {
+        entregas.sort(java.util.Comparator.comparingInt(
+            entrega -> entrega.getSecuencia() > 0 ? entrega.getSecuencia() : Integer.MAX_VALUE));
+    }
 }
 
 // ============================================================================
-// GESTORES Y SERVICIOS
+// ALMACENAMIENTO DE TELEMETRIA
 // ============================================================================
 
 /**
- * Gestor principal de la flota de vehiculos
+ * Bloque columnar de lecturas de telemetria. Cada campo se guarda en un
+ * arreglo primitivo, asi una lectura ocupa BYTES_POR_LECTURA bytes de heap
+ * en lugar de un objeto Telemetria con su LocalDateTime y su String de GPS.
  */
-class GestorFlota {
-    private java.util.Map<Integer, VehiculoElectrico> vehiculos;
-    private java.util.Map<Integer, Ruta> rutas;
-    private java.util.List<Telemetria> historialTelemetria;
-    private int contadorVehiculos;
-    private int contadorRutas;
-    private int contadorTelemetria;
-    
-    public GestorFlota() {
-        this.vehiculos = new java.util.HashMap<>();
-        this.rutas = new java.util.HashMap<>();
-        this.historialTelemetria = new java.util.ArrayList<>();
-        this.contadorVehiculos = 1;
-        this.contadorRutas = 1;
-        this.contadorTelemetria = 1;
+class SegmentoTelemetria {
+    /** id + tiempo + vehiculo + velocidad + temperatura + bateria + lat + lon */
+    public static final int BYTES_POR_LECTURA = 4 + 8 + 4 + 4 + 4 + 4 + 8 + 8;
+    
+    private int[] ids;
+    private long[] tiempos;
+    private int[] vehiculoIds;
+    private float[] velocidades;
+    private float[] temperaturas;
+    private float[] baterias;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int tamano;
+    
+    public SegmentoTelemetria(int capacidad) {
+        if (capacidad <= 0) {
+            throw new IllegalArgumentException("Capacidad no valida: " + capacidad);
+        }
+        this.ids = new int[capacidad];
+        this.tiempos = new long[capacidad];
+        this.vehiculoIds = new int[capacidad];
+        this.velocidades = new float[capacidad];
+        this.temperaturas = new float[capacidad];
+        this.baterias = new float[capacidad];
+        this.latitudes = new double[capacidad];
+        this.longitudes = new double[capacidad];
+        this.tamano = 0;
     }
     
-    // ====== CRUD de Vehiculos ======
-    
-    public VehiculoElectrico crearVehiculo(String tipo, String modelo, float capacidadBateria) {
-        VehiculoElectrico vehiculo;
-        int id = contadorVehiculos++;
-        
-        switch (tipo.toLowerCase()) {
-            case "van":
-                vehiculo = new Van(id, modelo, capacidadBateria);
-                break;
-            case "bicicleta":
-                vehiculo = new BicicletaElectrica(id, modelo, capacidadBateria);
-                break;
-            case "moto":
-                vehiculo = new MotoElectrica(id, modelo, capacidadBateria);
-                break;
-            default:
-                throw new IllegalArgumentException("Tipo de vehiculo no valido: " + tipo);
+    /**
+     * Agrega una lectura al final del segmento.
+     * @return false si el segmento ya esta lleno
+     */
+    public boolean agregar(int id, long tiempoMillis, int vehiculoId, float velocidad,
+                           float temperaturaMotor, float nivelBateria, double latitud, double longitud) {
+        if (tamano == ids.length) {
+            return false;
         }
-        
-        vehiculos.put(id, vehiculo);
-        System.out.println("Vehiculo creado: " + tipo + " #" + id);
-        return vehiculo;
+        escribir(tamano, id, tiempoMillis, vehiculoId, velocidad, temperaturaMotor, nivelBateria, latitud, longitud);
+        return true;
     }
     
-    public VehiculoElectrico consultarVehiculo(int id) {
-        return vehiculos.get(id);
+    /**
+     * Escribe una lectura en una posicion concreta (usado por los buffers circulares)
+     */
+    public void escribir(int posicion, int id, long tiempoMillis, int vehiculoId, float velocidad,
+                         float temperaturaMotor, float nivelBateria, double latitud, double longitud) {
+        ids[posicion] = id;
+        tiempos[posicion] = tiempoMillis;
+        vehiculoIds[posicion] = vehiculoId;
+        velocidades[posicion] = velocidad;
+        temperaturas[posicion] = temperaturaMotor;
+        baterias[posicion] = nivelBateria;
+        latitudes[posicion] = latitud;
+        longitudes[posicion] = longitud;
+        if (posicion >= tamano) {
+            tamano = posicion + 1;
+        }
     }
     
-    public java.util.Collection<VehiculoElectrico> listarVehiculos() {
-        return vehiculos.values();
+    /**
+     * Copia un rango de lecturas de este segmento a otro
+     */
+    public void copiarA(int desde, SegmentoTelemetria destino, int posicionDestino, int cantidad) {
+        System.arraycopy(ids, desde, destino.ids, posicionDestino, cantidad);
+        System.arraycopy(tiempos, desde, destino.tiempos, posicionDestino, cantidad);
+        System.arraycopy(vehiculoIds, desde, destino.vehiculoIds, posicionDestino, cantidad);
+        System.arraycopy(velocidades, desde, destino.velocidades, posicionDestino, cantidad);
+        System.arraycopy(temperaturas, desde, destino.temperaturas, posicionDestino, cantidad);
+        System.arraycopy(baterias, desde, destino.baterias, posicionDestino, cantidad);
+        System.arraycopy(latitudes, desde, destino.latitudes, posicionDestino, cantidad);
+        System.arraycopy(longitudes, desde, destino.longitudes, posicionDestino, cantidad);
+        destino.tamano = Math.max(destino.tamano, posicionDestino + cantidad);
     }
     
-    public boolean actualizarVehiculo(int id, String nuevoModelo) {
-        VehiculoElectrico vehiculo = vehiculos.get(id);
-        if (vehiculo != null) {
-            vehiculo.setModelo(nuevoModelo);
-            System.out.println("Vehiculo #" + id + " actualizado");
-            return true;
-        }
-        return false;
+    /**
+     * Crea el objeto Telemetria de la lectura indicada
+     */
+    public Telemetria materializar(int posicion) {
+        java.time.LocalDateTime fechaHora = java.time.LocalDateTime.ofInstant(
+            java.time.Instant.ofEpochMilli(tiempos[posicion]), java.time.ZoneId.systemDefault());
+        return new Telemetria(ids[posicion], fechaHora, velocidades[posicion], temperaturas[posicion],
+                              latitudes[posicion], longitudes[posicion], baterias[posicion], vehiculoIds[posicion]);
     }
     
-    public boolean eliminarVehiculo(int id) {
-        if (vehiculos.remove(id) != null) {
-            System.out.println("Vehiculo #" + id + " eliminado");
-            return true;
-        }
-        return false;
+    public void limpiar() {
+        tamano = 0;
     }
     
-    // ====== Gestion de Telemetria ======
-    
-    public Telemetria registrarTelemetria(int vehiculoId, float velocidad, 
-                                         float temperaturaMotor, String ubicacionGps) {
-        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
-        if (vehiculo == null) {
-            throw new IllegalArgumentException("Vehiculo no encontrado: " + vehiculoId);
-        }
-        
-        Telemetria telemetria = new Telemetria(
-            contadorTelemetria++,
-            velocidad,
-            temperaturaMotor,
-            ubicacionGps,
-            vehiculo.getNivelBateria(),
-            vehiculoId
-        );
-        
-        historialTelemetria.add(telemetria);
-        
-        // Simular desgaste de bateria basado en velocidad
-        if (vehiculo.getEstado() == EstadoVehiculo.EN_RUTA) {
-            float desgaste = velocidad * 0.01f;
-            vehiculo.setNivelBateria(vehiculo.getNivelBateria() - desgaste);
-        }
-        
-        return telemetria;
+    public int getTamano() { return tamano; }
+    public int getCapacidad() { return ids.length; }
+    public boolean estaLleno() { return tamano == ids.length; }
+    
+    public int getId(int i) { return ids[i]; }
+    public long getTiempo(int i) { return tiempos[i]; }
+    public int getVehiculoId(int i) { return vehiculoIds[i]; }
+    public float getVelocidad(int i) { return velocidades[i]; }
+    public float getTemperaturaMotor(int i) { return temperaturas[i]; }
+    public float getNivelBateria(int i) { return baterias[i]; }
+    public double getLatitud(int i) { return latitudes[i]; }
+    public double getLongitud(int i) { return longitudes[i]; }
+}
+
+/**
+ * Historial acotado de la telemetria de un solo vehiculo, en tres niveles.
+ * Las lecturas crudas van a un buffer circular; cuando una queda fuera de
+ * la ventana cruda de la retencion (o el buffer se llena) sale del buffer y
+ * se suma a su intervalo de un minuto y a su intervalo de una hora, que a
+ * su vez descartan los mas antiguos al llegar a su capacidad. Asi la
+ * memoria por vehiculo tiene tope sin importar cuanto corra el proceso.
+ * Cada buffer tiene su propio candado, asi vehiculos distintos no compiten.
+ */
+class BufferTelemetriaVehiculo {
+    private static final int CAPACIDAD_INICIAL = 16;
+    
+    private SegmentoTelemetria lecturas;
+    private int capacidad;
+    private int inicio;
+    private int tamano;
+    private int posicionUltima;
+    private RetencionTelemetria retencion;
+    private final java.time.Clock reloj;
+    // La lectura mas reciente, sin pasar de la hora del reloj mas ADELANTO_MAXIMO_MS
+    private long tiempoMasReciente;
+    // Se crean con la primera lectura que sale del nivel crudo
+    private SerieAgregada minutos;
+    private SerieAgregada horas;
+    
+    public BufferTelemetriaVehiculo(int capacidad) {
+        this(capacidad, RetencionTelemetria.porDefecto());
     }
     
-    public java.util.List<Telemetria> consultarHistorialTelemetria(int vehiculoId) {
-        java.util.List<Telemetria> historial = new java.util.ArrayList<>();
-        for (Telemetria t : historialTelemetria) {
-            if (t.getVehiculoId() == vehiculoId) {
-                historial.add(t);
-            }
-        }
-        return historial;
+    public BufferTelemetriaVehiculo(int capacidad, RetencionTelemetria retencion) {
+        this(capacidad, retencion, java.time.Clock.systemUTC());
     }
     
-    public Telemetria obtenerUltimaTelemetria(int vehiculoId) {
-        Telemetria ultima = null;
-        for (Telemetria t : historialTelemetria) {
-            if (t.getVehiculoId() == vehiculoId) {
-                ultima = t;
-            }
+    /**
+     * @param reloj  acota la edad de las lecturas: una lectura con la hora
+     *               adelantada no manda las demas a los intervalos
+     */
+    public BufferTelemetriaVehiculo(int capacidad, RetencionTelemetria retencion, java.time.Clock reloj) {
+        if (capacidad <= 0) {
+            throw new IllegalArgumentException("Capacidad no valida: " + capacidad);
         }
-        return ultima;
+        // El segmento crece bajo demanda hasta la capacidad maxima
+        this.lecturas = new SegmentoTelemetria(Math.min(capacidad, CAPACIDAD_INICIAL));
+        this.capacidad = capacidad;
+        this.inicio = 0;
+        this.tamano = 0;
+        this.posicionUltima = -1;
+        this.retencion = retencion;
+        this.reloj = reloj;
+        this.tiempoMasReciente = Long.MIN_VALUE;
     }
     
-    // ====== Gestion de Rutas ======
+    /**
+     * @return km recorridos desde la lectura anterior (ver recorridoKm)
+     */
+    public synchronized double agregar(int id, long tiempoMillis, int vehiculoId, float velocidad,
+                                       float temperaturaMotor, float nivelBateria, double latitud, double longitud) {
+        return escribir(id, tiempoMillis, vehiculoId, velocidad, temperaturaMotor, nivelBateria, latitud, longitud,
+                        reloj.millis() + GestorFlota.ADELANTO_MAXIMO_MS);
+    }
     
-    public Ruta crearRuta(String origen, String destino, float distancia) {
-        int id = contadorRutas++;
-        Ruta ruta = new Ruta(id, origen, destino, distancia);
-        rutas.put(id, ruta);
-        System.out.println("Ruta creada #" + id + ": " + origen + " -> " + destino);
-        return ruta;
+    /**
+     * Agrega de una sola vez las lecturas del lote indicadas en orden[desde, hasta),
+     * tomando el candado del buffer una sola vez.
+     * @param primerId    id de la primera lectura; las demas son consecutivas
+     * @param baterias    nivel de bateria de cada lectura, indexado como el lote
+     * @return km recorridos en total por las lecturas agregadas
+     */
+    public synchronized double agregarLote(LoteTelemetria lote, int[] orden, int desde, int hasta,
+                                           int primerId, float[] baterias) {
+        double recorrido = 0;
+        long tiempoMaximo = reloj.millis() + GestorFlota.ADELANTO_MAXIMO_MS;
+        for (int k = desde; k < hasta; k++) {
+            int i = orden[k];
+            recorrido += escribir(primerId + (k - desde), lote.getTiempo(i), lote.getVehiculoId(i), lote.getVelocidad(i),
+                                  lote.getTemperaturaMotor(i), baterias[i], lote.getLatitud(i), lote.getLongitud(i),
+                                  tiempoMaximo);
+        }
+        return recorrido;
     }
     
-    public boolean asignarRutaAVehiculo(int vehiculoId, int rutaId) {
-        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
-        Ruta ruta = rutas.get(rutaId);
-        
-        if (vehiculo == null || ruta == null) {
-            System.out.println("Vehiculo o ruta no encontrados");
-            return false;
+    /**
+     * @param tiempoMaximo  hora mas alta que cuenta para la ventana cruda
+     */
+    private double escribir(int id, long tiempoMillis, int vehiculoId, float velocidad,
+                            float temperaturaMotor, float nivelBateria, double latitud, double longitud,
+                            long tiempoMaximo) {
+        double recorrido = 0;
+        if (posicionUltima >= 0) {
+            int previa = posicionUltima;
+            recorrido = recorridoKm(tiempoMillis - lecturas.getTiempo(previa), lecturas.getVelocidad(previa),
+                                    lecturas.getLatitud(previa), lecturas.getLongitud(previa),
+                                    velocidad, latitud, longitud);
         }
-        
-        if (vehiculo.getEstado() != EstadoVehiculo.DISPONIBLE) {
-            System.out.println("Vehiculo no disponible");
-            return false;
+        int longitudActual = lecturas.getCapacidad();
+        if (tamano == longitudActual && tamano < capacidad) {
+            crecer();
+            longitudActual = lecturas.getCapacidad();
+        }
+        int posicion;
+        if (tamano < longitudActual) {
+            posicion = (inicio + tamano) % longitudActual;
+            tamano++;
+        } else {
+            // Buffer lleno: la lectura mas antigua pasa a los intervalos
+            resumir(inicio);
+            posicion = inicio;
+            inicio = (inicio + 1) % longitudActual;
         }
+        lecturas.escribir(posicion, id, tiempoMillis, vehiculoId, velocidad,
+                          temperaturaMotor, nivelBateria, latitud, longitud);
+        posicionUltima = posicion;
         
-        vehiculo.asignarRuta(ruta);
-        return true;
+        // Las crudas que quedaron fuera de la ventana pasan a los intervalos; la ultima siempre se queda
+        tiempoMasReciente = Math.max(tiempoMasReciente, Math.min(tiempoMillis, tiempoMaximo));
+        long limite = tiempoMasReciente - retencion.getVentanaCrudaMillis();
+        while (tamano > 1 && inicio != posicionUltima && lecturas.getTiempo(inicio) < limite) {
+            resumir(inicio);
+            inicio = (inicio + 1) % longitudActual;
+            tamano--;
+        }
+        return recorrido;
     }
     
-    // ====== Gestion de Estados ======
-    
-    public boolean cambiarEstadoVehiculo(int vehiculoId, EstadoVehiculo nuevoEstado) {
-        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
-        if (vehiculo != null) {
-            vehiculo.setEstado(nuevoEstado);
-            System.out.println("Vehiculo #" + vehiculoId + " cambio a estado: " + nuevoEstado);
-            return true;
+    private void resumir(int posicion) {
+        if (minutos == null) {
+            minutos = new SerieAgregada(NivelHistorial.MINUTO.getAnchoMillis(), retencion.getMinutosConservados());
+            horas = new SerieAgregada(NivelHistorial.HORA.getAnchoMillis(), retencion.getHorasConservadas());
         }
-        return false;
+        long tiempo = lecturas.getTiempo(posicion);
+        float velocidad = lecturas.getVelocidad(posicion);
+        float temperatura = lecturas.getTemperaturaMotor(posicion);
+        float bateria = lecturas.getNivelBateria(posicion);
+        minutos.sumar(tiempo, velocidad, temperatura, bateria);
+        horas.sumar(tiempo, velocidad, temperatura, bateria);
     }
     
-    public java.util.List<VehiculoElectrico> obtenerVehiculosDisponibles() {
-        java.util.List<VehiculoElectrico> disponibles = new java.util.ArrayList<>();
-        for (VehiculoElectrico v : vehiculos.values()) {
-            if (v.getEstado() == EstadoVehiculo.DISPONIBLE) {
-                disponibles.add(v);
-            }
+    /**
+     * Distancia entre la lectura previa y la nueva, con la aproximacion
+     * equirectangular (sobra a escala de ciudad). Un salto de GPS no suma mas
+     * de lo que permite la mayor de las dos velocidades reportadas en el
+     * tiempo transcurrido; detenido o con lecturas fuera de orden no suma nada.
+     * Los informes (RecorridosFlota) calculan con esta misma funcion.
+     */
+    static double recorridoKm(long transcurrido, float velocidadPrevia, double latitudPrevia, double longitudPrevia,
+                              float velocidad, double latitud, double longitud) {
+        float velocidadMaxima = Math.max(velocidad, velocidadPrevia);
+        if (transcurrido <= 0 || velocidadMaxima <= 0) {
+            return 0;
         }
-        return disponibles;
+        double dy = Math.toRadians(latitud - latitudPrevia);
+        double dx = Math.toRadians(longitud - longitudPrevia)
+                  * Math.cos(Math.toRadians((latitud + latitudPrevia) / 2));
+        double km = IndiceEspacial.RADIO_TIERRA_KM * Math.sqrt(dx * dx + dy * dy);
+        if (Double.isNaN(km)) {
+            return 0;
+        }
+        return Math.min(km, velocidadMaxima * transcurrido / 3_600_000.0);
     }
     
-    // ====== Estadisticas ======
+    private void crecer() {
+        int longitudActual = lecturas.getCapacidad();
+        SegmentoTelemetria nuevo = new SegmentoTelemetria((int) Math.min((long) longitudActual * 2, capacidad));
+        // Se copia en orden cronologico para que el inicio vuelva a ser 0
+        int primerTramo = Math.min(tamano, longitudActual - inicio);
+        lecturas.copiarA(inicio, nuevo, 0, primerTramo);
+        lecturas.copiarA(0, nuevo, primerTramo, tamano - primerTramo);
+        lecturas = nuevo;
+        inicio = 0;
+    }
     
-    public void mostrarEstadisticas() {
-        System.out.println("\n=== ESTADiSTICAS DE LA FLOTA ===");
-        System.out.println("Total de vehiculos: " + vehiculos.size());
-        System.out.println("Vehiculos disponibles: " + obtenerVehiculosDisponibles().size());
-        System.out.println("Rutas creadas: " + rutas.size());
-        System.out.println("Registros de telemetria: " + historialTelemetria.size());
-        System.out.println("================================\n");
+    /**
+     * Devuelve la ultima lectura registrada en tiempo constante
+     */
+    public synchronized Telemetria getUltima() {
+        return posicionUltima >= 0 ? lecturas.materializar(posicionUltima) : null;
     }
-}
-
-/**
- * Simulador de telemetria que genera datos periodicamente
- */
-class SimuladorTelemetria implements Runnable {
-    private GestorFlota gestorFlota;
-    private boolean activo;
-    private int intervaloSegundos;
     
-    public SimuladorTelemetria(GestorFlota gestorFlota, int intervaloSegundos) {
-        this.gestorFlota = gestorFlota;
-        this.intervaloSegundos = intervaloSegundos;
-        this.activo = false;
+    public synchronized int getTamano() {
+        return tamano;
     }
     
-    public void iniciar() {
-        this.activo = true;
-        Thread hilo = new Thread(this);
-        hilo.start();
-        System.out.println("Simulador de telemetria iniciado (intervalo: " + intervaloSegundos + "s)");
+    public int getCapacidad() {
+        return capacidad;
     }
     
-    public void detener() {
+    /**
+     * Copia las lecturas en orden cronologico (de la mas antigua a la mas reciente)
+     */
+    public synchronized java.util.List<Telemetria> copiar() {
+        java.util.List<Telemetria> copia = new java.util.ArrayList<>(tamano);
+        int longitudActual = lecturas.getCapacidad();
+        for (int i = 0; i < tamano; i++) {
+            copia.add(lecturas.materializar((inicio + i) % longitudActual));
+        }
+        return copia;
+    }
+    
+    /**
+     * Copia las ultimas lecturas (hasta el limite y la capacidad del destino)
+     * en orden cronologico al inicio de un segmento reutilizable, sin crear objetos.
+     * @return cantidad de lecturas copiadas
+     */
+    public synchronized int copiarUltimas(int limite, SegmentoTelemetria destino) {
+        destino.limpiar();
+        int cantidad = Math.min(Math.min(limite, tamano), destino.getCapacidad());
+        if (cantidad <= 0) {
+            return 0;
+        }
+        int longitudActual = lecturas.getCapacidad();
+        int desde = (inicio + tamano - cantidad) % longitudActual;
+        int primerTramo = Math.min(cantidad, longitudActual - desde);
+        lecturas.copiarA(desde, destino, 0, primerTramo);
+        lecturas.copiarA(0, destino, primerTramo, cantidad - primerTramo);
+        return cantidad;
+    }
+    
+    // ====== Consulta por rango de tiempo ======
+    
+    /**
+     * Responde con el nivel mas fino cuyos datos llegan hasta desdeMillis:
+     * las crudas si alcanzan, si no los minutos, y si tampoco las horas. En
+     * los niveles agregados, las lecturas crudas del rango que aun no se
+     * resumieron se suman a sus intervalos, asi la respuesta llega hasta hoy.
+     * @param limite  maximo de lecturas o intervalos; se conservan los mas recientes
+     */
+    public synchronized HistorialTelemetria consultar(long desdeMillis, long hastaMillis, int limite) {
+        int longitudActual = lecturas.getCapacidad();
+        NivelHistorial nivel = elegirNivel(desdeMillis);
+        if (nivel == NivelHistorial.CRUDO) {
+            int enRango = 0;
+            for (int i = 0; i < tamano; i++) {
+                long tiempo = lecturas.getTiempo((inicio + i) % longitudActual);
+                if (tiempo >= desdeMillis && tiempo <= hastaMillis) {
+                    enRango++;
+                }
+            }
+            SegmentoTelemetria destino = new SegmentoTelemetria(Math.max(1, Math.min(enRango, limite)));
+            int omitir = enRango - destino.getCapacidad();
+            for (int i = 0; i < tamano; i++) {
+                int p = (inicio + i) % longitudActual;
+                long tiempo = lecturas.getTiempo(p);
+                if (tiempo >= desdeMillis && tiempo <= hastaMillis && omitir-- <= 0) {
+                    lecturas.copiarA(p, destino, destino.getTamano(), 1);
+                }
+            }
+            return new HistorialTelemetria(destino);
+        }
+        SerieAgregada resultado = new SerieAgregada(nivel.getAnchoMillis(), limite);
+        (nivel == NivelHistorial.MINUTO ? minutos : horas).copiarIntervalo(desdeMillis, hastaMillis, resultado);
+        for (int i = 0; i < tamano; i++) {
+            int p = (inicio + i) % longitudActual;
+            long tiempo = lecturas.getTiempo(p);
+            if (tiempo >= desdeMillis && tiempo <= hastaMillis) {
+                resultado.sumar(tiempo, lecturas.getVelocidad(p), lecturas.getTemperaturaMotor(p),
+                                lecturas.getNivelBateria(p));
+            }
+        }
+        return new HistorialTelemetria(nivel, resultado);
+    }
+    
+    private NivelHistorial elegirNivel(long desdeMillis) {
+        if (minutos == null || (tamano > 0 && lecturas.getTiempo(inicio) <= desdeMillis)) {
+            return NivelHistorial.CRUDO;
+        }
+        if (!minutos.isRecortada() || minutos.getInicio(0) <= desdeMillis) {
+            return NivelHistorial.MINUTO;
+        }
+        return NivelHistorial.HORA;
+    }
+}
+
+/**
+ * Lote reutilizable de lecturas de varios vehiculos, tal como llegan de una
+ * pasarela. Guarda los campos en columnas y trae arreglos de trabajo para que
+ * GestorFlota agrupe por vehiculo sin crear objetos. No es seguro compartir
+ * un mismo lote entre hilos; cada productor debe usar el suyo.
+ *
+ * La bateria es opcional: una lectura sin bateria (NaN) toma la del
+ * vehiculo y le descuenta el desgaste estimado; una con bateria, como la
+ * que reporta el propio dispositivo, la reemplaza. La secuencia tambien:
+ * la numeracion propia del dispositivo, que con la ventana de reorden
+ * activa sirve para descartar duplicadas.
+ */
+class LoteTelemetria {
+    /** Secuencia de una lectura que no trae numeracion del dispositivo */
+    public static final long SIN_SECUENCIA = -1;
+    
+    private int[] vehiculoIds;
+    private long[] secuencias;
+    private long[] tiempos;
+    private float[] velocidades;
+    private float[] temperaturas;
+    private float[] bateriasReportadas;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int tamano;
+    
+    // Arreglos de trabajo usados al registrar el lote
+    private int[] tablaVehiculos;   // tabla hash abierta: vehiculo -> grupo
+    private int bitsTabla;          // log2 del tamano de la tabla
+    private int[] tablaGrupos;
+    private int[] grupoDeLectura;
+    private int[] ranuraDeGrupo;
+    private int[] vehiculoDeGrupo;
+    private int[] limitesGrupos;
+    private int[] cursores;
+    private int[] orden;
+    private float[] baterias;
+    
+    public LoteTelemetria(int capacidad) {
+        if (capacidad <= 0) {
+            throw new IllegalArgumentException("Capacidad no valida: " + capacidad);
+        }
+        this.vehiculoIds = new int[capacidad];
+        this.secuencias = new long[capacidad];
+        this.tiempos = new long[capacidad];
+        this.velocidades = new float[capacidad];
+        this.temperaturas = new float[capacidad];
+        this.bateriasReportadas = new float[capacidad];
+        this.latitudes = new double[capacidad];
+        this.longitudes = new double[capacidad];
+        // Potencia de dos con al menos el doble de ranuras que lecturas
+        int tamanoTabla = Integer.highestOneBit(Math.max(2, capacidad) - 1) << 2;
+        this.tablaVehiculos = new int[tamanoTabla];
+        this.bitsTabla = Integer.numberOfTrailingZeros(tamanoTabla);
+        this.tablaGrupos = new int[tamanoTabla];
+        java.util.Arrays.fill(this.tablaGrupos, -1);
+        this.grupoDeLectura = new int[capacidad];
+        this.ranuraDeGrupo = new int[capacidad];
+        this.vehiculoDeGrupo = new int[capacidad];
+        this.limitesGrupos = new int[capacidad + 1];
+        this.cursores = new int[capacidad];
+        this.orden = new int[capacidad];
+        this.baterias = new float[capacidad];
+        this.tamano = 0;
+    }
+    
+    /**
+     * @return false si el lote ya esta lleno
+     */
+    public boolean agregar(int vehiculoId, long tiempoMillis, float velocidad, float temperaturaMotor,
+                           double latitud, double longitud) {
+        return agregar(vehiculoId, tiempoMillis, velocidad, temperaturaMotor, Float.NaN, latitud, longitud);
+    }
+    
+    /**
+     * @param nivelBateria  bateria reportada por el dispositivo, o NaN si no la reporta
+     * @return false si el lote ya esta lleno
+     */
+    public boolean agregar(int vehiculoId, long tiempoMillis, float velocidad, float temperaturaMotor,
+                           float nivelBateria, double latitud, double longitud) {
+        return agregar(vehiculoId, SIN_SECUENCIA, tiempoMillis, velocidad, temperaturaMotor, nivelBateria,
+                       latitud, longitud);
+    }
+    
+    /**
+     * @param secuencia     numero de la lectura en su dispositivo (creciente, desde 0), o SIN_SECUENCIA
+     * @param tiempoMillis  instante de la lectura segun el dispositivo
+     * @param nivelBateria  bateria reportada por el dispositivo, o NaN si no la reporta
+     * @return false si el lote ya esta lleno
+     */
+    public boolean agregar(int vehiculoId, long secuencia, long tiempoMillis, float velocidad, float temperaturaMotor,
+                           float nivelBateria, double latitud, double longitud) {
+        if (tamano == vehiculoIds.length) {
+            return false;
+        }
+        vehiculoIds[tamano] = vehiculoId;
+        secuencias[tamano] = secuencia;
+        tiempos[tamano] = tiempoMillis;
+        velocidades[tamano] = velocidad;
+        temperaturas[tamano] = temperaturaMotor;
+        bateriasReportadas[tamano] = nivelBateria;
+        latitudes[tamano] = latitud;
+        longitudes[tamano] = longitud;
+        tamano++;
+        return true;
+    }
+    
+    /**
+     * Agrupa las lecturas por vehiculo en tiempo lineal (tabla hash + conteo),
+     * conservando el orden de llegada dentro de cada vehiculo. Despues de
+     * llamarlo, las lecturas del grupo g son orden[limite(g) .. limite(g + 1)).
+     * @return numero de vehiculos distintos en el lote
+     */
+    int agruparPorVehiculo() {
+        int mascara = tablaVehiculos.length - 1;
+        int grupos = 0;
+        for (int i = 0; i < tamano; i++) {
+            int vehiculoId = vehiculoIds[i];
+            // Hash de Fibonacci: los bits altos del producto son los mejor mezclados
+            int ranura = vehiculoId * 0x9E3779B9 >>> (32 - bitsTabla);
+            while (tablaGrupos[ranura] >= 0 && tablaVehiculos[ranura] != vehiculoId) {
+                ranura = (ranura + 1) & mascara;
+            }
+            if (tablaGrupos[ranura] < 0) {
+                tablaVehiculos[ranura] = vehiculoId;
+                tablaGrupos[ranura] = grupos;
+                ranuraDeGrupo[grupos] = ranura;
+                vehiculoDeGrupo[grupos] = vehiculoId;
+                limitesGrupos[grupos + 1] = 0;
+                grupos++;
+            }
+            int grupo = tablaGrupos[ranura];
+            grupoDeLectura[i] = grupo;
+            limitesGrupos[grupo + 1]++;
+        }
+        
+        // Sumas acumuladas: limitesGrupos[g] es donde empieza el grupo g
+        limitesGrupos[0] = 0;
+        for (int g = 0; g < grupos; g++) {
+            limitesGrupos[g + 1] += limitesGrupos[g];
+            cursores[g] = limitesGrupos[g];
+        }
+        for (int i = 0; i < tamano; i++) {
+            orden[cursores[grupoDeLectura[i]]++] = i;
+        }
+        
+        // Se deja la tabla vacia para el siguiente lote
+        for (int g = 0; g < grupos; g++) {
+            tablaGrupos[ranuraDeGrupo[g]] = -1;
+        }
+        return grupos;
+    }
+    
+    int[] getOrden() { return orden; }
+    int getLimiteGrupo(int grupo) { return limitesGrupos[grupo]; }
+    int getVehiculoDeGrupo(int grupo) { return vehiculoDeGrupo[grupo]; }
+    float[] getBaterias() { return baterias; }
+    
+    public void limpiar() {
+        tamano = 0;
+    }
+    
+    public int getTamano() { return tamano; }
+    public int getCapacidad() { return vehiculoIds.length; }
+    public boolean estaLleno() { return tamano == vehiculoIds.length; }
+    
+    public int getVehiculoId(int i) { return vehiculoIds[i]; }
+    /** SIN_SECUENCIA si la lectura no trae numeracion */
+    public long getSecuencia(int i) { return secuencias[i]; }
+    public long getTiempo(int i) { return tiempos[i]; }
+    public float getVelocidad(int i) { return velocidades[i]; }
+    public float getTemperaturaMotor(int i) { return temperaturas[i]; }
+    /** NaN si la lectura no trae bateria */
+    public float getNivelBateria(int i) { return bateriasReportadas[i]; }
+    public double getLatitud(int i) { return latitudes[i]; }
+    public double getLongitud(int i) { return longitudes[i]; }
+}
+
+// ============================================================================
+// GESTORES Y SERVICIOS
+// ============================================================================
+
+/**
+ * Gestor principal de la flota de vehiculos.
+ * Es seguro para varios hilos escritores: los mapas son concurrentes, los ids
+ * salen de contadores atomicos y los cambios de estado usan compare-and-set.
+ */
+class GestorFlota {
+    private java.util.Map<Integer, VehiculoElectrico> vehiculos;
+    private java.util.Map<Integer, Ruta> rutas;
+    private java.util.Map<Integer, BufferTelemetriaVehiculo> historialTelemetria;
+    private int capacidadHistorialPorVehiculo;
+    private RetencionTelemetria retencion;
+    private java.util.concurrent.atomic.AtomicInteger contadorVehiculos;
+    // Sube con cada alta, baja o reemplazo de vehiculo; el tamano no basta (una baja y un alta lo dejan igual)
+    private java.util.concurrent.atomic.AtomicLong cambiosFlota;
+    // Sube con cada cambio de datos de un vehiculo que no es lectura ni estado (el modelo); entra en la marca de las fotos
+    private java.util.concurrent.atomic.AtomicLong actualizacionesVehiculos;
+    private java.util.concurrent.atomic.AtomicInteger contadorRutas;
+    private java.util.concurrent.atomic.AtomicInteger contadorTelemetria;
+    private volatile BitacoraTelemetria bitacora;
+    private volatile DiarioFlota diario;
+    private volatile DifusorTelemetria difusor;
+    private IndiceEspacial indiceEspacial;
+    private MotorAlertas motorAlertas;
+    private EstadisticasFlota estadisticas;
+    private SecuenciadorEntregas secuenciador;
+    private PlanificadorCarga planificadorCarga;
+    private java.util.concurrent.atomic.AtomicInteger contadorEstaciones;
+    private java.time.Clock reloj;
+    private MetricasFlota metricas;
+    private HistogramaLatencia latenciaTelemetria;
+    private HistogramaLatencia latenciaLote;
+    private HistogramaLatencia latenciaHistorial;
+    private HistogramaLatencia latenciaUltima;
+    private HistogramaLatencia latenciaDisponibles;
+    private HistogramaLatencia latenciaZona;
+    private HistogramaLatencia latenciaCercanos;
+    private HistogramaLatencia latenciaFoto;
+    private volatile Runnable eventoEstadoJfr;
+    // Ultima foto publicada; se reemplaza entera (copia al escribir)
+    private volatile FotoFlota foto;
+    private final Object candadoFoto = new Object();
+    private volatile java.util.concurrent.ScheduledExecutorService publicadorFotos;
+    private volatile ReordenTelemetria reorden;
+    private java.util.Map<Integer, VentanaReorden> ventanasReorden;
+    // Se asigna antes que reorden, que es volatil, y se lee despues
+    private ThreadLocal<LoteTelemetria> salidasReorden;
+    private java.util.concurrent.ScheduledExecutorService barridoReorden;
+    
+    /** Lecturas que se conservan por vehiculo si no se indica otra capacidad */
+    public static final int CAPACIDAD_HISTORIAL_POR_DEFECTO = 10_000;
+    /** Veces que despacharRutas vuelve a resolver si otro hilo le gana rutas o vehiculos */
+    public static final int INTENTOS_DESPACHO = 3;
+    /** Cuanto puede adelantarse al reloj del gestor la hora de un evento antes de descartarlo */
+    public static final long ADELANTO_MAXIMO_MS = 5 * 60_000L;
+    
+    public GestorFlota() {
+        this(CAPACIDAD_HISTORIAL_POR_DEFECTO);
+    }
+    
+    public GestorFlota(int capacidadHistorialPorVehiculo) {
+        this(capacidadHistorialPorVehiculo, RetencionTelemetria.porDefecto());
+    }
+    
+    /**
+     * @param capacidadHistorialPorVehiculo  tope de lecturas crudas por vehiculo, aunque quepan en la ventana
+     * @param retencion                      ventana cruda y cantidad de intervalos de minuto y hora
+     */
+    public GestorFlota(int capacidadHistorialPorVehiculo, RetencionTelemetria retencion) {
+        this(capacidadHistorialPorVehiculo, retencion, java.time.Clock.systemDefaultZone());
+    }
+    
+    /**
+     * @param reloj  hora de las lecturas, entregas, cargas y estadisticas
+     */
+    public GestorFlota(int capacidadHistorialPorVehiculo, RetencionTelemetria retencion, java.time.Clock reloj) {
+        this(capacidadHistorialPorVehiculo, retencion, reloj, java.util.concurrent.ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * @param replanificador  donde corren las replanificaciones por atraso.
+     *                        Una simulacion en un solo hilo pasa Runnable::run
+     *                        para que corran en el hilo que registra la
+     *                        lectura y el resultado se repita.
+     */
+    public GestorFlota(int capacidadHistorialPorVehiculo, RetencionTelemetria retencion, java.time.Clock reloj,
+                       java.util.concurrent.Executor replanificador) {
+        if (capacidadHistorialPorVehiculo <= 0) {
+            throw new IllegalArgumentException("Capacidad de historial no valida: " + capacidadHistorialPorVehiculo);
+        }
+        this.vehiculos = new java.util.concurrent.ConcurrentHashMap<>();
+        this.rutas = new java.util.concurrent.ConcurrentHashMap<>();
+        this.historialTelemetria = new java.util.concurrent.ConcurrentHashMap<>();
+        this.ventanasReorden = new java.util.concurrent.ConcurrentHashMap<>();
+        this.capacidadHistorialPorVehiculo = capacidadHistorialPorVehiculo;
+        this.retencion = retencion;
+        this.contadorVehiculos = new java.util.concurrent.atomic.AtomicInteger(1);
+        this.cambiosFlota = new java.util.concurrent.atomic.AtomicLong();
+        this.actualizacionesVehiculos = new java.util.concurrent.atomic.AtomicLong();
+        this.contadorRutas = new java.util.concurrent.atomic.AtomicInteger(1);
+        this.contadorTelemetria = new java.util.concurrent.atomic.AtomicInteger(1);
+        this.indiceEspacial = new IndiceEspacial();
+        this.reloj = reloj;
+        this.motorAlertas = new MotorAlertas(reloj);
+        this.estadisticas = new EstadisticasFlota(reloj);
+        this.secuenciador = new SecuenciadorEntregas(this::anotarEntregas, replanificador);
+        this.planificadorCarga = new PlanificadorCarga(this::anotarEstado, reloj);
+        this.contadorEstaciones = new java.util.concurrent.atomic.AtomicInteger(1);
+        this.foto = FotoFlota.VACIA;
+        this.metricas = new MetricasFlota();
+        registrarMetricas();
+    }
+    
+    // ====== CRUD de Vehiculos ======
+    
+    public VehiculoElectrico crearVehiculo(String tipo, String modelo, float capacidadBateria) {
+        return crearVehiculo(contadorVehiculos.getAndIncrement(), tipo, modelo, capacidadBateria);
+    }
+    
+    /**
+     * Crea el vehiculo con un id dado por fuera (FlotaParticionada reparte
+     * los ids entre sus particiones)
+     */
+    VehiculoElectrico crearVehiculo(int id, String tipo, String modelo, float capacidadBateria) {
+        VehiculoElectrico vehiculo = nuevoVehiculo(tipo, id, modelo, capacidadBateria);
+        if (vehiculos.containsKey(id)) {
+            throw new IllegalArgumentException("Ya existe el vehiculo: " + id);
+        }
+        ajustarContadores(id + 1, 0);
+        
+        // El historial se publica antes que el vehiculo para que nunca falte al registrar telemetria.
+        // Si ya existe (restaurado desde la bitacora) se conserva.
+        historialTelemetria.computeIfAbsent(id, k -> new BufferTelemetriaVehiculo(capacidadHistorialPorVehiculo, retencion, reloj));
+        vehiculo.observar(estadisticas);
+        vehiculos.put(id, vehiculo);
+        cambiosFlota.incrementAndGet();
+        anotarVehiculo(vehiculo);
+        RegistroAsincrono.info("Vehiculo creado: {} #{}", tipo, id);
+        return vehiculo;
+    }
+    
+    static VehiculoElectrico nuevoVehiculo(String tipo, int id, String modelo, float capacidadBateria) {
+        switch (tipo.toLowerCase()) {
+            case "van":
+                return new Van(id, modelo, capacidadBateria);
+            case "bicicleta":
+                return new BicicletaElectrica(id, modelo, capacidadBateria);
+            case "moto":
+                return new MotoElectrica(id, modelo, capacidadBateria);
+            default:
+                throw new IllegalArgumentException("Tipo de vehiculo no valido: " + tipo);
+        }
+    }
+    
+    public VehiculoElectrico consultarVehiculo(int id) {
+        return vehiculos.get(id);
+    }
+    
+    /**
+     * Vista viva de la flota: otros hilos cambian los vehiculos mientras se
+     * recorre. Para tableros y reportes conviene obtenerFoto.
+     */
+    public java.util.Collection<VehiculoElectrico> listarVehiculos() {
+        return vehiculos.values();
+    }
+    
+    public boolean actualizarVehiculo(int id, String nuevoModelo) {
+        VehiculoElectrico vehiculo = vehiculos.get(id);
+        if (vehiculo != null) {
+            vehiculo.setModelo(nuevoModelo);
+            actualizacionesVehiculos.incrementAndGet();
+            anotarVehiculo(vehiculo);
+            RegistroAsincrono.info("Vehiculo #{} actualizado", id);
+            return true;
+        }
+        return false;
+    }
+    
+    public boolean eliminarVehiculo(int id) {
+        VehiculoElectrico vehiculo = vehiculos.remove(id);
+        if (vehiculo != null) {
+            cambiosFlota.incrementAndGet();
+            vehiculo.observar(null);
+            historialTelemetria.remove(id);
+            ventanasReorden.remove(id);
+            indiceEspacial.eliminar(id);
+            motorAlertas.olvidarVehiculo(id);
+            planificadorCarga.cancelar(id, reloj.millis());
+            DiarioFlota diarioActual = diario;
+            if (diarioActual != null) {
+                diarioActual.anotarEliminacion(id);
+            }
+            RegistroAsincrono.info("Vehiculo #{} eliminado", id);
+            return true;
+        }
+        return false;
+    }
+    
+    // ====== Traspaso entre particiones ======
+    
+    /**
+     * Quita el vehiculo de esta flota y lo devuelve con su historial, con el
+     * mismo estado y bateria, para incorporarlo en otra
+     * @return null si el vehiculo no existe
+     */
+    TraspasoVehiculo extraerVehiculo(int id) {
+        VehiculoElectrico vehiculo = vehiculos.get(id);
+        BufferTelemetriaVehiculo historial = historialTelemetria.get(id);
+        if (vehiculo == null || historial == null) {
+            return null;
+        }
+        // Lo retenido en la ventana de reorden se registra aqui antes de irse
+        VentanaReorden ventana = ventanasReorden.get(id);
+        if (ventana != null) {
+            synchronized (ventana) {
+                ventana.liberarTodo(salidasReorden.get());
+                vaciarSalidaReorden(vehiculo, historial, salidasReorden.get());
+            }
+        }
+        if (!eliminarVehiculo(id)) {
+            return null;
+        }
+        return new TraspasoVehiculo(vehiculo, historial);
+    }
+    
+    /**
+     * Agrega un vehiculo que viene de otra flota. Conserva su posicion en el
+     * indice espacial y, si estaba CARGANDO, vuelve a pedir conector aqui.
+     */
+    void incorporarVehiculo(TraspasoVehiculo traspaso) {
+        VehiculoElectrico vehiculo = traspaso.getVehiculo();
+        int id = vehiculo.getId();
+        if (vehiculos.containsKey(id)) {
+            throw new IllegalArgumentException("Ya existe el vehiculo: " + id);
+        }
+        ajustarContadores(id + 1, 0);
+        BufferTelemetriaVehiculo historial = traspaso.getHistorial();
+        if (historial == null) {
+            historial = new BufferTelemetriaVehiculo(capacidadHistorialPorVehiculo, retencion, reloj);
+            SegmentoTelemetria lecturas = traspaso.getLecturas();
+            for (int i = 0; i < lecturas.getTamano(); i++) {
+                historial.agregar(lecturas.getId(i), lecturas.getTiempo(i), id, lecturas.getVelocidad(i),
+                                  lecturas.getTemperaturaMotor(i), lecturas.getNivelBateria(i),
+                                  lecturas.getLatitud(i), lecturas.getLongitud(i));
+            }
+        }
+        historialTelemetria.put(id, historial);
+        vehiculo.observar(estadisticas);
+        vehiculos.put(id, vehiculo);
+        cambiosFlota.incrementAndGet();
+        anotarVehiculo(vehiculo);
+        Telemetria ultima = historial.getUltima();
+        if (ultima != null) {
+            indiceEspacial.actualizar(vehiculo, ultima.getLatitud(), ultima.getLongitud());
+        }
+        if (vehiculo.getEstado() == EstadoVehiculo.CARGANDO && planificadorCarga.tieneEstaciones()) {
+            planificadorCarga.solicitar(vehiculo, 0f, reloj.millis());
+        }
+    }
+    
+    // ====== Gestion de Telemetria ======
+    
+    public Telemetria registrarTelemetria(int vehiculoId, float velocidad, 
+                                         float temperaturaMotor, String ubicacionGps) {
+        // Una ubicacion que no es "lat,lon" se guarda como NaN: la lectura cuenta,
+        // pero no mueve al vehiculo en el indice espacial ni suma recorrido
+        double latitud = Telemetria.parsearLatitud(ubicacionGps);
+        double longitud = Telemetria.parsearLongitud(ubicacionGps);
+        
+        long inicio = System.nanoTime();
+        long tiempoMillis = reloj.millis();
+        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
+        float nivelBateria = vehiculo != null ? vehiculo.getNivelBateria() : 0;
+        int id = registrarLectura(vehiculoId, tiempoMillis, velocidad, temperaturaMotor, latitud, longitud);
+        
+        Telemetria telemetria = new Telemetria(
+            id,
+            java.time.LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(tiempoMillis), reloj.getZone()),
+            velocidad,
+            temperaturaMotor,
+            latitud,
+            longitud,
+            nivelBateria,
+            vehiculoId
+        );
+        telemetria.setUbicacionGps(ubicacionGps);
+        latenciaTelemetria.observarDesde(inicio);
+        return telemetria;
+    }
+    
+    /**
+     * Registra una lectura sin crear objetos: los valores se escriben
+     * directamente en las columnas del historial del vehiculo. No pasa por
+     * la ventana de reorden; las lecturas de los dispositivos llegan por lotes.
+     * @return id asignado a la lectura
+     */
+    public int registrarLectura(int vehiculoId, long tiempoMillis, float velocidad,
+                                float temperaturaMotor, double latitud, double longitud) {
+        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
+        if (vehiculo == null) {
+            throw new IllegalArgumentException("Vehiculo no encontrado: " + vehiculoId);
+        }
+        
+        BufferTelemetriaVehiculo buffer = historialTelemetria.get(vehiculoId);
+        if (buffer == null) {
+            // El vehiculo se elimino mientras llegaba la lectura
+            throw new IllegalArgumentException("Vehiculo no encontrado: " + vehiculoId);
+        }
+        
+        int id = contadorTelemetria.getAndIncrement();
+        float nivelBateria = vehiculo.getNivelBateria();
+        double recorrido = buffer.agregar(id, tiempoMillis, vehiculoId, velocidad, temperaturaMotor,
+                                          nivelBateria, latitud, longitud);
+        estadisticas.sumarRecorrido(tiempoMillis, recorrido);
+        indiceEspacial.actualizar(vehiculo, latitud, longitud);
+        motorAlertas.evaluar(vehiculo, tiempoMillis, velocidad, temperaturaMotor, nivelBateria);
+        secuenciador.vigilar(vehiculoId, tiempoMillis, latitud, longitud);
+        BitacoraTelemetria bitacoraActual = bitacora;
+        if (bitacoraActual != null) {
+            bitacoraActual.agregar(id, tiempoMillis, vehiculoId, velocidad, temperaturaMotor,
+                                   nivelBateria, latitud, longitud);
+        }
+        
+        // Simular desgaste de bateria basado en velocidad
+        if (vehiculo.getEstado() == EstadoVehiculo.EN_RUTA) {
+            float desgaste = velocidad * 0.01f;
+            vehiculo.descontarBateria(desgaste);
+            anotarDesgaste(vehiculo);
+        }
+        
+        DifusorTelemetria difusorActual = difusor;
+        if (difusorActual != null) {
+            difusorActual.publicar(vehiculo);
+        }
+        return id;
+    }
+    
+    /**
+     * Registra un lote de lecturas de muchos vehiculos. Las lecturas se agrupan
+     * por vehiculo: hay una busqueda y un candado por vehiculo, un solo bloque de
+     * ids para todo el lote y el desgaste de bateria se aplica una vez por
+     * vehiculo. Las lecturas de vehiculos inexistentes se descartan.
+     *
+     * Con la ventana de reorden activa las lecturas pasan antes por la de su
+     * vehiculo (ver ReordenTelemetria): se registran en orden de instante del
+     * dispositivo y pueden salir en una llamada posterior.
+     * @return numero de lecturas registradas en esta llamada
+     */
+    public int registrarTelemetriaLote(LoteTelemetria lote) {
+        int tamano = lote.getTamano();
+        if (tamano == 0) {
+            return 0;
+        }
+        long inicio = System.nanoTime();
+        int grupos = lote.agruparPorVehiculo();
+        ReordenTelemetria reordenActual = reorden;
+        if (reordenActual != null) {
+            int registradas = registrarReordenado(lote, grupos, reordenActual);
+            latenciaLote.observarDesde(inicio);
+            return registradas;
+        }
+        int siguienteId = contadorTelemetria.getAndAdd(tamano);
+        int registradas = 0;
+        
+        for (int g = 0; g < grupos; g++) {
+            int desde = lote.getLimiteGrupo(g);
+            int hasta = lote.getLimiteGrupo(g + 1);
+            
+            // Una sola caja del id para los dos mapas
+            Integer clave = lote.getVehiculoDeGrupo(g);
+            VehiculoElectrico vehiculo = vehiculos.get(clave);
+            BufferTelemetriaVehiculo buffer = historialTelemetria.get(clave);
+            if (vehiculo == null || buffer == null) {
+                continue;
+            }
+            registrarGrupo(vehiculo, buffer, lote, desde, hasta, siguienteId + registradas);
+            registradas += hasta - desde;
+        }
+        latenciaLote.observarDesde(inicio);
+        return registradas;
+    }
+    
+    /**
+     * Registra las lecturas orden[desde, hasta) del lote ya agrupado, todas
+     * del vehiculo, con ids consecutivos desde primerId
+     */
+    private void registrarGrupo(VehiculoElectrico vehiculo, BufferTelemetriaVehiculo buffer, LoteTelemetria lote,
+                                int desde, int hasta, int primerId) {
+        int vehiculoId = vehiculo.getId();
+        int[] orden = lote.getOrden();
+        float[] baterias = lote.getBaterias();
+        // Cada lectura guarda el nivel previo a su propio desgaste, como en registrarLectura;
+        // una bateria reportada por el dispositivo reemplaza la estimada y no se desgasta
+        boolean enRuta = vehiculo.getEstado() == EstadoVehiculo.EN_RUTA;
+        float nivelInicial = vehiculo.getNivelBateria();
+        float nivel = nivelInicial;
+        boolean reportada = false;
+        for (int k = desde; k < hasta; k++) {
+            int i = orden[k];
+            float nivelReportado = lote.getNivelBateria(i);
+            if (!Float.isNaN(nivelReportado)) {
+                nivel = Math.max(0, Math.min(100, nivelReportado));
+                reportada = true;
+                baterias[i] = nivel;
+                continue;
+            }
+            baterias[i] = nivel;
+            if (enRuta) {
+                nivel = Math.max(0, nivel - lote.getVelocidad(i) * 0.01f);
+            }
+        }
+        double recorrido = buffer.agregarLote(lote, orden, desde, hasta, primerId, baterias);
+        for (int k = desde; k < hasta; k++) {
+            int i = orden[k];
+            motorAlertas.evaluar(vehiculo, lote.getTiempo(i), lote.getVelocidad(i),
+                                 lote.getTemperaturaMotor(i), baterias[i]);
+        }
+        // Dentro del grupo las lecturas conservan el orden de llegada; la ultima es la posicion actual
+        int ultima = orden[hasta - 1];
+        indiceEspacial.actualizar(vehiculo, lote.getLatitud(ultima), lote.getLongitud(ultima));
+        secuenciador.vigilar(vehiculoId, lote.getTiempo(ultima), lote.getLatitud(ultima), lote.getLongitud(ultima));
+        estadisticas.sumarRecorrido(lote.getTiempo(ultima), recorrido);
+        BitacoraTelemetria bitacoraActual = bitacora;
+        if (bitacoraActual != null) {
+            bitacoraActual.agregarLote(lote, orden, desde, hasta, primerId, baterias);
+        }
+        if (reportada) {
+            vehiculo.setNivelBateria(nivel);
+            anotarDesgaste(vehiculo);
+        } else if (enRuta) {
+            vehiculo.descontarBateria(nivelInicial - nivel);
+            anotarDesgaste(vehiculo);
+        }
+        DifusorTelemetria difusorActual = difusor;
+        if (difusorActual != null) {
+            difusorActual.publicar(vehiculo);
+        }
+    }
+    
+    // ====== Reorden de lecturas de dispositivos ======
+    
+    /**
+     * A partir de aqui los lotes pasan por una ventana de reorden por
+     * vehiculo que descarta duplicadas, entrega en orden de instante del
+     * dispositivo e informa las tardias. Un hilo revisa cada medio retraso
+     * los vehiculos que dejaron de mandar.
+     */
+    public void activarReorden(ReordenTelemetria reorden) {
+        activarReorden(reorden, true);
+    }
+    
+    /**
+     * @param barrido  false no arranca el hilo de revision: quien avanza el
+     *                 reloj (una simulacion) llama a liberarReordenVencidas
+     */
+    public synchronized void activarReorden(ReordenTelemetria reorden, boolean barrido) {
+        if (barridoReorden != null) {
+            barridoReorden.shutdownNow();
+            barridoReorden = null;
+        }
+        ventanasReorden.clear();
+        // Cada admision puede sacar hasta capacidad + 1 lecturas de la ventana
+        int capacidadSalida = Math.max(256, 4 * reorden.getCapacidadPorVehiculo());
+        salidasReorden = ThreadLocal.withInitial(() -> new LoteTelemetria(capacidadSalida));
+        this.reorden = reorden;
+        if (!barrido) {
+            return;
+        }
+        barridoReorden = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(tarea -> {
+            Thread hilo = new Thread(tarea, "sigefve-reorden");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        long periodo = Math.max(10, reorden.getRetrasoPermitidoMillis() / 2);
+        barridoReorden.scheduleWithFixedDelay(() -> {
+            try {
+                liberarReordenVencidas();
+            } catch (RuntimeException e) {
+                RegistroAsincrono.error("No se pudieron liberar lecturas retenidas: {}", e.getMessage());
+            }
+        }, periodo, periodo, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Registra lo retenido de los vehiculos que no mandan nada hace al menos
+     * el retraso permitido
+     * @return lecturas registradas
+     */
+    public int liberarReordenVencidas() {
+        if (reorden == null) {
+            return 0;
+        }
+        long ahora = reloj.millis();
+        LoteTelemetria salida = salidasReorden.get();
+        int registradas = 0;
+        for (java.util.Map.Entry<Integer, VentanaReorden> entrada : ventanasReorden.entrySet()) {
+            VentanaReorden ventana = entrada.getValue();
+            synchronized (ventana) {
+                if (!ventana.estaVencida(ahora)) {
+                    continue;
+                }
+                VehiculoElectrico vehiculo = vehiculos.get(entrada.getKey());
+                BufferTelemetriaVehiculo buffer = historialTelemetria.get(entrada.getKey());
+                if (vehiculo == null || buffer == null) {
+                    ventanasReorden.remove(entrada.getKey(), ventana);
+                    continue;
+                }
+                ventana.liberarTodo(salida);
+                registradas += vaciarSalidaReorden(vehiculo, buffer, salida);
+            }
+        }
+        return registradas;
+    }
+    
+    /**
+     * Pasa cada grupo por la ventana de su vehiculo y registra lo que sale
+     * sin soltarla, asi otro hilo con lecturas del mismo vehiculo no las
+     * intercala
+     */
+    private int registrarReordenado(LoteTelemetria lote, int grupos, ReordenTelemetria reordenActual) {
+        LoteTelemetria salida = salidasReorden.get();
+        int[] orden = lote.getOrden();
+        int margen = reordenActual.getCapacidadPorVehiculo() + 1;
+        long ahora = reloj.millis();
+        int registradas = 0;
+        for (int g = 0; g < grupos; g++) {
+            int vehiculoId = lote.getVehiculoDeGrupo(g);
+            Integer clave = vehiculoId;
+            VehiculoElectrico vehiculo = vehiculos.get(clave);
+            BufferTelemetriaVehiculo buffer = historialTelemetria.get(clave);
+            if (vehiculo == null || buffer == null) {
+                continue;
+            }
+            VentanaReorden ventana = ventanasReorden.get(clave);
+            if (ventana == null) {
+                VentanaReorden nueva = reordenActual.nuevaVentana(vehiculoId);
+                ventana = ventanasReorden.putIfAbsent(clave, nueva);
+                if (ventana == null) {
+                    ventana = nueva;
+                }
+            }
+            synchronized (ventana) {
+                int desde = lote.getLimiteGrupo(g);
+                int hasta = lote.getLimiteGrupo(g + 1);
+                if (ventana.pasarEnOrden(lote, orden, desde, hasta, ahora)) {
+                    registrarGrupo(vehiculo, buffer, lote, desde, hasta, contadorTelemetria.getAndAdd(hasta - desde));
+                    registradas += hasta - desde;
+                    continue;
+                }
+                for (int k = desde; k < hasta; k++) {
+                    if (salida.getCapacidad() - salida.getTamano() < margen) {
+                        registradas += vaciarSalidaReorden(vehiculo, buffer, salida);
+                    }
+                    ventana.admitir(lote, orden[k], ahora, salida);
+                }
+                registradas += vaciarSalidaReorden(vehiculo, buffer, salida);
+            }
+        }
+        return registradas;
+    }
+    
+    private int vaciarSalidaReorden(VehiculoElectrico vehiculo, BufferTelemetriaVehiculo buffer,
+                                    LoteTelemetria salida) {
+        int cantidad = salida.getTamano();
+        if (cantidad == 0) {
+            return 0;
+        }
+        salida.agruparPorVehiculo();
+        registrarGrupo(vehiculo, buffer, salida, 0, cantidad, contadorTelemetria.getAndAdd(cantidad));
+        salida.limpiar();
+        return cantidad;
+    }
+    
+    // ====== Difusion en vivo ======
+    
+    /**
+     * Avisa al difusor de cada lectura registrada. El registro solo marca el
+     * vehiculo (y lo encola la primera vez); el reparto a los suscriptores
+     * ocurre en el hilo del difusor.
+     */
+    public void activarDifusion(DifusorTelemetria difusor) {
+        this.difusor = difusor;
+    }
+    
+    // ====== Persistencia de Telemetria ======
+    
+    /**
+     * Reconstruye el historial en memoria reproduciendo la bitacora. Debe
+     * llamarse al arrancar, antes de activar la persistencia y de registrar
+     * lecturas nuevas; no aplica desgaste de bateria.
+     */
+    public ResumenReproduccion restaurarTelemetria(BitacoraTelemetria bitacora) throws java.io.IOException {
+        // Cache local por id de vehiculo para no consultar el mapa en cada registro
+        BufferTelemetriaVehiculo[][] cache = { new BufferTelemetriaVehiculo[1024] };
+        ResumenReproduccion resumen = bitacora.reproducir(
+            (id, tiempoMillis, vehiculoId, velocidad, temperaturaMotor, nivelBateria, latitud, longitud) -> {
+                BufferTelemetriaVehiculo buffer = null;
+                if (vehiculoId >= 0) {
+                    if (vehiculoId >= cache[0].length) {
+                        cache[0] = java.util.Arrays.copyOf(cache[0], Math.max(vehiculoId + 1, cache[0].length * 2));
+                    }
+                    buffer = cache[0][vehiculoId];
+                }
+                if (buffer == null) {
+                    buffer = historialTelemetria.computeIfAbsent(vehiculoId,
+                        k -> new BufferTelemetriaVehiculo(capacidadHistorialPorVehiculo, retencion, reloj));
+                    if (vehiculoId >= 0) {
+                        cache[0][vehiculoId] = buffer;
+                    }
+                }
+                // El recorrido de los dias conservados se recupera de la propia bitacora
+                estadisticas.sumarRecorrido(tiempoMillis, buffer.agregar(id, tiempoMillis, vehiculoId, velocidad,
+                                                                          temperaturaMotor, nivelBateria, latitud, longitud));
+            });
+        contadorTelemetria.accumulateAndGet(resumen.getUltimoId() + 1, Math::max);
+        reconstruirIndiceEspacial();
+        return resumen;
+    }
+    
+    /**
+     * A partir de aqui cada lectura registrada tambien se anexa a la bitacora
+     */
+    public void activarPersistencia(BitacoraTelemetria bitacora) {
+        this.bitacora = bitacora;
+    }
+    
+    // ====== Persistencia del Estado de la Flota ======
+    
+    /**
+     * Reconstruye vehiculos, rutas, entregas y contadores desde la ultima
+     * instantanea y la cola del diario. Debe llamarse al arrancar, antes de
+     * activar el diario.
+     */
+    public ResumenRestauracion restaurarEstado(DiarioFlota diario) throws java.io.IOException {
+        return diario.restaurar(this);
+    }
+    
+    /**
+     * A partir de aqui cada operacion que modifica la flota se anota en el diario
+     */
+    public void activarDiario(DiarioFlota diario) {
+        diario.vincular(this);
+        this.diario = diario;
+    }
+    
+    private void anotarVehiculo(VehiculoElectrico vehiculo) {
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null) {
+            diarioActual.anotarVehiculo(vehiculo);
+        }
+    }
+    
+    private void anotarEstado(VehiculoElectrico vehiculo) {
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null) {
+            diarioActual.anotarEstado(vehiculo);
+        }
+    }
+    
+    private void anotarAsignacion(Ruta ruta) {
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null) {
+            diarioActual.anotarAsignacion(ruta);
+        }
+    }
+    
+    /**
+     * Anota todas las entregas de la ruta; se usa cuando el secuenciador cambia su orden y horas
+     */
+    private void anotarEntregas(Ruta ruta) {
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null) {
+            for (Entrega entrega : ruta.getEntregas()) {
+                diarioActual.anotarEntrega(ruta, entrega);
+            }
+        }
+    }
+    
+    /**
+     * El desgaste por telemetria no se anota lectura a lectura: el vehiculo se
+     * encola una vez y el diario escribe su nivel en el siguiente commit
+     */
+    private void anotarDesgaste(VehiculoElectrico vehiculo) {
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null && vehiculo.marcarCambioPendiente()) {
+            diarioActual.encolarDesgaste(vehiculo);
+        }
+    }
+    
+    int getSiguienteIdVehiculo() { return contadorVehiculos.get(); }
+    /** Cuenta las altas, bajas y reemplazos de vehiculos; sirve para saber si la flota cambio */
+    long getCambiosFlota() { return cambiosFlota.get(); }
+    int getCapacidadHistorialPorVehiculo() { return capacidadHistorialPorVehiculo; }
+    /** Bitacora donde se anexa la telemetria, o null si no hay persistencia */
+    BitacoraTelemetria getBitacora() { return bitacora; }
+    int getSiguienteIdRuta() { return contadorRutas.get(); }
+    
+    // Operaciones usadas por DiarioFlota al restaurar; no se vuelven a anotar
+    
+    void aplicarVehiculo(int id, String tipo, String modelo, float capacidadBateria,
+                         EstadoVehiculo estado, float nivelBateria) {
+        VehiculoElectrico vehiculo = vehiculos.get(id);
+        if (vehiculo == null || !vehiculo.getTipo().equals(tipo)) {
+            vehiculo = nuevoVehiculo(tipo, id, modelo, capacidadBateria);
+            historialTelemetria.computeIfAbsent(id, k -> new BufferTelemetriaVehiculo(capacidadHistorialPorVehiculo, retencion, reloj));
+            vehiculo.observar(estadisticas);
+            VehiculoElectrico reemplazado = vehiculos.put(id, vehiculo);
+            cambiosFlota.incrementAndGet();
+            if (reemplazado != null) {
+                reemplazado.observar(null);
+            }
+        }
+        vehiculo.setModelo(modelo);
+        vehiculo.setCapacidadBateria(capacidadBateria);
+        vehiculo.setEstado(estado);
+        vehiculo.setNivelBateria(nivelBateria);
+        actualizacionesVehiculos.incrementAndGet();
+        ajustarContadores(id + 1, 0);
+    }
+    
+    void aplicarEliminacion(int id) {
+        VehiculoElectrico vehiculo = vehiculos.remove(id);
+        if (vehiculo != null) {
+            cambiosFlota.incrementAndGet();
+            vehiculo.observar(null);
+        }
+        historialTelemetria.remove(id);
+        indiceEspacial.eliminar(id);
+        motorAlertas.olvidarVehiculo(id);
+        ajustarContadores(id + 1, 0);
+    }
+    
+    void aplicarEstado(int id, EstadoVehiculo estado, float nivelBateria) {
+        VehiculoElectrico vehiculo = vehiculos.get(id);
+        if (vehiculo != null) {
+            vehiculo.setEstado(estado);
+            vehiculo.setNivelBateria(nivelBateria);
+        }
+    }
+    
+    void aplicarRuta(int id, String origen, String destino, float distancia) {
+        Ruta ruta = rutas.get(id);
+        if (ruta == null) {
+            rutas.put(id, new Ruta(id, origen, destino, distancia));
+        } else {
+            ruta.setOrigen(origen);
+            ruta.setDestino(destino);
+            ruta.setDistancia(distancia);
+        }
+        ajustarContadores(0, id + 1);
+    }
+    
+    void aplicarEntrega(int rutaId, int id, String direccion, java.time.LocalDateTime horaEstimada, String estado) {
+        aplicarEntrega(rutaId, id, direccion, horaEstimada, estado, Double.NaN, Double.NaN, 0);
+    }
+    
+    void aplicarEntrega(int rutaId, int id, String direccion, java.time.LocalDateTime horaEstimada, String estado,
+                        double latitud, double longitud, int secuencia) {
+        Ruta ruta = rutas.get(rutaId);
+        if (ruta == null) {
+            return;
+        }
+        Entrega entrega = buscarEntrega(ruta, id);
+        if (entrega == null) {
+            entrega = new Entrega(id, direccion, horaEstimada);
+            ruta.agregarEntrega(entrega);
+        }
+        entrega.setDireccion(direccion);
+        entrega.setHoraEstimada(horaEstimada);
+        entrega.setEstado(estado);
+        entrega.setUbicacion(latitud, longitud);
+        if (entrega.getSecuencia() != secuencia) {
+            entrega.setSecuencia(secuencia);
+            ruta.ordenarEntregas();
+        }
+    }
+    
+    void aplicarAsignacion(int rutaId, int vehiculoId) {
+        Ruta ruta = rutas.get(rutaId);
+        if (ruta != null) {
+            ruta.setVehiculoId(vehiculoId);
+        }
+    }
+    
+    void ajustarContadores(int siguienteVehiculo, int siguienteRuta) {
+        contadorVehiculos.accumulateAndGet(siguienteVehiculo, Math::max);
+        contadorRutas.accumulateAndGet(siguienteRuta, Math::max);
+    }
+    
+    /**
+     * Lecturas crudas que aun conserva el vehiculo (la ventana cruda de la retencion).
+     * Crea un objeto por lectura; para exportar rangos grandes ver MotorInformes.
+     */
+    public java.util.List<Telemetria> consultarHistorialTelemetria(int vehiculoId) {
+        long inicio = System.nanoTime();
+        BufferTelemetriaVehiculo buffer = historialTelemetria.get(vehiculoId);
+        java.util.List<Telemetria> lecturas = buffer != null ? buffer.copiar() : new java.util.ArrayList<>();
+        latenciaHistorial.observarDesde(inicio);
+        return lecturas;
+    }
+    
+    /**
+     * Copia las ultimas lecturas del vehiculo a un segmento del llamador (ver
+     * BufferTelemetriaVehiculo.copiarUltimas).
+     * @return cantidad de lecturas copiadas; 0 si el vehiculo no existe
+     */
+    public int copiarHistorialTelemetria(int vehiculoId, int limite, SegmentoTelemetria destino) {
+        long inicio = System.nanoTime();
+        BufferTelemetriaVehiculo buffer = historialTelemetria.get(vehiculoId);
+        int copiadas = 0;
+        if (buffer == null) {
+            destino.limpiar();
+        } else {
+            copiadas = buffer.copiarUltimas(limite, destino);
+        }
+        latenciaHistorial.observarDesde(inicio);
+        return copiadas;
+    }
+    
+    /**
+     * Historial del vehiculo entre dos instantes, con el nivel mas fino que
+     * cubre el rango: crudo para lo reciente, intervalos de un minuto o de
+     * una hora para rangos que van mas atras (ver RetencionTelemetria).
+     * @param limite  maximo de lecturas o intervalos; se conservan los mas recientes
+     */
+    public HistorialTelemetria consultarHistorialTelemetria(int vehiculoId, long desdeMillis, long hastaMillis,
+                                                            int limite) {
+        if (desdeMillis > hastaMillis || limite <= 0) {
+            throw new IllegalArgumentException("Rango de historial no valido: " + desdeMillis + " a " + hastaMillis);
+        }
+        long inicio = System.nanoTime();
+        BufferTelemetriaVehiculo buffer = historialTelemetria.get(vehiculoId);
+        HistorialTelemetria historial = buffer != null ? buffer.consultar(desdeMillis, hastaMillis, limite)
+                                                       : new HistorialTelemetria(new SegmentoTelemetria(1));
+        latenciaHistorial.observarDesde(inicio);
+        return historial;
+    }
+    
+    public RetencionTelemetria getRetencion() {
+        return retencion;
+    }
+    
+    public Telemetria obtenerUltimaTelemetria(int vehiculoId) {
+        long inicio = System.nanoTime();
+        BufferTelemetriaVehiculo buffer = historialTelemetria.get(vehiculoId);
+        Telemetria ultima = buffer != null ? buffer.getUltima() : null;
+        latenciaUltima.observarDesde(inicio);
+        return ultima;
+    }
+    
+    // ====== Alertas ======
+    
+    /**
+     * Reglas y alertas de telemetria; cada lectura registrada se evalua aqui
+     */
+    public MotorAlertas getMotorAlertas() {
+        return motorAlertas;
+    }
+    
+    // ====== Consultas Espaciales ======
+    
+    /**
+     * Vehiculos cuya ultima posicion cae en la caja (ver IndiceEspacial.buscarEnCaja).
+     * @param estado  null para cualquiera
+     * @param tipo    "van", "bicicleta", "moto" o null para cualquiera
+     */
+    public java.util.List<VehiculoElectrico> buscarVehiculosEnZona(double latitudMinima, double longitudMinima,
+                                                                  double latitudMaxima, double longitudMaxima,
+                                                                  EstadoVehiculo estado, String tipo, int limite) {
+        long inicio = System.nanoTime();
+        java.util.List<VehiculoElectrico> encontrados = indiceEspacial.buscarEnCaja(
+            latitudMinima, longitudMinima, latitudMaxima, longitudMaxima, estado, tipo, limite);
+        latenciaZona.observarDesde(inicio);
+        return encontrados;
+    }
+    
+    /**
+     * Los k vehiculos mas cercanos al punto por su ultima posicion, p. ej. el
+     * DISPONIBLE mas cercano a una entrega.
+     */
+    public ResultadoCercanos buscarVehiculosCercanos(double latitud, double longitud, int k,
+                                                     EstadoVehiculo estado, String tipo) {
+        long inicio = System.nanoTime();
+        ResultadoCercanos cercanos = indiceEspacial.buscarCercanos(latitud, longitud, k, estado, tipo);
+        latenciaCercanos.observarDesde(inicio);
+        return cercanos;
+    }
+    
+    /**
+     * @return {latitud, longitud} de la ultima lectura del vehiculo, o null si no tiene
+     */
+    public double[] obtenerUltimaPosicion(int vehiculoId) {
+        return indiceEspacial.getPosicion(vehiculoId);
+    }
+    
+    /**
+     * Vuelve a indexar la ultima lectura de cada vehiculo; se usa despues de
+     * restaurar el historial, que no pasa por registrarLectura.
+     */
+    private void reconstruirIndiceEspacial() {
+        SegmentoTelemetria ultima = new SegmentoTelemetria(1);
+        for (VehiculoElectrico vehiculo : vehiculos.values()) {
+            if (copiarHistorialTelemetria(vehiculo.getId(), 1, ultima) > 0) {
+                indiceEspacial.actualizar(vehiculo, ultima.getLatitud(0), ultima.getLongitud(0));
+            }
+        }
+    }
+    
+    // ====== Gestion de Rutas ======
+    
+    public Ruta crearRuta(String origen, String destino, float distancia) {
+        int id = contadorRutas.getAndIncrement();
+        Ruta ruta = new Ruta(id, origen, destino, distancia);
+        rutas.put(id, ruta);
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null) {
+            diarioActual.anotarRuta(ruta);
+        }
+        RegistroAsincrono.info("Ruta creada #{}: {} -> {}", id, origen, destino);
+        return ruta;
+    }
+    
+    public boolean asignarRutaAVehiculo(int vehiculoId, int rutaId) {
+        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
+        Ruta ruta = rutas.get(rutaId);
+        
+        if (vehiculo == null || ruta == null) {
+            RegistroAsincrono.aviso("Vehiculo o ruta no encontrados");
+            return false;
+        }
+        
+        if (vehiculo.getEstado() != EstadoVehiculo.DISPONIBLE) {
+            RegistroAsincrono.aviso("Vehiculo no disponible");
+            return false;
+        }
+        
+        // La transicion DISPONIBLE -> EN_RUTA es atomica: si otro despachador
+        // gano la carrera, asignarRuta devuelve false
+        if (!vehiculo.asignarRuta(ruta)) {
+            return false;
+        }
+        // La ruta tambien: si ya tiene vehiculo, este vuelve a quedar disponible
+        if (!ruta.reservarPara(vehiculoId)) {
+            vehiculo.compararYCambiarEstado(EstadoVehiculo.EN_RUTA, EstadoVehiculo.DISPONIBLE);
+            RegistroAsincrono.aviso("La ruta {} ya tiene el vehiculo {}", rutaId, ruta.getVehiculoId());
+            return false;
+        }
+        anotarEstado(vehiculo);
+        anotarAsignacion(ruta);
+        return true;
+    }
+    
+    /**
+     * Reparte de una vez todas las rutas sin vehiculo entre los vehiculos
+     * DISPONIBLES, minimizando el costo de DespachoRutas. Se resuelve sobre
+     * una copia de las rutas y vehiculos y despues se aplica todo o nada: si
+     * mientras tanto otro hilo tomo alguno, se deshace lo aplicado y se vuelve
+     * a resolver con lo que quede, hasta INTENTOS_DESPACHO veces.
+     * @return los pares aplicados; vacio si no hubo intento que se aplicara entero
+     */
+    public ResultadoDespacho despacharRutas() {
+        long[] pujas = new long[1];
+        long nanos = 0;
+        for (int intento = 1; ; intento++) {
+            java.util.List<Ruta> libres = new java.util.ArrayList<>();
+            for (Ruta ruta : rutas.values()) {
+                if (ruta.getVehiculoId() == 0) {
+                    libres.add(ruta);
+                }
+            }
+            java.util.List<VehiculoElectrico> disponibles = new java.util.ArrayList<>();
+            for (VehiculoElectrico vehiculo : vehiculos.values()) {
+                if (vehiculo.getEstado() == EstadoVehiculo.DISPONIBLE) {
+                    disponibles.add(vehiculo);
+                }
+            }
+            Ruta[] candidatas = libres.toArray(new Ruta[0]);
+            VehiculoElectrico[] flota = disponibles.toArray(new VehiculoElectrico[0]);
+            long inicio = System.nanoTime();
+            int[] asignacion = DespachoRutas.resolver(candidatas, flota, pujas);
+            nanos += System.nanoTime() - inicio;
+            
+            int asignadas = 0;
+            for (int elegido : asignacion) {
+                if (elegido >= 0) {
+                    asignadas++;
+                }
+            }
+            int[] rutasAsignadas = new int[asignadas];
+            int[] vehiculosAsignados = new int[asignadas];
+            // Las referencias aplicadas, por si hay que deshacer o alguna ya se borro de los mapas
+            Ruta[] rutasAplicadas = new Ruta[asignadas];
+            VehiculoElectrico[] vehiculosAplicados = new VehiculoElectrico[asignadas];
+            int[] sinAsignar = new int[candidatas.length - asignadas];
+            double costoTotal = 0;
+            int aplicadas = 0;
+            for (int i = 0, libre = 0; i < candidatas.length; i++) {
+                if (asignacion[i] < 0) {
+                    sinAsignar[libre++] = candidatas[i].getId();
+                    continue;
+                }
+                Ruta ruta = candidatas[i];
+                VehiculoElectrico vehiculo = flota[asignacion[i]];
+                if (!ruta.reservarPara(vehiculo.getId())) {
+                    break;
+                }
+                if (!vehiculo.compararYCambiarEstado(EstadoVehiculo.DISPONIBLE, EstadoVehiculo.EN_RUTA)) {
+                    ruta.liberar(vehiculo.getId());
+                    break;
+                }
+                rutasAsignadas[aplicadas] = ruta.getId();
+                vehiculosAsignados[aplicadas] = vehiculo.getId();
+                rutasAplicadas[aplicadas] = ruta;
+                vehiculosAplicados[aplicadas] = vehiculo;
+                costoTotal += DespachoRutas.costo(ruta, vehiculo);
+                aplicadas++;
+            }
+            if (aplicadas < asignadas) {
+                // Otro despachador se adelanto: se deshace en orden inverso
+                for (int k = aplicadas - 1; k >= 0; k--) {
+                    vehiculosAplicados[k].compararYCambiarEstado(EstadoVehiculo.EN_RUTA, EstadoVehiculo.DISPONIBLE);
+                    rutasAplicadas[k].liberar(vehiculosAsignados[k]);
+                }
+                if (intento < INTENTOS_DESPACHO) {
+                    continue;
+                }
+                RegistroAsincrono.aviso("Despacho abandonado tras {} intentos por asignaciones concurrentes", intento);
+                return new ResultadoDespacho(new int[0], new int[0], 0, new int[0], flota.length,
+                                             nanos / 1_000_000, pujas[0], intento);
+            }
+            for (int k = 0; k < aplicadas; k++) {
+                anotarEstado(vehiculosAplicados[k]);
+                anotarAsignacion(rutasAplicadas[k]);
+            }
+            ResultadoDespacho resultado = new ResultadoDespacho(rutasAsignadas, vehiculosAsignados, costoTotal,
+                                                                sinAsignar, flota.length, nanos / 1_000_000,
+                                                                pujas[0], intento);
+            RegistroAsincrono.info("{}", resultado);
+            return resultado;
+        }
+    }
+    
+    /**
+     * Ordena las entregas pendientes de la ruta y les asigna hora estimada,
+     * saliendo de la ultima posicion conocida del vehiculo asignado
+     * @return el plan, o null si la ruta no existe o no tiene entregas pendientes con ubicacion
+     */
+    public PlanEntregas secuenciarRuta(int rutaId) {
+        Ruta ruta = rutas.get(rutaId);
+        if (ruta == null) {
+            return null;
+        }
+        VehiculoElectrico vehiculo = vehiculos.get(ruta.getVehiculoId());
+        double[] partida = vehiculo != null ? obtenerUltimaPosicion(vehiculo.getId()) : null;
+        return secuenciador.secuenciar(ruta, vehiculo, partida, reloj.millis());
+    }
+    
+    /**
+     * Secuencia todas las rutas en paralelo
+     * @return cuantas rutas quedaron con plan
+     */
+    public int secuenciarRutas() {
+        Ruta[] todas = rutas.values().toArray(new Ruta[0]);
+        VehiculoElectrico[] asignados = new VehiculoElectrico[todas.length];
+        double[][] partidas = new double[todas.length][];
+        for (int i = 0; i < todas.length; i++) {
+            asignados[i] = vehiculos.get(todas[i].getVehiculoId());
+            partidas[i] = asignados[i] != null ? obtenerUltimaPosicion(asignados[i].getId()) : null;
+        }
+        int planes = 0;
+        for (PlanEntregas plan : secuenciador.secuenciarTodas(todas, asignados, partidas, reloj.millis())) {
+            if (plan != null) {
+                planes++;
+            }
+        }
+        return planes;
+    }
+    
+    public SecuenciadorEntregas getSecuenciador() {
+        return secuenciador;
+    }
+    
+    public Ruta consultarRuta(int id) {
+        return rutas.get(id);
+    }
+    
+    public java.util.Collection<Ruta> listarRutas() {
+        return rutas.values();
+    }
+    
+    public boolean agregarEntrega(int rutaId, Entrega entrega) {
+        Ruta ruta = rutas.get(rutaId);
+        if (ruta == null) {
+            return false;
+        }
+        ruta.agregarEntrega(entrega);
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null) {
+            diarioActual.anotarEntrega(ruta, entrega);
+        }
+        return true;
+    }
+    
+    public boolean cambiarEstadoEntrega(int rutaId, int entregaId, String nuevoEstado) {
+        Ruta ruta = rutas.get(rutaId);
+        Entrega entrega = ruta != null ? buscarEntrega(ruta, entregaId) : null;
+        if (entrega == null) {
+            return false;
+        }
+        boolean completada;
+        synchronized (entrega) {
+            completada = Entrega.COMPLETADA.equals(nuevoEstado) && !Entrega.COMPLETADA.equals(entrega.getEstado());
+            entrega.setEstado(nuevoEstado);
+        }
+        if (completada) {
+            estadisticas.contarEntregaCompletada(reloj.millis());
+        }
+        DiarioFlota diarioActual = diario;
+        if (diarioActual != null) {
+            diarioActual.anotarEntrega(ruta, entrega);
+        }
+        return true;
+    }
+    
+    private static Entrega buscarEntrega(Ruta ruta, int entregaId) {
+        for (Entrega entrega : ruta.getEntregas()) {
+            if (entrega.getId() == entregaId) {
+                return entrega;
+            }
+        }
+        return null;
+    }
+    
+    // ====== Gestion de Estados ======
+    
+    public boolean cambiarEstadoVehiculo(int vehiculoId, EstadoVehiculo nuevoEstado) {
+        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
+        if (vehiculo != null) {
+            if (nuevoEstado != EstadoVehiculo.CARGANDO) {
+                planificadorCarga.cancelar(vehiculoId, reloj.millis());
+            }
+            vehiculo.setEstado(nuevoEstado);
+            anotarEstado(vehiculo);
+            RegistroAsincrono.info("Vehiculo #{} cambio a estado: {}", vehiculoId, nuevoEstado);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Carga la bateria del vehiculo (queda en estado CARGANDO); la prioridad
+     * en la cola sale de las rutas que tiene asignadas sin terminar
+     */
+    public boolean cargarVehiculo(int vehiculoId) {
+        return cargarVehiculo(vehiculoId, distanciaRutasPendientes(vehiculoId));
+    }
+    
+    /**
+     * @return km de las rutas asignadas al vehiculo que aun tienen entregas
+     *         pendientes (o ninguna entrega todavia); 0 si no tiene
+     */
+    public float distanciaRutasPendientes(int vehiculoId) {
+        float distancia = 0;
+        for (Ruta ruta : rutas.values()) {
+            if (ruta.getVehiculoId() != vehiculoId) {
+                continue;
+            }
+            boolean pendiente = ruta.getEntregas().isEmpty();
+            for (Entrega entrega : ruta.getEntregas()) {
+                if (entrega.estaPendiente()) {
+                    pendiente = true;
+                    break;
+                }
+            }
+            if (pendiente) {
+                distancia += ruta.getDistancia();
+            }
+        }
+        return distancia;
+    }
+    
+    /**
+     * Pide un conector para el vehiculo; si no hay estaciones de carga
+     * registradas la bateria se llena al instante, como antes de existir el
+     * planificador
+     * @param distanciaProximaRutaKm  adelanta en la cola a quien no la cubriria con su bateria
+     * @return false si el vehiculo no existe o el planificador no lo acepta
+     */
+    public boolean cargarVehiculo(int vehiculoId, float distanciaProximaRutaKm) {
+        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
+        if (vehiculo == null) {
+            return false;
+        }
+        if (planificadorCarga.tieneEstaciones()) {
+            return planificadorCarga.solicitar(vehiculo, distanciaProximaRutaKm, reloj.millis());
+        }
+        vehiculo.cargar();
+        anotarEstado(vehiculo);
+        return true;
+    }
+    
+    /**
+     * @param potenciaKwPorTipo  kW por conector para cada tipo que carga la estacion
+     */
+    public EstacionCarga agregarEstacionCarga(String nombre, int conectores,
+                                              java.util.Map<String, Float> potenciaKwPorTipo) {
+        EstacionCarga estacion = new EstacionCarga(contadorEstaciones.getAndIncrement(), nombre, conectores,
+                                                   potenciaKwPorTipo);
+        planificadorCarga.agregarEstacion(estacion, reloj.millis());
+        RegistroAsincrono.info("Estacion de carga creada #{}: {} ({} conectores)", estacion.getId(), nombre, conectores);
+        return estacion;
+    }
+    
+    /**
+     * Vuelve a pedir conector para los vehiculos que quedaron en CARGANDO sin
+     * estar en el planificador (por ejemplo al restaurar la flota del diario)
+     * @return cuantos quedaron cargando o en cola
+     */
+    public int reanudarCargas() {
+        int reanudadas = 0;
+        long ahora = reloj.millis();
+        for (VehiculoElectrico vehiculo : vehiculos.values()) {
+            if (vehiculo.getEstado() == EstadoVehiculo.CARGANDO && planificadorCarga.solicitar(vehiculo, 0f, ahora)) {
+                reanudadas++;
+            }
+        }
+        return reanudadas;
+    }
+    
+    public PlanificadorCarga getPlanificadorCarga() {
+        return planificadorCarga;
+    }
+    
+    public java.time.Clock getReloj() {
+        return reloj;
+    }
+    
+    /**
+     * Cambia el estado solo si el vehiculo sigue en el estado esperado
+     */
+    public boolean cambiarEstadoVehiculo(int vehiculoId, EstadoVehiculo esperado, EstadoVehiculo nuevoEstado) {
+        VehiculoElectrico vehiculo = vehiculos.get(vehiculoId);
+        if (vehiculo != null && vehiculo.compararYCambiarEstado(esperado, nuevoEstado)) {
+            if (esperado == EstadoVehiculo.CARGANDO && nuevoEstado != EstadoVehiculo.CARGANDO) {
+                planificadorCarga.cancelar(vehiculoId, reloj.millis());
+            }
+            anotarEstado(vehiculo);
+            RegistroAsincrono.info("Vehiculo #{} cambio a estado: {}", vehiculoId, nuevoEstado);
+            return true;
+        }
+        return false;
+    }
+    
+    public java.util.List<VehiculoElectrico> obtenerVehiculosDisponibles() {
+        long inicio = System.nanoTime();
+        java.util.List<VehiculoElectrico> disponibles = new java.util.ArrayList<>();
+        for (VehiculoElectrico v : vehiculos.values()) {
+            if (v.getEstado() == EstadoVehiculo.DISPONIBLE) {
+                disponibles.add(v);
+            }
+        }
+        latenciaDisponibles.observarDesde(inicio);
+        return disponibles;
+    }
+    
+    // ====== Fotos de la flota ======
+    
+    /**
+     * Foto inmutable de la flota para leer sin candados. Con publicarFotos
+     * activo devuelve la ultima publicada sin esperar; si no, la rehace aqui
+     * cuando la flota cambio desde la anterior.
+     */
+    public FotoFlota obtenerFoto() {
+        return publicadorFotos != null ? foto : refrescarFoto();
+    }
+    
+    /**
+     * Publica una foto nueva cada periodo, solo si la flota cambio; los
+     * lectores toman la ultima con obtenerFoto. Un periodo corto sigue los
+     * cambios de cerca; uno largo cuesta menos con una flota grande.
+     */
+    public synchronized void publicarFotos(long periodoMillis) {
+        if (periodoMillis <= 0) {
+            throw new IllegalArgumentException("Periodo no valido: " + periodoMillis);
+        }
+        detenerFotos();
+        java.util.concurrent.ScheduledExecutorService publicador =
+            java.util.concurrent.Executors.newSingleThreadScheduledExecutor(tarea -> {
+                Thread hilo = new Thread(tarea, "sigefve-fotos");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        refrescarFoto();
+        publicador.scheduleWithFixedDelay(() -> {
+            try {
+                refrescarFoto();
+            } catch (RuntimeException e) {
+                RegistroAsincrono.error("No se pudo publicar la foto de la flota: {}", e.getMessage());
+            }
+        }, periodoMillis, periodoMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+        publicadorFotos = publicador;
+    }
+    
+    public synchronized void detenerFotos() {
+        if (publicadorFotos != null) {
+            publicadorFotos.shutdownNow();
+            publicadorFotos = null;
+        }
+    }
+    
+    /**
+     * Toma y publica una foto si la flota cambio desde la ultima. Un vehiculo
+     * cargando cambia de bateria sin lecturas ni cambios de estado, asi que
+     * mientras la ultima foto tenga alguno se toma siempre.
+     */
+    private FotoFlota refrescarFoto() {
+        synchronized (candadoFoto) {
+            FotoFlota actual = foto;
+            long marca = marcaCambios();
+            if (actual.getMarca() == marca && actual.getVehiculos(EstadoVehiculo.CARGANDO) == 0) {
+                return actual;
+            }
+            FotoFlota nueva = tomarFoto(actual.getVersion() + 1, marca);
+            foto = nueva;
+            return nueva;
+        }
+    }
+    
+    /** Crece con cada lectura registrada, cada alta, baja o cambio de estado y cada cambio de modelo */
+    private long marcaCambios() {
+        return contadorTelemetria.get() + estadisticas.getCambiosEstado() + cambiosFlota.get()
+               + actualizacionesVehiculos.get();
+    }
+    
+    /**
+     * Copia cada vehiculo una vez, en orden de id, con estado y bateria
+     * leidos juntos en su candado; despues las posiciones desde el indice
+     * espacial
+     */
+    private FotoFlota tomarFoto(long version, long marca) {
+        long inicio = System.nanoTime();
+        VehiculoElectrico[] copiados = new VehiculoElectrico[vehiculos.size()];
+        int tamano = 0;
+        for (VehiculoElectrico vehiculo : vehiculos.values()) {
+            if (tamano == copiados.length) {
+                // Hubo altas mientras se recorria
+                copiados = java.util.Arrays.copyOf(copiados, Math.max(16, tamano * 2));
+            }
+            copiados[tamano++] = vehiculo;
+        }
+        // El mapa no recorre en orden de id, y en una particion los ids no son densos: se ordenan
+        // claves id << 32 | posicion, sin comparador
+        long[] claves = new long[tamano];
+        for (int i = 0; i < tamano; i++) {
+            claves[i] = (long) copiados[i].getId() << 32 | i;
+        }
+        java.util.Arrays.sort(claves);
+        int[] ids = new int[tamano];
+        String[] tipos = new String[tamano];
+        String[] modelos = new String[tamano];
+        byte[] estados = new byte[tamano];
+        float[] baterias = new float[tamano];
+        float[] capacidades = new float[tamano];
+        for (int i = 0; i < tamano; i++) {
+            VehiculoElectrico vehiculo = copiados[(int) claves[i]];
+            ids[i] = vehiculo.getId();
+            tipos[i] = vehiculo.getTipo();
+            modelos[i] = vehiculo.getModelo();
+            capacidades[i] = vehiculo.getCapacidadBateria();
+            synchronized (vehiculo) {
+                estados[i] = (byte) vehiculo.getEstado().ordinal();
+                baterias[i] = vehiculo.getNivelBateria();
+            }
+        }
+        double[] latitudes = new double[tamano];
+        double[] longitudes = new double[tamano];
+        java.util.Arrays.fill(latitudes, Double.NaN);
+        java.util.Arrays.fill(longitudes, Double.NaN);
+        indiceEspacial.copiarPosiciones(ids, tamano, latitudes, longitudes);
+        FotoFlota nueva = new FotoFlota(version, marca, reloj.millis(), tamano, ids, tipos, modelos,
+                                        estados, baterias, capacidades, latitudes, longitudes);
+        latenciaFoto.observarDesde(inicio);
+        return nueva;
+    }
+    
+    // ====== Estadisticas ======
+    
+    /**
+     * Conteos por estado y totales diarios, mantenidos al ocurrir cada evento:
+     * la consulta no recorre la flota ni el historial. Las entregas
+     * completadas cuentan desde el arranque (el diario no guarda la hora en
+     * que se completaron); los km se recuperan de la bitacora al restaurar.
+     */
+    public ResumenEstadisticas obtenerEstadisticas() {
+        return estadisticas.resumir();
+    }
+    
+    /**
+     * @return cantidad de vehiculos en cada estado, indexada por EstadoVehiculo.ordinal()
+     */
+    public int[] contarVehiculosPorEstado() {
+        ResumenEstadisticas resumen = estadisticas.resumir();
+        int[] conteo = new int[EstadoVehiculo.values().length];
+        for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+            conteo[estado.ordinal()] = resumen.getVehiculos(estado);
+        }
+        return conteo;
+    }
+    
+    public long getTotalLecturasTelemetria() {
+        return contadorTelemetria.get() - 1;
+    }
+    
+    /**
+     * Lecturas crudas que guarda el historial de toda la flota; recorre los
+     * buffers, se usa al consultar las metricas y no en cada lectura
+     */
+    public long contarLecturasEnHistorial() {
+        long total = 0;
+        for (BufferTelemetriaVehiculo buffer : historialTelemetria.values()) {
+            total += buffer.getTamano();
+        }
+        return total;
+    }
+    
+    public void mostrarEstadisticas() {
+        ResumenEstadisticas resumen = estadisticas.resumir();
+        RegistroAsincrono.info("\n=== ESTADiSTICAS DE LA FLOTA ===");
+        RegistroAsincrono.info("Total de vehiculos: {}", resumen.getTotalVehiculos());
+        RegistroAsincrono.info("Vehiculos disponibles: {}", resumen.getVehiculos(EstadoVehiculo.DISPONIBLE));
+        RegistroAsincrono.info("Rutas creadas: {}", rutas.size());
+        RegistroAsincrono.info("Registros de telemetria: {}", getTotalLecturasTelemetria());
+        RegistroAsincrono.info("Km recorridos hoy: {}", String.format("%.1f", resumen.getKilometrosHoy()));
+        RegistroAsincrono.info("Entregas completadas hoy: {}", resumen.getEntregasCompletadasHoy());
+        RegistroAsincrono.info("================================\n");
+    }
+    
+    // ====== Metricas ======
+    
+    public MetricasFlota getMetricas() {
+        return metricas;
+    }
+    
+    private void registrarMetricas() {
+        latenciaTelemetria = metricas.histograma("sigefve_registrar_telemetria_segundos",
+            "Latencia de registrarTelemetria", "");
+        latenciaLote = metricas.histograma("sigefve_ingesta_lote_segundos",
+            "Latencia de registrarTelemetriaLote por lote", "");
+        String consulta = "sigefve_consulta_segundos";
+        String ayudaConsulta = "Latencia de las consultas de GestorFlota";
+        latenciaHistorial = metricas.histograma(consulta, ayudaConsulta, "consulta=\"historial\"");
+        latenciaUltima = metricas.histograma(consulta, ayudaConsulta, "consulta=\"ultima\"");
+        latenciaDisponibles = metricas.histograma(consulta, ayudaConsulta, "consulta=\"disponibles\"");
+        latenciaZona = metricas.histograma(consulta, ayudaConsulta, "consulta=\"zona\"");
+        latenciaCercanos = metricas.histograma(consulta, ayudaConsulta, "consulta=\"cercanos\"");
+        latenciaFoto = metricas.histograma("sigefve_foto_segundos", "Tiempo en copiar la flota a una foto nueva", "");
+        metricas.medidor("sigefve_foto_edad_segundos", "Antiguedad de la ultima foto publicada", "",
+                         () -> foto == FotoFlota.VACIA ? 0 : (reloj.millis() - foto.getMillis()) / 1000.0);
+        
+        // La tasa la calcula Prometheus: rate(sigefve_lecturas_ingeridas_total[1m])
+        metricas.contador("sigefve_lecturas_ingeridas_total", "Lecturas de telemetria registradas", "",
+                          this::getTotalLecturasTelemetria);
+        String descartadas = "sigefve_lecturas_descartadas_total";
+        String ayudaDescartadas = "Lecturas de dispositivos descartadas por la ventana de reorden";
+        metricas.contador(descartadas, ayudaDescartadas, "motivo=\"duplicada\"",
+                          () -> reorden == null ? 0 : reorden.getDuplicadas());
+        metricas.contador(descartadas, ayudaDescartadas, "motivo=\"tardia\"",
+                          () -> reorden == null ? 0 : reorden.getTardias());
+        metricas.contador(descartadas, ayudaDescartadas, "motivo=\"adelantada\"",
+                          () -> reorden == null ? 0 : reorden.getAdelantadas());
+        metricas.contador("sigefve_lecturas_retenidas_total", "Lecturas que esperaron en la ventana de reorden", "",
+                          () -> reorden == null ? 0 : reorden.getRetenidas());
+        metricas.medidor("sigefve_historial_lecturas", "Lecturas crudas guardadas en el historial", "",
+                         this::contarLecturasEnHistorial);
+        for (EstadoVehiculo estado : EstadoVehiculo.values()) {
+            metricas.medidor("sigefve_vehiculos", "Vehiculos por estado",
+                             "estado=\"" + estado.name().toLowerCase() + "\"",
+                             () -> estadisticas.resumir().getVehiculos(estado));
+        }
+        metricas.medidor("sigefve_rutas", "Rutas registradas", "", () -> rutas.size());
+        java.lang.management.MemoryMXBean memoria = java.lang.management.ManagementFactory.getMemoryMXBean();
+        metricas.medidor("sigefve_heap_bytes", "Heap de la JVM", "uso=\"usado\"",
+                         () -> memoria.getHeapMemoryUsage().getUsed());
+        metricas.medidor("sigefve_heap_bytes", "Heap de la JVM", "uso=\"comprometido\"",
+                         () -> memoria.getHeapMemoryUsage().getCommitted());
+        metricas.medidor("sigefve_heap_bytes", "Heap de la JVM", "uso=\"maximo\"",
+                         () -> memoria.getHeapMemoryUsage().getMax());
+        metricas.medidor("sigefve_carga_en_espera", "Vehiculos esperando un conector", "",
+                         () -> planificadorCarga.getEnEspera());
+        metricas.medidor("sigefve_carga_cargando", "Vehiculos conectados cargando", "",
+                         () -> planificadorCarga.getCargando());
+        metricas.contador("sigefve_carga_decisiones_total", "Solicitudes, inicios y fines de carga resueltos", "",
+                          () -> planificadorCarga.getDecisiones());
+        metricas.contador("sigefve_registro_descartados_total", "Mensajes de registro perdidos con la cola llena", "",
+                          RegistroAsincrono::getDescartados);
+    }
+    
+    /**
+     * Publica el evento JFR sigefve.EstadoFlota cada segundo mientras haya una
+     * grabacion activa (por ejemplo java -XX:StartFlightRecording ...)
+     */
+    public void activarEventosJfr() {
+        if (eventoEstadoJfr != null) {
+            return;
+        }
+        Runnable publicar = () -> {
+            EventoEstadoFlota evento = new EventoEstadoFlota();
+            ResumenEstadisticas resumen = estadisticas.resumir();
+            evento.disponibles = resumen.getVehiculos(EstadoVehiculo.DISPONIBLE);
+            evento.enRuta = resumen.getVehiculos(EstadoVehiculo.EN_RUTA);
+            evento.mantenimiento = resumen.getVehiculos(EstadoVehiculo.MANTENIMIENTO);
+            evento.cargando = resumen.getVehiculos(EstadoVehiculo.CARGANDO);
+            evento.lecturasIngeridas = getTotalLecturasTelemetria();
+            evento.lecturasEnHistorial = contarLecturasEnHistorial();
+            evento.commit();
+        };
+        eventoEstadoJfr = publicar;
+        jdk.jfr.FlightRecorder.addPeriodicEvent(EventoEstadoFlota.class, publicar);
+    }
+    
+    public void desactivarEventosJfr() {
+        Runnable publicar = eventoEstadoJfr;
+        if (publicar != null) {
+            jdk.jfr.FlightRecorder.removePeriodicEvent(publicar);
+            eventoEstadoJfr = null;
+        }
+    }
+}
+
+/**
+ * Simulador de telemetria que genera datos periodicamente.
+ * La flota se reparte entre varios trabajadores de un ScheduledExecutorService;
+ * cada trabajador atiende su fraccion de vehiculos a tasa fija (sin deriva)
+ * y usa su propio SplittableRandom, asi tambien sirve como generador de carga.
+ */
+class SimuladorTelemetria implements Runnable {
+    private static final jdk.jfr.EventType EVENTO_TICK = jdk.jfr.EventType.getEventType(EventoTickSimulador.class);
+    
+    private GestorFlota gestorFlota;
+    private volatile boolean activo;
+    private long periodoNanos;
+    private int trabajadores;
+    private long semilla;
+    private java.util.concurrent.ScheduledExecutorService planificador;
+    private java.util.concurrent.atomic.LongAdder lecturasGeneradas;
+    private java.util.concurrent.atomic.LongAdder ticksAtrasados;
+    private java.util.concurrent.atomic.LongAccumulator retrasoMaximoNanos;
+    // Series de la flota: las comparten todos los simuladores que la alimentan
+    private HistogramaLatencia retrasoTicks;
+    private java.util.concurrent.atomic.LongAdder ticksAtrasadosFlota;
+    private long inicioNanos;
+    private long finNanos;
+    
+    public SimuladorTelemetria(GestorFlota gestorFlota, int intervaloSegundos) {
+        this(gestorFlota, intervaloSegundos * 1000L, 1, System.nanoTime());
+    }
+    
+    /**
+     * @param periodoMillis cada cuanto genera una lectura cada vehiculo
+     * @param trabajadores  hilos entre los que se reparte la flota
+     * @param semilla       semilla de la que se derivan los generadores de cada trabajador
+     */
+    public SimuladorTelemetria(GestorFlota gestorFlota, long periodoMillis, int trabajadores, long semilla) {
+        if (periodoMillis <= 0 || trabajadores <= 0) {
+            throw new IllegalArgumentException("Periodo y trabajadores deben ser positivos");
+        }
+        this.gestorFlota = gestorFlota;
+        this.periodoNanos = periodoMillis * 1_000_000L;
+        this.trabajadores = trabajadores;
+        this.semilla = semilla;
         this.activo = false;
-        System.out.println("Simulador de telemetria detenido");
+        this.lecturasGeneradas = new java.util.concurrent.atomic.LongAdder();
+        this.ticksAtrasados = new java.util.concurrent.atomic.LongAdder();
+        this.retrasoMaximoNanos = new java.util.concurrent.atomic.LongAccumulator(Math::max, 0);
+        this.retrasoTicks = gestorFlota.getMetricas().histograma(
+            "sigefve_simulador_retraso_tick_segundos", "Retraso con que empieza cada ronda del simulador", "");
+        this.ticksAtrasadosFlota = gestorFlota.getMetricas().contador(
+            "sigefve_simulador_ticks_atrasados_total", "Rondas del simulador que empezaron mas de un periodo tarde", "");
     }
     
-    @Override
-    public void run() {
-        while (activo) {
+    public void iniciar() {
+        this.activo = true;
+        java.util.concurrent.atomic.AtomicInteger numeroHilo = new java.util.concurrent.atomic.AtomicInteger();
+        this.planificador = java.util.concurrent.Executors.newScheduledThreadPool(trabajadores, tarea -> {
+            Thread hilo = new Thread(tarea, "simulador-" + numeroHilo.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        
+        java.util.SplittableRandom raiz = new java.util.SplittableRandom(semilla);
+        this.inicioNanos = System.nanoTime();
+        this.finNanos = 0;
+        for (int k = 0; k < trabajadores; k++) {
+            // Los trabajadores arrancan escalonados para repartir la carga dentro del periodo
+            long desfase = periodoNanos * k / trabajadores;
+            Trabajador trabajador = new Trabajador(k, raiz.split(), inicioNanos + desfase);
+            planificador.scheduleAtFixedRate(trabajador, desfase, periodoNanos,
+                                             java.util.concurrent.TimeUnit.NANOSECONDS);
+        }
+        RegistroAsincrono.info("Simulador de telemetria iniciado (intervalo: {}ms, {} trabajadores)",
+                               periodoNanos / 1_000_000, trabajadores);
+    }
+    
+    public void detener() {
+        this.activo = false;
+        if (planificador != null) {
+            planificador.shutdown();
             try {
-                // Generar telemetria para cada vehiculo
-                for (VehiculoElectrico vehiculo : gestorFlota.listarVehiculos()) {
-                    generarTelemetriaAleatoria(vehiculo);
-                }
-                
-                Thread.sleep(intervaloSegundos * 1000);
+                planificador.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS);
             } catch (InterruptedException e) {
-                System.out.println("Simulador interrumpido");
-                break;
+                Thread.currentThread().interrupt();
             }
         }
+        this.finNanos = System.nanoTime();
+        RegistroAsincrono.info("Simulador de telemetria detenido");
     }
     
-    private void generarTelemetriaAleatoria(VehiculoElectrico vehiculo) {
-        java.util.Random random = new java.util.Random();
-        
+    /**
+     * Genera una ronda de lecturas para toda la flota en el hilo que llama
+     */
+    @Override
+    public void run() {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(semilla);
+        for (VehiculoElectrico vehiculo : gestorFlota.listarVehiculos()) {
+            generarTelemetriaAleatoria(vehiculo, random);
+        }
+    }
+    
+    void generarTelemetriaAleatoria(VehiculoElectrico vehiculo, java.util.SplittableRandom random) {
         // Generar datos aleatorios pero realistas
         float velocidad = vehiculo.getEstado() == EstadoVehiculo.EN_RUTA ? 
-                         20 + random.nextFloat() * 40 : 0;
-        float temperatura = 30 + random.nextFloat() * 50;
-        String gps = String.format("%.6f,%.6f", 
-                                  20.5 + random.nextFloat() * 0.1,
-                                  -100.3 + random.nextFloat() * 0.1);
+                         20 + (float) random.nextDouble() * 40 : 0;
+        float temperatura = 30 + (float) random.nextDouble() * 50;
+        double latitud = 20.5 + random.nextDouble() * 0.1;
+        double longitud = -100.3 + random.nextDouble() * 0.1;
+        
+        gestorFlota.registrarLectura(vehiculo.getId(), gestorFlota.getReloj().millis(),
+                                     velocidad, temperatura, latitud, longitud);
+        lecturasGeneradas.increment();
+    }
+    
+    // ====== Resultados de la carga generada ======
+    
+    public long getLecturasGeneradas() {
+        return lecturasGeneradas.sum();
+    }
+    
+    /**
+     * Lecturas por segundo logradas desde que se inicio el simulador
+     */
+    public double getLecturasPorSegundo() {
+        long fin = finNanos != 0 ? finNanos : System.nanoTime();
+        return getLecturasGeneradas() * 1e9 / Math.max(1, fin - inicioNanos);
+    }
+    
+    /**
+     * Rondas que empezaron mas de un periodo tarde (el trabajador no da abasto)
+     */
+    public long getTicksAtrasados() {
+        return ticksAtrasados.sum();
+    }
+    
+    public double getRetrasoMaximoMillis() {
+        return retrasoMaximoNanos.get() / 1e6;
+    }
+    
+    public boolean isActivo() {
+        return activo;
+    }
+    
+    /**
+     * Atiende los vehiculos cuyo id cae en su fraccion de la flota
+     */
+    private class Trabajador implements Runnable {
+        private int fraccion;
+        private java.util.SplittableRandom random;
+        private long siguienteTickNanos;
+        private VehiculoElectrico[] asignados;
+        private long cambiosConocidos;
+        
+        Trabajador(int fraccion, java.util.SplittableRandom random, long primerTickNanos) {
+            this.fraccion = fraccion;
+            this.random = random;
+            this.siguienteTickNanos = primerTickNanos;
+            this.asignados = new VehiculoElectrico[0];
+            this.cambiosConocidos = -1;
+        }
+        
+        @Override
+        public void run() {
+            if (!activo) {
+                return;
+            }
+            long retraso = System.nanoTime() - siguienteTickNanos;
+            siguienteTickNanos += periodoNanos;
+            retrasoTicks.observar(Math.max(0, retraso));
+            if (retraso > 0) {
+                retrasoMaximoNanos.accumulate(retraso);
+                if (retraso > periodoNanos) {
+                    ticksAtrasados.increment();
+                    ticksAtrasadosFlota.increment();
+                }
+            }
+            
+            if (gestorFlota.getCambiosFlota() != cambiosConocidos) {
+                repartir();
+            }
+            for (VehiculoElectrico vehiculo : asignados) {
+                try {
+                    generarTelemetriaAleatoria(vehiculo, random);
+                } catch (IllegalArgumentException e) {
+                    // Se dio de baja durante la ronda; el siguiente reparto ya no lo incluye
+                }
+            }
+            if (EVENTO_TICK.isEnabled()) {
+                EventoTickSimulador evento = new EventoTickSimulador();
+                evento.retraso = Math.max(0, retraso);
+                evento.lecturas = asignados.length;
+                evento.commit();
+            }
+        }
         
-        gestorFlota.registrarTelemetria(vehiculo.getId(), velocidad, temperatura, gps);
+        private void repartir() {
+            java.util.List<VehiculoElectrico> propios = new java.util.ArrayList<>();
+            // Se lee antes de listar: un cambio a mitad del reparto se vuelve a ver en la siguiente ronda
+            cambiosConocidos = gestorFlota.getCambiosFlota();
+            java.util.Collection<VehiculoElectrico> flota = gestorFlota.listarVehiculos();
+            for (VehiculoElectrico vehiculo : flota) {
+                if (Math.floorMod(vehiculo.getId(), trabajadores) == fraccion) {
+                    propios.add(vehiculo);
+                }
+            }
+            asignados = propios.toArray(new VehiculoElectrico[0]);
+        }
     }
 }
 
@@ -544,73 +2864,313 @@ class SimuladorTelemetria implements Runnable {
 
 public class Sigefve {
     public static void main(String[] args) {
-        System.out.println("=== SISTEMA DE GESTIoN DE FLOTA DE VEHiCULOS ELeCTRICOS ===\n");
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            BancoPruebas.ejecutar(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("simulacion")) {
+            simular(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("particion")) {
+            servirParticion(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("dispositivos")) {
+            generarCargaDispositivos(args);
+            return;
+        }
         
-        // Crear gestor de flota
-        GestorFlota gestor = new GestorFlota();
+        RegistroAsincrono.info("=== SISTEMA DE GESTIoN DE FLOTA DE VEHiCULOS ELeCTRICOS ===\n");
         
-        // Crear vehiculos
-        System.out.println("--- Creando vehiculos ---");
-        gestor.crearVehiculo("van", "Ford E-Transit", 67.0f);
-        gestor.crearVehiculo("van", "Mercedes eSprinter", 55.0f);
-        gestor.crearVehiculo("bicicleta", "Specialized Turbo", 0.5f);
-        gestor.crearVehiculo("bicicleta", "Trek Allant+", 0.6f);
-        gestor.crearVehiculo("moto", "Zero SR/F", 14.4f);
-        gestor.crearVehiculo("moto", "Energica Ego", 21.5f);
+        // Crear gestor de flota; SIGEFVE_VENTANA_CRUDA_MINUTOS=<minutos> de lecturas crudas (opcional)
+        RetencionTelemetria retencion = RetencionTelemetria.porDefecto();
+        String ventanaCruda = System.getenv("SIGEFVE_VENTANA_CRUDA_MINUTOS");
+        if (ventanaCruda != null && !ventanaCruda.isEmpty()) {
+            retencion = new RetencionTelemetria(Long.parseLong(ventanaCruda) * 60_000L,
+                                                retencion.getMinutosConservados(), retencion.getHorasConservadas());
+        }
+        GestorFlota gestor = new GestorFlota(GestorFlota.CAPACIDAD_HISTORIAL_POR_DEFECTO, retencion);
+        configurarAlertas(gestor.getMotorAlertas());
+        // Sin efecto si no hay una grabacion de JFR activa
+        gestor.activarEventosJfr();
         
-        // Crear rutas
-        System.out.println("\n--- Creando rutas ---");
-        Ruta ruta1 = gestor.crearRuta("Centro", "Zona Norte", 15.5f);
-        ruta1.agregarEntrega(new Entrega(1, "Calle Principal 123", 
-                           java.time.LocalDateTime.now().plusHours(1)));
+        // Persistencia (opcional): SIGEFVE_DATOS=<directorio>
+        BitacoraTelemetria bitacora = null;
+        DiarioFlota diario = null;
+        String directorioDatos = System.getenv("SIGEFVE_DATOS");
+        if (directorioDatos != null && !directorioDatos.isEmpty()) {
+            try {
+                diario = new DiarioFlota(java.nio.file.Paths.get(directorioDatos, "flota"));
+                RegistroAsincrono.info("Flota restaurada: {}", gestor.restaurarEstado(diario));
+                bitacora = new BitacoraTelemetria(java.nio.file.Paths.get(directorioDatos, "telemetria"));
+                RegistroAsincrono.info("Telemetria restaurada: {}", gestor.restaurarTelemetria(bitacora));
+                gestor.activarPersistencia(bitacora);
+                gestor.activarDiario(diario);
+            } catch (java.io.IOException e) {
+                RegistroAsincrono.error("No se pudo abrir la persistencia en {}: {}", directorioDatos, e.getMessage());
+            }
+        }
         
-        Ruta ruta2 = gestor.crearRuta("Centro", "Zona Sur", 12.3f);
-        ruta2.agregarEntrega(new Entrega(2, "Avenida Reforma 456", 
-                           java.time.LocalDateTime.now().plusHours(2)));
+        // La flota de demostracion solo se crea si no se restauro una
+        if (gestor.listarVehiculos().isEmpty()) {
+            crearFlotaDemostracion(gestor);
+        }
+        configurarEstacionesCarga(gestor);
+        gestor.reanudarCargas();
+        gestor.getPlanificadorCarga().iniciar(1000);
         
-        // Asignar rutas
-        System.out.println("\n--- Asignando rutas ---");
-        gestor.asignarRutaAVehiculo(1, 1);
-        gestor.asignarRutaAVehiculo(3, 2);
+        // API HTTP (opcional): SIGEFVE_API_PUERTO=<puerto>
+        ServidorApi servidor = null;
+        DifusorTelemetria difusor = null;
+        String puertoApi = System.getenv("SIGEFVE_API_PUERTO");
+        if (puertoApi != null && !puertoApi.isEmpty()) {
+            difusor = new DifusorTelemetria(gestor);
+            gestor.activarDifusion(difusor);
+            // El primer administrador sale del entorno: SIGEFVE_ADMIN_CORREO y SIGEFVE_ADMIN_CONTRASENA.
+            // Por /api/register sin token solo se crean mecanicos; los demas roles los da un administrador
+            RegistroUsuarios usuarios = new RegistroUsuarios();
+            String correoAdmin = System.getenv("SIGEFVE_ADMIN_CORREO");
+            if (correoAdmin != null && !correoAdmin.isEmpty()) {
+                try {
+                    usuarios.registrar("Administrador", correoAdmin, System.getenv("SIGEFVE_ADMIN_CONTRASENA"),
+                                       RegistroUsuarios.ROL_ADMINISTRADOR);
+                } catch (IllegalArgumentException e) {
+                    RegistroAsincrono.error("No se pudo crear el administrador {}: {}", correoAdmin, e.getMessage());
+                }
+            }
+            // GET /api/vehiculos lee la ultima foto; publicada cada segundo, ninguna peticion copia la flota
+            gestor.publicarFotos(1000);
+            try {
+                servidor = new ServidorApi(gestor, usuarios, difusor,
+                                           new java.net.InetSocketAddress(Integer.parseInt(puertoApi)));
+                servidor.iniciar();
+            } catch (java.io.IOException | NumberFormatException e) {
+                RegistroAsincrono.error("No se pudo iniciar la API en el puerto {}: {}", puertoApi, e.getMessage());
+            }
+        }
         
-        // Registrar telemetria manual
-        System.out.println("\n--- Registrando telemetria ---");
-        gestor.registrarTelemetria(1, 45.5f, 55.2f, "20.523456,-100.345678");
-        gestor.registrarTelemetria(3, 25.0f, 40.1f, "20.534567,-100.356789");
+        // Ingesta binaria de dispositivos (opcional): SIGEFVE_INGESTA_PUERTO=<puerto>, TCP y UDP
+        ServidorIngesta ingesta = null;
+        String puertoIngesta = System.getenv("SIGEFVE_INGESTA_PUERTO");
+        if (puertoIngesta != null && !puertoIngesta.isEmpty()) {
+            try {
+                ingesta = new ServidorIngesta(gestor, new java.net.InetSocketAddress(Integer.parseInt(puertoIngesta)), true);
+                // Las pasarelas reenvian lo acumulado sin red: tarde, desordenado y a veces repetido
+                gestor.activarReorden(ReordenTelemetria.porDefecto());
+                ingesta.iniciar();
+            } catch (java.io.IOException | NumberFormatException e) {
+                RegistroAsincrono.error("No se pudo iniciar la ingesta en el puerto {}: {}", puertoIngesta, e.getMessage());
+            }
+        }
         
         // Mostrar estadisticas
         gestor.mostrarEstadisticas();
         
-        // Listar vehiculos
-        System.out.println("--- Estado de vehiculos ---");
-        for (VehiculoElectrico v : gestor.listarVehiculos()) {
-            System.out.printf("Vehiculo #%d - Modelo: %s, Estado: %s, Bateria: %.1f%%\n",
-                            v.getId(), v.getModelo(), v.getEstado(), v.getNivelBateria());
+        // Listar vehiculos desde una foto: el simulador y la API pueden cambiarlos mientras se imprime
+        RegistroAsincrono.info("--- Estado de vehiculos ---");
+        FotoFlota flota = gestor.obtenerFoto();
+        for (int i = 0; i < flota.getTamano(); i++) {
+            RegistroAsincrono.info("Vehiculo #{} - Modelo: {}, Estado: {}, Bateria: {}%", flota.getId(i),
+                                   flota.getModelo(i), flota.getEstado(i), String.format("%.1f", flota.getNivelBateria(i)));
         }
         
         // Iniciar simulador de telemetria (opcional)
-        System.out.println("\n--- Iniciando simulador (5 segundos) ---");
+        RegistroAsincrono.info("\n--- Iniciando simulador (5 segundos) ---");
         SimuladorTelemetria simulador = new SimuladorTelemetria(gestor, 5);
         simulador.iniciar();
         
         // Ejecutar por 20 segundos y luego detener
         try {
             Thread.sleep(20000);
+            if (servidor != null || ingesta != null) {
+                // Con la API o la ingesta activas el servicio sigue vivo hasta que se detenga el proceso
+                esperarApagado();
+            }
             simulador.detener();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        gestor.getPlanificadorCarga().detener();
         
         // Mostrar historial de telemetria
-        System.out.println("\n--- Historial de telemetria del vehiculo #1 ---");
+        RegistroAsincrono.info("\n--- Historial de telemetria del vehiculo #1 ---");
         java.util.List<Telemetria> historial = gestor.consultarHistorialTelemetria(1);
         for (Telemetria t : historial) {
-            System.out.println(t);
+            RegistroAsincrono.info("{}", t);
         }
         
         // Estadisticas finales
         gestor.mostrarEstadisticas();
         
-        System.out.println("\n=== FIN DEL PROGRAMA ===");
+        if (ingesta != null) {
+            try {
+                ingesta.close();
+            } catch (java.io.IOException e) {
+                RegistroAsincrono.error("Error al cerrar la ingesta: {}", e.getMessage());
+            }
+        }
+        if (servidor != null) {
+            servidor.close();
+        }
+        if (difusor != null) {
+            difusor.close();
+        }
+        try {
+            if (diario != null) {
+                diario.close();
+            }
+            if (bitacora != null) {
+                bitacora.close();
+            }
+        } catch (java.io.IOException e) {
+            RegistroAsincrono.error("Error al cerrar la persistencia: {}", e.getMessage());
+        }
+        
+        RegistroAsincrono.info("\n=== FIN DEL PROGRAMA ===");
+        RegistroAsincrono.vaciar(2_000);
+    }
+    
+    /**
+     * Bloquea hasta que la JVM empiece a apagarse (SIGTERM, Ctrl+C) y deja que
+     * main termine de cerrar la persistencia antes de salir.
+     */
+    private static void esperarApagado() throws InterruptedException {
+        java.util.concurrent.CountDownLatch apagado = new java.util.concurrent.CountDownLatch(1);
+        Thread principal = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            apagado.countDown();
+            try {
+                principal.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        RegistroAsincrono.info("Servicio en ejecucion; detener con Ctrl+C");
+        apagado.await();
+    }
+    
+    /**
+     * java Sigefve simulacion [vehiculos] [horas] [semilla]: un dia de reparto
+     * con reloj virtual, tan rapido como se pueda
+     */
+    private static void simular(String[] args) {
+        int vehiculos = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int horas = args.length > 2 ? Integer.parseInt(args[2]) : 24;
+        long semilla = args.length > 3 ? Long.parseLong(args[3]) : 2026;
+        // Los mensajes de cada ruta y asignacion no aportan en una simulacion
+        if (System.getenv("SIGEFVE_NIVEL_REGISTRO") == null) {
+            RegistroAsincrono.setNivel(NivelRegistro.AVISO);
+        }
+        RegistroAsincrono.aviso("{}", new SimulacionFlota(vehiculos, semilla).ejecutar(horas * 3_600_000L));
+        RegistroAsincrono.vaciar(2_000);
+    }
+    
+    /**
+     * java Sigefve particion [puerto] [capacidad historial]: sirve una
+     * particion de la flota en loopback para una FlotaParticionada
+     */
+    private static void servirParticion(String[] args) {
+        int puerto = args.length > 1 ? Integer.parseInt(args[1]) : 9100;
+        int capacidad = args.length > 2 ? Integer.parseInt(args[2]) : GestorFlota.CAPACIDAD_HISTORIAL_POR_DEFECTO;
+        GestorFlota gestor = new GestorFlota(capacidad);
+        configurarAlertas(gestor.getMotorAlertas());
+        java.net.InetSocketAddress direccion = new java.net.InetSocketAddress(
+            java.net.InetAddress.getLoopbackAddress(), puerto);
+        try (ServidorParticion servidor = new ServidorParticion(gestor, direccion)) {
+            servidor.iniciar();
+            esperarApagado();
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("No se pudo servir la particion en el puerto " + puerto, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        RegistroAsincrono.vaciar(2_000);
+    }
+    
+    /**
+     * java Sigefve dispositivos [host] [puerto] [conexiones] [tramas/s] [segundos] [vehiculos] [tcp|udp]:
+     * carga para un ServidorIngesta en marcha (tramas/s = 0, tan rapido como se pueda)
+     */
+    private static void generarCargaDispositivos(String[] args) {
+        String host = args.length > 1 ? args[1] : "localhost";
+        int puerto = args.length > 2 ? Integer.parseInt(args[2]) : 9200;
+        int conexiones = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        double tramasPorSegundo = args.length > 4 ? Double.parseDouble(args[4]) : 100_000;
+        int segundos = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        int vehiculos = args.length > 6 ? Integer.parseInt(args[6]) : 10_000;
+        boolean udp = args.length > 7 && args[7].equalsIgnoreCase("udp");
+        CargaDispositivos carga = new CargaDispositivos(new java.net.InetSocketAddress(host, puerto), conexiones,
+                                                        tramasPorSegundo, vehiculos, udp);
+        try {
+            carga.ejecutar(segundos * 1000L);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("No se pudo conectar a " + host + ":" + puerto, e);
+        }
+        RegistroAsincrono.info("Tramas enviadas: {} ({} tramas/s, {} ticks atrasados)", carga.getEnviadas(),
+                               String.format("%.0f", carga.getTramasPorSegundo()), carga.getTicksAtrasados());
+        RegistroAsincrono.vaciar(2_000);
+    }
+    
+    static void configurarAlertas(MotorAlertas alertas) {
+        alertas.agregarRegla(new ReglaAlerta("Bateria baja", MetricaAlerta.NIVEL_BATERIA, false,
+                                             20f, 25f, SeveridadAlerta.URGENTE, null));
+        alertas.agregarRegla(new ReglaAlerta("Temperatura alta", MetricaAlerta.TEMPERATURA_MOTOR, true,
+                                             70f, 65f, SeveridadAlerta.MEDIA, null));
+        alertas.agregarRegla(new ReglaAlerta("Exceso de velocidad", MetricaAlerta.VELOCIDAD, true,
+                                             90f, 80f, SeveridadAlerta.MEDIA, null));
+    }
+    
+    /**
+     * Cargadores del deposito: un cargador de CA para vans y motos y un rack
+     * para bicicletas. No se guardan en el diario; son configuracion.
+     */
+    private static void configurarEstacionesCarga(GestorFlota gestor) {
+        gestor.agregarEstacionCarga("Deposito CA", 4, java.util.Map.of("van", 22f, "moto", 6.6f));
+        gestor.agregarEstacionCarga("Rack bicicletas", 6, java.util.Map.of("bicicleta", 0.25f));
+    }
+    
+    private static void crearFlotaDemostracion(GestorFlota gestor) {
+        // Crear vehiculos
+        RegistroAsincrono.info("--- Creando vehiculos ---");
+        gestor.crearVehiculo("van", "Ford E-Transit", 67.0f);
+        gestor.crearVehiculo("van", "Mercedes eSprinter", 55.0f);
+        gestor.crearVehiculo("bicicleta", "Specialized Turbo", 0.5f);
+        gestor.crearVehiculo("bicicleta", "Trek Allant+", 0.6f);
+        gestor.crearVehiculo("moto", "Zero SR/F", 14.4f);
+        gestor.crearVehiculo("moto", "Energica Ego", 21.5f);
+        
+        // Crear rutas
+        RegistroAsincrono.info("\n--- Creando rutas ---");
+        Ruta ruta1 = gestor.crearRuta("Centro", "Zona Norte", 15.5f);
+        gestor.agregarEntrega(ruta1.getId(), new Entrega(1, "Calle Principal 123", 
+                              java.time.LocalDateTime.now().plusHours(1), 20.6390, -100.3920));
+        gestor.agregarEntrega(ruta1.getId(), new Entrega(3, "Avenida Universidad 80", 
+                              java.time.LocalDateTime.now().plusHours(1), 20.6050, -100.3880));
+        gestor.agregarEntrega(ruta1.getId(), new Entrega(4, "Boulevard Bernardo Quintana 15", 
+                              java.time.LocalDateTime.now().plusHours(1), 20.6210, -100.3760));
+        
+        Ruta ruta2 = gestor.crearRuta("Centro", "Zona Sur", 12.3f);
+        gestor.agregarEntrega(ruta2.getId(), new Entrega(2, "Avenida Reforma 456", 
+                              java.time.LocalDateTime.now().plusHours(2)));
+        
+        // Asignar rutas
+        RegistroAsincrono.info("\n--- Asignando rutas ---");
+        gestor.asignarRutaAVehiculo(1, 1);
+        gestor.asignarRutaAVehiculo(3, 2);
+        
+        // Las rutas que quedan se despachan juntas segun autonomia y tipo
+        gestor.crearRuta("Centro", "Aeropuerto", 42.0f);
+        gestor.crearRuta("Centro", "Zona Este", 8.4f);
+        gestor.despacharRutas();
+        
+        // Orden de visita y horas estimadas de las entregas con ubicacion
+        gestor.secuenciarRutas();
+        
+        // Telemetria manual de los vehiculos en ruta; va aqui y no en main
+        // porque en una flota restaurada los ids 1 y 3 son otros vehiculos
+        RegistroAsincrono.info("\n--- Registrando telemetria ---");
+        gestor.registrarTelemetria(1, 45.5f, 55.2f, "20.523456,-100.345678");
+        gestor.registrarTelemetria(3, 25.0f, 40.1f, "20.534567,-100.356789");
     }
 }
@@ -0,0 +1,559 @@
+// ============================================================================
+// SIMULACION DE EVENTOS DISCRETOS CON RELOJ VIRTUAL
+// ============================================================================
+
+/**
+ * Reloj que solo avanza cuando se le ordena. GestorFlota, Telemetria,
+ * MotorAlertas, EstadisticasFlota y PlanificadorCarga lo aceptan en lugar
+ * del reloj del sistema, asi una simulacion decide que hora es.
+ *
+ * Un solo hilo lo avanza (el de MotorSimulacion); los demas solo lo leen.
+ */
+class RelojVirtual extends java.time.Clock {
+    private final java.time.ZoneId zona;
+    private volatile long millis;
+    
+    public RelojVirtual(long inicioMillis) {
+        this(inicioMillis, java.time.ZoneId.systemDefault());
+    }
+    
+    public RelojVirtual(long inicioMillis, java.time.ZoneId zona) {
+        this.millis = inicioMillis;
+        this.zona = zona;
+    }
+    
+    @Override
+    public java.time.ZoneId getZone() {
+        return zona;
+    }
+    
+    /**
+     * @return un reloj nuevo en la hora actual de este; no avanza con el
+     */
+    @Override
+    public java.time.Clock withZone(java.time.ZoneId otraZona) {
+        return new RelojVirtual(millis, otraZona);
+    }
+    
+    @Override
+    public long millis() {
+        return millis;
+    }
+    
+    @Override
+    public java.time.Instant instant() {
+        return java.time.Instant.ofEpochMilli(millis);
+    }
+    
+    public void avanzarA(long nuevoMillis) {
+        if (nuevoMillis < millis) {
+            throw new IllegalArgumentException("El reloj virtual no retrocede: " + nuevoMillis + " < " + millis);
+        }
+        millis = nuevoMillis;
+    }
+}
+
+/**
+ * Algo que ocurre en un instante de la simulacion. Un mismo evento se puede
+ * volver a programar desde su propio ejecutar (una lectura periodica, por
+ * ejemplo), asi la simulacion no crea un objeto por ocurrencia.
+ */
+abstract class EventoSimulacion {
+    long tiempoMillis;
+    // Desempata eventos del mismo instante en el orden en que se programaron
+    long secuencia;
+    boolean programado;
+    
+    public long getTiempoMillis() { return tiempoMillis; }
+    
+    /**
+     * Lo llama el motor con el reloj virtual ya en getTiempoMillis()
+     */
+    protected abstract void ejecutar(MotorSimulacion motor);
+}
+
+/**
+ * Cola de eventos por tiempo. ejecutarHasta saca el siguiente evento, lleva
+ * el reloj virtual a su instante y lo ejecuta, sin esperar nada entre uno y
+ * otro: la simulacion corre tan rapido como la CPU lo permite. Los eventos
+ * del mismo instante se ejecutan en el orden en que se programaron, asi dos
+ * corridas con la misma entrada hacen lo mismo en el mismo orden.
+ *
+ * No es seguro entre hilos: todo se programa y se ejecuta en el hilo que
+ * llama a ejecutarHasta.
+ */
+class MotorSimulacion {
+    private final RelojVirtual reloj;
+    private final java.util.PriorityQueue<EventoSimulacion> eventos = new java.util.PriorityQueue<>(
+        (a, b) -> a.tiempoMillis != b.tiempoMillis ? Long.compare(a.tiempoMillis, b.tiempoMillis)
+                                                   : Long.compare(a.secuencia, b.secuencia));
+    private long siguienteSecuencia;
+    private long ejecutados;
+    
+    public MotorSimulacion(RelojVirtual reloj) {
+        this.reloj = reloj;
+    }
+    
+    public RelojVirtual getReloj() {
+        return reloj;
+    }
+    
+    public void programar(EventoSimulacion evento, long tiempoMillis) {
+        if (evento.programado) {
+            throw new IllegalArgumentException("El evento ya esta programado para " + evento.tiempoMillis);
+        }
+        if (tiempoMillis < reloj.millis()) {
+            throw new IllegalArgumentException("No se puede programar en el pasado: " + tiempoMillis
+                                               + " < " + reloj.millis());
+        }
+        evento.tiempoMillis = tiempoMillis;
+        evento.secuencia = siguienteSecuencia++;
+        evento.programado = true;
+        eventos.add(evento);
+    }
+    
+    /**
+     * Ejecuta en orden los eventos hasta finMillis inclusive y deja el reloj en finMillis
+     * @return cuantos eventos se ejecutaron
+     */
+    public long ejecutarHasta(long finMillis) {
+        long antes = ejecutados;
+        EventoSimulacion evento;
+        while ((evento = eventos.peek()) != null && evento.tiempoMillis <= finMillis) {
+            eventos.poll();
+            evento.programado = false;
+            reloj.avanzarA(evento.tiempoMillis);
+            evento.ejecutar(this);
+            ejecutados++;
+        }
+        if (finMillis > reloj.millis()) {
+            reloj.avanzarA(finMillis);
+        }
+        return ejecutados - antes;
+    }
+    
+    public int getPendientes() {
+        return eventos.size();
+    }
+    
+    public long getEjecutados() {
+        return ejecutados;
+    }
+}
+
+/**
+ * Resultado de una simulacion de reparto. La firma resume el estado final
+ * de cada vehiculo y los contadores del dia: dos corridas con la misma
+ * semilla dan la misma firma.
+ */
+class ResultadoSimulacion {
+    private final int vehiculos;
+    private final long milisegundosSimulados;
+    private final long nanosReales;
+    private final long eventos;
+    private final long lecturas;
+    private final long rutasCreadas;
+    private final long rutasDespachadas;
+    private final long rutasTerminadas;
+    private final long entregasCompletadas;
+    private final long entregasTardias;
+    private final long cargasSolicitadas;
+    private final long cargasCompletadas;
+    private final long replanificaciones;
+    private final long alertasAbiertas;
+    private final double kilometros;
+    private final long firma;
+    
+    ResultadoSimulacion(int vehiculos, long milisegundosSimulados, long nanosReales, long eventos, long lecturas,
+                        long rutasCreadas, long rutasDespachadas, long rutasTerminadas,
+                        long entregasCompletadas, long entregasTardias, long cargasSolicitadas,
+                        long cargasCompletadas, long replanificaciones, long alertasAbiertas,
+                        double kilometros, long firma) {
+        this.vehiculos = vehiculos;
+        this.milisegundosSimulados = milisegundosSimulados;
+        this.nanosReales = nanosReales;
+        this.eventos = eventos;
+        this.lecturas = lecturas;
+        this.rutasCreadas = rutasCreadas;
+        this.rutasDespachadas = rutasDespachadas;
+        this.rutasTerminadas = rutasTerminadas;
+        this.entregasCompletadas = entregasCompletadas;
+        this.entregasTardias = entregasTardias;
+        this.cargasSolicitadas = cargasSolicitadas;
+        this.cargasCompletadas = cargasCompletadas;
+        this.replanificaciones = replanificaciones;
+        this.alertasAbiertas = alertasAbiertas;
+        this.kilometros = kilometros;
+        this.firma = firma;
+    }
+    
+    public int getVehiculos() { return vehiculos; }
+    public long getMilisegundosSimulados() { return milisegundosSimulados; }
+    public long getNanosReales() { return nanosReales; }
+    public long getEventos() { return eventos; }
+    public long getLecturas() { return lecturas; }
+    public long getRutasCreadas() { return rutasCreadas; }
+    public long getRutasDespachadas() { return rutasDespachadas; }
+    public long getRutasTerminadas() { return rutasTerminadas; }
+    public long getEntregasCompletadas() { return entregasCompletadas; }
+    /** Entregas a las que se llego mas de TOLERANCIA_MS despues de la hora estimada al despachar su ruta */
+    public long getEntregasTardias() { return entregasTardias; }
+    public long getCargasSolicitadas() { return cargasSolicitadas; }
+    public long getCargasCompletadas() { return cargasCompletadas; }
+    public long getReplanificaciones() { return replanificaciones; }
+    public long getAlertasAbiertas() { return alertasAbiertas; }
+    public double getKilometros() { return kilometros; }
+    public long getFirma() { return firma; }
+    
+    /** Cuantas veces mas rapido que el tiempo real corrio la simulacion */
+    public double getAceleracion() {
+        return nanosReales > 0 ? milisegundosSimulados * 1e6 / nanosReales : Double.POSITIVE_INFINITY;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Simulacion[%d vehiculos, %.1f h en %.1f s (x%.0f), %d eventos, %d lecturas, "
+                             + "rutas %d/%d/%d, entregas %d (%d tardias), cargas %d/%d, %d replanificaciones, "
+                             + "%d alertas, %.0f km, firma %016x]",
+                             vehiculos, milisegundosSimulados / 3_600_000.0, nanosReales / 1e9, getAceleracion(),
+                             eventos, lecturas, rutasCreadas, rutasDespachadas, rutasTerminadas,
+                             entregasCompletadas, entregasTardias, cargasSolicitadas, cargasCompletadas,
+                             replanificaciones, alertasAbiertas, kilometros, firma);
+    }
+}
+
+/**
+ * Un dia de reparto simulado sobre un GestorFlota con RelojVirtual. Todo lo
+ * aleatorio sale de un SplittableRandom con la semilla dada y todo corre en
+ * el hilo que llama a ejecutar, asi la misma semilla da el mismo dia.
+ *
+ * Cada vehiculo envia una lectura cada PERIODO_LECTURA_MS: si tiene ruta
+ * avanza en linea recta hacia su siguiente entrega pendiente a la velocidad
+ * de su tipo (con variacion), se detiene MINUTOS_SERVICIO en ella y la marca
+ * completada; al terminar la ruta queda DISPONIBLE y, con la bateria bajo
+ * NIVEL_RECARGA, pide conector. Los pedidos llegan como un proceso de
+ * Poisson entre las 6 y las 20 h, se despachan cada PERIODO_DESPACHO_MS y
+ * se secuencian al asignarse; las cargas avanzan cada minuto.
+ */
+class SimulacionFlota {
+    public static final long PERIODO_LECTURA_MS = 60_000;
+    public static final long PERIODO_DESPACHO_MS = 5 * 60_000L;
+    public static final float NIVEL_RECARGA = 30f;
+    public static final double RUTAS_POR_VEHICULO_DIA = 2.0;
+    
+    private static final long DIA_MS = 24 * 3_600_000L;
+    private static final long PRIMER_PEDIDO_MS = 6 * 3_600_000L;
+    private static final long ULTIMO_PEDIDO_MS = 20 * 3_600_000L;
+    // Zona de reparto: cuadrado alrededor del centro, en grados
+    private static final double LATITUD_CENTRO = 20.60;
+    private static final double LONGITUD_CENTRO = -100.39;
+    private static final double RADIO_GRADOS = 0.12;
+    
+    private final long semilla;
+    private final long inicioMillis;
+    private final java.util.SplittableRandom random;
+    private final RelojVirtual reloj;
+    private final MotorSimulacion motor;
+    private final GestorFlota gestor;
+    private final java.time.ZoneId zona;
+    
+    // Estado de cada vehiculo, por posicion en flota
+    private final VehiculoElectrico[] flota;
+    private final java.util.Map<Integer, Integer> posicionPorId = new java.util.HashMap<>();
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final Ruta[] rutas;
+    private final Entrega[] enServicio;
+    private final long[] finServicio;
+    // Hora estimada de cada entrega pendiente cuando se despacho su ruta
+    private final java.util.Map<Entrega, Long> horasPrometidas = new java.util.HashMap<>();
+    
+    private long lecturas;
+    private long rutasCreadas;
+    private long rutasDespachadas;
+    private long rutasTerminadas;
+    private long entregasCompletadas;
+    private long entregasTardias;
+    private long cargasSolicitadas;
+    private int siguienteEntrega = 1;
+    
+    /**
+     * Crea la flota (60% vans, 25% motos, 15% bicicletas) y una estacion de
+     * carga por cada 20 vehiculos; el dia empieza a las 0 h del 2 de marzo de 2026
+     */
+    public SimulacionFlota(int cantidadVehiculos, long semilla) {
+        if (cantidadVehiculos <= 0) {
+            throw new IllegalArgumentException("Cantidad de vehiculos no valida: " + cantidadVehiculos);
+        }
+        this.semilla = semilla;
+        this.zona = java.time.ZoneId.systemDefault();
+        this.inicioMillis = java.time.LocalDate.of(2026, 3, 2).atStartOfDay(zona).toInstant().toEpochMilli();
+        this.random = new java.util.SplittableRandom(semilla);
+        this.reloj = new RelojVirtual(inicioMillis, zona);
+        this.motor = new MotorSimulacion(reloj);
+        // Una hora de lecturas crudas y una de minutos por vehiculo: un dia de 10k vehiculos cabe en memoria
+        // Las replanificaciones corren en este hilo, asi la misma semilla da el mismo resultado
+        this.gestor = new GestorFlota(128, new RetencionTelemetria(3_600_000L, 60, 24), reloj, Runnable::run);
+        Sigefve.configurarAlertas(gestor.getMotorAlertas());
+        
+        flota = new VehiculoElectrico[cantidadVehiculos];
+        latitudes = new double[cantidadVehiculos];
+        longitudes = new double[cantidadVehiculos];
+        rutas = new Ruta[cantidadVehiculos];
+        enServicio = new Entrega[cantidadVehiculos];
+        finServicio = new long[cantidadVehiculos];
+        for (int i = 0; i < cantidadVehiculos; i++) {
+            int sorteo = random.nextInt(20);
+            VehiculoElectrico vehiculo = sorteo < 12 ? gestor.crearVehiculo("van", "Simulada", 60f)
+                                       : sorteo < 17 ? gestor.crearVehiculo("moto", "Simulada", 18f)
+                                       : gestor.crearVehiculo("bicicleta", "Simulada", 0.5f);
+            vehiculo.setNivelBateria(40 + random.nextInt(61));
+            flota[i] = vehiculo;
+            posicionPorId.put(vehiculo.getId(), i);
+            latitudes[i] = LATITUD_CENTRO + (random.nextDouble() * 2 - 1) * RADIO_GRADOS;
+            longitudes[i] = LONGITUD_CENTRO + (random.nextDouble() * 2 - 1) * RADIO_GRADOS;
+            // Cada vehiculo lee en su propio segundo del minuto, como una flota real
+            motor.programar(new Lectura(i), inicioMillis + random.nextLong(PERIODO_LECTURA_MS));
+        }
+        
+        // Como en el banco de estaciones: 70% CA para vans y motos, 20% rapidas, 10% racks de bicicletas
+        for (int e = 0; e < Math.max(1, cantidadVehiculos / 20); e++) {
+            int sorteo = random.nextInt(10);
+            if (sorteo < 7) {
+                gestor.agregarEstacionCarga("CA " + e, 2 + random.nextInt(7),
+                                            java.util.Map.of("van", 22f, "moto", 6.6f));
+            } else if (sorteo < 9) {
+                gestor.agregarEstacionCarga("Rapida " + e, 1 + random.nextInt(2), java.util.Map.of("van", 50f));
+            } else {
+                gestor.agregarEstacionCarga("Rack " + e, 4 + random.nextInt(9), java.util.Map.of("bicicleta", 0.5f));
+            }
+        }
+        
+        motor.programar(new Pedido(cantidadVehiculos), siguientePedido(inicioMillis, cantidadVehiculos));
+        motor.programar(new Despacho(), inicioMillis + PERIODO_DESPACHO_MS);
+        motor.programar(new AvanceCargas(), inicioMillis + PERIODO_LECTURA_MS);
+    }
+    
+    public GestorFlota getGestor() {
+        return gestor;
+    }
+    
+    public long getSemilla() {
+        return semilla;
+    }
+    
+    /**
+     * Avanza la simulacion duracionMillis de tiempo virtual
+     */
+    public ResultadoSimulacion ejecutar(long duracionMillis) {
+        long inicioNanos = System.nanoTime();
+        long eventos = motor.ejecutarHasta(reloj.millis() + duracionMillis);
+        long nanos = System.nanoTime() - inicioNanos;
+        
+        PlanificadorCarga planificador = gestor.getPlanificadorCarga();
+        ResumenEstadisticas resumen = gestor.obtenerEstadisticas();
+        double kilometros = 0;
+        for (int dia = 0; dia < resumen.getDias(); dia++) {
+            kilometros += resumen.getKilometros(dia);
+        }
+        long alertas = gestor.getMotorAlertas().getTotalAbiertas();
+        long firma = semilla;
+        for (VehiculoElectrico vehiculo : flota) {
+            firma = mezclar(firma, vehiculo.getId());
+            firma = mezclar(firma, vehiculo.getEstado().ordinal());
+            firma = mezclar(firma, Float.floatToIntBits(vehiculo.getNivelBateria()));
+        }
+        for (int i = 0; i < flota.length; i++) {
+            firma = mezclar(firma, Double.doubleToLongBits(latitudes[i]));
+            firma = mezclar(firma, Double.doubleToLongBits(longitudes[i]));
+        }
+        long[] contadores = {lecturas, rutasCreadas, rutasDespachadas, rutasTerminadas, entregasCompletadas,
+                             entregasTardias, cargasSolicitadas, planificador.getCompletadas(),
+                             gestor.getSecuenciador().getReplanificaciones(), alertas,
+                             Double.doubleToLongBits(kilometros)};
+        for (long contador : contadores) {
+            firma = mezclar(firma, contador);
+        }
+        return new ResultadoSimulacion(flota.length, duracionMillis, nanos, eventos, lecturas, rutasCreadas,
+                                       rutasDespachadas, rutasTerminadas, entregasCompletadas, entregasTardias,
+                                       cargasSolicitadas, planificador.getCompletadas(),
+                                       gestor.getSecuenciador().getReplanificaciones(), alertas, kilometros, firma);
+    }
+    
+    // ====== Vehiculos ======
+    
+    private void leer(int i, long ahora) {
+        VehiculoElectrico vehiculo = flota[i];
+        float velocidad = 0;
+        Ruta ruta = rutas[i];
+        if (ruta != null) {
+            if (enServicio[i] != null) {
+                if (ahora >= finServicio[i]) {
+                    gestor.cambiarEstadoEntrega(ruta.getId(), enServicio[i].getId(), Entrega.COMPLETADA);
+                    entregasCompletadas++;
+                    enServicio[i] = null;
+                }
+            } else {
+                velocidad = avanzar(i, ruta, ahora);
+            }
+        } else if (vehiculo.getEstado() == EstadoVehiculo.DISPONIBLE && vehiculo.getNivelBateria() < NIVEL_RECARGA
+                   && gestor.cargarVehiculo(vehiculo.getId())) {
+            cargasSolicitadas++;
+        }
+        float temperatura = 25 + velocidad * 0.6f + (float) random.nextDouble() * 8;
+        gestor.registrarLectura(vehiculo.getId(), ahora, velocidad, temperatura, latitudes[i], longitudes[i]);
+        lecturas++;
+    }
+    
+    /**
+     * Acerca el vehiculo a su siguiente entrega pendiente
+     * @return velocidad de la lectura en km/h
+     */
+    private float avanzar(int i, Ruta ruta, long ahora) {
+        Entrega destino = null;
+        for (Entrega entrega : ruta.getEntregas()) {
+            if (entrega.estaPendiente() && entrega.tieneUbicacion()) {
+                destino = entrega;
+                break;
+            }
+        }
+        if (destino == null) {
+            gestor.cambiarEstadoVehiculo(flota[i].getId(), EstadoVehiculo.EN_RUTA, EstadoVehiculo.DISPONIBLE);
+            rutas[i] = null;
+            rutasTerminadas++;
+            return 0;
+        }
+        double kmh = SecuenciadorEntregas.velocidadKmh(flota[i].getTipo()) * (0.85 + 0.3 * random.nextDouble());
+        // Las horas estimadas cuentan km por calle; en linea recta se avanza FACTOR_CALLE veces menos
+        double avanceKm = kmh * PERIODO_LECTURA_MS / 3_600_000.0 / SecuenciadorEntregas.FACTOR_CALLE;
+        double restanteKm = IndiceEspacial.distanciaKm(latitudes[i], longitudes[i],
+                                                       destino.getLatitud(), destino.getLongitud());
+        if (restanteKm <= avanceKm) {
+            latitudes[i] = destino.getLatitud();
+            longitudes[i] = destino.getLongitud();
+            Long prometida = horasPrometidas.remove(destino);
+            if (prometida != null && ahora > prometida + SecuenciadorEntregas.TOLERANCIA_MS) {
+                entregasTardias++;
+            }
+            enServicio[i] = destino;
+            finServicio[i] = ahora + SecuenciadorEntregas.MINUTOS_SERVICIO * 60_000L;
+        } else {
+            double fraccion = avanceKm / restanteKm;
+            latitudes[i] += (destino.getLatitud() - latitudes[i]) * fraccion;
+            longitudes[i] += (destino.getLongitud() - longitudes[i]) * fraccion;
+        }
+        return (float) kmh;
+    }
+    
+    // ====== Pedidos y despacho ======
+    
+    /**
+     * Ruta de 5 a 15 entregas agrupadas alrededor de un punto de la zona; la
+     * distancia declarada es la del orden en que se pidieron, como la
+     * estimaria quien captura el pedido
+     */
+    private void crearPedido() {
+        double latitud = LATITUD_CENTRO + (random.nextDouble() * 2 - 1) * RADIO_GRADOS;
+        double longitud = LONGITUD_CENTRO + (random.nextDouble() * 2 - 1) * RADIO_GRADOS;
+        double dispersion = 0.005 + random.nextDouble() * 0.015;
+        int cantidad = 5 + random.nextInt(11);
+        Entrega[] entregas = new Entrega[cantidad];
+        double distancia = 0;
+        for (int k = 0; k < cantidad; k++) {
+            entregas[k] = new Entrega(siguienteEntrega++, "Pedido " + rutasCreadas + "-" + k, null,
+                                      latitud + (random.nextDouble() * 2 - 1) * dispersion,
+                                      longitud + (random.nextDouble() * 2 - 1) * dispersion);
+            if (k > 0) {
+                distancia += SecuenciadorEntregas.distanciaCalleKm(entregas[k - 1].getLatitud(), entregas[k - 1].getLongitud(),
+                                                                   entregas[k].getLatitud(), entregas[k].getLongitud());
+            }
+        }
+        Ruta ruta = gestor.crearRuta("Zona " + rutasCreadas, "Zona " + rutasCreadas, (float) distancia);
+        for (Entrega entrega : entregas) {
+            gestor.agregarEntrega(ruta.getId(), entrega);
+        }
+        rutasCreadas++;
+    }
+    
+    /**
+     * Siguiente llegada de un proceso de Poisson con RUTAS_POR_VEHICULO_DIA
+     * rutas por vehiculo repartidas entre las 6 y las 20 h
+     */
+    private long siguientePedido(long ahora, int cantidadVehiculos) {
+        double mediaMillis = (ULTIMO_PEDIDO_MS - PRIMER_PEDIDO_MS) / (RUTAS_POR_VEHICULO_DIA * cantidadVehiculos);
+        long siguiente = ahora + (long) (-Math.log(1 - random.nextDouble()) * mediaMillis);
+        long enDia = Math.floorMod(siguiente - inicioMillis, DIA_MS);
+        if (enDia < PRIMER_PEDIDO_MS) {
+            siguiente += PRIMER_PEDIDO_MS - enDia;
+        } else if (enDia >= ULTIMO_PEDIDO_MS) {
+            siguiente += DIA_MS - enDia + PRIMER_PEDIDO_MS;
+        }
+        return siguiente;
+    }
+    
+    private void despachar() {
+        ResultadoDespacho resultado = gestor.despacharRutas();
+        for (int k = 0; k < resultado.getAsignadas(); k++) {
+            int i = posicionPorId.get(resultado.getVehiculo(k));
+            rutas[i] = gestor.consultarRuta(resultado.getRuta(k));
+            gestor.secuenciarRuta(resultado.getRuta(k));
+            for (Entrega entrega : rutas[i].getEntregas()) {
+                if (entrega.getHoraEstimada() != null) {
+                    horasPrometidas.put(entrega, entrega.getHoraEstimada().atZone(zona).toInstant().toEpochMilli());
+                }
+            }
+            rutasDespachadas++;
+        }
+    }
+    
+    private static long mezclar(long firma, long valor) {
+        long mezcla = (firma ^ valor) * 0x9E3779B97F4A7C15L;
+        return mezcla ^ (mezcla >>> 29);
+    }
+    
+    // ====== Eventos ======
+    
+    private final class Lectura extends EventoSimulacion {
+        private final int posicion;
+        
+        Lectura(int posicion) {
+            this.posicion = posicion;
+        }
+        
+        @Override
+        protected void ejecutar(MotorSimulacion motor) {
+            leer(posicion, tiempoMillis);
+            motor.programar(this, tiempoMillis + PERIODO_LECTURA_MS);
+        }
+    }
+    
+    private final class Pedido extends EventoSimulacion {
+        private final int cantidadVehiculos;
+        
+        Pedido(int cantidadVehiculos) {
+            this.cantidadVehiculos = cantidadVehiculos;
+        }
+        
+        @Override
+        protected void ejecutar(MotorSimulacion motor) {
+            crearPedido();
+            motor.programar(this, siguientePedido(tiempoMillis, cantidadVehiculos));
+        }
+    }
+    
+    private final class Despacho extends EventoSimulacion {
+        @Override
+        protected void ejecutar(MotorSimulacion motor) {
+            despachar();
+            motor.programar(this, tiempoMillis + PERIODO_DESPACHO_MS);
+        }
+    }
+    
+    private final class AvanceCargas extends EventoSimulacion {
+        @Override
+        protected void ejecutar(MotorSimulacion motor) {
+            gestor.getPlanificadorCarga().avanzar(tiempoMillis);
+            motor.programar(this, tiempoMillis + PERIODO_LECTURA_MS);
+        }
+    }
+}
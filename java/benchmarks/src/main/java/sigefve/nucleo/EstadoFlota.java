@@ -0,0 +1,79 @@
+// ============================================================================
+// FLOTA SINTETICA PARA LOS BENCHMARKS JMH
+// ============================================================================
+package sigefve.nucleo;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Level;
+
+/**
+ * Flota compartida por todos los hilos de una medicion. Se arma una vez por
+ * tamano: vehiculos de los tres tipos, uno de cada cuatro EN_RUTA y cada uno
+ * con LECTURAS_PREVIAS lecturas para que las consultas tengan historial.
+ */
+@State(Scope.Benchmark)
+public class EstadoFlota {
+    /** Tope de lecturas crudas por vehiculo; con un millon de vehiculos la flota cabe en ~3 GB */
+    static final int CAPACIDAD_HISTORIAL = 64;
+    static final int LECTURAS_PREVIAS = 16;
+    static final int UBICACIONES = 1024;
+    
+    @Param({"100", "10000", "1000000"})
+    public int vehiculos;
+    
+    GestorFlota gestor;
+    SimuladorTelemetria simulador;
+    VehiculoElectrico[] flota;
+    // Cadenas "lat,lon" ya armadas: registrarTelemetria mide el parseo, no la concatenacion
+    String[] ubicaciones;
+    
+    @Setup(Level.Trial)
+    public void preparar() {
+        String[] tipos = {"van", "moto", "bicicleta"};
+        float[] capacidades = {60f, 18f, 0.5f};
+        java.util.SplittableRandom random = new java.util.SplittableRandom(42);
+        java.io.PrintStream salida = System.out;
+        // crearVehiculo y los cambios de estado informan por consola
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+        try {
+            gestor = new GestorFlota(CAPACIDAD_HISTORIAL);
+            flota = new VehiculoElectrico[vehiculos];
+            for (int i = 0; i < vehiculos; i++) {
+                flota[i] = gestor.crearVehiculo(tipos[i % 3], "Sintetico " + i, capacidades[i % 3]);
+                if (i % 4 == 0) {
+                    gestor.cambiarEstadoVehiculo(flota[i].getId(), EstadoVehiculo.EN_RUTA);
+                }
+            }
+            long inicio = System.currentTimeMillis() - LECTURAS_PREVIAS * 1000L;
+            for (int lectura = 0; lectura < LECTURAS_PREVIAS; lectura++) {
+                for (VehiculoElectrico vehiculo : flota) {
+                    gestor.registrarLectura(vehiculo.getId(), inicio + lectura * 1000L,
+                                            (float) random.nextDouble(60), 30 + (float) random.nextDouble(50),
+                                            20.5 + random.nextDouble(0.1), -100.3 + random.nextDouble(0.1));
+                }
+            }
+        } finally {
+            System.setOut(salida);
+        }
+        simulador = new SimuladorTelemetria(gestor, 1);
+        ubicaciones = new String[UBICACIONES];
+        for (int i = 0; i < ubicaciones.length; i++) {
+            ubicaciones[i] = (20.5 + random.nextDouble(0.1)) + "," + (-100.3 + random.nextDouble(0.1));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void liberar() {
+        gestor = null;
+        simulador = null;
+        flota = null;
+    }
+    
+    VehiculoElectrico elegir(java.util.SplittableRandom random) {
+        return flota[random.nextInt(flota.length)];
+    }
+}
@@ -0,0 +1,13 @@
+// ============================================================================
+// MEDICIONES CON UN HILO
+// ============================================================================
+package sigefve.nucleo;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Costo de cada operacion sin competencia: la referencia para detectar regresiones
+ */
+@Threads(1)
+public class FlotaUnHilo extends MedicionesFlota {
+}
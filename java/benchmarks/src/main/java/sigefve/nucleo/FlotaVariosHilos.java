@@ -0,0 +1,15 @@
+// ============================================================================
+// MEDICIONES CON VARIOS HILOS
+// ============================================================================
+package sigefve.nucleo;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Las mismas operaciones con cuatro hilos sobre la misma flota: mide la
+ * contencion en los mapas, candados por vehiculo y contadores compartidos.
+ * Con -t se puede usar otra cantidad de hilos.
+ */
+@Threads(4)
+public class FlotaVariosHilos extends MedicionesFlota {
+}
@@ -0,0 +1,68 @@
+// ============================================================================
+// MEDICIONES JMH DE LOS CAMINOS CRITICOS DE GestorFlota
+// ============================================================================
+package sigefve.nucleo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operaciones medidas, sobre un vehiculo al azar de EstadoFlota en cada
+ * llamada. FlotaUnHilo y FlotaVariosHilos las ejecutan con uno y con varios
+ * hilos contra la misma flota; JMH ignora esta clase por ser abstracta.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public abstract class MedicionesFlota {
+    
+    /** Generador propio de cada hilo, para no medir contencion sobre un Random comun */
+    @State(Scope.Thread)
+    public static class Hilo {
+        java.util.SplittableRandom random;
+        
+        @Setup(Level.Trial)
+        public void preparar() {
+            random = new java.util.SplittableRandom(Thread.currentThread().getId());
+        }
+    }
+    
+    @Benchmark
+    public Telemetria registrarTelemetria(EstadoFlota flota, Hilo hilo) {
+        VehiculoElectrico vehiculo = flota.elegir(hilo.random);
+        String ubicacion = flota.ubicaciones[hilo.random.nextInt(EstadoFlota.UBICACIONES)];
+        return flota.gestor.registrarTelemetria(vehiculo.getId(), 40f, 55f, ubicacion);
+    }
+    
+    @Benchmark
+    public java.util.List<Telemetria> consultarHistorialTelemetria(EstadoFlota flota, Hilo hilo) {
+        return flota.gestor.consultarHistorialTelemetria(flota.elegir(hilo.random).getId());
+    }
+    
+    @Benchmark
+    public Telemetria obtenerUltimaTelemetria(EstadoFlota flota, Hilo hilo) {
+        return flota.gestor.obtenerUltimaTelemetria(flota.elegir(hilo.random).getId());
+    }
+    
+    /** Recorre la flota entera: crece con el tamano, a diferencia de las demas */
+    @Benchmark
+    public java.util.List<VehiculoElectrico> obtenerVehiculosDisponibles(EstadoFlota flota) {
+        return flota.gestor.obtenerVehiculosDisponibles();
+    }
+    
+    @Benchmark
+    public void generarTelemetriaAleatoria(EstadoFlota flota, Hilo hilo) {
+        flota.simulador.generarTelemetriaAleatoria(flota.elegir(hilo.random), hilo.random);
+    }
+}
@@ -0,0 +1,34 @@
+// Cliente minimo de la API HTTP del servicio Java (ServidorApi).
+// La API escucha en otro puerto que Apache (SIGEFVE_API_PUERTO, 8080 por defecto);
+// se puede apuntar a otra direccion guardando 'sigefve_api' en localStorage.
+const SIGEFVE_API = localStorage.getItem('sigefve_api') || (location.protocol + '//' + location.hostname + ':8080');
+
+// fetch con el token de sesion; si la sesion expiro regresa al login
+async function apiFetch(ruta, opciones = {}) {
+  const headers = Object.assign({}, opciones.headers || {});
+  const token = localStorage.getItem('sigefve_token');
+  if (token) headers['Authorization'] = 'Bearer ' + token;
+  const r = await fetch(SIGEFVE_API + ruta, Object.assign({}, opciones, { headers }));
+  if (r.status === 401 && ruta !== '/api/login') {
+    localStorage.removeItem('sigefve_token');
+    window.location.href = 'login.html';
+  }
+  return r;
+}
+
+// Flujo de eventos (Server-Sent Events); EventSource no manda cabeceras, el token va en la URL
+function apiFlujo(ruta) {
+  const token = localStorage.getItem('sigefve_token') || '';
+  const separador = ruta.indexOf('?') < 0 ? '?' : '&';
+  return new EventSource(SIGEFVE_API + ruta + separador + 'token=' + encodeURIComponent(token));
+}
+
+// URL de descarga de un informe. El navegador la abre sin cabeceras, asi que lleva un token de descarga
+// de un solo uso que vence en un minuto, no el de sesion: hay que pedirla justo antes de abrirla
+async function apiDescarga(ruta) {
+  const r = await apiFetch('/api/informes/descarga', { method: 'POST' });
+  if (!r.ok) throw new Error((await r.json()).error || 'No se pudo preparar la descarga.');
+  const { descarga } = await r.json();
+  const separador = ruta.indexOf('?') < 0 ? '?' : '&';
+  return SIGEFVE_API + ruta + separador + 'descarga=' + encodeURIComponent(descarga);
+}